@@ -0,0 +1,404 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import freenet.crypt.HMAC;
+import freenet.crypt.RandomSource;
+import freenet.crypt.SHA256;
+import freenet.crypt.SeekableCTRCipher;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.keys.FreenetURI;
+import freenet.support.HexUtil;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+
+/**
+ * Files extracted from archives, kept on disk so that they survive a restart. Browsing a
+ * big freesite made of many containers would otherwise fetch and unpack the same
+ * containers again every time the node starts.
+ *
+ * Only files from CHKs are kept, as the content of a CHK can't change. The filename is an
+ * HMAC of the key and the name within the archive, and the data is encrypted, both with
+ * keys derived from the client cache's master key. So the cache is protected by the same
+ * password as the client cache, and the key is never written to disk; only a check value
+ * is kept in the cache directory, so we know to delete the files when the master key
+ * changes. The least recently used files are deleted when we go over the size limit;
+ * file modification times are the LRU order across restarts.
+ *
+ * File format: 16 byte IV, then encrypted: the 32 byte filename MAC (to check the key),
+ * the data, and the SHA-256 of the data.
+ */
+public class ArchiveExtractCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ArchiveExtractCache.class);
+	}
+
+	static final String CHECK_FILENAME = "check";
+	private static final int IV_LENGTH = SeekableCTRCipher.BLOCK_SIZE;
+	private static final int MAC_LENGTH = 32;
+	private static final int HASH_LENGTH = 32;
+	/** Bytes we add to every file. */
+	static final int OVERHEAD = IV_LENGTH + MAC_LENGTH + HASH_LENGTH;
+
+	private final File dir;
+	private final RandomSource random;
+	private final byte[] macKey;
+	private final byte[] cipherKey;
+	/** Filename to size on disk. */
+	private final LRUMap<String, Long> files;
+	/** Files dropped by trim() which we couldn't delete yet. Not in files or totalSize. */
+	private final HashSet<String> undeleted;
+	private long totalSize;
+	private long maxSize;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Open the cache, creating it if necessary.
+	 * @param dir The directory to keep the files in. Nothing else should be in it.
+	 * @param maxSize The maximum total size of the files, in bytes.
+	 * @param masterKey The client cache's master key, from MasterKeys. Not kept. If it is
+	 * not the one the cache was created with, everything in the cache is deleted.
+	 * @throws IOException If we can't create the directory or read or write the check
+	 * value, or AES/CTR isn't available.
+	 */
+	public ArchiveExtractCache(File dir, long maxSize, byte[] masterKey, RandomSource random) throws IOException {
+		if(!SeekableCTRCipher.isAvailable()) throw new IOException("AES/CTR not available");
+		dir.mkdirs();
+		if(!dir.isDirectory()) throw new IOException("Unable to create "+dir);
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.random = random;
+		files = new LRUMap<String, Long>();
+		undeleted = new HashSet<String>();
+		macKey = HMAC.macWithSHA256(masterKey, "archive cache filename".getBytes("UTF-8"), MAC_LENGTH);
+		cipherKey = HMAC.macWithSHA256(masterKey, "archive cache cipher".getBytes("UTF-8"), SeekableCTRCipher.KEY_LENGTH);
+		byte[] check = HMAC.macWithSHA256(masterKey, "archive cache check".getBytes("UTF-8"), MAC_LENGTH);
+		File checkFile = new File(dir, CHECK_FILENAME);
+		boolean newKey = true;
+		if(checkFile.exists() && checkFile.length() == check.length) {
+			byte[] oldCheck = new byte[check.length];
+			DataInputStream dis = new DataInputStream(new FileInputStream(checkFile));
+			try {
+				dis.readFully(oldCheck);
+			} finally {
+				dis.close();
+			}
+			newKey = !Arrays.equals(check, oldCheck);
+		}
+		if(newKey) {
+			File tempCheckFile = new File(dir, CHECK_FILENAME+".tmp");
+			FileOutputStream fos = new FileOutputStream(tempCheckFile);
+			try {
+				fos.write(check);
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			if(!FileUtil.renameTo(tempCheckFile, checkFile)) throw new IOException("Unable to write "+checkFile);
+		}
+		load(newKey);
+	}
+
+	/** Find the files already in the cache, oldest first. If the key is new, nothing in
+	 * the cache can be read, so delete it all. */
+	private void load(boolean newKey) {
+		File[] list = dir.listFiles();
+		if(list == null) return;
+		ArrayList<File> found = new ArrayList<File>();
+		for(File f : list) {
+			String name = f.getName();
+			if(name.equals(CHECK_FILENAME)) continue;
+			if(!newKey && isCacheFilename(name))
+				found.add(f);
+			else if(!f.delete())
+				Logger.error(this, "Unable to delete "+f);
+		}
+		final long[] modified = new long[found.size()];
+		for(int i=0;i<modified.length;i++)
+			modified[i] = found.get(i).lastModified();
+		Integer[] order = new Integer[modified.length];
+		for(int i=0;i<order.length;i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				long x = modified[a];
+				long y = modified[b];
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+
+		});
+		synchronized(this) {
+			for(Integer i : order) {
+				File f = found.get(i);
+				long size = f.length();
+				files.push(f.getName(), size);
+				totalSize += size;
+			}
+			trim();
+		}
+		if(logMINOR) Logger.minor(this, "Loaded "+files.size()+" files, "+totalSize+" bytes from "+dir);
+	}
+
+	private static boolean isCacheFilename(String name) {
+		if(name.length() != MAC_LENGTH * 2) return false;
+		for(int i=0;i<name.length();i++) {
+			char c = name.charAt(i);
+			if(!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) return false;
+		}
+		return true;
+	}
+
+	/** @return True if we will keep files from this archive. */
+	public static boolean isCacheable(FreenetURI key) {
+		return "CHK".equals(key.getKeyType());
+	}
+
+	private byte[] mac(FreenetURI key, String name) {
+		try {
+			return HMAC.macWithSHA256(macKey, (key.toString(false, false)+'\0'+name).getBytes("UTF-8"), MAC_LENGTH);
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+
+	private SeekableCTRCipher getCipher(byte[] iv) throws IOException {
+		try {
+			return new SeekableCTRCipher(cipherKey, iv);
+		} catch (UnsupportedCipherException e) {
+			throw new IOException("AES/CTR not available: "+e);
+		}
+	}
+
+	/**
+	 * Get a file, if we have it.
+	 * @param key The key of the archive.
+	 * @param name The name of the file within the archive.
+	 * @param bf The data is decrypted to a bucket from here, which belongs to the caller.
+	 * @return The data, or null if we don't have it or it is corrupt.
+	 */
+	public Bucket get(FreenetURI key, String name, BucketFactory bf) {
+		if(!isCacheable(key)) return null;
+		byte[] mac = mac(key, name);
+		String filename = HexUtil.bytesToHex(mac);
+		synchronized(this) {
+			Long size = files.get(filename);
+			if(size == null) {
+				misses++;
+				return null;
+			}
+			files.push(filename, size);
+		}
+		File f = new File(dir, filename);
+		Bucket output = null;
+		InputStream is = null;
+		OutputStream os = null;
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			long dataLength = f.length() - OVERHEAD;
+			if(dataLength < 0) throw new EOFException("Too short");
+			is = new BufferedInputStream(new FileInputStream(f), 32768);
+			DataInputStream dis = new DataInputStream(is);
+			byte[] iv = new byte[IV_LENGTH];
+			dis.readFully(iv);
+			SeekableCTRCipher cipher = getCipher(iv);
+			byte[] check = new byte[MAC_LENGTH];
+			dis.readFully(check);
+			cipher.process(check, 0, check.length);
+			if(!Arrays.equals(check, mac)) throw new IOException("Wrong key or corrupt file");
+			output = bf.makeBucket(dataLength);
+			os = output.getOutputStream();
+			byte[] buf = new byte[32768];
+			long left = dataLength;
+			while(left > 0) {
+				int read = (int) Math.min(buf.length, left);
+				dis.readFully(buf, 0, read);
+				cipher.process(buf, 0, read);
+				md.update(buf, 0, read);
+				os.write(buf, 0, read);
+				left -= read;
+			}
+			byte[] hash = new byte[HASH_LENGTH];
+			dis.readFully(hash);
+			cipher.process(hash, 0, hash.length);
+			if(!Arrays.equals(hash, md.digest())) throw new IOException("Hash mismatch");
+			os.close();
+			os = null;
+			f.setLastModified(System.currentTimeMillis());
+			synchronized(this) {
+				hits++;
+			}
+			if(logMINOR) Logger.minor(this, "Found "+key+" : "+name+" on disk");
+			Bucket ret = output;
+			output = null;
+			return ret;
+		} catch (IOException e) {
+			// Deleted by trim(), or corrupt.
+			if(f.exists())
+				Logger.error(this, "Unable to read "+f+" for "+key+" : "+name+" : "+e, e);
+			remove(filename);
+			return null;
+		} finally {
+			SHA256.returnMessageDigest(md);
+			Closer.close(is);
+			Closer.close(os);
+			if(output != null) output.free();
+			synchronized(this) {
+				// We may have stopped trim() deleting it.
+				if(undeleted.contains(filename)) deleteUndeleted();
+			}
+		}
+	}
+
+	/**
+	 * Keep a file, if it is from a CHK and we don't have it already.
+	 * @param data The data. We don't free it.
+	 */
+	public void put(FreenetURI key, String name, Bucket data) {
+		if(!isCacheable(key)) return;
+		long size = data.size() + OVERHEAD;
+		byte[] mac = mac(key, name);
+		String filename = HexUtil.bytesToHex(mac);
+		synchronized(this) {
+			if(size > maxSize) return;
+			if(files.containsKey(filename)) return;
+		}
+		File temp = null;
+		InputStream is = null;
+		OutputStream os = null;
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			temp = File.createTempFile("extract", ".tmp", dir);
+			os = new BufferedOutputStream(new FileOutputStream(temp), 32768);
+			byte[] iv = new byte[IV_LENGTH];
+			random.nextBytes(iv);
+			os.write(iv);
+			SeekableCTRCipher cipher = getCipher(iv);
+			byte[] check = mac.clone();
+			cipher.process(check, 0, check.length);
+			os.write(check);
+			is = data.getInputStream();
+			byte[] buf = new byte[32768];
+			int read;
+			while((read = is.read(buf)) > 0) {
+				md.update(buf, 0, read);
+				cipher.process(buf, 0, read);
+				os.write(buf, 0, read);
+			}
+			byte[] hash = md.digest();
+			cipher.process(hash, 0, hash.length);
+			os.write(hash);
+			os.close();
+			os = null;
+			File f = new File(dir, filename);
+			synchronized(this) {
+				if(files.containsKey(filename)) return;
+				if(!FileUtil.renameTo(temp, f)) throw new IOException("Unable to rename to "+f);
+				temp = null;
+				undeleted.remove(filename);
+				size = f.length();
+				files.push(filename, size);
+				totalSize += size;
+				trim();
+			}
+			if(logMINOR) Logger.minor(this, "Stored "+key+" : "+name+" on disk, "+size+" bytes");
+		} catch (IOException e) {
+			Logger.error(this, "Unable to store "+key+" : "+name+" in "+dir+" : "+e, e);
+		} finally {
+			SHA256.returnMessageDigest(md);
+			Closer.close(is);
+			Closer.close(os);
+			if(temp != null) temp.delete();
+		}
+	}
+
+	private synchronized void remove(String filename) {
+		Long size = files.get(filename);
+		if(size == null) return;
+		files.removeKey(filename);
+		totalSize -= size;
+		new File(dir, filename).delete();
+	}
+
+	/** Delete the least recently used files until we are within the limit. */
+	private synchronized void trim() {
+		if(!undeleted.isEmpty()) deleteUndeleted();
+		while(totalSize > maxSize && !files.isEmpty()) {
+			String filename = files.peekKey();
+			long size = files.peekValue();
+			files.popKey();
+			totalSize -= size;
+			File f = new File(dir, filename);
+			// On Windows we can't delete a file while get() is reading it. get() tries
+			// again when it has finished, as does the next trim(). If we restart before
+			// then, load() finds the file and it counts against the limit again.
+			if(!f.delete() && f.exists()) {
+				Logger.normal(this, "Unable to delete "+f+", will try again");
+				undeleted.add(filename);
+			}
+			if(logMINOR) Logger.minor(this, "Dropped "+filename+" : "+size+" bytes, now "+totalSize+" of "+maxSize);
+		}
+	}
+
+	private synchronized void deleteUndeleted() {
+		for(Iterator<String> i = undeleted.iterator(); i.hasNext();) {
+			File f = new File(dir, i.next());
+			if(f.delete() || !f.exists()) i.remove();
+		}
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		trim();
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/** @return The total size of the files on disk. */
+	public synchronized long getSize() {
+		return totalSize;
+	}
+
+	/** @return The number of files on disk. */
+	public synchronized int countFiles() {
+		return files.size();
+	}
+
+	public synchronized long countHits() {
+		return hits;
+	}
+
+	public synchronized long countMisses() {
+		return misses;
+	}
+
+}
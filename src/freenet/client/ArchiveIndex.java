@@ -0,0 +1,367 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.Closer;
+import freenet.support.io.CountedInputStream;
+import freenet.support.io.FileUtil;
+
+/**
+ * Where each file is within an uncompressed archive, so that we can extract files one at a
+ * time when they are asked for, rather than unpacking the whole archive up front. For a ZIP
+ * we only read the central directory at the end of the file. A TAR doesn't have one, so we
+ * walk the headers once, skipping the data.
+ *
+ * Holds the archive data, and frees it in free(). Extraction opens a new stream each time,
+ * so several files can be extracted at once on different threads.
+ */
+class ArchiveIndex {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ArchiveIndex.class);
+	}
+
+	/** A file in the archive. */
+	static class Entry {
+		final String name;
+		/** ZIP: The offset of the local file header. TAR: The offset of the data. */
+		final long offset;
+		/** Size of the data in the archive. */
+		final long storedSize;
+		/** Size of the data once extracted. */
+		final long size;
+		/** ZIP only: 0 for stored, 8 for deflated. */
+		final int method;
+		/** ZIP only: CRC32 of the extracted data. */
+		final long crc;
+
+		Entry(String name, long offset, long storedSize, long size, int method, long crc) {
+			this.name = name;
+			this.offset = offset;
+			this.storedSize = storedSize;
+			this.size = size;
+			this.method = method;
+			this.crc = crc;
+		}
+	}
+
+	static final int ZIP_STORED = 0;
+	static final int ZIP_DEFLATED = 8;
+
+	private static final int ZIP_EOCD_SIGNATURE = 0x06054b50;
+	private static final int ZIP_CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int ZIP_LOCAL_SIGNATURE = 0x04034b50;
+	private static final int ZIP_EOCD_LENGTH = 22;
+	private static final int ZIP_MAX_COMMENT = 65535;
+	private static final int ZIP_CENTRAL_LENGTH = 46;
+	private static final int ZIP_LOCAL_LENGTH = 30;
+	private static final int TAR_RECORD_SIZE = 512;
+
+	final FreenetURI key;
+	final ARCHIVE_TYPE archiveType;
+	private final Bucket data;
+	private final Map<String, Entry> entries;
+
+	private ArchiveIndex(FreenetURI key, ARCHIVE_TYPE archiveType, Bucket data, Map<String, Entry> entries) {
+		this.key = key;
+		this.archiveType = archiveType;
+		this.data = data;
+		this.entries = Collections.unmodifiableMap(entries);
+	}
+
+	/**
+	 * Index an uncompressed archive.
+	 * @param data The archive. We take ownership of it if we return an index.
+	 * @param maxEntries Give up if there are more files than this.
+	 * @return The index, or null if the archive uses a feature we don't index (ZIP64,
+	 * encrypted or unusually compressed ZIP files, TAR sparse files), in which case the
+	 * caller should unpack it the old way.
+	 * @throws ArchiveFailureException If the archive is corrupt.
+	 */
+	static ArchiveIndex create(FreenetURI key, ARCHIVE_TYPE archiveType, Bucket data, int maxEntries) throws ArchiveFailureException {
+		LinkedHashMap<String, Entry> entries;
+		try {
+			if(archiveType == ARCHIVE_TYPE.ZIP)
+				entries = indexZIP(key, data, maxEntries);
+			else if(archiveType == ARCHIVE_TYPE.TAR)
+				entries = indexTAR(key, data, maxEntries);
+			else
+				throw new ArchiveFailureException("Unknown or unsupported archive algorithm " + archiveType);
+		} catch (IllegalArgumentException e) {
+			// Commons-compress throws this on some corruptions.
+			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+		} catch (IOException e) {
+			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
+		}
+		if(entries == null) return null;
+		if(logMINOR) Logger.minor(ArchiveIndex.class, "Indexed "+entries.size()+" files in "+key);
+		return new ArchiveIndex(key, archiveType, data, entries);
+	}
+
+	private static LinkedHashMap<String, Entry> indexZIP(FreenetURI key, Bucket data, int maxEntries) throws IOException, ArchiveFailureException {
+		long length = data.size();
+		if(length < ZIP_EOCD_LENGTH) throw new ArchiveFailureException("Not a ZIP file: too short");
+		// The end of central directory record is followed only by the comment.
+		int tailLength = (int) Math.min(length, ZIP_EOCD_LENGTH + ZIP_MAX_COMMENT);
+		byte[] tail = readAt(data, length - tailLength, tailLength);
+		int eocd = -1;
+		for(int i=tailLength-ZIP_EOCD_LENGTH;i>=0;i--) {
+			if(readInt(tail, i) == ZIP_EOCD_SIGNATURE && i + ZIP_EOCD_LENGTH + readShort(tail, i+20) == tailLength) {
+				eocd = i;
+				break;
+			}
+		}
+		if(eocd == -1) throw new ArchiveFailureException("Not a ZIP file: no end of central directory");
+		if(readShort(tail, eocd+4) != 0 || readShort(tail, eocd+6) != 0)
+			throw new ArchiveFailureException("Multi-volume ZIP files are not supported");
+		int count = readShort(tail, eocd+10);
+		long directorySize = readInt(tail, eocd+12) & 0xFFFFFFFFL;
+		long directoryOffset = readInt(tail, eocd+16) & 0xFFFFFFFFL;
+		if(count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+			if(logMINOR) Logger.minor(ArchiveIndex.class, "ZIP64 archive, not indexing: "+key);
+			return null;
+		}
+		if(count > maxEntries) {
+			if(logMINOR) Logger.minor(ArchiveIndex.class, "Too many files to index: "+count+" in "+key);
+			return null;
+		}
+		if(directoryOffset + directorySize > length - tailLength + eocd || directorySize > Integer.MAX_VALUE)
+			throw new ArchiveFailureException("Invalid ZIP file: bad central directory offset");
+		byte[] directory = readAt(data, directoryOffset, (int) directorySize);
+		LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		int offset = 0;
+		for(int i=0;i<count;i++) {
+			if(offset + ZIP_CENTRAL_LENGTH > directory.length || readInt(directory, offset) != ZIP_CENTRAL_SIGNATURE)
+				throw new ArchiveFailureException("Invalid ZIP file: bad central directory entry");
+			int flags = readShort(directory, offset+8);
+			int method = readShort(directory, offset+10);
+			long crc = readInt(directory, offset+16) & 0xFFFFFFFFL;
+			long storedSize = readInt(directory, offset+20) & 0xFFFFFFFFL;
+			long size = readInt(directory, offset+24) & 0xFFFFFFFFL;
+			int nameLength = readShort(directory, offset+28);
+			int extraLength = readShort(directory, offset+30);
+			int commentLength = readShort(directory, offset+32);
+			long localOffset = readInt(directory, offset+42) & 0xFFFFFFFFL;
+			if(offset + ZIP_CENTRAL_LENGTH + nameLength > directory.length)
+				throw new ArchiveFailureException("Invalid ZIP file: truncated central directory");
+			// ZipInputStream always assumes UTF-8, so do we.
+			String name = new String(directory, offset+ZIP_CENTRAL_LENGTH, nameLength, "UTF-8");
+			offset += ZIP_CENTRAL_LENGTH + nameLength + extraLength + commentLength;
+			if((flags & 1) != 0 || (method != ZIP_STORED && method != ZIP_DEFLATED) ||
+					storedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localOffset == 0xFFFFFFFFL) {
+				if(logMINOR) Logger.minor(ArchiveIndex.class, "Unsupported ZIP entry "+name+" in "+key+" flags "+flags+" method "+method);
+				return null;
+			}
+			if(localOffset + ZIP_LOCAL_LENGTH + storedSize > directoryOffset)
+				throw new ArchiveFailureException("Invalid ZIP file: bad offset for "+name);
+			if(name.endsWith("/")) continue; // Directory
+			add(entries, key, new Entry(ArchiveManager.stripLeadingSlashes(name), localOffset, storedSize, size, method, crc));
+		}
+		return entries;
+	}
+
+	private static LinkedHashMap<String, Entry> indexTAR(FreenetURI key, Bucket data, int maxEntries) throws IOException {
+		LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		CountedInputStream cis = null;
+		TarArchiveInputStream tarIS = null;
+		try {
+			cis = new CountedInputStream(new BufferedInputStream(data.getInputStream(), 32768));
+			// One record per block, so after reading a header the count is exactly the
+			// offset of the data.
+			tarIS = new TarArchiveInputStream(cis, TAR_RECORD_SIZE, TAR_RECORD_SIZE);
+			TarArchiveEntry entry;
+			while((entry = tarIS.getNextTarEntry()) != null) {
+				if(entry.isGNUSparse()) {
+					if(logMINOR) Logger.minor(ArchiveIndex.class, "Sparse file in TAR, not indexing: "+key);
+					return null;
+				}
+				if(entry.isDirectory()) continue;
+				if(entries.size() >= maxEntries) {
+					if(logMINOR) Logger.minor(ArchiveIndex.class, "Too many files to index in "+key);
+					return null;
+				}
+				long size = entry.getSize();
+				add(entries, key, new Entry(ArchiveManager.stripLeadingSlashes(entry.getName()), cis.count(), size, size, ZIP_STORED, 0));
+			}
+			return entries;
+		} finally {
+			Closer.close(tarIS);
+			Closer.close(cis);
+		}
+	}
+
+	private static void add(LinkedHashMap<String, Entry> entries, FreenetURI key, Entry entry) {
+		if(entries.containsKey(entry.name)) {
+			Logger.error(ArchiveIndex.class, "Duplicate key "+entry.name+" in archive "+key);
+			return;
+		}
+		entries.put(entry.name, entry);
+	}
+
+	/** @return The files in the archive, in the order they appear, by name. */
+	Map<String, Entry> getEntries() {
+		return entries;
+	}
+
+	Entry get(String name) {
+		return entries.get(name);
+	}
+
+	/** @return The size of the archive data we are holding on to. */
+	long size() {
+		return data.size();
+	}
+
+	/**
+	 * Extract a single file.
+	 * @throws IOException If we can't read the archive, e.g. because it has been freed.
+	 * @throws ArchiveFailureException If the archive is corrupt.
+	 */
+	Bucket extract(Entry entry, BucketFactory bf) throws IOException, ArchiveFailureException {
+		Bucket output = bf.makeBucket(entry.size);
+		boolean success = false;
+		InputStream is = null;
+		OutputStream os = null;
+		Inflater inflater = null;
+		try {
+			is = new BufferedInputStream(data.getInputStream(), 32768);
+			long offset = entry.offset;
+			if(archiveType == ARCHIVE_TYPE.ZIP) {
+				FileUtil.skipFully(is, offset);
+				byte[] header = new byte[ZIP_LOCAL_LENGTH];
+				new DataInputStream(is).readFully(header);
+				if(readInt(header, 0) != ZIP_LOCAL_SIGNATURE)
+					throw new ArchiveFailureException("Invalid ZIP file: bad local header for "+entry.name);
+				offset = readShort(header, 26) + readShort(header, 28);
+			}
+			FileUtil.skipFully(is, offset);
+			is = new LimitedInputStream(is, entry.storedSize, entry.method == ZIP_DEFLATED);
+			if(entry.method == ZIP_DEFLATED)
+				is = new InflaterInputStream(is, inflater = new Inflater(true), 32768);
+			CRC32 crc = archiveType == ARCHIVE_TYPE.ZIP ? new CRC32() : null;
+			os = output.getOutputStream();
+			byte[] buf = new byte[32768];
+			long written = 0;
+			int read;
+			while((read = is.read(buf)) > 0) {
+				written += read;
+				if(written > entry.size)
+					throw new ArchiveFailureException("Invalid archive: "+entry.name+" is bigger than its stated size "+entry.size);
+				if(crc != null) crc.update(buf, 0, read);
+				os.write(buf, 0, read);
+			}
+			if(written != entry.size)
+				throw new ArchiveFailureException("Invalid archive: "+entry.name+" is truncated: "+written+" of "+entry.size);
+			if(crc != null && crc.getValue() != entry.crc)
+				throw new ArchiveFailureException("Invalid ZIP file: CRC mismatch for "+entry.name);
+			os.close();
+			os = null;
+			success = true;
+			return output;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+			if(inflater != null) inflater.end();
+			if(!success) output.free();
+		}
+	}
+
+	/** Free the archive data. Extractions already running may fail. */
+	void free() {
+		data.free();
+	}
+
+	private static byte[] readAt(Bucket data, long offset, int length) throws IOException {
+		byte[] buf = new byte[length];
+		InputStream is = data.getInputStream();
+		try {
+			FileUtil.skipFully(is, offset);
+			new DataInputStream(is).readFully(buf);
+		} finally {
+			is.close();
+		}
+		return buf;
+	}
+
+	/** ZIP is little-endian. */
+	private static int readShort(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset+1] & 0xFF) << 8);
+	}
+
+	private static int readInt(byte[] buf, int offset) {
+		return readShort(buf, offset) | (readShort(buf, offset+2) << 16);
+	}
+
+	/** Reads no more than a fixed number of bytes. */
+	private static class LimitedInputStream extends InputStream {
+
+		private final InputStream in;
+		private long left;
+		/** An Inflater without the zlib header may need an extra byte at the end, see
+		 * ZipFile. */
+		private boolean pad;
+
+		LimitedInputStream(InputStream in, long limit, boolean pad) {
+			this.in = in;
+			this.left = limit;
+			this.pad = pad;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int read = read(buf, 0, 1);
+			return read <= 0 ? -1 : (buf[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			if(left <= 0) {
+				if(!pad) return -1;
+				pad = false;
+				buf[offset] = 0;
+				return 1;
+			}
+			int read = in.read(buf, offset, (int) Math.min(length, left));
+			if(read < 0) throw new IOException("Archive is truncated");
+			left -= read;
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+key+":"+archiveType+":"+entries.size();
+	}
+
+}
@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -125,6 +126,14 @@ public class ArchiveManager {
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
 
+	// Indexed archives
+	/** Recently fetched archives, by key, from which we extract files when they are asked for */
+	private final LRUMap<FreenetURI, ArchiveIndex> indexes;
+	/** Size of the archive data held by indexes, in bytes. Limited to maxCachedData. */
+	private long indexedData;
+	/** Files extracted from CHK archives, kept on disk across restarts. May be null. */
+	private volatile ArchiveExtractCache extractCache;
+
 	/**
 	 * Create an ArchiveManager.
 	 * @param maxHandlers The maximum number of cached ArchiveHandler's i.e. the
@@ -139,8 +148,10 @@ public class ArchiveManager {
 	 * @param cacheDir The directory in which to store cached data.
 	 * @param random A cryptographicaly secure random source
 	 * @param weakRandom A weak and cheap random source
+	 * @param extractCache If not null, files extracted from CHK archives are also kept
+	 * here, and survive a restart.
 	 */
-	public ArchiveManager(int maxHandlers, long maxCachedData, long maxArchivedFileSize, int maxCachedElements, BucketFactory tempBucketFactory) {
+	public ArchiveManager(int maxHandlers, long maxCachedData, long maxArchivedFileSize, int maxCachedElements, BucketFactory tempBucketFactory, ArchiveExtractCache extractCache) {
 		maxArchiveHandlers = maxHandlers;
 		// FIXME PERFORMANCE I'm assuming there isn't much locality here, so it's faster to use the FAST_COMPARATOR.
 		// This may not be true if there are a lot of sites with many containers all inserted as individual SSKs?
@@ -150,9 +161,25 @@ public class ArchiveManager {
 		storedData = new LRUMap<ArchiveKey, ArchiveStoreItem>();
 		this.maxArchivedFileSize = maxArchivedFileSize;
 		this.tempBucketFactory = tempBucketFactory;
+		indexes = LRUMap.createSafeMap(FreenetURI.FAST_COMPARATOR);
+		this.extractCache = extractCache;
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
+	public ArchiveManager(int maxHandlers, long maxCachedData, long maxArchivedFileSize, int maxCachedElements, BucketFactory tempBucketFactory) {
+		this(maxHandlers, maxCachedData, maxArchivedFileSize, maxCachedElements, tempBucketFactory, null);
+	}
+
+	/** @return The on-disk cache of extracted files, or null. */
+	public ArchiveExtractCache getExtractCache() {
+		return extractCache;
+	}
+
+	/** Start keeping extracted files on disk, e.g. once the key for them is available. */
+	public void setExtractCache(ArchiveExtractCache extractCache) {
+		this.extractCache = extractCache;
+	}
+
 	/** Add an ArchiveHandler by key */
 	private synchronized void putCached(FreenetURI key, ArchiveStoreContext zip) {
 		if(logMINOR) Logger.minor(this, "Put cached AH for "+key+" : "+zip);
@@ -203,7 +230,8 @@ public class ArchiveManager {
 	}
 
 	/**
-	 * Get a cached, previously extracted, file from an archive.
+	 * Get a cached, previously extracted, file from an archive. If we still have the
+	 * archive, extract the file now. Otherwise try the on-disk cache.
 	 * @param key The key used to fetch the archive.
 	 * @param filename The name of the file within the archive.
 	 * @return A Bucket containing the data requested, or null.
@@ -213,14 +241,86 @@ public class ArchiveManager {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
 		ArchiveKey k = new ArchiveKey(key, filename);
 		ArchiveStoreItem asi = null;
+		ArchiveIndex index = null;
 		synchronized (this) {
 			asi = storedData.get(k);
-			if(asi == null) return null;
-			// Promote to top of LRU
-			storedData.push(k, asi);
+			if(asi != null) {
+				// Promote to top of LRU
+				storedData.push(k, asi);
+			} else {
+				index = indexes.get(key);
+				if(index != null) indexes.push(key, index);
+			}
+		}
+		if(asi != null) {
+			if(logMINOR) Logger.minor(this, "Found data");
+			return asi.getReaderBucket();
+		}
+		if(index != null) {
+			ArchiveIndex.Entry entry = index.get(filename);
+			// If it's too big, it's not cached; refetch and we'll pass it to the callback.
+			if(entry == null || entry.size > maxArchivedFileSize) return null;
+			return extractFromIndex(index, entry);
 		}
-		if(logMINOR) Logger.minor(this, "Found data");
-		return asi.getReaderBucket();
+		ArchiveExtractCache extractCache = this.extractCache;
+		if(extractCache != null)
+			return extractCache.get(key, filename, tempBucketFactory);
+		return null;
+	}
+
+	/**
+	 * Extract a single file from an archive we have indexed, and cache it.
+	 * @return A reader bucket for the file, or null if the archive has been freed.
+	 */
+	private Bucket extractFromIndex(ArchiveIndex index, ArchiveIndex.Entry entry) throws ArchiveFailureException {
+		if(logMINOR) Logger.minor(this, "Extracting "+entry.name+" from "+index);
+		Bucket data;
+		try {
+			data = index.extract(entry, tempBucketFactory);
+		} catch (IOException e) {
+			// Probably freed while we were extracting. Fetch it again.
+			if(logMINOR) Logger.minor(this, "Unable to extract "+entry.name+" from "+index+" : "+e, e);
+			return null;
+		}
+		ArchiveStoreContext ctx = makeContext(index.key, index.archiveType, null, false);
+		Bucket reader = addStoreElement(ctx, index.key, entry.name, data, true);
+		trimStoredData();
+		return reader;
+	}
+
+	/** Remember an indexed archive, dropping the least recently used ones if there are
+	 * too many or they are too big. Frees the archive if it is too big to keep at all. */
+	private void putIndex(ArchiveIndex index) {
+		ArrayList<ArchiveIndex> dropped = new ArrayList<ArchiveIndex>();
+		synchronized(this) {
+			if(index.size() > maxCachedData) {
+				dropped.add(index);
+			} else {
+				indexes.push(index.key, index);
+				indexedData += index.size();
+				while(indexedData > maxCachedData || indexes.size() > maxArchiveHandlers) {
+					ArchiveIndex old = indexes.popValue();
+					indexedData -= old.size();
+					dropped.add(old);
+				}
+			}
+		}
+		for(ArchiveIndex old : dropped) {
+			if(logMINOR) Logger.minor(this, "Dropping index "+old);
+			old.free();
+		}
+	}
+
+	/** Forget the index for an archive, if we have one, and free its data. */
+	private void removeIndex(FreenetURI key) {
+		ArchiveIndex index;
+		synchronized(this) {
+			index = indexes.get(key);
+			if(index == null) return;
+			indexes.removeKey(key);
+			indexedData -= index.size();
+		}
+		index.free();
 	}
 
 	/**
@@ -265,6 +365,7 @@ public class ArchiveManager {
 
 		if(logMINOR) Logger.minor(this, "Extracting "+key);
 		ctx.removeAllCachedItems(this); // flush cache anyway
+		removeIndex(key);
 		final long expectedSize = ctx.getLastSize();
 		final long archiveSize = data.size();
 		/** Set if we need to throw a RestartedException rather than returning success,
@@ -296,75 +397,182 @@ public class ArchiveManager {
 			Logger.minor(this, "Container size (possibly compressed): "+archiveSize+" for "+data);
 
 		InputStream is = null;
+		Bucket archive = null;
+		boolean indexed = false;
 		try {
-			final ExceptionWrapper wrapper;
-			if((ctype == null) || (ARCHIVE_TYPE.ZIP == archiveType)) {
-				if(logMINOR) Logger.minor(this, "No compression");
-				is = data.getInputStream();
-				wrapper = null;
-			} else if(ctype == COMPRESSOR_TYPE.BZIP2) {
-				if(logMINOR) Logger.minor(this, "dealing with BZIP2");
-				is = new BZip2CompressorInputStream(data.getInputStream());
-				wrapper = null;
-			} else if(ctype == COMPRESSOR_TYPE.GZIP) {
-				if(logMINOR) Logger.minor(this, "dealing with GZIP");
-				is = new GZIPInputStream(data.getInputStream());
-				wrapper = null;
-			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW) {
-				// LZMA internally uses pipe streams, so we may as well do it here.
-				// In fact we need to for LZMA_NEW, because of the properties bytes.
-				PipedInputStream pis = new PipedInputStream();
-				final PipedOutputStream pos = new PipedOutputStream();
-				pis.connect(pos);
-				wrapper = new ExceptionWrapper();
-				context.mainExecutor.execute(new Runnable() {
-
-					@Override
-					public void run() {
-						InputStream is = null;
+			ExceptionWrapper wrapper = new ExceptionWrapper();
+			is = openArchive(archiveType, ctype, data, expectedSize, wrapper, context);
+			// Decompress to a bucket, so we can extract files when they are asked for.
+			archive = copyArchive(is, archiveContext.maxArchiveSize);
+			Closer.close(is);
+			is = null;
+			checkDecompressed(wrapper);
+			ArchiveIndex index = null;
+			if(archive != null)
+				index = ArchiveIndex.create(key, archiveType, archive, maxCachedElements);
+			if(index != null) {
+				indexed = true;
+				handleIndexedArchive(ctx, key, index, element, callback, gotElement, throwAtExit, container, context);
+			} else {
+				// Unusual archive, or too big once decompressed: unpack everything.
+				if(archive != null) {
+					is = archive.getInputStream();
+				} else {
+					wrapper = new ExceptionWrapper();
+					is = openArchive(archiveType, ctype, data, expectedSize, wrapper, context);
+				}
+				if(ARCHIVE_TYPE.ZIP == archiveType)
+					handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, container, context);
+				else if(ARCHIVE_TYPE.TAR == archiveType)
+					handleTARArchive(ctx, key, is, element, callback, gotElement, throwAtExit, container, context);
+				else
+					throw new ArchiveFailureException("Unknown or unsupported archive algorithm " + archiveType);
+				checkDecompressed(wrapper);
+			}
+		} catch (IOException ioe) {
+			throw new ArchiveFailureException("An IOE occured: "+ioe.getMessage(), ioe);
+		} finally {
+			Closer.close(is);
+			if(archive != null && !indexed) archive.free();
+		}
+	}
+
+	/**
+	 * Open a stream to read the archive, decompressing it if necessary.
+	 * @param wrapper Set if decompression fails on another thread.
+	 */
+	private InputStream openArchive(ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, final Bucket data, final long expectedSize, final ExceptionWrapper wrapper, ClientContext context) throws IOException {
+		if((ctype == null) || (ARCHIVE_TYPE.ZIP == archiveType)) {
+			if(logMINOR) Logger.minor(this, "No compression");
+			return data.getInputStream();
+		} else if(ctype == COMPRESSOR_TYPE.BZIP2) {
+			if(logMINOR) Logger.minor(this, "dealing with BZIP2");
+			return new BZip2CompressorInputStream(data.getInputStream());
+		} else if(ctype == COMPRESSOR_TYPE.GZIP) {
+			if(logMINOR) Logger.minor(this, "dealing with GZIP");
+			return new GZIPInputStream(data.getInputStream());
+		} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW) {
+			// LZMA internally uses pipe streams, so we may as well do it here.
+			// In fact we need to for LZMA_NEW, because of the properties bytes.
+			PipedInputStream pis = new PipedInputStream();
+			final PipedOutputStream pos = new PipedOutputStream();
+			pis.connect(pos);
+			context.mainExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					InputStream is = null;
+					try {
+						Compressor.COMPRESSOR_TYPE.LZMA_NEW.decompress(is = data.getInputStream(), pos, data.size(), expectedSize);
+					} catch (CompressionOutputSizeException e) {
+						Logger.error(this, "Failed to decompress archive: "+e, e);
+						wrapper.set(e);
+					} catch (IOException e) {
+						Logger.error(this, "Failed to decompress archive: "+e, e);
+						wrapper.set(e);
+					} finally {
 						try {
-							Compressor.COMPRESSOR_TYPE.LZMA_NEW.decompress(is = data.getInputStream(), pos, data.size(), expectedSize);
-						} catch (CompressionOutputSizeException e) {
-							Logger.error(this, "Failed to decompress archive: "+e, e);
-							wrapper.set(e);
+							pos.close();
 						} catch (IOException e) {
-							Logger.error(this, "Failed to decompress archive: "+e, e);
-							wrapper.set(e);
-						} finally {
-							try {
-								pos.close();
-							} catch (IOException e) {
-								Logger.error(this, "Failed to close PipedOutputStream: "+e, e);
-							}
-							Closer.close(is);
+							Logger.error(this, "Failed to close PipedOutputStream: "+e, e);
 						}
+						Closer.close(is);
 					}
-					
-				});
-				is = pis;
-			} else if(ctype == COMPRESSOR_TYPE.LZMA) {
-				if(logMINOR) Logger.minor(this, "dealing with LZMA");
-				is = new LzmaInputStream(data.getInputStream());
-				wrapper = null;
-			} else {
-				wrapper = null;
-			}
+				}
+				
+			});
+			return pis;
+		} else if(ctype == COMPRESSOR_TYPE.LZMA) {
+			if(logMINOR) Logger.minor(this, "dealing with LZMA");
+			return new LzmaInputStream(data.getInputStream());
+		} else {
+			// Same as before: no stream, so the handler fails.
+			return null;
+		}
+	}
 
-			if(ARCHIVE_TYPE.ZIP == archiveType)
-				handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, container, context);
-			else if(ARCHIVE_TYPE.TAR == archiveType)
-				handleTARArchive(ctx, key, is, element, callback, gotElement, throwAtExit, container, context);
-		else
-				throw new ArchiveFailureException("Unknown or unsupported archive algorithm " + archiveType);
-			if(wrapper != null) {
-				Exception e = wrapper.get();
-				if(e != null) throw new ArchiveFailureException("An exception occured decompressing: "+e.getMessage(), e);
+	private void checkDecompressed(ExceptionWrapper wrapper) throws ArchiveFailureException {
+		Exception e = wrapper.get();
+		if(e != null) throw new ArchiveFailureException("An exception occured decompressing: "+e.getMessage(), e);
+	}
+
+	/**
+	 * Copy the (decompressed) archive to a temporary bucket.
+	 * @return The bucket, or null if the archive is bigger than maxLength.
+	 */
+	private Bucket copyArchive(InputStream is, long maxLength) throws IOException {
+		if(is == null) return null;
+		Bucket archive = tempBucketFactory.makeBucket(-1);
+		OutputStream os = null;
+		boolean success = false;
+		try {
+			os = archive.getOutputStream();
+			byte[] buf = new byte[32768];
+			long written = 0;
+			int read;
+			while((read = is.read(buf)) > 0) {
+				written += read;
+				if(written > maxLength) {
+					if(logMINOR) Logger.minor(this, "Archive too big to index once decompressed: over "+maxLength);
+					return null;
+				}
+				os.write(buf, 0, read);
 			}
-		} catch (IOException ioe) {
-			throw new ArchiveFailureException("An IOE occured: "+ioe.getMessage(), ioe);
-		}finally {
-			Closer.close(is);
+			os.close();
+			os = null;
+			archive.setReadOnly();
+			success = true;
+			return archive;
+		} finally {
+			Closer.close(os);
+			if(!success) archive.free();
+		}
 	}
+
+	/**
+	 * Deal with an archive we have indexed. Cache the metadata and the file the caller
+	 * wants, and extract the rest when they are asked for.
+	 */
+	private void handleIndexedArchive(ArchiveStoreContext ctx, FreenetURI key, ArchiveIndex index, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ObjectContainer container, ClientContext context) throws ArchiveFailureException, ArchiveRestartException, IOException {
+		if(logMINOR) Logger.minor(this, "Handling an indexed archive: "+index);
+		HashSet<String> names = new HashSet<String>();
+		boolean gotMetadata = false;
+		boolean keepIndex = false;
+		try {
+			for(ArchiveIndex.Entry entry : index.getEntries().values()) {
+				String name = entry.name;
+				if(name.equals(METADATA_NAME))
+					gotMetadata = true;
+				if(entry.size > maxArchivedFileSize) {
+					if(name.equals(element)) {
+						// We are here because they asked for this file.
+						callback.gotBucket(index.extract(entry, tempBucketFactory), container, context);
+						gotElement.value = true;
+					}
+					addErrorElement(ctx, key, name, "File too big: "+entry.size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+					continue;
+				}
+				names.add(name);
+				if(name.equals(element) || name.equals(METADATA_NAME)) {
+					addStoreElement(ctx, key, name, index.extract(entry, tempBucketFactory), gotElement, element, callback, container, context);
+					trimStoredData();
+				}
+			}
+
+			// If no metadata, generate some
+			if(!gotMetadata) {
+				generateMetadata(ctx, key, names, gotElement, element, callback, container, context);
+				trimStoredData();
+			}
+			putIndex(index);
+			keepIndex = true;
+		} finally {
+			if(!keepIndex) index.free();
+		}
+		if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
+
+		if(element != null && !gotElement.value)
+			callback.notInArchive(container, context);
 	}
 
 	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ObjectContainer container, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
@@ -538,7 +746,7 @@ outerZIP:		while(true) {
 		}
 	}
 
-	private String stripLeadingSlashes(String name) {
+	static String stripLeadingSlashes(String name) {
 		while(name.length() > 1 && name.charAt(0) == '/')
 			name = name.substring(1);
 		return name;
@@ -554,7 +762,7 @@ outerZIP:		while(true) {
 	 * @param callbackName If we generate a
 	 * @throws ArchiveFailureException
 	 */
-	private ArchiveStoreItem generateMetadata(ArchiveStoreContext ctx, FreenetURI key, Set<String> names, MutableBoolean gotElement, String element2, ArchiveExtractCallback callback, ObjectContainer container, ClientContext context) throws ArchiveFailureException {
+	private void generateMetadata(ArchiveStoreContext ctx, FreenetURI key, Set<String> names, MutableBoolean gotElement, String element2, ArchiveExtractCallback callback, ObjectContainer container, ClientContext context) throws ArchiveFailureException {
 		/* What we have to do is to:
 		 * - Construct a filesystem tree of the names.
 		 * - Turn each level of the tree into a Metadata object, including those below it, with
@@ -574,7 +782,8 @@ outerZIP:		while(true) {
 		while(true) {
 			try {
 				bucket = BucketTools.makeImmutableBucket(tempBucketFactory, metadata.writeToByteArray());
-				return addStoreElement(ctx, key, ".metadata", bucket, gotElement, element2, callback, container, context);
+				addStoreElement(ctx, key, ".metadata", bucket, gotElement, element2, callback, container, context);
+				return;
 			} catch (MetadataUnresolvedException e) {
 				try {
 					x = resolve(e, x, bucket, ctx, key, gotElement, element2, callback, container, context);
@@ -668,15 +877,33 @@ outerZIP:		while(true) {
 	 * @throws ArchiveFailureException If a failure occurred resulting in the data not being readable. Only happens if
 	 * callback != null.
 	 */
-	private ArchiveStoreItem addStoreElement(ArchiveStoreContext ctx, FreenetURI key, String name, Bucket temp, MutableBoolean gotElement, String callbackName, ArchiveExtractCallback callback, ObjectContainer container, ClientContext context) throws ArchiveFailureException {
+	private void addStoreElement(ArchiveStoreContext ctx, FreenetURI key, String name, Bucket temp, MutableBoolean gotElement, String callbackName, ArchiveExtractCallback callback, ObjectContainer container, ClientContext context) throws ArchiveFailureException {
+		Bucket matchBucket = addStoreElement(ctx, key, name, temp, gotElement != null && (!gotElement.value) && name.equals(callbackName));
+		if(matchBucket != null) {
+			callback.gotBucket(matchBucket, container, context);
+			gotElement.value = true;
+		}
+	}
+
+	/**
+	 * Add a store element, and write it to the on-disk cache if we have one.
+	 * @param wantReader If true, return a reader bucket for the element.
+	 * @return A reader bucket, if wantReader, otherwise null.
+	 */
+	private Bucket addStoreElement(ArchiveStoreContext ctx, FreenetURI key, String name, Bucket temp, boolean wantReader) throws ArchiveFailureException {
 		RealArchiveStoreItem element = new RealArchiveStoreItem(ctx, key, name, temp);
 		if(logMINOR) Logger.minor(this, "Adding store element: "+element+" ( "+key+ ' ' +name+" size "+element.spaceUsed()+" )");
 		ArchiveStoreItem oldItem;
 		// Let it throw, if it does something is drastically wrong
 		Bucket matchBucket = null;
-		if((!gotElement.value) && name.equals(callbackName)) {
+		if(wantReader) {
 			matchBucket = element.getReaderBucket();
 		}
+		// Don't let it be freed before we have written it.
+		Bucket persistBucket = null;
+		ArchiveExtractCache extractCache = this.extractCache;
+		if(extractCache != null && ArchiveExtractCache.isCacheable(key))
+			persistBucket = element.getReaderBucket();
 		synchronized (this) {
 			oldItem = storedData.get(element.key);
 			storedData.push(element.key, element);
@@ -687,11 +914,11 @@ outerZIP:		while(true) {
 				oldItem.close();
 			}
 		}
-		if(matchBucket != null) {
-			callback.gotBucket(matchBucket, container, context);
-			gotElement.value = true;
+		if(persistBucket != null) {
+			extractCache.put(key, name, persistBucket);
+			persistBucket.free();
 		}
-		return element;
+		return matchBucket;
 	}
 
 	/**
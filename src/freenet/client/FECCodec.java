@@ -6,6 +6,7 @@ package freenet.client;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 
 import com.db4o.ObjectContainer;
 import com.onionnetworks.fec.FECCode;
@@ -13,12 +14,16 @@ import com.onionnetworks.fec.Native8Code;
 import com.onionnetworks.util.Buffer;
 
 import freenet.client.InsertContext.CompatibilityMode;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+import freenet.support.io.RandomAccessThingSliceBucket;
 
 /**
  * FEC (forward error correction) handler.
@@ -33,7 +38,7 @@ public abstract class FECCodec {
 	protected final int k, n;
 	// Striping is very costly I/O wise.
 	// So set a maximum buffer size and calculate the stripe size accordingly.
-	static final int MAX_MEMORY_BUFFER = 8*1024*1024;
+	public static final int MAX_MEMORY_BUFFER = 8*1024*1024;
 
         private static volatile boolean logMINOR;
 	static {
@@ -46,6 +51,30 @@ public abstract class FECCodec {
 	}
 
 	protected abstract void loadFEC();
+
+	/**
+	 * @return A new FECCode with the same k and n as fec, or null if we can't make one. The
+	 * helper threads decoding slices of a stripe each need their own, because a FECCode is
+	 * not known to be safe to use from more than one thread at once. If null, stripes are
+	 * not split.
+	 */
+	protected FECCode newFEC() {
+		return null;
+	}
+
+	/** Codes made by newFEC() which no helper thread is using at the moment. */
+	private transient ArrayList<FECCode> spareCodes;
+
+	private synchronized FECCode takeSpareCode() {
+		if(spareCodes != null && !spareCodes.isEmpty())
+			return spareCodes.remove(spareCodes.size() - 1);
+		return null;
+	}
+
+	private synchronized void returnSpareCode(FECCode code) {
+		if(spareCodes == null) spareCodes = new ArrayList<FECCode>();
+		spareCodes.add(code);
+	}
 	
 	protected FECCodec(int k, int n) {
 		this.k = k;
@@ -124,6 +153,17 @@ public abstract class FECCodec {
 	public abstract int countCheckBlocks();
 
 	protected void realDecode(SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus, int blockLength, BucketFactory bf) throws IOException {
+		realDecode(dataBlockStatus, checkBlockStatus, blockLength, bf, null, 1);
+	}
+
+	/**
+	 * Decode a segment.
+	 * @param executor If not null, used to decode each stripe on up to threads threads.
+	 * @param threads The number of threads, including the caller, which may work on each
+	 * stripe. The code is applied to each byte position independently, so the stripe can be
+	 * split into slices which are decoded in parallel.
+	 */
+	protected void realDecode(SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus, int blockLength, BucketFactory bf, Executor executor, int threads) throws IOException {
 		loadFEC();
 		if(logMINOR)
 			Logger.minor(this, "Doing decode: " + dataBlockStatus.length + " data blocks, " + checkBlockStatus.length + " check blocks, block length " + blockLength + " with " + this, new Exception("debug"));
@@ -131,7 +171,6 @@ public abstract class FECCodec {
 			throw new IllegalArgumentException();
 		if(dataBlockStatus.length != k)
 			throw new IllegalArgumentException();
-		Buffer[] packets = new Buffer[k];
 		Bucket[] buckets = new Bucket[n];
 		DataInputStream[] readers = new DataInputStream[n];
 		OutputStream[] writers = new OutputStream[k];
@@ -156,10 +195,6 @@ public abstract class FECCodec {
 
 			int idx = 0;
 
-			for(int i = 0; i < k; i++)
-				packets[i] = new Buffer(realBuffer, i * stripeSize,
-					stripeSize);
-
 			// Due to the not-fetching-last-block code, we need to check here.
 			
 			boolean needDecode = false;
@@ -172,8 +207,11 @@ public abstract class FECCodec {
 			for(int i = 0; i < dataBlockStatus.length; i++) {
 				buckets[i] = dataBlockStatus[i].getData();
 				if(buckets[i] == null) {
-					buckets[i] = bf.makeBucket(blockLength);
-					if(stripeSize != blockLength) {
+					// Decode in place if the block has a slot in preallocated storage.
+					buckets[i] = dataBlockStatus[i].makePreallocatedBucket();
+					if(buckets[i] == null)
+						buckets[i] = bf.makeBucket(blockLength);
+					if(stripeSize != blockLength && !isSlice(buckets[i])) {
 						writers[i] = buckets[i].getOutputStream();
 					}
 					toWrite[i] = true;
@@ -190,7 +228,8 @@ public abstract class FECCodec {
 						if(logMINOR)
 							Logger.minor(this, "writers[" + i + "] = null (already filled)");
 						writers[i] = null;
-						readers[i] = new DataInputStream(buckets[i].getInputStream());
+						if(!isSlice(buckets[i]))
+							readers[i] = new DataInputStream(buckets[i].getInputStream());
 						packetIndexes[idx++] = i;
 					}
 				}
@@ -200,7 +239,7 @@ public abstract class FECCodec {
 				if(buckets[i + k] == null) {
 					readers[i + k] = null;
 				} else {
-					if(stripeSize != blockLength) {
+					if(stripeSize != blockLength && !isSlice(buckets[i + k])) {
 						readers[i + k] = new DataInputStream(buckets[i + k].getInputStream());
 					}
 					if(idx < k) {
@@ -223,6 +262,11 @@ public abstract class FECCodec {
 				// Read the data in first
 				for(int i = 0; i < k; i++) {
 					int x = packetIndexes[i];
+					if(isSlice(buckets[x])) {
+						// Positioned read, no need for a stream.
+						((RandomAccessThingSliceBucket)buckets[x]).pread(offset, realBuffer, i * stripeSize, stripeSize);
+						continue;
+					}
 					DataInputStream dis;
 					if(stripeSize == blockLength)
 						dis = new DataInputStream(buckets[x].getInputStream());
@@ -237,14 +281,17 @@ public abstract class FECCodec {
 						}
 					}
 				}
-				// The FEC codec will change the indexes in disposableIndexes. We need them to stay the same for multiple stripes.
-				int[] disposableIndexes = packetIndexes.clone();
 				// Do the decode, not shuffled
-				fec.decode(packets, disposableIndexes);
-				// packets now contains an array of decoded blocks, in order
+				decodeStripe(realBuffer, stripeSize, packetIndexes, executor, threads);
+				// realBuffer now contains the decoded blocks, in order
 				// Write the data out
 				for(int i = 0; i < k; i++) {
 					if(toWrite[i]) {
+						if(isSlice(buckets[i])) {
+							// Write the stripe at its final location.
+							((RandomAccessThingSliceBucket)buckets[i]).pwrite(offset, realBuffer, i * stripeSize, stripeSize);
+							continue;
+						}
 						OutputStream os;
 						if(stripeSize == blockLength) {
 							os = buckets[i].getOutputStream();
@@ -283,6 +330,139 @@ public abstract class FECCodec {
 		}
 	}
 
+	/** Don't split stripes into slices smaller than this, the overhead isn't worth it. */
+	static final int MIN_SLICE_SIZE = 4096;
+	/** Slices start on a multiple of this. Must be even for the 16-bit code. */
+	private static final int SLICE_ALIGNMENT = 64;
+
+	/**
+	 * Decode one stripe, in place.
+	 * @param buffer k packets of stripeSize bytes, one after the other.
+	 * @param packetIndexes Which block each packet is. Not modified.
+	 */
+	void decodeStripe(byte[] buffer, int stripeSize, int[] packetIndexes, Executor executor, int threads) throws IOException {
+		int slices = Math.min(threads, stripeSize / MIN_SLICE_SIZE);
+		if(executor == null || slices <= 1 || !canSplit()) {
+			decodeSlice(fec, buffer, stripeSize, 0, stripeSize, packetIndexes);
+			return;
+		}
+		int sliceSize = (stripeSize + slices - 1) / slices;
+		sliceSize = (sliceSize + SLICE_ALIGNMENT - 1) & ~(SLICE_ALIGNMENT - 1);
+		slices = (stripeSize + sliceSize - 1) / sliceSize;
+		StripeDecoder decoder = new StripeDecoder(buffer, stripeSize, sliceSize, slices, packetIndexes);
+		for(int i=1;i<slices;i++)
+			executor.execute(decoder, "FEC stripe helper");
+		decoder.decodeSlices(fec);
+		decoder.waitFinished();
+	}
+
+	/** @return True if helper threads can have their own FECCode. */
+	private boolean canSplit() {
+		FECCode code = takeSpareCode();
+		if(code == null) code = newFEC();
+		if(code == null) return false;
+		returnSpareCode(code);
+		return true;
+	}
+
+	/** Decode the bytes from offset to offset+length of each packet in the stripe. */
+	private void decodeSlice(FECCode code, byte[] buffer, int stripeSize, int offset, int length, int[] packetIndexes) {
+		Buffer[] packets = new Buffer[k];
+		for(int i = 0; i < k; i++)
+			packets[i] = new Buffer(buffer, i * stripeSize + offset, length);
+		// The FEC codec will change the indexes. We need them to stay the same for multiple stripes and slices.
+		code.decode(packets, packetIndexes.clone());
+	}
+
+	/**
+	 * Decodes the slices of a stripe. Run by the decoding thread and by helpers on the
+	 * executor: each claims the next slice until there are none left, so the decoding thread
+	 * will do all the work itself if no helper gets a thread in time. The decoding thread
+	 * uses fec, each helper a spare FECCode of its own.
+	 */
+	private class StripeDecoder implements PrioRunnable {
+
+		private final byte[] buffer;
+		private final int stripeSize;
+		private final int sliceSize;
+		private final int slices;
+		private final int[] packetIndexes;
+		private int nextSlice;
+		private int running;
+		private Throwable failure;
+
+		StripeDecoder(byte[] buffer, int stripeSize, int sliceSize, int slices, int[] packetIndexes) {
+			this.buffer = buffer;
+			this.stripeSize = stripeSize;
+			this.sliceSize = sliceSize;
+			this.slices = slices;
+			this.packetIndexes = packetIndexes;
+		}
+
+		@Override
+		public void run() {
+			synchronized(this) {
+				if(nextSlice == slices || failure != null) return;
+			}
+			FECCode code = takeSpareCode();
+			if(code == null) code = newFEC();
+			try {
+				decodeSlices(code);
+			} finally {
+				returnSpareCode(code);
+			}
+		}
+
+		void decodeSlices(FECCode code) {
+			while(true) {
+				int slice;
+				synchronized(this) {
+					if(nextSlice == slices || failure != null) return;
+					slice = nextSlice++;
+					running++;
+				}
+				try {
+					int offset = slice * sliceSize;
+					decodeSlice(code, buffer, stripeSize, offset, Math.min(sliceSize, stripeSize - offset), packetIndexes);
+				} catch (Throwable t) {
+					synchronized(this) {
+						failure = t;
+					}
+				} finally {
+					synchronized(this) {
+						running--;
+						notifyAll();
+					}
+				}
+			}
+		}
+
+		/** Wait for slices being decoded by helpers. Call after run(), so none are left to
+		 * start. */
+		synchronized void waitFinished() throws IOException {
+			while(running > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(failure != null) {
+				if(failure instanceof Error) throw (Error) failure;
+				if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+				IOException e = new IOException("FEC decode failed: "+failure);
+				e.initCause(failure);
+				throw e;
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.LOW_PRIORITY;
+		}
+
+	}
+
 	/**
 	 * Do the actual encode.
 	 */
@@ -361,7 +541,7 @@ public abstract class FECCodec {
 				if(sz < blockLength) {
 					throw new IllegalArgumentException("All buckets must be the full size: caller must pad the last one if needed");
 				}
-				if(stripeSize != blockLength)
+				if(stripeSize != blockLength && !isSlice(buckets[i]))
 					readers[i] = new DataInputStream(buckets[i].getInputStream());
 			}
 
@@ -389,6 +569,10 @@ public abstract class FECCodec {
 					}
 					// Read the data in first
 					for(int i = 0; i < k; i++) {
+						if(isSlice(buckets[i])) {
+							((RandomAccessThingSliceBucket)buckets[i]).pread(offset, realBuffer, i * stripeSize, stripeSize);
+							continue;
+						}
 						DataInputStream dis;
 						if(stripeSize == blockLength)
 							dis = new DataInputStream(buckets[i].getInputStream());
@@ -452,6 +636,12 @@ public abstract class FECCodec {
 		}
 	}
 
+	/** Is the bucket a slice of a RandomAccessThing, i.e. preallocated storage for a
+	 * splitfile? If so we can read and write stripes in place, at the right offset. */
+	private static boolean isSlice(Bucket bucket) {
+		return bucket instanceof RandomAccessThingSliceBucket;
+	}
+
 	/**
 	 * The method used to submit {@link FECJob}s to the pool
 	 * 
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.ListIterator;
 
@@ -18,6 +19,7 @@ import freenet.client.async.DBJobRunner;
 import freenet.client.async.DatabaseDisabledException;
 import freenet.node.PrioRunnable;
 import freenet.node.RequestStarter;
+import freenet.node.stats.Instrumentation;
 import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -32,6 +34,10 @@ import freenet.support.io.NativeThread;
  * a persistent queue (kept in the database), and a transient cache of the persistent queue.
  * Sorted by priority and then by time added.
  * 
+ * The cache is refilled from the database before it runs dry. A decode may use the cores
+ * which no other job is using to decode each stripe in parallel. The callbacks for persistent
+ * jobs are run in batches on the database thread.
+ * 
  * Note that the FECQueue must be pulled from the database, because FECJob's are queried based
  * on their referring to it.
  * @author toad
@@ -47,9 +53,21 @@ public class FECQueue implements OOMHook {
 	private transient Executor executor;
 	private transient ClientContext clientContext;
 	private transient int runningFECThreads;
+	/** FEC threads which are running a job, rather than waiting for one. */
+	private transient int busyFECThreads;
 	private transient int fecPoolCounter;
 	private transient PrioRunnable runner;
 	private transient DBJob cacheFillerJob;
+	/** True if the cache filler found nothing more to add, i.e. the persistent queue cache
+	 * holds all the persistent jobs which aren't running. Cleared whenever a persistent job
+	 * is queued without being cached. */
+	private transient boolean persistentQueueExhausted;
+	/** Persistent jobs which have finished, waiting for their callbacks to be run in a batch
+	 * on the database thread. */
+	private transient ArrayList<FinishedJob> finishedJobs;
+	/** The highest priority at which callbackJob is queued and not yet started, or -1. */
+	private transient int callbackJobPriority;
+	private transient DBJob callbackJob;
 	private long nodeDBHandle;
 	/** If we have delayed startup for the persistent client layer, we will have already created
 	 * a FECQueue. Therefore when we load the real one, we will point it to the old FECQueue. */
@@ -119,10 +137,14 @@ public class FECQueue implements OOMHook {
 			transientQueue[i] = new LinkedList<FECJob>();
 			persistentQueueCache[i] = new LinkedList<FECJob>();
 		}
+		finishedJobs = new ArrayList<FinishedJob>();
+		callbackJobPriority = -1;
 		maxRunningFECThreads = getMaxRunningFECThreads();
+		splitStripes = !weakNiceness();
 		OOMHandler.addOOMHook(this);
 		initRunner();
 		initCacheFillerJob();
+		initCallbackJob();
 		queueCacheFiller();
 	}
 	
@@ -161,11 +183,13 @@ public class FECQueue implements OOMHook {
 					// Don't add.
 					if(logMINOR)
 						Logger.minor(this, "Not adding persistent job to in-RAM cache, too many above it");
+					persistentQueueExhausted = false;
 				} else {
 					if(totalAbove + persistentQueueCache[job.priority].size() >= maxPersistentQueueCacheSize) {
 						// Still don't add, within a priority it's oldest first.
 						if(logMINOR)
 							Logger.minor(this, "Not adding persistent job to in-RAM cache, too many at same priority");
+						persistentQueueExhausted = false;
 					} else {
 						persistentQueueCache[job.priority].addLast(job);
 						int total = totalAbove + persistentQueueCache[job.priority].size();
@@ -175,6 +199,7 @@ public class FECQueue implements OOMHook {
 								if(logMINOR)
 									Logger.minor(this, "Removing low priority job from cache, total now "+total);
 								persistentQueueCache[i].removeLast();
+								persistentQueueExhausted = false;
 								total--;
 							}
 						}
@@ -204,6 +229,7 @@ public class FECQueue implements OOMHook {
 			try {
 				while(true) {
 					final FECJob job;
+					int threads;
 					// Get a job
 					synchronized (FECQueue.this) {
 						job = getFECJobBlockingNoDBAccess();
@@ -216,166 +242,16 @@ public class FECQueue implements OOMHook {
 							continue;
 						}
 						job.running = true;
+						busyFECThreads++;
+						threads = getStripeThreads();
 					}
 
-					if(logMINOR)
-						Logger.minor(this, "Running job "+job);
-					// Encode it
-					try {
-						if (job.isADecodingJob)
-							job.getCodec().realDecode(job.dataBlockStatus, job.checkBlockStatus, job.blockLength,
-							        job.bucketFactory);
-						else {
-							job.getCodec().realEncode(job.dataBlocks, job.checkBlocks, job.blockLength, job.bucketFactory);
-							// Update SplitFileBlocks from buckets if necessary
-							if ((job.dataBlockStatus != null) || (job.checkBlockStatus != null)) {
-								for (int i = 0; i < job.dataBlocks.length; i++) {
-									Bucket existingData = job.dataBlockStatus[i].trySetData(job.dataBlocks[i]);
-									if(existingData != null && existingData != job.dataBlocks[i]) {
-										job.dataBlocks[i].free();
-										job.dataBlocks[i] = null;
-									}
-								}
-								for (int i = 0; i < job.checkBlocks.length; i++) {
-									Bucket existingData = job.checkBlockStatus[i].trySetData(job.checkBlocks[i]);
-									if(existingData != null && existingData != job.checkBlocks[i]) {
-										job.checkBlocks[i].free();
-										job.checkBlocks[i] = null;
-									}
-								}
-							}
-						}
-					} catch (final Throwable t) {
-						Logger.error(this, "Caught: "+t, t);
-						if(job.persistent) {
-							if(logMINOR)
-								Logger.minor(this, "Scheduling callback for "+job+" after "+t, t);
-							int prio = job.isADecodingJob ? NativeThread.NORM_PRIORITY+1 : NativeThread.NORM_PRIORITY;
-							// Run at a fairly high priority so we get the blocks out of memory and onto disk.
-							databaseJobRunner.queue(new DBJob() {
-
-								@Override
-								public boolean run(ObjectContainer container, ClientContext context) {
-									try {
-										job.storeBlockStatuses(container, true);
-									} catch (Throwable t) {
-										Logger.error(this, "Caught storing block statuses for "+job+" : "+t, t);
-										// Fail with the original error.
-									}
-									// Don't activate the job itself.
-									// It MUST already be activated, because it is carrying the status blocks.
-									// The status blocks have been set on the FEC thread but *not stored* because
-									// they can't be stored on the FEC thread.
-									Logger.minor(this, "Activating "+job.callback+" is active="+container.ext().isActive(job.callback));
-									container.activate(job.callback, 1);
-									if(logMINOR)
-										Logger.minor(this, "Running callback for "+job);
-									try {
-										job.callback.onFailed(t, container, context);
-									} catch (Throwable t1) {
-										Logger.error(this, "Caught "+t1+" in FECQueue callback failure", t1);
-									} finally {
-										// Always delete the job, even if the callback throws.
-										container.delete(job);
-									}
-									if(container.ext().isStored(job.callback))
-										container.deactivate(job.callback, 1);
-									return true;
-								}
-								
-								@Override
-								public String toString() {
-									return "FECQueueJobFailedCallback@"+Integer.toHexString(super.hashCode());
-								}
-								
-							}, prio, false);
-							if(logMINOR)
-								Logger.minor(this, "Scheduled callback for "+job+"...");
-						} else {
-							job.callback.onFailed(t, null, clientContext);
-						}
-						continue; // Try the next one.
-					}
-
-					// Call the callback
 					try {
-						if(!job.persistent) {
-							if (job.isADecodingJob)
-								job.callback.onDecodedSegment(null, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
-							else
-								job.callback.onEncodedSegment(null, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
-						} else {
-							if(logMINOR)
-								Logger.minor(this, "Scheduling callback for "+job+"...");
-							int prio = job.isADecodingJob ? NativeThread.NORM_PRIORITY+1 : NativeThread.NORM_PRIORITY;
-							if(job.priority > RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS)
-								prio--;
-							if(job.priority >= RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS)
-								prio--;
-							databaseJobRunner.queue(new DBJob() {
-
-								@Override
-								public boolean run(ObjectContainer container, ClientContext context) {
-									try {
-										job.storeBlockStatuses(container, false);
-									} catch (Throwable t) {
-										Logger.error(this, "Caught storing block statuses on "+this+" : "+t, t);
-										// Don't activate the job itself.
-										// It MUST already be activated, because it is carrying the status blocks.
-										// The status blocks have been set on the FEC thread but *not stored* because
-										// they can't be stored on the FEC thread.
-										Logger.minor(this, "Activating "+job.callback+" is active="+container.ext().isActive(job.callback));
-										container.activate(job.callback, 1);
-										if(logMINOR)
-											Logger.minor(this, "Running callback for "+job);
-										try {
-											job.callback.onFailed(t, container, context);
-										} catch (Throwable t1) {
-											Logger.error(this, "Caught "+t1+" in FECQueue callback failure", t1);
-										} finally {
-											// Always delete the job, even if the callback throws.
-											container.delete(job);
-										}
-										if(container.ext().isStored(job.callback))
-											container.deactivate(job.callback, 1);
-										return true;
-									}
-									// Don't activate the job itself.
-									// It MUST already be activated, because it is carrying the status blocks.
-									// The status blocks have been set on the FEC thread but *not stored* because
-									// they can't be stored on the FEC thread.
-									if(logMINOR) Logger.minor(this, "Activating "+job.callback+" is active="+container.ext().isActive(job.callback));
-									container.activate(job.callback, 1);
-									if(logMINOR)
-										Logger.minor(this, "Running callback for "+job);
-									try {
-									if(job.isADecodingJob)
-										job.callback.onDecodedSegment(container, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
-									else
-										job.callback.onEncodedSegment(container, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
-									} catch (Throwable t) {
-										Logger.error(this, "Caught "+t+" in FECQueue callback", t);
-									} finally {
-										// Always delete the job, even if the callback throws.
-										container.delete(job);
-									}
-									if(container.ext().isStored(job.callback))
-										container.deactivate(job.callback, 1);
-									return true;
-								}
-								
-								@Override
-								public String toString() {
-									return "FECQueueJobCompletedCallback@"+Integer.toHexString(super.hashCode());
-								}
-								
-							}, prio, false);
-							if(logMINOR)
-								Logger.minor(this, "Scheduled callback for "+job+"...");
-							
+						runJob(job, threads);
+					} finally {
+						synchronized (FECQueue.this) {
+							busyFECThreads--;
 						}
-					} catch (Throwable e) {
-						Logger.error(this, "The callback failed!" + e, e);
 					}
 				}
 			} catch (Throwable t) {
@@ -396,6 +272,214 @@ public class FECQueue implements OOMHook {
 	};
 	}
 
+	/**
+	 * Encode or decode, then call the callback, or for a persistent job, queue it to be called
+	 * on the database thread.
+	 * @param threads The number of threads which may work on each stripe of a decode.
+	 */
+	private void runJob(final FECJob job, int threads) {
+		if(logMINOR)
+			Logger.minor(this, "Running job "+job);
+		// Encode it
+		try {
+			if (job.isADecodingJob) {
+				long startTime = System.nanoTime();
+				job.getCodec().realDecode(job.dataBlockStatus, job.checkBlockStatus, job.blockLength,
+				        job.bucketFactory, executor, threads);
+				Instrumentation.FEC_DECODE.reportSince(startTime);
+			} else {
+				job.getCodec().realEncode(job.dataBlocks, job.checkBlocks, job.blockLength, job.bucketFactory);
+				// Update SplitFileBlocks from buckets if necessary
+				if ((job.dataBlockStatus != null) || (job.checkBlockStatus != null)) {
+					for (int i = 0; i < job.dataBlocks.length; i++) {
+						Bucket existingData = job.dataBlockStatus[i].trySetData(job.dataBlocks[i]);
+						if(existingData != null && existingData != job.dataBlocks[i]) {
+							job.dataBlocks[i].free();
+							job.dataBlocks[i] = null;
+						}
+					}
+					for (int i = 0; i < job.checkBlocks.length; i++) {
+						Bucket existingData = job.checkBlockStatus[i].trySetData(job.checkBlocks[i]);
+						if(existingData != null && existingData != job.checkBlocks[i]) {
+							job.checkBlocks[i].free();
+							job.checkBlocks[i] = null;
+						}
+					}
+				}
+			}
+		} catch (final Throwable t) {
+			Logger.error(this, "Caught: "+t, t);
+			if(job.persistent) {
+				if(logMINOR)
+					Logger.minor(this, "Scheduling callback for "+job+" after "+t, t);
+				// Run at a fairly high priority so we get the blocks out of memory and onto disk.
+				int prio = job.isADecodingJob ? NativeThread.NORM_PRIORITY+1 : NativeThread.NORM_PRIORITY;
+				addFinishedJob(new FinishedJob(job, t), prio);
+			} else {
+				job.callback.onFailed(t, null, clientContext);
+			}
+			return;
+		}
+
+		// Call the callback
+		try {
+			if(!job.persistent) {
+				if (job.isADecodingJob)
+					job.callback.onDecodedSegment(null, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
+				else
+					job.callback.onEncodedSegment(null, clientContext, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
+			} else {
+				if(logMINOR)
+					Logger.minor(this, "Scheduling callback for "+job+"...");
+				int prio = job.isADecodingJob ? NativeThread.NORM_PRIORITY+1 : NativeThread.NORM_PRIORITY;
+				if(job.priority > RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS)
+					prio--;
+				if(job.priority >= RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS)
+					prio--;
+				addFinishedJob(new FinishedJob(job, null), prio);
+			}
+		} catch (Throwable e) {
+			Logger.error(this, "The callback failed!" + e, e);
+		}
+	}
+
+	/** A persistent job which has been run, and whose callback hasn't. */
+	private static class FinishedJob {
+		final FECJob job;
+		/** Null if the job succeeded. */
+		final Throwable failure;
+
+		FinishedJob(FECJob job, Throwable failure) {
+			this.job = job;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * Queue the callback for a persistent job. Callbacks are run in batches by a single
+	 * database job, so a burst of segments finishing doesn't mean a burst of database jobs
+	 * and commits. The batch is queued at the highest priority of the jobs in it.
+	 */
+	private void addFinishedJob(FinishedJob finished, int prio) {
+		synchronized(this) {
+			finishedJobs.add(finished);
+			if(callbackJobPriority >= prio) {
+				if(logMINOR)
+					Logger.minor(this, "Added "+finished.job+" to the callback batch, "+finishedJobs.size()+" jobs");
+				return;
+			}
+			callbackJobPriority = prio;
+		}
+		try {
+			databaseJobRunner.queue(callbackJob, prio, false);
+		} catch (DatabaseDisabledException e) {
+			// No callback job will run now, including one already queued at a lower
+			// priority, so drop the whole batch rather than leave it waiting.
+			FinishedJob[] dropped;
+			synchronized(this) {
+				dropped = finishedJobs.toArray(new FinishedJob[finishedJobs.size()]);
+				finishedJobs.clear();
+				callbackJobPriority = -1;
+			}
+			for(FinishedJob lost : dropped)
+				Logger.error(this, "Database disabled, unable to call callback for "+lost.job);
+		}
+	}
+
+	private void initCallbackJob() {
+		callbackJob = new DBJob() {
+
+			@Override
+			public boolean run(ObjectContainer container, ClientContext context) {
+				FinishedJob[] batch;
+				synchronized(FECQueue.this) {
+					if(finishedJobs.isEmpty()) {
+						// Already run at another priority.
+						return false;
+					}
+					batch = finishedJobs.toArray(new FinishedJob[finishedJobs.size()]);
+					finishedJobs.clear();
+					callbackJobPriority = -1;
+				}
+				if(logMINOR)
+					Logger.minor(this, "Running callbacks for "+batch.length+" FEC jobs");
+				for(FinishedJob finished : batch) {
+					if(finished.failure != null) {
+						try {
+							finished.job.storeBlockStatuses(container, true);
+						} catch (Throwable t) {
+							Logger.error(this, "Caught storing block statuses for "+finished.job+" : "+t, t);
+							// Fail with the original error.
+						}
+						onFailed(finished.job, finished.failure, container, context);
+					} else
+						onFinished(finished.job, container, context);
+				}
+				return true;
+			}
+
+			@Override
+			public String toString() {
+				return "FECQueueCallbacks@"+Integer.toHexString(super.hashCode());
+			}
+
+		};
+	}
+
+	/** Call the failure callback for a persistent job, on the database thread. */
+	private void onFailed(FECJob job, Throwable t, ObjectContainer container, ClientContext context) {
+		// Don't activate the job itself.
+		// It MUST already be activated, because it is carrying the status blocks.
+		// The status blocks have been set on the FEC thread but *not stored* because
+		// they can't be stored on the FEC thread.
+		if(logMINOR) Logger.minor(this, "Activating "+job.callback+" is active="+container.ext().isActive(job.callback));
+		container.activate(job.callback, 1);
+		if(logMINOR)
+			Logger.minor(this, "Running callback for "+job);
+		try {
+			job.callback.onFailed(t, container, context);
+		} catch (Throwable t1) {
+			Logger.error(this, "Caught "+t1+" in FECQueue callback failure", t1);
+		} finally {
+			// Always delete the job, even if the callback throws.
+			container.delete(job);
+		}
+		if(container.ext().isStored(job.callback))
+			container.deactivate(job.callback, 1);
+	}
+
+	/** Call the completion callback for a persistent job, on the database thread. */
+	private void onFinished(FECJob job, ObjectContainer container, ClientContext context) {
+		try {
+			job.storeBlockStatuses(container, false);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught storing block statuses on "+this+" : "+t, t);
+			onFailed(job, t, container, context);
+			return;
+		}
+		// Don't activate the job itself.
+		// It MUST already be activated, because it is carrying the status blocks.
+		// The status blocks have been set on the FEC thread but *not stored* because
+		// they can't be stored on the FEC thread.
+		if(logMINOR) Logger.minor(this, "Activating "+job.callback+" is active="+container.ext().isActive(job.callback));
+		container.activate(job.callback, 1);
+		if(logMINOR)
+			Logger.minor(this, "Running callback for "+job);
+		try {
+			if(job.isADecodingJob)
+				job.callback.onDecodedSegment(container, context, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
+			else
+				job.callback.onEncodedSegment(container, context, job, job.dataBlocks, job.checkBlocks, job.dataBlockStatus, job.checkBlockStatus);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" in FECQueue callback", t);
+		} finally {
+			// Always delete the job, even if the callback throws.
+			container.delete(job);
+		}
+		if(container.ext().isStored(job.callback))
+			container.deactivate(job.callback, 1);
+	}
+
 	private void initCacheFillerJob() {
 		cacheFillerJob = new DBJob() {
 			
@@ -493,6 +577,9 @@ public class FECQueue implements OOMHook {
 				if(!addedAny) {
 					if(logMINOR)
 						Logger.minor(this, "No more jobs to add");
+					synchronized(FECQueue.this) {
+						persistentQueueExhausted = true;
+					}
 					// Don't notify, let it sleep until more jobs are added.
 					return false;
 				} else {
@@ -521,14 +608,22 @@ public class FECQueue implements OOMHook {
 	}
 	
 	private int maxRunningFECThreads = -1;
+	/** Whether a decode may use idle cores to decode slices of each stripe in parallel.
+	 * Splitting a stripe between threads uses no more memory, so unlike the number of jobs,
+	 * it's only limited by the number of cores. */
+	private transient boolean splitStripes;
+
+	/** OS/X niceness is really weak, so we don't want any more background CPU load than necessary.
+	 * Also, on non-Windows, we need the native threads library to be working. */
+	private static boolean weakNiceness() {
+		String osName = System.getProperty("os.name");
+		return osName.indexOf("Windows") == -1 && ((osName.toLowerCase().indexOf("mac os x") > 0) || (!NativeThread.usingNativeCode()));
+	}
 
 	private synchronized int getMaxRunningFECThreads() {
 		if (maxRunningFECThreads != -1)
 			return maxRunningFECThreads;
-		String osName = System.getProperty("os.name");
-		if(osName.indexOf("Windows") == -1 && ((osName.toLowerCase().indexOf("mac os x") > 0) || (!NativeThread.usingNativeCode()))) {
-			// OS/X niceness is really weak, so we don't want any more background CPU load than necessary
-			// Also, on non-Windows, we need the native threads library to be working.
+		if(weakNiceness()) {
 			maxRunningFECThreads = 1;
 		} else {
 			// Most other OSs will have reasonable niceness, so go by RAM.
@@ -550,7 +645,19 @@ public class FECQueue implements OOMHook {
 	}
 
 	/**
-	 * Find a FEC job to run.
+	 * @return The number of threads, including the caller, which may decode slices of a
+	 * stripe: the cores not already busy with FEC jobs, plus the caller's own.
+	 */
+	private synchronized int getStripeThreads() {
+		if(!splitStripes) return 1;
+		int cores = Runtime.getRuntime().availableProcessors();
+		return Math.max(1, cores - busyFECThreads + 1);
+	}
+
+	/**
+	 * Find a FEC job to run. Refills the persistent queue cache from the database once it is
+	 * half empty, so that persistent jobs are already loaded when the FEC threads want them,
+	 * rather than the threads waiting for a busy database thread.
 	 * @return null only if there are too many FEC threads running.
 	 */
 	protected synchronized FECJob getFECJobBlockingNoDBAccess() {
@@ -560,10 +667,15 @@ public class FECQueue implements OOMHook {
 			for(int i=0;i<priorities;i++) {
 				if(!transientQueue[i].isEmpty())
 					return transientQueue[i].removeFirst();
-				if(!persistentQueueCache[i].isEmpty())
-					return persistentQueueCache[i].removeFirst();
+				if(!persistentQueueCache[i].isEmpty()) {
+					FECJob job = persistentQueueCache[i].removeFirst();
+					if(!persistentQueueExhausted && persistentQueueCacheSize() <= maxPersistentQueueCacheSize / 2)
+						queueCacheFiller();
+					return job;
+				}
 			}
-			queueCacheFiller();
+			if(!persistentQueueExhausted)
+				queueCacheFiller();
 			try {
 				wait();
 			} catch (InterruptedException e) {
@@ -572,6 +684,13 @@ public class FECQueue implements OOMHook {
 		}
 	}
 
+	private synchronized int persistentQueueCacheSize() {
+		int total = 0;
+		for(int i=0;i<priorities;i++)
+			total += persistentQueueCache[i].size();
+		return total;
+	}
+
 	@Override
 	public synchronized void handleLowMemory() throws Exception {
 		maxRunningFECThreads = Math.max(1, maxRunningFECThreads - 1);
@@ -110,6 +110,11 @@ public class FetchContext implements Cloneable {
 	/** Ignore USK DATEHINTs */
 	public boolean ignoreUSKDatehints;
 
+	/** For transient splitfile fetches, preallocate a single temporary file for the whole
+	 * download and write each block directly to its final location in it, rather than
+	 * keeping each block in its own temporary bucket. Ignored for persistent requests. */
+	public boolean preallocateSplitfileStorage;
+
 	public FetchContext(long curMaxLength,
 			long curMaxTempLength, int maxMetadataSize, int maxRecursionLevel, int maxArchiveRestarts, int maxArchiveLevels,
 			boolean dontEnterImplicitArchives,
@@ -190,6 +195,7 @@ public class FetchContext implements Cloneable {
 		this.cooldownRetries = ctx.cooldownRetries;
 		this.cooldownTime = ctx.cooldownTime;
 		this.ignoreUSKDatehints = ctx.ignoreUSKDatehints;
+		this.preallocateSplitfileStorage = ctx.preallocateSplitfileStorage;
 
 		if(maskID == IDENTICAL_MASK || maskID == SPLITFILE_DEFAULT_MASK) {
 			// DEFAULT
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -158,6 +159,14 @@ public interface HighLevelSimpleClient {
 	 */
 	public FreenetURI insertManifest(FreenetURI insertURI, HashMap<String, Object> bucketsByName, String defaultName, short priorityClass, byte[] forceCryptoKey) throws InsertException;
 
+	/**
+	 * Blocking insert of a directory on disk as a manifest. The tree is read as it is
+	 * inserted, and small files are packed into containers, so memory use doesn't depend on
+	 * the number of files. Hidden files are included.
+	 * @param defaultName The default document in each directory, or null.
+	 */
+	public FreenetURI insertManifest(FreenetURI insertURI, File dir, String defaultName, short priorityClass) throws InsertException;
+
 	/**
 	 * Get the FetchContext so you can customise the search process. Has settings for all sorts of things
 	 * such as how many times to retry each block, whether to follow redirects, whether to open containers,
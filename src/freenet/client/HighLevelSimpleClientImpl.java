@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Set;
@@ -15,6 +16,7 @@ import freenet.client.async.ClientPutCallback;
 import freenet.client.async.ClientPutter;
 import freenet.client.async.DatabaseDisabledException;
 import freenet.client.async.SimpleManifestPutter;
+import freenet.client.async.StreamingManifestBuilder;
 import freenet.client.events.ClientEventListener;
 import freenet.client.events.ClientEventProducer;
 import freenet.client.events.EventLogger;
@@ -90,6 +92,8 @@ public class HighLevelSimpleClientImpl implements HighLevelSimpleClient, Request
 	public static final int EXTRA_INSERTS_SPLITFILE_HEADER = 2;
 	/*Whether or not to filter fetched content*/
 	static final boolean FILTER_DATA = false;
+	/** Inserts in flight at once when inserting a directory with insertManifest(). */
+	static final int MAX_PARALLEL_SITE_INSERTS = 8;
 
 	public HighLevelSimpleClientImpl(NodeClientCore node, BucketFactory bf, RandomSource r, short priorityClass, boolean forceDontIgnoreTooManyPathComponents, boolean realTimeFlag) {
 		this.core = node;
@@ -319,6 +323,13 @@ public class HighLevelSimpleClientImpl implements HighLevelSimpleClient, Request
 		return pw.waitForCompletion();
 	}
 
+	@Override
+	public FreenetURI insertManifest(FreenetURI insertURI, File dir, String defaultName, short priorityClass) throws InsertException {
+		StreamingManifestBuilder.Inserter inserter = new StreamingManifestBuilder.ClientInserter(this, insertURI, bucketFactory, priorityClass);
+		StreamingManifestBuilder builder = new StreamingManifestBuilder(dir, inserter, bucketFactory, core.getExecutor(), MAX_PARALLEL_SITE_INSERTS, defaultName, true);
+		return builder.run();
+	}
+
 	@Override
 	public void addEventHook(ClientEventListener listener) {
 		eventProducer.addEventListener(listener);
@@ -337,7 +348,7 @@ public class HighLevelSimpleClientImpl implements HighLevelSimpleClient, Request
 			maxLength = overrideMaxSize;
 			maxTempLength = overrideMaxSize;
 		}
-		return
+		FetchContext ctx =
 			new FetchContext(maxLength, maxTempLength, curMaxMetadataLength,
 				MAX_RECURSION, MAX_ARCHIVE_RESTARTS, MAX_ARCHIVE_LEVELS, DONT_ENTER_IMPLICIT_ARCHIVES,
 				SPLITFILE_BLOCK_RETRIES, NON_SPLITFILE_RETRIES, USK_RETRIES,
@@ -345,6 +356,8 @@ public class HighLevelSimpleClientImpl implements HighLevelSimpleClient, Request
 				FILTER_DATA, MAX_SPLITFILE_BLOCKS_PER_SEGMENT, MAX_SPLITFILE_CHECK_BLOCKS_PER_SEGMENT, 
 				bucketFactory, eventProducer,
 				false, CAN_WRITE_CLIENT_CACHE, null, null);
+		ctx.preallocateSplitfileStorage = core.preallocateSplitfileStorage();
+		return ctx;
 	}
 
 	@Override
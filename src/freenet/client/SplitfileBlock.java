@@ -29,4 +29,9 @@ public interface SplitfileBlock {
 	/** Replace the data - set it and return the old data */
 	abstract Bucket replaceData(Bucket data);
 
+	/** Get an empty bucket at the block's final location in preallocated storage, so
+	 * that the FEC code can decode into it in place.
+	 * @return Null if the block does not have preallocated storage. */
+	abstract Bucket makePreallocatedBucket();
+
 }
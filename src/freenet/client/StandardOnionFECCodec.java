@@ -126,6 +126,11 @@ public class StandardOnionFECCodec extends FECCodec {
 		// Crashes are caused by bugs which cause to use 320/128 etc. - n > 256, k < 256.
 	}
 
+	@Override
+	protected FECCode newFEC() {
+		return new PureCode(k,n);
+	}
+
 	@Override
 	public int countCheckBlocks() {
 		return n-k;
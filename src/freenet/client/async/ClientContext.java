@@ -63,6 +63,8 @@ public class ClientContext {
 	public transient final RealCompressor rc;
 	public transient final DatastoreChecker checker;
 	public transient final CooldownTracker cooldownTracker;
+	/** Encodes splitfile insert blocks in advance. */
+	public transient final InsertBlockEncoder insertBlockEncoder;
 	public transient DownloadCache downloadCache;
 
 	/** Provider for link filter exceptions. */
@@ -94,6 +96,7 @@ public class ClientContext {
 		this.checker = checker;
 		this.linkFilterExceptionProvider = linkFilterExceptionProvider;
 		this.cooldownTracker = new CooldownTracker();
+		this.insertBlockEncoder = new InsertBlockEncoder(mainExecutor, InsertBlockEncoder.DEFAULT_MAX_QUEUED);
 	}
 	
 	public void init(RequestStarterGroup starters, UserAlertManager alerts) {
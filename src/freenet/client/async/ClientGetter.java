@@ -4,6 +4,7 @@
 package freenet.client.async;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -40,7 +41,7 @@ import freenet.support.OOMHandler;
 import freenet.support.api.Bucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.StreamingDecompressor;
 import freenet.support.io.Closer;
 
 /**
@@ -301,7 +302,8 @@ public class ClientGetter extends BaseClientGetter implements WantsCooldownCallb
 		PipedInputStream dataInput = new PipedInputStream();
 		OutputStream output = null;
 
-		DecompressorThreadManager decompressorManager = null;
+		InputStream workerInput = dataInput;
+		StreamingDecompressor decompressor = null;
 		ClientGetWorkerThread worker = null;
 		Bucket finalResult = null;
 		FetchResult result = null;
@@ -328,13 +330,13 @@ public class ClientGetter extends BaseClientGetter implements WantsCooldownCallb
 			if(decompressors != null) {
 				if(persistent()) container.activate(decompressors, 5);
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
-				dataInput = decompressorManager.execute();
+				decompressor = new StreamingDecompressor(dataInput, decompressors, maxLen, context.mainExecutor);
+				workerInput = decompressor.execute();
 			}
 
 			output = finalResult.getOutputStream();
 			if(ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
-			worker = new ClientGetWorkerThread(dataInput, output, uri, mimeType, hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
+			worker = new ClientGetWorkerThread(workerInput, output, uri, mimeType, hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
 			worker.start();
 			try {
 				streamGenerator.writeTo(dataOutput, container, context);
@@ -350,9 +352,9 @@ public class ClientGetter extends BaseClientGetter implements WantsCooldownCallb
 			if(logMINOR) Logger.minor(this, "Waiting for hashing, filtration, and writing to finish");
 			worker.waitFinished();
 
-			if(decompressorManager != null) {
+			if(decompressor != null) {
 				if(logMINOR) Logger.minor(this, "Waiting for decompression to finalize");
-				decompressorManager.waitFinished();
+				decompressor.waitFinished();
 			}
 
 			if(worker.getClientMetadata() != null) {
@@ -385,6 +387,8 @@ public class ClientGetter extends BaseClientGetter implements WantsCooldownCallb
 			Logger.error(this, "Caught "+t, t);
 			ex = new FetchException(FetchException.INTERNAL_ERROR, t);
 		} finally {
+			// Once started, the worker closes its own input.
+			if(worker == null) Closer.close(workerInput);
 			Closer.close(dataInput);
 			Closer.close(dataOutput);
 			Closer.close(output);
@@ -384,7 +384,7 @@ public class ClientRequestScheduler implements RequestScheduler {
 			fuzz = -1;
 		else if(PRIORITY_HARD.equals(choosenPriorityScheduler))
 			fuzz = 0;
-		return selector.removeFirstTransient(fuzz, random, offeredKeys, starter, schedTransient, prio, isRTScheduler, clientContext, null);
+		return selector.removeFirstTransient(fuzz, random, offeredKeys, schedTransient, prio, isRTScheduler, clientContext, null);
 	}
 	
 	/**
@@ -1183,6 +1183,12 @@ public class ClientRequestScheduler implements RequestScheduler {
 			schedTransient.removeFromAllRequestsByClientRequest(get, clientRequest, dontComplain, null);
 	}
 
+	/** A transient request which was in cooldown may be selectable again.
+	 * LOCKING: Caller should hold the scheduler lock, as for CooldownTracker.clearCachedWakeup(). */
+	public void clearTransientCooldown(SendableRequest req) {
+		schedTransient.clearCooldown(req);
+	}
+
 	void addPersistentPendingKeys(KeyListener listener) {
 		schedCore.addPendingKeys(listener);
 	}
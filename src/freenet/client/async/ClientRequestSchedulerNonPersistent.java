@@ -10,6 +10,10 @@ import com.db4o.ObjectContainer;
 
 import freenet.crypt.RandomSource;
 import freenet.node.BaseSendableGet;
+import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
+import freenet.node.SendableRequest;
+import freenet.support.FairCooldownQueue;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
@@ -23,6 +27,10 @@ class ClientRequestSchedulerNonPersistent extends ClientRequestSchedulerBase {
 	
 	protected final Deque<BaseSendableGet>recentSuccesses;
 	
+	/** The registered requests, by priority and client, which ClientRequestSelector chooses
+	 * from. Requests in cooldown are kept apart until they wake up. */
+	final FairCooldownQueue<RequestClient, SendableRequest> queue;
+	
 	ClientRequestSchedulerNonPersistent(ClientRequestScheduler sched, boolean forInserts, boolean forSSKs, boolean forRT, RandomSource random) {
 		super(forInserts, forSSKs, forRT, random);
 		this.sched = sched;
@@ -30,9 +38,32 @@ class ClientRequestSchedulerNonPersistent extends ClientRequestSchedulerBase {
 			recentSuccesses = new ArrayDeque<BaseSendableGet>();
 		else
 			recentSuccesses = null;
+		queue = new FairCooldownQueue<RequestClient, SendableRequest>(RequestStarter.NUMBER_OF_PRIORITY_CLASSES);
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
+	@Override
+	void innerRegister(SendableRequest req, RandomSource random, ObjectContainer container, ClientContext context, SendableRequest[] maybeActive) {
+		super.innerRegister(req, random, container, context, maybeActive);
+		addToQueue(req);
+	}
+
+	/** Queue a request, or make it ready now if it is already queued. */
+	void addToQueue(SendableRequest req) {
+		queue.add(req, req.getClient(null), req.getPriorityClass(null), 0);
+	}
+
+	@Override
+	void removeFromAllRequestsByClientRequest(SendableRequest req, ClientRequester cr, boolean dontComplain, ObjectContainer container) {
+		super.removeFromAllRequestsByClientRequest(req, cr, dontComplain, container);
+		queue.remove(req);
+	}
+
+	/** The request may be selectable again, e.g. because a block has finished. */
+	void clearCooldown(SendableRequest req) {
+		queue.setWakeupTime(req, 0);
+	}
+
 	@Override
 	boolean persistent() {
 		return false;
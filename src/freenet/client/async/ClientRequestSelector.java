@@ -16,11 +16,13 @@ import freenet.keys.Key;
 import freenet.node.BaseSendableGet;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.Node;
+import freenet.node.RequestClient;
 import freenet.node.RequestStarter;
 import freenet.node.SendableGet;
 import freenet.node.SendableInsert;
 import freenet.node.SendableRequest;
 import freenet.node.SendableRequestItem;
+import freenet.support.FairCooldownQueue;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -176,33 +178,110 @@ class ClientRequestSelector implements KeysFetchingLocally {
 		return wakeupTime;
 	}
 	
+	/** How long to leave a transient request which is waiting for something other than time,
+	 * e.g. a request for the same key to finish, before checking it again. It is normally woken
+	 * up sooner, by clearCooldown() or removeFetchingKey(). */
+	static final long TRANSIENT_COOLDOWN_RECHECK = 5*1000;
+	
 	// LOCKING: ClientRequestScheduler locks on (this) before calling. 
 	// We prevent a number of race conditions (e.g. adding a retry count and then another 
 	// thread removes it cos its empty) ... and in addToGrabArray etc we already sync on this.
 	// The worry is ... is there any nested locking outside of the hierarchy?
-	ChosenBlock removeFirstTransient(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, ClientRequestSchedulerNonPersistent schedTransient, short maxPrio, boolean realTime, ClientContext context, ObjectContainer container) {
+	ChosenBlock removeFirstTransient(int fuzz, RandomSource random, OfferedKeysList offeredKeys, ClientRequestSchedulerNonPersistent schedTransient, short maxPrio, boolean realTime, ClientContext context, ObjectContainer container) {
 		// If a block is already running it will return null. Try to find a valid block in that case.
 		long now = System.currentTimeMillis();
 		for(int i=0;i<5;i++) {
 			// Must synchronize on scheduler to avoid problems with cooldown queue. See notes on CooldownTracker.clearCachedWakeup, which also applies to other cooldown operations.
-			SelectorReturn r;
+			SendableRequest req;
 			synchronized(sched) {
-				r = removeFirstInner(fuzz, random, offeredKeys, starter, null, schedTransient, true, false, maxPrio, realTime, context, container, now);
+				req = chooseTransient(fuzz, random, offeredKeys, schedTransient, maxPrio, context, now);
 			}
-			SendableRequest req = null;
-			if(r != null && r.req != null) req = r.req;
-			if(req == null) continue;
+			if(req == null) return null;
 			if(isInsertScheduler && req instanceof SendableGet) {
-				IllegalStateException e = new IllegalStateException("removeFirstInner returned a SendableGet on an insert scheduler!!");
+				IllegalStateException e = new IllegalStateException("chooseTransient returned a SendableGet on an insert scheduler!!");
 				req.internalError(e, sched, container, context, req.persistent());
 				throw e;
 			}
+			assert(req == offeredKeys || req.realTimeFlag() == realTime);
 			ChosenBlock block = maybeMakeChosenRequest(req, container, context, now);
 			if(block != null) return block;
 		}
 		return null;
 	}
 	
+	/**
+	 * Choose a transient request. Within a priority class, clients take turns, and each
+	 * client's requests take turns. Requests in cooldown are not looked at until their wakeup
+	 * time, or until something clears their cooldown.
+	 * @param fuzz As for removeFirstAccordingToPriorities(): negative for soft scheduling,
+	 * which sometimes starts with a less important class.
+	 * @return The request, which is left queued, or null if nothing is ready.
+	 */
+	SendableRequest chooseTransient(int fuzz, RandomSource random, OfferedKeysList offeredKeys, ClientRequestSchedulerNonPersistent schedTransient, short maxPrio, ClientContext context, long now) {
+		boolean tryOfferedKeys = offeredKeys != null && random.nextBoolean();
+		if(tryOfferedKeys && offeredKeys.getCooldownTime(null, context, now) == 0)
+			return offeredKeys;
+		int max = Math.min(maxPrio, RequestStarter.MINIMUM_PRIORITY_CLASS);
+		int first = fuzz<0 ? tweakedPrioritySelector[random.nextInt(tweakedPrioritySelector.length)] : prioritySelector[Math.abs(fuzz % prioritySelector.length)];
+		FairCooldownQueue<RequestClient, SendableRequest> queue = schedTransient.queue;
+		while(true) {
+			SendableRequest req = queue.poll(now, first, max);
+			if(req == null) break;
+			long cooldownTime = req.getCooldownTime(null, context, now);
+			if(cooldownTime < 0 || req.isCancelled(null)) {
+				// Finished or cancelled. Drop it, and remove it from the grab array too, as
+				// RandomGrabArray.removeRandom() would.
+				if(logMINOR) Logger.minor(this, "Not returning because cancelled: "+req);
+				RandomGrabArray rga = req.getParentGrabArray();
+				if(rga != null) {
+					req.setParentGrabArray(null, null);
+					rga.remove(req, null, context);
+				}
+				continue;
+			}
+			if(cooldownTime > 0) {
+				if(logMINOR) Logger.minor(this, "Request is in cooldown: "+req+" for "+(cooldownTime == Long.MAX_VALUE ? "ever" : TimeUtil.formatTime(cooldownTime - now)));
+				long wakeupTime = Math.max(now + 1, Math.min(cooldownTime, now + TRANSIENT_COOLDOWN_RECHECK));
+				queue.add(req, req.getClient(null), req.getPriorityClass(null), wakeupTime);
+				continue;
+			}
+			// Back of its client's queue, at its current priority.
+			queue.add(req, req.getClient(null), req.getPriorityClass(null), 0);
+			return maybeUseRecentSuccess(req, random, schedTransient, context, now);
+		}
+		if(!tryOfferedKeys && offeredKeys != null && offeredKeys.getCooldownTime(null, context, now) == 0)
+			return offeredKeys;
+		if(logMINOR) Logger.minor(this, "No transient requests to run");
+		return null;
+	}
+	
+	/** 50% chance of using a recently succeeded request instead, if it is at least as
+	 * important. We keep a list of recently succeeded BaseSendableGet's, because transient
+	 * requests are chosen individually. */
+	private SendableRequest maybeUseRecentSuccess(SendableRequest req, RandomSource random, ClientRequestSchedulerNonPersistent schedTransient, ClientContext context, long now) {
+		if(isInsertScheduler) return req;
+		Deque<BaseSendableGet> recent = schedTransient.recentSuccesses;
+		BaseSendableGet altReq = null;
+		synchronized(recent) {
+			if(!recent.isEmpty() && random.nextBoolean())
+				altReq = recent.poll();
+		}
+		if(altReq == null || altReq == req) return req;
+		if(altReq.isCancelled(null) || altReq.getCooldownTime(null, context, now) != 0) {
+			if(logMINOR) Logger.minor(this, "Ignoring recently succeeded item "+altReq);
+			return req;
+		}
+		if(altReq.getPriorityClass(null) <= req.getPriorityClass(null)) {
+			if(logMINOR) Logger.minor(this, "Recently succeeded (transient) req "+altReq+" is better than "+req+", using that");
+			return altReq;
+		}
+		if(logMINOR) Logger.minor(this, "Chosen req "+req+" is better, reregistering recently succeeded "+altReq);
+		synchronized(recent) {
+			recent.add(altReq);
+		}
+		return req;
+	}
+	
 	public ChosenBlock maybeMakeChosenRequest(SendableRequest req, ObjectContainer container, ClientContext context, long now) {
 		if(req == null) return null;
 		if(req.isCancelled(container)) {
@@ -677,6 +756,7 @@ outer:	for(;choosenPriorityClass <= maxPrio;choosenPriorityClass++) {
 						if(get == null) continue;
 						synchronized(sched) {
 							tracker.clearCachedWakeup(get, false, null);
+							sched.clearTransientCooldown(get);
 						}
 					}
 				}
@@ -0,0 +1,217 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.api.Bucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.NativeThread;
+
+/**
+ * Encodes splitfile blocks ahead of the insert senders. Without this, each block is read
+ * and encrypted on its sender thread just before it is inserted, so the insert slot waits
+ * for the encode. When a segment hands the request starter a batch of blocks to insert,
+ * it also offers them here, and a few workers encode them in the background, in the order
+ * they were offered. When the sender gets to a block it takes the encoded block if it is
+ * ready, waits if it is being encoded right now, and otherwise encodes it itself, so
+ * nothing depends on the background encode happening.
+ *
+ * The queue is bounded, lock-free, and only holds a limited number of blocks, so we don't
+ * use lots of memory encoding blocks long before they can be sent.
+ */
+public class InsertBlockEncoder {
+
+	/** Maximum number of blocks waiting to be encoded, at 32KB each plus the encoded
+	 * block. */
+	public static final int DEFAULT_MAX_QUEUED = 128;
+	/** Each worker takes this many blocks at a time. */
+	static final int BATCH_SIZE = 16;
+
+	/** A block to insert, which may be encoded in advance. */
+	public static final class Block {
+
+		private static final int NEW = 0;
+		private static final int ENCODING = 1;
+		private static final int DONE = 2;
+
+		private final AtomicInteger state;
+		private final Bucket data;
+		private final byte[] cryptoKey;
+		private final byte cryptoAlgorithm;
+		private ClientCHKBlock encoded;
+		private CHKEncodeException encodeFailure;
+		private IOException ioFailure;
+
+		public Block(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm) {
+			this.data = data;
+			this.cryptoKey = cryptoKey;
+			this.cryptoAlgorithm = cryptoAlgorithm;
+			state = new AtomicInteger(NEW);
+		}
+
+		/** Get the encoded block. Encodes it if nobody has started to, and waits if a
+		 * worker is encoding it now. */
+		public ClientCHKBlock get() throws CHKEncodeException, IOException {
+			if(state.compareAndSet(NEW, ENCODING))
+				encode();
+			synchronized(this) {
+				boolean interrupted = false;
+				while(state.get() != DONE) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if(interrupted) Thread.currentThread().interrupt();
+				if(encodeFailure != null) throw encodeFailure;
+				if(ioFailure != null) throw ioFailure;
+				return encoded;
+			}
+		}
+
+		/** @return True if the block has been encoded in advance, or is being encoded. */
+		public boolean isStarted() {
+			return state.get() != NEW;
+		}
+
+		/** Called by a worker. */
+		boolean encodeIfNew() {
+			if(!state.compareAndSet(NEW, ENCODING)) return false;
+			encode();
+			return true;
+		}
+
+		private void encode() {
+			ClientCHKBlock block = null;
+			CHKEncodeException encodeFailure = null;
+			IOException ioFailure = null;
+			try {
+				byte[] buf = BucketTools.toByteArray(data);
+				assert(buf.length == CHKBlock.DATA_LENGTH); // All new splitfile inserts insert only complete blocks even at the end.
+				block = ClientCHKBlock.encodeSplitfileBlock(buf, cryptoKey, cryptoAlgorithm);
+			} catch (CHKEncodeException e) {
+				encodeFailure = e;
+			} catch (IOException e) {
+				ioFailure = e;
+			} catch (RuntimeException e) {
+				encodeFailure = new CHKEncodeException(e.toString(), e);
+			}
+			synchronized(this) {
+				encoded = block;
+				this.encodeFailure = encodeFailure;
+				this.ioFailure = ioFailure;
+				state.set(DONE);
+				notifyAll();
+			}
+		}
+
+	}
+
+	private final Executor executor;
+	private final int maxQueued;
+	private final int maxWorkers;
+	private final ConcurrentLinkedQueue<Block> queue;
+	private final AtomicInteger queued;
+	private final AtomicInteger workers;
+	private final AtomicInteger encodedInAdvance;
+	private final Worker worker;
+
+	/**
+	 * @param executor Runs the workers.
+	 * @param maxQueued The maximum number of blocks waiting to be encoded. If 0, nothing
+	 * is encoded in advance.
+	 */
+	public InsertBlockEncoder(Executor executor, int maxQueued) {
+		this.executor = executor;
+		this.maxQueued = maxQueued;
+		maxWorkers = Math.max(1, Runtime.getRuntime().availableProcessors());
+		queue = new ConcurrentLinkedQueue<Block>();
+		queued = new AtomicInteger();
+		workers = new AtomicInteger();
+		encodedInAdvance = new AtomicInteger();
+		worker = new Worker();
+	}
+
+	/**
+	 * Offer a block to be encoded in advance.
+	 * @return False if the queue is full, in which case the sender will encode it.
+	 */
+	public boolean offer(Block block) {
+		if(block.isStarted()) return false;
+		if(queued.incrementAndGet() > maxQueued) {
+			queued.decrementAndGet();
+			return false;
+		}
+		queue.add(block);
+		startWorker();
+		return true;
+	}
+
+	/** @return The number of blocks waiting to be encoded. */
+	public int countQueued() {
+		return queued.get();
+	}
+
+	/** @return The number of blocks which were encoded by the workers rather than by the
+	 * sender. */
+	public int countEncodedInAdvance() {
+		return encodedInAdvance.get();
+	}
+
+	private boolean startWorker() {
+		while(true) {
+			int w = workers.get();
+			if(w >= maxWorkers) return false;
+			if(workers.compareAndSet(w, w+1)) {
+				executor.execute(worker, "Insert block encoder");
+				return true;
+			}
+		}
+	}
+
+	private class Worker implements PrioRunnable {
+
+		@Override
+		public void run() {
+			while(true) {
+				int count = 0;
+				Block block;
+				while(count < BATCH_SIZE && (block = queue.poll()) != null) {
+					queued.decrementAndGet();
+					if(block.encodeIfNew()) {
+						encodedInAdvance.incrementAndGet();
+						count++;
+					}
+				}
+				if(count == BATCH_SIZE) continue;
+				workers.decrementAndGet();
+				// Something may have been added after we looked, while we were still counted,
+				// so offer() didn't start another worker.
+				if(!queue.isEmpty()) startWorker();
+				return;
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+": queued="+queued.get()+" workers="+workers.get()+" encoded in advance="+encodedInAdvance.get();
+	}
+
+}
@@ -26,6 +26,9 @@ public class MinimalSplitfileBlock implements SplitfileBlock {
 	public final int number;
 	private Bucket data;
 	boolean flag;
+	/** Preallocated storage for the whole download, if any. Transient requests only. */
+	private transient SplitFileFetcherStorage storage;
+	private transient int segNum;
 	
 	public MinimalSplitfileBlock(int n) {
 		this.number = n;
@@ -77,6 +80,18 @@ public class MinimalSplitfileBlock implements SplitfileBlock {
 		return ret;
 	}
 
+	/** Use preallocated storage for this block. */
+	synchronized void setStorage(SplitFileFetcherStorage storage, int segNum) {
+		this.storage = storage;
+		this.segNum = segNum;
+	}
+
+	@Override
+	public synchronized Bucket makePreallocatedBucket() {
+		if(storage == null) return null;
+		return storage.makeBlockBucket(segNum, number);
+	}
+
 	// Useful for debugging duplicate object bugs. But use the new logging infrastructure if you reinstate it, please.
 //	public void objectOnDeactivate(ObjectContainer container) {
 //		if(Logger.shouldLog(LogLevel.MINOR, this))
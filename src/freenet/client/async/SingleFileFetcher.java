@@ -45,7 +45,7 @@ import freenet.support.OOMHandler;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.StreamingDecompressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
@@ -1086,12 +1086,12 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
 					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
+					StreamingDecompressor decompressor = new StreamingDecompressor(pipeIn, decompressors, maxLen, context.mainExecutor);
+					InputStream decompressed = decompressor.execute();
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(decompressed, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
 					worker.start();
 					streamGenerator.writeTo(pipeOut, container, context);
-					decompressorManager.waitFinished();
+					decompressor.waitFinished();
 					worker.waitFinished();
 				} else streamGenerator.writeTo(output, container, context);
 				// We want to see anything thrown when these are closed.
@@ -1324,12 +1324,12 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
 					pipeIn.connect(pipeOut);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
+					StreamingDecompressor decompressor = new StreamingDecompressor(pipeIn, decompressors, maxLen, context.mainExecutor);
+					InputStream decompressed = decompressor.execute();
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(decompressed, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
 					worker.start();
 					streamGenerator.writeTo(pipeOut, container, context);
-					decompressorManager.waitFinished();
+					decompressor.waitFinished();
 					worker.waitFinished();
 				} else streamGenerator.writeTo(output, container, context);
 
@@ -134,6 +134,9 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 
 	private final int crossCheckBlocks;
 	private final SplitFileFetcherCrossSegment[] crossSegments;
+	/** Preallocated storage for all the blocks, if FetchContext.preallocateSplitfileStorage
+	 * is set. Transient only. */
+	private transient SplitFileFetcherStorage storage;
 	
 	public SplitFileFetcher(Metadata metadata, GetCompletionCallback rcb, ClientRequester parent2,
 			FetchContext newCtx, boolean deleteFetchContext, boolean realTimeFlag, List<? extends Compressor> decompressors2, ClientMetadata clientMetadata,
@@ -357,6 +360,34 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 		} catch (IOException e) {
 			throw new FetchException(FetchException.BUCKET_ERROR, "Unable to write Bloom filters for splitfile");
 		}
+		
+		if(!persistent && fetchContext.preallocateSplitfileStorage)
+			storage = makeStorage(segmentKeys, crossCheckBlocks, context);
+	}
+	
+	/** Preallocate a single file for all the blocks. If this fails we just use a separate
+	 * temporary bucket for each block. */
+	private SplitFileFetcherStorage makeStorage(SplitFileSegmentKeys[] segmentKeys, int crossCheckBlocks, ClientContext context) {
+		int[] dataBlocks = new int[segmentKeys.length];
+		int[] checkBlocks = new int[segmentKeys.length];
+		for(int i=0;i<segmentKeys.length;i++) {
+			dataBlocks[i] = segmentKeys[i].getDataBlocks();
+			checkBlocks[i] = segmentKeys[i].getCheckBlocks();
+		}
+		SplitFileFetcherStorage ret;
+		try {
+			ret = SplitFileFetcherStorage.create(context, dataBlocks, checkBlocks, crossCheckBlocks);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to preallocate storage for splitfile, using separate buckets: "+e, e);
+			return null;
+		}
+		for(SplitFileFetcherSegment segment : segments)
+			segment.setStorage(ret);
+		return ret;
+	}
+	
+	SplitFileFetcherStorage getStorage() {
+		return storage;
 	}
 	
 	private void allocateCrossDataBlock(SplitFileFetcherCrossSegment segment, Random random) {
@@ -433,7 +464,7 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 				throw new FetchException(FetchException.INVALID_METADATA, "Splitfile is "+length+" but length is "+length);
 			length = overrideLength;
 		}
-		SplitFileStreamGenerator streamGenerator = new SplitFileStreamGenerator(segments, length, crossCheckBlocks);
+		SplitFileStreamGenerator streamGenerator = new SplitFileStreamGenerator(segments, length, crossCheckBlocks, storage);
 		return streamGenerator;
 }
 
@@ -504,6 +535,9 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 			if(!cbWasActive) container.deactivate(cb, 1);
 		}
 		if(crossCheckBlocks != 0 && !persistent) finishSegments(container, context);
+		// The data has been written to the client, or the fetch failed.
+		// FEC jobs for healing may still be running, they hold their own references.
+		if(storage != null) storage.release();
 	}
 
 	@Override
@@ -192,7 +192,11 @@ public class SplitFileFetcherCrossSegment implements FECCallback {
 		FECQueue queue = context.fecQueue;
 		if(codec == null)
 			codec = FECCodec.getCodec(splitfileType, dataBlocks, decodeCheck.length);
-		FECJob job = new FECJob(codec, queue, decodeData, decodeCheck, CHKBlock.DATA_LENGTH, context.getBucketFactory(persistent), this, needsDecode, getPriorityClass(container), persistent);
+		FECCallback callback = this;
+		SplitFileFetcherStorage storage = persistent ? null : splitFetcher.getStorage();
+		if(storage != null)
+			callback = storage.wrapCallback(callback);
+		FECJob job = new FECJob(codec, queue, decodeData, decodeCheck, CHKBlock.DATA_LENGTH, context.getBucketFactory(persistent), callback, needsDecode, getPriorityClass(container), persistent);
 		codec.addToQueue(job, 
 				queue, container);
 		return true;
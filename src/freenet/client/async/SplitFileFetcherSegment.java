@@ -45,6 +45,7 @@ import freenet.support.Logger;
 import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
 import freenet.support.io.BucketTools;
 import freenet.support.io.MultiReaderBucket;
 
@@ -159,6 +160,9 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	
 	private transient FECCodec codec;
 	
+	/** Preallocated storage for the whole download, if any. Transient only. */
+	private transient SplitFileFetcherStorage storage;
+	
 	public SplitFileFetcherSegment(short splitfileType, SplitFileSegmentKeys keys, SplitFileFetcher fetcher, ArchiveContext archiveContext, FetchContext blockFetchContext, long maxTempLength, int recursionLevel, ClientRequester requester, int segNum, boolean ignoreLastDataBlock, boolean pre1254, int crossCheckBlocks, byte cryptoAlgorithm, byte[] forceCryptoKey, int maxRetries, boolean realTimeFlag) throws MetadataParseException, FetchException {
 		this.crossCheckBlocks = crossCheckBlocks;
 		this.keys = keys;
@@ -211,6 +215,60 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 		this.forceCryptoKey = forceCryptoKey;
 	}
 
+	/** Store the blocks in preallocated storage. Must be called before scheduling. */
+	synchronized void setStorage(SplitFileFetcherStorage storage) {
+		if(persistent) throw new IllegalStateException("Preallocated storage is transient only");
+		this.storage = storage;
+		for(MinimalSplitfileBlock block : dataBuckets)
+			block.setStorage(storage, segNum);
+		for(MinimalSplitfileBlock block : checkBuckets)
+			block.setStorage(storage, segNum);
+	}
+
+	/** Can we put this block in preallocated storage? Not if we already have it, because 
+	 * we might be reading it, and not if it is the last block and might be short. */
+	private synchronized boolean canUseStorage(int blockNo) {
+		if(storage == null || storage.isClosed()) return false;
+		if(ignoreLastDataBlock && blockNo == dataBuckets.length-1) return false;
+		MinimalSplitfileBlock block = getBlock(blockNo);
+		return block != null && !block.hasData();
+	}
+
+	/** Copy a block decoded elsewhere (e.g. by a cross-segment) into preallocated storage,
+	 * if possible, and free the original.
+	 * @return The bucket to use. */
+	private Bucket moveToStorage(Bucket data, int blockNo) {
+		if(!canUseStorage(blockNo)) return data;
+		if(storage.isInSlot(data, segNum, blockNo)) return data;
+		Bucket slot = storage.makeBlockBucket(segNum, blockNo);
+		try {
+			BucketTools.copy(data, slot);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to copy block "+blockNo+" to preallocated storage, keeping it separately: "+e, e);
+			return data;
+		}
+		data.free();
+		return slot;
+	}
+
+	/** Are the data blocks all in preallocated storage, so they can be written to the client
+	 * in one go? */
+	synchronized boolean isDataInStorage() {
+		if(storage == null || decodedData != null) return false;
+		for(int i=0;i<dataBuckets.length-crossCheckBlocks;i++) {
+			MinimalSplitfileBlock block = dataBuckets[i];
+			if(block == null) return false;
+			if(!storage.isInSlot(block.getData(), segNum, i)) return false;
+		}
+		return true;
+	}
+
+	/** The callback for FEC jobs. The storage must stay open until the job has finished. */
+	private FECCallback getFECCallback() {
+		if(storage == null) return this;
+		return storage.wrapCallback(this);
+	}
+
 	public synchronized boolean isFinished(ObjectContainer container) {
 		if(finished) return true;
 		// Deactivating parent is a *bad* side-effect, so avoid it.
@@ -609,6 +667,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 		if(persistent)
 			container.activate(this, 1);
 		if(data == null) throw new NullPointerException();
+		if(storage != null) data = moveToStorage(data, blockNo);
 		// FIXME RECONSTRUCT BLOCK FOR BINARY BLOB.
 		// Also can serve as an integrity check - if the key generated is wrong something is busted.
 		// Probably only worth the effort if we are actually adding to a binary blob???
@@ -811,7 +870,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 			}
 			if(codec == null)
 				codec = FECCodec.getCodec(splitfileType, dataBuckets.length, checkBuckets.length);
-			FECJob job = new FECJob(codec, queue, dataBuckets, checkBuckets, CHKBlock.DATA_LENGTH, context.getBucketFactory(persistent), this, true, parent.getPriorityClass(), persistent);
+			FECJob job = new FECJob(codec, queue, dataBuckets, checkBuckets, CHKBlock.DATA_LENGTH, context.getBucketFactory(persistent), getFECCallback(), true, parent.getPriorityClass(), persistent);
 			codec.addToQueue(job, 
 					queue, container);
 			if(logMINOR)
@@ -1027,7 +1086,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 					return; // Calling addToQueue now will NPE.
 				}
 			}
-			codec.addToQueue(new FECJob(codec, context.fecQueue, dataBuckets, checkBuckets, 32768, context.getBucketFactory(persistent), this, false, parent.getPriorityClass(), persistent),
+			codec.addToQueue(new FECJob(codec, context.fecQueue, dataBuckets, checkBuckets, 32768, context.getBucketFactory(persistent), getFECCallback(), false, parent.getPriorityClass(), persistent),
 					context.fecQueue, container);
 			if(persistent) {
 				container.deactivate(parent, 1);
@@ -1297,7 +1356,8 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	 */
 	private Bucket queueHeal(Bucket data, ObjectContainer container, ClientContext context) {
 		Bucket copy;
-		if(persistent) {
+		if(persistent || storage != null) {
+			// Preallocated storage will be freed when the download completes, so copy it.
 			try {
 				copy = context.tempBucketFactory.makeBucket(data.size());
 				BucketTools.copy(data, copy);
@@ -1973,8 +2033,12 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	 */
 	protected Bucket extract(ClientKeyBlock block, int blockNum, ObjectContainer container, ClientContext context) {
 		Bucket data;
+		BucketFactory bf = context.getBucketFactory(persistent);
+		// Decode straight into the block's slot in preallocated storage if possible.
+		if(storage != null && canUseStorage(blockNum))
+			bf = storage.makeBlockBucketFactory(segNum, blockNum);
 		try {
-			data = block.decode(context.getBucketFactory(persistent), (int)(Math.min(this.blockFetchContext.maxOutputLength, Integer.MAX_VALUE)), false);
+			data = block.decode(bf, (int)(Math.min(this.blockFetchContext.maxOutputLength, Integer.MAX_VALUE)), false);
 		} catch (KeyDecodeException e1) {
 			if(logMINOR)
 				Logger.minor(this, "Decode failure: "+e1, e1);
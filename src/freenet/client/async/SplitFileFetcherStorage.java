@@ -0,0 +1,262 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.FECCallback;
+import freenet.client.FECJob;
+import freenet.client.SplitfileBlock;
+import freenet.crypt.RandomSource;
+import freenet.crypt.SeekableCTRCipher;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.keys.CHKBlock;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.EncryptedRandomAccessThing;
+import freenet.support.io.FileChannelRandomAccessThing;
+import freenet.support.io.FilenameGenerator;
+import freenet.support.io.RandomAccessThing;
+import freenet.support.io.RandomAccessThingSliceBucket;
+import freenet.support.io.TempBucketFactory;
+
+/**
+ * Preallocated storage for a transient splitfile fetch. Instead of keeping every block in a
+ * separate temporary Bucket, we allocate one file for the whole download and give every
+ * block a fixed slot in it. The data blocks (excluding cross-check blocks) are laid out in
+ * order at the start of the file, so once the fetch has completed the first N bytes of the
+ * file are the (still compressed) splitfile data, and can be streamed to the client in a
+ * single pass. Check blocks and cross-check blocks go after the data.
+ *
+ * The blocks are RandomAccessThingSliceBucket's, so the FEC code can read and write stripes
+ * in place. The storage is reference counted: the fetcher holds one reference, and each
+ * FEC job holds one until its callback has completed, since encoding for healing can
+ * continue after the fetcher has returned the data.
+ *
+ * Not supported for persistent requests: The slices cannot be stored in the database.
+ */
+public class SplitFileFetcherStorage {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int BLOCK_SIZE = CHKBlock.DATA_LENGTH;
+
+	private final RandomAccessThing storage;
+	/** Offset of the first data block of each segment. */
+	private final long[] dataOffsets;
+	/** Offset of the first cross-check or check block of each segment. */
+	private final long[] extraOffsets;
+	/** Number of data blocks in each segment, not counting cross-check blocks. */
+	private final int[] realDataBlocks;
+	/** Number of blocks of each segment, including check blocks. */
+	private final int[] totalBlocks;
+	/** Length of the data at the start of the file. */
+	private final long dataLength;
+	private int refs;
+	private boolean closed;
+
+	/**
+	 * @param storage The storage. Must be at least storageLength(...) bytes.
+	 * @param dataBlocks The number of data blocks for each segment, including cross-check
+	 * blocks.
+	 * @param checkBlocks The number of check blocks for each segment.
+	 * @param crossCheckBlocks The number of cross-check blocks per segment.
+	 */
+	SplitFileFetcherStorage(RandomAccessThing storage, int[] dataBlocks, int[] checkBlocks, int crossCheckBlocks) {
+		this.storage = storage;
+		int segments = dataBlocks.length;
+		dataOffsets = new long[segments];
+		extraOffsets = new long[segments];
+		realDataBlocks = new int[segments];
+		totalBlocks = new int[segments];
+		long offset = 0;
+		for(int i=0;i<segments;i++) {
+			realDataBlocks[i] = dataBlocks[i] - crossCheckBlocks;
+			totalBlocks[i] = dataBlocks[i] + checkBlocks[i];
+			dataOffsets[i] = offset;
+			offset += (long)realDataBlocks[i] * BLOCK_SIZE;
+		}
+		dataLength = offset;
+		for(int i=0;i<segments;i++) {
+			extraOffsets[i] = offset;
+			offset += (long)(totalBlocks[i] - realDataBlocks[i]) * BLOCK_SIZE;
+		}
+		refs = 1;
+	}
+
+	/** @return The number of bytes needed for the given layout. */
+	static long storageLength(int[] dataBlocks, int[] checkBlocks) {
+		long blocks = 0;
+		for(int i=0;i<dataBlocks.length;i++)
+			blocks += dataBlocks[i] + checkBlocks[i];
+		return blocks * BLOCK_SIZE;
+	}
+
+	/**
+	 * Create storage for a download in a new temporary file. If temporary files are
+	 * encrypted, so is the storage.
+	 * @throws IOException If we can't create the file, e.g. because the disk is full.
+	 */
+	static SplitFileFetcherStorage create(ClientContext context, int[] dataBlocks, int[] checkBlocks, int crossCheckBlocks) throws IOException {
+		long length = storageLength(dataBlocks, checkBlocks);
+		RandomAccessThing rat = makeStorage(context.fg, length, context.getBucketFactory(false), context.random);
+		if(logMINOR) Logger.minor(SplitFileFetcherStorage.class, "Preallocated "+length+" bytes for splitfile: "+rat);
+		return new SplitFileFetcherStorage(rat, dataBlocks, checkBlocks, crossCheckBlocks);
+	}
+
+	private static RandomAccessThing makeStorage(FilenameGenerator fg, long length, BucketFactory bf, RandomSource random) throws IOException {
+		File file = fg.makeRandomFile();
+		FileChannelRandomAccessThing raf = new FileChannelRandomAccessThing(file, length, true);
+		if(bf instanceof TempBucketFactory && ((TempBucketFactory)bf).isEncrypting()) {
+			byte[] key = new byte[SeekableCTRCipher.KEY_LENGTH];
+			byte[] iv = new byte[SeekableCTRCipher.BLOCK_SIZE];
+			random.nextBytes(key);
+			random.nextBytes(iv);
+			try {
+				return new EncryptedRandomAccessThing(raf, key, iv);
+			} catch (UnsupportedCipherException e) {
+				raf.close();
+				throw new IOException("Temp files must be encrypted but can't use AES/CTR: "+e);
+			}
+		}
+		return raf;
+	}
+
+	/** @return The offset of the given block. Block numbers are as in SplitFileFetcherSegment,
+	 * i.e. check blocks are numbered after data blocks. */
+	long blockOffset(int segNum, int blockNum) {
+		if(blockNum < 0 || blockNum >= totalBlocks[segNum])
+			throw new IllegalArgumentException("Bad block number "+blockNum+" for segment "+segNum);
+		if(blockNum < realDataBlocks[segNum])
+			return dataOffsets[segNum] + (long)blockNum * BLOCK_SIZE;
+		else
+			return extraOffsets[segNum] + (long)(blockNum - realDataBlocks[segNum]) * BLOCK_SIZE;
+	}
+
+	/** @return An empty Bucket for the block's slot. We can safely have more than one
+	 * Bucket for the same slot, since a given block always has the same content. */
+	Bucket makeBlockBucket(int segNum, int blockNum) {
+		return new RandomAccessThingSliceBucket(storage, blockOffset(segNum, blockNum), BLOCK_SIZE, 0);
+	}
+
+	/** @return A BucketFactory which returns the slot for the given block. Decoding a block
+	 * into this avoids copying it later. */
+	BucketFactory makeBlockBucketFactory(final int segNum, final int blockNum) {
+		return new BucketFactory() {
+
+			@Override
+			public Bucket makeBucket(long size) throws IOException {
+				if(size > BLOCK_SIZE) throw new IOException("Too big for a block: "+size);
+				return makeBlockBucket(segNum, blockNum);
+			}
+
+		};
+	}
+
+	/** @return True if the bucket is already in the correct slot. */
+	boolean isInSlot(Bucket data, int segNum, int blockNum) {
+		if(!(data instanceof RandomAccessThingSliceBucket)) return false;
+		RandomAccessThingSliceBucket slice = (RandomAccessThingSliceBucket) data;
+		return slice.getUnderlying() == storage && slice.getOffset() == blockOffset(segNum, blockNum);
+	}
+
+	/** @return The length of the data blocks at the start of the storage. */
+	long getDataLength() {
+		return dataLength;
+	}
+
+	/** Write the first length bytes of the storage, which will be the data blocks once the
+	 * segments have all been decoded. */
+	void writeDataTo(OutputStream os, long length) throws IOException {
+		if(length > dataLength) throw new IllegalArgumentException("Too long: "+length+" > "+dataLength);
+		byte[] buf = new byte[BLOCK_SIZE * 8];
+		long offset = 0;
+		while(offset < length) {
+			int chunk = (int) Math.min(buf.length, length - offset);
+			storage.pread(offset, buf, 0, chunk);
+			os.write(buf, 0, chunk);
+			offset += chunk;
+		}
+	}
+
+	/** Release a reference. The file is deleted when the last reference is released. */
+	void release() {
+		synchronized(this) {
+			if(closed) return;
+			if(--refs > 0) return;
+			closed = true;
+		}
+		if(logMINOR) Logger.minor(this, "Freeing splitfile storage "+storage);
+		storage.close();
+	}
+
+	synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/** Wrap a FEC callback so that we hold a reference until the job has finished. */
+	FECCallback wrapCallback(final FECCallback cb) {
+		synchronized(this) {
+			if(closed) {
+				// The job will fail when it tries to read the blocks, and call onFailed().
+				Logger.error(this, "Starting FEC job after storage closed for "+cb, new Exception("error"));
+				return cb;
+			}
+			refs++;
+		}
+		return new FECCallback() {
+
+			@Override
+			public void onEncodedSegment(ObjectContainer container, ClientContext context, FECJob job, Bucket[] dataBuckets, Bucket[] checkBuckets, SplitfileBlock[] dataBlocks, SplitfileBlock[] checkBlocks) {
+				try {
+					cb.onEncodedSegment(container, context, job, dataBuckets, checkBuckets, dataBlocks, checkBlocks);
+				} finally {
+					release();
+				}
+			}
+
+			@Override
+			public void onDecodedSegment(ObjectContainer container, ClientContext context, FECJob job, Bucket[] dataBuckets, Bucket[] checkBuckets, SplitfileBlock[] dataBlocks, SplitfileBlock[] checkBlocks) {
+				try {
+					cb.onDecodedSegment(container, context, job, dataBuckets, checkBuckets, dataBlocks, checkBlocks);
+				} finally {
+					release();
+				}
+			}
+
+			@Override
+			public void onFailed(Throwable t, ObjectContainer container, ClientContext context) {
+				try {
+					cb.onFailed(t, container, context);
+				} finally {
+					release();
+				}
+			}
+
+			@Override
+			public String toString() {
+				return super.toString()+":"+cb;
+			}
+
+		};
+	}
+
+}
@@ -340,6 +340,10 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 				container.deactivate(parent.ctx, 1);
 		}
 		byte cryptoAlgorithm = getCryptoAlgorithm(container);
+		if(!persistent) {
+			tryEncodeTransient(cryptoAlgorithm, compressorDescriptor, context);
+			return;
+		}
 		for(int i=0;i<dataBlocks.length;i++) {
 			if(dataURIs[i] == null && dataBlocks[i] != null) {
 				try {
@@ -384,6 +388,65 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 		}
 	}
 
+	/** Encode the blocks in batches, each spread across the available cores. Only for transient
+	 * segments, since for persistent ones each bucket has to be activated in turn. Like the FEC
+	 * encoder, we keep no more than FECCodec.MAX_MEMORY_BUFFER of block data in memory at once. */
+	private void tryEncodeTransient(byte cryptoAlgorithm, String compressorDescriptor, ClientContext context) {
+		int blockCount = dataBlocks.length + (encoded ? checkBlocks.length : 0);
+		int batchSize = Math.max(1, FECCodec.MAX_MEMORY_BUFFER / CHKBlock.DATA_LENGTH);
+		for(int start=0;start<blockCount;start+=batchSize)
+			encodeTransientBatch(start, Math.min(batchSize, blockCount - start), cryptoAlgorithm, compressorDescriptor, context);
+	}
+
+	private void encodeTransientBatch(int start, int count, byte cryptoAlgorithm, String compressorDescriptor, ClientContext context) {
+		byte[][] data = new byte[count][];
+		for(int j=0;j<count;j++) {
+			int i = start + j;
+			if(getURI(i) != null) continue;
+			Bucket bucket = getBucket(i);
+			if(bucket == null) {
+				fail(new InsertException(InsertException.INTERNAL_ERROR, "Data block "+i+" cannot be encoded: no data", null), null, context);
+				continue;
+			}
+			try {
+				data[j] = BucketTools.toByteArray(bucket);
+				assert(data[j].length == CHKBlock.DATA_LENGTH); // All new splitfile inserts insert only complete blocks even at the end.
+			} catch (IOException e) {
+				fail(new InsertException(InsertException.BUCKET_ERROR, e, null), null, context);
+			}
+		}
+		ClientCHKBlock[] encodedBlocks;
+		try {
+			encodedBlocks = ClientCHKBlock.encodeSplitfileBlocks(data, cryptoKey, cryptoAlgorithm, context.mainExecutor);
+		} catch (CHKEncodeException e) {
+			// Don't lose the whole batch for one bad block: encode them one at a time, so only
+			// the block which actually fails fails the segment.
+			Logger.normal(this, "Batch encode failed, encoding blocks individually: "+e, e);
+			for(int j=0;j<count;j++) {
+				if(data[j] == null) continue;
+				data[j] = null;
+				int i = start + j;
+				try {
+					ClientCHK key = encodeBucket(getBucket(i), compressorDescriptor, cryptoAlgorithm, cryptoKey).getClientKey();
+					onEncode(i, key, null, context);
+				} catch (CHKEncodeException e1) {
+					fail(new InsertException(InsertException.INTERNAL_ERROR, e1, null), null, context);
+				} catch (IOException e1) {
+					fail(new InsertException(InsertException.BUCKET_ERROR, e1, null), null, context);
+				}
+			}
+			return;
+		}
+		for(int j=0;j<count;j++) {
+			if(encodedBlocks[j] != null)
+				onEncode(start + j, encodedBlocks[j].getClientKey(), null, context);
+		}
+	}
+
+	private ClientCHK getURI(int i) {
+		return i < dataBlocks.length ? dataURIs[i] : checkURIs[i-dataBlocks.length];
+	}
+
 	private byte getCryptoAlgorithm(ObjectContainer container) {
 		if(cryptoAlgorithm == 0) {
 			// Only happens with really old splitfiles.
@@ -788,6 +851,8 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 		private final int blockNum;
 		final byte cryptoAlgorithm;
 		public byte[] cryptoKey;
+		/** Encodes the block, possibly in advance on the InsertBlockEncoder. */
+		final InsertBlockEncoder.Block encoder;
 
 		BlockItem(SplitFileInserterSegment parent, int blockNum, Bucket bucket, boolean persistent, byte cryptoAlgorithm, byte[] cryptoKey) throws IOException {
 			this.parent = parent;
@@ -797,6 +862,7 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 			this.persistent = persistent;
 			this.cryptoAlgorithm = cryptoAlgorithm;
 			this.cryptoKey = cryptoKey;
+			this.encoder = new InsertBlockEncoder.Block(bucket, cryptoKey, cryptoAlgorithm);
 		}
 
 		@Override
@@ -1241,7 +1307,7 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 					ClientCHKBlock encodedBlock;
 					CHKBlock b;
 					try {
-						encodedBlock = encodeBucket(block.copyBucket, compressorDescriptor, block.cryptoAlgorithm, block.cryptoKey);
+						encodedBlock = block.encoder.get();
 						b = encodedBlock.getBlock();
 					} catch (CHKEncodeException e) {
 						throw new LowLevelPutException(LowLevelPutException.INTERNAL_ERROR, e.toString() + ":" + e.getMessage()+" for "+block.copyBucket, e);
@@ -1360,6 +1426,10 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 			if(logMINOR) Logger.minor(this, "Created block "+block+" for block number "+blockNumber+" on "+this);
 			ret.add(block);
 		}
+		// The request starter will send these one at a time, on separate threads. Encode
+		// them in the background meanwhile, so the sender threads don't have to.
+		for(PersistentChosenBlock block : ret)
+			if(!context.insertBlockEncoder.offer(((BlockItem)block.token).encoder)) break;
 		if(persistent) {
 			container.deactivate(blocks, 1);
 		}
@@ -21,6 +21,8 @@ public class SplitFileStreamGenerator implements StreamGenerator {
 	private final SplitFileFetcherSegment[] segments;
 	private final long length;
 	private final int crossCheckBlocks;
+	/** Preallocated storage, if any. */
+	private final SplitFileFetcherStorage storage;
 
         private static volatile boolean logMINOR;
 	static {
@@ -32,10 +34,11 @@ public class SplitFileStreamGenerator implements StreamGenerator {
 		});
 	}
 
-	SplitFileStreamGenerator(SplitFileFetcherSegment[] segments, long length, int crossCheckBlocks) {
+	SplitFileStreamGenerator(SplitFileFetcherSegment[] segments, long length, int crossCheckBlocks, SplitFileFetcherStorage storage) {
 		this.segments = segments;
 		this.length = length;
 		this.crossCheckBlocks = crossCheckBlocks;
+		this.storage = storage;
 	}
 
 	@Override
@@ -43,11 +46,21 @@ public class SplitFileStreamGenerator implements StreamGenerator {
 			ClientContext context) throws IOException {
 		try {
 			if(logMINOR) Logger.minor(this, "Generating Stream", new Exception("debug"));
-			long bytesWritten = 0;
-			for(SplitFileFetcherSegment segment : segments) {
-				long max = (length < 0 ? 0 : (length - bytesWritten));
-				bytesWritten += segment.writeDecodedDataTo(os, max, container);
-				if(crossCheckBlocks == 0) segment.fetcherHalfFinished(container);
+			if(canWriteFromStorage()) {
+				// The data blocks are already in order at the start of the file.
+				if(logMINOR) Logger.minor(this, "Writing directly from preallocated storage");
+				storage.writeDataTo(os, length);
+				if(crossCheckBlocks == 0) {
+					for(SplitFileFetcherSegment segment : segments)
+						segment.fetcherHalfFinished(container);
+				}
+			} else {
+				long bytesWritten = 0;
+				for(SplitFileFetcherSegment segment : segments) {
+					long max = (length < 0 ? 0 : (length - bytesWritten));
+					bytesWritten += segment.writeDecodedDataTo(os, max, container);
+					if(crossCheckBlocks == 0) segment.fetcherHalfFinished(container);
+				}
 			}
 			if(logMINOR) Logger.minor(this, "Stream completely generated", new Exception("debug"));
 			os.close();
@@ -56,6 +69,15 @@ public class SplitFileStreamGenerator implements StreamGenerator {
 		}
 	}
 
+	private boolean canWriteFromStorage() {
+		if(storage == null || length < 0 || length > storage.getDataLength()) return false;
+		for(SplitFileFetcherSegment segment : segments) {
+			// A block may have been kept separately, e.g. if we couldn't copy it.
+			if(!segment.isDataInStorage()) return false;
+		}
+		return true;
+	}
+
 	@Override
 	public long size() {
 		return length;
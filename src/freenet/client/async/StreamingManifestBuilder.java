@@ -0,0 +1,696 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.ClientMetadata;
+import freenet.client.DefaultMIMETypes;
+import freenet.client.HighLevelSimpleClient;
+import freenet.client.InsertBlock;
+import freenet.client.InsertContext;
+import freenet.client.InsertException;
+import freenet.client.Metadata;
+import freenet.client.MetadataParseException;
+import freenet.client.MetadataUnresolvedException;
+import freenet.client.Metadata.SimpleManifestComposer;
+import freenet.client.PutWaiter;
+import freenet.keys.FreenetURI;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.Closer;
+import freenet.support.io.FileBucket;
+
+/**
+ * Inserts a directory tree on disk as a freesite, without holding the whole tree in
+ * memory. BaseManifestPutter needs every ManifestElement up front and builds all the
+ * metadata at once, which for a site with hundreds of thousands of files takes
+ * gigabytes.
+ *
+ * <P>Here the tree is walked lazily, one directory listing at a time. Small files
+ * are packed into tar containers (using the same limits as DefaultManifestPutter),
+ * and big files are inserted on their own. These inserts run in parallel on the
+ * executor, with a bounded number in flight. Each directory's entries are written to
+ * a temporary bucket as we go, rather than kept in memory. Once all the inserts for
+ * a directory have finished, its manifest is built from the bucket and either
+ * included in its parent's manifest, if it is small, or inserted separately.
+ *
+ * <P>Memory use is bounded by the depth of the tree, the largest single directory,
+ * and the number of inserts in flight, rather than the number of files.
+ *
+ * <P>Not persistent. The actual inserts are done by an Inserter, which is called on
+ * the executor's threads, and may block. HighLevelSimpleClient.insertManifest(FreenetURI,
+ * File, String, short) uses a ClientInserter, which does blocking inserts through the
+ * client.
+ */
+public class StreamingManifestBuilder {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(StreamingManifestBuilder.class);
+	}
+
+	/** Does the actual inserts. Called on the executor's threads, possibly several at
+	 * once, and may block until the insert has finished. */
+	public interface Inserter {
+
+		/** Insert a single file.
+		 * @return The URI of the file. */
+		FreenetURI insertFile(Bucket data, String mimeType) throws InsertException;
+
+		/** Insert a tar archive as an archive manifest. The first file in the archive is
+		 * .metadata, which is a manifest for the rest of the archive.
+		 * @return The URI of the archive manifest. */
+		FreenetURI insertContainer(Bucket tar) throws InsertException;
+
+		/** Insert a manifest, as metadata.
+		 * @param root True for the top level manifest, which is inserted last, at the
+		 * site's URI. The others are inserted as CHKs.
+		 * @return The URI of the manifest. */
+		FreenetURI insertManifest(Bucket metadata, boolean root) throws InsertException;
+
+	}
+
+	/** Inserts through a HighLevelSimpleClient, one blocking insert at a time per thread. */
+	public static class ClientInserter implements Inserter {
+
+		private final HighLevelSimpleClient client;
+		private final FreenetURI insertURI;
+		private final BucketFactory bf;
+		private final InsertContext ctx;
+		private final short priorityClass;
+
+		/**
+		 * @param insertURI Where to insert the top level manifest.
+		 * @param bf Used for the archive manifests.
+		 */
+		public ClientInserter(HighLevelSimpleClient client, FreenetURI insertURI, BucketFactory bf, short priorityClass) {
+			this.client = client;
+			this.insertURI = insertURI;
+			this.bf = bf;
+			this.ctx = client.getInsertContext(true);
+			this.priorityClass = priorityClass;
+		}
+
+		private FreenetURI insert(Bucket data, ClientMetadata cm, FreenetURI uri, boolean isMetadata) throws InsertException {
+			PutWaiter pw = new PutWaiter();
+			client.insert(new InsertBlock(data, cm, uri), false, null, isMetadata, ctx, pw, priorityClass);
+			return pw.waitForCompletion();
+		}
+
+		@Override
+		public FreenetURI insertFile(Bucket data, String mimeType) throws InsertException {
+			return insert(data, clientMetadata(mimeType), FreenetURI.EMPTY_CHK_URI, false);
+		}
+
+		/** Insert the tar, and then an archive manifest pointing to it, as
+		 * ContainerInserter does. */
+		@Override
+		public FreenetURI insertContainer(Bucket tar) throws InsertException {
+			String mimeType = ARCHIVE_TYPE.TAR.mimeTypes[0];
+			FreenetURI data = insert(tar, new ClientMetadata(mimeType), FreenetURI.EMPTY_CHK_URI, false);
+			Metadata m = new Metadata(Metadata.ARCHIVE_MANIFEST, ARCHIVE_TYPE.TAR, null, data, new ClientMetadata(mimeType));
+			Bucket bucket = null;
+			try {
+				bucket = BucketTools.makeImmutableBucket(bf, m.writeToByteArray());
+				return insert(bucket, null, FreenetURI.EMPTY_CHK_URI, true);
+			} catch (IOException e) {
+				throw new InsertException(InsertException.BUCKET_ERROR, e, null);
+			} catch (MetadataUnresolvedException e) {
+				// Impossible, it is a single redirect.
+				throw new InsertException(InsertException.INTERNAL_ERROR, e, null);
+			} finally {
+				if(bucket != null) bucket.free();
+			}
+		}
+
+		@Override
+		public FreenetURI insertManifest(Bucket metadata, boolean root) throws InsertException {
+			return insert(metadata, null, root ? insertURI : FreenetURI.EMPTY_CHK_URI, true);
+		}
+
+	}
+
+	/** A subdirectory whose manifest is smaller than this is included in its parent's
+	 * manifest rather than inserted separately. */
+	static final int MAX_INLINE_MANIFEST = 1024;
+	/** Space taken in a container by each file, on top of its data. The tar header and
+	 * padding, and the entry in .metadata. */
+	static final int CONTAINER_ITEM_OVERHEAD = 1024;
+
+	private static final byte CONTAINER_ITEM = 0;
+	private static final byte EXTERNAL = 1;
+	private static final byte SUBDIR = 2;
+
+	private final File root;
+	private final Inserter inserter;
+	private final BucketFactory bf;
+	private final Executor executor;
+	/** Limits the number of file and container inserts in flight. */
+	private final Semaphore inserts;
+	private final int maxInserts;
+	private final long maxContainerSize;
+	private final long maxContainerItemSize;
+	private final String defaultName;
+	private final boolean includeHiddenFiles;
+
+	private InsertException failure;
+	private boolean finished;
+	private FreenetURI rootURI;
+
+	private int files;
+	private long bytes;
+	private int containers;
+	private int externals;
+	private int insertedManifests;
+	private int inlineManifests;
+
+	/**
+	 * @param root The directory to insert.
+	 * @param inserter Does the actual inserts.
+	 * @param bf Used for the temporary buckets.
+	 * @param executor Runs the inserts.
+	 * @param maxInserts The maximum number of file and container inserts in
+	 * flight at once. Also bounds the memory used for containers.
+	 * @param defaultName The default document in each directory, or null.
+	 * @param includeHiddenFiles If false, skip hidden files.
+	 */
+	public StreamingManifestBuilder(File root, Inserter inserter, BucketFactory bf, Executor executor,
+			int maxInserts, String defaultName, boolean includeHiddenFiles) {
+		this(root, inserter, bf, executor, maxInserts, defaultName, includeHiddenFiles,
+				DefaultManifestPutter.DEFAULT_MAX_CONTAINERSIZE - DefaultManifestPutter.DEFAULT_CONTAINERSIZE_SPARE,
+				DefaultManifestPutter.DEFAULT_MAX_CONTAINERITEMSIZE);
+	}
+
+	StreamingManifestBuilder(File root, Inserter inserter, BucketFactory bf, Executor executor,
+			int maxInserts, String defaultName, boolean includeHiddenFiles, long maxContainerSize,
+			long maxContainerItemSize) {
+		if(maxInserts <= 0) throw new IllegalArgumentException();
+		this.root = root;
+		this.inserter = inserter;
+		this.bf = bf;
+		this.executor = executor;
+		this.inserts = new Semaphore(maxInserts);
+		this.maxInserts = maxInserts;
+		this.defaultName = defaultName;
+		this.includeHiddenFiles = includeHiddenFiles;
+		this.maxContainerSize = maxContainerSize;
+		this.maxContainerItemSize = maxContainerItemSize;
+	}
+
+	/** A directory we are listing, or waiting for the inserts for. */
+	private final class Dir {
+
+		final Dir parent;
+		/** Our slot in the parent's results. */
+		final int parentSlot;
+		final File dir;
+		final String[] names;
+		/** The next name to look at. Only used by the walker. */
+		int next;
+		/** The entries, spilled to disk. Written by the walker, read by finish(). */
+		final Bucket spill;
+		private DataOutputStream spillOS;
+		/** The results of inserts, by slot. FreenetURI, or byte[] for an inline
+		 * manifest, or null if it failed. */
+		private final ArrayList<Object> results = new ArrayList<Object>();
+		private int outstanding;
+		private boolean listed;
+		private boolean finishing;
+
+		/** The container we are filling. Only used by the walker. */
+		private ArrayList<File> batchFiles;
+		private ArrayList<String> batchNames;
+		private long batchSize;
+		private int batchSlot;
+
+		Dir(Dir parent, int parentSlot, File dir) throws IOException {
+			this.parent = parent;
+			this.parentSlot = parentSlot;
+			this.dir = dir;
+			String[] list = dir.list();
+			if(list == null) throw new IOException("Unable to list "+dir);
+			Arrays.sort(list);
+			names = list;
+			spill = bf.makeBucket(-1);
+			spillOS = new DataOutputStream(new BufferedOutputStream(spill.getOutputStream()));
+		}
+
+		synchronized int allocateSlot() {
+			results.add(null);
+			outstanding++;
+			return results.size() - 1;
+		}
+
+		void write(byte type, String name, int slot, String mimeType) throws IOException {
+			spillOS.writeByte(type);
+			spillOS.writeUTF(name);
+			spillOS.writeInt(slot);
+			spillOS.writeUTF(mimeType == null ? "" : mimeType);
+		}
+
+		void addSmallFile(String name, File f, long size, String mimeType) throws IOException, InterruptedException {
+			long itemSize = size + CONTAINER_ITEM_OVERHEAD + 2 * name.length();
+			if(batchFiles != null && batchSize + itemSize > maxContainerSize)
+				startContainer();
+			if(batchFiles == null) {
+				batchFiles = new ArrayList<File>();
+				batchNames = new ArrayList<String>();
+				batchSize = 0;
+				batchSlot = allocateSlot();
+			}
+			batchFiles.add(f);
+			batchNames.add(name);
+			batchSize += itemSize;
+			write(CONTAINER_ITEM, name, batchSlot, mimeType);
+		}
+
+		void startContainer() throws InterruptedException {
+			if(batchFiles == null) return;
+			final File[] f = batchFiles.toArray(new File[batchFiles.size()]);
+			final String[] n = batchNames.toArray(new String[batchNames.size()]);
+			final int slot = batchSlot;
+			batchFiles = null;
+			batchNames = null;
+			submit(new Runnable() {
+
+				@Override
+				public void run() {
+					Object result = null;
+					try {
+						result = insertContainer(f, n);
+					} catch (InsertException e) {
+						fail(e);
+					} catch (Throwable t) {
+						fail(t);
+					} finally {
+						completed(slot, result);
+					}
+				}
+
+			}, "Insert container for "+dir, this, slot);
+		}
+
+		/** The walker has finished with this directory. */
+		void endListing() {
+			try {
+				if(failure() == null)
+					startContainer();
+				spillOS.close();
+			} catch (IOException e) {
+				fail(e);
+			} catch (InterruptedException e) {
+				fail(e);
+			} finally {
+				Closer.close(spillOS);
+				spillOS = null;
+			}
+			synchronized(this) {
+				listed = true;
+			}
+			maybeFinish();
+		}
+
+		void completed(int slot, Object result) {
+			synchronized(this) {
+				results.set(slot, result);
+				outstanding--;
+			}
+			maybeFinish();
+		}
+
+		/** Finish once everything has been inserted, or straight away if we have
+		 * failed, in which case anything still running is ignored. */
+		private void maybeFinish() {
+			synchronized(this) {
+				if(finishing || !listed) return;
+				if(outstanding > 0 && failure() == null) return;
+				finishing = true;
+			}
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					Object result = null;
+					try {
+						if(failure() == null)
+							result = finish(Dir.this);
+					} catch (InsertException e) {
+						fail(e);
+					} catch (Throwable t) {
+						fail(t);
+					} finally {
+						spill.free();
+						if(parent != null)
+							parent.completed(parentSlot, result);
+						else
+							rootCompleted((FreenetURI) result);
+					}
+				}
+
+			}, "Finish manifest for "+dir);
+		}
+
+		synchronized Object getResult(int slot) {
+			return results.get(slot);
+		}
+
+	}
+
+	/**
+	 * Insert the directory tree. Blocks until everything has been inserted.
+	 * @return The URI of the top level manifest.
+	 */
+	public FreenetURI run() throws InsertException {
+		ArrayList<Dir> stack = new ArrayList<Dir>();
+		try {
+			stack.add(new Dir(null, -1, root));
+		} catch (IOException e) {
+			throw new InsertException(InsertException.BUCKET_ERROR, e, null);
+		}
+		try {
+			while(!stack.isEmpty()) {
+				if(failure() != null) break;
+				Dir d = stack.get(stack.size()-1);
+				if(d.next == d.names.length) {
+					stack.remove(stack.size()-1);
+					d.endListing();
+					continue;
+				}
+				String name = d.names[d.next++];
+				File f = new File(d.dir, name);
+				if(f.isHidden() && !includeHiddenFiles) continue;
+				if(!(f.canRead() && f.exists())) {
+					Logger.error(this, "Skipping unreadable file "+f);
+					continue;
+				}
+				if(f.isDirectory()) {
+					int slot = d.allocateSlot();
+					Dir sub;
+					try {
+						d.write(SUBDIR, name, slot, null);
+						sub = new Dir(d, slot, f);
+					} catch (IOException e) {
+						d.completed(slot, null);
+						throw e;
+					}
+					stack.add(sub);
+				} else if(f.isFile()) {
+					addFile(d, name, f);
+				} else {
+					Logger.error(this, "Skipping "+f+" : not a file or a directory");
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (InterruptedException e) {
+			fail(e);
+		}
+		// Clean up after a failure.
+		for(int i=stack.size()-1;i>=0;i--)
+			stack.get(i).endListing();
+		synchronized(this) {
+			while(!finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		}
+		// If we failed, wait for any inserts still running.
+		inserts.acquireUninterruptibly(maxInserts);
+		inserts.release(maxInserts);
+		synchronized(this) {
+			if(failure != null) throw failure;
+			return rootURI;
+		}
+	}
+
+	private void addFile(Dir d, String name, File f) throws IOException, InterruptedException {
+		long size = f.length();
+		String mimeType = DefaultMIMETypes.guessMIMEType(name, true);
+		synchronized(this) {
+			files++;
+			bytes += size;
+		}
+		if(size > maxContainerItemSize) {
+			final int slot = d.allocateSlot();
+			try {
+				d.write(EXTERNAL, name, slot, mimeType);
+			} catch (IOException e) {
+				d.completed(slot, null);
+				throw e;
+			}
+			final Bucket data = new FileBucket(f, true, false, false, false, false);
+			final String mime = mimeType;
+			final Dir dir = d;
+			submit(new Runnable() {
+
+				@Override
+				public void run() {
+					Object result = null;
+					try {
+						result = inserter.insertFile(data, mime);
+						synchronized(StreamingManifestBuilder.this) {
+							externals++;
+						}
+					} catch (InsertException e) {
+						fail(e);
+					} catch (Throwable t) {
+						fail(t);
+					} finally {
+						dir.completed(slot, result);
+					}
+				}
+
+			}, "Insert "+f, d, slot);
+		} else {
+			d.addSmallFile(name, f, size, mimeType);
+		}
+	}
+
+	/** Run an insert on the executor, once there is room for it. The job must call
+	 * completed() on the directory when it finishes; if we are interrupted before
+	 * starting it, we call it here. */
+	private void submit(final Runnable job, String name, Dir d, int slot) throws InterruptedException {
+		try {
+			inserts.acquire();
+		} catch (InterruptedException e) {
+			d.completed(slot, null);
+			throw e;
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					job.run();
+				} finally {
+					inserts.release();
+				}
+			}
+
+		}, name);
+	}
+
+	private static ClientMetadata clientMetadata(String mimeType) {
+		if(mimeType == null || mimeType.length() == 0 || mimeType.equals(DefaultMIMETypes.DEFAULT_MIME_TYPE))
+			return null;
+		return new ClientMetadata(mimeType);
+	}
+
+	/** Pack the files into a tar, with a .metadata manifest, and insert it. */
+	private FreenetURI insertContainer(File[] files, String[] names) throws IOException, InsertException {
+		SimpleManifestComposer smc = new SimpleManifestComposer();
+		for(int i=0;i<files.length;i++) {
+			ClientMetadata cm = clientMetadata(DefaultMIMETypes.guessMIMEType(names[i], true));
+			smc.addItem(names[i], new Metadata(Metadata.ARCHIVE_INTERNAL_REDIRECT, null, null, names[i], cm));
+		}
+		byte[] metadata;
+		try {
+			metadata = smc.getMetadata().writeToByteArray();
+		} catch (MetadataUnresolvedException e) {
+			// Impossible, the entries are tiny.
+			throw new InsertException(InsertException.INTERNAL_ERROR, e, null);
+		}
+		Bucket tar = bf.makeBucket(-1);
+		OutputStream os = null;
+		try {
+			os = new BufferedOutputStream(tar.getOutputStream());
+			TarArchiveOutputStream tarOS = new TarArchiveOutputStream(os);
+			tarOS.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+			TarArchiveEntry ze = new TarArchiveEntry(".metadata");
+			ze.setModTime(0);
+			ze.setSize(metadata.length);
+			tarOS.putArchiveEntry(ze);
+			tarOS.write(metadata);
+			tarOS.closeArchiveEntry();
+			for(int i=0;i<files.length;i++) {
+				Bucket data = new FileBucket(files[i], true, false, false, false, false);
+				long size = data.size();
+				ze = new TarArchiveEntry(names[i]);
+				ze.setModTime(0);
+				ze.setSize(size);
+				tarOS.putArchiveEntry(ze);
+				BucketTools.copyTo(data, tarOS, size);
+				tarOS.closeArchiveEntry();
+			}
+			tarOS.close();
+			os = null;
+			if(logMINOR) Logger.minor(this, "Container with "+files.length+" files is "+tar.size()+" bytes");
+			FreenetURI uri = inserter.insertContainer(tar);
+			synchronized(this) {
+				containers++;
+			}
+			return uri;
+		} finally {
+			Closer.close(os);
+			tar.free();
+		}
+	}
+
+	/** Build the manifest for a directory, once all its inserts have finished.
+	 * @return The URI of the manifest, or the manifest itself if it is small. */
+	private Object finish(Dir d) throws IOException, InsertException {
+		SimpleManifestComposer smc = new SimpleManifestComposer();
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(d.spill.getInputStream()));
+			while(true) {
+				byte type;
+				try {
+					type = dis.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				String name = dis.readUTF();
+				int slot = dis.readInt();
+				ClientMetadata cm = clientMetadata(dis.readUTF());
+				Object result = d.getResult(slot);
+				if(result == null)
+					throw new InsertException(InsertException.INTERNAL_ERROR, "No result for "+name+" in "+d.dir, null);
+				Metadata m;
+				switch(type) {
+				case CONTAINER_ITEM:
+					m = new Metadata(Metadata.SIMPLE_REDIRECT, null, null, ((FreenetURI) result).pushMetaString(name), cm);
+					break;
+				case EXTERNAL:
+					m = new Metadata(Metadata.SIMPLE_REDIRECT, null, null, (FreenetURI) result, cm);
+					break;
+				case SUBDIR:
+					if(result instanceof byte[]) {
+						try {
+							m = Metadata.construct((byte[]) result);
+						} catch (MetadataParseException e) {
+							throw new InsertException(InsertException.INTERNAL_ERROR, e, null);
+						}
+					} else
+						m = new Metadata(Metadata.SIMPLE_REDIRECT, null, null, (FreenetURI) result, null);
+					break;
+				default:
+					throw new IOException("Bad entry type "+type+" for "+d.dir);
+				}
+				smc.addItem(name, m);
+				if(type != SUBDIR && name.equals(defaultName))
+					smc.addItem("", m);
+			}
+		} finally {
+			Closer.close(dis);
+		}
+		byte[] data;
+		try {
+			data = smc.getMetadata().writeToByteArray();
+		} catch (MetadataUnresolvedException e) {
+			// Impossible, sub-manifests included inline are small.
+			throw new InsertException(InsertException.INTERNAL_ERROR, e, null);
+		}
+		if(d.parent != null && data.length <= MAX_INLINE_MANIFEST) {
+			synchronized(this) {
+				inlineManifests++;
+			}
+			return data;
+		}
+		Bucket bucket = BucketTools.makeImmutableBucket(bf, data);
+		try {
+			FreenetURI uri = inserter.insertManifest(bucket, d.parent == null);
+			synchronized(this) {
+				insertedManifests++;
+			}
+			return uri;
+		} finally {
+			bucket.free();
+		}
+	}
+
+	private synchronized InsertException failure() {
+		return failure;
+	}
+
+	private void fail(Throwable t) {
+		InsertException e;
+		if(t instanceof InsertException)
+			e = (InsertException) t;
+		else if(t instanceof IOException)
+			e = new InsertException(InsertException.BUCKET_ERROR, t, null);
+		else
+			e = new InsertException(InsertException.INTERNAL_ERROR, t, null);
+		synchronized(this) {
+			if(failure != null) return;
+			failure = e;
+		}
+		Logger.error(this, "Insert of "+root+" failed: "+e, e);
+	}
+
+	private synchronized void rootCompleted(FreenetURI uri) {
+		rootURI = uri;
+		finished = true;
+		notifyAll();
+	}
+
+	public synchronized int countFiles() {
+		return files;
+	}
+
+	public synchronized long countBytes() {
+		return bytes;
+	}
+
+	public synchronized int countContainers() {
+		return containers;
+	}
+
+	public synchronized int countExternals() {
+		return externals;
+	}
+
+	/** @return The number of directory manifests inserted separately. */
+	public synchronized int countInsertedManifests() {
+		return insertedManifests;
+	}
+
+	/** @return The number of directory manifests included in their parent's. */
+	public synchronized int countInlineManifests() {
+		return inlineManifests;
+	}
+
+}
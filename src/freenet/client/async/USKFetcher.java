@@ -4,6 +4,7 @@
 package freenet.client.async;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -54,7 +55,7 @@ import freenet.support.RemoveRangeArrayList;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.StreamingDecompressor;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
 
@@ -219,12 +220,12 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
 					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
+					StreamingDecompressor decompressor = new StreamingDecompressor(pipeIn, decompressors, maxLen, context.mainExecutor);
+					InputStream decompressed = decompressor.execute();
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(decompressed, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
 					worker.start();
 					streamGenerator.writeTo(pipeOut, container, context);
-					decompressorManager.waitFinished();
+					decompressor.waitFinished();
 					worker.waitFinished();
 				} else streamGenerator.writeTo(output, container, context);
 
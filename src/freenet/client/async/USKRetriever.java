@@ -4,6 +4,7 @@
 package freenet.client.async;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -28,7 +29,7 @@ import freenet.support.Logger;
 import freenet.support.OOMHandler;
 import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.StreamingDecompressor;
 import freenet.support.io.Closer;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
@@ -102,7 +103,6 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 	public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, final ClientGetState state, ObjectContainer container, ClientContext context) {
 		if(logMINOR)
 			Logger.minor(this, "Success on "+this+" from "+state+" : length "+streamGenerator.size()+"mime type "+clientMetadata.getMIMEType());
-		DecompressorThreadManager decompressorManager = null;
 		OutputStream output = null;
 		Bucket finalResult = null;
 		long maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
@@ -131,9 +131,9 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 				}
 				pipeIn = new PipedInputStream();
 				pipeOut = new PipedOutputStream(pipeIn);
-				decompressorManager = new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-				pipeIn = decompressorManager.execute();
-				ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
+				StreamingDecompressor decompressor = new StreamingDecompressor(pipeIn, decompressors, maxLen, context.mainExecutor);
+				InputStream decompressed = decompressor.execute();
+				ClientGetWorkerThread worker = new ClientGetWorkerThread(decompressed, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
 				worker.start();
 				streamGenerator.writeTo(pipeOut, container, context);
 				worker.waitFinished();
@@ -37,7 +37,9 @@ import freenet.node.Version;
 import freenet.node.fcp.AddPeer;
 import freenet.node.updater.NodeUpdateManager;
 import freenet.support.Fields;
+import freenet.support.DeferredHTMLNode;
 import freenet.support.HTMLNode;
+import freenet.support.HTMLWriter;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.MultiValueTable;
@@ -184,7 +186,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
                         return;
                 }
 
-                String path = uri.getPath();
+                final String path = uri.getPath();
 		if(path.endsWith("myref.fref")) {
 			SimpleFieldSet fs = getNoderef();
 			StringWriter sw = new StringWriter();
@@ -207,10 +209,10 @@ public abstract class ConnectionsToadlet extends Toadlet {
 		final DecimalFormat fix1 = new DecimalFormat("##0.0%");
 				
 		final boolean fProxyJavascriptEnabled = node.isFProxyJavascriptEnabled();
-		boolean drawMessageTypes = path.endsWith("displaymessagetypes.html");
+		final boolean drawMessageTypes = path.endsWith("displaymessagetypes.html");
 		
 		/* gather connection statistics */
-		PeerNodeStatus[] peerNodeStatuses = getPeerNodeStatuses(!drawMessageTypes);
+		final PeerNodeStatus[] peerNodeStatuses = getPeerNodeStatuses(!drawMessageTypes);
 		Arrays.sort(peerNodeStatuses, comparator(request.getParam("sortBy", null), request.isParameterSet("reversed")));
 		
 		int numberOfConnected = PeerNodeStatus.getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_CONNECTED);
@@ -244,7 +246,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 		HTMLNode contentNode = page.content;
 		
 		// FIXME! We need some nice images
-		long now = System.currentTimeMillis();
+		final long now = System.currentTimeMillis();
 	
 		if(ctx.isAllowedFullAccess())
 			contentNode.addChild(core.alerts.createSummary());
@@ -360,7 +362,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 				// END OVERVIEW TABLE
 			}
 			
-			boolean enablePeerActions = showPeerActionsBox();
+			final boolean enablePeerActions = showPeerActionsBox();
 			
 			// BEGIN PEER TABLE
 			if(fProxyJavascriptEnabled) {
@@ -463,7 +465,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 					peerTableHeaderRow.addChild("th", "Peer\u00a0Capacity\u00a0Realtime");
 				}
 				
-				SimpleColumn[] endCols = endColumnHeaders(advancedMode);
+				final SimpleColumn[] endCols = endColumnHeaders(advancedMode);
 				if(endCols != null) {
 					for(SimpleColumn col: endCols) {
 						HTMLNode header = peerTableHeaderRow.addChild("th");
@@ -474,16 +476,28 @@ public abstract class ConnectionsToadlet extends Toadlet {
 					}
 				}
 
-				double totalSelectionRate = 0.0;
+				double selectionRate = 0.0;
 				//calculate the total selection rate using all peers, not just the peers for the current mode,
 				PeerNodeStatus[] allPeerNodeStatuses = node.peers.getPeerNodeStatuses(true);
 				for(PeerNodeStatus status : allPeerNodeStatuses) {
-					totalSelectionRate += status.getSelectionRate();
-				}
-				for (PeerNodeStatus peerNodeStatus: peerNodeStatuses) {
-					drawRow(peerTable, peerNodeStatus, advancedMode, fProxyJavascriptEnabled, now, path, enablePeerActions, endCols, drawMessageTypes, totalSelectionRate, fix1);
-					
+					selectionRate += status.getSelectionRate();
 				}
+				final double totalSelectionRate = selectionRate;
+				// The rows are drawn as the page is written, one peer at a time, so we never
+				// have the whole table in memory.
+				peerTable.addChild(new DeferredHTMLNode() {
+
+					@Override
+					protected void write(HTMLWriter out) throws IOException {
+						for (PeerNodeStatus peerNodeStatus: peerNodeStatuses) {
+							HTMLNode rows = new HTMLNode("#");
+							drawRow(rows, peerNodeStatus, advancedMode, fProxyJavascriptEnabled, now, path, enablePeerActions, endCols, drawMessageTypes, totalSelectionRate, fix1);
+							for(HTMLNode row : rows.getChildren())
+								out.write(row);
+						}
+					}
+
+				});
 
 				if(peerForm != null) {
 					drawPeerActionSelectBox(peerForm, advancedMode);
@@ -506,7 +520,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 			drawNoderefBox(contentNode, getNoderef(), true);
 		}
 		
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	protected abstract boolean acceptRefPosts();
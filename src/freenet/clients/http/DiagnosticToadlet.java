@@ -31,13 +31,17 @@ import freenet.node.fcp.UploadDirRequestStatus;
 import freenet.node.fcp.UploadFileRequestStatus;
 import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
+import freenet.node.stats.Instrumentation;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.pluginmanager.PluginInfoWrapper;
 import freenet.pluginmanager.PluginManager;
 import freenet.support.BandwidthStatsContainer;
+import freenet.support.MultiValueTable;
 import freenet.support.SizeUtil;
+import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
+import freenet.support.math.StripedHistogram;
 
 public class DiagnosticToadlet extends Toadlet {
 
@@ -428,12 +432,53 @@ public class DiagnosticToadlet extends Toadlet {
 			text += l10n("waiting") + ": " + String.valueOf(i) + " (" + String.valueOf(jobsByPriority[i]) + ")\n";
 		}
 		text += "\n";
+
+		// Latency histograms
+		Instrumentation.Report report = Instrumentation.snapshot(false);
+		text += "Latency (last " + TimeUtil.formatTime(report.time - report.since) + "):\n";
+		for(Instrumentation point : Instrumentation.values()) {
+			StripedHistogram.Snapshot snapshot = report.get(point);
+			text += point.fcpName + ": " + thousandPoint.format(snapshot.count());
+			if(snapshot.count() != 0) {
+				text += " mean " + formatNanos((long) snapshot.mean()) +
+						" 50% " + formatNanos(snapshot.percentile(0.5)) +
+						" 90% " + formatNanos(snapshot.percentile(0.9)) +
+						" 99% " + formatNanos(snapshot.percentile(0.99)) +
+						" max " + formatNanos(snapshot.max());
+			}
+			text += "\n";
+		}
+		text += "\n";
 		
 		}
 
 		this.writeTextReply(ctx, 200, "OK", text);
 	}
 
+	public void handleMethodPOST(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
+
+		if(!ctx.isAllowedFullAccess()) {
+			super.sendErrorPage(ctx, 403, baseL10n.getString("Toadlet.unauthorizedTitle"), baseL10n.getString("Toadlet.unauthorized"));
+			return;
+		}
+
+		String pass = request.getPartAsStringFailsafe("formPassword", 32);
+		if(pass.equals(core.formPassword) && request.isPartSet("resetInstrumentation"))
+			Instrumentation.snapshot(true);
+
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		headers.put("Location", TOADLET_URL);
+		ctx.sendReplyHeaders(302, "Found", headers, null, 0);
+	}
+
+	/** A duration in nanoseconds, to 2 or 3 significant figures. */
+	private static String formatNanos(long nanos) {
+		if(nanos < 1000) return nanos + "ns";
+		if(nanos < 1000*1000) return (nanos / 100) / 10.0 + "us";
+		if(nanos < 1000*1000*1000) return (nanos / (100*1000)) / 10.0 + "ms";
+		return (nanos / (100*1000*1000)) / 10.0 + "s";
+	}
+
 	private int getPeerStatusCount(PeerNodeStatus[] peerNodeStatuses, int status) {
 		int count = 0;
 		for (PeerNodeStatus peerNodeStatus: peerNodeStatuses) {
@@ -66,6 +66,7 @@ import freenet.node.fcp.MessageInvalidException;
 import freenet.node.fcp.NotAllowedException;
 import freenet.node.fcp.RequestCompletionCallback;
 import freenet.node.fcp.RequestStatus;
+import freenet.node.fcp.RequestStatusSnapshot;
 import freenet.node.fcp.UploadDirRequestStatus;
 import freenet.node.fcp.UploadFileRequestStatus;
 import freenet.node.fcp.UploadRequestStatus;
@@ -81,6 +82,7 @@ import freenet.support.MultiValueTable;
 import freenet.support.MutableBoolean;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
+import freenet.support.URLEncoder;
 import freenet.support.api.Bucket;
 import freenet.support.api.HTTPRequest;
 import freenet.support.api.HTTPUploadedFile;
@@ -132,6 +134,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	}
 
 	private boolean isReversed = false;
+	/** Show at most this many requests in each table at once. Rendering thousands of rows
+	 * takes a long time and makes browsers struggle. */
+	static final int MAX_ROWS_PER_TABLE = 500;
 	private final boolean uploads;
 
 	public QueueToadlet(NodeClientCore core, FCPServer fcp, HighLevelSimpleClient client, boolean uploads) {
@@ -1075,10 +1080,17 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		
 		if(!(count || keys)) {
 			try {
-				RequestStatus[] reqs = fcp.getGlobalRequests();
+				RequestStatusSnapshot.SortOrder order = getIndexedSortOrder(request);
+				RequestStatus[] reqs;
+				if(order != null)
+					// Already sorted, so we don't need to sort them again.
+					reqs = RequestStatusSnapshot.query(fcp.getGlobalRequestSnapshots(), order, 
+							request.isParameterSet("reversed"), RequestStatusSnapshot.Filter.ALL, 0, Integer.MAX_VALUE).requests;
+				else
+					reqs = fcp.getGlobalRequests();
 				MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
-				HTMLNode pageNode = handleGetInner(pageMaker, reqs, core.clientContext, request, ctx);
-				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+				HTMLNode pageNode = handleGetInner(pageMaker, reqs, order != null, core.clientContext, request, ctx);
+				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 				return;
 			} catch (DatabaseDisabledException e) {
 				sendPersistenceDisabledError(ctx);
@@ -1157,7 +1169,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 		MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 		if(pageNode != null)
-			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 		else if(plainText != null)
 			this.writeReply(ctx, 200, "text/plain", "OK", plainText);
 		else {
@@ -1185,7 +1197,33 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return sb.toString();
 	}
 
-	private HTMLNode handleGetInner(PageMaker pageMaker, RequestStatus[] reqs, ClientContext context, final HTTPRequest request, ToadletContext ctx) throws DatabaseDisabledException {
+	/** @return The order the status cache can give us the requests in for the sortBy
+	 * parameter, or null if we have to sort them ourselves. */
+	private static RequestStatusSnapshot.SortOrder getIndexedSortOrder(HTTPRequest request) {
+		if(!request.isParameterSet("sortBy"))
+			return RequestStatusSnapshot.SortOrder.PRIORITY;
+		String sortBy = request.getParam("sortBy");
+		if(sortBy.equals("id"))
+			return RequestStatusSnapshot.SortOrder.NAME;
+		if(sortBy.equals("progress"))
+			return RequestStatusSnapshot.SortOrder.PROGRESS;
+		if(sortBy.equals("size") || sortBy.equals("lastActivity"))
+			return null;
+		return RequestStatusSnapshot.SortOrder.PRIORITY;
+	}
+	
+	/** @return The requests in one table to show on the given page. */
+	private static <T extends RequestStatus> List<T> pageOf(List<T> list, int page) {
+		int from = page * MAX_ROWS_PER_TABLE;
+		if(from >= list.size()) return Collections.emptyList();
+		return list.subList(from, Math.min(list.size(), from + MAX_ROWS_PER_TABLE));
+	}
+
+	/**
+	 * @param presorted If true, reqs are already in the order given by the sortBy and
+	 * reversed parameters.
+	 */
+	private HTMLNode handleGetInner(PageMaker pageMaker, RequestStatus[] reqs, boolean presorted, ClientContext context, final HTTPRequest request, ToadletContext ctx) throws DatabaseDisabledException {
 
 		// First, get the queued requests, and separate them into different types.
 		LinkedList<DownloadRequestStatus> completedDownloadToDisk = new LinkedList<DownloadRequestStatus>();
@@ -1370,16 +1408,32 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			}
 		};
 
-		Collections.sort(completedDownloadToDisk, jobComparator);
-		Collections.sort(completedDownloadToTemp, jobComparator);
-		Collections.sort(completedUpload, jobComparator);
-		Collections.sort(completedDirUpload, jobComparator);
-		Collections.sort(failedDownload, jobComparator);
-		Collections.sort(failedUpload, jobComparator);
-		Collections.sort(failedDirUpload, jobComparator);
-		Collections.sort(uncompletedDownload, jobComparator);
-		Collections.sort(uncompletedUpload, jobComparator);
-		Collections.sort(uncompletedDirUpload, jobComparator);
+		if(presorted) {
+			isReversed = request.isParameterSet("reversed");
+		} else {
+			Collections.sort(completedDownloadToDisk, jobComparator);
+			Collections.sort(completedDownloadToTemp, jobComparator);
+			Collections.sort(completedUpload, jobComparator);
+			Collections.sort(completedDirUpload, jobComparator);
+			Collections.sort(failedDownload, jobComparator);
+			Collections.sort(failedUpload, jobComparator);
+			Collections.sort(failedDirUpload, jobComparator);
+			Collections.sort(uncompletedDownload, jobComparator);
+			Collections.sort(uncompletedUpload, jobComparator);
+			Collections.sort(uncompletedDirUpload, jobComparator);
+		}
+		
+		// Big queues are shown a page at a time, the same page of each table.
+		int maxTableSize = Math.max(Math.max(Math.max(completedDownloadToDisk.size(), completedDownloadToTemp.size()),
+				Math.max(completedUpload.size(), completedDirUpload.size())),
+				Math.max(Math.max(Math.max(failedDownload.size(), failedUpload.size()), failedDirUpload.size()),
+				Math.max(Math.max(uncompletedDownload.size(), uncompletedUpload.size()), uncompletedDirUpload.size())));
+		for(LinkedList<DownloadRequestStatus> list : failedUnknownMIMEType.values())
+			maxTableSize = Math.max(maxTableSize, list.size());
+		for(LinkedList<DownloadRequestStatus> list : failedBadMIMEType.values())
+			maxTableSize = Math.max(maxTableSize, list.size());
+		int pages = (maxTableSize + MAX_ROWS_PER_TABLE - 1) / MAX_ROWS_PER_TABLE;
+		int pageIndex = Math.max(0, Math.min(pages - 1, request.getIntParam("page", 0)));
 
 		String pageName;
 		if(uploads)
@@ -1473,6 +1527,23 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			includeNavigationBar = true;
 		}
 
+		if (pages > 1) {
+			HTMLNode pageList = navigationContent.addChild("li", l10n("pages")+" ");
+			String params = "";
+			if(request.isParameterSet("sortBy"))
+				params += "&sortBy=" + URLEncoder.encode(request.getParam("sortBy"), false);
+			if(request.isParameterSet("reversed"))
+				params += "&reversed";
+			for(int i=0;i<pages;i++) {
+				if(i == pageIndex)
+					pageList.addChild("b", Integer.toString(i+1));
+				else
+					pageList.addChild("a", "href", "?page=" + i + params, Integer.toString(i+1));
+				pageList.addChild("#", " ");
+			}
+			includeNavigationBar = true;
+		}
+
 		if (includeNavigationBar) {
 			contentNode.addChild(navigationBar);
 		}
@@ -1524,9 +1595,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToTemp");
 			HTMLNode completedDownloadsToTempContent = pageMaker.getInfobox("completed_requests", l10n("completedDinTempDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToTemp.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, false, "completed-temp", true, true));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, pageOf(completedDownloadToTemp, pageIndex), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, false, "completed-temp", true, true));
 			} else {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "completed-temp", true, true));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, pageOf(completedDownloadToTemp, pageIndex), new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "completed-temp", true, true));
 			}
 		}
 
@@ -1534,9 +1605,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToDisk");
 			HTMLNode completedToDiskInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedDinDownloadDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToDisk.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, false, "completed-disk", false, true));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, pageOf(completedDownloadToDisk, pageIndex), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, false, "completed-disk", false, true));
 			} else {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "completed-disk", false, true));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, pageOf(completedDownloadToDisk, pageIndex), new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "completed-disk", false, true));
 			}
 		}
 
@@ -1544,9 +1615,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedUpload");
 			HTMLNode completedUploadInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(completedUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "completed-upload-file", false, true));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, pageOf(completedUpload, pageIndex), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "completed-upload-file", false, true));
 			} else  {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "completed-upload-file", false, true));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, pageOf(completedUpload, pageIndex), new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "completed-upload-file", false, true));
 			}
 		}
 
@@ -1554,9 +1625,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDirUpload");
 			HTMLNode completedUploadDirContent = pageMaker.getInfobox("completed_requests", l10n("completedUDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDirUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "completed-upload-dir", false, true));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, pageOf(completedDirUpload, pageIndex), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "completed-upload-dir", false, true));
 			} else {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "completed-upload-dir", false, true));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, pageOf(completedDirUpload, pageIndex), new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "completed-upload-dir", false, true));
 			}
 		}
 
@@ -1564,9 +1635,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDownload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(failedDownload.size()) }), contentNode, "download-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, false, "failed-download", false, true, false, false, null));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(failedDownload, pageIndex), advancedModeFailure, priorityClasses, advancedModeEnabled, false, "failed-download", false, true, false, false, null));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, false, "failed-download", false, true, false, false, null));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(failedDownload, pageIndex), simpleModeFailure, priorityClasses, advancedModeEnabled, false, "failed-download", false, true, false, false, null));
 			}
 		}
 
@@ -1574,9 +1645,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, true, "failed-upload-file", false, true, false, false, null));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(failedUpload, pageIndex), advancedModeFailure, priorityClasses, advancedModeEnabled, true, "failed-upload-file", false, true, false, false, null));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, true, "failed-upload-file", false, true, false, false, null));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(failedUpload, pageIndex), simpleModeFailure, priorityClasses, advancedModeEnabled, true, "failed-upload-file", false, true, false, false, null));
 			}
 		}
 
@@ -1584,9 +1655,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDirUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedDirUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "failed-upload-dir", false, true, false, false, null));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(failedDirUpload, pageIndex), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "failed-upload-dir", false, true, false, false, null));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "failed-upload-dir", false, true, false, false, null));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(failedDirUpload, pageIndex), new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "failed-upload-dir", false, true, false, false, null));
 			}
 		}
 
@@ -1611,9 +1682,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
 				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "failed-download-file-badmime", false, true, true, false, type));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(getters, pageIndex), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "failed-download-file-badmime", false, true, true, false, type));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "failed-download-file-badmime", false, true, true, false, type));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(getters, pageIndex), new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "failed-download-file-badmime", false, true, true, false, type));
 				}
 			}
 		}
@@ -1631,9 +1702,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
 				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "failed-download-file-unknownmime", false, true, true, false, type));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(getters, pageIndex), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "failed-download-file-unknownmime", false, true, true, false, type));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "failed-download-file-unknownmime", false, true, true, false, type));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(getters, pageIndex), new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "failed-download-file-unknownmime", false, true, true, false, type));
 				}
 			}
 
@@ -1643,9 +1714,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "uncompletedDownload");
 			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", l10n("wipD", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedDownload.size()) }), contentNode, "download-progressing", false);
 			if (advancedModeEnabled) {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.PERSISTENCE, QueueColumn.FILENAME, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, false, "uncompleted-download", false, false));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(uncompletedDownload, pageIndex), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.PERSISTENCE, QueueColumn.FILENAME, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, false, "uncompleted-download", false, false));
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "uncompleted-download", false, false));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(uncompletedDownload, pageIndex), new QueueColumn[] { QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, false, "uncompleted-download", false, false));
 			}
 		}
 
@@ -1653,9 +1724,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "uncompletedUpload");
 			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", l10n("wipU", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedUpload.size()) }), contentNode, "upload-progressing", false);
 			if (advancedModeEnabled) {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.PERSISTENCE, QueueColumn.FILENAME, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "uncompleted-upload-file", false, false));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(uncompletedUpload, pageIndex), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.PERSISTENCE, QueueColumn.FILENAME, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "uncompleted-upload-file", false, false));
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "uncompleted-upload-file", false, false));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(uncompletedUpload, pageIndex), new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "uncompleted-upload-file", false, false));
 			}
 		}
 
@@ -1663,9 +1734,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "uncompletedDirUpload");
 			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", l10n("wipDU", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedDirUpload.size()) }), contentNode, "download-progressing upload-progressing", false);
 			if (advancedModeEnabled) {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.PRIORITY, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "uncompleted-upload-dir", false, false));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(uncompletedDirUpload, pageIndex), new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.PRIORITY, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "uncompleted-upload-dir", false, false));
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "uncompleted-upload-dir", false, false));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, pageOf(uncompletedDirUpload, pageIndex), new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, true, "uncompleted-upload-dir", false, false));
 			}
 		}
 
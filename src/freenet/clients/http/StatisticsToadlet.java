@@ -16,6 +16,7 @@ import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.UdpSocketHandler;
 import freenet.io.xfer.BlockReceiver;
 import freenet.io.xfer.BlockTransmitter;
 import freenet.l10n.NodeL10n;
@@ -28,6 +29,7 @@ import freenet.node.NodeStats;
 import freenet.node.OpennetManager;
 import freenet.node.PeerManager;
 import freenet.node.PeerNodeStatus;
+import freenet.node.PeersFileWriter;
 import freenet.node.RequestClient;
 import freenet.node.RequestStarterGroup;
 import freenet.node.RequestTracker;
@@ -36,8 +38,14 @@ import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
+import freenet.node.stats.StoreCallbackStats;
+import freenet.store.FreenetStore;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.BlockBufferPool;
 import freenet.support.BandwidthStatsContainer;
+import freenet.support.DeferredHTMLNode;
 import freenet.support.HTMLNode;
+import freenet.support.HTMLWriter;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
@@ -212,6 +220,8 @@ public class StatisticsToadlet extends Toadlet {
 			logsList.addChild("li").addChild("a", new String[]{ "href", "target"}, new String[]{ "/?latestlog", "_blank"}, l10n("getLogs"));
 		logsList.addChild("li").addChild("a", "href", TranslationToadlet.TOADLET_URL+"?getOverrideTranlationFile").addChild("#", NodeL10n.getBase().getString("TranslationToadlet.downloadTranslationsFile"));
 		logsList.addChild("li").addChild("a", "href", DiagnosticToadlet.TOADLET_URL).addChild("#", NodeL10n.getBase().getString("FProxyToadlet.diagnostic"));
+		HTMLNode resetInstrumentationForm = ctx.addFormChild(statGatheringContent, DiagnosticToadlet.TOADLET_URL, "resetInstrumentationForm");
+		resetInstrumentationForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "resetInstrumentation", l10n("resetInstrumentationButton")});
 		
 		if(advancedMode) {
 			// store size box
@@ -453,6 +463,12 @@ public class StatisticsToadlet extends Toadlet {
 			HTMLNode databaseJobsInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawDatabaseJobsBox(databaseJobsInfobox);
 
+			// peers files box
+			drawPeersFilesBox(nextTableCell.addChild("div", "class", "infobox"));
+
+			// UDP sockets box
+			drawUdpSocketsBox(nextTableCell.addChild("div", "class", "infobox"));
+
 			OpennetManager om = node.getOpennet();
 			if(om != null) {
 				// opennet stats box
@@ -523,7 +539,7 @@ public class StatisticsToadlet extends Toadlet {
 		
 		}
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void showRequesters(HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -532,7 +548,7 @@ public class StatisticsToadlet extends Toadlet {
 		HTMLNode contentNode = page.content;
 
 		drawClientRequestersBox(contentNode);
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void drawLoadBalancingBox(HTMLNode loadStatsInfobox, boolean realTime) {
@@ -689,6 +705,62 @@ public class StatisticsToadlet extends Toadlet {
 		stats.getDatabaseJobQueueStatistics().toTableRows(jobQueueStatistics);
 	}
 
+	private void drawPeersFilesBox(HTMLNode box) {
+		box.addChild("div", "class", "infobox-header", l10n("peersFiles"));
+		HTMLNode content = box.addChild("div", "class", "infobox-content");
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("peersFile"));
+		row.addChild("th", l10n("fullWrites"));
+		row.addChild("th", l10n("logWrites"));
+		row.addChild("th", l10n("avgTime"));
+		row.addChild("th", l10n("maxTime"));
+		row.addChild("th", l10n("bytesWritten"));
+		row.addChild("th", l10n("logSize"));
+		for(PeersFileWriter<?> writer : node.peers.getPeersFileWriters()) {
+			row = table.addChild("tr");
+			row.addChild("td", writer.getName());
+			row.addChild("td", Long.toString(writer.countFullWrites()));
+			row.addChild("td", Long.toString(writer.countLogWrites()));
+			row.addChild("td", TimeUtil.formatTime(writer.getAverageWriteTime(), 2, true));
+			row.addChild("td", TimeUtil.formatTime(writer.getMaxWriteTime(), 2, true));
+			row.addChild("td", SizeUtil.formatSize(writer.getBytesWritten()));
+			row.addChild("td", SizeUtil.formatSize(writer.getLogSize()));
+		}
+	}
+
+	private void drawUdpSocketsBox(HTMLNode box) {
+		box.addChild("div", "class", "infobox-header", l10n("udpSockets"));
+		HTMLNode content = box.addChild("div", "class", "infobox-content");
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("udpPort"));
+		row.addChild("th", l10n("udpDecodeThreads"));
+		row.addChild("th", l10n("udpPacketsIn"));
+		row.addChild("th", l10n("udpPacketsOut"));
+		row.addChild("th", l10n("udpDropped"));
+		row.addChild("th", l10n("udpDecodeQueueTime"));
+		row.addChild("th", l10n("udpDecodeTime"));
+		row.addChild("th", l10n("udpSendQueueTime"));
+		row.addChild("th", l10n("udpSendTime"));
+		row.addChild("th", l10n("udpSendBatch"));
+		long now = System.currentTimeMillis();
+		for(UdpSocketHandler handler : node.getPacketSocketHandlers()) {
+			double seconds = Math.max(1, (now - handler.getStartTime()) / 1000.0);
+			row = table.addChild("tr");
+			row.addChild("td", Integer.toString(handler.getPortNumber()));
+			row.addChild("td", Integer.toString(handler.countDecodeWorkers()));
+			row.addChild("td", handler.countPacketsReceived()+" ("+fix1p1.format(handler.countPacketsReceived() / seconds)+"/s)");
+			row.addChild("td", handler.countPacketsSent()+" ("+fix1p1.format(handler.countPacketsSent() / seconds)+"/s)");
+			row.addChild("td", Long.toString(handler.countPacketsDropped()));
+			row.addChild("td", fix1p1.format(handler.getAverageDecodeQueueTime())+"\u00b5s");
+			row.addChild("td", fix1p1.format(handler.getAverageDecodeTime())+"\u00b5s");
+			row.addChild("td", fix1p1.format(handler.getAverageSendQueueTime())+"\u00b5s");
+			row.addChild("td", fix1p1.format(handler.getAverageSendTime())+"\u00b5s");
+			row.addChild("td", fix1p1.format(handler.getAverageSendBatch()));
+		}
+	}
+
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
 		box.addChild("div", "class", "infobox-header", l10n("opennetStats"));
 		HTMLNode opennetStatsContent = box.addChild("div", "class", "infobox-content");
@@ -712,43 +784,47 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("clientRequesters.priorityClass"));
 		row.addChild("th", l10n("clientRequesters.realtimeFlag"));
 		row.addChild("th", l10n("clientRequesters.uri"));
-		NumberFormat nf = NumberFormat.getInstance();
-		nf.setMaximumFractionDigits(0);
-		nf.setMinimumIntegerDigits(2);
-		ClientRequester[] requests = ClientRequester.getAll();
+		final ClientRequester[] requests = ClientRequester.getAll();
 		Arrays.sort(requests, new Comparator<ClientRequester>() {
 				@Override
 				public int compare(ClientRequester a, ClientRequester b) {
 					return -Long.signum(a.creationTime - b.creationTime);
 				}
 			});
-		long now = System.currentTimeMillis();
-		for(ClientRequester request : requests) {
-			if(request.isFinished() || request.isCancelled())
-				continue;
-			row = table.addChild("tr");
-			RequestClient client = request.getClient();
-			// client can be null if the request is stored in DB4O and then deactivated
-			row.addChild("td", client==null ? "null" : client.toString());
-			try {
-				String s = request.toString();
-				if(s.indexOf(':') > s.indexOf('@')) {
-					s = s.substring(0, s.indexOf(':'));
+		final long now = System.currentTimeMillis();
+		// There can be a great many of these, so write them directly as the page is sent.
+		table.addChild(new DeferredHTMLNode() {
+
+			@Override
+			protected void write(HTMLWriter out) throws IOException {
+				for(ClientRequester request : requests) {
+					if(request.isFinished() || request.isCancelled())
+						continue;
+					out.begin("tr");
+					RequestClient client = request.getClient();
+					// client can be null if the request is stored in DB4O and then deactivated
+					out.element("td", client==null ? "null" : client.toString());
+					try {
+						String s = request.toString();
+						if(s.indexOf(':') > s.indexOf('@')) {
+							s = s.substring(0, s.indexOf(':'));
+						}
+						out.element("td", s);
+					} catch (Throwable t) {
+						// FIXME shouldn't happen...
+						out.element("td", "ERROR: "+request.getClass().toString());
+					}
+					long diff = now - request.creationTime;
+					out.element("td", TimeUtil.formatTime(diff, 2));
+					out.element("td", Short.toString(request.getPriorityClass()));
+					out.element("td", client==null ? "?" : Boolean.toString(client.realTimeFlag()));
+					FreenetURI uri = request.getURI(); // getURI() sometimes returns null, eg for ClientPutters
+					out.element("td", uri == null ? "null" : uri.toString());
+					out.end();
 				}
-				row.addChild("td", s);
-			} catch (Throwable t) {
-				// FIXME shouldn't happen...
-				row.addChild("td", "ERROR: "+request.getClass().toString());
 			}
-			long diff = now - request.creationTime;
-			StringBuilder sb = new StringBuilder();
-			sb.append(TimeUtil.formatTime(diff, 2));
-			row.addChild("td", sb.toString());
-			row.addChild("td", Short.toString(request.getPriorityClass()));
-			row.addChild("td", client==null ? "?" : Boolean.toString(client.realTimeFlag()));
-			FreenetURI uri = request.getURI(); // getURI() sometimes returns null, eg for ClientPutters
-			row.addChild("td", uri == null ? "null" : uri.toString());
-		}
+
+		});
 	}
 
 	private void drawStoreSizeBox(HTMLNode storeSizeInfobox, double loc, long nodeUptimeSeconds) {
@@ -866,6 +942,48 @@ public class StatisticsToadlet extends Toadlet {
 			}
 		}
 
+		drawBufferPoolTable(scrollDiv, storeStats);
+	}
+
+	/** Buffer pools used for I/O by the salted hash stores. A low hit rate means the pool is
+	 * too small, and leaks mean a buffer was not released. */
+	private void drawBufferPoolTable(HTMLNode parent, Map<DataStoreInstanceType, DataStoreStats> storeStats) {
+		HTMLNode table = null;
+		for (Map.Entry<DataStoreInstanceType, DataStoreStats> entry : storeStats.entrySet()) {
+			if(!(entry.getValue() instanceof StoreCallbackStats)) continue;
+			FreenetStore<?> store = ((StoreCallbackStats) entry.getValue()).getUnderlyingStore();
+			if(!(store instanceof SaltedHashFreenetStore)) continue;
+			SaltedHashFreenetStore<?> saltStore = (SaltedHashFreenetStore<?>) store;
+			if(table == null) {
+				parent.addChild("div", "class", "infobox-header", l10n("bufferPools"));
+				table = parent.addChild("table", "border", "0");
+				HTMLNode row = table.addChild("tr");
+				row.addChild("th", "");
+				row.addChild("th", l10n("bufferPool"));
+				row.addChild("th", l10n("bufferSize"));
+				row.addChild("th", l10n("bufferPoolHitRate"));
+				row.addChild("th", l10n("bufferPoolAllocations"));
+				row.addChild("th", l10n("bufferPoolInUse"));
+				row.addChild("th", l10n("bufferPoolFree"));
+				row.addChild("th", l10n("bufferPoolLeaks"));
+			}
+			DataStoreInstanceType instance = entry.getKey();
+			String name = l10n(instance.store.name()) + " (" + l10n(instance.key.name()) + ")";
+			drawBufferPoolRow(table, name, l10n("bufferPoolHeaderAndData"), saltStore.getHDBufferPool());
+			drawBufferPoolRow(table, name, l10n("bufferPoolData"), saltStore.getDataBufferPool());
+		}
+	}
+
+	private void drawBufferPoolRow(HTMLNode table, String store, String pool, BlockBufferPool bufferPool) {
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", store);
+		row.addChild("td", pool);
+		row.addChild("td", SizeUtil.formatSize(bufferPool.getBufferSize()));
+		row.addChild("td", fix3p1pct.format(bufferPool.getHitRate()));
+		row.addChild("td", thousandPoint.format(bufferPool.getAllocations()));
+		row.addChild("td", thousandPoint.format(bufferPool.getOutstanding()));
+		row.addChild("td", thousandPoint.format(bufferPool.getPooled()));
+		row.addChild("td", thousandPoint.format(bufferPool.getLeaks()));
 	}
 
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
@@ -4,6 +4,8 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
@@ -22,6 +24,7 @@ import freenet.l10n.NodeL10n;
 import freenet.node.RequestClient;
 import freenet.support.HTMLEncoder;
 import freenet.support.HTMLNode;
+import freenet.support.HTMLWriter;
 import freenet.support.Logger;
 import freenet.support.MultiValueTable;
 import freenet.support.api.Bucket;
@@ -186,6 +189,29 @@ public abstract class Toadlet {
 		writeReply(ctx, code, "text/html; charset=utf-8", desc, headers, reply);
 	}
 	
+	/**
+	 * Write an HTML page as it is generated, rather than generating it into a String and
+	 * then encoding that. For big pages, especially those with DeferredHTMLNode's, this
+	 * saves a lot of garbage, and the browser can start rendering earlier.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, HTMLNode pageNode) throws ToadletContextClosedException, IOException {
+		writeHTMLReply(ctx, code, desc, null, pageNode);
+	}
+
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, MultiValueTable<String, String> headers, HTMLNode pageNode) throws ToadletContextClosedException, IOException {
+		OutputStream os = ctx.sendReplyHeadersChunked(code, desc, headers, "text/html; charset=utf-8");
+		boolean success = false;
+		try {
+			HTMLWriter out = new HTMLWriter(new OutputStreamWriter(os, "UTF-8"));
+			out.write(pageNode);
+			out.close();
+			success = true;
+		} finally {
+			// We don't know how much of the reply has been sent.
+			if(!success) ctx.forceDisconnect();
+		}
+	}
+
 	protected void writeTextReply(ToadletContext ctx, int code, String desc, MultiValueTable<String, String> headers, String reply) throws ToadletContextClosedException, IOException {
 		writeReply(ctx, code, "text/plain; charset=utf-8", desc, headers, reply);
 	}
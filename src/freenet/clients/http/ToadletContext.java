@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.text.ParseException;
 import java.util.Date;
@@ -30,6 +31,19 @@ public interface ToadletContext {
 	
 	void sendReplyHeaders(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, long length) throws ToadletContextClosedException, IOException;
 
+	/**
+	 * Write reply headers for a reply whose length is not known in advance, e.g. a page which
+	 * is written as it is generated, and return a stream to write the reply to. The reply is
+	 * sent with chunked transfer encoding, or to an HTTP/1.0 client, terminated by closing the
+	 * connection. The stream must be closed when the reply is complete; this does not close
+	 * the connection.
+	 * @param code HTTP code.
+	 * @param desc HTTP code description.
+	 * @param mvt Any extra headers.
+	 * @param mimeType The MIME type of the reply.
+	 */
+	OutputStream sendReplyHeadersChunked(int code, String desc, MultiValueTable<String,String> mvt, String mimeType) throws ToadletContextClosedException, IOException;
+
 	/**
 	 * Write data. Note you must send reply headers first.
 	 */
@@ -36,8 +36,10 @@ import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
+import freenet.support.io.ChunkedOutputStream;
 import freenet.support.io.FileUtil;
 import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NoCloseProxyOutputStream;
 import freenet.support.io.TooLongException;
 /**
  * ToadletContext implementation, including all the icky HTTP parsing etc.
@@ -90,6 +92,8 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	private boolean closed;
 	private boolean shouldDisconnect;
+	/** The client can't handle chunked transfer encoding. */
+	private boolean isHTTP10;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container,URI uri, long uniqueID) throws IOException {
 		this.headers = headers;
@@ -199,6 +203,21 @@ public class ToadletContextImpl implements ToadletContext {
 		sendReplyHeaders(sockOutputStream, replyCode, replyDescription, mvt, mimeType, contentLength, mTime, shouldDisconnect);
 	}
 	
+	@Override
+	public OutputStream sendReplyHeadersChunked(int replyCode, String replyDescription, MultiValueTable<String,String> mvt, String mimeType) throws ToadletContextClosedException, IOException {
+		if(isHTTP10) {
+			// No chunked encoding, so the end of the reply is the end of the connection.
+			shouldDisconnect = true;
+			sendReplyHeaders(replyCode, replyDescription, mvt, mimeType, -1);
+			return new NoCloseProxyOutputStream(sockOutputStream);
+		}
+		if(mvt == null)
+			mvt = new MultiValueTable<String,String>();
+		mvt.put("transfer-encoding", "chunked");
+		sendReplyHeaders(replyCode, replyDescription, mvt, mimeType, -1);
+		return new ChunkedOutputStream(sockOutputStream);
+	}
+
 	@Override
 	public PageMaker getPageMaker() {
 		return pagemaker;
@@ -430,6 +449,7 @@ public class ToadletContextImpl implements ToadletContext {
 				
 				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container,uri, container.generateUniqueID());
 				ctx.shouldDisconnect = disconnect;
+				ctx.isHTTP10 = split[2].equals("HTTP/1.0");
 				
 				/*
 				 * copy the data into a bucket now,
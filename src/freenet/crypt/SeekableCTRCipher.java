@@ -0,0 +1,121 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * AES-256 (128 bit block) in CTR mode, using the JCE so we get AES-NI etc where the JVM
+ * supports it. Unlike a plain JCE Cipher, we can seek to any byte offset in the stream, so
+ * this can be used for random access encrypted storage. Encryption and decryption are the
+ * same operation.
+ *
+ * CRYPTO WARNING: As with any CTR mode, never encrypt two different plaintexts at the same
+ * offset with the same key and IV.
+ *
+ * Not thread-safe, the caller must synchronize.
+ */
+public class SeekableCTRCipher {
+
+	public static final int BLOCK_SIZE = 16;
+	public static final int KEY_LENGTH = 32;
+
+	private final SecretKeySpec key;
+	private final byte[] iv;
+	private final byte[] counter;
+	private final Cipher cipher;
+	private final byte[] skipBuffer;
+	/** Current offset in the keystream */
+	private long position;
+
+	/**
+	 * @param key 32 byte AES key.
+	 * @param iv At least 16 bytes. Only the first 16 bytes are used.
+	 * @throws UnsupportedCipherException If we can't use 256-bit AES through the JCE, e.g.
+	 * because of crippled JCA policy files.
+	 */
+	public SeekableCTRCipher(byte[] key, byte[] iv) throws UnsupportedCipherException {
+		if(key.length != KEY_LENGTH) throw new IllegalArgumentException("Bad key length "+key.length);
+		if(iv.length < BLOCK_SIZE) throw new IllegalArgumentException("Bad IV length "+iv.length);
+		if(!isAvailable()) throw new UnsupportedCipherException("AES/CTR not available via JCE");
+		this.key = new SecretKeySpec(key, "AES");
+		this.iv = new byte[BLOCK_SIZE];
+		System.arraycopy(iv, 0, this.iv, 0, BLOCK_SIZE);
+		this.counter = new byte[BLOCK_SIZE];
+		this.skipBuffer = new byte[BLOCK_SIZE];
+		try {
+			cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+		} catch (GeneralSecurityException e) {
+			throw new UnsupportedCipherException(e.toString());
+		}
+		seek(0);
+	}
+
+	/** @return True if we can use the JCE for 256-bit AES in CTR mode. */
+	public static boolean isAvailable() {
+		return Rijndael.AesCtrProvider != null;
+	}
+
+	/** Move to the given byte offset in the keystream. */
+	public void seek(long offset) {
+		if(offset < 0) throw new IllegalArgumentException("Negative offset "+offset);
+		long block = offset / BLOCK_SIZE;
+		int skip = (int) (offset % BLOCK_SIZE);
+		// counter = iv + block, as a 128-bit big-endian integer.
+		int carry = 0;
+		for(int i=BLOCK_SIZE-1;i>=0;i--) {
+			int sum = (iv[i] & 0xFF) + (int)(block & 0xFF) + carry;
+			counter[i] = (byte) sum;
+			carry = sum >>> 8;
+			block >>>= 8;
+		}
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+			if(skip > 0)
+				cipher.update(skipBuffer, 0, skip, skipBuffer, 0);
+		} catch (GeneralSecurityException e) {
+			// Impossible, we checked in the constructor.
+			throw new Error(e);
+		}
+		position = offset;
+	}
+
+	/** @return The current byte offset in the keystream. */
+	public long getPosition() {
+		return position;
+	}
+
+	/** Encrypt or decrypt in place, advancing the position. */
+	public void process(byte[] buf, int offset, int length) {
+		process(buf, offset, length, buf, offset);
+	}
+
+	/** Encrypt or decrypt, advancing the position. Input and output may be the same array
+	 * at the same offset. */
+	public void process(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+		if(length == 0) return;
+		try {
+			int processed = cipher.update(input, inputOffset, length, output, outputOffset);
+			if(processed != length)
+				throw new IllegalStateException("CTR cipher buffered data: "+processed+" of "+length);
+		} catch (GeneralSecurityException e) {
+			throw new Error(e);
+		}
+		position += length;
+	}
+
+	/** Encrypt or decrypt a single byte, advancing the position. */
+	public int process(int b) {
+		skipBuffer[0] = (byte) b;
+		process(skipBuffer, 0, 1);
+		return skipBuffer[0] & 0xFF;
+	}
+
+}
@@ -0,0 +1,41 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * What UdpChannelIO actually sends and receives datagrams on. Normally a bound
+ * DatagramChannel; simulations substitute an in-process network, so that real nodes can be
+ * run over links with controlled latency, bandwidth and loss.
+ */
+public interface DatagramTransport {
+
+	/** Creates the transport for a node's socket, in place of binding a DatagramChannel. */
+	interface Factory {
+		DatagramTransport bind(InetAddress bindTo, int port) throws SocketException;
+	}
+
+	/**
+	 * Wait for a packet and copy it into the buffer.
+	 * @return The address it came from, or null if there was no packet, e.g. because the
+	 * transport has been closed.
+	 */
+	InetSocketAddress receive(ByteBuffer buf) throws IOException;
+
+	/** Send the remaining bytes of the buffer as one packet. */
+	void send(ByteBuffer buf, InetSocketAddress target) throws IOException;
+
+	int getLocalPort();
+
+	InetAddress getLocalAddress();
+
+	/** Stop receiving. A thread blocked in receive() must return. */
+	void close() throws IOException;
+
+}
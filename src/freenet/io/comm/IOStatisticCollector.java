@@ -4,134 +4,164 @@
 package freenet.io.comm;
 
 import java.net.InetAddress;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.math.StripedCounter;
 
+/**
+ * Counts the bytes sent and received, in total and (if ENABLE_PER_ADDRESS_TRACKING) for
+ * each address, for the last STATISTICS_ENTRIES periods of STATISTICS_DURATION.
+ *
+ * addInfo() is called for every packet, by several threads, so it doesn't lock: the totals
+ * are striped counters, and each address has a ring of per-period counters indexed by the
+ * period number, so rotating is just starting to use the next slot.
+ */
 public class IOStatisticCollector {
 	public static final int STATISTICS_ENTRIES = 10;
 	public static final int STATISTICS_DURATION_S = 30;
 	public static final int STATISTICS_DURATION = 1000*STATISTICS_DURATION_S;
-	private long lastrotate;
-	
+
 	private static boolean logDEBUG;
-	private long totalbytesin;
-	private long totalbytesout;
-	private final LinkedHashMap<String, StatisticEntry> targets;
+	/** Bytes sent, not including local traffic. */
+	private final StripedCounter totalbytesout;
+	/** Bytes received, not including local traffic. */
+	private final StripedCounter totalbytesin;
+	private final ConcurrentHashMap<AddressKey, StatisticEntry> targets;
+	/** The last period in which we removed idle entries from targets. */
+	private final AtomicLong lastrotate;
 	static boolean ENABLE_PER_ADDRESS_TRACKING = false;
-	
+
 	public IOStatisticCollector() {
-		targets = new LinkedHashMap<String, StatisticEntry>();
+		totalbytesout = new StripedCounter();
+		totalbytesin = new StripedCounter();
+		targets = new ConcurrentHashMap<AddressKey, StatisticEntry>();
+		lastrotate = new AtomicLong(period(System.currentTimeMillis()));
 		// TODO: only for testing!!!!
 		// This should only happen once
 		//SNMPAgent.create();
 		//SNMPStarter.initialize();
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 	}
-	
+
+	static long period(long now) {
+		return now / STATISTICS_DURATION;
+	}
+
 	public void addInfo(InetAddress addr, int port, int inbytes, int outbytes, boolean isLocal) {
 		try {
-			synchronized (this) {
-				_addInfo(addr, port, inbytes, outbytes, isLocal);
-			}
+			_addInfo(addr, port, inbytes, outbytes, isLocal, System.currentTimeMillis());
 		} catch (Throwable t) {
 			t.printStackTrace();
 		}
 	}
-	
-	private void _addInfo(InetAddress addr, int port, int inbytes, int outbytes, boolean isLocal) {
-		rotate();
+
+	void _addInfo(InetAddress addr, int port, int inbytes, int outbytes, boolean isLocal, long now) {
+		if(inbytes < 0) inbytes = 0;
+		if(outbytes < 0) outbytes = 0;
 		if(ENABLE_PER_ADDRESS_TRACKING) {
-			String key = addr + ":" + port;
+			long period = period(now);
+			rotate(period);
+			AddressKey key = new AddressKey(addr, port);
 			StatisticEntry entry = targets.get(key);
 			if (entry == null) {
 				entry = new StatisticEntry();
-				targets.put(key, entry);
+				StatisticEntry old = targets.putIfAbsent(key, entry);
+				if(old != null) entry = old;
 			}
-			entry.addData((inbytes>0)?inbytes:0, (outbytes>0)?outbytes:0);
+			entry.addData(period, inbytes, outbytes);
 		}
 		if(!isLocal) {
-			synchronized(this) {
-				totalbytesout += (outbytes>0)?outbytes:0;
-				totalbytesin += (inbytes>0)?inbytes:0;
-				if(logDEBUG)
-					Logger.debug(IOStatisticCollector.class, "Add("+addr+":"+port+ ',' +inbytes+ ',' +outbytes+" -> "+totalbytesin+" : "+totalbytesout);
-			}
+			if(outbytes > 0) totalbytesout.add(outbytes);
+			if(inbytes > 0) totalbytesin.add(inbytes);
+			if(logDEBUG)
+				Logger.debug(IOStatisticCollector.class, "Add("+addr+":"+port+ ',' +inbytes+ ',' +outbytes+")");
 		}
 	}
-	
+
 	public void dumpInfo() {
-		synchronized (this) {
-			_dumpInfo();
-		}
+		_dumpInfo(System.currentTimeMillis());
 	}
 
+	/**
+	 * @return The total bytes sent and received, excluding local traffic, as { out, in }.
+	 * Doesn't lock, so may not include packets being counted at the same time. Each value
+	 * never goes down between calls, but the two are summed one after the other, so they
+	 * are not a snapshot of the same instant: packets counted in between are included in
+	 * the input total but not the output total. Fine for rates and totals; don't compare
+	 * the two values closely.
+	 */
 	public long[] getTotalIO() {
-		synchronized (this) {
-			return _getTotalIO();
-		}
-	}
-	
-	private long[] _getTotalIO() {
-		long ret[] = new long[2]; 
-		synchronized(this) {
-			ret[0] = totalbytesout;
-			ret[1] = totalbytesin;
-		}
+		long ret[] = new long[2];
+		ret[0] = totalbytesout.sum();
+		ret[1] = totalbytesin.sum();
 		return ret;
 	}
-	
+
+	/** @return The total bytes sent, excluding local traffic. Cheaper than getTotalIO()
+	 * when that is all that is needed. */
+	public long getTotalSent() {
+		return totalbytesout.sum();
+	}
+
+	/**
+	 * @return For each of the last STATISTICS_ENTRIES complete periods, most recent first,
+	 * the bytes { out, in } for all tracked addresses.
+	 */
 	public int[][] getTotalStatistics() {
-		synchronized (this) {
-			return _getTotalStatistics();
-		}
+		return _getTotalStatistics(System.currentTimeMillis());
 	}
 
-	private int[][] _getTotalStatistics() {
-		//String[] keys = (String[])targets.keySet().toArray();
+	int[][] _getTotalStatistics(long now) {
+		long period = period(now);
 		int ret[][] = new int[STATISTICS_ENTRIES][2];
-		for (int i = 0 ; i < STATISTICS_ENTRIES ; i++) {
-			ret[i][0] = ret[i][1] = 0;
-		}
-		
-		for (Map.Entry<String,StatisticEntry> entry : targets.entrySet()) {
-			int inres[] = entry.getValue().getRecieved();
-			int outres[] = entry.getValue().getSent();
+		for (StatisticEntry entry : targets.values()) {
+			int inres[] = entry.getRecieved(period);
+			int outres[] = entry.getSent(period);
 			for (int i = 0 ; i < STATISTICS_ENTRIES ; i++) {
 				ret[i][1] += inres[i];
 				ret[i][0] += outres[i];
 			}
 		}
-		
+
 		return ret;
 	}
-	
-	private void _dumpInfo() {
-		rotate();
+
+	/** @return The number of addresses with traffic in the last STATISTICS_ENTRIES periods.
+	 * Only for tests. */
+	int countTargets() {
+		return targets.size();
+	}
+
+	private void _dumpInfo(long now) {
+		long period = period(now);
+		rotate(period);
 		//DateFormat df = DateFormat.getDateInstance(DateFormat.LONG, Locale.FRANCE);
 		//System.err.println(DateFormat.getDateInstance().format(new Date()));
 		System.err.println(new Date());
-		final double divby = STATISTICS_DURATION_S*1024; 
-		for (Map.Entry<String,StatisticEntry> entry : targets.entrySet()) {
-			String key = entry.getKey();
-			int inres[] = entry.getValue().getRecieved();
-			int outres[] = entry.getValue().getSent();
+		final double divby = STATISTICS_DURATION_S*1024;
+		for (Map.Entry<AddressKey,StatisticEntry> entry : targets.entrySet()) {
+			String key = entry.getKey().toString();
+			int inres[] = entry.getValue().getRecieved(period);
+			int outres[] = entry.getValue().getSent(period);
 			System.err.print((key + "          ").substring(0,22) + ": ");
 			int tin = 0;
 			int tout = 0;
-			
+
 			for (int i = 0 ; i < inres.length ; i++) {
 				// in/out in 102.4 bytes (hecto-bytes)
 				tin += inres[i];
 				tout += outres[i];
-				
+
 				int in = (int) ((tin*10.0) / (divby*(i+1)));
 				int out =(int) ((tout*10.0) /(divby*(i+1)));
-				
+
 				System.err.print("i:" + (in/10) + '.' + (in%10));
 				System.err.print(" o:" + (out/10) + '.' + (out%10));
 				System.err.print(" \t");
@@ -140,85 +170,122 @@ public class IOStatisticCollector {
 		}
 		System.err.println();
 	}
-	
-	private void rotate() {
-		long now = System.currentTimeMillis();
-		if ((now - lastrotate) >= STATISTICS_DURATION) {
-			lastrotate = now;
-			Object[] keys = targets.keySet().toArray();
-			if(keys == null) return; // Why aren't we iterating there ?
-			for(int i = 0 ; i < keys.length ; i++) {
-				Object key = keys[i];
-				if (targets.get(key).rotate() == false)
-					targets.remove(key);
-			}
-			// FIXME: debugging
-			//_dumpInfo();
+
+	/** Once per period, remove addresses with no traffic in the last STATISTICS_ENTRIES
+	 * periods. Only one thread does this. */
+	private void rotate(long period) {
+		long last = lastrotate.get();
+		if(period <= last || !lastrotate.compareAndSet(last, period)) return;
+		for(Iterator<StatisticEntry> it = targets.values().iterator(); it.hasNext();) {
+			if(!it.next().hasData(period))
+				it.remove();
 		}
+		// FIXME: debugging
+		//_dumpInfo();
 	}
 
-	
-/*	
- * to thead each update.... heavy stuff
-	private class StatisticUpdater implements Runnable {
-		private IOStatisticCollector sc;
-		private String key;
-		private int inbytes;
-		private int outbytes;
-		
-		public StatisticUpdater(IOStatisticCollector sc, String key,
-				int inbytes, int outbytes) {
-			this.sc = sc;
-			this.key = key;
-			this.inbytes = inbytes;
-			this.outbytes = outbytes;
-			new Thread(this, "IOStatisticCollector$StatisticUpdater").run();
-		}
-		
-		public void run() {
-			
+	/** Key for per-address tracking. Cheaper than building a String for every packet. */
+	private static final class AddressKey {
+		private final InetAddress addr;
+		private final int port;
+		private final int hashCode;
+
+		AddressKey(InetAddress addr, int port) {
+			this.addr = addr;
+			this.port = port;
+			this.hashCode = (addr == null ? 0 : addr.hashCode()) * 31 + port;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof AddressKey)) return false;
+			AddressKey k = (AddressKey) o;
+			if(port != k.port) return false;
+			return addr == null ? k.addr == null : addr.equals(k.addr);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public String toString() {
+			return addr + ":" + port;
 		}
 	}
-	*/
-	
-	
-	
+
+	/**
+	 * The bytes sent and received for one address. A ring of STATISTICS_ENTRIES+1 slots, each
+	 * { period, in, out }, indexed by the period number. The current period's slot is reused
+	 * from STATISTICS_ENTRIES+1 periods ago, and is reset by whichever thread first sees it
+	 * is out of date. Bytes added by another thread while it is being reset may be lost; this
+	 * is only statistics.
+	 */
 	private static class StatisticEntry {
-		private int recieved[];
-		private int sent[];
-		
+		private static final int SLOTS = IOStatisticCollector.STATISTICS_ENTRIES+1;
+		private static final int PERIOD = 0;
+		private static final int RECEIVED = 1;
+		private static final int SENT = 2;
+		private final AtomicLongArray slots;
+
 		public StatisticEntry() {
-			// Create a new array and clear it
-			recieved = new int[IOStatisticCollector.STATISTICS_ENTRIES+1];
-			sent     = new int[IOStatisticCollector.STATISTICS_ENTRIES+1];
-			for (int i = 0 ; i < recieved.length ; i++) {
-				recieved[i] = sent[i] = 0;
+			slots = new AtomicLongArray(SLOTS * 3);
+			for (int i = 0 ; i < SLOTS ; i++)
+				slots.set(i * 3 + PERIOD, -1);
+		}
+
+		private static int slot(long period) {
+			return (int) (period % SLOTS) * 3;
+		}
+
+		public void addData(long period, int inbytes, int outbytes) {
+			int slot = slot(period);
+			long slotPeriod = slots.get(slot + PERIOD);
+			if(slotPeriod != period) {
+				if(slotPeriod > period) return; // Clock went backwards.
+				if(slots.compareAndSet(slot + PERIOD, slotPeriod, period)) {
+					slots.set(slot + RECEIVED, 0);
+					slots.set(slot + SENT, 0);
+				}
+			}
+			if(inbytes > 0) slots.getAndAdd(slot + RECEIVED, inbytes);
+			if(outbytes > 0) slots.getAndAdd(slot + SENT, outbytes);
+		}
+
+		/** @return True if there is data for any of the STATISTICS_ENTRIES periods before
+		 * the given one, or for the given period. */
+		public boolean hasData(long period) {
+			for (int i = 0 ; i < SLOTS ; i++) {
+				long slotPeriod = slots.get(i * 3 + PERIOD);
+				if(slotPeriod >= period - STATISTICS_ENTRIES && slotPeriod <= period &&
+						(slots.get(i * 3 + RECEIVED) > 0 || slots.get(i * 3 + SENT) > 0))
+					return true;
 			}
+			return false;
 		}
-		
-		public void addData(int inbytes, int outbytes) {
-			recieved[0] += inbytes;
-			sent[0]     += outbytes;
-		}
-		
-		public boolean rotate() {
-			boolean hasdata = false;
-			for (int i = recieved.length - 1 ; i > 0 ; i--) {
-				recieved[i] = recieved[i-1];
-				sent[i]     = sent[i-1];
-				hasdata |= (recieved[i] > 0) || (sent[i] > 0);
+
+		/** @return The value for each of the STATISTICS_ENTRIES periods before the given
+		 * one, most recent first. */
+		private int[] get(long period, int offset) {
+			int[] ret = new int[STATISTICS_ENTRIES];
+			for (int i = 0 ; i < STATISTICS_ENTRIES ; i++) {
+				long p = period - 1 - i;
+				if(p < 0) break;
+				int slot = slot(p);
+				if(slots.get(slot + PERIOD) == p)
+					ret[i] = (int) slots.get(slot + offset);
 			}
-			recieved[0] = sent[0] = 0;
-			return hasdata;
+			return ret;
 		}
-		
-		public int[] getRecieved() {
-			return Arrays.copyOfRange(recieved, 1, 1 + IOStatisticCollector.STATISTICS_ENTRIES);
+
+		public int[] getRecieved(long period) {
+			return get(period, RECEIVED);
 		}
-		
-		public int[] getSent() {
-			return Arrays.copyOfRange(sent, 1, 1 + IOStatisticCollector.STATISTICS_ENTRIES);
+
+		public int[] getSent(long period) {
+			return get(period, SENT);
 		}
-		
+
 	}
 }
@@ -27,6 +27,7 @@ import java.util.Map;
 
 import freenet.io.comm.MessageFilter.MATCHED;
 import freenet.node.PeerNode;
+import freenet.node.stats.Instrumentation;
 import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -179,6 +180,7 @@ public class MessageCore {
 	public void checkFilters(Message m, PacketSocketHandler from) {
 		final boolean logMINOR = MessageCore.logMINOR;
 		final boolean logDEBUG = MessageCore.logDEBUG;
+		long startTime = System.nanoTime();
 		long tStart = System.currentTimeMillis();
 		if(logMINOR) Logger.minor(this, "checkFilters: "+m+" from "+m.getSource());
 		if ((m.getSource()) instanceof PeerNode)
@@ -306,6 +308,7 @@ public class MessageCore {
 				}
 			}
 		}
+		Instrumentation.MESSAGE_FILTER_MATCH.reportSince(startTime);
 		long tEnd = System.currentTimeMillis();
 		long dT = tEnd - tStart;
 		if(dT > 50) {
@@ -0,0 +1,556 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+import freenet.support.io.NativeThread;
+
+/**
+ * The I/O half of UdpSocketHandler, normally on a DatagramChannel. One thread receives
+ * packets into pooled direct buffers, and hands them to a number of decode workers, which
+ * run the IncomingPacketFilter (decryption etc). Packets are assigned to a worker by source
+ * address and port, so packets from one peer are still processed one at a time and in the
+ * order they arrived. With no workers, packets are processed on the receive thread, as
+ * before.
+ *
+ * Outgoing packets are copied to a direct buffer and queued for a single send thread,
+ * which sends everything queued each time it wakes up, so the PacketSender doesn't wait
+ * for the kernel for each packet. If the queue is full we send on the caller's thread.
+ *
+ * Keeps counts of packets and bytes, and of the time spent in each stage.
+ */
+class UdpChannelIO {
+
+	private static volatile boolean logMINOR;
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(UdpChannelIO.class);
+	}
+
+	/** Told about packets received and sent, for byte counting and address tracking. */
+	interface Callback {
+		/** Called on the receive thread for each packet received. */
+		void onReceived(Peer peer, InetAddress address, int port, int length);
+		/** Called on the send thread (or the caller's thread) after a packet is sent. */
+		void onSent(Peer destination, InetAddress address, int port, int length);
+		/** Called if sending a packet fails. */
+		void onSendFailed(Peer destination, InetAddress address, IOException e);
+	}
+
+	static final int MAX_RECEIVE_SIZE = 1500;
+	/** Packets queued for each decode worker. If the queue is full we drop the packet. */
+	static final int DECODE_QUEUE_SIZE = 256;
+	/** Packets queued for the send thread. If the queue is full the caller sends. */
+	static final int SEND_QUEUE_SIZE = 512;
+	/** Maximum packets the send thread takes off the queue at once. */
+	static final int SEND_BATCH_SIZE = 64;
+
+	private final DatagramTransport transport;
+	private final Callback callback;
+	private volatile IncomingPacketFilter filter;
+	private volatile boolean active = true;
+	private final DecodeWorker[] workers;
+	/** Direct buffers for received packets. */
+	private final BlockingQueue<ByteBuffer> receiveBuffers;
+	/** Direct buffers for outgoing packets. */
+	private final BlockingQueue<ByteBuffer> sendBuffers;
+	private final BlockingQueue<OutgoingPacket> sendQueue;
+	/** Used to process packets on the receive thread if there are no workers. */
+	private final byte[] inlineBuffer = new byte[MAX_RECEIVE_SIZE];
+
+	private final AtomicLong packetsReceived = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong packetsDropped = new AtomicLong();
+	private final AtomicLong packetsSent = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong sentOnCallerThread = new AtomicLong();
+	private final AtomicLong sendBatches = new AtomicLong();
+	private final Stage decodeQueueStage = new Stage();
+	private final Stage decodeStage = new Stage();
+	private final Stage sendQueueStage = new Stage();
+	private final Stage sendStage = new Stage();
+	private final long startTime;
+
+	/** Total and maximum time spent in one stage of handling a packet. */
+	static class Stage {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void report(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			while(true) {
+				long max = maxNanos.get();
+				if(nanos <= max || maxNanos.compareAndSet(max, nanos)) return;
+			}
+		}
+
+		/** @return The average time in microseconds, or 0. */
+		double averageMicros() {
+			long c = count.get();
+			if(c == 0) return 0;
+			return totalNanos.get() / 1000.0 / c;
+		}
+
+		/** @return The longest time in microseconds. */
+		double maxMicros() {
+			return maxNanos.get() / 1000.0;
+		}
+
+		long count() {
+			return count.get();
+		}
+	}
+
+	private static class ReceivedPacket {
+		final ByteBuffer buf;
+		final Peer peer;
+		final long received;
+		final long receivedNanos;
+
+		ReceivedPacket(ByteBuffer buf, Peer peer, long received, long receivedNanos) {
+			this.buf = buf;
+			this.peer = peer;
+			this.received = received;
+			this.receivedNanos = receivedNanos;
+		}
+	}
+
+	private static class OutgoingPacket {
+		final ByteBuffer buf;
+		final Peer destination;
+		final InetSocketAddress target;
+		final long queuedNanos;
+
+		OutgoingPacket(ByteBuffer buf, Peer destination, InetSocketAddress target, long queuedNanos) {
+			this.buf = buf;
+			this.destination = destination;
+			this.target = target;
+			this.queuedNanos = queuedNanos;
+		}
+	}
+
+	/** Tells the workers and the send thread to exit. */
+	private static final ReceivedPacket STOP_DECODING = new ReceivedPacket(null, null, 0, 0);
+	private static final OutgoingPacket STOP_SENDING = new OutgoingPacket(null, null, null, 0);
+
+	/**
+	 * @param listenPort The port to bind to, or 0 for any.
+	 * @param bindTo The address to bind to, or null for all.
+	 * @param decodeWorkers The number of threads to process incoming packets on. If 0,
+	 * process them on the receive thread.
+	 * @throws SocketException If we can't bind to the port.
+	 */
+	UdpChannelIO(int listenPort, InetAddress bindTo, int decodeWorkers, Callback callback) throws SocketException {
+		this(new ChannelTransport(listenPort, bindTo), decodeWorkers, callback);
+	}
+
+	/**
+	 * @param transport Where to send and receive packets, already bound.
+	 * @param decodeWorkers The number of threads to process incoming packets on. If 0,
+	 * process them on the receive thread.
+	 */
+	UdpChannelIO(DatagramTransport transport, int decodeWorkers, Callback callback) {
+		this.callback = callback;
+		this.transport = transport;
+		workers = new DecodeWorker[decodeWorkers];
+		for(int i=0;i<workers.length;i++)
+			workers[i] = new DecodeWorker(i);
+		// Enough that the receive thread never has to allocate: every worker's queue
+		// full, plus one being processed by each worker, plus one being received into.
+		int buffers = decodeWorkers * (DECODE_QUEUE_SIZE + 1) + 1;
+		receiveBuffers = new ArrayBlockingQueue<ByteBuffer>(buffers);
+		for(int i=0;i<buffers;i++)
+			receiveBuffers.add(ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE));
+		sendBuffers = new ArrayBlockingQueue<ByteBuffer>(SEND_QUEUE_SIZE);
+		sendQueue = new ArrayBlockingQueue<OutgoingPacket>(SEND_QUEUE_SIZE);
+		startTime = System.currentTimeMillis();
+	}
+
+	void setFilter(IncomingPacketFilter filter) {
+		this.filter = filter;
+	}
+
+	/** Start the decode workers and the send thread. The caller must call receive() in a
+	 * loop, normally on a MAX_PRIORITY thread. */
+	void start(Executor executor, String name) {
+		for(DecodeWorker worker : workers)
+			executor.execute(worker, "Packet decoder "+worker.index+" for "+name);
+		executor.execute(new PrioRunnable() {
+
+			@Override
+			public void run() {
+				runSendLoop();
+			}
+
+			@Override
+			public int getPriority() {
+				return NativeThread.MAX_PRIORITY;
+			}
+
+		}, "Packet send thread for "+name);
+	}
+
+	boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Receive one packet and either process it or queue it for a worker.
+	 * @return False if there was no packet, e.g. because we have been closed.
+	 */
+	boolean receive() {
+		ByteBuffer buf = receiveBuffers.poll();
+		if(buf == null) buf = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+		boolean queued = false;
+		try {
+			buf.clear();
+			InetSocketAddress from;
+			try {
+				from = transport.receive(buf);
+			} catch (ClosedChannelException e) {
+				// Including AsynchronousCloseException: closed, just return silently
+				return false;
+			} catch (IOException e) {
+				if(!active) return false;
+				throw new RuntimeException(e);
+			}
+			if(from == null) {
+				if(logDEBUG) Logger.debug(this, "No packet received");
+				return false;
+			}
+			long now = System.currentTimeMillis();
+			long nowNanos = System.nanoTime();
+			buf.flip();
+			int length = buf.remaining();
+			packetsReceived.incrementAndGet();
+			bytesReceived.addAndGet(length);
+			InetSocketAddress address = from;
+			Peer peer = new Peer(address.getAddress(), address.getPort());
+			callback.onReceived(peer, address.getAddress(), address.getPort(), length);
+			if(logMINOR) Logger.minor(this, "Received packet length "+length+" from "+peer);
+			if(workers.length == 0) {
+				buf.get(inlineBuffer, 0, length);
+				process(inlineBuffer, length, peer, now);
+			} else {
+				DecodeWorker worker = workers[(address.hashCode() & Integer.MAX_VALUE) % workers.length];
+				if(worker.queue.offer(new ReceivedPacket(buf, peer, now, nowNanos))) {
+					queued = true;
+				} else {
+					packetsDropped.incrementAndGet();
+					if(logMINOR) Logger.minor(this, "Dropping packet from "+peer+": decode worker "+worker.index+" is busy");
+				}
+			}
+			return true;
+		} finally {
+			if(!queued) receiveBuffers.offer(buf);
+		}
+	}
+
+	private void process(byte[] data, int length, Peer peer, long now) {
+		long startTime = System.nanoTime();
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			filter.process(data, 0, length, peer, now);
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ filter, t);
+		}
+		long time = System.nanoTime() - startTime;
+		decodeStage.report(time);
+		if(time > 50*1000*1000) {
+			if(time > 3000L*1000*1000) {
+				Logger.error(this, "processing packet took "+(time/(1000*1000))+"ms");
+			} else {
+				if(logMINOR) Logger.minor(this, "processing packet took "+(time/(1000*1000))+"ms");
+			}
+		}
+	}
+
+	private class DecodeWorker implements PrioRunnable {
+
+		final int index;
+		final BlockingQueue<ReceivedPacket> queue = new ArrayBlockingQueue<ReceivedPacket>(DECODE_QUEUE_SIZE);
+		private final byte[] data = new byte[MAX_RECEIVE_SIZE];
+
+		DecodeWorker(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				ReceivedPacket packet;
+				try {
+					packet = queue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(packet == STOP_DECODING) return;
+				try {
+					decodeQueueStage.report(System.nanoTime() - packet.receivedNanos);
+					int length = packet.buf.remaining();
+					packet.buf.get(data, 0, length);
+					receiveBuffers.offer(packet.buf);
+					process(data, length, packet.peer, packet.received);
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t, t);
+				}
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MAX_PRIORITY;
+		}
+
+	}
+
+	/**
+	 * Queue a packet to send.
+	 * @param data The packet. Copied, so the caller can reuse it.
+	 */
+	void send(byte[] data, Peer destination, InetAddress address, int port) {
+		if(!active) return;
+		ByteBuffer buf = sendBuffers.poll();
+		if(buf == null || buf.capacity() < data.length)
+			buf = ByteBuffer.allocateDirect(Math.max(data.length, MAX_RECEIVE_SIZE));
+		buf.clear();
+		buf.put(data);
+		buf.flip();
+		OutgoingPacket packet = new OutgoingPacket(buf, destination, new InetSocketAddress(address, port), System.nanoTime());
+		if(!sendQueue.offer(packet)) {
+			// Send thread is falling behind. Don't wait for it.
+			sentOnCallerThread.incrementAndGet();
+			sendNow(packet);
+		}
+	}
+
+	private void runSendLoop() {
+		ArrayList<OutgoingPacket> batch = new ArrayList<OutgoingPacket>(SEND_BATCH_SIZE);
+		while(true) {
+			try {
+				batch.add(sendQueue.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			sendQueue.drainTo(batch, SEND_BATCH_SIZE - 1);
+			sendBatches.incrementAndGet();
+			for(OutgoingPacket packet : batch) {
+				if(packet == STOP_SENDING) return;
+				try {
+					sendNow(packet);
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t, t);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	private void sendNow(OutgoingPacket packet) {
+		long startTime = System.nanoTime();
+		sendQueueStage.report(startTime - packet.queuedNanos);
+		int length = packet.buf.remaining();
+		try {
+			if(!active) return;
+			transport.send(packet.buf, packet.target);
+			sendStage.report(System.nanoTime() - startTime);
+			packetsSent.incrementAndGet();
+			bytesSent.addAndGet(length);
+			callback.onSent(packet.destination, packet.target.getAddress(), packet.target.getPort(), length);
+		} catch (IOException e) {
+			if(active)
+				callback.onSendFailed(packet.destination, packet.target.getAddress(), e);
+		} finally {
+			sendBuffers.offer(packet.buf);
+		}
+	}
+
+	/** Close the transport and stop the workers and the send thread. Packets queued to be
+	 * sent are discarded. */
+	void close() {
+		active = false;
+		try {
+			transport.close();
+		} catch (IOException e) {
+			Logger.error(this, "Failed to close transport: "+e, e);
+		}
+		for(DecodeWorker worker : workers) {
+			worker.queue.clear();
+			putUninterruptibly(worker.queue, STOP_DECODING);
+		}
+		sendQueue.clear();
+		putUninterruptibly(sendQueue, STOP_SENDING);
+	}
+
+	private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item) {
+		while(true) {
+			try {
+				queue.put(item);
+				return;
+			} catch (InterruptedException e) {
+				// Try again.
+			}
+		}
+	}
+
+	int getLocalPort() {
+		return transport.getLocalPort();
+	}
+
+	InetAddress getLocalAddress() {
+		return transport.getLocalAddress();
+	}
+
+	int countDecodeWorkers() {
+		return workers.length;
+	}
+
+	long countPacketsReceived() {
+		return packetsReceived.get();
+	}
+
+	long countBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/** @return Packets dropped because the decode worker was too busy. */
+	long countPacketsDropped() {
+		return packetsDropped.get();
+	}
+
+	long countPacketsSent() {
+		return packetsSent.get();
+	}
+
+	long countBytesSent() {
+		return bytesSent.get();
+	}
+
+	/** @return Packets sent on the caller's thread because the send queue was full. */
+	long countSentOnCallerThread() {
+		return sentOnCallerThread.get();
+	}
+
+	/** @return The number of times the send thread woke up to send packets. */
+	long countSendBatches() {
+		return sendBatches.get();
+	}
+
+	/** Time from receiving a packet to a worker starting to process it. */
+	Stage getDecodeQueueStage() {
+		return decodeQueueStage;
+	}
+
+	/** Time spent in the IncomingPacketFilter. */
+	Stage getDecodeStage() {
+		return decodeStage;
+	}
+
+	/** Time from send() to the send thread picking the packet up. */
+	Stage getSendQueueStage() {
+		return sendQueueStage;
+	}
+
+	/** Time spent in DatagramTransport.send(). */
+	Stage getSendStage() {
+		return sendStage;
+	}
+
+	long getStartTime() {
+		return startTime;
+	}
+
+	/** The real thing: a DatagramChannel bound to a local port. */
+	private static class ChannelTransport implements DatagramTransport {
+
+		private final DatagramChannel channel;
+
+		ChannelTransport(int listenPort, InetAddress bindTo) throws SocketException {
+			try {
+				channel = DatagramChannel.open();
+			} catch (SocketException e) {
+				throw e;
+			} catch (IOException e) {
+				SocketException se = new SocketException("Unable to open datagram channel: "+e);
+				se.initCause(e);
+				throw se;
+			}
+			boolean success = false;
+			try {
+				// Don't set SO_REUSEADDR before binding: we need to know if the port is in use.
+				channel.socket().bind(new InetSocketAddress(bindTo, listenPort));
+				if(channel.socket().getReceiveBufferSize() < 65536)
+					channel.socket().setReceiveBufferSize(65536);
+				// Exit reasonably quickly
+				channel.socket().setReuseAddress(true);
+				success = true;
+			} finally {
+				if(!success) {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						// Ignore
+					}
+				}
+			}
+		}
+
+		@Override
+		public InetSocketAddress receive(ByteBuffer buf) throws IOException {
+			return (InetSocketAddress) channel.receive(buf);
+		}
+
+		@Override
+		public void send(ByteBuffer buf, InetSocketAddress target) throws IOException {
+			channel.send(buf, target);
+		}
+
+		@Override
+		public int getLocalPort() {
+			return channel.socket().getLocalPort();
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return channel.socket().getLocalAddress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return getLocalAddress() + ":" + getLocalPort();
+	}
+
+}
@@ -1,12 +1,9 @@
 package freenet.io.comm;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.util.Random;
 
 import freenet.io.AddressTracker;
@@ -18,9 +15,13 @@ import freenet.support.OOMHandler;
 import freenet.support.io.NativeThread;
 import freenet.support.transport.ip.IPUtil;
 
-public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
+public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler, UdpChannelIO.Callback {
 
-	private final DatagramSocket _sock;
+	/** Number of threads decoding incoming packets for each socket. If 0, we decode on
+	 * the receive thread. Decoding is mostly crypto, so use the spare cores. */
+	static final int DECODE_WORKERS = Math.min(4, Runtime.getRuntime().availableProcessors() - 1);
+
+	private final UdpChannelIO io;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -57,17 +58,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
-		int sz = _sock.getReceiveBufferSize();
-		if(sz < 65536) {
-			_sock.setReceiveBufferSize(65536);
-		}
-		try {
-			// Exit reasonably quickly
-			_sock.setReuseAddress(true);
-		} catch (SocketException e) {
-			throw new RuntimeException(e);
-		}
+		io = new UdpChannelIO(listenPort, bindto, DECODE_WORKERS, this);
 //		}
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.fastWeakRandom;
@@ -75,10 +66,26 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		tracker.startSend(startupTime);
 	}
 
+	/** Send and receive on the given transport instead of binding a DatagramChannel. For
+	 * running real nodes on a simulated network. */
+	public UdpSocketHandler(DatagramTransport transport, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) {
+		this.node = node;
+		this.collector = collector;
+		this.title = title;
+		_bindTo = bindto;
+		this.listenPort = transport.getLocalPort();
+		io = new UdpChannelIO(transport, DECODE_WORKERS, this);
+		// Only used for debugging, no need to seed from Yarrow
+		dropRandom = node.fastWeakRandom;
+		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
+		tracker.startSend(startupTime);
+	}
+
 	/** Must be called, or we will NPE in run() */
 	@Override
 	public void setLowLevelFilter(IncomingPacketFilter f) {
 		lowLevelFilter = f;
+		io.setFilter(f);
 	}
 
 	public InetAddress getBindTo() {
@@ -122,8 +129,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 				t.printStackTrace();
 			} catch (Throwable tt) {};
 		} finally {
-			System.err.println("run() exiting for UdpSocketHandler on port "+_sock.getLocalPort());
-			Logger.error(this, "run() exiting for UdpSocketHandler on port "+_sock.getLocalPort());
+			System.err.println("run() exiting for UdpSocketHandler on port "+io.getLocalPort());
+			Logger.error(this, "run() exiting for UdpSocketHandler on port "+io.getLocalPort());
 			synchronized (this) {
 				_isDone = true;
 				notifyAll();
@@ -132,11 +139,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private void runLoop() {
-		byte[] buf = new byte[MAX_RECEIVE_SIZE];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
 			try {
-				realRun(packet);
+				// Single receiving thread
+				io.receive();
 			} catch (OutOfMemoryError e) {
 				OOMHandler.handleOOM(e);
 				System.err.println("Will retry above failed operation...");
@@ -148,68 +154,21 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	private void realRun(DatagramPacket packet) {
-		// Single receiving thread
-		boolean gotPacket = getPacket(packet);
-		long now = System.currentTimeMillis();
-		if (gotPacket) {
-			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
-			long endTime = System.currentTimeMillis();
-			if(endTime - startTime > 50) {
-				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
-				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
-				}
-			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
-			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
-		}
-	}
-
-	private static final int MAX_RECEIVE_SIZE = 1500;
-
-	private boolean getPacket(DatagramPacket packet) {
-		try {
-			_sock.receive(packet);
-			InetAddress address = packet.getAddress();
-			boolean isLocal = !IPUtil.isValidAddress(address, false);
-			collector.addInfo(address, packet.getPort(),
-					getHeadersLength(address) + packet.getLength(), 0, isLocal);
-		} catch (SocketTimeoutException e1) {
-			return false;
-		} catch (IOException e2) {
-			if (!_active) { // closed, just return silently
-				return false;
+	@Override
+	public void onReceived(Peer peer, InetAddress address, int port, int length) {
+		long startTime = System.currentTimeMillis();
+		boolean isLocal = !IPUtil.isValidAddress(address, false);
+		collector.addInfo(address, port,
+				getHeadersLength(address) + length, 0, isLocal);
+		tracker.receivedPacketFrom(peer);
+		long endTime = System.currentTimeMillis();
+		if(endTime - startTime > 50) {
+			if(endTime-startTime > 3000) {
+				Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
 			} else {
-				throw new RuntimeException(e2);
+				if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
 			}
 		}
-		if(logMINOR) Logger.minor(this, "Received packet");
-		return true;
 	}
 
 	/**
@@ -237,29 +196,31 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 		if (_dropProbability > 0) {
 			if (dropRandom.nextInt() % _dropProbability == 0) {
-				Logger.normal(this, "DROPPED: " + _sock.getLocalPort() + " -> " + destination.getPort());
+				Logger.normal(this, "DROPPED: " + io.getLocalPort() + " -> " + destination.getPort());
 				return;
 			}
 		}
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
 		int port = destination.getPort();
-		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
-		packet.setAddress(address);
-		packet.setPort(port);
+		// Queued for the send thread.
+		io.send(blockToSend, destination, address, port);
+	}
 
-		try {
-			_sock.send(packet);
-			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
-			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
-		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
-				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
-			} else {
-				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
-			}
+	@Override
+	public void onSent(Peer destination, InetAddress address, int port, int length) {
+		tracker.sentPacketTo(destination);
+		boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+		collector.addInfo(address, port, 0, getHeadersLength(address) + length, isLocal);
+		if(logMINOR) Logger.minor(this, "Sent packet length "+length+" to "+address+':'+port);
+	}
+
+	@Override
+	public void onSendFailed(Peer destination, InetAddress address, IOException e) {
+		if(address instanceof Inet6Address) {
+			Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
+		} else {
+			Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
 		}
 	}
 
@@ -316,6 +277,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			_started = true;
 			startTime = System.currentTimeMillis();
 		}
+		io.start(node.executor, "port "+listenPort);
 		node.executor.execute(this, "UdpSocketHandler for port "+listenPort);
 	}
 
@@ -323,7 +285,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		Logger.normal(this, "Closing.", new Exception("error"));
 		synchronized (this) {
 			_active = false;
-			_sock.close();
+			io.close();
 
 			if(!_started) return;
 			while (!_isDone) {
@@ -346,12 +308,12 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	public int getPortNumber() {
-		return _sock.getLocalPort();
+		return io.getLocalPort();
 	}
 
 	@Override
 	public String toString() {
-		return _sock.getLocalAddress() + ":" + _sock.getLocalPort();
+		return io.toString();
 	}
 
 	@Override
@@ -391,4 +353,49 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return startTime;
 	}
 
+	public int countDecodeWorkers() {
+		return io.countDecodeWorkers();
+	}
+
+	public long countPacketsReceived() {
+		return io.countPacketsReceived();
+	}
+
+	public long countPacketsSent() {
+		return io.countPacketsSent();
+	}
+
+	/** @return Incoming packets dropped because the decode threads were too busy. */
+	public long countPacketsDropped() {
+		return io.countPacketsDropped();
+	}
+
+	/** @return Average time in microseconds between receiving a packet and starting to
+	 * decode it. */
+	public double getAverageDecodeQueueTime() {
+		return io.getDecodeQueueStage().averageMicros();
+	}
+
+	/** @return Average time in microseconds spent decoding a packet. */
+	public double getAverageDecodeTime() {
+		return io.getDecodeStage().averageMicros();
+	}
+
+	/** @return Average time in microseconds a packet waits to be sent. */
+	public double getAverageSendQueueTime() {
+		return io.getSendQueueStage().averageMicros();
+	}
+
+	/** @return Average time in microseconds spent sending a packet. */
+	public double getAverageSendTime() {
+		return io.getSendStage().averageMicros();
+	}
+
+	/** @return Average number of packets sent each time the send thread wakes up. */
+	public double getAverageSendBatch() {
+		long batches = io.countSendBatches();
+		if(batches == 0) return 0;
+		return ((double)(io.countPacketsSent() - io.countSentOnCallerThread())) / batches;
+	}
+
 }
@@ -0,0 +1,107 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import freenet.support.Logger;
+
+/**
+ * The original PacketThrottle algorithm: slow start, then additive increase, and a
+ * multiplicative decrease on every lost packet. Since it only reacts to loss, it will fill
+ * any buffer along the path before backing off, and random loss on a lossy link keeps the
+ * window small.
+ */
+public class AIMDCongestionControl implements CongestionControl {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(AIMDCongestionControl.class);
+	}
+
+	protected static final double PACKET_DROP_DECREASE_MULTIPLE = 0.875;
+	protected static final double PACKET_TRANSMIT_INCREMENT = (4 * (1 - (PACKET_DROP_DECREASE_MULTIPLE * PACKET_DROP_DECREASE_MULTIPLE))) / 3;
+	protected static final double SLOW_START_DIVISOR = 3.0;
+	/** The size of the window, in packets.
+	 * Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
+	 * But mostly it is because of the non-slow-start division by _windowSize! */
+	private float _windowSize;
+	private boolean slowStart = true;
+	/** Incremented on each send; the sequence number of the packet last added to the window/sent */
+	private long _packetSeq;
+	/** Last time (seqno) the window was full */
+	private long _packetSeqWindowFull;
+	/** Last time (seqno) we checked whether the window was full, or dropped a packet. */
+	private long _packetSeqWindowFullChecked;
+
+	public AIMDCongestionControl(double initialWindow) {
+		_windowSize = (float) Math.max(1.0, initialWindow);
+	}
+
+	@Override
+	public void onRoundTripTime(long rtt, long now) {
+		// Loss-based, ignore.
+	}
+
+	@Override
+	public void onPacketLost(long now) {
+		_windowSize *= PACKET_DROP_DECREASE_MULTIPLE;
+		if(_windowSize < 1.0F) _windowSize = 1.0F;
+		slowStart = false;
+		_packetSeqWindowFullChecked = _packetSeq;
+	}
+
+	@Override
+	public void onPacketAcknowledged(double maxWindowSize, long now) {
+		// If we didn't use the whole window, shrink the window a bit.
+		// This is similar but not identical to RFC2861
+		// See [freenet-dev] Major weakness in our current link-level congestion control
+		int windowSize = (int)getWindowSize();
+		if(_packetSeqWindowFullChecked + windowSize < _packetSeq) {
+			// FIXME this is only relevant for old packet format, which uses sendThrottledMessage(), get rid of it when we get rid of old packet format.
+			if(_packetSeqWindowFull < _packetSeqWindowFullChecked) {
+				// We haven't used the full window once since we last checked.
+				_windowSize *= PACKET_DROP_DECREASE_MULTIPLE;
+				if(_windowSize < 1.0F) _windowSize = 1.0F;
+				_packetSeqWindowFullChecked += windowSize;
+				if(logMINOR) Logger.minor(this, "Window not used since we last checked: full="+_packetSeqWindowFull+" last checked="+_packetSeqWindowFullChecked+" window = "+_windowSize+" for "+this);
+				return;
+			}
+			_packetSeqWindowFullChecked += windowSize;
+		}
+
+		if(slowStart) {
+			if(logMINOR) Logger.minor(this, "Still in slow start");
+			_windowSize += _windowSize / SLOW_START_DIVISOR;
+			// Avoid craziness if there is lag in detecting packet loss.
+			if(_windowSize > maxWindowSize) slowStart = false;
+			// Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
+			// But mostly it is because of the non-slow-start division by _windowSize!
+			if(_windowSize < 1.0F) _windowSize = 1.0F;
+		} else {
+			_windowSize += (PACKET_TRANSMIT_INCREMENT / _windowSize);
+		}
+		// Ensure that we the window size does not grow dramatically larger than the largest window
+		// that has actually been in flight at one time. This works both on new and old packet format,
+		// although it is more relevant for new packet format because new packet format allows larger
+		// in flight windows in practice.
+		if(_windowSize > maxWindowSize)
+			_windowSize = (float) maxWindowSize;
+	}
+
+	@Override
+	public double getWindowSize() {
+		return Math.max(1.0, _windowSize);
+	}
+
+	@Override
+	public Algorithm getAlgorithm() {
+		return Algorithm.AIMD;
+	}
+
+	@Override
+	public String toString() {
+		return "AIMD w="+_windowSize+(slowStart ? " (slow start)" : "");
+	}
+
+}
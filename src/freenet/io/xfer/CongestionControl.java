@@ -0,0 +1,62 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * Link-level congestion control for a PacketThrottle: decides the window, the number of
+ * packets which may be in flight to a peer at once. Always called with the PacketThrottle
+ * locked, so implementations need not be thread-safe. Times are passed in so that the
+ * simulator can use virtual time.
+ */
+public interface CongestionControl {
+
+	/** The algorithms available, for the node.congestionControl option. */
+	public enum Algorithm {
+		/** Additive increase, multiplicative decrease on every lost packet. */
+		AIMD,
+		/** Keeps the queueing delay near a target, and reduces at most once per round trip
+		 * on loss. */
+		DELAY;
+
+		public CongestionControl create(double initialWindow) {
+			switch(this) {
+			case AIMD:
+				return new AIMDCongestionControl(initialWindow);
+			case DELAY:
+				return new DelayBasedCongestionControl(initialWindow);
+			default:
+				throw new IllegalStateException();
+			}
+		}
+
+		/** @return The names of the algorithms, for the config option. */
+		public static String[] names() {
+			Algorithm[] values = values();
+			String[] names = new String[values.length];
+			for(int i=0;i<values.length;i++)
+				names[i] = values[i].name();
+			return names;
+		}
+	}
+
+	/** A round trip time measured from an acknowledged packet. Called before
+	 * onPacketAcknowledged(), and also for acks of packets we had already given up on. */
+	void onRoundTripTime(long rtt, long now);
+
+	/**
+	 * A packet was acknowledged.
+	 * @param maxWindowSize The window must not grow beyond this. See
+	 * PacketThrottle.notifyOfPacketAcknowledged().
+	 */
+	void onPacketAcknowledged(double maxWindowSize, long now);
+
+	/** A packet was lost. Called once for each lost packet. */
+	void onPacketLost(long now);
+
+	/** @return The window size in packets, at least 1.0. */
+	double getWindowSize();
+
+	Algorithm getAlgorithm();
+
+}
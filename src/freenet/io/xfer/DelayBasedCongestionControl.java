@@ -0,0 +1,161 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import freenet.support.Logger;
+
+/**
+ * Delay-based congestion control, along the lines of LEDBAT (RFC 6817). The base delay is
+ * the lowest round trip time seen recently; anything above it is time spent in queues. We
+ * grow the window while the queueing delay is below TARGET and shrink it when it is above,
+ * so we use the link without filling the buffers along the path, which would inflate the
+ * ping times that load management relies on.
+ *
+ * Loss still reduces the window, but only once per round trip, however many packets were
+ * lost, so random loss on a lossy link doesn't collapse the window the way it does with
+ * AIMD.
+ *
+ * Freenet delays acks by up to NewPacketFormatKeyContext.MAX_ACK_DELAY, so individual RTT
+ * samples are noisy; we use the smallest of the last few samples as the current delay.
+ */
+public class DelayBasedCongestionControl implements CongestionControl {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(DelayBasedCongestionControl.class);
+	}
+
+	/** Target queueing delay in milliseconds. */
+	static final long TARGET = 100;
+	/** Window increase per round trip when there is no queueing delay. */
+	static final double GAIN = 1.0;
+	/** Multiply the window by this on loss, at most once per round trip. */
+	static final double LOSS_DECREASE_MULTIPLE = 0.875;
+	static final double SLOW_START_DIVISOR = 3.0;
+	/** The base delay is the minimum over this many intervals... */
+	static final int BASE_HISTORY = 10;
+	/** ... of this length. So it will notice a route change within 10 minutes. */
+	static final long BASE_INTERVAL = 60*1000;
+	/** The current delay is the minimum of this many recent samples. */
+	static final int CURRENT_FILTER = 8;
+
+	private double windowSize;
+	private boolean slowStart = true;
+	/** Minimum RTT in each of the last BASE_HISTORY intervals, a ring. */
+	private final long[] baseHistory;
+	private int baseHistoryPtr;
+	private long baseIntervalStart = -1;
+	/** The last CURRENT_FILTER RTT samples, a ring. */
+	private final long[] currentHistory;
+	private int currentHistoryPtr;
+	private int currentHistoryCount;
+	/** Smoothed RTT, only used to limit loss reactions to once per round trip. */
+	private double smoothedRTT = -1;
+	private long lastLossDecrease = Long.MIN_VALUE;
+
+	public DelayBasedCongestionControl(double initialWindow) {
+		windowSize = Math.max(1.0, initialWindow);
+		baseHistory = new long[BASE_HISTORY];
+		for(int i=0;i<BASE_HISTORY;i++)
+			baseHistory[i] = Long.MAX_VALUE;
+		currentHistory = new long[CURRENT_FILTER];
+	}
+
+	@Override
+	public void onRoundTripTime(long rtt, long now) {
+		if(rtt < 0) return;
+		if(baseIntervalStart < 0) {
+			baseIntervalStart = now;
+		} else if(now - baseIntervalStart >= BASE_INTERVAL) {
+			baseIntervalStart = now;
+			baseHistoryPtr = (baseHistoryPtr + 1) % BASE_HISTORY;
+			baseHistory[baseHistoryPtr] = Long.MAX_VALUE;
+		}
+		if(rtt < baseHistory[baseHistoryPtr])
+			baseHistory[baseHistoryPtr] = rtt;
+		currentHistory[currentHistoryPtr] = rtt;
+		currentHistoryPtr = (currentHistoryPtr + 1) % CURRENT_FILTER;
+		if(currentHistoryCount < CURRENT_FILTER) currentHistoryCount++;
+		if(smoothedRTT < 0)
+			smoothedRTT = rtt;
+		else
+			smoothedRTT = smoothedRTT * 0.875 + rtt * 0.125;
+	}
+
+	/** @return The lowest RTT seen recently, or -1. */
+	long getBaseDelay() {
+		long min = Long.MAX_VALUE;
+		for(long l : baseHistory)
+			if(l < min) min = l;
+		return min == Long.MAX_VALUE ? -1 : min;
+	}
+
+	/** @return The current RTT, filtered, or -1. */
+	long getCurrentDelay() {
+		if(currentHistoryCount == 0) return -1;
+		long min = Long.MAX_VALUE;
+		for(int i=0;i<currentHistoryCount;i++)
+			if(currentHistory[i] < min) min = currentHistory[i];
+		return min;
+	}
+
+	/** @return The estimated time spent in queues, or 0 if we don't know yet. */
+	long getQueueingDelay() {
+		long base = getBaseDelay();
+		if(base < 0) return 0;
+		return getCurrentDelay() - base;
+	}
+
+	@Override
+	public void onPacketAcknowledged(double maxWindowSize, long now) {
+		long queueingDelay = getQueueingDelay();
+		if(slowStart) {
+			if(queueingDelay > TARGET / 2) {
+				slowStart = false;
+				if(logMINOR) Logger.minor(this, "Leaving slow start, queueing delay "+queueingDelay+"ms: "+this);
+			} else {
+				windowSize += windowSize / SLOW_START_DIVISOR;
+				// Avoid craziness if there is lag in detecting queueing.
+				if(windowSize > maxWindowSize) slowStart = false;
+			}
+		}
+		if(!slowStart) {
+			// Scaled so the window changes by up to GAIN packets per round trip.
+			double offTarget = (TARGET - queueingDelay) / (double) TARGET;
+			// Back off faster than we grow, but not too fast on a single noisy sample.
+			if(offTarget < -1.0) offTarget = -1.0;
+			windowSize += GAIN * offTarget / windowSize;
+		}
+		if(windowSize > maxWindowSize) windowSize = maxWindowSize;
+		if(windowSize < 1.0) windowSize = 1.0;
+	}
+
+	@Override
+	public void onPacketLost(long now) {
+		slowStart = false;
+		// Once per round trip. Assume 1 second if we have no RTT yet.
+		long interval = smoothedRTT < 0 ? 1000 : (long) smoothedRTT;
+		if(lastLossDecrease != Long.MIN_VALUE && now - lastLossDecrease < interval) return;
+		lastLossDecrease = now;
+		windowSize *= LOSS_DECREASE_MULTIPLE;
+		if(windowSize < 1.0) windowSize = 1.0;
+	}
+
+	@Override
+	public double getWindowSize() {
+		return Math.max(1.0, windowSize);
+	}
+
+	@Override
+	public Algorithm getAlgorithm() {
+		return Algorithm.DELAY;
+	}
+
+	@Override
+	public String toString() {
+		return "DELAY w="+windowSize+" base="+getBaseDelay()+" current="+getCurrentDelay()+(slowStart ? " (slow start)" : "");
+	}
+
+}
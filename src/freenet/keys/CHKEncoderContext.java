@@ -0,0 +1,94 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+import freenet.crypt.SHA256;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Per-thread cache of the crypto objects used to encode and decode CHK blocks. Looking up a
+ * Cipher or Mac through the JCA is surprisingly expensive (provider lookup, reflection), and
+ * the SHA256 digest pool is a single synchronized list, so encoding tens of thousands of
+ * splitfile blocks was spending a significant part of its time just creating objects and
+ * contending on the pool. Everything here is re-initialized with the block's key before use,
+ * so the only state carried between blocks is the allocation itself.
+ *
+ * Not thread-safe: use get() to obtain the current thread's instance, and don't keep it
+ * across calls which might use it themselves.
+ */
+final class CHKEncoderContext {
+
+	private static final ThreadLocal<CHKEncoderContext> contexts = new ThreadLocal<CHKEncoderContext>() {
+		@Override
+		protected CHKEncoderContext initialValue() {
+			return new CHKEncoderContext();
+		}
+	};
+
+	/** @return The context for the current thread. */
+	static CHKEncoderContext get() {
+		return contexts.get();
+	}
+
+	/** Our own digest, not from the pool, so it is never returned to it. */
+	final MessageDigest md256;
+	private Mac hmac;
+	private Cipher ctr;
+	private Rijndael aesCTR;
+	private Rijndael aesPCFB;
+
+	private CHKEncoderContext() {
+		md256 = SHA256.getMessageDigest();
+	}
+
+	/** @return A HmacSHA256 instance, which must be initialized with the key before use. */
+	Mac hmac() throws GeneralSecurityException {
+		if(hmac == null)
+			hmac = Mac.getInstance("HmacSHA256", ClientCHKBlock.hmacProvider);
+		return hmac;
+	}
+
+	/** @return An AES/CTR Cipher from the JCA, which must be initialized before use. Only
+	 * available if Rijndael.AesCtrProvider != null. */
+	Cipher ctrCipher() throws GeneralSecurityException {
+		if(ctr == null)
+			ctr = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+		return ctr;
+	}
+
+	/** @return Our own AES implementation, 256-bit key, 128-bit block, for CTR mode without
+	 * the JCA, initialized with the given key. */
+	Rijndael aesCTR(byte[] key) {
+		if(aesCTR == null)
+			aesCTR = newRijndael(128);
+		aesCTR.initialize(key);
+		return aesCTR;
+	}
+
+	/** @return Rijndael with a 256-bit key and a 256-bit block, for the old PCFB format,
+	 * initialized with the given key. */
+	Rijndael aesPCFB(byte[] key) {
+		if(aesPCFB == null)
+			aesPCFB = newRijndael(256);
+		aesPCFB.initialize(key);
+		return aesPCFB;
+	}
+
+	private static Rijndael newRijndael(int blockSize) {
+		try {
+			return new Rijndael(256, blockSize);
+		} catch (UnsupportedCipherException e) {
+			// Impossible.
+			throw new Error(e);
+		}
+	}
+
+}
@@ -8,6 +8,7 @@ import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.Provider;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
 
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
@@ -22,11 +23,11 @@ import freenet.crypt.CTRBlockCipher;
 import freenet.crypt.JceLoader;
 import freenet.crypt.PCFBMode;
 import freenet.crypt.SHA256;
-import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.Util;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.keys.Key.Compressed;
 import freenet.node.Node;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
@@ -120,17 +121,11 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // Overall hash already verified, so first job is to decrypt.
 		if(key.cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
             throw new UnsupportedOperationException();
-        BlockCipher cipher;
-        try {
-            cipher = new Rijndael(256, 256);
-        } catch (UnsupportedCipherException e) {
-            // FIXME - log this properly
-            throw new Error(e);
-        }
         byte[] cryptoKey = key.cryptoKey;
         if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
             throw new CHKDecodeException("Crypto key too short");
-        cipher.initialize(key.cryptoKey);
+        CHKEncoderContext ctx = CHKEncoderContext.get();
+        BlockCipher cipher = ctx.aesPCFB(cryptoKey);
         PCFBMode pcfb = PCFBMode.create(cipher);
         byte[] headers = block.headers;
         byte[] data = block.data;
@@ -139,11 +134,9 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // Decipher header first - functions as IV
         pcfb.blockDecipher(hbuf, 0, hbuf.length);
         pcfb.blockDecipher(dbuf, 0, dbuf.length);
-        MessageDigest md256 = SHA256.getMessageDigest();
         byte[] dkey = key.cryptoKey;
         // Check: IV == hash of decryption key
-        byte[] predIV = md256.digest(dkey);
-        SHA256.returnMessageDigest(md256); md256 = null;
+        byte[] predIV = ctx.md256.digest(dkey);
         // Extract the IV
         byte[] iv = Arrays.copyOf(hbuf, 32);
         if(!Arrays.equals(iv, predIV))
@@ -157,7 +150,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         		Math.min(maxLength, CHKBlock.MAX_LENGTH_BEFORE_COMPRESSION), key.compressionAlgorithm, false);
     }
     
-	private static final Provider hmacProvider;
+	static final Provider hmacProvider;
 	static private long benchmark(Mac hmac) throws GeneralSecurityException
 	{
 		long times = Long.MAX_VALUE;
@@ -249,7 +242,8 @@ public class ClientCHKBlock implements ClientKeyBlock {
         if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
             throw new CHKDecodeException("Crypto key too short");
 		try {
-        Cipher cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+        CHKEncoderContext ctx = CHKEncoderContext.get();
+        Cipher cipher = ctx.ctrCipher();
         cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cryptoKey, "AES"), new IvParameterSpec(hash, 0, 16));
         byte[] plaintext = new byte[data.length + 2];
 		int moved = cipher.update(data, 0, data.length, plaintext);
@@ -259,7 +253,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
             throw new CHKDecodeException("Invalid size: "+size);
         }
         // Check the hash.
-        Mac hmac = Mac.getInstance("HmacSHA256", hmacProvider);
+        Mac hmac = ctx.hmac();
         hmac.init(new SecretKeySpec(cryptoKey, "HmacSHA256"));
         hmac.update(plaintext); // plaintext includes lengthBytes
         byte[] hashCheck = hmac.doFinal();
@@ -289,15 +283,8 @@ public class ClientCHKBlock implements ClientKeyBlock {
         byte[] cryptoKey = key.cryptoKey;
         if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
             throw new CHKDecodeException("Crypto key too short");
-        Rijndael aes;
-        try {
-			aes = new Rijndael(256, 128);
-		} catch (UnsupportedCipherException e) {
-			// Impossible.
-			throw new Error(e);
-		}
-		aes.initialize(cryptoKey);
-        CTRBlockCipher cipher = new CTRBlockCipher(aes);
+        CHKEncoderContext ctx = CHKEncoderContext.get();
+        CTRBlockCipher cipher = new CTRBlockCipher(ctx.aesCTR(cryptoKey));
         cipher.init(hash, 0, 16);
         byte[] plaintext = new byte[data.length];
         cipher.processBytes(data, 0, data.length, plaintext, 0);
@@ -309,7 +296,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         }
 		try {
         // Check the hash.
-        Mac hmac = Mac.getInstance("HmacSHA256", hmacProvider);
+        Mac hmac = ctx.hmac();
         hmac.init(new SecretKeySpec(cryptoKey, "HmacSHA256"));
         hmac.update(plaintext);
         hmac.update(lengthBytes);
@@ -333,21 +320,105 @@ public class ClientCHKBlock implements ClientKeyBlock {
     static public ClientCHKBlock encodeSplitfileBlock(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) throws CHKEncodeException {
     	if(data.length != CHKBlock.DATA_LENGTH) throw new IllegalArgumentException();
     	if(cryptoKey != null && cryptoKey.length != 32) throw new IllegalArgumentException();
-        MessageDigest md256 = SHA256.getMessageDigest();
+        CHKEncoderContext ctx = CHKEncoderContext.get();
+        MessageDigest md256 = ctx.md256;
         // No need to pad
         if(cryptoKey == null) {
         	cryptoKey = md256.digest(data);
         }
         	if(cryptoAlgorithm == Key.ALGO_AES_PCFB_256_SHA256)
-        		return innerEncode(data, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm);
+        		return innerEncode(ctx, data, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm);
         	else if(cryptoAlgorithm != Key.ALGO_AES_CTR_256_SHA256)
         		throw new IllegalArgumentException("Unknown crypto algorithm: "+cryptoAlgorithm);
         	if(Rijndael.AesCtrProvider == null) {
-        		return encodeNewNoJCA(data, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm, KeyBlock.HASH_SHA256);
+        		return encodeNewNoJCA(ctx, data, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm, KeyBlock.HASH_SHA256);
         	} else {
-        		return encodeNew(data, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm, KeyBlock.HASH_SHA256);
+        		return encodeNew(ctx, data, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm, KeyBlock.HASH_SHA256);
 			}
     }
+
+    /**
+     * Encode many splitfile blocks at once, e.g. a whole segment, spreading them across the
+     * available cores. Each thread uses its own cached crypto objects.
+     * @param data The blocks to encode. Each must be exactly DATA_LENGTH bytes. Null entries
+     * are skipped. As with encodeSplitfileBlock(), the old PCFB algorithm encrypts them in
+     * place.
+     * @param cryptoKey The encryption key, or null to use the hash of each block.
+     * @param executor Runs all but one of the batches; the last is run on the calling thread.
+     * If null, everything is encoded on the calling thread.
+     * @return The encoded blocks, in the same order, with null for null input.
+     * @throws CHKEncodeException If any block failed to encode.
+     */
+    static public ClientCHKBlock[] encodeSplitfileBlocks(byte[][] data, byte[] cryptoKey, byte cryptoAlgorithm, Executor executor) throws CHKEncodeException {
+    	int threads = executor == null ? 1 :
+    		Math.min(Runtime.getRuntime().availableProcessors(), (data.length + MIN_BLOCKS_PER_BATCH - 1) / MIN_BLOCKS_PER_BATCH);
+    	return encodeSplitfileBlocks(data, cryptoKey, cryptoAlgorithm, executor, threads);
+    }
+
+    // threads is separate for unit tests.
+    static ClientCHKBlock[] encodeSplitfileBlocks(final byte[][] data, final byte[] cryptoKey, final byte cryptoAlgorithm, Executor executor, int threads) throws CHKEncodeException {
+    	final ClientCHKBlock[] blocks = new ClientCHKBlock[data.length];
+    	if(threads <= 1) {
+    		for(int i=0;i<data.length;i++)
+    			if(data[i] != null) blocks[i] = encodeSplitfileBlock(data[i], cryptoKey, cryptoAlgorithm);
+    		return blocks;
+    	}
+    	final CHKEncodeException[] failure = new CHKEncodeException[1];
+    	final CountDownLatch done = new CountDownLatch(threads - 1);
+    	// Interleave the blocks, so each thread gets a fair share even if there are nulls.
+    	for(int t=1;t<threads;t++) {
+    		final int start = t;
+    		final int step = threads;
+    		executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						encodeBatch(data, cryptoKey, cryptoAlgorithm, blocks, start, step);
+					} catch (CHKEncodeException e) {
+						synchronized(failure) {
+							failure[0] = e;
+						}
+					} catch (Throwable e) {
+						Logger.error(this, "Caught "+e+" encoding splitfile blocks", e);
+						synchronized(failure) {
+							failure[0] = new CHKEncodeException(e.toString(), e);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+    			
+    		}, "Encoding splitfile blocks");
+    	}
+    	CHKEncodeException localFailure = null;
+    	try {
+    		encodeBatch(data, cryptoKey, cryptoAlgorithm, blocks, 0, threads);
+    	} catch (CHKEncodeException e) {
+    		localFailure = e;
+    	}
+    	while(true) {
+    		try {
+    			done.await();
+    			break;
+    		} catch (InterruptedException e) {
+    			// Keep waiting, the other threads are still writing to blocks.
+    		}
+    	}
+    	if(localFailure != null) throw localFailure;
+    	synchronized(failure) {
+    		if(failure[0] != null) throw failure[0];
+    	}
+    	return blocks;
+    }
+
+    /** Don't bother with another thread for less than this many blocks. */
+    private static final int MIN_BLOCKS_PER_BATCH = 4;
+
+    private static void encodeBatch(byte[][] data, byte[] cryptoKey, byte cryptoAlgorithm, ClientCHKBlock[] blocks, int start, int step) throws CHKEncodeException {
+    	for(int i=start;i<data.length;i+=step)
+    		if(data[i] != null) blocks[i] = encodeSplitfileBlock(data[i], cryptoKey, cryptoAlgorithm);
+    }
     
     /**
      * Encode a Bucket of data to a CHKBlock.
@@ -383,7 +454,8 @@ public class ClientCHKBlock implements ClientKeyBlock {
 		}
         // Now do the actual encode
         
-        MessageDigest md256 = SHA256.getMessageDigest();
+        CHKEncoderContext ctx = CHKEncoderContext.get();
+        MessageDigest md256 = ctx.md256;
         // First pad it
         int dataLength = finalData.length;
         if(finalData.length != 32768) {
@@ -409,12 +481,12 @@ public class ClientCHKBlock implements ClientKeyBlock {
     		cryptoAlgorithm = Key.ALGO_AES_PCFB_256_SHA256;
     	}
         if(cryptoAlgorithm == Key.ALGO_AES_PCFB_256_SHA256)
-        	return innerEncode(data, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm);
+        	return innerEncode(ctx, data, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm);
 		else {
 				if(Rijndael.AesCtrProvider == null || forceNoJCA)
-					return encodeNewNoJCA(data, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm, KeyBlock.HASH_SHA256);
+					return encodeNewNoJCA(ctx, data, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm, KeyBlock.HASH_SHA256);
 				else
-					return encodeNew(data, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm, KeyBlock.HASH_SHA256);
+					return encodeNew(ctx, data, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm, KeyBlock.HASH_SHA256);
 		}
     }
     
@@ -438,6 +510,15 @@ public class ClientCHKBlock implements ClientKeyBlock {
      * @return
      */
     public static ClientCHKBlock encodeNew(byte[] data, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm, int blockHashAlgorithm) throws CHKEncodeException {
+    	try {
+    		return encodeNew(CHKEncoderContext.get(), data, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm, blockHashAlgorithm);
+    	} finally {
+    		SHA256.returnMessageDigest(md256);
+    	}
+    }
+
+    /** Does not return md256 to the pool. */
+    private static ClientCHKBlock encodeNew(CHKEncoderContext ctx, byte[] data, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm, int blockHashAlgorithm) throws CHKEncodeException {
     	if(cryptoAlgorithm != Key.ALGO_AES_CTR_256_SHA256)
     		throw new IllegalArgumentException("Unsupported crypto algorithm "+cryptoAlgorithm);
 		try {
@@ -445,7 +526,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // It's okay that this is the same for 2 blocks with the same key and the same content.
         // In fact that's the point; this is still a Content Hash Key.
         // FIXME And yes we should check on insert for multiple identical keys.
-        Mac hmac = Mac.getInstance("HmacSHA256", hmacProvider);
+        Mac hmac = ctx.hmac();
         hmac.init(new SecretKeySpec(encKey, "HmacSHA256"));
         byte[] tmpLen = new byte[] { 
             	(byte)(dataLength >> 8), (byte)(dataLength & 0xff)
@@ -463,7 +544,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         SecretKey ckey = new SecretKeySpec(encKey, "AES");
         // CTR mode IV is only 16 bytes.
         // That's still plenty though. It will still be unique.
-        Cipher cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+        Cipher cipher = ctx.ctrCipher();
         cipher.init(Cipher.ENCRYPT_MODE, ckey, new IvParameterSpec(hash, 0, 16));
         byte[] cdata = new byte[data.length];
 		int moved = cipher.update(data, 0, data.length, cdata);
@@ -480,8 +561,6 @@ public class ClientCHKBlock implements ClientKeyBlock {
         md256.update(header);
         byte[] finalHash = md256.digest(cdata);
         
-        SHA256.returnMessageDigest(md256);
-        
         // Now convert it into a ClientCHK
         ClientCHK finalKey = new ClientCHK(finalHash, encKey, asMetadata, cryptoAlgorithm, compressionAlgorithm);
         
@@ -512,6 +591,15 @@ public class ClientCHKBlock implements ClientKeyBlock {
      * @throws CHKEncodeException
      */
     public static ClientCHKBlock encodeNewNoJCA(byte[] data, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm, int blockHashAlgorithm) throws CHKEncodeException {
+    	try {
+    		return encodeNewNoJCA(CHKEncoderContext.get(), data, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm, blockHashAlgorithm);
+    	} finally {
+    		SHA256.returnMessageDigest(md256);
+    	}
+    }
+
+    /** Does not return md256 to the pool. */
+    private static ClientCHKBlock encodeNewNoJCA(CHKEncoderContext ctx, byte[] data, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm, int blockHashAlgorithm) throws CHKEncodeException {
     	if(cryptoAlgorithm != Key.ALGO_AES_CTR_256_SHA256)
     		throw new IllegalArgumentException("Unsupported crypto algorithm "+cryptoAlgorithm);
 		try {
@@ -519,7 +607,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // It's okay that this is the same for 2 blocks with the same key and the same content.
         // In fact that's the point; this is still a Content Hash Key.
         // FIXME And yes we should check on insert for multiple identical keys.
-        Mac hmac = Mac.getInstance("HmacSHA256", hmacProvider);
+        Mac hmac = ctx.hmac();
         hmac.init(new SecretKeySpec(encKey, "HmacSHA256"));
         byte[] tmpLen = new byte[] { 
             	(byte)(dataLength >> 8), (byte)(dataLength & 0xff)
@@ -533,15 +621,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
     		throw new IllegalArgumentException("Unsupported block hash algorithm "+cryptoAlgorithm);
         header[0] = (byte)(blockHashAlgorithm >> 8);
         header[1] = (byte)(blockHashAlgorithm & 0xff);
-        Rijndael aes;
-		try {
-			aes = new Rijndael(256, 128);
-		} catch (UnsupportedCipherException e) {
-			// Impossible
-			throw new Error(e);
-		}
-        aes.initialize(encKey);
-        CTRBlockCipher ctr = new CTRBlockCipher(aes);
+        CTRBlockCipher ctr = new CTRBlockCipher(ctx.aesCTR(encKey));
         // CTR mode IV is only 16 bytes.
         // That's still plenty though. It will still be unique.
         ctr.init(hash, 0, 16);
@@ -554,8 +634,6 @@ public class ClientCHKBlock implements ClientKeyBlock {
         md256.update(header);
         byte[] finalHash = md256.digest(cdata);
         
-        SHA256.returnMessageDigest(md256);
-        
         // Now convert it into a ClientCHK
         ClientCHK finalKey = new ClientCHK(finalHash, encKey, asMetadata, cryptoAlgorithm, compressionAlgorithm);
         
@@ -571,6 +649,15 @@ public class ClientCHKBlock implements ClientKeyBlock {
     }
     
     public static ClientCHKBlock innerEncode(byte[] data, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm) {
+    	try {
+    		return innerEncode(CHKEncoderContext.get(), data, dataLength, md256, encKey, asMetadata, compressionAlgorithm, cryptoAlgorithm);
+    	} finally {
+    		SHA256.returnMessageDigest(md256);
+    	}
+    }
+
+    /** Does not return md256 to the pool. */
+    private static ClientCHKBlock innerEncode(CHKEncoderContext ctx, byte[] data, int dataLength, MessageDigest md256, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm) {
     	if(cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
     		throw new IllegalArgumentException("Unsupported crypto algorithm "+cryptoAlgorithm);
         byte[] header;
@@ -587,14 +674,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // despite exposing asymmetric and hashes!
         
         // Now encrypt the header, then the data, using the same PCFB instance
-        BlockCipher cipher;
-        try {
-            cipher = new Rijndael(256, 256);
-        } catch (UnsupportedCipherException e) {
-        	Logger.error(ClientCHKBlock.class, "Impossible: "+e, e);
-            throw new Error(e);
-        }
-        cipher.initialize(encKey);
+        BlockCipher cipher = ctx.aesPCFB(encKey);
         
         // FIXME CRYPTO plainIV, the hash of the crypto key, is encrypted with a null IV.
         // In other words, it is XORed with E(0).
@@ -613,8 +693,6 @@ public class ClientCHKBlock implements ClientKeyBlock {
         md256.update(header);
         byte[] finalHash = md256.digest(data);
         
-        SHA256.returnMessageDigest(md256);
-        
         // Now convert it into a ClientCHK
         key = new ClientCHK(finalHash, encKey, asMetadata, cryptoAlgorithm, compressionAlgorithm);
         
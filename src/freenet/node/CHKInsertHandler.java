@@ -514,6 +514,7 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
         	if(logMINOR) Logger.minor(this, "Remote CHK insert cost "+totalSent+ '/' +totalReceived+" bytes ("+code+ ") receive failed = "+receiveFailed());
         	node.nodeStats.remoteChkInsertBytesSentAverage.report(totalSent);
         	node.nodeStats.remoteChkInsertBytesReceivedAverage.report(totalReceived);
+        	node.nodeStats.remoteChkInsertBytes.report(totalSent + totalReceived);
         	if(code == CHKInsertSender.SUCCESS) {
         		// Report both sent and received because we have both a Handler and a Sender
         		if(sender != null && sender.startedSendingData())
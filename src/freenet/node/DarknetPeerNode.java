@@ -312,7 +312,7 @@ public class DarknetPeerNode extends PeerNode {
 			isDisabled = false;
 		}
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	public void disablePeer() {
@@ -324,7 +324,7 @@ public class DarknetPeerNode extends PeerNode {
 		}
 		stopARKFetcher();
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	@Override
@@ -343,7 +343,7 @@ public class DarknetPeerNode extends PeerNode {
 			stopARKFetcher();
 		}
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	public synchronized boolean isListenOnly() {
@@ -364,7 +364,7 @@ public class DarknetPeerNode extends PeerNode {
 			}
 		}
 		setPeerNodeStatus(now);
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	public void setIgnoreSourcePort(boolean setting) {
@@ -398,7 +398,7 @@ public class DarknetPeerNode extends PeerNode {
 			}
 		}
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 
 	}
 
@@ -427,7 +427,7 @@ public class DarknetPeerNode extends PeerNode {
 		synchronized(this) {
 			allowLocalAddresses = setting;
 		}
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	public boolean readExtraPeerData() {
@@ -1725,7 +1725,7 @@ public class DarknetPeerNode extends PeerNode {
 		synchronized(this) {
 			trustLevel = trust;
 		}
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 	}
 
 	/** FIXME This should be the worse of our visibility for the peer and that which the peer has told us.
@@ -1745,7 +1745,7 @@ public class DarknetPeerNode extends PeerNode {
 			if(ourVisibility == visibility) return;
 			ourVisibility = visibility;
 		}
-		node.peers.writePeersDarknetUrgent();
+		node.peers.writePeersUrgent(this);
 		try {
 			sendVisibility();
 		} catch (NotConnectedException e) {
@@ -1767,7 +1767,7 @@ public class DarknetPeerNode extends PeerNode {
 			if(theirVisibility == v) return;
 			theirVisibility = v;
 		}
-		node.peers.writePeersDarknet();
+		node.peers.writePeers(this);
 	}
 
 	public synchronized FRIEND_VISIBILITY getTheirVisibility() {
@@ -1908,7 +1908,7 @@ public class DarknetPeerNode extends PeerNode {
 							synchronized(DarknetPeerNode.this) {
 								fullFieldSet = fs;
 							}
-							node.peers.writePeersDarknet();
+							node.peers.writePeers(DarknetPeerNode.this);
 						} else {
 							Logger.error(this, "Failed to receive noderef from "+DarknetPeerNode.this);
 						}
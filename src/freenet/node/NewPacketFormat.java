@@ -92,6 +92,10 @@ public class NewPacketFormat implements PacketFormat {
 	private final Object sendBufferLock = new Object();
 	/** Lock protecting the size of the receive buffer. */
 	private final Object receiveBufferSizeLock = new Object();
+	/** Lock serialising handleReceivedPacket(), which protects the sequence number watch
+	 * lists, receiveBuffers, receiveMaps and the rest of the receive state. MUST BE TAKEN
+	 * FIRST. */
+	private final Object receiveLock = new Object();
 	
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
@@ -116,6 +120,14 @@ public class NewPacketFormat implements PacketFormat {
 
 	@Override
 	public boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
+		// Packets may be decoded on several threads. Packets from one address always go
+		// to the same thread, but the peer may change address, so we need to lock here.
+		synchronized(receiveLock) {
+			return innerHandleReceivedPacket(buf, offset, length, now, replyTo);
+		}
+	}
+
+	private boolean innerHandleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
 		NPFPacket packet = null;
 		SessionKey s = null;
 		for(int i = 0; i < 3; i++) {
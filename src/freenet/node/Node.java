@@ -71,6 +71,7 @@ import freenet.crypt.EncryptingIoAdapter;
 import freenet.crypt.RandomSource;
 import freenet.crypt.Yarrow;
 import freenet.io.comm.DMT;
+import freenet.io.comm.DatagramTransport;
 import freenet.io.comm.DisconnectedException;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.IOStatisticCollector;
@@ -81,6 +82,7 @@ import freenet.io.comm.Peer;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.UdpSocketHandler;
+import freenet.io.xfer.CongestionControl;
 import freenet.io.xfer.PartiallyReceivedBlock;
 import freenet.keys.CHKBlock;
 import freenet.keys.CHKVerifyException;
@@ -111,6 +113,7 @@ import freenet.node.probe.Listener;
 import freenet.node.probe.Type;
 import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
+import freenet.node.stats.Instrumentation;
 import freenet.node.stats.NotAvailNodeStoreStats;
 import freenet.node.stats.StoreCallbackStats;
 import freenet.node.updater.NodeUpdateManager;
@@ -366,6 +369,34 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	private class CongestionControlCallback extends StringCallback implements EnumerableOptionCallback {
+
+		@Override
+		public String get() {
+			return congestionControl.name();
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException {
+			CongestionControl.Algorithm algorithm;
+			try {
+				algorithm = CongestionControl.Algorithm.valueOf(val);
+			} catch (IllegalArgumentException e) {
+				throw new InvalidConfigValueException("Invalid congestion control algorithm");
+			}
+			congestionControl = algorithm;
+			// peers is null during startup.
+			if(peers == null) return;
+			for(PeerNode pn : peers.myPeers())
+				pn.getThrottle().setCongestionControl(algorithm);
+		}
+
+		@Override
+		public String[] getPossibleValues() {
+			return CongestionControl.Algorithm.names();
+		}
+	}
+
 	private class ClientCacheTypeCallback extends StringCallback implements EnumerableOptionCallback {
 
 		@Override
@@ -686,6 +717,9 @@ public class Node implements TimeSkewDetectorCallback {
 	// General stuff
 
 	public final Executor executor;
+	/** If not null, creates the transports for our UDP sockets instead of binding real ones.
+	 * Only for simulations. */
+	final DatagramTransport.Factory transports;
 	public final PacketSender ps;
 	public final PrioritizedTicker ticker;
 	final DNSRequester dnsr;
@@ -704,6 +738,8 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean routeAccordingToOurPeersLocation;
 	boolean enableSwapQueueing;
 	boolean enablePacketCoalescing;
+	/** Congestion control algorithm for new connections. */
+	private volatile CongestionControl.Algorithm congestionControl;
 	public static final short DEFAULT_MAX_HTL = (short)18;
 	private short maxHTL;
 	private boolean skipWrapperWarning;
@@ -987,7 +1023,18 @@ public class Node implements TimeSkewDetectorCallback {
 	 * @throws NodeInitException If the node initialization fails.
 	 */
 	 Node(PersistentConfig config, RandomSource r, RandomSource weakRandom, LoggingConfigHandler lc, NodeStarter ns, Executor executor) throws NodeInitException {
+		this(config, r, weakRandom, lc, ns, executor, null);
+	}
+
+	/**
+	 * Create a Node from a Config object, with its UDP sockets on the given transports.
+	 * @param transports If not null, creates the transports for our UDP sockets instead of
+	 * binding real ones. Only for simulations.
+	 * @see #Node(PersistentConfig, RandomSource, RandomSource, LoggingConfigHandler, NodeStarter, Executor)
+	 */
+	 Node(PersistentConfig config, RandomSource r, RandomSource weakRandom, LoggingConfigHandler lc, NodeStarter ns, Executor executor, DatagramTransport.Factory transports) throws NodeInitException {
 		this.shutdownHook = SemiOrderedShutdownHook.get();
+		this.transports = transports;
 		// Easy stuff
 		String tmp = "Initializing Node using Freenet Build #"+Version.buildNumber()+" r"+Version.cvsRevision()+" and freenet-ext Build #"+NodeStarter.extBuildNumber+" r"+NodeStarter.extRevisionNumber+" with "+System.getProperty("java.vendor")+" JVM version "+System.getProperty("java.version")+" running on "+System.getProperty("os.arch")+' '+System.getProperty("os.name")+' '+System.getProperty("os.version");
 		fixCertsFiles();
@@ -1551,6 +1598,14 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("congestionControl", CongestionControl.Algorithm.AIMD.name(), sortOrder++, true, false, "Node.congestionControl", "Node.congestionControlLong", new CongestionControlCallback());
+		try {
+			congestionControl = CongestionControl.Algorithm.valueOf(nodeConfig.getString("congestionControl"));
+		} catch (IllegalArgumentException e) {
+			Logger.error(this, "Invalid congestion control algorithm, using AIMD: "+e);
+			congestionControl = CongestionControl.Algorithm.AIMD;
+		}
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -2044,6 +2099,23 @@ public class Node implements TimeSkewDetectorCallback {
 					}
 			
 		}, false);
+		
+		nodeConfig.register("storeSaltHashSlotFilterMemoryMapped", false, sortOrder++, true, false,
+				"Node.storeSaltHashSlotFilterMemoryMapped", "Node.storeSaltHashSlotFilterMemoryMappedLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return ResizablePersistentIntBuffer.isMemoryMapped();
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				ResizablePersistentIntBuffer.setMemoryMapped(val);
+				// Stores which are already open keep their buffers.
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashSlotFilterMemoryMapped");
+			}
+		});
+		
+		ResizablePersistentIntBuffer.setMemoryMapped(nodeConfig.getBoolean("storeSaltHashSlotFilterMemoryMapped"));
 
 		nodeConfig.register("storeSaltHashResizeOnStart", false, sortOrder++, true, false,
 				"Node.storeSaltHashResizeOnStart", "Node.storeSaltHashResizeOnStartLong", new BooleanCallback() {
@@ -3565,6 +3637,10 @@ public class Node implements TimeSkewDetectorCallback {
 				Node.this.sskClientcache = sskClientcache;
 			}
 
+			// Uses the same key, so do it now, the caller clears it.
+			if(clientCore != null)
+				clientCore.openArchiveExtractCache(clientCacheMasterKey);
+
 		} catch (IOException e) {
 			System.err.println("Could not open store: " + e);
 			e.printStackTrace();
@@ -3979,6 +4055,15 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public SSKBlock fetch(NodeSSK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
+		long startTime = System.nanoTime();
+		try {
+			return innerFetch(key, dontPromote, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR, meta);
+		} finally {
+			Instrumentation.STORE_FETCH.reportSince(startTime);
+		}
+	}
+
+	private SSKBlock innerFetch(NodeSSK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
 		double loc=key.toNormalizedDouble();
 		double dist=Location.distance(lm.getLocation(), loc);
 		if(canReadClientCache) {
@@ -4048,6 +4133,15 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public CHKBlock fetch(NodeCHK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
+		long startTime = System.nanoTime();
+		try {
+			return innerFetch(key, dontPromote, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR, meta);
+		} finally {
+			Instrumentation.STORE_FETCH.reportSince(startTime);
+		}
+	}
+
+	private CHKBlock innerFetch(NodeCHK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
 		double loc=key.toNormalizedDouble();
 		double dist=Location.distance(lm.getLocation(), loc);
 		if(canReadClientCache) {
@@ -4190,6 +4284,7 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	private void store(CHKBlock block, boolean deep, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		long startTime = System.nanoTime();
 		try {
 			double loc = block.getKey().toNormalizedDouble();
 			if (canWriteClientCache) {
@@ -4221,6 +4316,8 @@ public class Node implements TimeSkewDetectorCallback {
 			System.err.println(t);
 			t.printStackTrace();
 			Logger.error(this, "Caught "+t+" storing data", t);
+		} finally {
+			Instrumentation.STORE_PUT.reportSince(startTime);
 		}
 		if(clientCore != null && clientCore.requestStarters != null) {
 			clientCore.requestStarters.chkFetchSchedulerBulk.tripPendingKey(block);
@@ -4240,6 +4337,7 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public void store(SSKBlock block, boolean deep, boolean overwrite, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) throws KeyCollisionException {
+		long startTime = System.nanoTime();
 		try {
 			// Store the pubkey before storing the data, otherwise we can get a race condition and
 			// end up deleting the SSK data.
@@ -4273,6 +4371,8 @@ public class Node implements TimeSkewDetectorCallback {
 			System.err.println(t);
 			t.printStackTrace();
 			Logger.error(this, "Caught "+t+" storing data", t);
+		} finally {
+			Instrumentation.STORE_PUT.reportSince(startTime);
 		}
 		if(clientCore != null && clientCore.requestStarters != null) {
 			clientCore.requestStarters.sskFetchSchedulerBulk.tripPendingKey(block);
@@ -5363,6 +5463,12 @@ public class Node implements TimeSkewDetectorCallback {
 		clientCore.alerts.unregister(visibilityAlert);
 	}
 
+	public CongestionControl.Algorithm getCongestionControl() {
+		CongestionControl.Algorithm algorithm = congestionControl;
+		// Not set yet during startup.
+		return algorithm == null ? CongestionControl.Algorithm.AIMD : algorithm;
+	}
+
 	public int getMinimumMTU() {
 		int mtu;
 		synchronized(this) {
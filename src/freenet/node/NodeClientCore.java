@@ -11,6 +11,7 @@ import org.tanukisoftware.wrapper.WrapperManager;
 import com.db4o.ObjectContainer;
 import com.db4o.ext.Db4oException;
 
+import freenet.client.ArchiveExtractCache;
 import freenet.client.ArchiveManager;
 import freenet.client.FECQueue;
 import freenet.client.HighLevelSimpleClient;
@@ -61,6 +62,7 @@ import freenet.l10n.NodeL10n;
 import freenet.node.NodeRestartJobsQueue.RestartDBJob;
 import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
 import freenet.node.fcp.FCPServer;
+import freenet.node.stats.Instrumentation;
 import freenet.node.useralerts.SimpleUserAlert;
 import freenet.node.useralerts.UserAlert;
 import freenet.node.useralerts.UserAlertManager;
@@ -154,12 +156,15 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 	static final long MAX_CACHED_ARCHIVE_DATA = 32 * 1024 * 1024; // make a fixed fraction of the store by default? FIXME
 	static final long MAX_ARCHIVED_FILE_SIZE = 1024 * 1024; // arbitrary... FIXME
 	static final int MAX_CACHED_ELEMENTS = 256 * 1024; // equally arbitrary! FIXME hopefully we can cache many of these though
+	/** Files extracted from containers, kept on disk across restarts. */
+	private volatile long maxPersistentArchiveData;
 	/** Each FEC item can take a fair amount of RAM, since it's fully activated with all the buckets, potentially 256
 	 * of them, so only cache a small number of them */
 	private static final int FEC_QUEUE_CACHE_SIZE = 20;
 	private UserAlert startingUpAlert;
 	private RestartDBJob[] startupDatabaseJobs;
 	private boolean alwaysCommit;
+	private volatile boolean preallocateSplitfileStorage;
 
 	NodeClientCore(Node node, Config config, SubConfig nodeConfig, SubConfig installConfig, int portNumber, int sortOrder, SimpleFieldSet oldConfig, SubConfig fproxyConfig, SimpleToadletServer toadlets, long nodeDBHandle, ObjectContainer container) throws NodeInitException {
 		this.node = node;
@@ -313,7 +318,26 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		});
 		tempBucketFactory = new TempBucketFactory(node.executor, tempFilenameGenerator, nodeConfig.getLong("maxRAMBucketSize"), nodeConfig.getLong("RAMBucketPoolSize"), random, node.fastWeakRandom, nodeConfig.getBoolean("encryptTempBuckets"));
 
-		archiveManager = new ArchiveManager(MAX_ARCHIVE_HANDLERS, MAX_CACHED_ARCHIVE_DATA, MAX_ARCHIVED_FILE_SIZE, MAX_CACHED_ELEMENTS, tempBucketFactory);
+		nodeConfig.register("archiveCacheSize", "128MiB", sortOrder++, true, false, "NodeClientCore.archiveCacheSize", "NodeClientCore.archiveCacheSizeLong", new LongCallback() {
+
+			@Override
+			public Long get() {
+				return maxPersistentArchiveData;
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("archiveCacheSizeMustBePositive"));
+				maxPersistentArchiveData = val;
+				ArchiveExtractCache extractCache = archiveManager == null ? null : archiveManager.getExtractCache();
+				if(extractCache != null)
+					extractCache.setMaxSize(getArchiveExtractCacheSize());
+			}
+		}, true);
+		maxPersistentArchiveData = nodeConfig.getLong("archiveCacheSize");
+
+		// The extraction cache is opened with the client cache, see openArchiveExtractCache().
+		archiveManager = new ArchiveManager(MAX_ARCHIVE_HANDLERS, MAX_CACHED_ARCHIVE_DATA, MAX_ARCHIVED_FILE_SIZE, MAX_CACHED_ELEMENTS, tempBucketFactory, null);
 
 		healingQueue = new SimpleHealingQueue(
 				new InsertContext(
@@ -357,6 +381,9 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 					}
 					}
 				}
+				ArchiveExtractCache extractCache = archiveManager.getExtractCache();
+				if(extractCache != null)
+					extractCache.setMaxSize(getArchiveExtractCacheSize());
 			}
 
 		});
@@ -512,6 +539,28 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 
 		});
 		alwaysCommit = nodeConfig.getBoolean("alwaysCommit");
+		
+		nodeConfig.register("preallocateSplitfileStorage", false, sortOrder++, true, false, "NodeClientCore.preallocateSplitfileStorage", "NodeClientCore.preallocateSplitfileStorageLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return preallocateSplitfileStorage;
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						preallocateSplitfileStorage = val;
+					}
+
+		});
+		preallocateSplitfileStorage = nodeConfig.getBoolean("preallocateSplitfileStorage");
+	}
+	
+	/** Should transient splitfile fetches preallocate a single file and decode in place?
+	 * Default for FetchContext.preallocateSplitfileStorage. */
+	public boolean preallocateSplitfileStorage() {
+		return preallocateSplitfileStorage;
 	}
 
 	private void initUSK(ObjectContainer container) {
@@ -742,6 +791,27 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		}
 	}
 
+	/**
+	 * Start keeping files extracted from containers on disk. Called when the client cache is
+	 * opened, with its master key, so the extracted files are protected in the same way.
+	 */
+	void openArchiveExtractCache(byte[] clientCacheMasterKey) {
+		if(archiveManager.getExtractCache() != null) return;
+		try {
+			archiveManager.setExtractCache(new ArchiveExtractCache(node.userDir().file("archive-cache"),
+					getArchiveExtractCacheSize(), clientCacheMasterKey, random));
+		} catch (IOException e) {
+			Logger.error(this, "Unable to open the archive extraction cache, files extracted from containers will not be kept across restarts: "+e, e);
+		}
+	}
+
+	/** @return The configured size of the archive extraction cache, or 0 if the physical
+	 * security level is MAXIMUM, so nothing is kept on disk. */
+	private long getArchiveExtractCacheSize() {
+		if(node.securityLevels.getPhysicalThreatLevel() == PHYSICAL_THREAT_LEVEL.MAXIMUM) return 0;
+		return maxPersistentArchiveData;
+	}
+
 	public void start(Config config) throws NodeInitException {
 		backgroundBlockEncoder.setContext(clientContext);
 		node.executor.execute(backgroundBlockEncoder, "Background block encoder");
@@ -1875,7 +1945,9 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 				}
 				if(job == null) throw new NullPointerException();
 				if(node == null) throw new NullPointerException();
+				long startTime = System.nanoTime();
 				boolean commit = job.run(node.db, clientContext);
+				Instrumentation.DB_JOB.reportSince(startTime);
 				boolean killed;
 				synchronized(NodeClientCore.this) {
 					killed = killedDatabase;
@@ -7,7 +7,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.SocketException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -123,7 +125,7 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector);
+					u = createSocket(portNo, bindto.getAddress(), startupTime);
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -137,7 +139,7 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+				u = createSocket(port, bindto.getAddress(), startupTime);
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -177,6 +179,13 @@ public class NodeCrypto {
 		}
 	}
 
+	/** Bind a socket, or if we are being simulated, create it on a simulated transport. */
+	private UdpSocketHandler createSocket(int port, InetAddress bindto, long startupTime) throws SocketException {
+		if(node.transports != null)
+			return new UdpSocketHandler(node.transports.bind(bindto, port), bindto, node, startupTime, getTitle(port), node.collector);
+		return new UdpSocketHandler(port, bindto, node, startupTime, getTitle(port), node.collector);
+	}
+
 	private String getTitle(int port) {
 		// FIXME l10n
 		return "UDP " + (isOpennet ? "Opennet " : "Darknet ") + "port " + port;
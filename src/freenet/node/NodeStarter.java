@@ -18,6 +18,7 @@ import freenet.crypt.JceLoader;
 import freenet.crypt.RandomSource;
 import freenet.crypt.SSL;
 import freenet.crypt.Yarrow;
+import freenet.io.comm.DatagramTransport;
 import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -361,6 +362,26 @@ public class NodeStarter implements WrapperListener {
 		boolean enableSwapQueueing, boolean enablePacketCoalescing,
 		int outputBandwidthLimit, boolean enableFOAF,
 		boolean connectToSeednodes, boolean longPingTimes, boolean useSlashdotCache, String ipAddressOverride, boolean enableFCP) throws NodeInitException {
+		return createTestNode(port, opennetPort, testName, disableProbabilisticHTLs, maxHTL, dropProb, random, executor,
+		    threadLimit, storeSize, ramStore, enableSwapping, enableARKs, enableULPRs, enablePerNodeFailureTables,
+		    enableSwapQueueing, enablePacketCoalescing, outputBandwidthLimit, enableFOAF, connectToSeednodes,
+		    longPingTimes, useSlashdotCache, ipAddressOverride, enableFCP, null);
+	}
+
+	/**
+	 * Create a test node whose UDP sockets are on the given transports, e.g. a
+	 * freenet.node.simulator.SimulatedNetwork, rather than on real ports.
+	 * @param transports Creates the transports for the node's sockets. If null, bind real
+	 * ports as usual.
+	 */
+	public static Node createTestNode(int port, int opennetPort, String testName, boolean disableProbabilisticHTLs,
+		short maxHTL, int dropProb, RandomSource random,
+		Executor executor, int threadLimit, long storeSize, boolean ramStore,
+		boolean enableSwapping, boolean enableARKs, boolean enableULPRs, boolean enablePerNodeFailureTables,
+		boolean enableSwapQueueing, boolean enablePacketCoalescing,
+		int outputBandwidthLimit, boolean enableFOAF,
+		boolean connectToSeednodes, boolean longPingTimes, boolean useSlashdotCache, String ipAddressOverride, boolean enableFCP,
+		DatagramTransport.Factory transports) throws NodeInitException {
 		
 		synchronized(NodeStarter.class) {
 			if((!isStarted) || (!isTestingVM)) 
@@ -446,7 +467,7 @@ public class NodeStarter implements WrapperListener {
 
 		PersistentConfig config = new PersistentConfig(configFS);
 
-		Node node = new Node(config, random, random, null, null, executor);
+		Node node = new Node(config, random, random, null, null, executor, transports);
 
 		//All testing environments connect the nodes as they want, even if the old setup is restored, it is not desired.
 		node.peers.removeAllPeers();
@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import freenet.config.InvalidConfigValueException;
@@ -41,6 +42,9 @@ import freenet.support.io.NativeThread;
 import freenet.support.math.BootstrappingDecayingRunningAverage;
 import freenet.support.math.DecayingKeyspaceAverage;
 import freenet.support.math.RunningAverage;
+import freenet.support.math.StripedDecayingAverage;
+import freenet.support.math.StripedHistogram;
+import freenet.support.math.StripedRunningMean;
 import freenet.support.math.TimeDecayingRunningAverage;
 import freenet.support.math.TrivialRunningAverage;
 
@@ -139,22 +143,26 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	private final RunningAverage throttledPacketSendAverageBulk;
 
 	// Bytes used by each different type of local/remote chk/ssk request/insert
-	final TimeDecayingRunningAverage remoteChkFetchBytesSentAverage;
-	final TimeDecayingRunningAverage remoteSskFetchBytesSentAverage;
-	final TimeDecayingRunningAverage remoteChkInsertBytesSentAverage;
-	final TimeDecayingRunningAverage remoteSskInsertBytesSentAverage;
-	final TimeDecayingRunningAverage remoteChkFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage remoteSskFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage remoteChkInsertBytesReceivedAverage;
-	final TimeDecayingRunningAverage remoteSskInsertBytesReceivedAverage;
-	final TimeDecayingRunningAverage localChkFetchBytesSentAverage;
-	final TimeDecayingRunningAverage localSskFetchBytesSentAverage;
-	final TimeDecayingRunningAverage localChkInsertBytesSentAverage;
-	final TimeDecayingRunningAverage localSskInsertBytesSentAverage;
-	final TimeDecayingRunningAverage localChkFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage localSskFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage localChkInsertBytesReceivedAverage;
-	final TimeDecayingRunningAverage localSskInsertBytesReceivedAverage;
+	final StripedDecayingAverage remoteChkFetchBytesSentAverage;
+	final StripedDecayingAverage remoteSskFetchBytesSentAverage;
+	final StripedDecayingAverage remoteChkInsertBytesSentAverage;
+	final StripedDecayingAverage remoteSskInsertBytesSentAverage;
+	final StripedDecayingAverage remoteChkFetchBytesReceivedAverage;
+	final StripedDecayingAverage remoteSskFetchBytesReceivedAverage;
+	final StripedDecayingAverage remoteChkInsertBytesReceivedAverage;
+	final StripedDecayingAverage remoteSskInsertBytesReceivedAverage;
+	final StripedDecayingAverage localChkFetchBytesSentAverage;
+	final StripedDecayingAverage localSskFetchBytesSentAverage;
+	final StripedDecayingAverage localChkInsertBytesSentAverage;
+	final StripedDecayingAverage localSskInsertBytesSentAverage;
+	final StripedDecayingAverage localChkFetchBytesReceivedAverage;
+	final StripedDecayingAverage localSskFetchBytesReceivedAverage;
+	final StripedDecayingAverage localChkInsertBytesReceivedAverage;
+	final StripedDecayingAverage localSskInsertBytesReceivedAverage;
+	// Total bytes sent and received by each remote chk request/insert, for the spread
+	// behind the averages. Not persisted.
+	final StripedHistogram remoteChkFetchBytes;
+	final StripedHistogram remoteChkInsertBytes;
 
 	// Bytes used by successful chk/ssk request/insert.
 	// Note: These are used to determine whether to accept a request,
@@ -167,28 +175,28 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	// Note that these are always reported in the Handler or the NodeClientCore
 	// call taking its place.
-	final TimeDecayingRunningAverage successfulChkFetchBytesSentAverage;
-	final TimeDecayingRunningAverage successfulSskFetchBytesSentAverage;
-	final TimeDecayingRunningAverage successfulChkInsertBytesSentAverage;
-	final TimeDecayingRunningAverage successfulSskInsertBytesSentAverage;
-	final TimeDecayingRunningAverage successfulChkOfferReplyBytesSentAverage;
-	final TimeDecayingRunningAverage successfulSskOfferReplyBytesSentAverage;
-	final TimeDecayingRunningAverage successfulChkFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage successfulSskFetchBytesReceivedAverage;
-	final TimeDecayingRunningAverage successfulChkInsertBytesReceivedAverage;
-	final TimeDecayingRunningAverage successfulSskInsertBytesReceivedAverage;
-	final TimeDecayingRunningAverage successfulChkOfferReplyBytesReceivedAverage;
-	final TimeDecayingRunningAverage successfulSskOfferReplyBytesReceivedAverage;
-
-	final TrivialRunningAverage globalFetchPSuccess;
-	final TrivialRunningAverage chkLocalFetchPSuccess;
-	final TrivialRunningAverage chkRemoteFetchPSuccess;
-	final TrivialRunningAverage sskLocalFetchPSuccess;
-	final TrivialRunningAverage sskRemoteFetchPSuccess;
-	final TrivialRunningAverage blockTransferPSuccessRT;
-	final TrivialRunningAverage blockTransferPSuccessBulk;
-	final TrivialRunningAverage blockTransferPSuccessLocal;
-	final TrivialRunningAverage blockTransferFailTimeout;
+	final StripedDecayingAverage successfulChkFetchBytesSentAverage;
+	final StripedDecayingAverage successfulSskFetchBytesSentAverage;
+	final StripedDecayingAverage successfulChkInsertBytesSentAverage;
+	final StripedDecayingAverage successfulSskInsertBytesSentAverage;
+	final StripedDecayingAverage successfulChkOfferReplyBytesSentAverage;
+	final StripedDecayingAverage successfulSskOfferReplyBytesSentAverage;
+	final StripedDecayingAverage successfulChkFetchBytesReceivedAverage;
+	final StripedDecayingAverage successfulSskFetchBytesReceivedAverage;
+	final StripedDecayingAverage successfulChkInsertBytesReceivedAverage;
+	final StripedDecayingAverage successfulSskInsertBytesReceivedAverage;
+	final StripedDecayingAverage successfulChkOfferReplyBytesReceivedAverage;
+	final StripedDecayingAverage successfulSskOfferReplyBytesReceivedAverage;
+
+	final StripedRunningMean globalFetchPSuccess;
+	final StripedRunningMean chkLocalFetchPSuccess;
+	final StripedRunningMean chkRemoteFetchPSuccess;
+	final StripedRunningMean sskLocalFetchPSuccess;
+	final StripedRunningMean sskRemoteFetchPSuccess;
+	final StripedRunningMean blockTransferPSuccessRT;
+	final StripedRunningMean blockTransferPSuccessBulk;
+	final StripedRunningMean blockTransferPSuccessLocal;
+	final StripedRunningMean blockTransferFailTimeout;
 
 	final TrivialRunningAverage successfulLocalCHKFetchTimeAverageRT;
 	final TrivialRunningAverage unsuccessfulLocalCHKFetchTimeAverageRT;
@@ -520,46 +528,49 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		if(logMINOR) Logger.minor(this, "Read throttleFS:\n"+throttleFS);
 
 		// Guesstimates. Hopefully well over the reality.
-		localChkFetchBytesSentAverage = new TimeDecayingRunningAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkFetchBytesSentAverage"), node);
-		localSskFetchBytesSentAverage = new TimeDecayingRunningAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskFetchBytesSentAverage"), node);
-		localChkInsertBytesSentAverage = new TimeDecayingRunningAverage(32768, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesSentAverage"), node);
-		localSskInsertBytesSentAverage = new TimeDecayingRunningAverage(2048, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskInsertBytesSentAverage"), node);
-		localChkFetchBytesReceivedAverage = new TimeDecayingRunningAverage(32768+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkFetchBytesReceivedAverage"), node);
-		localSskFetchBytesReceivedAverage = new TimeDecayingRunningAverage(2048, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskFetchBytesReceivedAverage"), node);
-		localChkInsertBytesReceivedAverage = new TimeDecayingRunningAverage(1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesReceivedAverage"), node);
-		localSskInsertBytesReceivedAverage = new TimeDecayingRunningAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesReceivedAverage"), node);
-
-		remoteChkFetchBytesSentAverage = new TimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkFetchBytesSentAverage"), node);
-		remoteSskFetchBytesSentAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskFetchBytesSentAverage"), node);
-		remoteChkInsertBytesSentAverage = new TimeDecayingRunningAverage(32768+32768+1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkInsertBytesSentAverage"), node);
-		remoteSskInsertBytesSentAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskInsertBytesSentAverage"), node);
-		remoteChkFetchBytesReceivedAverage = new TimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkFetchBytesReceivedAverage"), node);
-		remoteSskFetchBytesReceivedAverage = new TimeDecayingRunningAverage(2048+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskFetchBytesReceivedAverage"), node);
-		remoteChkInsertBytesReceivedAverage = new TimeDecayingRunningAverage(32768+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkInsertBytesReceivedAverage"), node);
-		remoteSskInsertBytesReceivedAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskInsertBytesReceivedAverage"), node);
-
-		successfulChkFetchBytesSentAverage = new TimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkFetchBytesSentAverage"), node);
-		successfulSskFetchBytesSentAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskFetchBytesSentAverage"), node);
-		successfulChkInsertBytesSentAverage = new TimeDecayingRunningAverage(32768+32768+1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkInsertBytesSentAverage"), node);
-		successfulSskInsertBytesSentAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskInsertBytesSentAverage"), node);
-		successfulChkOfferReplyBytesSentAverage = new TimeDecayingRunningAverage(32768+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulChkOfferReplyBytesSentAverage"), node);
-		successfulSskOfferReplyBytesSentAverage = new TimeDecayingRunningAverage(3072, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulSskOfferReplyBytesSentAverage"), node);
-		successfulChkFetchBytesReceivedAverage = new TimeDecayingRunningAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkFetchBytesReceivedAverage"), node);
-		successfulSskFetchBytesReceivedAverage = new TimeDecayingRunningAverage(2048+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskFetchBytesReceivedAverage"), node);
-		successfulChkInsertBytesReceivedAverage = new TimeDecayingRunningAverage(32768+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkInsertBytesReceivedAverage"), node);
-		successfulSskInsertBytesReceivedAverage = new TimeDecayingRunningAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskInsertBytesReceivedAverage"), node);
-		successfulChkOfferReplyBytesReceivedAverage = new TimeDecayingRunningAverage(32768+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulChkOfferReplyBytesReceivedAverage"), node);
-		successfulSskOfferReplyBytesReceivedAverage = new TimeDecayingRunningAverage(3072, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulSskOfferReplyBytesReceivedAverage"), node);
-
-		globalFetchPSuccess = new TrivialRunningAverage();
-		chkLocalFetchPSuccess = new TrivialRunningAverage();
-		chkRemoteFetchPSuccess = new TrivialRunningAverage();
-		sskLocalFetchPSuccess = new TrivialRunningAverage();
-		sskRemoteFetchPSuccess = new TrivialRunningAverage();
-		blockTransferPSuccessRT = new TrivialRunningAverage();
-		blockTransferPSuccessBulk = new TrivialRunningAverage();
-		blockTransferPSuccessLocal = new TrivialRunningAverage();
-		blockTransferFailTimeout = new TrivialRunningAverage();
+		localChkFetchBytesSentAverage = new StripedDecayingAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkFetchBytesSentAverage"));
+		localSskFetchBytesSentAverage = new StripedDecayingAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskFetchBytesSentAverage"));
+		localChkInsertBytesSentAverage = new StripedDecayingAverage(32768, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesSentAverage"));
+		localSskInsertBytesSentAverage = new StripedDecayingAverage(2048, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskInsertBytesSentAverage"));
+		localChkFetchBytesReceivedAverage = new StripedDecayingAverage(32768+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkFetchBytesReceivedAverage"));
+		localSskFetchBytesReceivedAverage = new StripedDecayingAverage(2048, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalSskFetchBytesReceivedAverage"));
+		localChkInsertBytesReceivedAverage = new StripedDecayingAverage(1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesReceivedAverage"));
+		localSskInsertBytesReceivedAverage = new StripedDecayingAverage(500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("LocalChkInsertBytesReceivedAverage"));
+
+		remoteChkFetchBytesSentAverage = new StripedDecayingAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkFetchBytesSentAverage"));
+		remoteSskFetchBytesSentAverage = new StripedDecayingAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskFetchBytesSentAverage"));
+		remoteChkInsertBytesSentAverage = new StripedDecayingAverage(32768+32768+1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkInsertBytesSentAverage"));
+		remoteSskInsertBytesSentAverage = new StripedDecayingAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskInsertBytesSentAverage"));
+		remoteChkFetchBytesReceivedAverage = new StripedDecayingAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkFetchBytesReceivedAverage"));
+		remoteSskFetchBytesReceivedAverage = new StripedDecayingAverage(2048+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskFetchBytesReceivedAverage"));
+		remoteChkInsertBytesReceivedAverage = new StripedDecayingAverage(32768+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteChkInsertBytesReceivedAverage"));
+		remoteSskInsertBytesReceivedAverage = new StripedDecayingAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("RemoteSskInsertBytesReceivedAverage"));
+
+		successfulChkFetchBytesSentAverage = new StripedDecayingAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkFetchBytesSentAverage"));
+		successfulSskFetchBytesSentAverage = new StripedDecayingAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskFetchBytesSentAverage"));
+		successfulChkInsertBytesSentAverage = new StripedDecayingAverage(32768+32768+1024, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkInsertBytesSentAverage"));
+		successfulSskInsertBytesSentAverage = new StripedDecayingAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskInsertBytesSentAverage"));
+		successfulChkOfferReplyBytesSentAverage = new StripedDecayingAverage(32768+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulChkOfferReplyBytesSentAverage"));
+		successfulSskOfferReplyBytesSentAverage = new StripedDecayingAverage(3072, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulSskOfferReplyBytesSentAverage"));
+		successfulChkFetchBytesReceivedAverage = new StripedDecayingAverage(32768+1024+500+2048/*path folding*/, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkFetchBytesReceivedAverage"));
+		successfulSskFetchBytesReceivedAverage = new StripedDecayingAverage(2048+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskFetchBytesReceivedAverage"));
+		successfulChkInsertBytesReceivedAverage = new StripedDecayingAverage(32768+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulChkInsertBytesReceivedAverage"));
+		successfulSskInsertBytesReceivedAverage = new StripedDecayingAverage(1024+1024+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("SuccessfulSskInsertBytesReceivedAverage"));
+		successfulChkOfferReplyBytesReceivedAverage = new StripedDecayingAverage(32768+500, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulChkOfferReplyBytesReceivedAverage"));
+		successfulSskOfferReplyBytesReceivedAverage = new StripedDecayingAverage(3072, 180000, 0.0, 200*1024, throttleFS == null ? null : throttleFS.subset("successfulSskOfferReplyBytesReceivedAverage"));
+
+		remoteChkFetchBytes = new StripedHistogram();
+		remoteChkInsertBytes = new StripedHistogram();
+
+		globalFetchPSuccess = new StripedRunningMean();
+		chkLocalFetchPSuccess = new StripedRunningMean();
+		chkRemoteFetchPSuccess = new StripedRunningMean();
+		sskLocalFetchPSuccess = new StripedRunningMean();
+		sskRemoteFetchPSuccess = new StripedRunningMean();
+		blockTransferPSuccessRT = new StripedRunningMean();
+		blockTransferPSuccessBulk = new StripedRunningMean();
+		blockTransferPSuccessLocal = new StripedRunningMean();
+		blockTransferFailTimeout = new StripedRunningMean();
 
 		successfulLocalCHKFetchTimeAverageRT = new TrivialRunningAverage();
 		unsuccessfulLocalCHKFetchTimeAverageRT = new TrivialRunningAverage();
@@ -772,8 +783,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		public PeerLoadStats(PeerNode peer, int transfersPerInsert, boolean realTimeFlag) {
 			this.peer = peer;
 			this.realTime = realTimeFlag;
-			long[] total = node.collector.getTotalIO();
-			long totalSent = total[0];
+			long totalSent = node.collector.getTotalSent();
 			long totalOverhead = getSentOverhead();
 			long uptime = node.getUptime();
 			
@@ -1166,8 +1176,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		if(threadLimit < threadCount * SOFT_REJECT_MAX_THREAD_USAGE)
 			slowDown(">softThreadLimit", isLocal, isInsert, isSSK, isOfferReply, realTimeFlag, tag);
 
-		long[] total = node.collector.getTotalIO();
-		long totalSent = total[0];
+		long totalSent = node.collector.getTotalSent();
 		long totalOverhead = getSentOverhead();
 		long uptime = node.getUptime();
 		long now = System.currentTimeMillis();
@@ -1806,37 +1815,52 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		}
 	}
 
+	/** @return The per-request byte cost averages, keyed by the names used in the throttle
+	 * file, in a consistent order. */
+	Map<String, StripedDecayingAverage> getByteCostAverages() {
+		Map<String, StripedDecayingAverage> averages = new LinkedHashMap<String, StripedDecayingAverage>();
+		averages.put("RemoteChkFetchBytesSentAverage", remoteChkFetchBytesSentAverage);
+		averages.put("RemoteSskFetchBytesSentAverage", remoteSskFetchBytesSentAverage);
+		averages.put("RemoteChkInsertBytesSentAverage", remoteChkInsertBytesSentAverage);
+		averages.put("RemoteSskInsertBytesSentAverage", remoteSskInsertBytesSentAverage);
+		averages.put("RemoteChkFetchBytesReceivedAverage", remoteChkFetchBytesReceivedAverage);
+		averages.put("RemoteSskFetchBytesReceivedAverage", remoteSskFetchBytesReceivedAverage);
+		averages.put("RemoteChkInsertBytesReceivedAverage", remoteChkInsertBytesReceivedAverage);
+		averages.put("RemoteSskInsertBytesReceivedAverage", remoteSskInsertBytesReceivedAverage);
+		averages.put("LocalChkFetchBytesSentAverage", localChkFetchBytesSentAverage);
+		averages.put("LocalSskFetchBytesSentAverage", localSskFetchBytesSentAverage);
+		averages.put("LocalChkInsertBytesSentAverage", localChkInsertBytesSentAverage);
+		averages.put("LocalSskInsertBytesSentAverage", localSskInsertBytesSentAverage);
+		averages.put("LocalChkFetchBytesReceivedAverage", localChkFetchBytesReceivedAverage);
+		averages.put("LocalSskFetchBytesReceivedAverage", localSskFetchBytesReceivedAverage);
+		averages.put("LocalChkInsertBytesReceivedAverage", localChkInsertBytesReceivedAverage);
+		averages.put("LocalSskInsertBytesReceivedAverage", localSskInsertBytesReceivedAverage);
+		averages.put("SuccessfulChkFetchBytesSentAverage", successfulChkFetchBytesSentAverage);
+		averages.put("SuccessfulSskFetchBytesSentAverage", successfulSskFetchBytesSentAverage);
+		averages.put("SuccessfulChkInsertBytesSentAverage", successfulChkInsertBytesSentAverage);
+		averages.put("SuccessfulSskInsertBytesSentAverage", successfulSskInsertBytesSentAverage);
+		averages.put("SuccessfulChkOfferReplyBytesSentAverage", successfulChkOfferReplyBytesSentAverage);
+		averages.put("SuccessfulSskOfferReplyBytesSentAverage", successfulSskOfferReplyBytesSentAverage);
+		averages.put("SuccessfulChkFetchBytesReceivedAverage", successfulChkFetchBytesReceivedAverage);
+		averages.put("SuccessfulSskFetchBytesReceivedAverage", successfulSskFetchBytesReceivedAverage);
+		averages.put("SuccessfulChkInsertBytesReceivedAverage", successfulChkInsertBytesReceivedAverage);
+		averages.put("SuccessfulSskInsertBytesReceivedAverage", successfulSskInsertBytesReceivedAverage);
+		averages.put("SuccessfulChkOfferReplyBytesReceivedAverage", successfulChkOfferReplyBytesReceivedAverage);
+		averages.put("SuccessfulSskOfferReplyBytesReceivedAverage", successfulSskOfferReplyBytesReceivedAverage);
+		return averages;
+	}
+
+	/** @return A snapshot of the request statistics. Doesn't take any locks which are used
+	 * when requests complete. */
+	public RequestStatsSnapshot getRequestStatsSnapshot() {
+		return new RequestStatsSnapshot(this);
+	}
+
 	@Override
 	public SimpleFieldSet persistThrottlesToFieldSet() {
 		SimpleFieldSet fs = new SimpleFieldSet(true);
-		fs.put("RemoteChkFetchBytesSentAverage", remoteChkFetchBytesSentAverage.exportFieldSet(true));
-		fs.put("RemoteSskFetchBytesSentAverage", remoteSskFetchBytesSentAverage.exportFieldSet(true));
-		fs.put("RemoteChkInsertBytesSentAverage", remoteChkInsertBytesSentAverage.exportFieldSet(true));
-		fs.put("RemoteSskInsertBytesSentAverage", remoteSskInsertBytesSentAverage.exportFieldSet(true));
-		fs.put("RemoteChkFetchBytesReceivedAverage", remoteChkFetchBytesReceivedAverage.exportFieldSet(true));
-		fs.put("RemoteSskFetchBytesReceivedAverage", remoteSskFetchBytesReceivedAverage.exportFieldSet(true));
-		fs.put("RemoteChkInsertBytesReceivedAverage", remoteChkInsertBytesReceivedAverage.exportFieldSet(true));
-		fs.put("RemoteSskInsertBytesReceivedAverage", remoteSskInsertBytesReceivedAverage.exportFieldSet(true));
-		fs.put("LocalChkFetchBytesSentAverage", localChkFetchBytesSentAverage.exportFieldSet(true));
-		fs.put("LocalSskFetchBytesSentAverage", localSskFetchBytesSentAverage.exportFieldSet(true));
-		fs.put("LocalChkInsertBytesSentAverage", localChkInsertBytesSentAverage.exportFieldSet(true));
-		fs.put("LocalSskInsertBytesSentAverage", localSskInsertBytesSentAverage.exportFieldSet(true));
-		fs.put("LocalChkFetchBytesReceivedAverage", localChkFetchBytesReceivedAverage.exportFieldSet(true));
-		fs.put("LocalSskFetchBytesReceivedAverage", localSskFetchBytesReceivedAverage.exportFieldSet(true));
-		fs.put("LocalChkInsertBytesReceivedAverage", localChkInsertBytesReceivedAverage.exportFieldSet(true));
-		fs.put("LocalSskInsertBytesReceivedAverage", localSskInsertBytesReceivedAverage.exportFieldSet(true));
-		fs.put("SuccessfulChkFetchBytesSentAverage", successfulChkFetchBytesSentAverage.exportFieldSet(true));
-		fs.put("SuccessfulSskFetchBytesSentAverage", successfulSskFetchBytesSentAverage.exportFieldSet(true));
-		fs.put("SuccessfulChkInsertBytesSentAverage", successfulChkInsertBytesSentAverage.exportFieldSet(true));
-		fs.put("SuccessfulSskInsertBytesSentAverage", successfulSskInsertBytesSentAverage.exportFieldSet(true));
-		fs.put("SuccessfulChkOfferReplyBytesSentAverage", successfulChkOfferReplyBytesSentAverage.exportFieldSet(true));
-		fs.put("SuccessfulSskOfferReplyBytesSentAverage", successfulSskOfferReplyBytesSentAverage.exportFieldSet(true));
-		fs.put("SuccessfulChkFetchBytesReceivedAverage", successfulChkFetchBytesReceivedAverage.exportFieldSet(true));
-		fs.put("SuccessfulSskFetchBytesReceivedAverage", successfulSskFetchBytesReceivedAverage.exportFieldSet(true));
-		fs.put("SuccessfulChkInsertBytesReceivedAverage", successfulChkInsertBytesReceivedAverage.exportFieldSet(true));
-		fs.put("SuccessfulSskInsertBytesReceivedAverage", successfulSskInsertBytesReceivedAverage.exportFieldSet(true));
-		fs.put("SuccessfulChkOfferReplyBytesReceivedAverage", successfulChkOfferReplyBytesReceivedAverage.exportFieldSet(true));
-		fs.put("SuccessfulSskOfferReplyBytesReceivedAverage", successfulSskOfferReplyBytesReceivedAverage.exportFieldSet(true));
+		for(Map.Entry<String, StripedDecayingAverage> entry : getByteCostAverages().entrySet())
+			fs.put(entry.getKey(), entry.getValue().exportFieldSet(true));
 
 		//These are not really part of the 'throttling' data, but are also running averages which should be persisted
 		fs.put("AverageCacheCHKLocation", avgCacheCHKLocation.exportFieldSet(true));
@@ -2247,21 +2271,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("availableCPUs", availableCpus);
 		fs.put("runningThreadCount", getActiveThreadCount());
 
-		fs.put("globalFetchPSuccess", globalFetchPSuccess.currentValue());
-		fs.put("globalFetchCount", globalFetchPSuccess.countReports());
-		fs.put("chkLocalFetchPSuccess", chkLocalFetchPSuccess.currentValue());
-		fs.put("chkLocalFetchCount", chkLocalFetchPSuccess.countReports());
-		fs.put("chkRemoteFetchPSuccess", chkRemoteFetchPSuccess.currentValue());
-		fs.put("chkRemoteFetchCount", chkRemoteFetchPSuccess.countReports());
-		fs.put("sskLocalFetchPSuccess", sskLocalFetchPSuccess.currentValue());
-		fs.put("sskLocalFetchCount", sskLocalFetchPSuccess.countReports());
-		fs.put("sskRemoteFetchPSuccess", sskRemoteFetchPSuccess.currentValue());
-		fs.put("sskRemoteFetchCount", sskRemoteFetchPSuccess.countReports());
-		fs.put("blockTransferPSuccessRT", blockTransferPSuccessRT.currentValue());
-		fs.put("blockTransferCountRT", blockTransferPSuccessRT.countReports());
-		fs.put("blockTransferPSuccessBulk", blockTransferPSuccessBulk.currentValue());
-		fs.put("blockTransferCountBulk", blockTransferPSuccessBulk.countReports());
-		fs.put("blockTransferFailTimeout", blockTransferFailTimeout.currentValue());
+		getRequestStatsSnapshot().exportTo(fs);
 
 		return fs;
 	}
@@ -2289,7 +2299,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return localPreemptiveRejectReasons.toTableRows(table) > 0;
 	}
 
-	public synchronized void requestCompleted(boolean succeeded, boolean isRemote, boolean isSSK) {
+	public void requestCompleted(boolean succeeded, boolean isRemote, boolean isSSK) {
 		globalFetchPSuccess.report(succeeded ? 1.0 : 0.0);
 		if(isSSK) {
 			if (isRemote) {
@@ -2311,16 +2321,17 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	public void fillSuccessRateBox(HTMLNode parent) {
 		HTMLNode list = parent.addChild("table", "border", "0");
-		final RunningAverage[] averages = new RunningAverage[] {
-				globalFetchPSuccess,
-				chkLocalFetchPSuccess,
-				chkRemoteFetchPSuccess,
-				sskLocalFetchPSuccess,
-				sskRemoteFetchPSuccess,
-				blockTransferPSuccessBulk,
-				blockTransferPSuccessRT,
-				blockTransferPSuccessLocal,
-				blockTransferFailTimeout
+		RequestStatsSnapshot snapshot = getRequestStatsSnapshot();
+		final RequestStatsSnapshot.SuccessRate[] rates = new RequestStatsSnapshot.SuccessRate[] {
+				snapshot.globalFetch,
+				snapshot.chkLocalFetch,
+				snapshot.chkRemoteFetch,
+				snapshot.sskLocalFetch,
+				snapshot.sskRemoteFetch,
+				snapshot.blockTransferBulk,
+				snapshot.blockTransferRT,
+				snapshot.blockTransferLocal,
+				snapshot.blockTransferFailTimeout
 		};
 		final String[] names = new String[] {
 				l10n("allRequests"),
@@ -2338,15 +2349,15 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		row.addChild("th", l10n("pSuccess"));
 		row.addChild("th", l10n("count"));
 
-		for(int i=0;i<averages.length;i++) {
+		for(int i=0;i<rates.length;i++) {
 			row = list.addChild("tr");
 			row.addChild("td", names[i]);
-			if (averages[i].countReports()==0) {
+			if (rates[i].count==0) {
 				row.addChild("td", "-");
 				row.addChild("td", "0");
 			} else {
-				row.addChild("td", fix3p3pct.format(averages[i].currentValue()));
-				row.addChild("td", thousandPoint.format(averages[i].countReports()));
+				row.addChild("td", fix3p3pct.format(rates[i].pSuccess));
+				row.addChild("td", thousandPoint.format(rates[i].count));
 			}
 		}
 
@@ -2985,7 +2996,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return (getSentOverhead() * 1000.0) / uptime;
 	}
 
-	public synchronized void successfulBlockReceive(boolean realTimeFlag, boolean isLocal) {
+	public void successfulBlockReceive(boolean realTimeFlag, boolean isLocal) {
 		RunningAverage blockTransferPSuccess = realTimeFlag ? blockTransferPSuccessRT : blockTransferPSuccessBulk;
 		blockTransferPSuccess.report(1.0);
 		if(isLocal)
@@ -2993,7 +3004,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		if(logMINOR) Logger.minor(this, "Successful receives: "+blockTransferPSuccess.currentValue()+" count="+blockTransferPSuccess.countReports()+" realtime="+realTimeFlag);
 	}
 
-	public synchronized void failedBlockReceive(boolean normalFetch, boolean timeout, boolean realTimeFlag, boolean isLocal) {
+	public void failedBlockReceive(boolean normalFetch, boolean timeout, boolean realTimeFlag, boolean isLocal) {
 		if(normalFetch) {
 			blockTransferFailTimeout.report(timeout ? 1.0 : 0.0);
 		}
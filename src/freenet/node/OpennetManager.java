@@ -1137,7 +1137,7 @@ public class OpennetManager {
 	public static SimpleFieldSet validateNoderef(byte[] noderef, int offset, int length, PeerNode from, boolean forceOpennetEnabled) {
     	SimpleFieldSet ref;
 		try {
-			ref = PeerNode.compressedNoderefToFieldSet(noderef, 0, noderef.length);
+			ref = PeerNode.compressedNoderefToFieldSet(noderef, offset, length);
 		} catch (FSParseException e) {
 			Logger.error(OpennetManager.class, "Invalid noderef: "+e, e);
 			return null;
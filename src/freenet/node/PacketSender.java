@@ -9,6 +9,7 @@ import java.util.HashSet;
 import freenet.clients.http.ExternalLinkToadlet;
 import freenet.io.comm.Peer;
 import freenet.l10n.NodeL10n;
+import freenet.node.stats.Instrumentation;
 import freenet.node.useralerts.AbstractUserAlert;
 import freenet.node.useralerts.UserAlert;
 import freenet.support.HTMLNode;
@@ -151,6 +152,7 @@ public class PacketSender implements Runnable {
 	 * e.g. bulk f2f transfers, so we may need to reconsider this eventually...
 	 */
 	private void realRun() {
+		long startTime = System.nanoTime();
 		long now = System.currentTimeMillis();
                 PeerManager pm;
 		PeerNode[] nodes;
@@ -486,6 +488,8 @@ public class PacketSender implements Runnable {
 				lastReportedNoPackets = now;
 			}
 
+		Instrumentation.PACKET_SENDER_LOOP.reportSince(startTime);
+
 		if(sleepTime > 0) {
 			// Update logging only when have time to do so
 			try {
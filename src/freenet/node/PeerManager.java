@@ -11,11 +11,11 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -32,15 +32,17 @@ import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.keys.Key;
 import freenet.node.DarknetPeerNode.FRIEND_TRUST;
 import freenet.node.DarknetPeerNode.FRIEND_VISIBILITY;
+import freenet.node.stats.Instrumentation;
 import freenet.node.useralerts.PeerManagerUserAlert;
 import freenet.support.ByteArrayWrapper;
+import freenet.support.CompactFieldSet;
 import freenet.support.Logger;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
-import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
-import freenet.support.io.NativeThread;
+import freenet.support.io.LineReader;
+import freenet.support.io.Readers;
 
 /**
  * @author amphibian
@@ -62,14 +64,12 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
-	private String darkFilename;
-        private String openFilename;
-        private String oldOpennetPeersFilename;
-        // FIXME MEMORY use a hash. Not hashCode() though.
-        // FIXME Strip metadata, except for peer locations.
-        private String darknetPeersStringCache = null;
-        private String opennetPeersStringCache = null;
-        private String oldOpennetPeersStringCache = null;
+	/** Writes the darknet peers file */
+	private final PeersFileWriter<PeerNode> darknetPeersWriter;
+	/** Writes the opennet peers file */
+	private final PeersFileWriter<PeerNode> opennetPeersWriter;
+	/** Writes the old opennet peers file */
+	private final PeersFileWriter<PeerNode> oldOpennetPeersWriter;
         private PeerManagerUserAlert ua;	// Peers stuff
 	/** age of oldest never connected peer (milliseconds) */
 	private long oldestNeverConnectedDarknetPeerAge;
@@ -94,39 +94,34 @@ public class PeerManager {
 	/** routableConnectionStats update interval (milliseconds) */
 	private static final long routableConnectionStatsUpdateInterval = 7 * 1000;  // 7 seconds
 	
-	/** Should update the peer-file ? */
-	private volatile boolean shouldWritePeersDarknet = false;
-	private volatile boolean shouldWritePeersOpennet = false;
 	private static final int MIN_WRITEPEERS_DELAY = 5*60*1000; // 5 minutes. Urgent stuff calls write*PeersUrgent.
+	/** Rewrite the peers files and drop the logs this often, even if the logs are small. */
+	private static final long COMPACT_PEERS_INTERVAL = 60*60*1000;
+	private long lastCompactedPeers;
 	private final Runnable writePeersRunnable = new Runnable() {
 
 		@Override
 		public void run() {
 			try {
-				writePeersNow(false);
+				long now = System.currentTimeMillis();
+				boolean compact = now - lastCompactedPeers > COMPACT_PEERS_INTERVAL;
+				writePeersNow(compact);
+				if(compact) lastCompactedPeers = now;
 			} finally {
 				node.getTicker().queueTimedJob(writePeersRunnable, MIN_WRITEPEERS_DELAY);
 			}
 		}
 	};
 	
-	protected void writePeersNow(boolean rotateBackups) {
-		writePeersDarknetNow(rotateBackups);
-		writePeersOpennetNow(rotateBackups);
-	}
-
-	private void writePeersDarknetNow(boolean rotateBackups) {
-		if(shouldWritePeersDarknet) {
-			shouldWritePeersDarknet = false;
-			writePeersInnerDarknet(rotateBackups);
-		}
-	}
-
-	private void writePeersOpennetNow(boolean rotateBackups) {
-		if(shouldWritePeersOpennet) {
-			shouldWritePeersOpennet = false;
-			writePeersInnerOpennet(rotateBackups);
-		}
+	/**
+	 * Write any changes to the peers files.
+	 * @param compact If true, rewrite the peers files completely and delete the logs, e.g.
+	 * on shutdown.
+	 */
+	protected void writePeersNow(boolean compact) {
+		darknetPeersWriter.write(compact);
+		opennetPeersWriter.write(compact);
+		oldOpennetPeersWriter.write(compact);
 	}
 
 	public static final int PEER_NODE_STATUS_CONNECTED = 1;
@@ -169,9 +164,71 @@ public class PeerManager {
 		myPeers = new PeerNode[0];
 		connectedPeers = new PeerNode[0];
 		this.node = node;
+		darknetPeersWriter = new PeersFileWriter<PeerNode>("darknet", BACKUPS_DARKNET, node.getTicker()) {
+
+			@Override
+			protected PeerNode[] getPeers() {
+				return getDarknetPeers();
+			}
+
+			@Override
+			protected String getIdentity(PeerNode peer) {
+				return peer.getIdentityString();
+			}
+
+			@Override
+			protected SimpleFieldSet export(PeerNode peer) {
+				return peer.exportDiskFieldSet();
+			}
+
+		};
+		opennetPeersWriter = new PeersFileWriter<PeerNode>("opennet", BACKUPS_OPENNET, node.getTicker()) {
+
+			@Override
+			protected PeerNode[] getPeers() {
+				if(PeerManager.this.node.getOpennet() == null) return null;
+				return getOpennetPeers();
+			}
+
+			@Override
+			protected String getIdentity(PeerNode peer) {
+				return peer.getIdentityString();
+			}
+
+			@Override
+			protected SimpleFieldSet export(PeerNode peer) {
+				return peer.exportDiskFieldSet();
+			}
+
+		};
+		oldOpennetPeersWriter = new PeersFileWriter<PeerNode>("old opennet", BACKUPS_OPENNET, node.getTicker()) {
+
+			@Override
+			protected PeerNode[] getPeers() {
+				OpennetManager om = PeerManager.this.node.getOpennet();
+				if(om == null) return null;
+				ArrayList<PeerNode> peers = new ArrayList<PeerNode>();
+				for(PeerNode pn : om.getOldPeers()) {
+					if(pn instanceof OpennetPeerNode)
+						peers.add(pn);
+				}
+				return peers.toArray(new PeerNode[peers.size()]);
+			}
+
+			@Override
+			protected String getIdentity(PeerNode peer) {
+				return peer.getIdentityString();
+			}
+
+			@Override
+			protected SimpleFieldSet export(PeerNode peer) {
+				return peer.exportDiskFieldSet();
+			}
+
+		};
 		shutdownHook.addEarlyJob(new Thread() {
 			public void run() {
-				writePeersNow(false);
+				writePeersNow(true);
 			}
 		});
 	}
@@ -187,20 +244,19 @@ public class PeerManager {
 	 * manager as "old peers" i.e. inactive nodes which may try to reconnect.
 	 */
 	void tryReadPeers(String filename, NodeCrypto crypto, OpennetManager opennet, boolean isOpennet, boolean oldOpennetPeers) {
-		synchronized(writePeersSync) {
-			if(!oldOpennetPeers)
-				if(isOpennet)
-					openFilename = filename;
-				else
-					darkFilename = filename;
-		}
+		if(oldOpennetPeers)
+			oldOpennetPeersWriter.setFilename(filename);
+		else if(isOpennet)
+			opennetPeersWriter.setFilename(filename);
+		else
+			darknetPeersWriter.setFilename(filename);
 		OutgoingPacketMangler mangler = crypto.packetMangler;
 		int maxBackups = isOpennet ? BACKUPS_OPENNET : BACKUPS_DARKNET;
 		for(int i=0;i<=maxBackups;i++) {
-			File peersFile = this.getBackupFilename(filename, i);
+			File peersFile = PeersFileWriter.getBackupFilename(filename, i);
 			// Try to read the node list from disk
 			if(peersFile.exists())
-				if(readPeers(peersFile, mangler, crypto, opennet, oldOpennetPeers)) {
+				if(readPeers(peersFile, i == 0, mangler, crypto, opennet, oldOpennetPeers)) {
 					String msg;
 					if(oldOpennetPeers)
 						msg = "Read " + opennet.countOldOpennetPeers() + " old-opennet-peers from " + peersFile;
@@ -218,7 +274,10 @@ public class PeerManager {
 		// The other cases are less important.
 	}
 
-	private boolean readPeers(File peersFile, OutgoingPacketMangler mangler, NodeCrypto crypto, OpennetManager opennet, boolean oldOpennetPeers) {
+	/**
+	 * @param replayLog If true, apply the changes in the log written by PeersFileWriter.
+	 */
+	private boolean readPeers(File peersFile, boolean replayLog, OutgoingPacketMangler mangler, NodeCrypto crypto, OpennetManager opennet, boolean oldOpennetPeers) {
 		boolean someBroken = false;
 		boolean gotSome = false;
 		FileInputStream fis;
@@ -235,41 +294,17 @@ public class PeerManager {
 			throw new Error("Impossible: JVM doesn't support UTF-8: " + e4, e4);
 		}
 		BufferedReader br = new BufferedReader(ris);
+		LineReader lr = Readers.fromBufferedReader(br);
+		LinkedHashMap<String, SimpleFieldSet> refs = new LinkedHashMap<String, SimpleFieldSet>();
 		try { // FIXME: no better way?
 			while(true) {
 				// Read a single NodePeer
 				SimpleFieldSet fs;
-				fs = new SimpleFieldSet(br, false, true);
-				PeerNode pn;
-				try {
-					pn = PeerNode.create(fs, node, crypto, opennet, this, mangler);
-				} catch(FSParseException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					System.err.println("Cannot parse a friend from the peers file: "+e2);
-					someBroken = true;
-					continue;
-				} catch(PeerParseException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					System.err.println("Cannot parse a friend from the peers file: "+e2);
-					someBroken = true;
-					continue;
-				} catch(ReferenceSignatureVerificationException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					System.err.println("Cannot parse a friend from the peers file: "+e2);
-					someBroken = true;
-					continue;
-				} catch (RuntimeException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					System.err.println("Cannot parse a friend from the peers file: "+e2);
-					someBroken = true;
-					continue;
-					// FIXME tell the user???
-				}
-				if(oldOpennetPeers)
-					opennet.addOldOpennetNode(pn);
-				else
-					addPeer(pn, true, false);
-				gotSome = true;
+				fs = CompactFieldSet.read(lr, Integer.MAX_VALUE, 0x100, true, false).toSimpleFieldSet(true);
+				String identity = fs.get("identity");
+				// Shouldn't happen, but don't lose it.
+				if(identity == null) identity = "#" + refs.size();
+				refs.put(identity, fs);
 			}
 		} catch(EOFException e) {
 			// End of file, fine
@@ -281,6 +316,43 @@ public class PeerManager {
 		} catch(IOException e3) {
 			Logger.error(this, "Ignoring " + e3 + " caught reading " + peersFile, e3);
 		}
+		if(replayLog) {
+			int changes = PeersFileWriter.replayLog(peersFile.getPath(), refs, REQUIRED_NODEREF_KEYS);
+			if(changes > 0)
+				Logger.normal(this, "Applied " + changes + " changes from the log for " + peersFile);
+		}
+		for(SimpleFieldSet fs : refs.values()) {
+			PeerNode pn;
+			try {
+				pn = PeerNode.create(fs, node, crypto, opennet, this, mangler);
+			} catch(FSParseException e2) {
+				Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+				System.err.println("Cannot parse a friend from the peers file: "+e2);
+				someBroken = true;
+				continue;
+			} catch(PeerParseException e2) {
+				Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+				System.err.println("Cannot parse a friend from the peers file: "+e2);
+				someBroken = true;
+				continue;
+			} catch(ReferenceSignatureVerificationException e2) {
+				Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+				System.err.println("Cannot parse a friend from the peers file: "+e2);
+				someBroken = true;
+				continue;
+			} catch (RuntimeException e2) {
+				Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+				System.err.println("Cannot parse a friend from the peers file: "+e2);
+				someBroken = true;
+				continue;
+				// FIXME tell the user???
+			}
+			if(oldOpennetPeers)
+				opennet.addOldOpennetNode(pn);
+			else
+				addPeer(pn, true, false);
+			gotSome = true;
+		}
 		if(someBroken) {
 			File broken = new File(peersFile.getPath()+".broken");
 			try {
@@ -907,6 +979,17 @@ public class PeerManager {
 	public PeerNode closerPeer(PeerNode pn, Set<PeerNode> routedTo, double target, boolean ignoreSelf,
 	        boolean calculateMisrouting, int minVersion, List<Double> addUnpickedLocsTo, double maxDistance, Key key, short outgoingHTL, int ignoreBackoffUnder, boolean isLocal, boolean realTime,
 	        RecentlyFailedReturn recentlyFailed, boolean ignoreTimeout, long now, boolean newLoadManagement) {
+		long startTime = System.nanoTime();
+		try {
+			return innerCloserPeer(pn, routedTo, target, ignoreSelf, calculateMisrouting, minVersion, addUnpickedLocsTo, maxDistance, key, outgoingHTL, ignoreBackoffUnder, isLocal, realTime, recentlyFailed, ignoreTimeout, now, newLoadManagement);
+		} finally {
+			Instrumentation.CLOSER_PEER.reportSince(startTime);
+		}
+	}
+
+	private PeerNode innerCloserPeer(PeerNode pn, Set<PeerNode> routedTo, double target, boolean ignoreSelf,
+	        boolean calculateMisrouting, int minVersion, List<Double> addUnpickedLocsTo, double maxDistance, Key key, short outgoingHTL, int ignoreBackoffUnder, boolean isLocal, boolean realTime,
+	        RecentlyFailedReturn recentlyFailed, boolean ignoreTimeout, long now, boolean newLoadManagement) {
 		
 		int countWaiting = 0;
 		long soonestTimeoutWakeup = Long.MAX_VALUE;
@@ -1380,211 +1463,44 @@ public class PeerManager {
 		}
 		return sb.toString();
 	}
-	private final Object writePeersSync = new Object();
-	private final Object writePeerFileSync = new Object();
-	
-	void writePeers(boolean opennet) {
-		if(opennet)
-			writePeersOpennet();
+	/** A peer's noderef or metadata has changed. Not urgent: it will be written with the
+	 * next periodic write, or sooner if something urgent happens. */
+	void writePeers(PeerNode pn) {
+		if(pn.isOpennet())
+			opennetPeersWriter.changed(pn);
 		else
-			writePeersDarknet();
+			darknetPeersWriter.changed(pn);
 	}
 
+	/** A peer has been added or removed. Written within a few seconds, along with anything
+	 * else which changes in the meantime. */
 	void writePeersUrgent(boolean opennet) {
-		if(opennet)
-			writePeersOpennetUrgent();
-		else
-			writePeersDarknetUrgent();
+		if(opennet) {
+			opennetPeersWriter.writeSoon(true);
+			// Peers we drop become old opennet peers.
+			oldOpennetPeersWriter.changedAll();
+			oldOpennetPeersWriter.writeSoon(true);
+		} else
+			darknetPeersWriter.writeSoon(true);
 	}
-	
-	void writePeersOpennetUrgent() {
-		node.executor.execute(new PrioRunnable() {
-
-			@Override
-			public void run() {
-				writePeersOpennetNow(true);
-			}
 
-			@Override
-			public int getPriority() {
-				return NativeThread.HIGH_PRIORITY;
-			}
-			
-		});
+	/** A peer's noderef has changed, and it should be written soon, e.g. the user has
+	 * changed its settings. */
+	void writePeersUrgent(PeerNode pn) {
+		writePeers(pn);
+		writePeersUrgent(pn.isOpennet());
 	}
 
-	void writePeersDarknetUrgent() {
-		node.executor.execute(new PrioRunnable() {
-
-			@Override
-			public void run() {
-				writePeersDarknetNow(true);
-			}
-
-			@Override
-			public int getPriority() {
-				return NativeThread.HIGH_PRIORITY;
-			}
-			
-		});
+	/** For the stats page. */
+	public PeersFileWriter<?>[] getPeersFileWriters() {
+		return new PeersFileWriter<?>[] { darknetPeersWriter, opennetPeersWriter, oldOpennetPeersWriter };
 	}
 
-	void writePeersDarknet() {
-		shouldWritePeersDarknet = true;
-	}
-	
-	void writePeersOpennet() {
-		shouldWritePeersOpennet = true;
-	}
-	
-	protected String getDarknetPeersString() {
-		StringBuilder sb = new StringBuilder();
-		PeerNode[] peers = myPeers();
-		for(PeerNode pn : peers) {
-			if(pn instanceof DarknetPeerNode)
-				sb.append(pn.exportDiskFieldSet().toOrderedString());
-		}
-		
-		return sb.toString();
-	}
-	
-	protected String getOpennetPeersString() {
-		StringBuilder sb = new StringBuilder();
-		PeerNode[] peers = myPeers();
-		for(PeerNode pn : peers) {
-			if(pn instanceof OpennetPeerNode)
-				sb.append(pn.exportDiskFieldSet().toOrderedString());
-		}
-		
-		return sb.toString();
-	}
-	
-	protected String getOldOpennetPeersString(OpennetManager om) {
-		StringBuilder sb = new StringBuilder();
-		for(PeerNode pn : om.getOldPeers()) {
-			if(pn instanceof OpennetPeerNode)
-				sb.append(pn.exportDiskFieldSet().toOrderedString());
-		}
-		
-		return sb.toString();
-	}
-	
 	private static final int BACKUPS_OPENNET = 1;
 	private static final int BACKUPS_DARKNET = 10;
-	
-	private void writePeersInnerDarknet(boolean rotateBackups) {
-        String newDarknetPeersString = null;
-		synchronized(writePeersSync) {
-			if(darkFilename != null)
-				newDarknetPeersString = getDarknetPeersString();
-		}
-		synchronized(writePeerFileSync) {
-			if(newDarknetPeersString != null && !newDarknetPeersString.equals(darknetPeersStringCache))
-				writePeersInner(darkFilename, darknetPeersStringCache = newDarknetPeersString, BACKUPS_DARKNET, rotateBackups);
-		}
-	}
-
-	private void writePeersInnerOpennet(boolean rotateBackups) {
-        String newOpennetPeersString = null;
-        String newOldOpennetPeersString = null;
-		synchronized(writePeersSync) {
-			OpennetManager om = node.getOpennet();
-			if(om != null) {
-				if(openFilename != null)
-					newOpennetPeersString = getOpennetPeersString();
-				oldOpennetPeersFilename = om.getOldPeersFilename();
-				newOldOpennetPeersString = getOldOpennetPeersString(om);
-			}
-		}
-		synchronized(writePeerFileSync) {
-			if(newOpennetPeersString != null && !newOpennetPeersString.equals(opennetPeersStringCache)) {
-				writePeersInner(openFilename, opennetPeersStringCache = newOpennetPeersString, BACKUPS_OPENNET, rotateBackups);
-			}
-			if(newOldOpennetPeersString != null && !newOldOpennetPeersString.equals(oldOpennetPeersStringCache)) {
-				writePeersInner(oldOpennetPeersFilename, oldOpennetPeersStringCache = newOldOpennetPeersString, BACKUPS_OPENNET, rotateBackups);
-			}
-		}
-	}
-	
-	/**
-	 * Write the peers file to disk
-	 * @param rotateBackups If true, rotate backups. If false, just clobber the latest file.
-	 */
-	private void writePeersInner(String filename, String sb, int maxBackups, boolean rotateBackups) {
-		assert(maxBackups >= 1);
-		synchronized(writePeerFileSync) {
-			FileOutputStream fos = null;
-			File f;
-			File full = new File(filename).getAbsoluteFile();
-			try {
-				f = File.createTempFile(full.getName()+".", ".tmp", full.getParentFile());
-			} catch (IOException e2) {
-				Logger.error(this, "Cannot write peers to disk: Cannot create temp file - " + e2, e2);
-				Closer.close(fos);
-				return;
-			}
-			try {
-				fos = new FileOutputStream(f);
-			} catch(FileNotFoundException e2) {
-				Logger.error(this, "Cannot write peers to disk: Cannot create " + f + " - " + e2, e2);
-				Closer.close(fos);
-				f.delete();
-				return;
-			}
-			OutputStreamWriter w = null;
-			try {
-				w = new OutputStreamWriter(fos, "UTF-8");
-			} catch(UnsupportedEncodingException e2) {
-				Closer.close(w);
-				f.delete();
-				throw new Error("Impossible: JVM doesn't support UTF-8: " + e2, e2);
-			}
-			try {
-				w.write(sb);
-				w.flush();
-				fos.getFD().sync();
-				w.close();
-				w = null;
-				
-				if(rotateBackups) {
-					File prevFile = null;
-					for(int i=maxBackups;i>=0;i--) {
-						File thisFile = getBackupFilename(filename, i);
-						if(prevFile == null) {
-							thisFile.delete();
-						} else {
-							if(thisFile.exists()) {
-								FileUtil.renameTo(thisFile, prevFile);
-							}
-						}
-						prevFile = thisFile;
-					}
-					FileUtil.renameTo(f, prevFile);
-				} else {
-					FileUtil.renameTo(f, getBackupFilename(filename, 0));
-				}
-			} catch(IOException e) {
-				try {
-					fos.close();
-				} catch(IOException e1) {
-					Logger.error(this, "Cannot close peers file: " + e, e);
-				}
-				Logger.error(this, "Cannot write file: " + e, e);
-				f.delete();
-				return; // don't overwrite old file!
-			} finally {
-				Closer.close(w);
-				Closer.close(fos);
-				f.delete();
-			}
-		}
-	}
-
-	private File getBackupFilename(String filename, int i) {
-		if(i == 0) return new File(filename);
-		if(i == 1) return new File(filename+".bak");
-		return new File(filename+".bak."+i);
-	}
+	/** A noderef in the peers log without these can't be a complete one, and PeerNode
+	 * couldn't be created from it, so we keep the one in the peers file instead. */
+	private static final String[] REQUIRED_NODEREF_KEYS = new String[] { "version", "auth.negTypes", "dsaPubKey.y" };
 
 	/**
 	 * Update the numbers needed by our PeerManagerUserAlert on the UAM.
@@ -1,13 +1,6 @@
 package freenet.node;
 
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.Map;
-
 import freenet.io.comm.DMT;
-import freenet.support.DoublyLinkedList;
 import freenet.support.DoublyLinkedListImpl;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -16,7 +9,15 @@ import freenet.support.MutableBoolean;
 
 /**
  * Queue of messages to send to a node. Ordered first by priority then by time.
- * Will soon be round-robin between different transfers/UIDs/clients too.
+ * Round-robin between different transfers/UIDs for block transfers.
+ *
+ * This is called for every packet we send, so it is designed not to walk the queue:
+ * messages are kept in ring buffers, one per UID for the round-robin priorities, the
+ * UIDs with urgent messages are in a list ordered by when we last sent for them (so the
+ * next one to send is always the head), and the UIDs which only have non-urgent messages
+ * are in a heap ordered by when they will become urgent. Sizes are kept as running totals.
+ * So the next urgent time, the size checks and grabbing a message are all O(1) or
+ * O(log UIDs), and in the steady state nothing is allocated.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class PeerMessageQueue {
@@ -35,69 +36,337 @@ public class PeerMessageQueue {
 	}
 
 	private final PrioQueue[] queuesByPriority;
-	
+
 	private boolean mustSendLoadRT;
 	private boolean mustSendLoadBulk;
-	
+
+	// Reused by grabQueuedMessageItem(). Protected by the lock on this.
+	private final MutableBoolean addPeerLoadStatsRT = new MutableBoolean();
+	private final MutableBoolean addPeerLoadStatsBulk = new MutableBoolean();
+
+	/** timeLastSent for a UID we have never sent anything for. */
+	static final long NEVER = Long.MAX_VALUE;
+
+	/** A ring buffer of messages. Adding and removing at either end is O(1) and does
+	 * not allocate once the array is big enough. Not thread-safe. */
+	static final class MessageRing {
+
+		private MessageItem[] items = new MessageItem[4];
+		private int head;
+		private int size;
+
+		int size() {
+			return size;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		MessageItem get(int i) {
+			return items[(head + i) & (items.length - 1)];
+		}
+
+		private void set(int i, MessageItem item) {
+			items[(head + i) & (items.length - 1)] = item;
+		}
+
+		void addFirst(MessageItem item) {
+			grow();
+			head = (head - 1) & (items.length - 1);
+			items[head] = item;
+			size++;
+		}
+
+		/** Insert in order of submission time, after any messages submitted at the same time.
+		 * The messages from index <code>from</code> onwards must already be in order.
+		 * MessageItem's can be created out of order, but normally this adds at the end. */
+		void addSorted(MessageItem item, int from) {
+			grow();
+			int i = size;
+			while(i > from && get(i-1).submitted > item.submitted) {
+				set(i, get(i-1));
+				i--;
+			}
+			set(i, item);
+			size++;
+		}
+
+		MessageItem removeFirst() {
+			MessageItem item = items[head];
+			items[head] = null;
+			head = (head + 1) & (items.length - 1);
+			size--;
+			return item;
+		}
+
+		void remove(int index) {
+			if(index == 0) {
+				removeFirst();
+				return;
+			}
+			for(int i=index;i<size-1;i++)
+				set(i, get(i+1));
+			set(--size, null);
+		}
+
+		int indexOf(MessageItem item) {
+			for(int i=0;i<size;i++)
+				if(get(i) == item) return i;
+			return -1;
+		}
+
+		int copyTo(MessageItem[] output, int ptr) {
+			for(int i=0;i<size;i++)
+				output[ptr++] = get(i);
+			return ptr;
+		}
+
+		private void grow() {
+			if(size < items.length) return;
+			MessageItem[] newItems = new MessageItem[items.length * 2];
+			for(int i=0;i<size;i++)
+				newItems[i] = get(i);
+			items = newItems;
+			head = 0;
+		}
+
+	}
+
+	/** The messages queued for one UID at one round-robin priority. The first
+	 * urgentCount messages are urgent, the rest are in order of submission. */
+	private static final class UIDQueue extends DoublyLinkedListImpl.Item<UIDQueue> {
+		final long id;
+		final MessageRing items = new MessageRing();
+		int urgentCount;
+		/** When we last sent a message for this UID. NEVER if we haven't, -1 if a message
+		 * was pushed back before we had. */
+		long timeLastSent = NEVER;
+		/** When the first non-urgent message becomes urgent. Only valid while in the heap. */
+		long due;
+		/** Position in the heap of UIDs with non-urgent messages, or -1. */
+		int heapIndex = -1;
+		UIDQueue(long id) {
+			this.id = id;
+		}
+		@Override
+		public String toString() {
+			return super.toString()+":"+id+":"+items.size()+":"+urgentCount+":"+timeLastSent;
+		}
+	}
+
+	/** UIDQueue's by UID. Open addressing on a long, so a lookup doesn't box the UID. */
+	private static final class UIDIndex {
+		private UIDQueue[] table = new UIDQueue[16];
+		private int size;
+
+		private static int hash(long id) {
+			long h = id * 0x9E3779B97F4A7C15L;
+			return (int)(h ^ (h >>> 32));
+		}
+
+		UIDQueue get(long id) {
+			int mask = table.length - 1;
+			for(int i = hash(id) & mask;;i = (i + 1) & mask) {
+				UIDQueue q = table[i];
+				if(q == null) return null;
+				if(q.id == id) return q;
+			}
+		}
+
+		void put(UIDQueue q) {
+			if((size + 1) * 2 > table.length) {
+				UIDQueue[] old = table;
+				table = new UIDQueue[old.length * 2];
+				for(UIDQueue o : old)
+					if(o != null) insert(o);
+			}
+			insert(q);
+			size++;
+		}
+
+		private void insert(UIDQueue q) {
+			int mask = table.length - 1;
+			int i = hash(q.id) & mask;
+			while(table[i] != null) i = (i + 1) & mask;
+			table[i] = q;
+		}
+
+		boolean remove(UIDQueue q) {
+			int mask = table.length - 1;
+			int i = hash(q.id) & mask;
+			while(table[i] != q) {
+				if(table[i] == null) return false;
+				i = (i + 1) & mask;
+			}
+			table[i] = null;
+			size--;
+			// Move back anything that would no longer be found.
+			for(int j = (i + 1) & mask;table[j] != null;j = (j + 1) & mask) {
+				int k = hash(table[j].id) & mask;
+				boolean reachable = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+				if(reachable) continue;
+				table[i] = table[j];
+				table[j] = null;
+				i = j;
+			}
+			return true;
+		}
+
+		int size() {
+			return size;
+		}
+	}
+
+	/** Binary min-heap of UIDQueue's by due time. */
+	private static final class DueHeap {
+		private UIDQueue[] heap = new UIDQueue[8];
+		private int size;
+
+		UIDQueue peek() {
+			return size == 0 ? null : heap[0];
+		}
+
+		int size() {
+			return size;
+		}
+
+		UIDQueue get(int i) {
+			return heap[i];
+		}
+
+		void add(UIDQueue q) {
+			if(size == heap.length) {
+				UIDQueue[] newHeap = new UIDQueue[heap.length * 2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+			heap[size] = q;
+			q.heapIndex = size;
+			size++;
+			siftUp(q.heapIndex);
+		}
+
+		void remove(UIDQueue q) {
+			int i = q.heapIndex;
+			q.heapIndex = -1;
+			size--;
+			if(i == size) {
+				heap[size] = null;
+				return;
+			}
+			heap[i] = heap[size];
+			heap[i].heapIndex = i;
+			heap[size] = null;
+			siftDown(siftUp(i));
+		}
+
+		/** The due time of q has changed. */
+		void update(UIDQueue q) {
+			siftDown(siftUp(q.heapIndex));
+		}
+
+		private int siftUp(int i) {
+			UIDQueue q = heap[i];
+			while(i > 0) {
+				int parent = (i - 1) >> 1;
+				if(heap[parent].due <= q.due) break;
+				heap[i] = heap[parent];
+				heap[i].heapIndex = i;
+				i = parent;
+			}
+			heap[i] = q;
+			q.heapIndex = i;
+			return i;
+		}
+
+		private void siftDown(int i) {
+			UIDQueue q = heap[i];
+			while(true) {
+				int child = 2 * i + 1;
+				if(child >= size) break;
+				if(child + 1 < size && heap[child + 1].due < heap[child].due) child++;
+				if(q.due <= heap[child].due) break;
+				heap[i] = heap[child];
+				heap[i].heapIndex = i;
+				i = child;
+			}
+			heap[i] = q;
+			q.heapIndex = i;
+		}
+
+		void clear() {
+			for(int i=0;i<size;i++) {
+				heap[i].heapIndex = -1;
+				heap[i] = null;
+			}
+			size = 0;
+		}
+	}
+
 	private class PrioQueue {
-		
-		// FIXME refactor into PrioQueue and RoundRobinByUIDPrioQueue
+
 		PrioQueue(int timeout, boolean timeoutSinceLastSend) {
 			this.timeout = timeout;
 			this.roundRobinBetweenUIDs = timeoutSinceLastSend;
+			if(roundRobinBetweenUIDs) {
+				items = null;
+				byID = new UIDIndex();
+				urgent = new DoublyLinkedListImpl<UIDQueue>();
+				idle = new DoublyLinkedListImpl<UIDQueue>();
+				waiting = new DueHeap();
+			} else {
+				items = new MessageRing();
+				byID = null;
+				urgent = null;
+				idle = null;
+				waiting = null;
+			}
 		}
-		
+
 		/** The timeout, period after which messages become urgent. */
 		final int timeout;
 		/** If true, do round-robin between UID's, and count the timeout relative
 		 * to the last send. Block transfers need this - both realtime and bulk. */
 		final boolean roundRobinBetweenUIDs;
-		
-		private class Items extends DoublyLinkedListImpl.Item<Items> {
-			/** List of messages to send. Stuff to send first is at the beginning. */
-			final LinkedList<MessageItem> items;
-			final long id;
-			long timeLastSent;
-			Items(long id, long initialTimeLastSent) {
-				items = new LinkedList<MessageItem>();
-				this.id = id;
-				timeLastSent = initialTimeLastSent;
-			}
-			public void addLast(MessageItem item) {
-				items.addLast(item);
-			}
-			public void addFirst(MessageItem item) {
-				items.addFirst(item);
-			}
-			public boolean remove(MessageItem item) {
-				return items.remove(item);
-			}
-			@Override
-			public String toString() {
-				return super.toString()+":"+id+":"+items.size()+":"+timeLastSent;
-			}
-		}
-		
+
 		/** Maximum inter-packet time is 2 minutes for a block transfer (when we have bulk
 		 * flag this will be no higher, and it might be reduced to 30 seconds). Requests
-		 * can wait for 2 minutes now, maybe 10 minutes in future, but round-robin is 
-		 * intended for frequent messages - it doesn't matter in that case. So 3 minutes 
+		 * can wait for 2 minutes now, maybe 10 minutes in future, but round-robin is
+		 * intended for frequent messages - it doesn't matter in that case. So 3 minutes
 		 * is plenty. */
 		static final long FORGET_AFTER = 3*60*1000;
 
-		/** Using DoublyLinkedListImpl so that we can move stuff around without the 
-		 * iterator failing, and also delete efficiently. Ordered by timeLastSent,
-		 * NOT by timeout. Items we have not yet sent are at the beginning with 
-		 * timeLastSent = -1. */
-		DoublyLinkedListImpl<Items> nonEmptyItemsWithID;
-		/** Items which have been sent within the last 10 minutes, so we need to track
-		 * them for good round-robin, but which we don't have anything queued on right now. */
-		DoublyLinkedListImpl<Items> emptyItemsWithID;
-		Map<Long, Items> itemsByID;
-		/** Non-urgent messages. Same order as in Items, so stuff to send first is at
-		 * the beginning. */
-		LinkedList<MessageItem> itemsNonUrgent;
-		// Construct structures lazily, we're protected by the overall synchronized.
+		/** If not round-robin, all the messages, in order of submission. */
+		private final MessageRing items;
+		/** If round-robin, the UIDQueue for each UID which has messages queued or which
+		 * we have sent to recently. */
+		private UIDIndex byID;
+		/** UIDs with urgent messages, ordered by timeLastSent, so we send from the head
+		 * and then move it to the tail. */
+		private final DoublyLinkedListImpl<UIDQueue> urgent;
+		/** UIDs with nothing queued which have been sent within FORGET_AFTER, so we need
+		 * to track them for good round-robin. Ordered by timeLastSent. */
+		private final DoublyLinkedListImpl<UIDQueue> idle;
+		/** UIDs with non-urgent messages, by when they become urgent. A UID can be in
+		 * both this and urgent. */
+		private final DueHeap waiting;
+
+		/** Number of messages queued. */
+		private int count;
+		/** Total getLength() of the queued messages. */
+		private long bytes;
+		/** Total getLength() + 2 of the urgent messages, see getMessageQueueLengthBytes(). */
+		private long urgentBytes;
+
+		private UIDQueue getOrCreate(long id) {
+			UIDQueue q = byID.get(id);
+			if(q == null) {
+				q = new UIDQueue(id);
+				byID.put(q);
+			}
+			return q;
+		}
 
 		/** Add a new message. For a normal priority level, we just add it to the end of the list.
 		 * It will be sent after the messages that are already queued, and its deadline is effectively
@@ -107,605 +376,352 @@ public class PeerMessageQueue {
 		public void addLast(MessageItem item) {
 			// Clear the deadline for the item.
 			item.clearDeadline();
-			if(logMINOR) checkOrder();
-			if(roundRobinBetweenUIDs) {
-				long id = item.getID();
-				if(itemsByID != null) {
-					Items it = itemsByID.get(id);
-					if(it != null && it.timeLastSent > 0 && it.timeLastSent + timeout <= System.currentTimeMillis()) {
-						it.addLast(item);
-						if(it.getParent() == emptyItemsWithID)
-							moveFromEmptyToNonEmptyBackward(it);
-						else
-							assert(it.getParent() == nonEmptyItemsWithID);
-						if(logMINOR) checkOrder();
-						return;
-					}
-				}
+			count++;
+			bytes += item.getLength();
+			if(!roundRobinBetweenUIDs) {
+				items.addSorted(item, 0);
+				return;
 			}
-			addToNonUrgent(item);
-		}
-		
-		private void addToNonUrgent(MessageItem item) {
-			if(itemsNonUrgent == null)
-				itemsNonUrgent = new LinkedList<MessageItem>();
-			ListIterator<MessageItem> it = itemsNonUrgent.listIterator(itemsNonUrgent.size());
-			// MessageItem's can be created out of order, so the timestamps may not be consistent.
-			// CONCURRENCY: This is not a problem in addNonUrgentMessages() because it is always called from one thread.
-			while(true) {
-				if(!it.hasPrevious()) {
-					it.add(item);
-					if(logMINOR) checkOrder();
-					return;
-				}
-				MessageItem prev = it.previous();
-				if(item.submitted >= prev.submitted) {
-					it.next();
-					it.add(item);
-					if(logMINOR) checkOrder();
-					return;
-				}
+			UIDQueue q = getOrCreate(item.getID());
+			q.items.addSorted(item, q.urgentCount);
+			if(q.getParent() == idle)
+				idle.remove(q);
+			// It will be moved to urgent by moveToUrgent() if it is already due.
+			updateWaiting(q);
+		}
+
+		/** Recompute when the first non-urgent message for q becomes urgent: the timeout
+		 * after it was submitted or after we last sent for the UID, whichever is first. */
+		private void updateWaiting(UIDQueue q) {
+			if(q.urgentCount == q.items.size()) {
+				if(q.heapIndex >= 0) waiting.remove(q);
+				return;
 			}
+			long base = Math.min(q.items.get(q.urgentCount).submitted, q.timeLastSent);
+			q.due = base + timeout;
+			if(q.heapIndex < 0)
+				waiting.add(q);
+			else
+				waiting.update(q);
 		}
 
 		private void moveToUrgent(long now) {
-			if(logMINOR) checkOrder();
-			if(itemsNonUrgent == null) return;
-			ListIterator<MessageItem> it = itemsNonUrgent.listIterator();
 			int moved = 0;
-			while(it.hasNext()) {
-				MessageItem item = it.next();
-				Items list = null;
-				long id = item.getID();
-				if(itemsByID != null)
-					list = itemsByID.get(id);
-				boolean moveIt = false;
-				if(list != null && roundRobinBetweenUIDs) {
-					if(list.timeLastSent + timeout <= now)
-						moveIt = true;
+			while(true) {
+				UIDQueue q = waiting.peek();
+				if(q == null || q.due > now) break;
+				if(logMINOR) Logger.minor(this, "Moving messages to urgent list: "+q);
+				boolean wasUrgent = q.urgentCount > 0;
+				if(q.timeLastSent == NEVER)
+					q.timeLastSent = q.items.get(q.urgentCount).submitted;
+				// Only the messages which are due themselves: those submitted more than
+				// timeout ago, or all of them if we haven't sent for the UID for timeout.
+				while(q.urgentCount < q.items.size()) {
+					MessageItem item = q.items.get(q.urgentCount);
+					if(Math.min(item.submitted, q.timeLastSent) + timeout > now) break;
+					urgentBytes += item.getLength() + 2;
+					q.urgentCount++;
+					moved++;
 				}
-				if(item.submitted + timeout <= now) {
-					moveIt = true;
+				if(!wasUrgent && q.urgentCount > 0) {
+					if(q.getParent() == idle) idle.remove(q);
+					addToUrgentForward(q);
 				}
-				if(moveIt) {
-					if(logMINOR) Logger.minor(this, "Moving message to urgent list: "+item);
-					if(logMINOR) checkOrder();
-					// Move to urgent list
-					if(itemsByID == null) {
-						itemsByID = new HashMap<Long, Items>();
-						if(nonEmptyItemsWithID == null)
-							nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-						list = new Items(id, item.submitted);
-						addToNonEmptyForward(list);
-						itemsByID.put(id, list);
-						if(logMINOR) checkOrder();
-					} else {
-						if(list == null) {
-							list = new Items(id, item.submitted);
-							if(nonEmptyItemsWithID == null)
-								nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-							addToNonEmptyForward(list);
-							itemsByID.put(id, list);
-							if(logMINOR) checkOrder();
-						} else {
-							if(list.items.isEmpty()) {
-								if(list.getParent() == nonEmptyItemsWithID) {
-									Logger.error(this, "Was empty but was in nonEmptyItemsWithID: "+list);
-								} else {
-									assert(list.getParent() == emptyItemsWithID);
-									// It already exists, so it has a valid time.
-									// Which is probably in the past, so use Forward.
-									// Must add it to the list before moving to non-empty because of assertion.
-									moveFromEmptyToNonEmptyForward(list);
-								}
-							} else {
-								assert(list.getParent() == nonEmptyItemsWithID);
-							}
-							if(logMINOR) checkOrder();
-						}
-					}
-					list.addLast(item);
-					it.remove();
-					moved++;
-					if(logMINOR) checkOrder();
-				} else if(!roundRobinBetweenUIDs)
-					break;
+				// The rest wait until they are due.
+				updateWaiting(q);
 			}
 			if(logDEBUG && moved > 0)
 				Logger.debug(this, "Moved "+moved+" items to urgent round-robin");
-			if(logMINOR) checkOrder();
-		}
-
-		private void moveFromEmptyToNonEmptyForward(Items list) {
-			// Presumably is in emptyItemsWithID
-			assert(list.items.isEmpty());
-			if(logMINOR) {
-				if(list.getParent() == nonEmptyItemsWithID) {
-					Logger.error(this, "Already in non-empty yet empty?!");
-					return;
-				}
-			}
-			if(emptyItemsWithID != null)
-				emptyItemsWithID.remove(list);
-			addToNonEmptyForward(list);
-		}
-		
-		private void addToNonEmptyForward(Items list) {
-			if(nonEmptyItemsWithID == null)
-				nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-			Enumeration<Items> it = nonEmptyItemsWithID.elements();
-			while(it.hasMoreElements()) {
-				Items compare = it.nextElement();
-				if(compare.timeLastSent >= list.timeLastSent) {
-					nonEmptyItemsWithID.insertPrev(compare, list);
-					return;
-				}
-			}
-			nonEmptyItemsWithID.push(list);
 		}
 
-		private void moveFromEmptyToNonEmptyBackward(Items list) {
-			// Presumably is in emptyItemsWithID
-			emptyItemsWithID.remove(list);
-			addToNonEmptyBackward(list);
-		}
-		
-		private void addToNonEmptyBackward(Items list) {
-			if(nonEmptyItemsWithID == null)
-				nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-			Enumeration<Items> it = nonEmptyItemsWithID.reverseElements();
-			while(it.hasMoreElements()) {
-				Items compare = it.nextElement();
-				if(compare.timeLastSent <= list.timeLastSent) {
-					nonEmptyItemsWithID.insertNext(compare, list);
+		/** A UID becoming urgent has usually not been sent for at least timeout, so it
+		 * belongs near the head: the scan only passes UIDs not served since they became
+		 * urgent. */
+		private void addToUrgentForward(UIDQueue q) {
+			for(UIDQueue compare = urgent.head();compare != null;compare = compare.getNext()) {
+				if(compare.timeLastSent >= q.timeLastSent) {
+					urgent.insertPrev(compare, q);
 					return;
 				}
 			}
-			nonEmptyItemsWithID.unshift(list);
+			urgent.push(q);
 		}
 
-		private void addToEmptyBackward(Items list) {
-			if(emptyItemsWithID == null)
-				emptyItemsWithID = new DoublyLinkedListImpl<Items>();
-			Enumeration<Items> it = emptyItemsWithID.reverseElements();
-			while(it.hasMoreElements()) {
-				Items compare = it.nextElement();
-				if(compare.timeLastSent <= list.timeLastSent) {
-					emptyItemsWithID.insertNext(compare, list);
+		/** After sending, q has the latest timeLastSent, so it normally goes at the tail. */
+		private void addBackward(DoublyLinkedListImpl<UIDQueue> list, UIDQueue q) {
+			for(UIDQueue compare = list.tail();compare != null;compare = compare.getPrev()) {
+				if(compare.timeLastSent <= q.timeLastSent) {
+					list.insertNext(compare, q);
 					return;
 				}
 			}
-			emptyItemsWithID.unshift(list);
+			list.unshift(q);
 		}
 
 		/** Add a new message to the beginning i.e. send it as soon as possible (e.g. if
 		 * we tried to send it and failed); it is assumed to already be urgent. */
 		public void addFirst(MessageItem item) {
 			// Keep the old deadline for the item.
+			count++;
+			bytes += item.getLength();
 			if(!roundRobinBetweenUIDs) {
-				addToNonUrgent(item);
+				items.addSorted(item, 0);
 				return;
 			}
-			if(logMINOR) checkOrder();
-			long id = item.getID();
-			Items list;
-			if(itemsByID == null) {
-				itemsByID = new HashMap<Long, Items>();
-				if(nonEmptyItemsWithID == null)
-					nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-				list = new Items(id, -1);
-				addToNonEmptyForward(list);
-				itemsByID.put(id, list);
-			} else {
-				list = itemsByID.get(id);
-				if(list == null) {
-					list = new Items(id, -1);
-					if(nonEmptyItemsWithID == null)
-						nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-					nonEmptyItemsWithID.unshift(list);
-					itemsByID.put(id, list);
-				} else {
-					if(list.items.isEmpty()) {
-						assert(list.getParent() == emptyItemsWithID);
-						// It already exists, so it has a valid time.
-						// Which is probably in the past, so use Forward.
-						moveFromEmptyToNonEmptyForward(list);
-					} else
-						assert(list.getParent() == nonEmptyItemsWithID);
-				}
-			}
-			list.addFirst(item);
-			if(logMINOR) checkOrder();
+			UIDQueue q = getOrCreate(item.getID());
+			if(q.timeLastSent == NEVER) q.timeLastSent = -1;
+			q.items.addFirst(item);
+			q.urgentCount++;
+			urgentBytes += item.getLength() + 2;
+			if(q.getParent() == idle)
+				idle.remove(q);
+			if(q.getParent() != urgent)
+				addToUrgentForward(q);
 		}
 
 		public int size() {
-			int size = 0;
-			if(nonEmptyItemsWithID != null)
-				for(Items items : nonEmptyItemsWithID)
-					size += items.items.size();
-			if(itemsNonUrgent != null)
-				size += itemsNonUrgent.size();
-			return size;
+			return count;
 		}
 
 		public int addTo(MessageItem[] output, int ptr) {
-			if(nonEmptyItemsWithID != null)
-				for(Items list : nonEmptyItemsWithID)
-					for(MessageItem item : list.items)
-						output[ptr++] = item;
-			if(itemsNonUrgent != null)
-				for(MessageItem item : itemsNonUrgent)
-					output[ptr++] = item;
+			if(!roundRobinBetweenUIDs)
+				return items.copyTo(output, ptr);
+			for(UIDQueue q = urgent.head();q != null;q = q.getNext())
+				ptr = q.items.copyTo(output, ptr);
+			for(int i=0;i<waiting.size();i++) {
+				UIDQueue q = waiting.get(i);
+				if(q.urgentCount == 0)
+					ptr = q.items.copyTo(output, ptr);
+			}
 			return ptr;
 		}
-		
-		/** Check that nonEmptyItemsWithID is ordered correctly. 
+
+		/** Check that the lists are ordered correctly and the totals add up.
 		 * LOCKING: Caller must synchronize on PeerMessageQueue.this. */
 		private void checkOrder() {
-			if(nonEmptyItemsWithID != null) {
-				long prev = -1;
-				Items prevItems = null;
-				for(Items items : nonEmptyItemsWithID) {
-					long thisTime = items.timeLastSent;
-					if(thisTime < prev)
-						Logger.error(this, "Inconsistent order in non empty items with ID: prev timeout was "+prev+" for "+prevItems+" but this timeout is "+thisTime+" for "+items, new Exception("error"));
-					prev = thisTime;
-					prevItems = items;
-				}
+			if(!roundRobinBetweenUIDs) return;
+			long prev = -1;
+			UIDQueue prevItems = null;
+			int urgentCount = 0;
+			for(UIDQueue q = urgent.head();q != null;q = q.getNext()) {
+				if(q.timeLastSent < prev)
+					Logger.error(this, "Inconsistent order in urgent UIDs: prev was "+prev+" for "+prevItems+" but this is "+q.timeLastSent+" for "+q, new Exception("error"));
+				if(q.urgentCount == 0)
+					Logger.error(this, "No urgent messages but in urgent list: "+q);
+				prev = q.timeLastSent;
+				prevItems = q;
+				urgentCount += q.urgentCount;
 			}
-			if(itemsNonUrgent != null) {
-				long prev = -1;
-				MessageItem prevItem = null;
-				for(MessageItem item : itemsNonUrgent) {
-					if(item.submitted < prev)
-						Logger.error(this, "Inconsistent order in itemsNonUrgent: prev submitted at "+prev+" but this at "+item.submitted+" prev is "+prevItem+" this is "+item);
-					prev = item.submitted;
-					prevItem = item;
-				}
+			int waitingCount = 0;
+			for(int i=0;i<waiting.size();i++) {
+				UIDQueue q = waiting.get(i);
+				waitingCount += q.items.size() - q.urgentCount;
 			}
+			if(urgentCount + waitingCount != count)
+				Logger.error(this, "Lost messages: urgent "+urgentCount+" waiting "+waitingCount+" but count "+count);
+			// Every UID we know about is urgent, idle or waiting, and may be both urgent and waiting.
+			if(urgent.size() + idle.size() + waiting.size() < byID.size())
+				Logger.error(this, "Leaking UIDs? urgent "+urgent.size()+" idle "+idle.size()+" waiting "+waiting.size()+" by ID "+byID.size()+" on "+this);
+			else if(logDEBUG)
+				Logger.debug(this, "Items: urgent "+urgent.size()+" idle "+idle.size()+" waiting "+waiting.size()+" by ID "+byID.size()+" on "+this);
 		}
 
 		/** Note that this does NOT consider the length of the queue, which can trigger a
 		 * send. This is intentional, and is relied upon by the bulk-or-realtime logic in
 		 * addMessages().
-		 * @param t The initial urgent time. What we return must be less than or 
-		 * equal to this. Convenient for chaining. 
-		 * @param stopIfBeforeTime If the next urgent time is <= to this time, 
+		 * @param t The initial urgent time. What we return must be less than or
+		 * equal to this. Convenient for chaining.
+		 * @param stopIfBeforeTime If the next urgent time is <= to this time,
 		 * return immediately.
 		 */
 		public long getNextUrgentTime(long t, long stopIfBeforeTime) {
 			if(!roundRobinBetweenUIDs) {
-				if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
-					t = Math.min(t, itemsNonUrgent.getFirst().submitted + timeout);
-					if(t <= stopIfBeforeTime) return t;
-				}
-				assert(nonEmptyItemsWithID == null);
-				assert(itemsByID == null);
-			} else {
-				if(nonEmptyItemsWithID != null) {
-					for(Items items : nonEmptyItemsWithID) {
-						if(items.items.size() == 0) continue;
-						if(items.timeLastSent > 0) {
-							t = Math.min(t, items.timeLastSent + timeout);
-							if(t <= stopIfBeforeTime) return t;
-						} else {
-							// It is possible that something requeued isn't urgent, so check anyway.
-							t = Math.min(t, items.items.getFirst().submitted + timeout);
-							if(t <= stopIfBeforeTime) return t;
-						}
-					}
-				}
-				if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
-					for(MessageItem item : itemsNonUrgent) {
-						long uid = item.getID();
-						Items items = itemsByID == null ? null : itemsByID.get(uid);
-						if(items != null && items.timeLastSent > 0) {
-							t = Math.min(t, items.timeLastSent + timeout);
-							if(t <= stopIfBeforeTime) return t;
-						} else {
-							t = Math.min(t, item.submitted + timeout);
-							if(t <= stopIfBeforeTime) return t;
-							if(itemsByID == null) break; // Only the first one matters, since none have been sent.
-						}
-					}
+				if(!items.isEmpty())
+					t = Math.min(t, items.get(0).submitted + timeout);
+				return t;
+			}
+			for(UIDQueue q = urgent.head();q != null;q = q.getNext()) {
+				if(q.timeLastSent > 0) {
+					// Ordered by timeLastSent, so the rest can't be sooner.
+					t = Math.min(t, q.timeLastSent + timeout);
+					break;
 				}
+				// Pushed back before we'd sent anything, use the message's own timeout.
+				t = Math.min(t, q.items.get(0).submitted + timeout);
+				if(t <= stopIfBeforeTime) return t;
 			}
+			UIDQueue q = waiting.peek();
+			if(q != null)
+				t = Math.min(t, q.due);
 			return t;
 		}
 
-		/**
-		 * Add the size of messages in this queue to <code>length</code> until
-		 * length is larger than <code>maxSize</code>, or all messages have
-		 * been added.
-		 * @param length the starting length
-		 * @param maxSize the size at which to stop
-		 * @return the resulting length after adding messages
-		 */
-		public int addSize(int length, int maxSize) {
-			if(itemsNonUrgent != null) {
-				for(MessageItem item : itemsNonUrgent) {
-					int thisLen = item.getLength();
-					length += thisLen;
-					if(length > maxSize) return length;
-				}
+		private void onGrabbed(MessageItem item) {
+			count--;
+			bytes -= item.getLength();
+			if(mustSendLoadRT && item.sendLoadRT && !addPeerLoadStatsRT.value) {
+				addPeerLoadStatsRT.value = true;
+				mustSendLoadRT = false;
+			} else if(mustSendLoadBulk && item.sendLoadBulk && !addPeerLoadStatsBulk.value) {
+				addPeerLoadStatsBulk.value = true;
+				mustSendLoadBulk = false;
 			}
-			if(nonEmptyItemsWithID != null) {
-				for(Items list : nonEmptyItemsWithID) {
-					for(MessageItem item : list.items) {
-						int thisLen = item.getLength();
-						length += thisLen;
-						if(length > maxSize) return length;
-					}
-				}
-			}
-			return length;
 		}
-		
-		private MessageItem addNonUrgentMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
-			if(logMINOR) checkOrder();
-			if(itemsNonUrgent == null) return null;
-			MessageItem ret;
-			for(ListIterator<MessageItem> items = itemsNonUrgent.listIterator();items.hasNext();) {
-				MessageItem item = items.next();
-				items.remove();
+
+		/** Send the non-urgent message which will become urgent first. For a round-robin
+		 * queue, this is the UID at the top of the heap. */
+		private MessageItem addNonUrgentMessages(long now) {
+			if(!roundRobinBetweenUIDs) {
+				if(items.isEmpty()) return null;
+				MessageItem item = items.removeFirst();
 				item.setDeadline(item.submitted + timeout);
-				ret = item;
-				if(itemsByID != null) {
-					long id = item.getID();
-					Items tracker = itemsByID.get(id);
-					if(tracker != null) {
-						tracker.timeLastSent = now;
-						DoublyLinkedList<? super Items> parent = tracker.getParent();
-						// Demote the corresponding tracker to maintain round-robin.
-						if(tracker.items.isEmpty()) {
-							if(logDEBUG) Logger.debug(this, "Moving "+tracker+" to end of empty list in addNonUrgentMessages");
-							if(emptyItemsWithID == null)
-								emptyItemsWithID = new DoublyLinkedListImpl<Items>();
-							if(parent == null) {
-								Logger.error(this, "Tracker is in itemsByID but not in either list! (empty)");
-							} else if(parent == emptyItemsWithID) {
-								// Normal. Remove it so we can re-add it in the right place.
-								emptyItemsWithID.remove(tracker);
-							} else if(parent == nonEmptyItemsWithID) {
-								Logger.error(this, "Tracker is in non empty items list when is empty");
-								nonEmptyItemsWithID.remove(tracker);
-							} else
-								assert(false);
-							addToEmptyBackward(tracker);
-						} else {
-							if(logDEBUG) Logger.debug(this, "Moving "+tracker+" to end of non-empty list in addNonUrgentMessages");
-							if(nonEmptyItemsWithID == null)
-								nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-							if(parent == null) {
-								Logger.error(this, "Tracker is in itemsByID but not in either list! (non-empty)");
-							} else if(parent == nonEmptyItemsWithID) {
-								// Normal. Remove it so we can re-add it in the right place.
-								nonEmptyItemsWithID.remove(tracker);
-							} else if(parent == emptyItemsWithID) {
-								Logger.error(this, "Tracker is in empty items list when is non-empty");
-								emptyItemsWithID.remove(tracker);
-							} else
-								assert(false);
-							addToNonEmptyBackward(tracker);
-						}
-					}
-				}
-				if(mustSendLoadRT && item.sendLoadRT && !addPeerLoadStatsRT.value) {
-					addPeerLoadStatsRT.value = true;
-					mustSendLoadRT = false;
-				} else if(mustSendLoadBulk && item.sendLoadBulk && !addPeerLoadStatsBulk.value) {
-					addPeerLoadStatsBulk.value = true;
-					mustSendLoadBulk = false;
-				}
-				if(logMINOR) checkOrder();
-				
-				if(ret != null) return ret;
+				onGrabbed(item);
+				return item;
 			}
-			if(logMINOR) checkOrder();
-			return null;
+			UIDQueue q = waiting.peek();
+			if(q == null) return null;
+			MessageItem item = q.items.get(q.urgentCount);
+			q.items.remove(q.urgentCount);
+			item.setDeadline(item.submitted + timeout);
+			// Demote the UID to maintain round-robin.
+			q.timeLastSent = now;
+			if(q.getParent() == urgent) {
+				urgent.remove(q);
+				addBackward(urgent, q);
+			}
+			afterSend(q);
+			onGrabbed(item);
+			return item;
 		}
 
-		/**
-		 * Add messages to <code>messages</code> until there are no more
-		 * messages to add.
-		 *
-		 * @param now the current time
-		 * @param messages the list that messages will be added to
-		 * @param maxMessages 
-		 * @return the size of <code>messages</code>, multiplied by -1 if there were
-		 * messages that didn't fit
-		 */
-		private MessageItem addUrgentMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
-			if(logMINOR) checkOrder();
-			MessageItem ret;
-			while(true) {
-				int lists = 0;
-				if(nonEmptyItemsWithID == null) {
-					if(logMINOR) Logger.minor(this, "No non-empty items to send, not sending any urgent messages");
-					return null;
+		private void afterSend(UIDQueue q) {
+			if(q.items.isEmpty()) {
+				if(q.heapIndex >= 0) waiting.remove(q);
+				if(q.getParent() == null) {
+					if(logDEBUG) Logger.debug(this, "Moving "+q+" to end of idle list");
+					addBackward(idle, q);
 				}
-				lists += nonEmptyItemsWithID.size();
-				Items list = nonEmptyItemsWithID.head();
-				for(int i=0;i<lists && list != null;i++) {
-					if(logMINOR) checkOrder();
-					if(list.items.isEmpty()) {
-						// Should not happen, but check for it anyway since it keeps happening. :(
-						Logger.error(this, "List is in nonEmptyItemsWithID yet it is empty?!: "+list);
-						nonEmptyItemsWithID.remove(list);
-						addToEmptyBackward(list);
-						if(nonEmptyItemsWithID.isEmpty()) {
-							if(logMINOR) Logger.minor(this, "Run out of non-empty items to send");
-							return null;
-						}
-						list = nonEmptyItemsWithID.head();
-						continue;
-					}
-					MessageItem item = list.items.getFirst();
-					list.items.removeFirst();
-					// Move to end of list.
-					Items prev = list.getPrev();
-					nonEmptyItemsWithID.remove(list);
-					item.setDeadline(list.timeLastSent + timeout);
-					list.timeLastSent = now;
-					if(!list.items.isEmpty()) {
-						if(logDEBUG) Logger.debug(this, "Moving "+list+" to end of non empty list in addUrgentMessages");
-						addToNonEmptyBackward(list);
-					} else {
-						if(logDEBUG) Logger.debug(this, "Moving "+list+" to end of empty list in addUrgentMessages");
-						addToEmptyBackward(list);
-					}
-					if(prev == null)
-						list = nonEmptyItemsWithID.head();
-					else
-						list = prev.getNext();
-					ret = item;
-					if(mustSendLoadRT && item.sendLoadRT && !addPeerLoadStatsRT.value) {
-						addPeerLoadStatsRT.value = true;
-						mustSendLoadRT = false;
-					} else if(mustSendLoadBulk && item.sendLoadBulk && !addPeerLoadStatsBulk.value) {
-						addPeerLoadStatsBulk.value = true;
-						mustSendLoadBulk = false;
-					}
-					if(logMINOR) checkOrder();
-					if(ret != null) return ret;
-				}
-				if(logDEBUG)
-					Logger.debug(this, "No more messages queued at this priority");
-				if(logMINOR) checkOrder();
+			} else {
+				updateWaiting(q);
+			}
+		}
+
+		/** Send the first message for the UID we have sent least recently. */
+		private MessageItem addUrgentMessages(long now) {
+			UIDQueue q = urgent.head();
+			if(q == null) {
+				if(logDEBUG) Logger.debug(this, "No urgent messages at this priority");
 				return null;
 			}
+			MessageItem item = q.items.removeFirst();
+			q.urgentCount--;
+			urgentBytes -= item.getLength() + 2;
+			urgent.remove(q);
+			item.setDeadline(q.timeLastSent + timeout);
+			q.timeLastSent = now;
+			if(q.urgentCount > 0) {
+				if(logDEBUG) Logger.debug(this, "Moving "+q+" to end of urgent list");
+				addBackward(urgent, q);
+			}
+			afterSend(q);
+			onGrabbed(item);
+			return item;
 		}
 
-		
 		/**
 		 * Add urgent messages, then non-urgent messages. Add a load message if need to.
-		 * @param size
-		 * @param now
-		 * @param messages
-		 * @param addPeerLoadStatsRT Will be set if the caller needs to include a load stats message for
-		 * realtime (i.e. a realtime request completes etc).
-		 * @param addPeerLoadStatsBulk Will be set if the caller needs to include a load stats message for
-		 * bulk (i.e. a bulk request completes etc).
-		 * @param incomplete Will be set if there were more messages but they did not fit. If this is
-		 * not set, we can try another priority.
-		 * @return
+		 * @return A message to send, or null.
 		 */
-		MessageItem addPriorityMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
-			// Urgent messages first.
-			if(logMINOR) {
-				int nonEmpty = nonEmptyItemsWithID == null ? 0 : nonEmptyItemsWithID.size();
-				int empty = emptyItemsWithID == null ? 0 : emptyItemsWithID.size();
-				int byID = itemsByID == null ? 0 : itemsByID.size();
-				if(nonEmpty + empty < byID) {
-					Logger.error(this, "Leaking itemsByID? non empty = "+nonEmpty+" empty = "+empty+" by ID = "+byID+" on "+this);
-				} else if(logDEBUG)
-					Logger.debug(this, "Items: non empty "+nonEmpty+" empty "+empty+" by ID "+byID+" on "+this);
-			}
-			if(roundRobinBetweenUIDs)
-				moveToUrgent(now);
-			clearOldNonUrgent(now);
+		MessageItem addPriorityMessages(long now) {
+			if(logMINOR) checkOrder();
 			if(roundRobinBetweenUIDs) {
-				MessageItem item = addUrgentMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+				moveToUrgent(now);
+				clearOldIdle(now);
+				// Urgent messages first.
+				MessageItem item = addUrgentMessages(now);
 				if(item != null) return item;
-			} else {
-				assert(itemsByID == null);
 			}
 			// 	If no more urgent messages, try to add some non-urgent messages too.
-			return addNonUrgentMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			return addNonUrgentMessages(now);
 		}
 
-		private void clearOldNonUrgent(long now) {
-			if(logMINOR) checkOrder();
+		private void clearOldIdle(long now) {
 			int removed = 0;
-			if(emptyItemsWithID == null) return;
 			while(true) {
-				if(logMINOR) checkOrder();
-				if(emptyItemsWithID.isEmpty()) return;
-				Items list = emptyItemsWithID.head();
-				if(!list.items.isEmpty()) {
-					// FIXME remove paranoia
-					Logger.error(this, "List with items in emptyItemsWithID!!");
-					emptyItemsWithID.remove(list);
-					addToNonEmptyBackward(list);
-					return;
-				}
-				if(list.timeLastSent == -1 || now - list.timeLastSent > FORGET_AFTER) {
-					// FIXME: Urgh, what a braindead API! remove(Object) on a Map<Long, Items> !?!?!?!
-					// Anyway we'd better check the return value!
-					Items old = itemsByID.remove(list.id);
-					if(old == null)
-						Logger.error(this, "List was not in the items by ID tracker: "+list.id);
-					else if(old != list)
-						Logger.error(this, "Different list in the items by ID tracker: "+old+" not "+list+" for "+list.id);
-					emptyItemsWithID.remove(list);
+				UIDQueue q = idle.head();
+				if(q == null) break;
+				if(q.timeLastSent == -1 || now - q.timeLastSent > FORGET_AFTER) {
+					idle.remove(q);
+					if(!byID.remove(q))
+						Logger.error(this, "UID was not in the index: "+q);
 					removed++;
-				} else {
-					if(logDEBUG && removed > 0)
-						Logger.debug(this, "Removed "+removed+" old empty UID trackers");
-					break;
-				}
+				} else break;
 			}
+			if(logDEBUG && removed > 0)
+				Logger.debug(this, "Removed "+removed+" old empty UID trackers");
 		}
 
 		public void clear() {
-			emptyItemsWithID = null;
-			nonEmptyItemsWithID = null;
-			itemsByID = null;
-			itemsNonUrgent = null;
-			if(logMINOR) checkOrder();
+			if(roundRobinBetweenUIDs) {
+				byID = new UIDIndex();
+				urgent.clear();
+				idle.clear();
+				waiting.clear();
+			} else {
+				while(!items.isEmpty()) items.removeFirst();
+			}
+			count = 0;
+			bytes = 0;
+			urgentBytes = 0;
 		}
 
 		public boolean removeMessage(MessageItem item) {
-			if(logMINOR) checkOrder();
-			long id = item.getID();
-			Items list;
-			if(itemsByID != null) {
-				list = itemsByID.get(id);
-				if(list != null) {
-					if(list.remove(item)) {
-						if(list.items.isEmpty()) {
-							nonEmptyItemsWithID.remove(list);
-							addToEmptyBackward(list);
-						}
-						if(logMINOR) checkOrder();
-						return true;
-					}
-				}
+			if(!roundRobinBetweenUIDs) {
+				int index = items.indexOf(item);
+				if(index < 0) return false;
+				items.remove(index);
+				count--;
+				bytes -= item.getLength();
+				return true;
 			}
-			if(logMINOR) checkOrder();
-			if(itemsNonUrgent != null)
-				return itemsNonUrgent.remove(item);
-			else
-				return false;
+			UIDQueue q = byID.get(item.getID());
+			if(q == null) return false;
+			int index = q.items.indexOf(item);
+			if(index < 0) return false;
+			q.items.remove(index);
+			count--;
+			bytes -= item.getLength();
+			if(index < q.urgentCount) {
+				q.urgentCount--;
+				urgentBytes -= item.getLength() + 2;
+				if(q.urgentCount == 0)
+					urgent.remove(q);
+			}
+			if(q.items.isEmpty() && (q.timeLastSent == NEVER || q.timeLastSent == -1)) {
+				// Never sent anything, nothing to remember.
+				if(q.heapIndex >= 0) waiting.remove(q);
+				byID.remove(q);
+			} else {
+				afterSend(q);
+			}
+			return true;
 		}
-		
+
 		public void removeUIDs(Long[] list) {
-			if(logMINOR) checkOrder();
-			if(itemsByID == null) return;
+			if(!roundRobinBetweenUIDs) return;
 			for(Long l : list) {
-				Items items = itemsByID.get(l);
-				if(items == null) continue;
-				if(items.items.isEmpty()) {
-					itemsByID.remove(l);
-					assert(emptyItemsWithID != null);
-					assert(items.getParent() == emptyItemsWithID);
-					emptyItemsWithID.remove(items);
+				UIDQueue q = byID.get(l);
+				if(q == null) continue;
+				if(q.items.isEmpty()) {
+					assert(q.getParent() == idle);
+					idle.remove(q);
+					byID.remove(q);
 				}
 			}
-			if(logMINOR) checkOrder();
 		}
 
 		public boolean isEmpty() {
-			if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
-				return false;
-			}
-			if(nonEmptyItemsWithID != null) {
-				for(Items items : nonEmptyItemsWithID) {
-					if(items.items.size() == 0) continue;
-					return false;
-				}
-			}
-			return true;
+			return count == 0;
 		}
 
 	}
@@ -720,7 +736,7 @@ public class PeerMessageQueue {
 				// Realtime: round-robin between UID's (timeout since last sent), short timeout.
 				queuesByPriority[i] = new PrioQueue(PacketSender.MAX_COALESCING_DELAY, true);
 			else
-				// Everything else: Still round-robin between UID's, but timeout on submitted.
+				// Everything else: timeout on submitted.
 				queuesByPriority[i] = new PrioQueue(PacketSender.MAX_COALESCING_DELAY, false);
 		}
 	}
@@ -728,42 +744,23 @@ public class PeerMessageQueue {
 	/**
 	 * Queue a <code>MessageItem</code> and return an estimate of the size of
 	 * this queue. The value returned is the estimated number of bytes
-	 * needed for sending the all messages in this queue. Note that if the
-	 * returned estimate is higher than 1024, it might not cover all messages.
+	 * needed for sending the all messages in this queue.
 	 * @param item the <code>MessageItem</code> to queue
 	 * @return an estimate of the size of this queue
 	 */
 	public synchronized int queueAndEstimateSize(MessageItem item, int maxSize) {
 		enqueuePrioritizedMessageItem(item);
-		int x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNonUrgent != null) {
-				for(MessageItem it : pq.itemsNonUrgent) {
-					x += it.getLength() + 2;
-					if(x > maxSize)
-						break;
-				}
-			}
-			if(pq.nonEmptyItemsWithID != null) {
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items) {
-						x += it.getLength() + 2;
-						if(x > maxSize)
-							break;
-					}
-			}
-		}
-		return x;
+		long x = 0;
+		for(PrioQueue pq : queuesByPriority)
+			x += pq.bytes + 2 * pq.count;
+		return (int) Math.min(x, Integer.MAX_VALUE);
 	}
 
+	/** @return The total size of the urgent messages on the round-robin queues. */
 	public synchronized long getMessageQueueLengthBytes() {
 		long x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.nonEmptyItemsWithID != null)
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items)
-						x += it.getLength() + 2;
-		}
+		for(PrioQueue pq : queuesByPriority)
+			x += pq.urgentBytes;
 		return x;
 	}
 
@@ -779,8 +776,8 @@ public class PeerMessageQueue {
 
 	/**
 	 * like enqueuePrioritizedMessageItem, but adds it to the front of those in the same priority.
-	 * 
-	 * WARNING: Pulling a message and then pushing it back will mess up the fairness 
+	 *
+	 * WARNING: Pulling a message and then pushing it back will mess up the fairness
 	 * between UID's send order. Try to avoid it.
 	 */
 	synchronized void pushfrontPrioritizedMessageItem(MessageItem addMe) {
@@ -812,8 +809,8 @@ public class PeerMessageQueue {
 	 * accurate.
 	 * @param t The current next urgent time. The return value will be no greater
 	 * than this.
-	 * @param returnIfBefore The current time. If the next urgent time is less than 
-	 * this we return immediately rather than computing an accurate past value. 
+	 * @param returnIfBefore The current time. If the next urgent time is less than
+	 * this we return immediately rather than computing an accurate past value.
 	 * Set to Long.MAX_VALUE if you want an accurate value.
 	 * @return The next urgent time, but can be too high if it is less than now.
 	 */
@@ -845,42 +842,37 @@ public class PeerMessageQueue {
 	 * messages in this queue is greater than <code>maxSize</code>
 	 */
 	public synchronized boolean mustSendSize(int minSize, int maxSize) {
-		int length = minSize;
-		for(PrioQueue items : queuesByPriority) {
-			length = items.addSize(length, maxSize);
-			if(length > maxSize) return true;
-		}
-		return false;
+		long length = minSize;
+		for(PrioQueue items : queuesByPriority)
+			length += items.bytes;
+		return length > maxSize;
 	}
 
 	/** Grab a message to send. WARNING: PeerMessageQueue not only removes the message,
 	 * it assumes it has been sent for purposes of fairness between UID's. You should try
-	 * not to call this function if you are not going to be able to send the message: 
+	 * not to call this function if you are not going to be able to send the message:
 	 * check in advance if possible. */
 	public synchronized MessageItem grabQueuedMessageItem(int minPriority) {
 		long now = System.currentTimeMillis();
-		
-		MutableBoolean addPeerLoadStatsRT = new MutableBoolean();
-		MutableBoolean addPeerLoadStatsBulk = new MutableBoolean();
-		
+
 		addPeerLoadStatsRT.value = true;
 		addPeerLoadStatsBulk.value = true;
-		
+
 		for(int i=0;i<DMT.PRIORITY_REALTIME_DATA;i++) {
 			if(i < minPriority) continue;
 			if(logMINOR) Logger.minor(this, "Adding from priority "+i);
-			MessageItem ret = queuesByPriority[i].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			MessageItem ret = queuesByPriority[i].addPriorityMessages(now);
 			if(ret != null) return ret;
 		}
-		
+
 		// Include bulk or realtime, whichever is more urgent.
-		
+
 		boolean tryRealtimeFirst = true;
-		
+
 		// If one is empty, try the other.
 		// Otherwise try whichever is more urgent, favouring realtime if there is a draw.
 		// Realtime is supposed to be bursty.
-		
+
 		if(queuesByPriority[DMT.PRIORITY_REALTIME_DATA].isEmpty()) {
 			tryRealtimeFirst = false;
 		} else if(queuesByPriority[DMT.PRIORITY_BULK_DATA].isEmpty()) {
@@ -890,35 +882,35 @@ public class PeerMessageQueue {
 		} else {
 			tryRealtimeFirst = false;
 		}
-		
+
 		// FIXME token bucket?
 		if(tryRealtimeFirst) {
 			// Try realtime first
 			if(logMINOR) Logger.minor(this, "Trying realtime first");
-			MessageItem ret = queuesByPriority[DMT.PRIORITY_REALTIME_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			MessageItem ret = queuesByPriority[DMT.PRIORITY_REALTIME_DATA].addPriorityMessages(now);
 			if(ret != null) return ret;
 			if(logMINOR) Logger.minor(this, "Trying bulk");
-			ret = queuesByPriority[DMT.PRIORITY_BULK_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			ret = queuesByPriority[DMT.PRIORITY_BULK_DATA].addPriorityMessages(now);
 			if(ret != null) return ret;
 		} else {
 			// Try bulk first
 			if(logMINOR) Logger.minor(this, "Trying bulk first");
-			MessageItem ret = queuesByPriority[DMT.PRIORITY_BULK_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			MessageItem ret = queuesByPriority[DMT.PRIORITY_BULK_DATA].addPriorityMessages(now);
 			if(ret != null) return ret;
 			if(logMINOR) Logger.minor(this, "Trying realtime");
-			ret = queuesByPriority[DMT.PRIORITY_REALTIME_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			ret = queuesByPriority[DMT.PRIORITY_REALTIME_DATA].addPriorityMessages(now);
 			if(ret != null) return ret;
 		}
 		for(int i=DMT.PRIORITY_BULK_DATA+1;i<DMT.NUM_PRIORITIES;i++) {
 			if(i < minPriority) continue;
 			if(logMINOR) Logger.minor(this, "Adding from priority "+i);
-			MessageItem ret = queuesByPriority[i].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			MessageItem ret = queuesByPriority[i].addPriorityMessages(now);
 			if(ret != null) return ret;
 		}
 		// Nothing to send.
 		return null;
 	}
-	
+
 	public boolean removeMessage(MessageItem message) {
 		synchronized(this) {
 			short prio = message.getPriority();
@@ -934,4 +926,3 @@ public class PeerMessageQueue {
 		}
 	}
 }
-
@@ -1,9 +1,6 @@
 package freenet.node;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.lang.ref.WeakReference;
@@ -68,6 +65,7 @@ import freenet.node.OpennetManager.ConnectionType;
 import freenet.node.PeerManager.PeerStatusChangeListener;
 import freenet.support.Base64;
 import freenet.support.BooleanLastTrueTracker;
+import freenet.support.CompactFieldSet;
 import freenet.support.Fields;
 import freenet.support.HexUtil;
 import freenet.support.IllegalBase64Exception;
@@ -447,6 +445,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(mangler == null) throw new NullPointerException();
 		this.outgoingMangler = mangler;
 		this.node = node2;
+		_lastThrottle = new PacketThrottle(Node.PACKET_SIZE, node.getCongestionControl());
 		this.crypto = crypto;
 		assert(crypto.isOpennet == (isOpennet() || isSeed()));
 		this.peers = peers;
@@ -1806,7 +1805,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(anythingChanged)
 			// Not urgent. This makes up the majority of the total writes.
 			// Writing it on shutdown is sufficient.
-			node.peers.writePeers(isOpennet());
+			node.peers.writePeers(this);
 		setPeerNodeStatus(System.currentTimeMillis());
 	}
 
@@ -2466,17 +2465,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(logMINOR)
 			Logger.minor(PeerNode.class, "Reference: " + HexUtil.bytesToHex(data, offset, length) + '(' + length + ')');
 
-		// Now decode it
-		ByteArrayInputStream bais = new ByteArrayInputStream(data, offset, length);
-		InputStreamReader isr;
+		// Now decode it. This happens for every path folding and announcement noderef, so
+		// parse it straight from the bytes.
 		try {
-			isr = new InputStreamReader(bais, "UTF-8");
-		} catch(UnsupportedEncodingException e1) {
-			throw new Error("Impossible: JVM doesn't support UTF-8: " + e1, e1);
-		}
-		BufferedReader br = new BufferedReader(isr);
-		try {
-			SimpleFieldSet fs = new SimpleFieldSet(br, false, true);
+			SimpleFieldSet fs = CompactFieldSet.parse(data, offset, length, false).toSimpleFieldSet(true);
 			if(group != null) {
 				SimpleFieldSet sfs = new SimpleFieldSet(true);
 				sfs.put("dsaGroup", group.asFieldSet());
@@ -2496,7 +2488,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			Logger.minor(this, "Parsing: \n" + fs);
 		boolean changedAnything = innerProcessNewNoderef(fs, forARK, forDiffNodeRef, forFullNodeRef) || forARK;
 		if(changedAnything && !isSeed())
-			node.peers.writePeers(isOpennet());
+			node.peers.writePeers(this);
 		// FIXME should this be urgent if IPs change? Dunno.
 	}
 
@@ -3778,7 +3770,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return Version.getArbitraryBuildNumber(getVersion(), -1);
 	}
 
-	private final PacketThrottle _lastThrottle = new PacketThrottle(Node.PACKET_SIZE);
+	private final PacketThrottle _lastThrottle;
 
 	@Override
 	public PacketThrottle getThrottle() {
@@ -0,0 +1,514 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import freenet.crypt.SHA256;
+import freenet.support.CompactFieldSet;
+import freenet.support.HexUtil;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Ticker;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+
+/**
+ * Keeps one of the peers files (darknet, opennet or old opennet peers) up to date on disk.
+ *
+ * We used to serialize every peer and rewrite the whole file whenever a peer was added or
+ * removed, immediately, on a separate thread each time. On an opennet node with a lot of
+ * churn that is many times a minute. Now:
+ * - Changes are coalesced: an urgent write happens URGENT_DELAY after the first change,
+ * and picks up everything that changed in the meantime. Writes happen on the executor,
+ * one at a time.
+ * - We remember what we last wrote for each peer, and only serialize the peers which
+ * have been marked as changed, or have been added or removed.
+ * - Usually we only append the changes to a log file next to the peers file, with one
+ * fsync. Each record in the log is either a peer's complete noderef, replacing any
+ * earlier one with the same identity, or a removal, in CompactFieldSet's binary format,
+ * which is smaller than the text and quicker to read back. Once the log is bigger than the
+ * peers file, or on shutdown, we compact: write the whole peers file atomically, rotating
+ * the backups, and delete the log.
+ *
+ * The log starts with the hash of the peers file it applies to, and is only applied to
+ * that file: not to the backups, and not to a newer peers file written just before a
+ * crash which stopped us deleting the log.
+ */
+public abstract class PeersFileWriter<T> {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(PeersFileWriter.class);
+	}
+
+	/** How long to wait after an urgent change, so we can pick up any others. */
+	static final long URGENT_DELAY = 5*1000;
+	/** Don't compact until the log is at least this big, even if the peers file is
+	 * smaller. */
+	static final long MIN_COMPACT_LOG_SIZE = 64*1024;
+	static final String LOG_SUFFIX = ".log";
+	/** Key for a removal record in the log. */
+	static final String REMOVED = "removed";
+	/** Key for the first record in the log: the hash of the peers file it applies to. */
+	static final String PEERS_FILE_HASH = "peersFileHash";
+
+	private final String name;
+	private final int maxBackups;
+	private final Ticker ticker;
+	/** The peers file. Set when we read it. */
+	private String filename;
+	/** Peers which have changed since the last write. */
+	private HashSet<T> changed;
+	/** If true, serialize all the peers on the next write. */
+	private boolean allChanged;
+	/** If true, something needs writing. */
+	private boolean dirty;
+	/** If true, rotate the backups on the next compaction. */
+	private boolean rotateBackups;
+
+	/** Held while writing. Taken before the lock on this. */
+	private final Object writeLock = new Object();
+	/** What is on disk for each peer, in the peers file or the log, by identity. Null if
+	 * we don't know, so the next write will compact. */
+	private HashMap<String, CompactFieldSet> written;
+	private long fileSize;
+	/** Hash of the peers file as we last wrote it. */
+	private byte[] fileHash;
+	private volatile long logSize;
+
+	private long fullWrites;
+	private long logWrites;
+	private long totalWriteTime;
+	private long maxWriteTime;
+	private long bytesWritten;
+
+	private final Runnable writeJob = new Runnable() {
+
+		@Override
+		public void run() {
+			write(false);
+		}
+
+	};
+
+	/**
+	 * @param name For the stats page and the logs.
+	 * @param maxBackups The number of backup copies of the peers file.
+	 * @param ticker Used to schedule urgent writes.
+	 */
+	PeersFileWriter(String name, int maxBackups, Ticker ticker) {
+		assert(maxBackups >= 1);
+		this.name = name;
+		this.maxBackups = maxBackups;
+		this.ticker = ticker;
+		changed = new HashSet<T>();
+	}
+
+	/** @return The peers which belong in the file, or null if the file should not be
+	 * written at the moment. */
+	protected abstract T[] getPeers();
+
+	/** @return A unique identifier for the peer. */
+	protected abstract String getIdentity(T peer);
+
+	/** @return The peer's noderef, with its metadata, as written to the peers file. */
+	protected abstract SimpleFieldSet export(T peer);
+
+	public void setFilename(String filename) {
+		synchronized(writeLock) {
+			synchronized(this) {
+				if(filename.equals(this.filename)) return;
+				this.filename = filename;
+				dirty = true;
+			}
+			// A different file, so we don't know what is in it.
+			written = null;
+			fileSize = 0;
+			logSize = 0;
+		}
+	}
+
+	public synchronized String getFilename() {
+		return filename;
+	}
+
+	/** A peer's noderef has changed. It will be written within the next periodic write,
+	 * or sooner if something urgent happens. */
+	public synchronized void changed(T peer) {
+		changed.add(peer);
+		dirty = true;
+	}
+
+	/** Something has changed which affects all the peers. */
+	public synchronized void changedAll() {
+		allChanged = true;
+		dirty = true;
+	}
+
+	/** A peer has been added or removed, or something else which should be written
+	 * soon. */
+	public void writeSoon(boolean rotateBackups) {
+		synchronized(this) {
+			dirty = true;
+			if(rotateBackups) this.rotateBackups = true;
+		}
+		ticker.queueTimedJob(writeJob, "Write "+name+" peers", URGENT_DELAY, false, true);
+	}
+
+	/** @return True if there are changes which haven't been written yet. */
+	public synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Write any changes to disk, now, on this thread.
+	 * @param compact If true, write the whole file and delete the log, if there is
+	 * anything to write or a log to delete. E.g. on shutdown.
+	 */
+	public void write(boolean compact) {
+		synchronized(writeLock) {
+			String filename;
+			HashSet<T> changedPeers;
+			boolean wasAllChanged;
+			boolean wasDirty;
+			boolean rotate;
+			synchronized(this) {
+				filename = this.filename;
+				if(filename == null) return;
+				if(!dirty && !(compact && logSize > 0)) return;
+				// Anything which changes from here on is written next time. If this write
+				// doesn't happen, these are put back.
+				changedPeers = changed;
+				changed = new HashSet<T>();
+				wasAllChanged = allChanged;
+				allChanged = false;
+				wasDirty = dirty;
+				dirty = false;
+				rotate = rotateBackups;
+			}
+			boolean all = wasAllChanged || compact;
+			T[] peers = getPeers();
+			if(peers == null) {
+				restoreChanges(changedPeers, wasAllChanged, wasDirty);
+				return;
+			}
+			long start = System.currentTimeMillis();
+			try {
+				LinkedHashMap<String, CompactFieldSet> current = new LinkedHashMap<String, CompactFieldSet>();
+				ByteArrayOutputStream log = new ByteArrayOutputStream();
+				DataOutputStream dos = new DataOutputStream(log);
+				for(T peer : peers) {
+					String identity = getIdentity(peer);
+					CompactFieldSet old = written == null ? null : written.get(identity);
+					CompactFieldSet fs = old;
+					if(old == null || all || changedPeers.contains(peer))
+						fs = CompactFieldSet.create(export(peer));
+					current.put(identity, fs);
+					if(!fs.equals(old)) fs.writeBinary(dos);
+				}
+				if(written != null) {
+					for(String identity : written.keySet()) {
+						if(current.containsKey(identity)) continue;
+						record(REMOVED, identity).writeBinary(dos);
+					}
+				}
+				if(written != null && log.size() == 0 && (logSize == 0 || !compact)) return;
+				boolean full = written == null || compact || logSize + log.size() > Math.max(MIN_COMPACT_LOG_SIZE, fileSize);
+				long bytes;
+				if(full) {
+					StringWriter sw = new StringWriter();
+					for(CompactFieldSet fs : current.values())
+						fs.writeTo(sw);
+					byte[] content = encode(sw.toString());
+					byte[] hash = SHA256.digest(content);
+					File logFile = new File(filename + LOG_SUFFIX);
+					// If we crash after writing the new file, the log won't be applied to it
+					// because the hash won't match. Unless the contents are the same, in
+					// which case it is safe to delete the log first.
+					if(logFile.exists() && HexUtil.bytesToHex(hash).equals(readLogHash(logFile)))
+						deleteLog(logFile);
+					bytes = writeFull(filename, content, rotate);
+					fileHash = hash;
+					if(logFile.exists()) deleteLog(logFile);
+					fileSize = bytes;
+					logSize = 0;
+				} else {
+					boolean newLog = logSize == 0;
+					byte[] content = log.toByteArray();
+					if(newLog) {
+						ByteArrayOutputStream withHash = new ByteArrayOutputStream();
+						record(PEERS_FILE_HASH, HexUtil.bytesToHex(fileHash)).writeBinary(new DataOutputStream(withHash));
+						withHash.write(content);
+						content = withHash.toByteArray();
+					}
+					bytes = appendLog(new File(filename + LOG_SUFFIX), content, !newLog);
+					logSize += bytes;
+				}
+				written = current;
+				long time = System.currentTimeMillis() - start;
+				synchronized(this) {
+					if(full) {
+						fullWrites++;
+						if(rotate) rotateBackups = false;
+					} else
+						logWrites++;
+					totalWriteTime += time;
+					if(time > maxWriteTime) maxWriteTime = time;
+					bytesWritten += bytes;
+				}
+				if(logMINOR) Logger.minor(this, "Wrote "+bytes+" bytes to "+name+" peers "+(full ? "file" : "log")+" in "+time+"ms");
+			} catch (IOException e) {
+				Logger.error(this, "Cannot write "+name+" peers to disk: "+e, e);
+				// We don't know what is on disk now, so compact next time.
+				written = null;
+				restoreChanges(changedPeers, wasAllChanged, true);
+			}
+		}
+	}
+
+	/** Put back the changes taken by a write which didn't happen. */
+	private synchronized void restoreChanges(HashSet<T> changedPeers, boolean wasAllChanged, boolean wasDirty) {
+		changed.addAll(changedPeers);
+		if(wasAllChanged) allChanged = true;
+		if(wasDirty) dirty = true;
+	}
+
+	/** Write the whole file atomically.
+	 * @return The number of bytes written. */
+	private long writeFull(String filename, byte[] buf, boolean rotate) throws IOException {
+		File full = new File(filename).getAbsoluteFile();
+		File f = File.createTempFile(full.getName()+".", ".tmp", full.getParentFile());
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(f);
+			fos.write(buf);
+			fos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			if(rotate) {
+				File prevFile = null;
+				for(int i=maxBackups;i>=0;i--) {
+					File thisFile = getBackupFilename(filename, i);
+					if(prevFile == null) {
+						thisFile.delete();
+					} else {
+						if(thisFile.exists()) {
+							FileUtil.renameTo(thisFile, prevFile);
+						}
+					}
+					prevFile = thisFile;
+				}
+				if(!FileUtil.renameTo(f, prevFile))
+					throw new IOException("Unable to rename "+f+" to "+prevFile);
+			} else {
+				File dest = getBackupFilename(filename, 0);
+				if(!FileUtil.renameTo(f, dest))
+					throw new IOException("Unable to rename "+f+" to "+dest);
+			}
+			return buf.length;
+		} finally {
+			Closer.close(fos);
+			f.delete();
+		}
+	}
+
+	private static void deleteLog(File logFile) throws IOException {
+		if(!logFile.delete())
+			throw new IOException("Unable to delete "+logFile);
+	}
+
+	/** Append to the log and fsync it.
+	 * @param append If false, start a new log, replacing anything left over.
+	 * @return The number of bytes written. */
+	private static long appendLog(File logFile, byte[] buf, boolean append) throws IOException {
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(logFile, append);
+			fos.write(buf);
+			fos.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			return buf.length;
+		} finally {
+			Closer.close(fos);
+		}
+	}
+
+	private static byte[] encode(String content) {
+		try {
+			return content.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("Impossible: JVM doesn't support UTF-8: " + e, e);
+		}
+	}
+
+	/** @return A log record with a single key. */
+	private static CompactFieldSet record(String key, String value) {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle(key, value);
+		return CompactFieldSet.create(fs);
+	}
+
+	static File getBackupFilename(String filename, int i) {
+		if(i == 0) return new File(filename);
+		if(i == 1) return new File(filename+".bak");
+		return new File(filename+".bak."+i);
+	}
+
+	/**
+	 * Apply the log for a peers file to the noderefs read from it.
+	 * @param filename The peers file.
+	 * @param refs The noderefs read from the peers file, by identity. Will be updated.
+	 * @param requiredKeys Keys which must be in a noderef in the log for it to be used,
+	 * besides the identity.
+	 * @return The number of records applied.
+	 */
+	static int replayLog(String filename, Map<String, SimpleFieldSet> refs, String[] requiredKeys) {
+		File logFile = new File(filename + LOG_SUFFIX);
+		if(!logFile.exists()) return 0;
+		String hash;
+		try {
+			hash = hashFile(new File(filename));
+		} catch (IOException e) {
+			Logger.error(PeersFileWriter.class, "Cannot read "+filename+" so ignoring "+logFile+" : "+e, e);
+			return 0;
+		}
+		FileInputStream fis;
+		try {
+			fis = new FileInputStream(logFile);
+		} catch (FileNotFoundException e) {
+			return 0;
+		}
+		int count = 0;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(fis));
+			int maxLength = (int) Math.min(logFile.length(), Integer.MAX_VALUE);
+			if(!hash.equals(readLogHash(dis, maxLength))) {
+				// We crashed after writing a new peers file but before deleting the log.
+				Logger.normal(PeersFileWriter.class, "Ignoring "+logFile+" as it is for an older "+filename);
+				return 0;
+			}
+			while(true) {
+				dis.mark(1);
+				if(dis.read() == -1) break;
+				dis.reset();
+				CompactFieldSet fs;
+				try {
+					fs = CompactFieldSet.readBinary(dis, maxLength);
+				} catch (IOException e) {
+					// Partly written when we crashed.
+					Logger.error(PeersFileWriter.class, "Ignoring incomplete record at end of "+logFile+" : "+e);
+					break;
+				}
+				String removed = fs.get(REMOVED);
+				String identity = fs.get("identity");
+				if(identity != null && hasKeys(fs, requiredKeys)) {
+					refs.remove(identity);
+					refs.put(identity, fs.toSimpleFieldSet(true));
+				} else if(identity == null && removed != null) {
+					refs.remove(removed);
+				} else {
+					Logger.error(PeersFileWriter.class, "Ignoring invalid record in "+logFile+" : "+fs);
+					continue;
+				}
+				count++;
+			}
+		} catch (EOFException e) {
+			// No hash, so nothing to apply.
+		} catch (IOException e) {
+			Logger.error(PeersFileWriter.class, "Cannot read "+logFile+" : "+e, e);
+		} finally {
+			Closer.close(dis);
+			Closer.close(fis);
+		}
+		return count;
+	}
+
+	private static boolean hasKeys(CompactFieldSet fs, String[] keys) {
+		for(String key : keys)
+			if(fs.get(key) == null) return false;
+		return true;
+	}
+
+	/** @return The hash of the peers file the log applies to, or null if there isn't one,
+	 * or it can't be read. */
+	private static String readLogHash(File logFile) {
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+			return readLogHash(dis, (int) Math.min(logFile.length(), Integer.MAX_VALUE));
+		} catch (IOException e) {
+			return null;
+		} finally {
+			Closer.close(dis);
+		}
+	}
+
+	private static String readLogHash(DataInputStream dis, int maxLength) throws IOException {
+		return CompactFieldSet.readBinary(dis, maxLength).get(PEERS_FILE_HASH);
+	}
+
+	private static String hashFile(File f) throws IOException {
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			SHA256.hash(new FileInputStream(f), md);
+			return HexUtil.bytesToHex(md.digest());
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized long countFullWrites() {
+		return fullWrites;
+	}
+
+	public synchronized long countLogWrites() {
+		return logWrites;
+	}
+
+	/** @return The average time taken to write, in milliseconds. */
+	public synchronized long getAverageWriteTime() {
+		long writes = fullWrites + logWrites;
+		return writes == 0 ? 0 : totalWriteTime / writes;
+	}
+
+	/** @return The longest time taken to write, in milliseconds. */
+	public synchronized long getMaxWriteTime() {
+		return maxWriteTime;
+	}
+
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/** @return The size of the log, in bytes. */
+	public long getLogSize() {
+		return logSize;
+	}
+
+}
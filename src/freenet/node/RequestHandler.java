@@ -149,6 +149,7 @@ public class RequestHandler implements PrioRunnable, ByteCounter, RequestSenderL
 				Logger.minor(this, "Remote CHK fetch cost " + sent + '/' + rcvd + " bytes (" + status + ')');
 			node.nodeStats.remoteChkFetchBytesSentAverage.report(sent);
 			node.nodeStats.remoteChkFetchBytesReceivedAverage.report(rcvd);
+			node.nodeStats.remoteChkFetchBytes.report(sent + rcvd);
 			if(status == RequestSender.SUCCESS) {
 				// Can report both parts, because we had both a Handler and a Sender
 				node.nodeStats.successfulChkFetchBytesSentAverage.report(sent);
@@ -0,0 +1,112 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.math.RunningAverage;
+import freenet.support.math.StripedDecayingAverage;
+import freenet.support.math.StripedHistogram;
+
+/**
+ * Immutable copy of the request success rates, byte cost averages and histograms from NodeStats, for the
+ * statistics page and FCP. The underlying averages are striped and lock-free, so taking a
+ * snapshot doesn't block request completion, and vice versa.
+ */
+public final class RequestStatsSnapshot {
+
+	/** A success rate, and the number of reports it is based on. */
+	public static final class SuccessRate {
+
+		/** Between 0.0 and 1.0, or NaN if there have been no reports. */
+		public final double pSuccess;
+		public final long count;
+
+		SuccessRate(RunningAverage average) {
+			count = average.countReports();
+			pSuccess = average.currentValue();
+		}
+
+	}
+
+	/** When the snapshot was taken. */
+	public final long time;
+	public final SuccessRate globalFetch;
+	public final SuccessRate chkLocalFetch;
+	public final SuccessRate chkRemoteFetch;
+	public final SuccessRate sskLocalFetch;
+	public final SuccessRate sskRemoteFetch;
+	public final SuccessRate blockTransferBulk;
+	public final SuccessRate blockTransferRT;
+	public final SuccessRate blockTransferLocal;
+	/** Proportion of failed block transfers which failed because of a timeout. */
+	public final SuccessRate blockTransferFailTimeout;
+	/** Average bytes sent or received per request, by the names used in the throttle file,
+	 * e.g. RemoteChkFetchBytesSentAverage. */
+	private final Map<String, Double> byteCosts;
+	/** Total bytes sent and received per remote CHK request. */
+	public final StripedHistogram.Snapshot remoteChkFetchBytes;
+	/** Total bytes sent and received per remote CHK insert. */
+	public final StripedHistogram.Snapshot remoteChkInsertBytes;
+
+	RequestStatsSnapshot(NodeStats stats) {
+		time = System.currentTimeMillis();
+		globalFetch = new SuccessRate(stats.globalFetchPSuccess);
+		chkLocalFetch = new SuccessRate(stats.chkLocalFetchPSuccess);
+		chkRemoteFetch = new SuccessRate(stats.chkRemoteFetchPSuccess);
+		sskLocalFetch = new SuccessRate(stats.sskLocalFetchPSuccess);
+		sskRemoteFetch = new SuccessRate(stats.sskRemoteFetchPSuccess);
+		blockTransferBulk = new SuccessRate(stats.blockTransferPSuccessBulk);
+		blockTransferRT = new SuccessRate(stats.blockTransferPSuccessRT);
+		blockTransferLocal = new SuccessRate(stats.blockTransferPSuccessLocal);
+		blockTransferFailTimeout = new SuccessRate(stats.blockTransferFailTimeout);
+		Map<String, Double> costs = new LinkedHashMap<String, Double>();
+		for(Map.Entry<String, StripedDecayingAverage> entry : stats.getByteCostAverages().entrySet())
+			costs.put(entry.getKey(), entry.getValue().currentValue());
+		byteCosts = Collections.unmodifiableMap(costs);
+		remoteChkFetchBytes = stats.remoteChkFetchBytes.snapshot();
+		remoteChkInsertBytes = stats.remoteChkInsertBytes.snapshot();
+	}
+
+	/** @return The byte cost averages, by the names used in the throttle file. */
+	public Map<String, Double> getByteCosts() {
+		return byteCosts;
+	}
+
+	/** Add the statistics to the volatile fieldset, as used by FCP GetNode. */
+	void exportTo(SimpleFieldSet fs) {
+		fs.put("globalFetchPSuccess", globalFetch.pSuccess);
+		fs.put("globalFetchCount", globalFetch.count);
+		fs.put("chkLocalFetchPSuccess", chkLocalFetch.pSuccess);
+		fs.put("chkLocalFetchCount", chkLocalFetch.count);
+		fs.put("chkRemoteFetchPSuccess", chkRemoteFetch.pSuccess);
+		fs.put("chkRemoteFetchCount", chkRemoteFetch.count);
+		fs.put("sskLocalFetchPSuccess", sskLocalFetch.pSuccess);
+		fs.put("sskLocalFetchCount", sskLocalFetch.count);
+		fs.put("sskRemoteFetchPSuccess", sskRemoteFetch.pSuccess);
+		fs.put("sskRemoteFetchCount", sskRemoteFetch.count);
+		fs.put("blockTransferPSuccessRT", blockTransferRT.pSuccess);
+		fs.put("blockTransferCountRT", blockTransferRT.count);
+		fs.put("blockTransferPSuccessBulk", blockTransferBulk.pSuccess);
+		fs.put("blockTransferCountBulk", blockTransferBulk.count);
+		fs.put("blockTransferFailTimeout", blockTransferFailTimeout.pSuccess);
+		for(Map.Entry<String, Double> entry : byteCosts.entrySet())
+			fs.put("byteCost."+entry.getKey(), entry.getValue());
+		exportHistogram(fs, "remoteChkFetchBytes", remoteChkFetchBytes);
+		exportHistogram(fs, "remoteChkInsertBytes", remoteChkInsertBytes);
+	}
+
+	private static void exportHistogram(SimpleFieldSet fs, String prefix, StripedHistogram.Snapshot histogram) {
+		fs.put(prefix+".Count", histogram.count());
+		fs.put(prefix+".Mean", histogram.mean());
+		// Upper bounds, accurate to a factor of 2.
+		fs.put(prefix+".Median", histogram.percentile(0.5));
+		fs.put(prefix+".P90", histogram.percentile(0.9));
+		fs.put(prefix+".P99", histogram.percentile(0.99));
+	}
+
+}
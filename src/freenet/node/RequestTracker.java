@@ -1,10 +1,10 @@
 package freenet.node;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
@@ -19,69 +19,52 @@ public class RequestTracker {
 		Logger.registerClass(RequestTracker.class);
 	}
 	
-	// The runningLocal* are secondary. That is, we take the lock on the
-	// corresponding running* when accessing runningLocal*. Local requests
-	// have a tag in *both*.
+	// Each map tracks both all the requests of a given type and the local requests
+	// among them. Local requests have a tag in *both*.
 	
-	private final HashMap<Long,RequestTag> runningCHKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningLocalCHKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningSSKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningLocalSSKGetUIDsBulk;
-	private final HashMap<Long,InsertTag> runningCHKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningLocalCHKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningSSKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningLocalSSKPutUIDsBulk;
-	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsBulk;
-	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsBulk;
-
-	private final HashMap<Long,RequestTag> runningCHKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningLocalCHKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningSSKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningLocalSSKGetUIDsRT;
-	private final HashMap<Long,InsertTag> runningCHKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningLocalCHKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningSSKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningLocalSSKPutUIDsRT;
-	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsRT;
-	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsRT;
+	private final ShardedUIDMap<RequestTag> runningCHKGetUIDsBulk;
+	private final ShardedUIDMap<RequestTag> runningSSKGetUIDsBulk;
+	private final ShardedUIDMap<InsertTag> runningCHKPutUIDsBulk;
+	private final ShardedUIDMap<InsertTag> runningSSKPutUIDsBulk;
+	private final ShardedUIDMap<OfferReplyTag> runningCHKOfferReplyUIDsBulk;
+	private final ShardedUIDMap<OfferReplyTag> runningSSKOfferReplyUIDsBulk;
+
+	private final ShardedUIDMap<RequestTag> runningCHKGetUIDsRT;
+	private final ShardedUIDMap<RequestTag> runningSSKGetUIDsRT;
+	private final ShardedUIDMap<InsertTag> runningCHKPutUIDsRT;
+	private final ShardedUIDMap<InsertTag> runningSSKPutUIDsRT;
+	private final ShardedUIDMap<OfferReplyTag> runningCHKOfferReplyUIDsRT;
+	private final ShardedUIDMap<OfferReplyTag> runningSSKOfferReplyUIDsRT;
 	
 	private final PeerManager peers;
 	private final Ticker ticker;
 
 	/** RequestSender's currently transferring, by key */
-	private final HashMap<NodeCHK, RequestSender> transferringRequestSendersRT;
-	private final HashMap<NodeCHK, RequestSender> transferringRequestSendersBulk;
+	private final ConcurrentHashMap<NodeCHK, RequestSender> transferringRequestSendersRT;
+	private final ConcurrentHashMap<NodeCHK, RequestSender> transferringRequestSendersBulk;
 	/** UIDs of RequestHandler's currently transferring */
-	private final HashSet<Long> transferringRequestHandlers;
+	private final Set<Long> transferringRequestHandlers;
 	
 	RequestTracker(PeerManager peers, Ticker ticker) {
 		this.peers = peers;
 		this.ticker = ticker;
-		runningCHKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningLocalCHKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningSSKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningLocalSSKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningCHKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningLocalCHKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningSSKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningLocalSSKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningCHKOfferReplyUIDsRT = new HashMap<Long,OfferReplyTag>();
-		runningSSKOfferReplyUIDsRT = new HashMap<Long,OfferReplyTag>();
-
-		runningCHKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningLocalCHKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningSSKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningLocalSSKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningCHKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningLocalCHKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningSSKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningLocalSSKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningCHKOfferReplyUIDsBulk = new HashMap<Long,OfferReplyTag>();
-		runningSSKOfferReplyUIDsBulk = new HashMap<Long,OfferReplyTag>();
+		runningCHKGetUIDsRT = new ShardedUIDMap<RequestTag>("CHK requests (RT)", true);
+		runningSSKGetUIDsRT = new ShardedUIDMap<RequestTag>("SSK requests (RT)", true);
+		runningCHKPutUIDsRT = new ShardedUIDMap<InsertTag>("CHK inserts (RT)", true);
+		runningSSKPutUIDsRT = new ShardedUIDMap<InsertTag>("SSK inserts (RT)", true);
+		runningCHKOfferReplyUIDsRT = new ShardedUIDMap<OfferReplyTag>("CHK offer replies (RT)", false);
+		runningSSKOfferReplyUIDsRT = new ShardedUIDMap<OfferReplyTag>("SSK offer replies (RT)", false);
+
+		runningCHKGetUIDsBulk = new ShardedUIDMap<RequestTag>("CHK requests (bulk)", true);
+		runningSSKGetUIDsBulk = new ShardedUIDMap<RequestTag>("SSK requests (bulk)", true);
+		runningCHKPutUIDsBulk = new ShardedUIDMap<InsertTag>("CHK inserts (bulk)", true);
+		runningSSKPutUIDsBulk = new ShardedUIDMap<InsertTag>("SSK inserts (bulk)", true);
+		runningCHKOfferReplyUIDsBulk = new ShardedUIDMap<OfferReplyTag>("CHK offer replies (bulk)", false);
+		runningSSKOfferReplyUIDsBulk = new ShardedUIDMap<OfferReplyTag>("SSK offer replies (bulk)", false);
 		
-		transferringRequestSendersRT = new HashMap<NodeCHK, RequestSender>();
-		transferringRequestSendersBulk = new HashMap<NodeCHK, RequestSender>();
-		transferringRequestHandlers = new HashSet<Long>();
+		transferringRequestSendersRT = new ConcurrentHashMap<NodeCHK, RequestSender>();
+		transferringRequestSendersBulk = new ConcurrentHashMap<NodeCHK, RequestSender>();
+		transferringRequestHandlers = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 	}
 
 	public boolean lockUID(UIDTag tag) {
@@ -89,55 +72,17 @@ public class RequestTracker {
 	}
 
 	public boolean lockUID(long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag, UIDTag tag) {
-		// If these are switched around, we must remember to remove from both.
+		if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local, new Exception("debug"));
 		if(offerReply) {
 			// local irrelevant for OfferReplyTag's.
-			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			return innerLock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
+			return getOfferTracker(ssk, realTimeFlag).add(uid, (OfferReplyTag)tag, false);
 		} else if(insert) {
-			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
-			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk, local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local);
+			return getInsertTracker(ssk, realTimeFlag).add(uid, (InsertTag)tag, local);
 		} else {
-			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk,false, realTimeFlag);
-			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local);
+			return getRequestTracker(ssk, realTimeFlag).add(uid, (RequestTag)tag, local);
 		}
 	}
 
-	private<T extends UIDTag> boolean innerLock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
-		synchronized(overallMap) {
-			if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
-			T oldTag = overallMap.get(uid);
-			if(oldTag != null) {
-				if(oldTag == tag) {
-					Logger.error(this, "Tag already registered: "+tag, new Exception("debug"));
-				} else {
-					return false;
-				}
-			}
-			overallMap.put(uid, tag);
-			if(logMINOR) Logger.minor(this, "Locked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
-			if(local) {
-				if(logMINOR) Logger.minor(this, "Locking (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size(), new Exception("debug"));
-				oldTag = localMap.get(uid);
-				if(oldTag != null) {
-					if(oldTag == tag) {
-						Logger.error(this, "Tag already registered (local): "+tag, new Exception("debug"));
-					} else {
-						// Violates the invariant that local requests are always registered on the main (non-local) map too.
-						Logger.error(this, "Different tag already registered (local) EVEN THOUGH NOT ON MAIN MAP: "+tag, new Exception("debug"));
-						overallMap.remove(uid);
-						return false;
-					}
-				}
-				localMap.put(uid, tag);
-				if(logMINOR) Logger.minor(this, "Locked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
-			}
-		}
-		return true;
-	}
-
 	/** Only used by UIDTag. */
 	void unlockUID(UIDTag tag, boolean canFail, boolean noRecord) {
 		unlockUID(tag.uid, tag.isSSK(), tag.isInsert(), canFail, tag.isOfferReply(), tag.wasLocal(), tag.realTimeFlag, tag, noRecord);
@@ -147,62 +92,13 @@ public class RequestTracker {
 		if(!noRecord)
 			completed(uid);
 
+		if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local, new Exception("debug"));
 		if(offerReply) {
-			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			innerUnlock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false, canFail);
+			getOfferTracker(ssk, realTimeFlag).remove(uid, (OfferReplyTag)tag, false, canFail);
 		} else if(insert) {
-			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
-			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk,local, realTimeFlag) : null;
-			innerUnlock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
+			getInsertTracker(ssk, realTimeFlag).remove(uid, (InsertTag)tag, local, canFail);
 		} else {
-			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk, false, realTimeFlag);
-			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			innerUnlock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
-		}
-	}
-
-	/**
-	 * Do the actual unlock.
-	 * @param <T> The type of the tag.
-	 * @param overallMap The overall map for this group of requests. LOCKING:
-	 * We use the overallMap as lock for both.
-	 * @param localMap The local map if any. We check on overallMap and then
-	 * remove from both.
-	 * @param tag The tag to remove.
-	 * @param uid The UID of the tag.
-	 * @param ssk Whether it is an SSK.
-	 * @param insert Whether it is an insert.
-	 * @param offerReply Whether it is an offer reply.
-	 * @param local Whether it is local. If it is local we use both maps. If
-	 * it is not we expect the latter to be null.
-	 * @param canFail
-	 */
-	private<T extends UIDTag> void innerUnlock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
-		synchronized(overallMap) {
-			if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
-			if(overallMap.get(uid) != tag) {
-				if(canFail) {
-					if(logMINOR) Logger.minor(this, "Can fail and did fail: removing "+tag+" got "+overallMap.get(uid)+" for "+uid);
-				} else {
-					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
-				}
-			} else
-				overallMap.remove(uid);
-			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
-			if(local) {
-				if(localMap.get(uid) != tag) {
-					if(canFail) {
-						if(logMINOR) Logger.minor(this, "Can fail and did fail (local): removing "+tag+" got "+localMap.get(uid)+" for "+uid);
-					} else {
-						Logger.error(this, "Removing "+tag+" for "+uid+" returned (local) "+localMap.get(uid));
-					}
-				} else
-					localMap.remove(uid);
-				if(logMINOR) Logger.minor(this, "Unlocked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
-				
-			} else {
-				assert(localMap == null);
-			}
+			getRequestTracker(ssk, realTimeFlag).remove(uid, (RequestTag)tag, local, canFail);
 		}
 	}
 
@@ -221,82 +117,83 @@ public class RequestTracker {
 	}
 
 	public void countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				// The overall running* map can include local. But the local map can't include non-local.
-				if((!local) && tag.wasLocal) continue;
-				int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-				int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-				count++;
-				transfersOut += out;
-				transfersIn += in;
-				if(counterSourceRestarted != null && tag.countAsSourceRestarted()) {
-					countSR++;
-					transfersOutSR += out;
-					transfersInSR += in;
-				}
-				if(logDEBUG) Logger.debug(this, "UID "+entry.getKey()+" : out "+transfersOut+" in "+transfersIn);
-			}
-			counter.total += count;
-			counter.expectedTransfersIn += transfersIn;
-			counter.expectedTransfersOut += transfersOut;
-			if(counterSourceRestarted != null) {
-				counterSourceRestarted.total += countSR;
-				counterSourceRestarted.expectedTransfersIn += transfersInSR;
-				counterSourceRestarted.expectedTransfersOut += transfersOutSR;
-			}
-		}
+		// Counted one shard at a time, under the shard's lock.
+		SourceCounter visitor = new SourceCounter(false, null, local, transfersPerInsert, ignoreLocalVsRemote, counterSourceRestarted != null);
+		getTracker(ssk, insert, offer, realTimeFlag).forEach(local, visitor);
+		visitor.addTo(counter, counterSourceRestarted);
 	}
 
 	public void countRequests(PeerNode source, boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
-		int count = 0;
-		int transfersOut = 0;
-		int transfersIn = 0;
-		int countSR = 0;
-		int transfersOutSR = 0;
-		int transfersInSR = 0;
 		if(!requestsToNode) {
 			// If a request is adopted by us as a result of a timeout, it can be in the
 			// remote map despite having source == null. However, if a request is in the
 			// local map it will always have source == null.
 			if(source != null && local) return;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				// The overall running* map can include local. But the local map can't include non-local.
-				if((!local) && tag.wasLocal) continue;
-				if(tag.getSource() == source) {
-					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-					count++;
-					transfersOut += out;
-					transfersIn += in;
-					if(counterSR != null && tag.countAsSourceRestarted()) {
-						countSR++;
-						transfersOutSR += out;
-						transfersInSR += in;
-					}
-					if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
-				} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
+			SourceCounter visitor = new SourceCounter(true, source, local, transfersPerInsert, ignoreLocalVsRemote, counterSR != null);
+			getTracker(ssk, insert, offer, realTimeFlag).forEach(local, visitor);
+			if(logMINOR) Logger.minor(this, "Returning count: "+visitor.count+" in: "+visitor.transfersIn+" out: "+visitor.transfersOut);
+			visitor.addTo(counter, counterSR);
+		} else {
+			// hasSourceRestarted is irrelevant for requests *to* a node.
+			TargetCounter visitor = new TargetCounter(source, local, transfersPerInsert, ignoreLocalVsRemote);
+			getTracker(ssk, insert, offer, realTimeFlag).forEach(local, visitor);
+			if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+visitor.count+" of "+visitor.visited+" for "+source);
+			counter.total += visitor.count;
+			counter.expectedTransfersIn += visitor.transfersIn;
+			counter.expectedTransfersOut += visitor.transfersOut;
+		}
+	}
+
+	/** Counts the requests from a given source, or all of them. */
+	private class SourceCounter implements ShardedUIDMap.Visitor<UIDTag> {
+		private final boolean checkSource;
+		private final PeerNode source;
+		private final boolean local;
+		private final int transfersPerInsert;
+		private final boolean ignoreLocalVsRemote;
+		private final boolean countSourceRestarted;
+		int count;
+		int transfersOut;
+		int transfersIn;
+		int countSR;
+		int transfersOutSR;
+		int transfersInSR;
+
+		SourceCounter(boolean checkSource, PeerNode source, boolean local, int transfersPerInsert, boolean ignoreLocalVsRemote, boolean countSourceRestarted) {
+			this.checkSource = checkSource;
+			this.source = source;
+			this.local = local;
+			this.transfersPerInsert = transfersPerInsert;
+			this.ignoreLocalVsRemote = ignoreLocalVsRemote;
+			this.countSourceRestarted = countSourceRestarted;
+		}
+
+		@Override
+		public void visit(UIDTag tag) {
+			// The overall running* map can include local. But the local map can't include non-local.
+			if((!local) && tag.wasLocal) return;
+			if(checkSource && tag.getSource() != source) {
+				if(logDEBUG) Logger.debug(RequestTracker.this, "Not counting "+tag.uid);
+				return;
+			}
+			int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
+			int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
+			count++;
+			transfersOut += out;
+			transfersIn += in;
+			if(countSourceRestarted && tag.countAsSourceRestarted()) {
+				countSR++;
+				transfersOutSR += out;
+				transfersInSR += in;
 			}
-			if(logMINOR) Logger.minor(this, "Returning count: "+count+" in: "+transfersIn+" out: "+transfersOut);
+			if(checkSource) {
+				if(logMINOR) Logger.minor(RequestTracker.this, "Counting "+tag+" from "+tag.uid+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
+			} else {
+				if(logDEBUG) Logger.debug(RequestTracker.this, "UID "+tag.uid+" : out "+transfersOut+" in "+transfersIn);
+			}
+		}
+
+		void addTo(CountedRequests counter, CountedRequests counterSR) {
 			counter.total += count;
 			counter.expectedTransfersIn += transfersIn;
 			counter.expectedTransfersOut += transfersOut;
@@ -305,32 +202,40 @@ public class RequestTracker {
 				counterSR.expectedTransfersIn += transfersInSR;
 				counterSR.expectedTransfersOut += transfersOutSR;
 			}
-		} else {
-			// hasSourceRestarted is irrelevant for requests *to* a node.
-			// FIXME improve efficiency!
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				// The overall running* map can include local. But the local map can't include non-local.
-				if((!local) && tag.wasLocal) continue;
-				// Ordinary requests can be routed to an offered key.
-				// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
-				if(tag.currentlyFetchingOfferedKeyFrom(source)) {
-					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-					count++;
-				} else if(tag.currentlyRoutingTo(source)) {
-					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-					count++;
-				} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-			}
-			if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
-			counter.total += count;
-			counter.expectedTransfersIn += transfersIn;
-			counter.expectedTransfersOut += transfersOut;
 		}
+	}
+
+	/** Counts the requests being routed to, or fetching an offered key from, a node. */
+	private class TargetCounter implements ShardedUIDMap.Visitor<UIDTag> {
+		private final PeerNode target;
+		private final boolean local;
+		private final int transfersPerInsert;
+		private final boolean ignoreLocalVsRemote;
+		int count;
+		int transfersOut;
+		int transfersIn;
+		int visited;
+
+		TargetCounter(PeerNode target, boolean local, int transfersPerInsert, boolean ignoreLocalVsRemote) {
+			this.target = target;
+			this.local = local;
+			this.transfersPerInsert = transfersPerInsert;
+			this.ignoreLocalVsRemote = ignoreLocalVsRemote;
+		}
+
+		@Override
+		public void visit(UIDTag tag) {
+			visited++;
+			// The overall running* map can include local. But the local map can't include non-local.
+			if((!local) && tag.wasLocal) return;
+			// Ordinary requests can be routed to an offered key.
+			// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
+			if(tag.currentlyFetchingOfferedKeyFrom(target) || tag.currentlyRoutingTo(target)) {
+				if(logMINOR) Logger.minor(RequestTracker.this, "Counting "+tag+" to "+tag.uid);
+				transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
+				transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
+				count++;
+			} else if(logDEBUG) Logger.debug(RequestTracker.this, "Not counting "+tag.uid);
 		}
 	}
 	
@@ -358,18 +263,21 @@ public class RequestTracker {
 		return slots;
 	}
 	
-	private void countRequestsWaitingForSlots(HashMap<Long, ? extends UIDTag> runningUIDs, WaitingForSlots slots) {
+	private void countRequestsWaitingForSlots(ShardedUIDMap<? extends UIDTag> runningUIDs, final WaitingForSlots slots) {
 		// FIXME use a counter, but that means make sure it always removes it when something bad happens.
 		
-		synchronized(runningUIDs) {
-			for(UIDTag tag : runningUIDs.values()) {
-				if(!tag.isWaitingForSlot()) continue;
+		runningUIDs.forEach(false, new ShardedUIDMap.Visitor<UIDTag>() {
+
+			@Override
+			public void visit(UIDTag tag) {
+				if(!tag.isWaitingForSlot()) return;
 				if(tag.isLocal())
 					slots.local++;
 				else
 					slots.remote++;
 			}
-		}
+
+		});
 	}
 
 	void reassignTagToSelf(UIDTag tag) {
@@ -377,50 +285,32 @@ public class RequestTracker {
 		tag.reassignToSelf();
 	}
 
-	private HashMap<Long, ? extends UIDTag> getTracker(boolean local, boolean ssk,
+	private ShardedUIDMap<? extends UIDTag> getTracker(boolean ssk,
 			boolean insert, boolean offer, boolean realTimeFlag) {
 		if(offer)
 			return getOfferTracker(ssk, realTimeFlag);
 		else if(insert)
-			return getInsertTracker(ssk, local, realTimeFlag);
+			return getInsertTracker(ssk, realTimeFlag);
 		else
-			return getRequestTracker(ssk, local, realTimeFlag);
+			return getRequestTracker(ssk, realTimeFlag);
 	}
 
 
-	private HashMap<Long, RequestTag> getRequestTracker(boolean ssk, boolean local, boolean realTimeFlag) {
-		if(realTimeFlag) {
-			if(ssk) {
-				return local ? runningLocalSSKGetUIDsRT : runningSSKGetUIDsRT;
-			} else {
-				return local ? runningLocalCHKGetUIDsRT : runningCHKGetUIDsRT;
-			}
-		} else {
-			if(ssk) {
-				return local ? runningLocalSSKGetUIDsBulk : runningSSKGetUIDsBulk;
-			} else {
-				return local ? runningLocalCHKGetUIDsBulk : runningCHKGetUIDsBulk;
-			}
-		}
+	private ShardedUIDMap<RequestTag> getRequestTracker(boolean ssk, boolean realTimeFlag) {
+		if(realTimeFlag)
+			return ssk ? runningSSKGetUIDsRT : runningCHKGetUIDsRT;
+		else
+			return ssk ? runningSSKGetUIDsBulk : runningCHKGetUIDsBulk;
 	}
 
-	private HashMap<Long, InsertTag> getInsertTracker(boolean ssk, boolean local, boolean realTimeFlag) {
-		if(realTimeFlag) {
-			if(ssk) {
-				return local ? runningLocalSSKPutUIDsRT : runningSSKPutUIDsRT;
-			} else {
-				return local ? runningLocalCHKPutUIDsRT : runningCHKPutUIDsRT;
-			}
-		} else {
-			if(ssk) {
-				return local ? runningLocalSSKPutUIDsBulk : runningSSKPutUIDsBulk;
-			} else {
-				return local ? runningLocalCHKPutUIDsBulk : runningCHKPutUIDsBulk;
-			}
-		}
+	private ShardedUIDMap<InsertTag> getInsertTracker(boolean ssk, boolean realTimeFlag) {
+		if(realTimeFlag)
+			return ssk ? runningSSKPutUIDsRT : runningCHKPutUIDsRT;
+		else
+			return ssk ? runningSSKPutUIDsBulk : runningCHKPutUIDsBulk;
 	}
 
-	private HashMap<Long, OfferReplyTag> getOfferTracker(boolean ssk, boolean realTimeFlag) {
+	private ShardedUIDMap<OfferReplyTag> getOfferTracker(boolean ssk, boolean realTimeFlag) {
 		if(realTimeFlag)
 			return ssk ? runningSSKOfferReplyUIDsRT : runningCHKOfferReplyUIDsRT;
 		else
@@ -456,16 +346,10 @@ public class RequestTracker {
 			}
 		}
 
-		private void checkUIDs(HashMap<Long, ? extends UIDTag> map) {
-			Long[] uids;
-			UIDTag[] tags;
-			synchronized(map) {
-				uids = map.keySet().toArray(new Long[map.size()]);
-				tags = map.values().toArray(new UIDTag[map.size()]);
-			}
+		private void checkUIDs(ShardedUIDMap<? extends UIDTag> map) {
 			long now = System.currentTimeMillis();
-			for(int i=0;i<uids.length;i++) {
-				tags[i].maybeLogStillPresent(now, uids[i]);
+			for(UIDTag tag : map.snapshot(false)) {
+				tag.maybeLogStillPresent(now, tag.uid);
 			}
 		}
 	};
@@ -487,172 +371,68 @@ public class RequestTracker {
 	}
 
 	private void onRestartOrDisconnect(PeerNode pn,
-			HashMap<Long, ? extends UIDTag> uids) {
-		synchronized(uids) {
-			for(UIDTag tag : uids.values()) {
-				if(tag.isSource(pn))
-					tag.onRestartOrDisconnectSource();
-			}
+			ShardedUIDMap<? extends UIDTag> uids) {
+		for(UIDTag tag : uids.snapshot(false)) {
+			if(tag.isSource(pn))
+				tag.onRestartOrDisconnectSource();
 		}
 	}
 	
 	public int getNumSSKRequests() {
-		int total = 0;
 		// running* include all requests, local and remote.
-		synchronized(runningSSKGetUIDsBulk) {
-			total += runningSSKGetUIDsBulk.size();
-		}
-		synchronized(runningSSKGetUIDsRT) {
-			total += runningSSKGetUIDsRT.size();
-		}
-		return total;
+		return runningSSKGetUIDsBulk.size() + runningSSKGetUIDsRT.size();
 	}
 
 	public int getNumCHKRequests() {
-		int total = 0;
-		synchronized(runningCHKGetUIDsBulk) {
-			total += runningCHKGetUIDsBulk.size();
-		}
-		synchronized(runningCHKGetUIDsRT) {
-			total += runningCHKGetUIDsRT.size();
-		}
-		return total;
+		return runningCHKGetUIDsBulk.size() + runningCHKGetUIDsRT.size();
 	}
 
 	public int getNumSSKInserts() {
-		int total = 0;
-		synchronized(runningSSKPutUIDsBulk) {
-			total += runningSSKPutUIDsBulk.size();
-		}
-		synchronized(runningSSKPutUIDsRT) {
-			total += runningSSKPutUIDsRT.size();
-		}
-		return total;
+		return runningSSKPutUIDsBulk.size() + runningSSKPutUIDsRT.size();
 	}
 
 	public int getNumCHKInserts() {
-		int total = 0;
-		synchronized(runningCHKPutUIDsBulk) {
-			total += runningCHKPutUIDsBulk.size();
-		}
-		synchronized(runningCHKPutUIDsRT) {
-			total += runningCHKPutUIDsRT.size();
-		}
-		return total;
+		return runningCHKPutUIDsBulk.size() + runningCHKPutUIDsRT.size();
 	}
 
 	public int getNumLocalSSKRequests() {
-		int total = 0;
-		synchronized(runningSSKGetUIDsBulk) {
-			total += runningLocalSSKGetUIDsBulk.size();
-		}
-		synchronized(runningSSKGetUIDsRT) {
-			total += runningLocalSSKGetUIDsRT.size();
-		}
-		return total;
+		return runningSSKGetUIDsBulk.localSize() + runningSSKGetUIDsRT.localSize();
 	}
 
 	public int getNumLocalCHKRequests() {
-		int total = 0;
-		synchronized(runningCHKGetUIDsBulk) {
-			total += runningLocalCHKGetUIDsBulk.size();
-		}
-		synchronized(runningCHKGetUIDsRT) {
-			total += runningLocalCHKGetUIDsRT.size();
-		}
-		return total;
+		return runningCHKGetUIDsBulk.localSize() + runningCHKGetUIDsRT.localSize();
 	}
 
 	public int getNumRemoteCHKRequests() {
-		int total = 0;
-		synchronized(runningCHKGetUIDsBulk) {
-			total += runningCHKGetUIDsBulk.size();
-			total -= runningLocalCHKGetUIDsBulk.size();
-		}
-		synchronized(runningCHKGetUIDsRT) {
-			total += runningCHKGetUIDsRT.size();
-			total -= runningLocalCHKGetUIDsRT.size();
-		}
-		return total;
+		return runningCHKGetUIDsBulk.remoteSize() + runningCHKGetUIDsRT.remoteSize();
 	}
 
 	public int getNumRemoteSSKRequests() {
-		int total = 0;
-		synchronized(runningSSKGetUIDsBulk) {
-			total += runningSSKGetUIDsBulk.size();
-			total -= runningLocalSSKGetUIDsBulk.size();
-		}
-		synchronized(runningSSKGetUIDsRT) {
-			total += runningSSKGetUIDsRT.size();
-			total -= runningLocalSSKGetUIDsRT.size();
-		}
-		return total;
+		return runningSSKGetUIDsBulk.remoteSize() + runningSSKGetUIDsRT.remoteSize();
 	}
 
 	public int getNumLocalCHKInserts() {
-		int total = 0;
-		synchronized(runningCHKPutUIDsBulk) {
-			total += runningLocalCHKPutUIDsBulk.size();
-		}
-		synchronized(runningCHKPutUIDsRT) {
-			total += runningLocalCHKPutUIDsRT.size();
-		}
-		return total;
+		return runningCHKPutUIDsBulk.localSize() + runningCHKPutUIDsRT.localSize();
 	}
 
 	public int getNumLocalSSKInserts() {
-		int total = 0;
-		synchronized(runningSSKPutUIDsBulk) {
-			total += runningLocalSSKPutUIDsBulk.size();
-		}
-		synchronized(runningSSKPutUIDsRT) {
-			total += runningLocalSSKPutUIDsRT.size();
-		}
-		return total;
+		return runningSSKPutUIDsBulk.localSize() + runningSSKPutUIDsRT.localSize();
 	}
 
 	public int getNumRemoteCHKInserts() {
-		int total = 0;
-		synchronized(runningCHKPutUIDsBulk) {
-			total += runningCHKPutUIDsBulk.size() - runningLocalCHKPutUIDsBulk.size();
-		}
-		synchronized(runningCHKPutUIDsRT) {
-			total += runningCHKPutUIDsRT.size() - runningLocalCHKPutUIDsRT.size();
-		}
-		return total;
+		return runningCHKPutUIDsBulk.remoteSize() + runningCHKPutUIDsRT.remoteSize();
 	}
 
 	public int getNumRemoteSSKInserts() {
-		int total = 0;
-		synchronized(runningSSKPutUIDsRT) {
-			total += runningSSKPutUIDsRT.size() - runningLocalSSKPutUIDsRT.size();
-		}
-		synchronized(runningSSKPutUIDsBulk) {
-			total += runningSSKPutUIDsBulk.size() - runningLocalSSKPutUIDsBulk.size();
-		}
-		return total;
+		return runningSSKPutUIDsBulk.remoteSize() + runningSSKPutUIDsRT.remoteSize();
 	}
 
 	public int getNumSSKOfferReplies() {
-		int total = 0;
-		synchronized(runningSSKOfferReplyUIDsRT) {
-			total += runningSSKOfferReplyUIDsRT.size();
-		}
-		synchronized(runningSSKOfferReplyUIDsBulk) {
-			total += runningSSKOfferReplyUIDsBulk.size();
-		}
-		return total;
+		return runningSSKOfferReplyUIDsRT.size() + runningSSKOfferReplyUIDsBulk.size();
 	}
 
 	public int getNumCHKOfferReplies() {
-		int total = 0;
-		synchronized(runningCHKOfferReplyUIDsRT) {
-			total += runningCHKOfferReplyUIDsRT.size();
-		}
-		synchronized(runningCHKOfferReplyUIDsBulk) {
-			total += runningCHKOfferReplyUIDsBulk.size();
-		}
-		return total;
+		return runningCHKOfferReplyUIDsRT.size() + runningCHKOfferReplyUIDsBulk.size();
 	}
 
 	public int getNumSSKOfferReplies(boolean realTimeFlag) {
@@ -664,24 +444,18 @@ public class RequestTracker {
 	}
 
 	public void addRunningUIDs(List<Long> list) {
-		addRunningUIDs(runningSSKGetUIDsRT, list);
-		addRunningUIDs(runningCHKGetUIDsRT, list);
-		addRunningUIDs(runningSSKPutUIDsRT, list);
-		addRunningUIDs(runningCHKPutUIDsRT, list);
-		addRunningUIDs(runningSSKOfferReplyUIDsRT, list);
-		addRunningUIDs(runningCHKOfferReplyUIDsRT, list);
-		addRunningUIDs(runningSSKGetUIDsBulk, list);
-		addRunningUIDs(runningCHKGetUIDsBulk, list);
-		addRunningUIDs(runningSSKPutUIDsBulk, list);
-		addRunningUIDs(runningCHKPutUIDsBulk, list);
-		addRunningUIDs(runningSSKOfferReplyUIDsBulk, list);
-		addRunningUIDs(runningCHKOfferReplyUIDsBulk, list);
-	}
-	
-	private void addRunningUIDs(HashMap<Long, ? extends UIDTag> runningUIDs, List<Long> list) {
-		synchronized(runningUIDs) {
-			list.addAll(runningUIDs.keySet());
-		}
+		runningSSKGetUIDsRT.addUIDs(list);
+		runningCHKGetUIDsRT.addUIDs(list);
+		runningSSKPutUIDsRT.addUIDs(list);
+		runningCHKPutUIDsRT.addUIDs(list);
+		runningSSKOfferReplyUIDsRT.addUIDs(list);
+		runningCHKOfferReplyUIDsRT.addUIDs(list);
+		runningSSKGetUIDsBulk.addUIDs(list);
+		runningCHKGetUIDsBulk.addUIDs(list);
+		runningSSKPutUIDsBulk.addUIDs(list);
+		runningCHKPutUIDsBulk.addUIDs(list);
+		runningSSKOfferReplyUIDsBulk.addUIDs(list);
+		runningCHKOfferReplyUIDsBulk.addUIDs(list);
 	}
 
 	public int getTotalRunningUIDsAlt() {
@@ -715,11 +489,9 @@ public class RequestTracker {
 	}
 
 	public RequestSender getTransferringRequestSenderByKey(NodeCHK key, boolean realTimeFlag) {
-		HashMap<NodeCHK, RequestSender> transferringRequestSenders =
+		ConcurrentHashMap<NodeCHK, RequestSender> transferringRequestSenders =
 			realTimeFlag ? transferringRequestSendersRT : transferringRequestSendersBulk;
-		synchronized(transferringRequestSenders) {
-			return transferringRequestSenders.get(key);
-		}
+		return transferringRequestSenders.get(key);
 	}
 	
 	/**
@@ -727,61 +499,38 @@ public class RequestTracker {
 	 * Should only be called by UIDTag.
 	 */
 	public void addTransferringSender(NodeCHK key, RequestSender sender) {
-		HashMap<NodeCHK, RequestSender> transferringRequestSenders =
+		ConcurrentHashMap<NodeCHK, RequestSender> transferringRequestSenders =
 			sender.realTimeFlag ? transferringRequestSendersRT : transferringRequestSendersBulk;
-		synchronized(transferringRequestSenders) {
-			transferringRequestSenders.put(key, sender);
-		}
+		transferringRequestSenders.put(key, sender);
 	}
 
 	/** Should only be called by RequestTag. */
 	void addTransferringRequestHandler(long id) {
-		synchronized(transferringRequestHandlers) {
-			transferringRequestHandlers.add(id);
-		}
+		transferringRequestHandlers.add(id);
 	}
 
 	/** Should only be called by RequestTag. */
 	void removeTransferringRequestHandler(long id) {
-		synchronized(transferringRequestHandlers) {
-			transferringRequestHandlers.remove(id);
-		}
+		transferringRequestHandlers.remove(id);
 	}
 
 	/**
 	 * Remove a sender from the set of currently transferring senders.
 	 */
 	public void removeTransferringSender(NodeCHK key, RequestSender sender) {
-		HashMap<NodeCHK, RequestSender> transferringRequestSenders =
+		ConcurrentHashMap<NodeCHK, RequestSender> transferringRequestSenders =
 			sender.realTimeFlag ? transferringRequestSendersRT : transferringRequestSendersBulk;
-		synchronized(transferringRequestSenders) {
-//			RequestSender rs = (RequestSender) transferringRequestSenders.remove(key);
-//			if(rs != sender) {
-//				Logger.error(this, "Removed "+rs+" should be "+sender+" for "+key+" in removeTransferringSender");
-//			}
-
-			// Since there is no request coalescing, we only remove it if it matches,
-			// and don't complain if it doesn't.
-			if(transferringRequestSenders.get(key) == sender)
-				transferringRequestSenders.remove(key);
-		}
+		// Since there is no request coalescing, we only remove it if it matches,
+		// and don't complain if it doesn't.
+		transferringRequestSenders.remove(key, sender);
 	}
 
 	public int getNumTransferringRequestSenders() {
-		int total = 0;
-		synchronized(transferringRequestSendersRT) {
-			total += transferringRequestSendersRT.size();
-		}
-		synchronized(transferringRequestSendersBulk) {
-			total += transferringRequestSendersBulk.size();
-		}
-		return total;
+		return transferringRequestSendersRT.size() + transferringRequestSendersBulk.size();
 	}
 
 	public int getNumTransferringRequestHandlers() {
-		synchronized(transferringRequestHandlers) {
-			return transferringRequestHandlers.size();
-		}
+		return transferringRequestHandlers.size();
 	}
 
 
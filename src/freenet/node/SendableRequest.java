@@ -210,6 +210,8 @@ public abstract class SendableRequest implements RandomGrabArrayItem {
 			// We should wake up the parent as well even if this item is not in cooldown.
 			if(rga != null)
 				context.cooldownTracker.clearCachedWakeup(rga, persistent, container);
+			if(!persistent)
+				sched.clearTransientCooldown(this);
 			// If we didn't actually get queued, we should wake up the starter, for the same reason we clearCachedWakeup().
 		}
 		sched.wakeStarter();
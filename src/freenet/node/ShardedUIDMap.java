@@ -0,0 +1,257 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ copyright.html for details. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import freenet.support.Logger;
+
+/**
+ * Running requests by UID, split into independently locked shards so that
+ * registering and removing requests on different threads doesn't contend on a
+ * single lock. Optionally also tracks which of the requests are local: a local
+ * request is always in both the overall table and the local table, and both are
+ * updated under the same shard lock, so the invariant holds at all times.
+ *
+ * Sizes are kept per shard and can be read without locking. snapshot() locks
+ * every shard, in order, so it sees a single point in time. forEach() locks one
+ * shard at a time and doesn't copy anything, so it is cheaper when the caller
+ * only needs to count.
+ * @param <T> The type of the tag, normally a subclass of UIDTag.
+ */
+class ShardedUIDMap<T> {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ShardedUIDMap.class);
+	}
+
+	/** Must be a power of 2. */
+	static final int DEFAULT_SHARDS = 16;
+
+	private static final class Shard<T> {
+		final HashMap<Long, T> all = new HashMap<Long, T>();
+		/** Null if we don't track local requests. */
+		final HashMap<Long, T> local;
+		volatile int size;
+		volatile int localSize;
+
+		Shard(boolean trackLocal) {
+			local = trackLocal ? new HashMap<Long, T>() : null;
+		}
+
+		private void updateSizes() {
+			size = all.size();
+			if(local != null) localSize = local.size();
+		}
+	}
+
+	/** Called by forEach() for each tag. */
+	interface Visitor<T> {
+		/** Called with the tag's shard locked, so must not add or remove requests. */
+		void visit(T tag);
+	}
+
+	private final Shard<T>[] shards;
+	private final int mask;
+	private final String name;
+
+	/**
+	 * @param name For logging.
+	 * @param trackLocal If true, keep a separate table of local requests.
+	 * @param shards The number of shards. Must be a power of 2.
+	 */
+	ShardedUIDMap(String name, boolean trackLocal, int shards) {
+		if(shards <= 0 || (shards & (shards - 1)) != 0)
+			throw new IllegalArgumentException("Shards must be a power of 2: "+shards);
+		this.name = name;
+		this.shards = newShardArray(shards);
+		for(int i=0;i<shards;i++)
+			this.shards[i] = new Shard<T>(trackLocal);
+		mask = shards - 1;
+	}
+
+	ShardedUIDMap(String name, boolean trackLocal) {
+		this(name, trackLocal, DEFAULT_SHARDS);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Shard<T>[] newShardArray(int length) {
+		return (Shard<T>[]) new Shard<?>[length];
+	}
+
+	private Shard<T> shardFor(long uid) {
+		// UIDs are random, but don't rely on the low bits.
+		int h = (int)(uid ^ (uid >>> 32));
+		h ^= (h >>> 16);
+		h ^= (h >>> 8);
+		return shards[h & mask];
+	}
+
+	/**
+	 * Register a request.
+	 * @param local If true, the request is local and is added to the local table
+	 * as well as the overall table.
+	 * @return False if a different tag is already registered for this UID, in
+	 * which case nothing is changed.
+	 */
+	boolean add(long uid, T tag, boolean local) {
+		Shard<T> shard = shardFor(uid);
+		if(local && shard.local == null) throw new IllegalArgumentException("Not tracking local requests");
+		synchronized(shard) {
+			T oldTag = shard.all.get(uid);
+			if(oldTag != null) {
+				if(oldTag == tag) {
+					Logger.error(this, "Tag already registered: "+tag+" on "+name, new Exception("debug"));
+				} else {
+					return false;
+				}
+			}
+			if(local) {
+				oldTag = shard.local.get(uid);
+				if(oldTag != null) {
+					if(oldTag == tag) {
+						Logger.error(this, "Tag already registered (local): "+tag+" on "+name, new Exception("debug"));
+					} else {
+						// Violates the invariant that local requests are always registered on the main (non-local) map too.
+						Logger.error(this, "Different tag already registered (local) EVEN THOUGH NOT ON MAIN MAP: "+tag+" on "+name, new Exception("debug"));
+						return false;
+					}
+				}
+				shard.local.put(uid, tag);
+			}
+			shard.all.put(uid, tag);
+			shard.updateSizes();
+		}
+		if(logMINOR) Logger.minor(this, "Locked "+uid+" local="+local+" on "+name);
+		return true;
+	}
+
+	/**
+	 * Remove a request, if the given tag is the one registered.
+	 * @param local If true, remove it from the local table too.
+	 * @param canFail If false, log an error if the tag isn't registered.
+	 * @return True if the tag was removed from the overall table.
+	 */
+	boolean remove(long uid, T tag, boolean local, boolean canFail) {
+		Shard<T> shard = shardFor(uid);
+		boolean removed;
+		synchronized(shard) {
+			T oldTag = shard.all.get(uid);
+			removed = oldTag == tag;
+			if(removed)
+				shard.all.remove(uid);
+			else if(canFail) {
+				if(logMINOR) Logger.minor(this, "Can fail and did fail: removing "+tag+" got "+oldTag+" for "+uid+" on "+name);
+			} else
+				Logger.error(this, "Removing "+tag+" for "+uid+" returned "+oldTag+" on "+name);
+			if(local && shard.local != null) {
+				oldTag = shard.local.get(uid);
+				if(oldTag == tag)
+					shard.local.remove(uid);
+				else if(canFail) {
+					if(logMINOR) Logger.minor(this, "Can fail and did fail (local): removing "+tag+" got "+oldTag+" for "+uid+" on "+name);
+				} else
+					Logger.error(this, "Removing "+tag+" for "+uid+" returned (local) "+oldTag+" on "+name);
+			}
+			shard.updateSizes();
+		}
+		if(logMINOR) Logger.minor(this, "Unlocked "+uid+" local="+local+" on "+name);
+		return removed;
+	}
+
+	T get(long uid) {
+		Shard<T> shard = shardFor(uid);
+		synchronized(shard) {
+			return shard.all.get(uid);
+		}
+	}
+
+	/** @return The number of requests, local and remote. Doesn't lock. */
+	int size() {
+		int total = 0;
+		for(Shard<T> shard : shards)
+			total += shard.size;
+		return total;
+	}
+
+	/** @return The number of local requests. Doesn't lock. */
+	int localSize() {
+		int total = 0;
+		for(Shard<T> shard : shards)
+			total += shard.localSize;
+		return total;
+	}
+
+	/** @return The number of remote requests. Doesn't lock. */
+	int remoteSize() {
+		int total = 0;
+		for(Shard<T> shard : shards)
+			total += shard.size - shard.localSize;
+		return total;
+	}
+
+	/**
+	 * Copy the tags at a single point in time. Holds every shard lock while
+	 * copying, but not while the caller looks at the tags.
+	 * @param localOnly If true, only return the local requests.
+	 */
+	ArrayList<T> snapshot(boolean localOnly) {
+		ArrayList<T> list = new ArrayList<T>(localOnly ? localSize() : size());
+		snapshot(0, localOnly, list);
+		return list;
+	}
+
+	private void snapshot(int i, boolean localOnly, ArrayList<T> list) {
+		Shard<T> shard = shards[i];
+		synchronized(shard) {
+			if(i < mask) {
+				snapshot(i+1, localOnly, list);
+			} else {
+				// Got all the locks.
+				for(Shard<T> s : shards) {
+					if(localOnly) {
+						if(s.local != null) list.addAll(s.local.values());
+					} else
+						list.addAll(s.all.values());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visit every tag. Not a snapshot: locks one shard at a time, while visiting the
+	 * tags in it.
+	 * @param localOnly If true, only visit the local requests.
+	 */
+	void forEach(boolean localOnly, Visitor<? super T> visitor) {
+		for(Shard<T> shard : shards) {
+			synchronized(shard) {
+				HashMap<Long, T> map = localOnly ? shard.local : shard.all;
+				if(map == null) continue;
+				for(T tag : map.values())
+					visitor.visit(tag);
+			}
+		}
+	}
+
+	/** Add the UIDs of all the requests to the list. Not a snapshot; locks one
+	 * shard at a time. */
+	void addUIDs(List<Long> list) {
+		for(Shard<T> shard : shards) {
+			synchronized(shard) {
+				list.addAll(shard.all.keySet());
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+name;
+	}
+
+}
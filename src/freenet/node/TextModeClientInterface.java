@@ -23,7 +23,6 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.text.NumberFormat;
-import java.util.HashMap;
 
 import freenet.client.ClientMetadata;
 import freenet.client.DefaultMIMETypes;
@@ -620,14 +619,13 @@ public class TextModeClientInterface implements Runnable {
         		}
         	}
         	
-        	HashMap<String, Object> bucketsByName =
-        		makeBucketsByName(line);
+        	File dir = new File(line);
         	
         	if(defaultFile == null) {
         		String[] defaultFiles = 
         			new String[] { "index.html", "index.htm", "default.html", "default.htm" };
         		for(String file: defaultFiles) {
-        			if(bucketsByName.containsKey(file)) {
+        			if(new File(dir, file).isFile()) {
         				defaultFile = file;
         				break;
         			}        				
@@ -636,7 +634,7 @@ public class TextModeClientInterface implements Runnable {
         	
         	FreenetURI uri;
 			try {
-				uri = client.insertManifest(insertURI, bucketsByName, defaultFile);
+				uri = client.insertManifest(insertURI, dir, defaultFile, RequestStarter.INTERACTIVE_PRIORITY_CLASS);
 				uri = uri.addMetaStrings(new String[] { "" });
 	        	outsb.append("=======================================================");
                 outsb.append("URI: ").append(uri);
@@ -1032,42 +1030,6 @@ public class TextModeClientInterface implements Runnable {
         return false;
     }
 
-	/**
-     * Create a map of String -> Bucket for every file in a directory
-     * and its subdirs.
-     */
-    private HashMap<String, Object> makeBucketsByName(String directory) {
-    	
-    	if (!directory.endsWith("/"))
-    		directory = directory + '/';
-    	File thisdir = new File(directory);
-    	
-    	System.out.println("Listing dir: "+thisdir);
-    	
-    	HashMap<String, Object> ret = new HashMap<String, Object>();
-    	
-    	File filelist[] = thisdir.listFiles();
-    	if(filelist == null)
-    		throw new IllegalArgumentException("No such directory");
-    	for(int i = 0 ; i < filelist.length ; i++) {
-                //   Skip unreadable files and dirs
-		//   Skip files nonexistant (dangling symlinks) - check last 
-	        if (filelist[i].canRead() && filelist[i].exists()) {   	 
-    		if (filelist[i].isFile()) {
-    			File f = filelist[i];
-    			
-    			FileBucket bucket = new FileBucket(f, true, false, false, false, false);
-    			
-    			ret.put(f.getName(), bucket);
-    		} else if(filelist[i].isDirectory()) {
-    			HashMap<String, Object> subdir = makeBucketsByName(directory + filelist[i].getName());
-    			ret.put(filelist[i].getName(), subdir);
-    		}
-		}
-    	}
-    	return ret;
-	}
-
     /**
      * @return A block of text, input from stdin, ending with a
      * . on a line by itself. Does some mangling for a fieldset if 
@@ -1169,7 +1131,7 @@ public class TextModeClientInterface implements Runnable {
 		}
         if(n.peers.addPeer(pn))
             System.out.println("Added peer: "+pn);
-        n.peers.writePeersDarknetUrgent();
+        n.peers.writePeersUrgent(false);
     }
 
 	/**
@@ -123,6 +123,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		fctx.maxOutputLength = maxOutputLength;
 		fctx.maxTempLength = maxOutputLength;
 		fctx.canWriteClientCache = writeToClientCache;
+		fctx.preallocateSplitfileStorage = server.core.preallocateSplitfileStorage();
 		// FIXME fctx.ignoreUSKDatehints = ignoreUSKDatehints;
 		Bucket ret = null;
 		this.returnType = returnType;
@@ -180,6 +181,10 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		fctx.canWriteClientCache = message.writeToClientCache;
 		fctx.filterData = message.filterData;
 		fctx.ignoreUSKDatehints = message.ignoreUSKDatehints;
+		if(message.preallocateStorage != null)
+			fctx.preallocateSplitfileStorage = message.preallocateStorage;
+		else
+			fctx.preallocateSplitfileStorage = server.core.preallocateSplitfileStorage();
 
 		if(message.allowedMIMETypes != null) {
 			fctx.allowedMIMETypes = new HashSet<String>();
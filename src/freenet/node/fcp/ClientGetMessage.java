@@ -43,6 +43,8 @@ import freenet.support.io.BucketTools;
  * ClientToken=hello // returned in PersistentGet, a hint to the client, so the client 
  *    doesn't need to maintain its own state
  * IgnoreUSKDatehints=false // true = don't use USK datehints
+ * PreallocateStorage=false // true = put a transient splitfile in one preallocated temp file
+ *    and decode in place; default is the node's preallocateSplitfileStorage setting
  * EndMessage
  */
 public class ClientGetMessage extends BaseDataCarryingMessage {
@@ -70,6 +72,8 @@ public class ClientGetMessage extends BaseDataCarryingMessage {
 	final boolean filterData;
 	final boolean realTimeFlag;
 	final boolean ignoreUSKDatehints;
+	/** Null means use the node's default. */
+	final Boolean preallocateStorage;
 	private Bucket initialMetadata;
 	private final long initialMetadataLength;
 	
@@ -225,6 +229,10 @@ public class ClientGetMessage extends BaseDataCarryingMessage {
 		realTimeFlag = fs.getBoolean("RealTimeFlag", false);
 		initialMetadataLength = fs.getLong("InitialMetadata.DataLength", 0);
 		ignoreUSKDatehints = fs.getBoolean("IgnoreUSKDatehints", false);
+		if(fs.get("PreallocateStorage") != null)
+			preallocateStorage = fs.getBoolean("PreallocateStorage", false);
+		else
+			preallocateStorage = null;
 	}
 
 	@Override
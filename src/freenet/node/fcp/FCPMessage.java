@@ -98,6 +98,8 @@ public abstract class FCPMessage {
 			return new GenerateSSKMessage(fs);
 		if(name.equals(GetConfig.NAME))
 			return new GetConfig(fs);
+		if(name.equals(GetInstrumentation.NAME))
+			return new GetInstrumentation(fs);
 		if(name.equals(GetNode.NAME))
 			return new GetNode(fs);
 		if(name.equals(GetPluginInfo.NAME))
@@ -112,6 +114,8 @@ public abstract class FCPMessage {
 			return new ListPeerNotesMessage(fs);
 		if(name.equals(ListPersistentRequestsMessage.NAME))
 			return new ListPersistentRequestsMessage(fs);
+		if(name.equals(ListRequestStatusMessage.NAME))
+			return new ListRequestStatusMessage(fs);
 		if(name.equals(LoadPlugin.NAME))
 			return new LoadPlugin(fs);
 		if(name.equals(ModifyConfig.NAME))
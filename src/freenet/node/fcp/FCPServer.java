@@ -514,6 +514,43 @@ public class FCPServer implements Runnable, DownloadCache {
 		return v.toArray(new RequestStatus[v.size()]);
 	}
 
+	/** @return Snapshots of the status of the requests on the global queue: the transient
+	 * requests, and the persistent requests if the database is available. For paging
+	 * through with RequestStatusSnapshot.query(). */
+	public RequestStatusSnapshot[] getGlobalRequestSnapshots() throws DatabaseDisabledException {
+		if(core.killedDatabase()) throw new DatabaseDisabledException();
+		if(globalForeverClient == null)
+			return new RequestStatusSnapshot[] { globalRebootClient.getRequestStatusCache().getSnapshot() };
+		return new RequestStatusSnapshot[] { 
+				globalRebootClient.getRequestStatusCache().getSnapshot(),
+				globalForeverClient.getRequestStatusCache().getSnapshot() };
+	}
+
+	/** @return The requests on the global queue which have changed since the given ETag,
+	 * from getGlobalRequestSnapshots() or an earlier call. Null to get everything. */
+	public RequestStatusCache.Delta getGlobalRequestChanges(String etag) throws DatabaseDisabledException {
+		if(core.killedDatabase()) throw new DatabaseDisabledException();
+		RequestStatusCache[] caches;
+		if(globalForeverClient == null)
+			caches = new RequestStatusCache[] { globalRebootClient.getRequestStatusCache() };
+		else
+			caches = new RequestStatusCache[] { globalRebootClient.getRequestStatusCache(),
+					globalForeverClient.getRequestStatusCache() };
+		String[] etags = etag == null ? new String[0] : etag.split("\\.");
+		RequestStatusCache.Delta[] deltas = new RequestStatusCache.Delta[caches.length];
+		boolean full = false;
+		for(int i=0;i<caches.length;i++) {
+			deltas[i] = caches[i].getChangesSince(i < etags.length ? etags[i] : null);
+			full |= deltas[i].full;
+		}
+		if(full) {
+			// The client will throw away what it has, so it needs everything from all of them.
+			for(int i=0;i<caches.length;i++)
+				if(!deltas[i].full) deltas[i] = caches[i].getChangesSince(null);
+		}
+		return RequestStatusCache.Delta.combine(deltas);
+	}
+
 	public boolean removeGlobalRequestBlocking(final String identifier) throws MessageInvalidException, DatabaseDisabledException {
 		if(!globalRebootClient.removeByIdentifier(identifier, true, this, null, core.clientContext)) {
 			final Object sync = new Object();
@@ -0,0 +1,58 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.node.Node;
+import freenet.node.stats.Instrumentation;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Ask for the node's latency histograms. The node replies with InstrumentationData.
+ * Reset=true clears the histograms after reading them, so that the next GetInstrumentation
+ * covers only the time in between. WithBuckets=true includes the non-empty buckets.
+ */
+public class GetInstrumentation extends FCPMessage {
+
+	final boolean reset;
+	final boolean withBuckets;
+	static final String NAME = "GetInstrumentation";
+	final String identifier;
+	
+	public GetInstrumentation(SimpleFieldSet fs) {
+		reset = fs.getBoolean("Reset", false);
+		withBuckets = fs.getBoolean("WithBuckets", false);
+		identifier = fs.get("Identifier");
+		fs.removeValue("Identifier");
+	}
+	
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if(identifier != null)
+			fs.putSingle("Identifier", identifier);
+		return fs;
+	}
+	
+	@Override
+	public String getName() {
+		return NAME;
+	}
+	
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		if(!handler.hasFullAccess()) {
+			throw new MessageInvalidException(ProtocolErrorMessage.ACCESS_DENIED, "GetInstrumentation requires full access", identifier, false);
+		}
+		handler.outputHandler.queue(new InstrumentationData(Instrumentation.snapshot(reset), withBuckets, identifier));
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		container.delete(this);
+	}
+	
+}
@@ -0,0 +1,90 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.node.Node;
+import freenet.node.stats.Instrumentation;
+import freenet.support.SimpleFieldSet;
+import freenet.support.math.LatencyHistogram;
+import freenet.support.math.StripedHistogram;
+
+/**
+ * Reply to GetInstrumentation. All times are in nanoseconds, except Since and Time, which
+ * are in milliseconds since the epoch. For each point, e.g. CloserPeer:
+ * <pre>
+ * CloserPeer.Count=1234
+ * CloserPeer.Sum=...
+ * CloserPeer.Max=...
+ * CloserPeer.P50=...
+ * CloserPeer.P90=...
+ * CloserPeer.P99=...
+ * CloserPeer.P999=...
+ * CloserPeer.Buckets.&lt;upper bound&gt;=&lt;count&gt;
+ * </pre>
+ * The percentiles are upper bounds, accurate to about 6%. Buckets are only included if
+ * asked for, and only the non-empty ones.
+ */
+public class InstrumentationData extends FCPMessage {
+	static final String NAME = "InstrumentationData";
+
+	final Instrumentation.Report report;
+	final boolean withBuckets;
+	final String identifier;
+
+	public InstrumentationData(Instrumentation.Report report, boolean withBuckets, String identifier) {
+		this.report = report;
+		this.withBuckets = withBuckets;
+		this.identifier = identifier;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.put("Since", report.since);
+		fs.put("Time", report.time);
+		for(Instrumentation point : Instrumentation.values()) {
+			StripedHistogram.Snapshot snapshot = report.get(point);
+			SimpleFieldSet sub = new SimpleFieldSet(true);
+			sub.put("Count", snapshot.count());
+			sub.put("Sum", snapshot.sum());
+			sub.put("Max", snapshot.max());
+			sub.put("P50", snapshot.percentile(0.5));
+			sub.put("P90", snapshot.percentile(0.9));
+			sub.put("P99", snapshot.percentile(0.99));
+			sub.put("P999", snapshot.percentile(0.999));
+			if(withBuckets) {
+				SimpleFieldSet buckets = new SimpleFieldSet(true);
+				for(int i=0;i<LatencyHistogram.BUCKETS;i++) {
+					long count = snapshot.bucketCount(i);
+					if(count != 0)
+						buckets.put(Long.toString(LatencyHistogram.bucketUpperBound(i)), count);
+				}
+				sub.tput("Buckets", buckets);
+			}
+			fs.put(point.fcpName, sub);
+		}
+		if(identifier != null)
+			fs.putSingle("Identifier", identifier);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "InstrumentationData goes from server to client not the other way around", identifier, false);
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		container.delete(this);
+	}
+
+}
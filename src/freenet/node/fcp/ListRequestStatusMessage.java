@@ -0,0 +1,126 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.async.DatabaseDisabledException;
+import freenet.node.Node;
+import freenet.node.fcp.RequestStatusSnapshot.Filter;
+import freenet.node.fcp.RequestStatusSnapshot.SortOrder;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * List the status of requests on the global queue, from the status cache, without 
+ * touching the database. Unlike ListPersistentRequests, which sends every request, this
+ * returns one page, or only the requests which have changed since the client last asked.
+ * 
+ * ListRequestStatus
+ * [Identifier=id] // Echoed in the reply
+ * [SortBy=Priority|Progress|Name] // Default Priority
+ * [Reversed=false]
+ * [Filter=All|Downloads|Uploads|Running|Succeeded|Failed] // Default All
+ * [Offset=0]
+ * [MaxResults=100]
+ * [IfNoneMatch=etag] // If nothing has changed, reply NotModified=true with no requests
+ * [Since=etag] // Only requests changed or removed since then; ignores paging
+ * EndMessage
+ * 
+ * The reply is a single RequestStatusList.
+ */
+public class ListRequestStatusMessage extends FCPMessage {
+
+	static final String NAME = "ListRequestStatus";
+	static final int DEFAULT_MAX_RESULTS = 100;
+	static final int MAX_RESULTS = 1000;
+	
+	final String identifier;
+	final SortOrder sortBy;
+	final boolean reversed;
+	final Filter filter;
+	final int offset;
+	final int maxResults;
+	final String ifNoneMatch;
+	final String since;
+	
+	public ListRequestStatusMessage(SimpleFieldSet fs) throws MessageInvalidException {
+		identifier = fs.get("Identifier");
+		try {
+			sortBy = SortOrder.valueOf(fs.get("SortBy") == null ? "PRIORITY" : fs.get("SortBy").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Unknown SortBy "+fs.get("SortBy"), identifier, true);
+		}
+		try {
+			filter = Filter.valueOf(fs.get("Filter") == null ? "ALL" : fs.get("Filter").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Unknown Filter "+fs.get("Filter"), identifier, true);
+		}
+		reversed = fs.getBoolean("Reversed", false);
+		try {
+			String s = fs.get("Offset");
+			offset = s == null ? 0 : Integer.parseInt(s);
+			s = fs.get("MaxResults");
+			maxResults = s == null ? DEFAULT_MAX_RESULTS : Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			throw new MessageInvalidException(ProtocolErrorMessage.ERROR_PARSING_NUMBER, e.toString(), identifier, true);
+		}
+		if(offset < 0)
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Offset must not be negative", identifier, true);
+		if(maxResults < 0 || maxResults > MAX_RESULTS)
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "MaxResults must be between 0 and "+MAX_RESULTS, identifier, true);
+		ifNoneMatch = fs.get("IfNoneMatch");
+		since = fs.get("Since");
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if(identifier != null)
+			fs.putSingle("Identifier", identifier);
+		fs.putSingle("SortBy", sortBy.name());
+		fs.put("Reversed", reversed);
+		fs.putSingle("Filter", filter.name());
+		fs.put("Offset", offset);
+		fs.put("MaxResults", maxResults);
+		if(ifNoneMatch != null)
+			fs.putSingle("IfNoneMatch", ifNoneMatch);
+		if(since != null)
+			fs.putSingle("Since", since);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		if(!handler.getRebootClient().watchGlobal)
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "ListRequestStatus lists the global queue, send WatchGlobal first", identifier, true);
+		FCPServer server = handler.server;
+		try {
+			if(since != null) {
+				handler.outputHandler.queue(new RequestStatusListMessage(identifier, server.getGlobalRequestChanges(since)));
+				return;
+			}
+			RequestStatusSnapshot[] snapshots = server.getGlobalRequestSnapshots();
+			if(ifNoneMatch != null && ifNoneMatch.equals(RequestStatusSnapshot.getETag(snapshots))) {
+				handler.outputHandler.queue(new RequestStatusListMessage(identifier, ifNoneMatch));
+				return;
+			}
+			handler.outputHandler.queue(new RequestStatusListMessage(identifier, 
+					RequestStatusSnapshot.query(snapshots, sortBy, reversed, filter, offset, maxResults)));
+		} catch (DatabaseDisabledException e) {
+			throw new MessageInvalidException(ProtocolErrorMessage.PERSISTENCE_DISABLED, "Persistence disabled", identifier, true);
+		}
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		container.delete(this);
+	}
+
+}
@@ -2,7 +2,12 @@ package freenet.node.fcp;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.client.ClientMetadata;
 import freenet.client.InsertContext;
@@ -15,7 +20,14 @@ import freenet.support.MultiValueTable;
 import freenet.support.api.Bucket;
 import freenet.support.io.NoFreeBucket;
 
-/** Per-FCPClient cache of status of requests. */
+/** Per-FCPClient cache of status of requests.
+ * 
+ * Every change bumps a version number. Readers such as the queue page and FCP
+ * ListRequestStatus don't copy the whole cache: they get an immutable
+ * RequestStatusSnapshot, which is only rebuilt when something has changed, and then only
+ * re-clones the requests which changed. Clients which have seen an earlier version can 
+ * ask for just the requests which have changed or been removed since, see 
+ * getChangesSince(). */
 public class RequestStatusCache {
 	
     private static volatile boolean logMINOR;
@@ -23,6 +35,12 @@ public class RequestStatusCache {
 	static {
 		Logger.registerClass(RequestStatusCache.class);
 	}
+	
+	/** Remember this many removed identifiers for getChangesSince(). Beyond that, a client
+	 * which is that far behind must fetch everything. */
+	static final int MAX_REMOVED = 1000;
+	
+	private static final AtomicInteger cacheCounter = new AtomicInteger();
 
 	private final ArrayList<RequestStatus> downloads;
 	private final ArrayList<RequestStatus> uploads;
@@ -30,12 +48,52 @@ public class RequestStatusCache {
 	private final MultiValueTable<FreenetURI, RequestStatus> downloadsByURI;
 	private final MultiValueTable<FreenetURI, RequestStatus> uploadsByFinalURI;
 	
+	/** Unique to this cache, and to this run of the node. Part of the ETag. */
+	private final String cacheID;
+	/** Incremented, while holding the lock, on every change. */
+	private volatile long version;
+	/** The version at which each request last changed. */
+	private final HashMap<String, Long> changedAt;
+	/** Recently removed identifiers, and when, oldest first. */
+	private final LinkedHashMap<String, Long> removedAt;
+	/** getChangesSince() can only return a delta from this version onwards. */
+	private long oldestDeltaVersion;
+	/** Identifiers which have changed since the last snapshot. */
+	private HashSet<String> dirty;
+	/** The clones in the last snapshot, by identifier. */
+	private final HashMap<String, RequestStatus> clones;
+	private volatile RequestStatusSnapshot snapshot;
+	
 	RequestStatusCache() {
 		downloads = new ArrayList<RequestStatus>();
 		uploads = new ArrayList<RequestStatus>();
 		requestsByIdentifier = new HashMap<String, RequestStatus>();
 		downloadsByURI = new MultiValueTable<FreenetURI, RequestStatus>();
 		uploadsByFinalURI = new MultiValueTable<FreenetURI, RequestStatus>();
+		cacheID = Long.toString(System.currentTimeMillis(), 36) + Integer.toString(cacheCounter.incrementAndGet(), 36);
+		changedAt = new HashMap<String, Long>();
+		removedAt = new LinkedHashMap<String, Long>();
+		dirty = new HashSet<String>();
+		clones = new HashMap<String, RequestStatus>();
+	}
+	
+	/** Record that a request has been added, changed or removed. Caller must hold the lock. */
+	private void changed(String identifier) {
+		long v = version + 1;
+		version = v;
+		dirty.add(identifier);
+		if(requestsByIdentifier.containsKey(identifier)) {
+			changedAt.put(identifier, v);
+			removedAt.remove(identifier);
+		} else {
+			changedAt.remove(identifier);
+			removedAt.put(identifier, v);
+			if(removedAt.size() > MAX_REMOVED) {
+				Iterator<Map.Entry<String, Long>> it = removedAt.entrySet().iterator();
+				oldestDeltaVersion = it.next().getValue();
+				it.remove();
+			}
+		}
 	}
 	
 	synchronized void addDownload(DownloadRequestStatus status) {
@@ -46,6 +104,7 @@ public class RequestStatusCache {
 		assert(old == null);
 		downloads.add(status);
 		downloadsByURI.put(status.getURI(), status);
+		changed(status.getIdentifier());
 	}
 	
 	synchronized void addUpload(UploadRequestStatus status) {
@@ -58,6 +117,7 @@ public class RequestStatusCache {
 		FreenetURI uri = status.getURI();
 		if(uri != null)
 			uploadsByFinalURI.put(uri, status);
+		changed(status.getIdentifier());
 	}
 	
 	synchronized void finishedDownload(String identifier, boolean success, long dataSize, 
@@ -66,6 +126,7 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.setFinished(success, dataSize, mimeType, failureCode, failureReasonLong,
 				failureReasonShort, dataShadow, filtered);
+		changed(identifier);
 	}
 	
 	synchronized void gotFinalURI(String identifier, FreenetURI finalURI) {
@@ -75,6 +136,7 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinalURI(finalURI);
+		changed(identifier);
 	}
 	
 	synchronized void finishedUpload(String identifier, boolean success,  
@@ -86,12 +148,14 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinished(success, finalURI, failureCode, failureReasonShort, failureReasonLong);
+		changed(identifier);
 	}
 	
 	synchronized void updateStatus(String identifier, SplitfileProgressEvent event) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateStatus(event);
+		changed(identifier);
 	}
 	
 	synchronized void updateDetectedCompatModes(String identifier, InsertContext.CompatibilityMode[] compatModes, byte[] splitfileKey, boolean dontCompress) {
@@ -99,11 +163,13 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateDetectedCompatModes(compatModes, dontCompress);
 		status.updateDetectedSplitfileKey(splitfileKey);
+		changed(identifier);
 	}
 	
 	synchronized void removeByIdentifier(String identifier) {
 		RequestStatus status = requestsByIdentifier.remove(identifier);
 		if(status == null) return;
+		changed(identifier);
 		if(status instanceof DownloadRequestStatus) {
 			downloads.remove(status);
 			FreenetURI uri = status.getURI();
@@ -118,6 +184,10 @@ public class RequestStatusCache {
 	}
 
 	synchronized void clear() {
+		for(String identifier : new ArrayList<String>(requestsByIdentifier.keySet())) {
+			requestsByIdentifier.remove(identifier);
+			changed(identifier);
+		}
 		downloads.clear();
 		uploads.clear();
 		requestsByIdentifier.clear();
@@ -125,36 +195,147 @@ public class RequestStatusCache {
 		uploadsByFinalURI.clear();
 	}
 
-	public void updateCompressionStatus(String identifier,
+	public synchronized void updateCompressionStatus(String identifier,
 			COMPRESS_STATE compressing) {
 		UploadFileRequestStatus status = (UploadFileRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateCompressionStatus(compressing);
+		changed(identifier);
 	}
 
-	public synchronized void addTo(List<RequestStatus> status) {
-		// FIXME is it better to just synchronize on the RequestStatusCache when
-		// rendering the downloads page, and when updating? Ugly though ...
-		for(RequestStatus req : requestsByIdentifier.values())
-			status.add(req.clone());
+	/** Add clones of all the requests to the list. The clones are shared with other 
+	 * callers and must not be modified. */
+	public void addTo(List<RequestStatus> status) {
+		for(RequestStatus req : getSnapshot().getRequests())
+			status.add(req);
+	}
+	
+	/** @return The current version. Changes whenever any request in the cache changes. */
+	public long getVersion() {
+		return version;
+	}
+	
+	/** Get an immutable snapshot of the current status of all the requests. Does not lock
+	 * anything if nothing has changed since the last call. */
+	public RequestStatusSnapshot getSnapshot() {
+		RequestStatusSnapshot s = snapshot;
+		if(s != null && s.version == version) return s;
+		synchronized(this) {
+			return innerGetSnapshot();
+		}
+	}
+	
+	private RequestStatusSnapshot innerGetSnapshot() {
+		RequestStatusSnapshot s = snapshot;
+		if(s != null && s.version == version) return s;
+		// Only clone the requests which have changed.
+		ArrayList<RequestStatus> changedRequests = new ArrayList<RequestStatus>(dirty.size());
+		for(String identifier : dirty) {
+			RequestStatus status = requestsByIdentifier.get(identifier);
+			if(status == null) {
+				clones.remove(identifier);
+			} else {
+				RequestStatus clone = status.clone();
+				clones.put(identifier, clone);
+				changedRequests.add(clone);
+			}
+		}
+		s = new RequestStatusSnapshot(cacheID, version, 
+				clones.values().toArray(new RequestStatus[clones.size()]), dirty, 
+				changedRequests.toArray(new RequestStatus[changedRequests.size()]), snapshot);
+		dirty = new HashSet<String>();
+		snapshot = s;
+		return s;
+	}
+	
+	/** The requests which have changed since some earlier version. */
+	public static final class Delta {
+		/** The ETag of the current version, to pass in next time. */
+		public final String etag;
+		/** If true, the version asked for was too old or not from this cache, and changed
+		 * contains every request. Anything else the client had should be discarded. */
+		public final boolean full;
+		/** Requests added or changed. Shared, must not be modified. */
+		public final RequestStatus[] changed;
+		/** Identifiers of requests which have been removed. */
+		public final String[] removed;
+		
+		Delta(String etag, boolean full, RequestStatus[] changed, String[] removed) {
+			this.etag = etag;
+			this.full = full;
+			this.changed = changed;
+			this.removed = removed;
+		}
+		
+		/** Combine deltas from several caches, with the combined ETag. */
+		static Delta combine(Delta[] deltas) {
+			StringBuilder etag = new StringBuilder();
+			boolean full = false;
+			ArrayList<RequestStatus> changed = new ArrayList<RequestStatus>();
+			ArrayList<String> removed = new ArrayList<String>();
+			for(int i=0;i<deltas.length;i++) {
+				if(i != 0) etag.append('.');
+				etag.append(deltas[i].etag);
+				full |= deltas[i].full;
+				for(RequestStatus status : deltas[i].changed) changed.add(status);
+				for(String identifier : deltas[i].removed) removed.add(identifier);
+			}
+			return new Delta(etag.toString(), full, changed.toArray(new RequestStatus[changed.size()]),
+					removed.toArray(new String[removed.size()]));
+		}
+	}
+	
+	/**
+	 * Get the requests which have changed since the version with the given ETag.
+	 * @param etag An ETag from getSnapshot().getETag() or an earlier Delta, or null to
+	 * get everything.
+	 */
+	public synchronized Delta getChangesSince(String etag) {
+		RequestStatusSnapshot s = innerGetSnapshot();
+		long since = -1;
+		if(etag != null && etag.startsWith(cacheID + "-")) {
+			try {
+				since = Long.parseLong(etag.substring(cacheID.length() + 1));
+			} catch (NumberFormatException e) {
+				since = -1;
+			}
+		}
+		if(since < oldestDeltaVersion || since > s.version) {
+			return new Delta(s.getETag(), true, s.getRequests(), new String[0]);
+		}
+		ArrayList<RequestStatus> changed = new ArrayList<RequestStatus>();
+		for(Map.Entry<String, Long> entry : changedAt.entrySet()) {
+			if(entry.getValue() > since)
+				changed.add(clones.get(entry.getKey()));
+		}
+		ArrayList<String> removed = new ArrayList<String>();
+		for(Map.Entry<String, Long> entry : removedAt.entrySet()) {
+			if(entry.getValue() > since)
+				removed.add(entry.getKey());
+		}
+		return new Delta(s.getETag(), false, changed.toArray(new RequestStatus[changed.size()]),
+				removed.toArray(new String[removed.size()]));
 	}
 
 	public synchronized void updateExpectedMIME(String identifier, String foundDataMimeType) {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedMIME(foundDataMimeType);
+		changed(identifier);
 	}
 
 	public synchronized void updateExpectedDataLength(String identifier, long expectedDataLength) {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedDataLength(expectedDataLength);
+		changed(identifier);
 	}
 
-	public void setPriority(String identifier, short newPriorityClass) {
+	public synchronized void setPriority(String identifier, short newPriorityClass) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.setPriority(newPriorityClass);
+		changed(identifier);
 	}
 	
 	/** Restart a request. Caller should call ,false first, at which point we setStarted,
@@ -170,6 +351,7 @@ public class RequestStatusCache {
 		else
 			// Already restarted, just set started = true.
 			status.setStarted(started);
+		changed(identifier);
 	}
 	
 	/** Restart a download. Caller should call ,false first, at which point we setStarted,
@@ -185,6 +367,7 @@ public class RequestStatusCache {
 			status.redirect(redirect);
 			downloadsByURI.put(redirect, status);
 		}
+		changed(identifier);
 	}
 
 	public synchronized CacheFetchResult getShadowBucket(FreenetURI key, boolean noFilter) {
@@ -0,0 +1,156 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.keys.FreenetURI;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Reply to ListRequestStatus.
+ * 
+ * RequestStatusList
+ * [Identifier=id]
+ * ETag=etag // Pass back as IfNoneMatch or Since
+ * NotModified=false
+ * Delta=false // True if this is a reply to Since
+ * Full=false // For a delta, if true, discard everything and use only these requests
+ * Total=123 // Requests matching the filter, not set for a delta
+ * Offset=0
+ * Count=2
+ * Request.0.Identifier=...
+ * Request.0.Type=Get|Put|PutDir
+ * Request.0.PriorityClass=2
+ * ... etc ...
+ * Removed.0=identifier // For a delta only
+ * EndMessage
+ */
+public class RequestStatusListMessage extends FCPMessage {
+
+	static final String NAME = "RequestStatusList";
+	
+	private final String identifier;
+	private final String etag;
+	private final boolean notModified;
+	private final boolean delta;
+	private final boolean full;
+	private final int total;
+	private final int offset;
+	private final RequestStatus[] requests;
+	private final String[] removed;
+	
+	/** Not modified since the given ETag. */
+	RequestStatusListMessage(String identifier, String etag) {
+		this.identifier = identifier;
+		this.etag = etag;
+		this.notModified = true;
+		this.delta = false;
+		this.full = false;
+		this.total = -1;
+		this.offset = 0;
+		this.requests = new RequestStatus[0];
+		this.removed = new String[0];
+	}
+	
+	RequestStatusListMessage(String identifier, RequestStatusSnapshot.Page page) {
+		this.identifier = identifier;
+		this.etag = page.etag;
+		this.notModified = false;
+		this.delta = false;
+		this.full = false;
+		this.total = page.total;
+		this.offset = page.offset;
+		this.requests = page.requests;
+		this.removed = new String[0];
+	}
+	
+	RequestStatusListMessage(String identifier, RequestStatusCache.Delta changes) {
+		this.identifier = identifier;
+		this.etag = changes.etag;
+		this.notModified = false;
+		this.delta = true;
+		this.full = changes.full;
+		this.total = -1;
+		this.offset = 0;
+		this.requests = changes.changed;
+		this.removed = changes.removed;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if(identifier != null)
+			fs.putSingle("Identifier", identifier);
+		fs.putSingle("ETag", etag);
+		fs.put("NotModified", notModified);
+		fs.put("Delta", delta);
+		if(delta)
+			fs.put("Full", full);
+		if(total >= 0)
+			fs.put("Total", total);
+		fs.put("Offset", offset);
+		fs.put("Count", requests.length);
+		SimpleFieldSet list = new SimpleFieldSet(true);
+		for(int i=0;i<requests.length;i++)
+			list.put(Integer.toString(i), toFieldSet(requests[i]));
+		fs.tput("Request", list);
+		for(int i=0;i<removed.length;i++)
+			fs.putSingle("Removed."+i, removed[i]);
+		return fs;
+	}
+	
+	static SimpleFieldSet toFieldSet(RequestStatus status) {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", status.getIdentifier());
+		if(status instanceof DownloadRequestStatus)
+			fs.putSingle("Type", "Get");
+		else if(status instanceof UploadDirRequestStatus)
+			fs.putSingle("Type", "PutDir");
+		else
+			fs.putSingle("Type", "Put");
+		FreenetURI uri = status.getURI();
+		if(uri != null)
+			fs.putSingle("URI", uri.toString(false, false));
+		fs.put("PriorityClass", status.getPriority());
+		fs.putSingle("PersistenceType", status.isPersistentForever() ? "forever" : "reboot");
+		fs.put("Started", status.isStarted());
+		fs.put("Finished", status.hasFinished());
+		fs.put("Succeeded", status.hasSucceeded());
+		fs.put("Total", status.getTotalBlocks());
+		fs.put("Required", status.getMinBlocks());
+		fs.put("Failed", status.getFailedBlocks());
+		fs.put("FatallyFailed", status.getFatalyFailedBlocks());
+		fs.put("SucceededBlocks", status.getFetchedBlocks());
+		fs.put("FinalizedTotal", status.isTotalFinalized());
+		fs.put("LastActivity", status.getLastActivity());
+		long size = status.getDataSize();
+		if(size >= 0)
+			fs.put("DataLength", size);
+		if(status.hasFinished() && !status.hasSucceeded()) {
+			String reason = status.getFailureReason(false);
+			if(reason != null)
+				fs.putSingle("ShortCodeDescription", reason);
+		}
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, false);
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		container.delete(this);
+	}
+
+}
@@ -0,0 +1,313 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import freenet.support.Fields;
+
+/**
+ * Immutable view of a RequestStatusCache at one version. Holds clones of the
+ * RequestStatus'es, so it can be read without any locking, for as long as the caller
+ * likes, while the cache carries on changing.
+ *
+ * Sorted views are built lazily, once per snapshot and sort order. If the previous
+ * snapshot already had that order sorted, we merge in only the requests which changed
+ * since then, rather than sorting everything again, so a page load on a big queue where
+ * a few requests have made progress costs O(n), and a page load where nothing has
+ * changed costs only the rows on the page.
+ */
+public final class RequestStatusSnapshot {
+
+	/** Orders which are indexed. All of them break ties on the identifier, so the order
+	 * is total and pages are stable. */
+	public enum SortOrder {
+		/** Priority class, most important first, then identifier. The default order on the
+		 * queue page. */
+		PRIORITY,
+		/** Least progress first; finalized requests after those still finding out how big
+		 * they are. */
+		PROGRESS,
+		/** Identifier, case insensitive. */
+		NAME;
+
+		final Comparator<RequestStatus> comparator() {
+			switch(this) {
+			case PRIORITY:
+				return PRIORITY_COMPARATOR;
+			case PROGRESS:
+				return PROGRESS_COMPARATOR;
+			default:
+				return NAME_COMPARATOR;
+			}
+		}
+	}
+
+	/** Which requests to include in a page. */
+	public enum Filter {
+		ALL,
+		DOWNLOADS,
+		UPLOADS,
+		/** Not finished yet. */
+		RUNNING,
+		SUCCEEDED,
+		FAILED;
+
+		public boolean accepts(RequestStatus status) {
+			switch(this) {
+			case DOWNLOADS:
+				return status instanceof DownloadRequestStatus;
+			case UPLOADS:
+				return status instanceof UploadRequestStatus;
+			case RUNNING:
+				return !status.hasFinished();
+			case SUCCEEDED:
+				return status.hasSucceeded();
+			case FAILED:
+				return status.hasFinished() && !status.hasSucceeded();
+			default:
+				return true;
+			}
+		}
+	}
+
+	/** One page of a query. */
+	public static final class Page {
+		/** Identifies the state of the cache(s) the page was taken from. */
+		public final String etag;
+		/** The number of requests matching the filter, on all pages. */
+		public final int total;
+		public final int offset;
+		public final RequestStatus[] requests;
+
+		Page(String etag, int total, int offset, RequestStatus[] requests) {
+			this.etag = etag;
+			this.total = total;
+			this.offset = offset;
+			this.requests = requests;
+		}
+	}
+
+	static final Comparator<RequestStatus> NAME_COMPARATOR = new Comparator<RequestStatus>() {
+
+		@Override
+		public int compare(RequestStatus a, RequestStatus b) {
+			if(a == b) return 0;
+			int result = a.getIdentifier().compareToIgnoreCase(b.getIdentifier());
+			if(result != 0) return result;
+			return a.getIdentifier().compareTo(b.getIdentifier());
+		}
+
+	};
+
+	static final Comparator<RequestStatus> PRIORITY_COMPARATOR = new Comparator<RequestStatus>() {
+
+		@Override
+		public int compare(RequestStatus a, RequestStatus b) {
+			if(a == b) return 0;
+			int result = Fields.compare(a.getPriority(), b.getPriority());
+			if(result != 0) return result;
+			return a.getIdentifier().compareTo(b.getIdentifier());
+		}
+
+	};
+
+	static final Comparator<RequestStatus> PROGRESS_COMPARATOR = new Comparator<RequestStatus>() {
+
+		@Override
+		public int compare(RequestStatus a, RequestStatus b) {
+			if(a == b) return 0;
+			boolean aFinalized = a.isTotalFinalized();
+			boolean bFinalized = b.isTotalFinalized();
+			if(aFinalized != bFinalized)
+				return aFinalized ? 1 : -1;
+			int result = Double.compare(progress(a), progress(b));
+			if(result != 0) return result;
+			return a.getIdentifier().compareTo(b.getIdentifier());
+		}
+
+		private double progress(RequestStatus status) {
+			int min = status.getMinBlocks();
+			if(min <= 0) return 0.0;
+			return ((double)status.getFetchedBlocks()) / min;
+		}
+
+	};
+
+	/** Identifies the cache, so a version from before a restart isn't mistaken for one
+	 * from this cache. */
+	final String cacheID;
+	/** The cache's version when the snapshot was taken. */
+	public final long version;
+	/** Clones, in no particular order. */
+	private final RequestStatus[] requests;
+	/** Identifiers added, changed or removed since the previous snapshot. */
+	private final Set<String> changed;
+	/** Clones of the requests in changed which are still in the cache. */
+	private final RequestStatus[] changedRequests;
+	/** The previous snapshot, until we have built all our sorted views, so we can merge.
+	 * Only ever one deep: we drop the link from the previous snapshot when we are created. */
+	private volatile RequestStatusSnapshot previous;
+	/** Sorted views, by SortOrder.ordinal(), built on demand. */
+	private final AtomicReferenceArray<RequestStatus[]> sorted;
+
+	RequestStatusSnapshot(String cacheID, long version, RequestStatus[] requests,
+			Set<String> changed, RequestStatus[] changedRequests, RequestStatusSnapshot previous) {
+		this.cacheID = cacheID;
+		this.version = version;
+		this.requests = requests;
+		this.changed = changed;
+		this.changedRequests = changedRequests;
+		this.previous = previous;
+		if(previous != null) previous.previous = null;
+		sorted = new AtomicReferenceArray<RequestStatus[]>(SortOrder.values().length);
+	}
+
+	/** @return The ETag for this snapshot. Changes whenever any request in the cache
+	 * changes. */
+	public String getETag() {
+		return cacheID + "-" + version;
+	}
+
+	/** @return The number of requests. */
+	public int size() {
+		return requests.length;
+	}
+
+	/** @return All the requests, in no particular order. The elements are shared with
+	 * other callers and must not be modified. */
+	public RequestStatus[] getRequests() {
+		return requests.clone();
+	}
+
+	/** @return All the requests in the given order. The array and its elements are shared
+	 * and must not be modified. */
+	RequestStatus[] sorted(SortOrder order) {
+		int idx = order.ordinal();
+		RequestStatus[] result = sorted.get(idx);
+		if(result != null) return result;
+		Comparator<RequestStatus> comparator = order.comparator();
+		RequestStatusSnapshot prev = previous;
+		RequestStatus[] old = prev == null ? null : prev.sorted.get(idx);
+		if(old != null && changedRequests.length < requests.length / 2) {
+			result = merge(old, comparator);
+		} else {
+			result = requests.clone();
+			Arrays.sort(result, comparator);
+		}
+		// Two threads may build the same view at once; either result is fine.
+		sorted.compareAndSet(idx, null, result);
+		result = sorted.get(idx);
+		if(prev != null) {
+			boolean all = true;
+			for(int i=0;i<sorted.length();i++)
+				if(sorted.get(i) == null) all = false;
+			if(all) previous = null;
+		}
+		return result;
+	}
+
+	/** Merge the requests which have changed into the previous snapshot's sorted view. */
+	private RequestStatus[] merge(RequestStatus[] old, Comparator<RequestStatus> comparator) {
+		RequestStatus[] added = changedRequests.clone();
+		Arrays.sort(added, comparator);
+		RequestStatus[] result = new RequestStatus[requests.length];
+		int i = 0, j = 0, k = 0;
+		while(true) {
+			while(i < old.length && changed.contains(old[i].getIdentifier())) i++;
+			if(i == old.length) break;
+			if(j == added.length) break;
+			if(comparator.compare(old[i], added[j]) <= 0)
+				result[k++] = old[i++];
+			else
+				result[k++] = added[j++];
+		}
+		for(;i<old.length;i++)
+			if(!changed.contains(old[i].getIdentifier()))
+				result[k++] = old[i];
+		while(j < added.length)
+			result[k++] = added[j++];
+		assert(k == result.length);
+		return result;
+	}
+
+	/**
+	 * Get a page of requests.
+	 * @param order The sort order.
+	 * @param reversed If true, reverse the sort order.
+	 * @param filter Which requests to include.
+	 * @param offset How many matching requests to skip.
+	 * @param limit The maximum number of requests to return.
+	 */
+	public Page query(SortOrder order, boolean reversed, Filter filter, int offset, int limit) {
+		return query(new RequestStatusSnapshot[] { this }, order, reversed, filter, offset, limit);
+	}
+
+	/**
+	 * Get a page of requests from several snapshots at once, e.g. the global queue, which
+	 * has a cache for the transient requests and another for the persistent requests.
+	 */
+	public static Page query(RequestStatusSnapshot[] snapshots, SortOrder order, boolean reversed,
+			Filter filter, int offset, int limit) {
+		if(offset < 0 || limit < 0) throw new IllegalArgumentException();
+		Comparator<RequestStatus> comparator = order.comparator();
+		int[] pos = new int[snapshots.length];
+		RequestStatus[][] views = new RequestStatus[snapshots.length][];
+		for(int i=0;i<snapshots.length;i++) {
+			views[i] = snapshots[i].sorted(order);
+			pos[i] = reversed ? views[i].length - 1 : 0;
+		}
+		ArrayList<RequestStatus> page = new ArrayList<RequestStatus>(Math.min(limit, 1024));
+		int matched = 0;
+		while(true) {
+			// Merge the views, a few at most, so a linear scan for the next one is fine.
+			int best = -1;
+			RequestStatus bestStatus = null;
+			for(int i=0;i<views.length;i++) {
+				RequestStatus[] view = views[i];
+				while(pos[i] >= 0 && pos[i] < view.length && !filter.accepts(view[pos[i]]))
+					pos[i] += reversed ? -1 : 1;
+				if(pos[i] < 0 || pos[i] >= view.length) continue;
+				RequestStatus status = view[pos[i]];
+				if(bestStatus == null) {
+					best = i;
+					bestStatus = status;
+				} else {
+					int cmp = comparator.compare(status, bestStatus);
+					if(reversed ? cmp > 0 : cmp < 0) {
+						best = i;
+						bestStatus = status;
+					}
+				}
+			}
+			if(best == -1) break;
+			pos[best] += reversed ? -1 : 1;
+			if(matched >= offset && matched - offset < limit)
+				page.add(bestStatus);
+			matched++;
+			// Once the page is full we only need the total, unless filtering.
+			if(filter == Filter.ALL && matched - offset >= limit) {
+				matched = 0;
+				for(RequestStatusSnapshot s : snapshots) matched += s.size();
+				break;
+			}
+		}
+		return new Page(getETag(snapshots), matched, offset, page.toArray(new RequestStatus[page.size()]));
+	}
+
+	/** @return The combined ETag for several snapshots. */
+	public static String getETag(RequestStatusSnapshot[] snapshots) {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<snapshots.length;i++) {
+			if(i != 0) sb.append('.');
+			sb.append(snapshots[i].getETag());
+		}
+		return sb.toString();
+	}
+
+}
@@ -4,6 +4,7 @@
 package freenet.node.simulator;
 
 import java.io.File;
+import java.net.InetAddress;
 
 import freenet.crypt.DummyRandomSource;
 import freenet.crypt.RandomSource;
@@ -25,6 +26,9 @@ import freenet.support.math.SimpleRunningAverage;
  * Create a mesh of nodes and let them sort out their locations.
  * 
  * Then run some node-to-node searches.
+ * 
+ * With --simulated-network, the nodes talk over a SimulatedNetwork instead of the loopback
+ * interface, so every link has realistic latency and bandwidth.
  */
 public class RealNodeRoutingTest extends RealNodeTest {
 
@@ -42,7 +46,8 @@ public class RealNodeRoutingTest extends RealNodeTest {
 	public static final int DARKNET_PORT_END = DARKNET_PORT_BASE + NUMBER_OF_NODES;
 
 	public static void main(String[] args) throws Exception {
-		System.out.println("Routing test using real nodes:");
+		boolean simulated = args.length > 0 && args[0].equals("--simulated-network");
+		System.out.println("Routing test using real nodes"+(simulated ? " on a simulated network:" : ":"));
 		System.out.println();
 		String dir = "realNodeRequestInsertTest";
 		File wd = new File(dir);
@@ -59,9 +64,15 @@ public class RealNodeRoutingTest extends RealNodeTest {
 		Node[] nodes = new Node[NUMBER_OF_NODES];
 		Logger.normal(RealNodeRoutingTest.class, "Creating nodes...");
 		Executor executor = new PooledExecutor();
+		SimulatedNetwork network = simulated ? new SimulatedNetwork(new RealTimeClock(executor), 3144) : null;
 		for(int i = 0; i < NUMBER_OF_NODES; i++) {
 			System.err.println("Creating node " + i);
-			nodes[i] = NodeStarter.createTestNode(DARKNET_PORT_BASE + i, 0, dir, true, MAX_HTL, 0 /* no dropped packets */, random, executor, 500 * NUMBER_OF_NODES, 65536, true, ENABLE_SWAPPING, false, false, false, ENABLE_SWAP_QUEUEING, true, 0, ENABLE_FOAF, false, true, false, null);
+			if(network == null) {
+				nodes[i] = NodeStarter.createTestNode(DARKNET_PORT_BASE + i, 0, dir, true, MAX_HTL, 0 /* no dropped packets */, random, executor, 500 * NUMBER_OF_NODES, 65536, true, ENABLE_SWAPPING, false, false, false, ENABLE_SWAP_QUEUEING, true, 0, ENABLE_FOAF, false, true, false, null);
+			} else {
+				InetAddress address = SimulatedNetwork.address(i);
+				nodes[i] = NodeStarter.createTestNode(DARKNET_PORT_BASE + i, 0, dir, true, MAX_HTL, 0 /* no dropped packets */, random, executor, 500 * NUMBER_OF_NODES, 65536, true, ENABLE_SWAPPING, false, false, false, ENABLE_SWAP_QUEUEING, true, 0, ENABLE_FOAF, false, true, false, address.getHostAddress(), false, network.transportFactory(address));
+			}
 			Logger.normal(RealNodeRoutingTest.class, "Created node " + i);
 		}
 		Logger.normal(RealNodeRoutingTest.class, "Created " + NUMBER_OF_NODES + " nodes");
@@ -82,6 +93,9 @@ public class RealNodeRoutingTest extends RealNodeTest {
 		// and the choice of nodes to start and finish are deterministic, so
 		// the overall result should be more or less deterministic.
 		waitForPingAverage(0.98, nodes, new DummyRandomSource(3143), MAX_PINGS, 5000);
+		if(network != null)
+			System.out.println("Packets sent: "+network.getPacketsSent()+", delivered: "+network.getPacketsDelivered()+
+					", lost: "+network.getPacketsLost()+", dropped: "+network.getPacketsDropped());
 		System.exit(0);
 	}
 
@@ -0,0 +1,33 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import freenet.support.Executor;
+import freenet.support.PrioritizedTicker;
+
+/**
+ * Runs a SimulatedNetwork in real time, for real nodes, which use the system clock. Packets
+ * are delivered on a ticker thread of their own, in order of arrival time; they only have
+ * to be queued for the receiving node there, so one thread is enough.
+ */
+public class RealTimeClock implements SimulatedNetwork.Clock {
+
+	private final PrioritizedTicker ticker;
+
+	public RealTimeClock(Executor executor) {
+		ticker = new PrioritizedTicker(executor, 0);
+		ticker.start();
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public void schedule(Runnable job, long delay) {
+		ticker.queueTimedJob(job, "Simulated packet delivery", delay, true, false);
+	}
+
+}
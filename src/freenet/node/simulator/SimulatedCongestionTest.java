@@ -0,0 +1,353 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import freenet.io.comm.IncomingPacketFilter;
+import freenet.io.comm.Peer;
+import freenet.io.comm.Peer.LocalAddressException;
+import freenet.io.comm.PeerContext;
+import freenet.io.comm.UdpSocketHandler;
+import freenet.io.xfer.CongestionControl;
+import freenet.support.Logger;
+
+/**
+ * Compares congestion control algorithms on a SimulatedNetwork. Several bulk flows, each
+ * with its own CongestionControl, share one bottleneck link from a sender to a receiver,
+ * which acks every packet. Loss is detected as in NewPacketFormatKeyContext: a packet not
+ * acked within the average round trip time plus 1.1 times the maximum ack delay is lost.
+ * The sender is paced at twice the bottleneck's bandwidth, as if the node's output
+ * bandwidth limit had been set too high for the connection, so the bottleneck's buffer is
+ * where the queue builds up.
+ * Reports each flow's goodput, how much the round trip time grows above the empty-queue
+ * round trip time (i.e. how much the flows fill the buffer), and how fairly the flows share
+ * the link (Jain's fairness index), in virtual time.
+ *
+ * Usage: SimulatedCongestionTest [seconds [seed]]
+ */
+public class SimulatedCongestionTest {
+
+	/** Size of the data packets, without headers. */
+	static final int PACKET_SIZE = 1024;
+	static final int ACK_SIZE = 16;
+	/** Same as NewPacketFormatKeyContext. */
+	static final int MAX_ACK_DELAY = 200;
+	static final long LOSS_CHECK_INTERVAL = 50;
+	static final long DEFAULT_DURATION = 120*1000;
+	/** The sender's output limit, relative to the bottleneck. */
+	static final int SENDER_SPEEDUP = 2;
+
+	/** 128KiB/sec, 50ms each way, and a second of buffering, like a typical home uplink. */
+	static final SimulatedNetwork.LinkParameters BOTTLENECK =
+		new SimulatedNetwork.LinkParameters(50, 128*1024, 0.0, 1000);
+
+	public static void main(String[] args) {
+		long duration = args.length > 0 ? Long.parseLong(args[0]) * 1000 : DEFAULT_DURATION;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 3142;
+		System.out.println("Congestion control test using a simulated network in virtual time:");
+		System.out.println("Bottleneck: "+BOTTLENECK+", "+(duration/1000)+" seconds, seed "+seed);
+		CongestionControl.Algorithm aimd = CongestionControl.Algorithm.AIMD;
+		CongestionControl.Algorithm delay = CongestionControl.Algorithm.DELAY;
+		for(double loss : new double[] { 0.0, 0.01, 0.03 }) {
+			SimulatedNetwork.LinkParameters link = new SimulatedNetwork.LinkParameters(
+					BOTTLENECK.latency, BOTTLENECK.bytesPerSecond, loss, BOTTLENECK.maxQueueDelay);
+			for(CongestionControl.Algorithm algorithm : CongestionControl.Algorithm.values()) {
+				System.out.println();
+				System.out.println("4 x "+algorithm+", loss "+loss+":");
+				System.out.println(run(new CongestionControl.Algorithm[] { algorithm, algorithm, algorithm, algorithm }, link, duration, seed));
+			}
+			System.out.println();
+			System.out.println("2 x AIMD vs 2 x DELAY, loss "+loss+":");
+			System.out.println(run(new CongestionControl.Algorithm[] { aimd, aimd, delay, delay }, link, duration, seed));
+		}
+	}
+
+	/** Summary of a run. */
+	public static final class Result {
+		public final CongestionControl.Algorithm[] algorithms;
+		/** Bytes per second acknowledged, for each flow. */
+		public final double[] goodput;
+		/** Mean round trip time for each flow. */
+		public final double[] meanRTT;
+		/** Smallest round trip time seen by any flow, i.e. with an empty queue. */
+		public final long minRTT;
+		public final long[] lost;
+		public final int linkBytesPerSecond;
+
+		Result(CongestionControl.Algorithm[] algorithms, double[] goodput, double[] meanRTT, long minRTT, long[] lost, int linkBytesPerSecond) {
+			this.algorithms = algorithms;
+			this.goodput = goodput;
+			this.meanRTT = meanRTT;
+			this.minRTT = minRTT;
+			this.lost = lost;
+			this.linkBytesPerSecond = linkBytesPerSecond;
+		}
+
+		public double totalGoodput() {
+			double total = 0;
+			for(double d : goodput) total += d;
+			return total;
+		}
+
+		/** @return Total goodput for the flows using the given algorithm. */
+		public double goodput(CongestionControl.Algorithm algorithm) {
+			double total = 0;
+			for(int i=0;i<goodput.length;i++)
+				if(algorithms[i] == algorithm) total += goodput[i];
+			return total;
+		}
+
+		/** @return Mean RTT over all flows divided by the empty-queue RTT. */
+		public double rttInflation() {
+			double total = 0;
+			for(double d : meanRTT) total += d;
+			return total / meanRTT.length / minRTT;
+		}
+
+		/** @return Jain's fairness index of the goodputs: 1.0 if all are equal, 1/n if one
+		 * flow has everything. */
+		public double fairness() {
+			double sum = 0;
+			double sumSquares = 0;
+			for(double d : goodput) {
+				sum += d;
+				sumSquares += d * d;
+			}
+			if(sumSquares == 0) return 1.0;
+			return sum * sum / (goodput.length * sumSquares);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for(int i=0;i<goodput.length;i++) {
+				sb.append("Flow ").append(i).append(" (").append(algorithms[i]).append("): ");
+				sb.append((int)goodput[i]).append(" B/s, mean RTT ").append((int)meanRTT[i]);
+				sb.append("ms, lost ").append(lost[i]).append('\n');
+			}
+			sb.append("Utilisation: ").append((int)(100 * totalGoodput() / linkBytesPerSecond)).append("%");
+			sb.append(", RTT inflation: ").append(String.format("%.2f", rttInflation()));
+			sb.append(" (min RTT ").append(minRTT).append("ms)");
+			sb.append(", fairness: ").append(String.format("%.3f", fairness()));
+			return sb.toString();
+		}
+	}
+
+	/** A bulk transfer, sending as fast as its window allows. */
+	private static class Flow {
+		final int id;
+		final CongestionControl congestionControl;
+		/** Sent times of packets in flight, by sequence number, oldest first. */
+		final LinkedHashMap<Integer, Long> inFlight = new LinkedHashMap<Integer, Long>();
+		/** Sent times of packets declared lost, in case they are acked later. */
+		final LinkedHashMap<Integer, Long> lostSentTimes = new LinkedHashMap<Integer, Long>();
+		int nextSeq;
+		int maxSeenInFlight;
+		double averageRTT = -1;
+		long ackedBytes;
+		long rttTotal;
+		long rttCount;
+		long minRTT = Long.MAX_VALUE;
+		long lost;
+		boolean started;
+
+		Flow(int id, CongestionControl congestionControl) {
+			this.id = id;
+			this.congestionControl = congestionControl;
+		}
+	}
+
+	/** Run a simulation with one flow for each algorithm given. */
+	public static Result run(CongestionControl.Algorithm[] algorithms, SimulatedNetwork.LinkParameters link, long duration, long seed) {
+		final VirtualClock clock = new VirtualClock(0);
+		SimulatedNetwork network = new SimulatedNetwork(clock, seed);
+		final SimulatedPacketSocketHandler sender = network.createSocketHandler();
+		final SimulatedPacketSocketHandler receiver = network.createSocketHandler();
+		network.setLink(sender, receiver, link);
+		// Acks are small, and the reverse direction is not congested.
+		network.setLink(receiver, sender, new SimulatedNetwork.LinkParameters(link.latency, link.bytesPerSecond * 10, link.lossProbability, link.maxQueueDelay));
+		final ArrayList<Flow> flows = new ArrayList<Flow>();
+		for(int i=0;i<algorithms.length;i++)
+			flows.add(new Flow(i, algorithms[i].create(2)));
+		final Pacer pacer = new Pacer(flows, sender, receiver, clock, link.bytesPerSecond * SENDER_SPEEDUP);
+
+		receiver.setLowLevelFilter(new Filter() {
+			@Override
+			public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+				// Ack it immediately.
+				byte[] ack = new byte[ACK_SIZE];
+				System.arraycopy(buf, offset, ack, 0, 5);
+				send(receiver, ack, sender.getPeer());
+				return DECODED.DECODED;
+			}
+		});
+		sender.setLowLevelFilter(new Filter() {
+			@Override
+			public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+				Flow flow = flows.get(buf[offset]);
+				int seq = readInt(buf, offset + 1);
+				Long sent = flow.inFlight.remove(seq);
+				if(sent == null) {
+					// Already declared lost. As in NewPacketFormatKeyContext, it still gives
+					// us a round trip time, but it doesn't grow the window, and the data
+					// would have been resent, so it doesn't count as goodput.
+					sent = flow.lostSentTimes.remove(seq);
+					if(sent == null) return DECODED.DECODED;
+					long rtt = now - sent;
+					flow.averageRTT = flow.averageRTT < 0 ? rtt : flow.averageRTT * 0.9 + rtt * 0.1;
+					flow.congestionControl.onRoundTripTime(rtt, now);
+					return DECODED.DECODED;
+				}
+				long rtt = now - sent;
+				flow.rttTotal += rtt;
+				flow.rttCount++;
+				if(rtt < flow.minRTT) flow.minRTT = rtt;
+				flow.averageRTT = flow.averageRTT < 0 ? rtt : flow.averageRTT * 0.9 + rtt * 0.1;
+				flow.ackedBytes += PACKET_SIZE;
+				flow.congestionControl.onRoundTripTime(rtt, now);
+				flow.congestionControl.onPacketAcknowledged(flow.maxSeenInFlight * 2 + 10, now);
+				pacer.wakeUp();
+				return DECODED.DECODED;
+			}
+		});
+		for(final Flow flow : flows) {
+			// Start them a little apart.
+			clock.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flow.started = true;
+					checkLost(flow, clock.currentTimeMillis());
+					pacer.wakeUp();
+					// Runs until the end of the simulation.
+					clock.schedule(this, LOSS_CHECK_INTERVAL);
+				}
+			}, flow.id * 100L);
+		}
+		clock.runUntil(duration);
+
+		double[] goodput = new double[flows.size()];
+		double[] meanRTT = new double[flows.size()];
+		long[] lost = new long[flows.size()];
+		long minRTT = Long.MAX_VALUE;
+		for(int i=0;i<flows.size();i++) {
+			Flow flow = flows.get(i);
+			goodput[i] = flow.ackedBytes * 1000.0 / duration;
+			meanRTT[i] = flow.rttCount == 0 ? 0 : (double)flow.rttTotal / flow.rttCount;
+			lost[i] = flow.lost;
+			minRTT = Math.min(minRTT, flow.minRTT);
+		}
+		return new Result(algorithms, goodput, meanRTT, minRTT, lost, link.bytesPerSecond);
+	}
+
+	/** Sends packets at the sender's output limit, taking turns between the flows which
+	 * have space in their windows. */
+	private static class Pacer implements Runnable {
+		private final ArrayList<Flow> flows;
+		private final SimulatedPacketSocketHandler sender;
+		private final SimulatedPacketSocketHandler receiver;
+		private final VirtualClock clock;
+		/** Milliseconds per packet, including headers. */
+		private final double interval;
+		/** When we can next send, in fractional milliseconds. */
+		private double nextSend;
+		private int nextFlow;
+		private boolean scheduled;
+
+		Pacer(ArrayList<Flow> flows, SimulatedPacketSocketHandler sender, SimulatedPacketSocketHandler receiver, VirtualClock clock, int bytesPerSecond) {
+			this.flows = flows;
+			this.sender = sender;
+			this.receiver = receiver;
+			this.clock = clock;
+			interval = (PACKET_SIZE + UdpSocketHandler.UDP_HEADERS_LENGTH) * 1000.0 / bytesPerSecond;
+		}
+
+		/** Called when a flow may have space in its window. */
+		void wakeUp() {
+			if(scheduled) return;
+			scheduled = true;
+			clock.schedule(this, Math.max(0, (long) Math.ceil(nextSend - clock.currentTimeMillis())));
+		}
+
+		@Override
+		public void run() {
+			scheduled = false;
+			long now = clock.currentTimeMillis();
+			if(nextSend < now) nextSend = now;
+			for(int i=0;i<flows.size();i++) {
+				Flow flow = flows.get((nextFlow + i) % flows.size());
+				if(!flow.started) continue;
+				if(flow.inFlight.size() >= (int) flow.congestionControl.getWindowSize()) continue;
+				nextFlow = (nextFlow + i + 1) % flows.size();
+				send(flow, now);
+				nextSend += interval;
+				wakeUp();
+				return;
+			}
+			// Nothing to send until an ack or loss.
+		}
+
+		private void send(Flow flow, long now) {
+			int seq = flow.nextSeq++;
+			byte[] packet = new byte[PACKET_SIZE];
+			packet[0] = (byte) flow.id;
+			writeInt(packet, 1, seq);
+			flow.inFlight.put(seq, now);
+			if(flow.inFlight.size() > flow.maxSeenInFlight)
+				flow.maxSeenInFlight = flow.inFlight.size();
+			SimulatedCongestionTest.send(sender, packet, receiver.getPeer());
+		}
+	}
+
+	private static void checkLost(Flow flow, long now) {
+		double rtt = flow.averageRTT < 0 ? 1000 : flow.averageRTT;
+		long threshold = (long) (now - (rtt + MAX_ACK_DELAY * 1.1));
+		// Forget lost packets after a while.
+		for(Iterator<Long> it = flow.lostSentTimes.values().iterator(); it.hasNext();) {
+			if(it.next() >= now - 60*1000) break;
+			it.remove();
+		}
+		for(Iterator<Map.Entry<Integer, Long>> it = flow.inFlight.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Integer, Long> entry = it.next();
+			// Oldest first.
+			if(entry.getValue() >= threshold) break;
+			it.remove();
+			flow.lostSentTimes.put(entry.getKey(), entry.getValue());
+			flow.lost++;
+			flow.congestionControl.onPacketLost(now);
+		}
+	}
+
+	private static void send(SimulatedPacketSocketHandler from, byte[] data, Peer to) {
+		try {
+			from.sendPacket(data, to, true);
+		} catch (LocalAddressException e) {
+			// Impossible.
+			Logger.error(SimulatedCongestionTest.class, "Impossible: "+e, e);
+		}
+	}
+
+	private static int readInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset+1] & 0xff) << 16) |
+			((buf[offset+2] & 0xff) << 8) | (buf[offset+3] & 0xff);
+	}
+
+	private static void writeInt(byte[] buf, int offset, int value) {
+		buf[offset] = (byte)(value >> 24);
+		buf[offset+1] = (byte)(value >> 16);
+		buf[offset+2] = (byte)(value >> 8);
+		buf[offset+3] = (byte)value;
+	}
+
+	private static abstract class Filter implements IncomingPacketFilter {
+		@Override
+		public boolean isDisconnected(PeerContext context) {
+			return false;
+		}
+	}
+
+}
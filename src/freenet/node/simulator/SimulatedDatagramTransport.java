@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import freenet.io.comm.DatagramTransport;
+import freenet.io.comm.Peer;
+
+/**
+ * Endpoint on a SimulatedNetwork for a real node. Given to the node's UdpSocketHandler in
+ * place of its DatagramChannel, through NodeStarter.createTestNode(), so everything above
+ * the socket is the real code. Packets which arrive are queued until the node's receive
+ * thread takes them, as the kernel would.
+ */
+public class SimulatedDatagramTransport extends SimulatedEndpoint implements DatagramTransport {
+
+	private static final class Packet {
+		final byte[] data;
+		final InetSocketAddress source;
+		Packet(byte[] data, InetSocketAddress source) {
+			this.data = data;
+			this.source = source;
+		}
+	}
+
+	/** Wakes up the receive thread when we are closed. */
+	private static final Packet CLOSED = new Packet(null, null);
+
+	private final LinkedBlockingQueue<Packet> received;
+	private volatile boolean closed;
+
+	SimulatedDatagramTransport(SimulatedNetwork network, int id, Peer peer) {
+		super(network, id, peer);
+		received = new LinkedBlockingQueue<Packet>();
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer buf) throws IOException {
+		Packet packet;
+		try {
+			packet = received.take();
+		} catch (InterruptedException e) {
+			return null;
+		}
+		if(packet == CLOSED) {
+			// For anyone else waiting.
+			received.offer(CLOSED);
+			return null;
+		}
+		// Like a DatagramChannel, silently truncate if it doesn't fit.
+		buf.put(packet.data, 0, Math.min(packet.data.length, buf.remaining()));
+		return packet.source;
+	}
+
+	@Override
+	public void send(ByteBuffer buf, InetSocketAddress target) throws IOException {
+		if(closed) throw new ClosedChannelException();
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		network.send(this, data, new Peer(target.getAddress(), target.getPort()));
+	}
+
+	@Override
+	public int getLocalPort() {
+		return getPeer().getPort();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return getPeer().getAddress();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		received.offer(CLOSED);
+	}
+
+	@Override
+	void deliver(byte[] data, Peer source) {
+		if(closed) return;
+		received.offer(new Packet(data, new InetSocketAddress(source.getAddress(), source.getPort())));
+	}
+
+	@Override
+	public String toString() {
+		return "simulated:"+getPeer();
+	}
+
+}
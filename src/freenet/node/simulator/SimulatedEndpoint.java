@@ -0,0 +1,33 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import freenet.io.comm.Peer;
+
+/**
+ * An address on a SimulatedNetwork, which packets can be sent from and delivered to. Either
+ * a SimulatedPacketSocketHandler, for lightweight simulations on a VirtualClock, or a
+ * SimulatedDatagramTransport, under a real node's UdpSocketHandler.
+ */
+public abstract class SimulatedEndpoint {
+
+	final SimulatedNetwork network;
+	final int id;
+	private final Peer peer;
+
+	SimulatedEndpoint(SimulatedNetwork network, int id, Peer peer) {
+		this.network = network;
+		this.id = id;
+		this.peer = peer;
+	}
+
+	/** @return Our address, for other endpoints to send to. */
+	public Peer getPeer() {
+		return peer;
+	}
+
+	/** Called by the network, on the clock's thread, when a packet arrives. */
+	abstract void deliver(byte[] data, Peer source);
+
+}
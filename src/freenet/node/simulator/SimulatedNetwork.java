@@ -0,0 +1,313 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import freenet.io.comm.DatagramTransport;
+import freenet.io.comm.Peer;
+import freenet.io.comm.UdpSocketHandler;
+import freenet.node.FastRunnable;
+import freenet.support.math.MersenneTwister;
+
+/**
+ * In-process packet network. Endpoints are either SimulatedPacketSocketHandler's, which can
+ * be used wherever a UdpSocketHandler would be, for lightweight simulations on a
+ * VirtualClock, or SimulatedDatagramTransport's, which real nodes' UdpSocketHandler's run
+ * on, with a RealTimeClock (see transportFactory()).
+ * Packets between each ordered pair of endpoints go over a link with its own latency,
+ * bandwidth and loss rate; packets queue behind each other on a link, so a busy link adds
+ * delay, and beyond the maximum queueing delay they are dropped. An endpoint can also have
+ * an uplink, shared by all the packets it sends, which they go through before their link:
+ * this is the node's own connection, which is usually the bottleneck in practice.
+ *
+ * Queues are kept in nanoseconds, so a fast link can carry far more than one packet per
+ * millisecond; only the delivery time is rounded up to the clock's millisecond.
+ *
+ * Deterministic: given the same seed and the same sequence of sends, every packet is lost
+ * or delivered at exactly the same virtual time. Thread-safe, since real nodes send from
+ * many threads.
+ */
+public class SimulatedNetwork {
+
+	/** When packets are delivered: virtual time, or for real nodes, real time. */
+	public interface Clock {
+		long currentTimeMillis();
+		/** Run the job after the given number of milliseconds. */
+		void schedule(Runnable job, long delay);
+	}
+
+	/** Properties of a link in one direction. Immutable. */
+	public static final class LinkParameters {
+		/** One-way propagation delay in milliseconds. */
+		public final int latency;
+		/** Bytes per second, including UDP/IP headers. */
+		public final int bytesPerSecond;
+		/** Probability of each packet being lost in transit. */
+		public final double lossProbability;
+		/** Packets which would have to queue for longer than this are dropped. */
+		public final int maxQueueDelay;
+
+		public LinkParameters(int latency, int bytesPerSecond, double lossProbability, int maxQueueDelay) {
+			if(latency < 0 || bytesPerSecond <= 0 || lossProbability < 0.0 || lossProbability > 1.0 || maxQueueDelay < 0)
+				throw new IllegalArgumentException();
+			this.latency = latency;
+			this.bytesPerSecond = bytesPerSecond;
+			this.lossProbability = lossProbability;
+			this.maxQueueDelay = maxQueueDelay;
+		}
+
+		@Override
+		public String toString() {
+			return "latency="+latency+"ms bandwidth="+bytesPerSecond+"B/s loss="+lossProbability;
+		}
+	}
+
+	/** 50ms, 64KiB/sec, no loss, up to 2 seconds of queueing. */
+	public static final LinkParameters DEFAULT_LINK = new LinkParameters(50, 64*1024, 0.0, 2000);
+
+	/** State of a link in one direction. */
+	private static final class Link {
+		final LinkParameters params;
+		/** When the last queued packet will have been fully sent, in virtual nanoseconds. */
+		long busyUntil;
+		Link(LinkParameters params) {
+			this.params = params;
+		}
+	}
+
+	/** State of an endpoint's uplink. */
+	private static final class Uplink {
+		final int bytesPerSecond;
+		final int maxQueueDelay;
+		/** When the last queued packet will have been fully sent, in virtual nanoseconds. */
+		long busyUntil;
+		Uplink(int bytesPerSecond, int maxQueueDelay) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.maxQueueDelay = maxQueueDelay;
+		}
+	}
+
+	private static final long NANOS_PER_MILLI = 1000L * 1000L;
+	private static final long NANOS_PER_SECOND = 1000L * NANOS_PER_MILLI;
+
+	/** Port used by all simulated endpoints. They are distinguished by address. */
+	static final int PORT = 4242;
+
+	private final Clock clock;
+	private final MersenneTwister random;
+	private final ArrayList<SimulatedEndpoint> endpoints;
+	private final HashMap<Peer, SimulatedEndpoint> endpointsByPeer;
+	/** Directed links, by (from id << 32 | to id). Created on first use. */
+	private final HashMap<Long, Link> links;
+	/** Uplinks, by endpoint id. Null if the endpoint's sending rate isn't limited. */
+	private final ArrayList<Uplink> uplinks;
+	private LinkParameters defaultLink;
+	private long packetsSent;
+	private long packetsDelivered;
+	private long packetsLost;
+	private long packetsDropped;
+	private long bytesSent;
+
+	public SimulatedNetwork(Clock clock, long seed) {
+		this.clock = clock;
+		random = new MersenneTwister(seed);
+		endpoints = new ArrayList<SimulatedEndpoint>();
+		endpointsByPeer = new HashMap<Peer, SimulatedEndpoint>();
+		links = new HashMap<Long, Link>();
+		uplinks = new ArrayList<Uplink>();
+		defaultLink = DEFAULT_LINK;
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	/** The parameters for links which haven't been set explicitly and haven't been used yet. */
+	public synchronized void setDefaultLink(LinkParameters params) {
+		defaultLink = params;
+	}
+
+	/** Create a new endpoint, with a unique address in 10.0.0.0/8. */
+	public synchronized SimulatedPacketSocketHandler createSocketHandler() {
+		int id = endpoints.size();
+		SimulatedPacketSocketHandler handler = new SimulatedPacketSocketHandler(this, id, new Peer(address(id), PORT));
+		add(handler);
+		return handler;
+	}
+
+	/**
+	 * Create an endpoint for a real node's socket.
+	 * @throws SocketException If the address and port are already in use.
+	 */
+	public synchronized SimulatedDatagramTransport createTransport(InetAddress address, int port) throws SocketException {
+		Peer peer = new Peer(address, port);
+		if(endpointsByPeer.containsKey(peer))
+			throw new SocketException("Address already in use: "+peer);
+		SimulatedDatagramTransport transport = new SimulatedDatagramTransport(this, endpoints.size(), peer);
+		add(transport);
+		return transport;
+	}
+
+	/**
+	 * Creates the transports for one real node, for NodeStarter.createTestNode(). The node
+	 * should be told its address with ipAddressOverride; its sockets are at that address
+	 * whatever they are asked to bind to.
+	 */
+	public DatagramTransport.Factory transportFactory(final InetAddress address) {
+		return new DatagramTransport.Factory() {
+
+			@Override
+			public DatagramTransport bind(InetAddress bindTo, int port) throws SocketException {
+				return createTransport(address, port);
+			}
+
+		};
+	}
+
+	/** @return The id'th address in 10.0.0.0/8, for nodes on the network. */
+	public static InetAddress address(int id) {
+		if(id < 0 || id >= (1 << 24)) throw new IllegalArgumentException("Too many endpoints");
+		try {
+			return InetAddress.getByAddress(new byte[] { 10, (byte)(id >> 16), (byte)(id >> 8), (byte)id });
+		} catch (UnknownHostException e) {
+			// Impossible, it's a valid length.
+			throw new Error(e);
+		}
+	}
+
+	private void add(SimulatedEndpoint endpoint) {
+		if(endpointsByPeer.containsKey(endpoint.getPeer()))
+			throw new IllegalStateException("Address already in use: "+endpoint.getPeer());
+		endpoints.add(endpoint);
+		uplinks.add(null);
+		endpointsByPeer.put(endpoint.getPeer(), endpoint);
+	}
+
+	/** Set the parameters for the link from one endpoint to another. The reverse direction
+	 * is not affected. */
+	public synchronized void setLink(SimulatedEndpoint from, SimulatedEndpoint to, LinkParameters params) {
+		Long key = linkKey(from.id, to.id);
+		Link old = links.get(key);
+		Link link = new Link(params);
+		if(old != null) link.busyUntil = old.busyUntil;
+		links.put(key, link);
+	}
+
+	/**
+	 * Limit the total rate an endpoint sends at, to all destinations. Packets queue on the
+	 * uplink first, and then on the link to their destination.
+	 * @param maxQueueDelay Packets which would have to queue on the uplink for longer than
+	 * this many milliseconds are dropped.
+	 */
+	public synchronized void setUplink(SimulatedEndpoint from, int bytesPerSecond, int maxQueueDelay) {
+		if(bytesPerSecond <= 0 || maxQueueDelay < 0) throw new IllegalArgumentException();
+		Uplink old = uplinks.get(from.id);
+		Uplink uplink = new Uplink(bytesPerSecond, maxQueueDelay);
+		if(old != null) uplink.busyUntil = old.busyUntil;
+		uplinks.set(from.id, uplink);
+	}
+
+	/** Set the parameters for both directions between two endpoints. */
+	public synchronized void setLinks(SimulatedEndpoint a, SimulatedEndpoint b, LinkParameters params) {
+		setLink(a, b, params);
+		setLink(b, a, params);
+	}
+
+	/** Called by the endpoints to send a packet. */
+	synchronized void send(SimulatedEndpoint from, byte[] data, Peer destination) {
+		packetsSent++;
+		final SimulatedEndpoint to = endpointsByPeer.get(destination);
+		if(to == null) {
+			// Nobody there, as with UDP it just disappears.
+			packetsLost++;
+			return;
+		}
+		Long key = linkKey(from.id, to.id);
+		Link link = links.get(key);
+		if(link == null) {
+			link = new Link(defaultLink);
+			links.put(key, link);
+		}
+		LinkParameters params = link.params;
+		long now = clock.currentTimeMillis();
+		int size = data.length + UdpSocketHandler.UDP_HEADERS_LENGTH;
+		// When the packet is ready to go onto its link.
+		long ready = now * NANOS_PER_MILLI;
+		Uplink uplink = uplinks.get(from.id);
+		if(uplink != null) {
+			long uplinkStart = Math.max(ready, uplink.busyUntil);
+			if(uplinkStart - ready > uplink.maxQueueDelay * NANOS_PER_MILLI) {
+				packetsDropped++;
+				return;
+			}
+			uplink.busyUntil = uplinkStart + transmitTime(size, uplink.bytesPerSecond);
+			ready = uplink.busyUntil;
+		}
+		// If it is dropped here it has still used the uplink's bandwidth.
+		long start = Math.max(ready, link.busyUntil);
+		if(start - ready > params.maxQueueDelay * NANOS_PER_MILLI) {
+			packetsDropped++;
+			return;
+		}
+		link.busyUntil = start + transmitTime(size, params.bytesPerSecond);
+		bytesSent += size;
+		// Lost packets still used the bandwidth.
+		if(params.lossProbability > 0.0 && random.nextDouble() < params.lossProbability) {
+			packetsLost++;
+			return;
+		}
+		final byte[] copy = data.clone();
+		final Peer source = from.getPeer();
+		// A FastRunnable so a RealTimeClock delivers in order, on its ticker thread.
+		clock.schedule(new FastRunnable() {
+
+			@Override
+			public void run() {
+				synchronized(SimulatedNetwork.this) {
+					packetsDelivered++;
+				}
+				to.deliver(copy, source);
+			}
+
+		}, (link.busyUntil + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI + params.latency - now);
+	}
+
+	/** @return The time to send a packet, in nanoseconds. */
+	private static long transmitTime(int size, int bytesPerSecond) {
+		return (size * NANOS_PER_SECOND + bytesPerSecond - 1) / bytesPerSecond;
+	}
+
+	private static Long linkKey(int from, int to) {
+		return Long.valueOf(((long)from << 32) | (to & 0xFFFFFFFFL));
+	}
+
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public synchronized long getPacketsDelivered() {
+		return packetsDelivered;
+	}
+
+	/** @return Packets lost in transit, or sent to an address with nobody listening. */
+	public synchronized long getPacketsLost() {
+		return packetsLost;
+	}
+
+	/** @return Packets dropped because the link's queue was too long. */
+	public synchronized long getPacketsDropped() {
+		return packetsDropped;
+	}
+
+	/** @return Bytes sent, including headers and packets which were later lost. */
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+}
@@ -0,0 +1,85 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import freenet.io.AddressTracker.Status;
+import freenet.io.comm.IncomingPacketFilter;
+import freenet.io.comm.PacketSocketHandler;
+import freenet.io.comm.Peer;
+import freenet.io.comm.Peer.LocalAddressException;
+import freenet.io.comm.UdpSocketHandler;
+
+/**
+ * Endpoint on a SimulatedNetwork for lightweight simulations. Replaces UdpSocketHandler:
+ * outgoing packets go over the simulated links, and incoming packets are fed to the filter
+ * on the simulation thread, at the virtual time at which they arrive.
+ */
+public class SimulatedPacketSocketHandler extends SimulatedEndpoint implements PacketSocketHandler {
+
+	/** Same as the largest packet UdpSocketHandler will send. */
+	static final int MAX_PACKET_SIZE = 1280 - UdpSocketHandler.UDP_HEADERS_LENGTH;
+
+	private IncomingPacketFilter filter;
+	private long packetsReceived;
+
+	SimulatedPacketSocketHandler(SimulatedNetwork network, int id, Peer peer) {
+		super(network, id, peer);
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return MAX_PACKET_SIZE;
+	}
+
+	@Override
+	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
+		if(blockToSend.length > MAX_PACKET_SIZE)
+			throw new IllegalArgumentException("Packet too big: "+blockToSend.length);
+		network.send(this, blockToSend, destination);
+	}
+
+	@Override
+	public int getHeadersLength() {
+		return UdpSocketHandler.UDP_HEADERS_LENGTH;
+	}
+
+	@Override
+	public int getHeadersLength(Peer peer) {
+		return UdpSocketHandler.UDP_HEADERS_LENGTH;
+	}
+
+	@Override
+	public void setLowLevelFilter(IncomingPacketFilter f) {
+		filter = f;
+	}
+
+	@Override
+	public int getPacketSendThreshold() {
+		return getMaxPacketSize() - 100;
+	}
+
+	@Override
+	public Status getDetectedConnectivityStatus() {
+		// There is no NAT in the simulation.
+		return Status.DEFINITELY_PORT_FORWARDED;
+	}
+
+	/** @return The number of packets delivered to the filter. */
+	public long getPacketsReceived() {
+		return packetsReceived;
+	}
+
+	@Override
+	void deliver(byte[] data, Peer source) {
+		if(filter == null) return;
+		packetsReceived++;
+		filter.process(data, 0, data.length, source, network.getClock().currentTimeMillis());
+	}
+
+	@Override
+	public String toString() {
+		return "simulated:"+getPeer();
+	}
+
+}
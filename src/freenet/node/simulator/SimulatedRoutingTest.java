@@ -0,0 +1,332 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import freenet.io.comm.IncomingPacketFilter;
+import freenet.io.comm.Peer;
+import freenet.io.comm.PeerContext;
+import freenet.io.comm.Peer.LocalAddressException;
+import freenet.node.Location;
+import freenet.support.Logger;
+import freenet.support.math.MersenneTwister;
+
+/**
+ * Routing simulation on a virtual-time, in-process network. Unlike RealNodeRoutingTest,
+ * which runs real nodes over UDP in real time, this builds a Kleinberg small-world network
+ * of lightweight nodes on a SimulatedNetwork, and routes requests greedily by location over
+ * the simulated links, replies coming back along the same path. Each node has its own
+ * uplink, shared by everything it sends. So it can simulate thousands of nodes in seconds,
+ * deterministically from the seed, and report success rate, path length and latency.
+ *
+ * This is a model of greedy routing, not the node's routing code: it doesn't use
+ * PeerManager.closerPeer(), backoff, NodeStats' load limiting or the request handlers. So
+ * it can show how the topology, link latency and loss affect ideal greedy routing, but it
+ * says nothing about how a change to the real routing or load management would behave;
+ * that needs RealNodeRoutingTest and friends.
+ *
+ * Usage: SimulatedRoutingTest [nodes [degree [requests [seed [loss]]]]]
+ */
+public class SimulatedRoutingTest {
+
+	static final int DEFAULT_NODES = 1000;
+	static final int DEFAULT_DEGREE = 10;
+	static final int DEFAULT_REQUESTS = 10000;
+	static final short MAX_HTL = 18;
+	/** Size of the data returned on success, so replies use some bandwidth. */
+	static final int REPLY_DATA_SIZE = 1024;
+	/** Each node's uplink, in bytes per second. */
+	static final int UPLINK_BANDWIDTH = 64*1024;
+	/** Bandwidth of the path between two nodes, beyond their uplinks. */
+	static final int PATH_BANDWIDTH = 1024*1024;
+	/** Give up on a request after this long. */
+	static final long REQUEST_TIMEOUT = 120*1000;
+
+	static final byte TYPE_REQUEST = 1;
+	static final byte TYPE_SUCCESS = 2;
+	static final byte TYPE_FAILURE = 3;
+
+	public static void main(String[] args) throws Exception {
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NODES;
+		int degree = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_DEGREE;
+		int requests = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_REQUESTS;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 3142;
+		double loss = args.length > 4 ? Double.parseDouble(args[4]) : 0.0;
+		System.out.println("Routing test using simulated nodes in virtual time:");
+		System.out.println(nodes+" nodes, degree "+degree+", "+requests+" requests, seed "+seed+", loss "+loss);
+		long start = System.currentTimeMillis();
+		Result result = run(nodes, degree, requests, seed, loss);
+		long end = System.currentTimeMillis();
+		System.out.println(result);
+		System.out.println("Took "+(end-start)+"ms real time");
+	}
+
+	/** Summary of a run. */
+	public static final class Result {
+		public final int requests;
+		public final int succeeded;
+		public final int failed;
+		public final int timedOut;
+		/** Mean hops on successful requests. */
+		public final double meanHops;
+		/** Mean virtual time from starting the request to receiving the reply, on success. */
+		public final double meanLatency;
+		public final long packetsSent;
+		public final long events;
+		public final long virtualTime;
+
+		Result(int requests, int succeeded, int failed, double meanHops, double meanLatency, SimulatedNetwork network, VirtualClock clock) {
+			this.requests = requests;
+			this.succeeded = succeeded;
+			this.failed = failed;
+			this.timedOut = requests - succeeded - failed;
+			this.meanHops = meanHops;
+			this.meanLatency = meanLatency;
+			this.packetsSent = network.getPacketsSent();
+			this.events = clock.eventsRun();
+			this.virtualTime = clock.currentTimeMillis();
+		}
+
+		@Override
+		public String toString() {
+			return "Succeeded: "+succeeded+"/"+requests+" ("+(100.0*succeeded/requests)+"%), failed: "+failed+
+				", timed out: "+timedOut+"\nMean hops: "+meanHops+", mean latency: "+meanLatency+"ms"+
+				"\nPackets: "+packetsSent+", events: "+events+", virtual time: "+virtualTime+"ms";
+		}
+	}
+
+	/** Run a complete simulation. */
+	public static Result run(int nodeCount, int degree, int requests, long seed, double loss) {
+		MersenneTwister random = new MersenneTwister(seed);
+		VirtualClock clock = new VirtualClock(0);
+		SimulatedNetwork network = new SimulatedNetwork(clock, seed);
+		network.setDefaultLink(new SimulatedNetwork.LinkParameters(
+				SimulatedNetwork.DEFAULT_LINK.latency, SimulatedNetwork.DEFAULT_LINK.bytesPerSecond,
+				loss, SimulatedNetwork.DEFAULT_LINK.maxQueueDelay));
+		SimNode[] nodes = new SimNode[nodeCount];
+		for(int i=0;i<nodeCount;i++) {
+			// Ideal locations, as with RealNodeRoutingTest's START_WITH_IDEAL_LOCATIONS.
+			nodes[i] = new SimNode(i, (double)i / nodeCount, network.createSocketHandler(), clock);
+			network.setUplink(nodes[i].handler, UPLINK_BANDWIDTH, SimulatedNetwork.DEFAULT_LINK.maxQueueDelay);
+		}
+		makeKleinbergNetwork(nodes, degree, random);
+		// Vary link latencies so the network isn't completely uniform.
+		for(SimNode node : nodes) {
+			for(SimNode peer : node.peers) {
+				if(peer.index < node.index) continue;
+				network.setLinks(node.handler, peer.handler, new SimulatedNetwork.LinkParameters(
+						10 + random.nextInt(140), PATH_BANDWIDTH, loss,
+						SimulatedNetwork.DEFAULT_LINK.maxQueueDelay));
+			}
+		}
+		Stats stats = new Stats();
+		for(int i=0;i<requests;i++) {
+			final SimNode source = nodes[random.nextInt(nodeCount)];
+			final SimNode target = nodes[random.nextInt(nodeCount)];
+			final long uid = random.nextLong();
+			// One request every 10ms.
+			clock.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					source.startRequest(uid, target.location);
+				}
+
+			}, i * 10L);
+		}
+		for(SimNode node : nodes) node.stats = stats;
+		clock.runUntilIdle(requests * 10L + REQUEST_TIMEOUT);
+		double meanHops = stats.succeeded == 0 ? 0.0 : (double)stats.totalHops / stats.succeeded;
+		double meanLatency = stats.succeeded == 0 ? 0.0 : (double)stats.totalLatency / stats.succeeded;
+		return new Result(requests, stats.succeeded, stats.failed, meanHops, meanLatency, network, clock);
+	}
+
+	/**
+	 * Kleinberg small-world network on the ideal locations: each node connects to its
+	 * neighbour on the ring, and has degree/2 long links drawn with probability inversely
+	 * proportional to distance. Same distribution as RealNodeTest.makeKleinbergNetwork(),
+	 * but sampled directly (distance = (1/n) * (n/2)^u for uniform u), so it is O(n * degree)
+	 * rather than O(n^2).
+	 */
+	static void makeKleinbergNetwork(SimNode[] nodes, int degree, MersenneTwister random) {
+		int n = nodes.length;
+		for(int i=0;i<n;i++)
+			connect(nodes[i], nodes[(i+1) % n]);
+		if(n < 3) return;
+		for(int i=0;i<n;i++) {
+			for(int k=0;k<degree/2;k++) {
+				double distance = Math.pow(n / 2.0, random.nextDouble()) / n;
+				int offset = Math.max(1, (int)Math.round(distance * n));
+				if(random.nextBoolean()) offset = -offset;
+				int j = ((i + offset) % n + n) % n;
+				if(j != i) connect(nodes[i], nodes[j]);
+			}
+		}
+	}
+
+	static void connect(SimNode a, SimNode b) {
+		if(a.peers.contains(b)) return;
+		a.peers.add(b);
+		b.peers.add(a);
+	}
+
+	static class Stats {
+		int succeeded;
+		int failed;
+		long totalHops;
+		long totalLatency;
+	}
+
+	/** A simulated node: a location, a set of peers, and routing state for requests in
+	 * progress. Packets are not encrypted, as the crypto doesn't affect routing. */
+	static class SimNode implements IncomingPacketFilter {
+
+		final int index;
+		final double location;
+		final SimulatedPacketSocketHandler handler;
+		final VirtualClock clock;
+		final ArrayList<SimNode> peers;
+		/** Requests we are routing, by UID: where they came from, or null if we started them. */
+		private final HashMap<Long, Peer> routedFrom;
+		/** Requests we started, by UID: when. */
+		private final HashMap<Long, Long> started;
+		Stats stats;
+
+		SimNode(int index, double location, SimulatedPacketSocketHandler handler, VirtualClock clock) {
+			this.index = index;
+			this.location = location;
+			this.handler = handler;
+			this.clock = clock;
+			peers = new ArrayList<SimNode>();
+			routedFrom = new HashMap<Long, Peer>();
+			started = new HashMap<Long, Long>();
+			handler.setLowLevelFilter(this);
+		}
+
+		void startRequest(long uid, double target) {
+			started.put(uid, clock.currentTimeMillis());
+			handleRequest(uid, target, MAX_HTL, (short)0, null);
+		}
+
+		@Override
+		public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+			try {
+				DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf, offset, length));
+				byte type = dis.readByte();
+				long uid = dis.readLong();
+				short hops = dis.readShort();
+				switch(type) {
+				case TYPE_REQUEST:
+					double target = dis.readDouble();
+					short htl = dis.readShort();
+					handleRequest(uid, target, htl, hops, peer);
+					break;
+				case TYPE_SUCCESS:
+				case TYPE_FAILURE:
+					handleReply(uid, type, hops);
+					break;
+				default:
+					return DECODED.NOT_DECODED;
+				}
+				return DECODED.DECODED;
+			} catch (IOException e) {
+				Logger.error(this, "Bad packet from "+peer+": "+e, e);
+				return DECODED.NOT_DECODED;
+			}
+		}
+
+		private void handleRequest(long uid, double target, short htl, short hops, Peer source) {
+			if(routedFrom.containsKey(uid)) {
+				// Loop.
+				reply(source, uid, TYPE_FAILURE, hops);
+				return;
+			}
+			routedFrom.put(uid, source);
+			if(location == target) {
+				handleReply(uid, TYPE_SUCCESS, hops);
+				return;
+			}
+			// Greedy routing: the peer closest to the target, if it is closer than we are.
+			SimNode next = null;
+			double best = Location.distance(location, target);
+			for(SimNode peer : peers) {
+				double d = Location.distance(peer.location, target);
+				if(d < best) {
+					best = d;
+					next = peer;
+				}
+			}
+			if(next == null || htl <= 0) {
+				handleReply(uid, TYPE_FAILURE, hops);
+				return;
+			}
+			send(next.handler.getPeer(), encode(TYPE_REQUEST, uid, (short)(hops+1), target, (short)(htl-1)));
+		}
+
+		private void handleReply(long uid, byte type, short hops) {
+			if(!routedFrom.containsKey(uid)) return; // Already finished.
+			Peer source = routedFrom.remove(uid);
+			if(source != null) {
+				reply(source, uid, type, hops);
+				return;
+			}
+			Long startTime = started.remove(uid);
+			if(startTime == null) return;
+			if(type == TYPE_SUCCESS) {
+				stats.succeeded++;
+				stats.totalHops += hops;
+				stats.totalLatency += clock.currentTimeMillis() - startTime;
+			} else {
+				stats.failed++;
+			}
+		}
+
+		private void reply(Peer destination, long uid, byte type, short hops) {
+			send(destination, encode(type, uid, hops, 0.0, (short)0));
+		}
+
+		private byte[] encode(byte type, long uid, short hops, double target, short htl) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+			try {
+				dos.writeByte(type);
+				dos.writeLong(uid);
+				dos.writeShort(hops);
+				if(type == TYPE_REQUEST) {
+					dos.writeDouble(target);
+					dos.writeShort(htl);
+				} else if(type == TYPE_SUCCESS) {
+					dos.write(new byte[REPLY_DATA_SIZE]);
+				}
+			} catch (IOException e) {
+				// Impossible.
+				throw new Error(e);
+			}
+			return baos.toByteArray();
+		}
+
+		private void send(Peer destination, byte[] packet) {
+			try {
+				handler.sendPacket(packet, destination, true);
+			} catch (LocalAddressException e) {
+				// Impossible.
+				throw new Error(e);
+			}
+		}
+
+		@Override
+		public boolean isDisconnected(PeerContext context) {
+			return false;
+		}
+
+	}
+
+}
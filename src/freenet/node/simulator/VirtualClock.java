@@ -0,0 +1,230 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.NativeThread;
+
+/**
+ * Discrete-event clock for simulations. Acts as both the Ticker and the Executor, so
+ * everything scheduled through it runs on the thread which calls run*(), one job at a time,
+ * in order of virtual time, and in the order queued for jobs at the same time. Virtual time
+ * only moves when the next event is due, so an idle simulated minute costs nothing, and a
+ * run is fully deterministic given deterministic jobs.
+ *
+ * Not thread-safe: jobs must only be queued from the simulation thread, i.e. from other
+ * jobs, or before running the clock.
+ */
+public class VirtualClock implements Ticker, Executor, SimulatedNetwork.Clock {
+
+	private static final class Event implements Comparable<Event> {
+		final long time;
+		final long seq;
+		final Runnable job;
+		final boolean timed;
+		boolean cancelled;
+
+		Event(long time, long seq, Runnable job, boolean timed) {
+			this.time = time;
+			this.seq = seq;
+			this.job = job;
+			this.timed = timed;
+		}
+
+		@Override
+		public int compareTo(Event e) {
+			if(time != e.time) return time < e.time ? -1 : 1;
+			if(seq != e.seq) return seq < e.seq ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private final PriorityQueue<Event> events;
+	/** Timed jobs, for removeQueuedJob() and noDupes. */
+	private final IdentityHashMap<Runnable, ArrayList<Event>> timedJobs;
+	private long now;
+	private long seq;
+	private long eventsRun;
+	private int pending;
+
+	/** @param startTime The initial virtual time, in milliseconds. */
+	public VirtualClock(long startTime) {
+		now = startTime;
+		events = new PriorityQueue<Event>();
+		timedJobs = new IdentityHashMap<Runnable, ArrayList<Event>>();
+	}
+
+	/** @return The current virtual time, in milliseconds. */
+	@Override
+	public long currentTimeMillis() {
+		return now;
+	}
+
+	/** Run a job at the given delay after the current virtual time. */
+	@Override
+	public void schedule(Runnable job, long delay) {
+		queue(job, delay, false);
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, null, offset, false, false);
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		if(noDupes) {
+			ArrayList<Event> list = timedJobs.get(job);
+			if(list != null) {
+				long time = now + Math.max(0, offset);
+				for(Event e : list)
+					// Already queued for at least as early.
+					if(e.time <= time) return;
+				cancel(job);
+			}
+		}
+		queue(job, offset, true);
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return this;
+	}
+
+	@Override
+	public void removeQueuedJob(Runnable job) {
+		cancel(job);
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		queue(job, 0, false);
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		queue(job, 0, false);
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName, boolean fromTicker) {
+		queue(job, 0, false);
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		return new int[NativeThread.JAVA_PRIORITY_RANGE+1];
+	}
+
+	@Override
+	public int[] runningThreads() {
+		return new int[NativeThread.JAVA_PRIORITY_RANGE+1];
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return 0;
+	}
+
+	/**
+	 * Run the next event, moving the clock forward to its time.
+	 * @return False if there are no events left.
+	 */
+	public boolean runOne() {
+		while(true) {
+			Event e = events.poll();
+			if(e == null) return false;
+			if(e.cancelled) continue;
+			run(e);
+			return true;
+		}
+	}
+
+	/**
+	 * Run all events up to and including the given time, then set the clock to that time.
+	 * @return The number of events run.
+	 */
+	public long runUntil(long time) {
+		long count = runUntilIdle(time);
+		if(time > now) now = time;
+		return count;
+	}
+
+	/**
+	 * Run events until there are none left, or the next one is after the given time. Leaves
+	 * the clock at the time of the last event run.
+	 * @return The number of events run.
+	 */
+	public long runUntilIdle(long maxTime) {
+		long count = 0;
+		while(true) {
+			Event e = events.peek();
+			if(e == null || e.time > maxTime) break;
+			events.poll();
+			if(e.cancelled) continue;
+			run(e);
+			count++;
+		}
+		return count;
+	}
+
+	/** @return The number of jobs waiting to run. */
+	public int pendingEvents() {
+		return pending;
+	}
+
+	/** @return The total number of jobs run so far. */
+	public long eventsRun() {
+		return eventsRun;
+	}
+
+	private void queue(Runnable job, long delay, boolean timed) {
+		Event e = new Event(now + Math.max(0, delay), seq++, job, timed);
+		if(timed) {
+			ArrayList<Event> list = timedJobs.get(job);
+			if(list == null) {
+				list = new ArrayList<Event>(1);
+				timedJobs.put(job, list);
+			}
+			list.add(e);
+		}
+		events.add(e);
+		pending++;
+	}
+
+	private void cancel(Runnable job) {
+		ArrayList<Event> list = timedJobs.remove(job);
+		if(list == null) return;
+		for(Event e : list) {
+			e.cancelled = true;
+			pending--;
+		}
+	}
+
+	private void run(Event e) {
+		pending--;
+		if(e.timed) {
+			ArrayList<Event> list = timedJobs.get(e.job);
+			if(list != null) {
+				list.remove(e);
+				if(list.isEmpty()) timedJobs.remove(e.job);
+			}
+		}
+		now = e.time;
+		eventsRun++;
+		try {
+			e.job.run();
+		} catch (Throwable t) {
+			// Same as a real executor: log it and carry on.
+			Logger.error(this, "Caught "+t+" running "+e.job+" at "+now, t);
+		}
+	}
+
+}
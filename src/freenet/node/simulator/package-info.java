@@ -2,6 +2,10 @@
  * Simulators and test code using the real Freenet code: Either multiple 
  * nodes in the same JVM to test some key feature (routing, ULPR propagation
  * etc), or one or more real nodes connect to the real network and do some 
- * tests e.g. bootstrapping, inserting and fetching data.
+ * tests e.g. bootstrapping, inserting and fetching data. VirtualClock and 
+ * SimulatedNetwork provide a deterministic, virtual-time transport for 
+ * simulating much larger networks in-process; SimulatedNetwork can also 
+ * carry real nodes' traffic in real time, over links with controlled 
+ * latency, bandwidth and loss.
  */
 package freenet.node.simulator;
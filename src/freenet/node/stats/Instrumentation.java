@@ -0,0 +1,95 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.stats;
+
+import freenet.support.math.LatencyHistogram;
+import freenet.support.math.StripedHistogram;
+
+/**
+ * Latency histograms for the hot spots of the node, so that we can see where the time goes
+ * under real load without turning on MINOR logging (which is slow enough to change the
+ * answer). Each point costs two System.nanoTime() calls and a LatencyHistogram report:
+ *
+ * <pre>
+ * long startTime = System.nanoTime();
+ * ...
+ * Instrumentation.CLOSER_PEER.reportSince(startTime);
+ * </pre>
+ *
+ * Read with the GetInstrumentation FCP message or on the DiagnosticToadlet, either of which
+ * can also reset the histograms, to look at a single interval.
+ */
+public enum Instrumentation {
+
+	/** Node.fetch(), looking up a key in the client cache, slashdot cache, store and cache. */
+	STORE_FETCH("StoreFetch"),
+	/** Node.store(), writing a block to whichever stores and caches it goes in. */
+	STORE_PUT("StorePut"),
+	/** MessageCore.checkFilters(), matching an incoming message to a waiter or the Dispatcher. */
+	MESSAGE_FILTER_MATCH("MessageFilterMatch"),
+	/** One pass of the PacketSender loop, not including the wait at the end. */
+	PACKET_SENDER_LOOP("PacketSenderLoop"),
+	/** PeerManager.closerPeer(), choosing the next peer to route to. */
+	CLOSER_PEER("CloserPeer"),
+	/** FECCodec.realDecode(), decoding a segment on an FECQueue thread. */
+	FEC_DECODE("FECDecode"),
+	/** DBJob.run() on the database thread, not including the commit. */
+	DB_JOB("DBJob"),
+	/** ContentFilter.filter(), filtering a document on its way to the browser or to disk. */
+	CONTENT_FILTER("ContentFilter");
+
+	/** Name used in FCP messages and on the diagnostics page. */
+	public final String fcpName;
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	private Instrumentation(String fcpName) {
+		this.fcpName = fcpName;
+	}
+
+	/** Record the time since startTime, which was obtained from System.nanoTime(). */
+	public void reportSince(long startTime) {
+		histogram.reportSince(startTime);
+	}
+
+	private static long lastReset = System.currentTimeMillis();
+
+	/**
+	 * Read all the histograms.
+	 * @param reset If true, clear the histograms after reading them, so the next snapshot
+	 * covers only what happens from now on. There is only one set of histograms, so this
+	 * affects everyone reading them.
+	 */
+	public static synchronized Report snapshot(boolean reset) {
+		Instrumentation[] points = values();
+		StripedHistogram.Snapshot[] snapshots = new StripedHistogram.Snapshot[points.length];
+		for(int i=0;i<points.length;i++)
+			snapshots[i] = reset ? points[i].histogram.snapshotAndReset() : points[i].histogram.snapshot();
+		long now = System.currentTimeMillis();
+		Report report = new Report(lastReset, now, snapshots);
+		if(reset) lastReset = now;
+		return report;
+	}
+
+	/** Snapshots of all the histograms, as of a moment. */
+	public static final class Report {
+
+		/** When the histograms were last reset, or the node started. */
+		public final long since;
+		/** When the snapshots were taken. */
+		public final long time;
+		private final StripedHistogram.Snapshot[] snapshots;
+
+		Report(long since, long time, StripedHistogram.Snapshot[] snapshots) {
+			this.since = since;
+			this.time = time;
+			this.snapshots = snapshots;
+		}
+
+		public StripedHistogram.Snapshot get(Instrumentation point) {
+			return snapshots[point.ordinal()];
+		}
+
+	}
+
+}
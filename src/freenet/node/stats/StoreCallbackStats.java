@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node.stats;
 
+import freenet.store.FreenetStore;
 import freenet.store.StoreCallback;
 
 /**
@@ -81,4 +82,12 @@ public class StoreCallbackStats implements DataStoreStats {
 		if(totalAccessStats == null) throw new StatsNotAvailableException();
 		return totalAccessStats;
 	}
+
+	/** @return The store below any write cache, for statistics specific to the store type,
+	 * or null if the store has not been set up yet. */
+	public FreenetStore<?> getUnderlyingStore() {
+		FreenetStore<?> store = storeStats.getStore();
+		if(store == null) return null;
+		return store.getUnderlyingStore();
+	}
 }
@@ -4,8 +4,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -17,9 +21,16 @@ import freenet.support.Ticker;
  * which is either to write it on shutdown, immediately, or every X millis.
  * 
  * It would be better to do this with ByteBuffer's and an IntBuffer view, unfortunately
- * it is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there 
- * is no way to unmap, and it is likely there will never be, so resizing would be very
- * messy and expensive.
+ * it is not possible to subclass ByteBuffer's!
+ * 
+ * Optionally (setMemoryMapped()), the file is memory mapped instead of being read into an
+ * int[] on the heap. This saves 4 bytes of heap per slot, and avoids rewriting the whole
+ * file every time we persist: the file is mapped in chunks of CHUNK_INTS, and only the
+ * chunks which have changed are forced to disk. The persistence time then only controls
+ * how often we force; the OS will write back changed pages on its own schedule anyway. 
+ * There is no way to unmap, so on resize we map the new chunks (and the last partial 
+ * chunk) and leave the old mappings to the garbage collector. The file format is the same
+ * either way (little-endian, as written by Fields.intsToBytes()).
  * @author toad
  */
 public class ResizablePersistentIntBuffer {
@@ -29,8 +40,21 @@ public class ResizablePersistentIntBuffer {
 	private final FileChannel channel;
 	private final boolean isNew;
 	private int size;
-	/** The buffer. When we resize we write-lock and replace this. */
+	/** Ints per mapped chunk, i.e. 1MiB. */
+	static final int CHUNK_SHIFT = 18;
+	static final int CHUNK_INTS = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_INTS - 1;
+	/** If true, the file is memory mapped, and buffer is null. */
+	private final boolean mapped;
+	/** The buffer, if not mapped. When we resize we write-lock and replace this. */
 	private int[] buffer;
+	/** The mapped chunks of the file, the last one possibly shorter. Replaced under the 
+	 * write lock on resize, like buffer. */
+	private MappedByteBuffer[] chunks;
+	/** Int views of chunks. Absolute get/put on these is safe from any thread. */
+	private IntBuffer[] chunkInts;
+	/** Non-zero for each chunk which has been changed since it was last forced to disk. */
+	private AtomicIntegerArray dirtyChunks;
 	private final ReadWriteLock lock;
 	// 5 minutes by default. Disk I/O kills disks, and annoys users, so it's a fair tradeoff.
 	// Anything other than -1 risks data loss if the node is shut down uncleanly.
@@ -41,6 +65,8 @@ public class ResizablePersistentIntBuffer {
 	// FIXME is static the best way to do this? It seems simplest at least...
 	/** -1 = write immediately, 0 = write only on shutdown, +ve = write period in millis */
 	private static int globalPersistenceTime = DEFAULT_PERSISTENCE_TIME;
+	/** Whether buffers created from now on are memory mapped. */
+	private static boolean globalMemoryMapped = false;
 	private Ticker ticker;
 	/** Is the buffer dirty? Protected by (this). */
 	private boolean dirty;
@@ -59,6 +85,15 @@ public class ResizablePersistentIntBuffer {
 		return globalPersistenceTime;
 	}
 	
+	/** Only affects buffers created after this is called. */
+	public static synchronized void setMemoryMapped(boolean val) {
+		globalMemoryMapped = val;
+	}
+	
+	public static synchronized boolean isMemoryMapped() {
+		return globalMemoryMapped;
+	}
+	
 	/** Create the buffer. Open the file, creating if necessary, read in the data, and set
 	 * its size.
 	 * @param f The filename.
@@ -71,23 +106,72 @@ public class ResizablePersistentIntBuffer {
 		this.raf = new RandomAccessFile(f, "rw");
 		this.lock = new ReentrantReadWriteLock();
 		this.size = size;
-		buffer = new int[size];
+		this.mapped = isMemoryMapped();
 		long expectedLength = ((long)size)*4;
 		long realLength = raf.length();
 		if(realLength > expectedLength)
 			raf.setLength(expectedLength);
-		readBuffer((int)Math.min(size, realLength/4));
+		if(!mapped) {
+			buffer = new int[size];
+			readBuffer((int)Math.min(size, realLength/4));
+		}
 		if(realLength < expectedLength)
 			raf.setLength(expectedLength);
 		channel = raf.getChannel();
+		if(mapped) map();
 	}
 	
 	/** Should be called during startup to fill in an appropriate default value e.g. if the store 
 	 * is completely new. */
 	public void fill(int value) {
+		if(mapped) {
+			for(int i=0;i<size;i++)
+				set(i, value);
+			return;
+		}
 		for(int i=0;i<buffer.length;i++)
 			buffer[i] = value;
 	}
+	
+	/** (Re)map the file for the current size. Chunks which are still the same size are kept,
+	 * along with their dirty flags. Caller must hold the write lock or be the constructor. */
+	private void map() throws IOException {
+		long length = ((long)size)*4;
+		int count = (int)((size + (long)CHUNK_INTS - 1) >>> CHUNK_SHIFT);
+		MappedByteBuffer[] newChunks = new MappedByteBuffer[count];
+		IntBuffer[] newChunkInts = new IntBuffer[count];
+		AtomicIntegerArray newDirtyChunks = new AtomicIntegerArray(count);
+		for(int i=0;i<count;i++) {
+			long start = ((long)i) << (CHUNK_SHIFT + 2);
+			long chunkLength = Math.min(length - start, CHUNK_INTS * 4L);
+			if(chunks != null && i < chunks.length && chunks[i].capacity() == chunkLength) {
+				newChunks[i] = chunks[i];
+				newChunkInts[i] = chunkInts[i];
+			} else {
+				newChunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, chunkLength);
+				newChunks[i].order(ByteOrder.LITTLE_ENDIAN);
+				newChunkInts[i] = newChunks[i].asIntBuffer();
+			}
+			// A remapped chunk shares the page cache with the old mapping, so it is still dirty.
+			if(dirtyChunks != null && i < dirtyChunks.length())
+				newDirtyChunks.set(i, dirtyChunks.get(i));
+		}
+		chunks = newChunks;
+		chunkInts = newChunkInts;
+		dirtyChunks = newDirtyChunks;
+	}
+	
+	private void set(int offset, int value) {
+		if(mapped) {
+			int chunk = offset >>> CHUNK_SHIFT;
+			chunkInts[chunk].put(offset & CHUNK_MASK, value);
+			// Avoid writing to the shared flag on every put.
+			if(dirtyChunks.get(chunk) == 0)
+				dirtyChunks.set(chunk, 1);
+		} else {
+			buffer[offset] = value;
+		}
+	}
 
 	private void readBuffer(int size) throws IOException {
 		raf.seek(0);
@@ -118,6 +202,8 @@ public class ResizablePersistentIntBuffer {
 		lock.readLock().lock();
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
+			if(mapped)
+				return chunkInts[offset >>> CHUNK_SHIFT].get(offset & CHUNK_MASK);
 			return buffer[offset];
 		} finally {
 			lock.readLock().unlock();
@@ -133,9 +219,11 @@ public class ResizablePersistentIntBuffer {
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
 			int persistenceTime = getPersistenceTime();
-			buffer[offset] = value;
+			set(offset, value);
 			if(persistenceTime == -1 && !noWrite) {
-				channel.write(ByteBuffer.wrap(Fields.intToBytes(value)), ((long)offset)*4);
+				// Already in the page cache if mapped, which is all that channel.write() gives us.
+				if(!mapped)
+					channel.write(ByteBuffer.wrap(Fields.intToBytes(value)), ((long)offset)*4);
 			} else if(persistenceTime > 0) {
 				synchronized(this) {
 					dirty = true;
@@ -219,6 +307,7 @@ public class ResizablePersistentIntBuffer {
 			synchronized(this) {
 				writing = false;
 			}
+			unmap();
 			try {
 				raf.close();
 			} catch (IOException e) {
@@ -230,6 +319,13 @@ public class ResizablePersistentIntBuffer {
 		
 	}
 	
+	/** Drop our references to the mapping so it can be garbage collected. There is no way 
+	 * to unmap explicitly. */
+	private void unmap() {
+		chunks = null;
+		chunkInts = null;
+	}
+	
 	public void abort() {
 		lock.writeLock().lock();
 		try {
@@ -237,6 +333,8 @@ public class ResizablePersistentIntBuffer {
 				if(closed) return;
 				closed = true;
 			}
+			// If mapped, changes already made may still reach the disk.
+			unmap();
 			try {
 				raf.close();
 			} catch (IOException e) {
@@ -248,6 +346,10 @@ public class ResizablePersistentIntBuffer {
 	}
 
 	private void writeBuffer() throws IOException {
+		if(mapped) {
+			forceDirtyChunks();
+			return;
+		}
 		// FIXME do we need to do partial writes?
 		raf.seek(0);
 		int written = 0;
@@ -259,15 +361,29 @@ public class ResizablePersistentIntBuffer {
 		}
 	}
 	
+	/** Force the chunks which have changed since they were last forced. A chunk changed while
+	 * we are forcing it will be forced again next time, because we clear the flag first. */
+	private void forceDirtyChunks() {
+		for(int i=0;i<chunks.length;i++) {
+			if(dirtyChunks.get(i) == 0) continue;
+			dirtyChunks.set(i, 0);
+			chunks[i].force();
+		}
+	}
+	
 	public void resize(int size) {
 		lock.writeLock().lock();
 		try {
 			if(this.size == size) return;
 			Logger.normal(this, "Resizing cache from "+this.size+" slots to "+size);
+			if(mapped) {
+				resizeMapped(size);
+				return;
+			}
 			this.size = size;
 			buffer = Arrays.copyOf(buffer, size);
 			try {
-				raf.setLength(size * 4);
+				raf.setLength(((long)size) * 4);
 				writeBuffer();
 			} catch (IOException e) {
 				Logger.error(this, "Failed to change size or write during resize on "+filename+" : "+e, e);
@@ -276,6 +392,32 @@ public class ResizablePersistentIntBuffer {
 			lock.writeLock().unlock();
 		}
 	}
+	
+	/** Grow or shrink the file and map the chunks which have changed. Nothing is copied: the
+	 * new slots are zero, as with Arrays.copyOf(). Caller must hold the write lock. */
+	private void resizeMapped(int size) {
+		boolean shrinking = size < this.size;
+		long length = ((long)size) * 4;
+		try {
+			if(!shrinking)
+				raf.setLength(length);
+			this.size = size;
+			map();
+			writeBuffer();
+		} catch (IOException e) {
+			Logger.error(this, "Failed to change size or map during resize on "+filename+" : "+e, e);
+			return;
+		}
+		if(shrinking) {
+			// Some platforms (Windows) won't truncate a file while the old chunks are still 
+			// mapped. The extra space is harmless, and will be truncated on the next startup.
+			try {
+				raf.setLength(length);
+			} catch (IOException e) {
+				Logger.error(this, "Failed to truncate "+filename+" after shrinking, will retry on restart: "+e, e);
+			}
+		}
+	}
 
 	public void forceWrite() {
 		Logger.normal(this, "Force write slot cache: "+this);
@@ -320,10 +462,28 @@ public class ResizablePersistentIntBuffer {
 
 	// Testing only! Hence no lock.
 	public void replaceAllEntries(int key, int value) {
+		if(mapped) {
+			for(int i=0;i<size;i++)
+				if(chunkInts[i >>> CHUNK_SHIFT].get(i & CHUNK_MASK) == key) set(i, value);
+			return;
+		}
 		for(int i=0;i<buffer.length;i++)
 			if(buffer[i] == key) buffer[i] = value;
 	}
 	
+	// Testing only.
+	int countDirtyChunks() {
+		if(!mapped) return 0;
+		int count = 0;
+		for(int i=0;i<dirtyChunks.length();i++)
+			if(dirtyChunks.get(i) != 0) count++;
+		return count;
+	}
+	
+	public boolean isMapped() {
+		return mapped;
+	}
+	
 	public int size() {
 		return size;
 	}
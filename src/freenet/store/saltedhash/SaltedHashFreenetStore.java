@@ -46,6 +46,8 @@ import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.support.BlockBufferPool;
+import freenet.support.BlockBufferPool.PooledBuffer;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
@@ -114,6 +116,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private final int headerBlockLength;
 	private final int fullKeyLength;
 	private final int dataBlockLength;
+	/** Direct buffers for reading and writing header+data+padding. FileChannel would
+	 * otherwise copy a heap buffer into a temporary direct buffer on every I/O. */
+	private final BlockBufferPool hdBufferPool;
+	/** Scratch copies of the data of blocks being written, which are encrypted in place. */
+	private final BlockBufferPool dataBufferPool;
+	/** Maximum number of free buffers kept in each pool. */
+	private static final int MAX_POOLED_BUFFERS = 32;
 	private final Random random;
 	private final File bloomFile;
 
@@ -163,6 +172,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			((headerBlockLength + dataBlockLength + 512 - 1) & ~(512-1)) -
 			(headerBlockLength + dataBlockLength);
 
+		hdBufferPool = new BlockBufferPool(name+"-hd", headerBlockLength + dataBlockLength + hdPadding, MAX_POOLED_BUFFERS, true);
+		dataBufferPool = new BlockBufferPool(name+"-data", dataBlockLength, MAX_POOLED_BUFFERS, false);
+
 		this.random = random;
 		storeSize = maxKeys;
 		this.preallocate = preallocate;
@@ -455,7 +467,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 							}
 							return true;
 						}
-						oldEntry.setHD(readHD(oldOffset)); // read from disk
+						readHD(oldOffset, oldEntry); // read from disk
 						T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock)block).getPubKey() : null);
 						if (block.equals(oldBlock)) {
 							if(logDEBUG) Logger.debug(this, "Block already stored");
@@ -476,74 +488,82 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 					// Overwrite old offset with same key
 					Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
-					writeEntry(entry, digestedKey, oldOffset);
+					try {
+						writeEntry(entry, digestedKey, oldOffset);
+					} finally {
+						entry.releaseData();
+					}
 					if (oldEntry.generation != generation)
 						keyCount.incrementAndGet();
 					return true;
 				}
 
 				Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
-				long[] offset = entry.getOffset();
-
-				int firstWrongStoreIndex = -1;
-				int wrongStoreCount = 0;
-
-				for (int i = 0; i < offset.length; i++) {
-					if(offset[i] < storeFileOffsetReady) {
-						long flag = getFlag(offset[i], false);
-						if((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
-							// write to free block
-							if (logDEBUG)
-								Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
-							writeEntry(entry, digestedKey, offset[i]);
-							keyCount.incrementAndGet();
-							onWrite();
+				try {
+					long[] offset = entry.getOffset();
+
+					int firstWrongStoreIndex = -1;
+					int wrongStoreCount = 0;
+
+					for (int i = 0; i < offset.length; i++) {
+						if(offset[i] < storeFileOffsetReady) {
+							long flag = getFlag(offset[i], false);
+							if((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
+								// write to free block
+								if (logDEBUG)
+									Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
+								writeEntry(entry, digestedKey, offset[i]);
+								keyCount.incrementAndGet();
+								onWrite();
+								return true;
+							} else if(((flag & Entry.ENTRY_WRONG_STORE) == Entry.ENTRY_WRONG_STORE)) {
+								if (wrongStoreCount == 0)
+									firstWrongStoreIndex = i;
+								wrongStoreCount++;
+							}
+						}
+					}
+
+					if((!wrongStore) && altStore != null) {
+						if(altStore.put(block, data, header, overwrite, isOldBlock, true)) {
+							if(logMINOR) Logger.minor(this, "Successfully wrote block to wrong store "+altStore+" on "+this);
 							return true;
-						} else if(((flag & Entry.ENTRY_WRONG_STORE) == Entry.ENTRY_WRONG_STORE)) {
-							if (wrongStoreCount == 0)
-								firstWrongStoreIndex = i;
-							wrongStoreCount++;
+						} else {
+							if(logMINOR) Logger.minor(this, "Writing to wrong store "+altStore+" on "+this+" failed");
 						}
 					}
-				}
 
-				if((!wrongStore) && altStore != null) {
-					if(altStore.put(block, data, header, overwrite, isOldBlock, true)) {
-						if(logMINOR) Logger.minor(this, "Successfully wrote block to wrong store "+altStore+" on "+this);
-						return true;
-					} else {
-						if(logMINOR) Logger.minor(this, "Writing to wrong store "+altStore+" on "+this+" failed");
+					// There are no free slots for this Entry, so some slot will have to get overwritten.
+					int indexToOverwrite = -1;
+
+					if(wrongStore) {
+						// Distribute overwrites evenly between the right store and the wrong store.
+						int a = OPTION_MAX_PROBE;
+						int b = wrongStoreCount;
+						if(random.nextInt(a+b) < b)
+							// Allow the overwrite to happen in the wrong store.
+							indexToOverwrite = firstWrongStoreIndex;
+						else
+							// Force the overwrite to happen in the right store.
+							return false;
+					}
+					else {
+						// By default, overwrite offset[0] when not writing to wrong store.
+						indexToOverwrite = 0;
 					}
-				}
 
-				// There are no free slots for this Entry, so some slot will have to get overwritten.
-				int indexToOverwrite = -1;
-
-				if(wrongStore) {
-					// Distribute overwrites evenly between the right store and the wrong store.
-					int a = OPTION_MAX_PROBE;
-					int b = wrongStoreCount;
-					if(random.nextInt(a+b) < b)
-						// Allow the overwrite to happen in the wrong store.
-						indexToOverwrite = firstWrongStoreIndex;
-					else
-						// Force the overwrite to happen in the right store.
-						return false;
-				}
-				else {
-					// By default, overwrite offset[0] when not writing to wrong store.
-					indexToOverwrite = 0;
+					// Do the overwriting.
+					if (logDEBUG)
+						Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
+					oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
+					writeEntry(entry, digestedKey, offset[indexToOverwrite]);
+					if (oldEntry.generation != generation)
+						keyCount.incrementAndGet();
+					onWrite();
+					return true;
+				} finally {
+					entry.releaseData();
 				}
-
-				// Do the overwriting.
-				if (logDEBUG)
-					Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
-				oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
-				writeEntry(entry, digestedKey, offset[indexToOverwrite]);
-				if (oldEntry.generation != generation)
-					keyCount.incrementAndGet();
-				onWrite();
-				return true;
 			} finally {
 				unlockDigestedKey(digestedKey, false, lockMap);
 			}
@@ -615,6 +635,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		private int generation;
 		byte[] header;
 		byte[] data;
+		/** If non-null, data is borrowed from dataBufferPool and must be released. */
+		private PooledBuffer dataBuffer;
 
 		boolean isEncrypted;
 		private long curOffset = -1;
@@ -686,7 +708,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			// header/data will be overwritten in encrypt()/decrypt(),
 			// let's make a copy here
 			this.header = Arrays.copyOf(header, headerBlockLength);
-			this.data = Arrays.copyOf(data, dataBlockLength);
+			dataBuffer = dataBufferPool.allocate();
+			this.data = dataBuffer.getArray();
+			int copy = Math.min(data.length, dataBlockLength);
+			System.arraycopy(data, 0, this.data, 0, copy);
+			if(copy < dataBlockLength)
+				Arrays.fill(this.data, copy, dataBlockLength, (byte)0);
 
 			if (OPTION_SAVE_PLAINKEY) {
 				flag |= ENTRY_FLAG_PLAINKEY;
@@ -716,7 +743,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			return out;
 		}
 
-		private ByteBuffer toHDBuffer() {
+		/** Write the header and data to a buffer from hdBufferPool. The caller must
+		 * release it. */
+		private PooledBuffer toHDBuffer() {
 			assert isEncrypted; // should have encrypted to get dataEncryptIV in control buffer
 			assert header.length == headerBlockLength;
 			assert data.length == dataBlockLength;
@@ -724,12 +753,25 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			if (header == null || data == null)
 				return null;
 
-			ByteBuffer out = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
+			PooledBuffer pooled = hdBufferPool.allocate();
+			ByteBuffer out = pooled.getByteBuffer();
 			out.put(header);
 			out.put(data);
+			// Pooled buffers are not zeroed.
+			for(int i=0;i<hdPadding;i++)
+				out.put((byte)0);
 
 			out.position(0);
-			return out;
+			return pooled;
+		}
+
+		/** Return the scratch copy of the data to the pool, if there is one. The entry
+		 * cannot be written again afterwards. */
+		private void releaseData() {
+			if(dataBuffer == null) return;
+			data = null;
+			dataBuffer.release();
+			dataBuffer = null;
 		}
 
 		private T getStorableBlock(byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta, DSAPublicKey knownKey) throws KeyVerifyException {
@@ -908,8 +950,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 
 			if (withData) {
-				ByteBuffer hdBuf = readHD(offset);
-				entry.setHD(hdBuf);
+				readHD(offset, entry);
 				boolean decrypted = cipherManager.decrypt(entry, routingKey);
 				if (!decrypted) {
 					if(logMINOR && validCache && likelyMatch)
@@ -926,23 +967,29 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	/**
-	 * Read header + data from disk
+	 * Read header + data from disk into the entry
 	 *
 	 * @param offset
+	 * @param entry
 	 * @throws IOException
 	 */
-	private ByteBuffer readHD(long offset) throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
+	private void readHD(long offset, Entry entry) throws IOException {
+		PooledBuffer pooled = hdBufferPool.allocate();
+		try {
+			ByteBuffer buf = pooled.getByteBuffer();
 
-		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
-		do {
-			int status = hdFC.read(buf, pos + buf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (buf.hasRemaining());
-		buf.flip();
+			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+			do {
+				int status = hdFC.read(buf, pos + buf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (buf.hasRemaining());
+			buf.flip();
 
-		return buf;
+			entry.setHD(buf);
+		} finally {
+			pooled.release();
+		}
 	}
 
 	/** Get the flags for a slot. Tries to use the slot filter if possible. However, the
@@ -1004,14 +1051,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				throw new EOFException();
 		} while (bf.hasRemaining());
 
-		bf = entry.toHDBuffer();
-		if (bf != null) {
-			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
-			do {
-				int status = hdFC.write(bf, pos + bf.position());
-				if (status == -1)
-					throw new EOFException();
-			} while (bf.hasRemaining());
+		PooledBuffer pooled = entry.toHDBuffer();
+		if (pooled != null) {
+			try {
+				bf = pooled.getByteBuffer();
+				long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+				do {
+					int status = hdFC.write(bf, pos + bf.position());
+					if (status == -1)
+						throw new EOFException();
+				} while (bf.hasRemaining());
+			} finally {
+				pooled.release();
+			}
 		}
 
 		entry.curOffset = offset;
@@ -1019,6 +1071,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		Logger.normal(this, "Buffer pools for " + name + ": " + hdBufferPool + " hit rate " + hdBufferPool.getHitRate() +
+				", " + dataBufferPool + " hit rate " + dataBufferPool.getHitRate() +
+				(hdBufferPool.getLeaks() + dataBufferPool.getLeaks() > 0 ? " LEAKED " + (hdBufferPool.getLeaks() + dataBufferPool.getLeaks()) : ""));
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -1453,7 +1508,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						                + ", Offset=" + entry.curOffset);
 					}
 					try {
-						entry.setHD(readHD(entry.curOffset));
+						readHD(entry.curOffset, entry);
 						oldEntryList.add(entry);
 						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
 							oldEntryList.poll();
@@ -2153,6 +2208,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return bloomFalsePos.get();
 	}
 
+	/** Pool of direct buffers used for header+data I/O. For statistics. */
+	public BlockBufferPool getHDBufferPool() {
+		return hdBufferPool;
+	}
+
+	/** Pool of scratch buffers used when encrypting blocks to write. For statistics. */
+	public BlockBufferPool getDataBufferPool() {
+		return dataBufferPool;
+	}
+
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		configLock.readLock().lock();
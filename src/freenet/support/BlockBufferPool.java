@@ -0,0 +1,242 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size, reference counted buffers, used for the 32KB (plus headers) scratch
+ * buffers that would otherwise be allocated and thrown away for every block that passes
+ * through the datastore. The buffers can optionally be direct (off-heap) ByteBuffer's, which
+ * also avoids the JDK copying a heap buffer into a temporary direct buffer on every
+ * FileChannel read or write.
+ *
+ * A buffer is allocated with a reference count of 1. Code which hands it to somebody else
+ * should retain() it first, and everyone must release() it exactly once when they are done.
+ * When the count drops to zero, the underlying memory goes back to the pool, so it MUST NOT
+ * be used after that point. If the pool is full the memory is simply left for the garbage
+ * collector.
+ *
+ * If DEBUG logging is enabled for this class when a buffer is allocated, we remember where it
+ * was allocated and complain if it is garbage collected without having been released.
+ */
+public class BlockBufferPool {
+
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(BlockBufferPool.class);
+	}
+
+	private final String name;
+	private final int bufferSize;
+	private final int maxPooled;
+	private final boolean direct;
+	private final ConcurrentLinkedQueue<ByteBuffer> pool;
+	/** Approximate number of buffers in the pool. ConcurrentLinkedQueue.size() is O(n). */
+	private final AtomicInteger pooled;
+	private final long createdTime;
+
+	// Statistics
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong newAllocations = new AtomicLong();
+	private final AtomicLong releases = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+
+	/**
+	 * @param name The name of the pool, for logging and statistics.
+	 * @param bufferSize The size of every buffer in the pool.
+	 * @param maxPooled The maximum number of free buffers to keep.
+	 * @param direct If true, allocate direct (off-heap) ByteBuffer's. These do not have a
+	 * backing array, so getArray() will not work.
+	 */
+	public BlockBufferPool(String name, int bufferSize, int maxPooled, boolean direct) {
+		if(bufferSize <= 0) throw new IllegalArgumentException("Bad buffer size "+bufferSize);
+		if(maxPooled < 0) throw new IllegalArgumentException("Bad pool size "+maxPooled);
+		this.name = name;
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+		this.pool = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.pooled = new AtomicInteger();
+		this.createdTime = System.currentTimeMillis();
+	}
+
+	/** Get a buffer from the pool, or allocate a new one if the pool is empty. The buffer
+	 * is cleared (position 0, limit at capacity), but its contents are NOT zeroed. */
+	public PooledBuffer allocate() {
+		allocations.incrementAndGet();
+		ByteBuffer buf = pool.poll();
+		if(buf != null) {
+			pooled.decrementAndGet();
+			buf.clear();
+		} else {
+			newAllocations.incrementAndGet();
+			buf = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		}
+		return new PooledBuffer(buf, logDEBUG ? new LeakTracker(this) : null);
+	}
+
+	private void free(ByteBuffer buf) {
+		releases.incrementAndGet();
+		if(pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			discarded.incrementAndGet();
+			return;
+		}
+		pool.add(buf);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/** Total number of calls to allocate(). */
+	public long getAllocations() {
+		return allocations.get();
+	}
+
+	/** Number of allocate() calls which could not be satisfied from the pool. */
+	public long getNewAllocations() {
+		return newAllocations.get();
+	}
+
+	/** Number of buffers returned to the pool or discarded because it was full. */
+	public long getReleases() {
+		return releases.get();
+	}
+
+	/** Number of released buffers dropped because the pool was full. */
+	public long getDiscarded() {
+		return discarded.get();
+	}
+
+	/** Number of buffers garbage collected without being released. Only counted when
+	 * DEBUG logging was enabled at the time they were allocated. */
+	public long getLeaks() {
+		return leaks.get();
+	}
+
+	/** Number of free buffers currently in the pool. */
+	public int getPooled() {
+		return pooled.get();
+	}
+
+	/** Number of buffers allocated but not yet released, including any that have leaked. */
+	public long getOutstanding() {
+		return allocations.get() - releases.get();
+	}
+
+	/** Fraction of allocate() calls satisfied from the pool. */
+	public double getHitRate() {
+		long total = allocations.get();
+		if(total == 0) return 0.0;
+		return 1.0 - ((double)newAllocations.get()) / total;
+	}
+
+	/** Bytes per second allocated from the heap (or off-heap) since the pool was created,
+	 * i.e. the garbage we did NOT manage to avoid. */
+	public double getAllocationRate() {
+		long elapsed = System.currentTimeMillis() - createdTime;
+		if(elapsed <= 0) return 0.0;
+		return ((double)newAllocations.get()) * bufferSize * 1000.0 / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+name+":size="+bufferSize+(direct?":direct":"")+
+			":pooled="+pooled.get()+":outstanding="+getOutstanding();
+	}
+
+	/** A buffer borrowed from the pool. */
+	public final class PooledBuffer {
+
+		private final ByteBuffer buf;
+		private final AtomicInteger refs;
+		/** Only set if we are tracking leaks. Finalized when we are garbage collected. */
+		private final LeakTracker tracker;
+
+		private PooledBuffer(ByteBuffer buf, LeakTracker tracker) {
+			this.buf = buf;
+			this.refs = new AtomicInteger(1);
+			this.tracker = tracker;
+			if(tracker != null) tracker.refs = refs;
+		}
+
+		/** @return The buffer. Do not keep a reference to it after calling release(). */
+		public ByteBuffer getByteBuffer() {
+			checkLive();
+			return buf;
+		}
+
+		/** @return The backing array. Do not keep a reference to it after calling release().
+		 * @throws UnsupportedOperationException If the pool is direct. */
+		public byte[] getArray() {
+			checkLive();
+			if(direct) throw new UnsupportedOperationException("Direct buffer has no array");
+			return buf.array();
+		}
+
+		/** Add a reference. Must be balanced by a release(). */
+		public PooledBuffer retain() {
+			while(true) {
+				int count = refs.get();
+				if(count <= 0) throw new IllegalStateException("Buffer already released on "+BlockBufferPool.this);
+				if(refs.compareAndSet(count, count+1)) return this;
+			}
+		}
+
+		/** Drop a reference. When the last reference is dropped the buffer is returned to the
+		 * pool.
+		 * @return True if this was the last reference. */
+		public boolean release() {
+			int count = refs.decrementAndGet();
+			if(count > 0) return false;
+			if(count < 0) {
+				Logger.error(this, "Released too many times: "+this+" on "+BlockBufferPool.this, new Exception("error"));
+				return false;
+			}
+			free(buf);
+			return true;
+		}
+
+		private void checkLive() {
+			if(refs.get() <= 0) throw new IllegalStateException("Buffer already released on "+BlockBufferPool.this);
+		}
+
+	}
+
+	/** Reachable only from a PooledBuffer, so it is finalized when the PooledBuffer is
+	 * collected. We don't put a finalizer on PooledBuffer itself because finalizers are
+	 * expensive and we only want to pay for them when debugging. */
+	private static class LeakTracker {
+
+		private final BlockBufferPool pool;
+		private final Exception allocatedAt;
+		AtomicInteger refs;
+
+		LeakTracker(BlockBufferPool pool) {
+			this.pool = pool;
+			this.allocatedAt = new Exception("Allocated here");
+		}
+
+		@Override
+		protected void finalize() {
+			if(refs != null && refs.get() > 0) {
+				pool.leaks.incrementAndGet();
+				Logger.error(this, "Buffer leaked (garbage collected without being released) from "+pool, allocatedAt);
+			}
+		}
+
+	}
+
+}
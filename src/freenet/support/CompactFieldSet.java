@@ -0,0 +1,700 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import freenet.node.FSParseException;
+import freenet.support.io.LineReader;
+
+/**
+ * Immutable, array-backed field set, in the same text format as SimpleFieldSet. For the
+ * hot paths which parse a field set, look at it, and either throw it away or convert it:
+ * mainly noderefs arriving by opennet path folding and announcement, which are parsed
+ * for every successful request.
+ *
+ * Compared to SimpleFieldSet:
+ * - Parsing from a byte array is a single pass over the bytes, with no Reader, and no
+ * String for each line.
+ * - The keys of a noderef are shared between all CompactFieldSet's, already split into
+ * their components, so parsing a noderef doesn't allocate anything for its keys, and
+ * converting to a SimpleFieldSet doesn't have to split them again.
+ * - Entries are kept sorted, in the same order as SimpleFieldSet.toOrderedString(), so
+ * lookup is a binary search, a subset is a contiguous range, and writing it out doesn't
+ * rebuild the prefixes recursively.
+ * - There is a compact binary serialization, which shares key prefixes.
+ * - No locking is needed, since it can't change.
+ */
+public final class CompactFieldSet {
+
+	/** A key, with its components split at MULTI_LEVEL_CHAR. Noderef keys are shared via
+	 * the key table. */
+	static final class Key {
+		final String name;
+		final String[] path;
+		final int hash;
+
+		Key(String name) {
+			this.name = name;
+			this.hash = name.hashCode();
+			this.path = split(name);
+		}
+
+		private static String[] split(String name) {
+			int count = 1;
+			for(int i=0;i<name.length();i++)
+				if(name.charAt(i) == SimpleFieldSet.MULTI_LEVEL_CHAR) count++;
+			String[] path = new String[count];
+			int start = 0;
+			for(int i=0;i<count-1;i++) {
+				int end = name.indexOf(SimpleFieldSet.MULTI_LEVEL_CHAR, start);
+				path[i] = name.substring(start, end);
+				start = end+1;
+			}
+			path[count-1] = name.substring(start);
+			return path;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/** The order used by SimpleFieldSet.writeToOrdered(): at each level, the values in
+	 * order, then the subsets in order. */
+	static final Comparator<Key> KEY_ORDER = new Comparator<Key>() {
+
+		@Override
+		public int compare(Key a, Key b) {
+			if(a == b) return 0;
+			String[] pa = a.path;
+			String[] pb = b.path;
+			for(int d=0;;d++) {
+				boolean aLeaf = d == pa.length-1;
+				boolean bLeaf = d == pb.length-1;
+				if(aLeaf != bLeaf) return aLeaf ? -1 : 1;
+				int result = pa[d].compareTo(pb[d]);
+				if(result != 0) return result;
+				if(aLeaf) return 0;
+			}
+		}
+
+	};
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The keys which are shared: those in a noderef, and the ones PeerNode looks up in
+	 * its subsets. Keys are parsed from data sent by untrusted peers, so anything else gets
+	 * its own Key rather than filling up a shared table. */
+	private static final String[] SHARED_KEYS = new String[] {
+		"ark.number", "ark.pubURI", "auth.negTypes", "dsaGroup.g", "dsaGroup.p", "dsaGroup.q",
+		"dsaPubKey.y", "identity", "lastGoodVersion", "location", "myName", "opennet",
+		"physical.udp", "sig", "testnet", "version", "g", "p", "q", "y"
+	};
+	/** Open addressing, linear probing, at most half full. Never changes once built, so it
+	 * is read without locking. */
+	private static final Key[] keyTable;
+
+	static {
+		int size = Integer.highestOneBit(SHARED_KEYS.length) * 4;
+		keyTable = new Key[size];
+		for(String name : SHARED_KEYS) {
+			Key key = new Key(name);
+			int i = key.hash & (size - 1);
+			while(keyTable[i] != null) i = (i+1) & (size - 1);
+			keyTable[i] = key;
+		}
+	}
+
+	/** Sorted by KEY_ORDER, no duplicates. */
+	private final Key[] keys;
+	private final String[] values;
+	private final String[] header;
+	private final String endMarker;
+
+	private CompactFieldSet(Key[] keys, String[] values, String[] header, String endMarker) {
+		this.keys = keys;
+		this.values = values;
+		this.header = header;
+		this.endMarker = endMarker;
+	}
+
+	/** @return The shared Key for the given name, or a new one if it isn't shared. */
+	static Key key(String name) {
+		return key(name, 0, name.length());
+	}
+
+	/** @return The shared Key for the given part of the string, or a new one. */
+	private static Key key(String s, int start, int end) {
+		int hash = 0;
+		for(int i=start;i<end;i++)
+			hash = 31*hash + s.charAt(i);
+		int length = end - start;
+		int mask = keyTable.length - 1;
+		for(int i = hash & mask;;i = (i+1) & mask) {
+			Key k = keyTable[i];
+			if(k == null) break;
+			if(k.hash == hash && k.name.length() == length && k.name.regionMatches(0, s, start, length))
+				return k;
+		}
+		return new Key(start == 0 && end == s.length() ? s : s.substring(start, end));
+	}
+
+	/** @return The shared Key for the given UTF-8 bytes, or a new one. */
+	private static Key key(byte[] buf, int offset, int length) {
+		int hash = 0;
+		for(int i=0;i<length;i++) {
+			int b = buf[offset+i];
+			// Not ASCII, so we need to decode it first.
+			if(b < 0) return key(new String(buf, offset, length, UTF8));
+			hash = 31*hash + b;
+		}
+		int mask = keyTable.length - 1;
+		for(int i = hash & mask;;i = (i+1) & mask) {
+			Key k = keyTable[i];
+			if(k == null) break;
+			if(k.hash == hash && k.name.length() == length && matches(k.name, buf, offset))
+				return k;
+		}
+		return new Key(new String(buf, offset, length, UTF8));
+	}
+
+	private static boolean matches(String name, byte[] buf, int offset) {
+		for(int i=0;i<name.length();i++)
+			if(name.charAt(i) != buf[offset+i]) return false;
+		return true;
+	}
+
+	/** An entry while parsing. */
+	private static final class Entry {
+		final Key key;
+		final String value;
+		Entry(Key key, String value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry a, Entry b) {
+			return KEY_ORDER.compare(a.key, b.key);
+		}
+
+	};
+
+	/** Sort the entries, and combine or drop duplicates the same way SimpleFieldSet does
+	 * when reading. */
+	private static CompactFieldSet create(ArrayList<Entry> entries, boolean allowMultiple, String[] header, String endMarker) {
+		// Stable, so duplicates stay in the order they were read.
+		Collections.sort(entries, ENTRY_ORDER);
+		int count = entries.size();
+		Key[] keys = new Key[count];
+		String[] values = new String[count];
+		int x = 0;
+		for(int i=0;i<count;i++) {
+			Entry e = entries.get(i);
+			if(x > 0 && (keys[x-1] == e.key || keys[x-1].name.equals(e.key.name))) {
+				if(allowMultiple)
+					values[x-1] = values[x-1] + SimpleFieldSet.MULTI_VALUE_CHAR + e.value;
+				continue;
+			}
+			keys[x] = e.key;
+			values[x] = e.value;
+			x++;
+		}
+		if(x < count) {
+			keys = Arrays.copyOf(keys, x);
+			values = Arrays.copyOf(values, x);
+		}
+		return new CompactFieldSet(keys, values, header, endMarker);
+	}
+
+	/**
+	 * Parse UTF-8 text in the format read by SimpleFieldSet, directly from a byte array.
+	 * @param allowMultiple If true, multiple lines with the same key are combined, as in
+	 * SimpleFieldSet. If false, the first is used.
+	 * @throws EOFException If there is nothing but blank lines.
+	 */
+	public static CompactFieldSet parse(byte[] buf, int offset, int length, boolean allowMultiple) throws IOException {
+		int end = offset + length;
+		boolean firstLine = true;
+		boolean headerSection = true;
+		ArrayList<String> headers = null;
+		String[] header = null;
+		String endMarker = null;
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		int pos = offset;
+		while(true) {
+			if(pos >= end) {
+				if(firstLine) throw new EOFException();
+				Logger.error(CompactFieldSet.class, "No end marker");
+				break;
+			}
+			int lineEnd = pos;
+			while(lineEnd < end && buf[lineEnd] != '\n') lineEnd++;
+			int next = lineEnd + 1;
+			if(lineEnd > pos && buf[lineEnd-1] == '\r') lineEnd--;
+			int lineStart = pos;
+			pos = next;
+			if(lineEnd == lineStart) continue;
+			firstLine = false;
+			if(buf[lineStart] == '#') {
+				if(headerSection) {
+					if(headers == null) headers = new ArrayList<String>();
+					headers.add(new String(buf, lineStart+1, lineEnd-lineStart-1, UTF8).trim());
+				}
+				continue;
+			}
+			if(headerSection) {
+				if(headers != null) header = headers.toArray(new String[headers.size()]);
+				headerSection = false;
+			}
+			int index = lineStart;
+			while(index < lineEnd && buf[index] != SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR) index++;
+			if(index == lineEnd) {
+				endMarker = new String(buf, lineStart, lineEnd-lineStart, UTF8);
+				break;
+			}
+			entries.add(new Entry(key(buf, lineStart, index-lineStart), new String(buf, index+1, lineEnd-index-1, UTF8)));
+		}
+		return create(entries, allowMultiple, header, endMarker);
+	}
+
+	/**
+	 * Parse text in the format read by SimpleFieldSet, a line at a time.
+	 * @see SimpleFieldSet#SimpleFieldSet(LineReader, int, int, boolean, boolean, boolean)
+	 */
+	public static CompactFieldSet read(LineReader lr, int maxLineLength, int lineBufferSize, boolean utf8OrIso88591, boolean allowMultiple) throws IOException {
+		boolean firstLine = true;
+		boolean headerSection = true;
+		ArrayList<String> headers = null;
+		String[] header = null;
+		String endMarker = null;
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		while(true) {
+			String line = lr.readLine(maxLineLength, lineBufferSize, utf8OrIso88591);
+			if(line == null) {
+				if(firstLine) throw new EOFException();
+				Logger.error(CompactFieldSet.class, "No end marker");
+				break;
+			}
+			if(line.length() == 0) continue;
+			firstLine = false;
+			if(line.charAt(0) == '#') {
+				if(headerSection) {
+					if(headers == null) headers = new ArrayList<String>();
+					headers.add(line.substring(1).trim());
+				}
+				continue;
+			}
+			if(headerSection) {
+				if(headers != null) header = headers.toArray(new String[headers.size()]);
+				headerSection = false;
+			}
+			int index = line.indexOf(SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR);
+			if(index == -1) {
+				endMarker = line;
+				break;
+			}
+			entries.add(new Entry(key(line, 0, index), line.substring(index+1)));
+		}
+		return create(entries, allowMultiple, header, endMarker);
+	}
+
+	/** Copy a SimpleFieldSet. */
+	public static CompactFieldSet create(SimpleFieldSet fs) {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		for(Iterator<String> i = fs.keyIterator(); i.hasNext();) {
+			String name = i.next();
+			entries.add(new Entry(key(name), fs.get(name)));
+		}
+		return create(entries, false, fs.getHeader(), fs.getEndMarker());
+	}
+
+	/**
+	 * Convert to a SimpleFieldSet, e.g. to construct a PeerNode from a noderef. Much
+	 * cheaper than parsing it again, since the keys are already split.
+	 * @param shortLived As for SimpleFieldSet: if false, the values are interned.
+	 */
+	public SimpleFieldSet toSimpleFieldSet(boolean shortLived) {
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		for(int i=0;i<keys.length;i++)
+			fs.putPath(keys[i].path, values[i]);
+		if(header != null) fs.setHeader(header.clone());
+		fs.setEndMarker(endMarker);
+		return fs;
+	}
+
+	/** Compare a key to a name, as KEY_ORDER, without splitting the name. */
+	private static int compare(Key key, String name) {
+		String[] path = key.path;
+		int start = 0;
+		for(int d=0;;d++) {
+			int end = name.indexOf(SimpleFieldSet.MULTI_LEVEL_CHAR, start);
+			boolean nameLeaf = end == -1;
+			if(nameLeaf) end = name.length();
+			boolean keyLeaf = d == path.length-1;
+			if(keyLeaf != nameLeaf) return keyLeaf ? -1 : 1;
+			int result = compareRegion(path[d], name, start, end);
+			if(result != 0) return result;
+			if(keyLeaf) return 0;
+			start = end+1;
+		}
+	}
+
+	/** As String.compareTo(), against part of a string. */
+	private static int compareRegion(String a, String b, int start, int end) {
+		int len = Math.min(a.length(), end - start);
+		for(int i=0;i<len;i++) {
+			int diff = a.charAt(i) - b.charAt(start+i);
+			if(diff != 0) return diff;
+		}
+		return a.length() - (end - start);
+	}
+
+	private int find(String name) {
+		int lo = 0;
+		int hi = keys.length - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int result = compare(keys[mid], name);
+			if(result < 0) lo = mid + 1;
+			else if(result > 0) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/** @return The value for the key, or null. */
+	public String get(String key) {
+		int idx = find(key);
+		return idx == -1 ? null : values[idx];
+	}
+
+	/** @return The values for the key, split at MULTI_VALUE_CHAR, or null. */
+	public String[] getAll(String key) {
+		String s = get(key);
+		if(s == null) return null;
+		return s.split(String.valueOf(SimpleFieldSet.MULTI_VALUE_CHAR));
+	}
+
+	public String getString(String key) throws FSParseException {
+		String s = get(key);
+		if(s == null) throw new FSParseException("No such element "+key);
+		return s;
+	}
+
+	public int getInt(String key, int def) {
+		String s = get(key);
+		if(s == null) return def;
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public int getInt(String key) throws FSParseException {
+		String s = get(key);
+		if(s == null) throw new FSParseException("No key "+key);
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			throw new FSParseException("Cannot parse "+s+" for integer "+key);
+		}
+	}
+
+	public long getLong(String key, long def) {
+		String s = get(key);
+		if(s == null) return def;
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public long getLong(String key) throws FSParseException {
+		String s = get(key);
+		if(s == null) throw new FSParseException("No key "+key);
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			throw new FSParseException("Cannot parse "+s+" for long "+key);
+		}
+	}
+
+	public double getDouble(String key, double def) {
+		String s = get(key);
+		if(s == null) return def;
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean def) {
+		return Fields.stringToBool(get(key), def);
+	}
+
+	public boolean getBoolean(String key) throws FSParseException {
+		try {
+			return Fields.stringToBool(get(key));
+		} catch(NumberFormatException e) {
+			throw new FSParseException(e);
+		}
+	}
+
+	/**
+	 * @return Everything under the given prefix, with the prefix removed, or null if there
+	 * is nothing under it. E.g. subset("dsaPubKey") contains "y".
+	 */
+	public CompactFieldSet subset(String prefix) {
+		String[] parts = new Key(prefix).path;
+		// The subset is a contiguous range.
+		int lo = 0;
+		int hi = keys.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(compareToSubset(keys[mid], parts) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		int start = lo;
+		hi = keys.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(compareToSubset(keys[mid], parts) <= 0) lo = mid + 1;
+			else hi = mid;
+		}
+		int end = lo;
+		if(start == end) return null;
+		Key[] subKeys = new Key[end - start];
+		int skip = prefix.length() + 1;
+		for(int i=start;i<end;i++)
+			subKeys[i-start] = key(keys[i].name, skip, keys[i].name.length());
+		// Removing the same prefix from all of them doesn't change the order.
+		return new CompactFieldSet(subKeys, Arrays.copyOfRange(values, start, end), null, null);
+	}
+
+	/** @return 0 if the key is in the subset, otherwise which side of it the key sorts. */
+	private static int compareToSubset(Key key, String[] parts) {
+		String[] path = key.path;
+		for(int d=0;d<parts.length;d++) {
+			// A value sorts before a subset at the same level.
+			if(d == path.length-1) return -1;
+			int result = path[d].compareTo(parts[d]);
+			if(result != 0) return result;
+		}
+		return 0;
+	}
+
+	/** @return The number of keys. */
+	public int size() {
+		return keys.length;
+	}
+
+	public boolean isEmpty() {
+		return keys.length == 0;
+	}
+
+	/** @return The i'th key, in the order they are written. */
+	public String getKey(int i) {
+		return keys[i].name;
+	}
+
+	/** @return The i'th value, in the order they are written. */
+	public String getValue(int i) {
+		return values[i];
+	}
+
+	public String getEndMarker() {
+		return endMarker;
+	}
+
+	public String[] getHeader() {
+		return header == null ? null : header.clone();
+	}
+
+	/**
+	 * Write in the text format. Identical to SimpleFieldSet.writeToOrdered() for the same
+	 * contents.
+	 * Note: The caller *must* buffer the writer to avoid lousy performance!
+	 */
+	public void writeTo(Writer w) throws IOException {
+		if(header != null) {
+			for(String line : header) {
+				w.write("# ");
+				w.write(line);
+				w.write('\n');
+			}
+		}
+		for(int i=0;i<keys.length;i++) {
+			w.write(keys[i].name);
+			w.write(SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR);
+			w.write(values[i]);
+			w.write('\n');
+		}
+		if(endMarker == null)
+			w.write("End\n");
+		else {
+			w.write(endMarker);
+			w.write('\n');
+		}
+	}
+
+	static final int BINARY_VERSION = 1;
+
+	/**
+	 * Write in the binary format. Each key is written as the number of characters it
+	 * shares with the previous key, followed by the rest of it; since they are sorted,
+	 * this removes most of the repeated prefixes.
+	 */
+	public void writeBinary(DataOutput out) throws IOException {
+		out.writeByte(BINARY_VERSION);
+		if(header == null) {
+			writeLength(out, 0);
+		} else {
+			writeLength(out, header.length);
+			for(String line : header)
+				writeString(out, line);
+		}
+		out.writeBoolean(endMarker != null);
+		if(endMarker != null) writeString(out, endMarker);
+		writeLength(out, keys.length);
+		String prev = "";
+		for(int i=0;i<keys.length;i++) {
+			String name = keys[i].name;
+			int shared = 0;
+			int max = Math.min(prev.length(), name.length());
+			while(shared < max && prev.charAt(shared) == name.charAt(shared)) shared++;
+			writeLength(out, shared);
+			writeString(out, name.substring(shared));
+			writeString(out, values[i]);
+			prev = name;
+		}
+	}
+
+	/**
+	 * Read the binary format.
+	 * @param maxLength The maximum total length of all the strings, in bytes, so we don't
+	 * allocate huge amounts of memory for bogus data.
+	 * @throws IOException If the data is invalid or too long.
+	 */
+	public static CompactFieldSet readBinary(DataInput in, int maxLength) throws IOException {
+		int version = in.readUnsignedByte();
+		if(version != BINARY_VERSION) throw new IOException("Unknown version "+version);
+		int[] remaining = new int[] { maxLength };
+		int headerCount = readLength(in, remaining);
+		String[] header = null;
+		if(headerCount > 0) {
+			header = new String[headerCount];
+			for(int i=0;i<headerCount;i++)
+				header[i] = readString(in, remaining);
+		}
+		String endMarker = in.readBoolean() ? readString(in, remaining) : null;
+		int count = readLength(in, remaining);
+		Key[] keys = new Key[count];
+		String[] values = new String[count];
+		String prev = "";
+		for(int i=0;i<count;i++) {
+			int shared = readLength(in, remaining);
+			if(shared > prev.length()) throw new IOException("Invalid shared prefix length");
+			String suffix = readString(in, remaining);
+			String name = shared == 0 ? suffix : prev.substring(0, shared) + suffix;
+			keys[i] = key(name);
+			values[i] = readString(in, remaining);
+			if(i > 0 && KEY_ORDER.compare(keys[i-1], keys[i]) >= 0)
+				throw new IOException("Keys out of order: "+keys[i-1]+" before "+keys[i]);
+			prev = name;
+		}
+		return new CompactFieldSet(keys, values, header, endMarker);
+	}
+
+	/** Variable length, 7 bits at a time, least significant first. */
+	private static void writeLength(DataOutput out, int length) throws IOException {
+		while((length & ~0x7F) != 0) {
+			out.writeByte((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		out.writeByte(length);
+	}
+
+	/** Every length counts against the limit, at least one byte each, so the number of
+	 * entries is bounded too. */
+	private static int readLength(DataInput in, int[] remaining) throws IOException {
+		int length = 0;
+		for(int shift=0;shift<32;shift+=7) {
+			int b = in.readUnsignedByte();
+			length |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				if(length < 0 || length > remaining[0]) throw new IOException("Too long");
+				return length;
+			}
+		}
+		throw new IOException("Invalid length");
+	}
+
+	private static void writeString(DataOutput out, String s) throws IOException {
+		byte[] buf = s.getBytes(UTF8);
+		writeLength(out, buf.length);
+		out.write(buf);
+	}
+
+	private static String readString(DataInput in, int[] remaining) throws IOException {
+		int length = readLength(in, remaining);
+		remaining[0] -= length;
+		if(length == 0) return "";
+		byte[] buf = new byte[length];
+		in.readFully(buf);
+		return new String(buf, UTF8);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(o == this) return true;
+		if(!(o instanceof CompactFieldSet)) return false;
+		CompactFieldSet fs = (CompactFieldSet) o;
+		if(keys.length != fs.keys.length) return false;
+		for(int i=0;i<keys.length;i++) {
+			if(!keys[i].name.equals(fs.keys[i].name)) return false;
+			if(!values[i].equals(fs.values[i])) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 0;
+		for(int i=0;i<keys.length;i++)
+			hash = 31*hash + (keys[i].hash ^ values[i].hashCode());
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		StringWriter sw = new StringWriter();
+		try {
+			writeTo(sw);
+		} catch (IOException e) {
+			Logger.error(this, "WTF?!: "+e+" in toString()!", e);
+		}
+		return sw.toString();
+	}
+
+}
@@ -0,0 +1,34 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+
+/**
+ * A node whose content is written directly with an HTMLWriter when the tree is generated,
+ * rather than being built as HTMLNode's in advance. Use this for the large, repetitive parts
+ * of a page, e.g. a table with a row for every peer, so that they are never held in memory
+ * as a tree: with Toadlet.writeHTMLReply(ToadletContext, int, String, HTMLNode) they go
+ * straight to the browser.
+ *
+ * Like a text node, it writes its content in place, with no element of its own. It may be
+ * generated more than once, so write() should not have side effects.
+ */
+public abstract class DeferredHTMLNode extends HTMLNode {
+
+	public DeferredHTMLNode() {
+		super("#");
+	}
+
+	@Override
+	public void generate(HTMLWriter out, int indentDepth) throws IOException {
+		long saved = out.enter(indentDepth);
+		write(out);
+		out.leave(saved);
+	}
+
+	/** Write the content. Any elements begun must be ended. */
+	protected abstract void write(HTMLWriter out) throws IOException;
+
+}
@@ -0,0 +1,362 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Selection structure for scheduling requests: per-priority, per-client fair queues, plus a
+ * separate heap of items which are in cooldown. Items in cooldown are never looked at until
+ * they wake up, unlike with RandomGrabArray, which has to skip over them on every selection.
+ *
+ * Within a priority class, clients take turns (round robin), and each client's items are
+ * returned in the order they became ready. Lower priority numbers are more important, as
+ * with RequestStarter's priority classes.
+ *
+ * poll() removes the item it returns. The caller either removes it for good, or re-adds it
+ * with add(), e.g. with a cooldown wakeup time once the request has been sent.
+ *
+ * Costs: add(), remove() and setWakeupTime() are O(log n) for items in cooldown and O(1)
+ * otherwise. poll() is O(1) plus O(log n) for each item that has woken up since the last call.
+ * All methods synchronize on the queue, and only hold the lock for that long. Items are
+ * compared by identity.
+ */
+public class FairCooldownQueue<C, T> {
+
+	/** Per-item state. */
+	private static final class Entry<C, T> {
+		final T item;
+		final ClientQueue<C, T> client;
+		final int priority;
+		/** Time at which the item becomes ready, or 0 if it is ready. */
+		long wakeupTime;
+		/** Index in the cooldown heap, or -1 if it is ready. */
+		int heapIndex = -1;
+		/** Links in the client's queue of ready items. */
+		Entry<C, T> prev;
+		Entry<C, T> next;
+		Entry(T item, ClientQueue<C, T> client, int priority) {
+			this.item = item;
+			this.client = client;
+			this.priority = priority;
+		}
+	}
+
+	/** Ready items for one client at one priority. */
+	private static final class ClientQueue<C, T> {
+		final C client;
+		final int priority;
+		/** Total items, ready or not. */
+		int count;
+		Entry<C, T> head;
+		Entry<C, T> tail;
+		/** Links in the priority's round robin of clients with ready items. */
+		ClientQueue<C, T> prev;
+		ClientQueue<C, T> next;
+		boolean inRing;
+		ClientQueue(C client, int priority) {
+			this.client = client;
+			this.priority = priority;
+		}
+	}
+
+	/** Per priority: clients with ready items, in round robin order. ringHeads[p] is next. */
+	private final ClientQueue<C, T>[] ringHeads;
+	/** Per priority: all clients with items, by identity. */
+	private final IdentityHashMap<C, ClientQueue<C, T>>[] clients;
+	/** All items, by identity. */
+	private final IdentityHashMap<T, Entry<C, T>> entries;
+	/** Binary min-heap of items in cooldown, by wakeup time. */
+	private Entry<C, T>[] heap;
+	private int heapSize;
+	private int readyCount;
+
+	/** @param priorities The number of priority classes. */
+	@SuppressWarnings("unchecked")
+	public FairCooldownQueue(int priorities) {
+		ringHeads = (ClientQueue<C, T>[]) new ClientQueue<?, ?>[priorities];
+		clients = (IdentityHashMap<C, ClientQueue<C, T>>[]) new IdentityHashMap<?, ?>[priorities];
+		for(int i=0;i<priorities;i++)
+			clients[i] = new IdentityHashMap<C, ClientQueue<C, T>>();
+		entries = new IdentityHashMap<T, Entry<C, T>>();
+		heap = (Entry<C, T>[]) new Entry<?, ?>[16];
+	}
+
+	/**
+	 * Add an item, or update it if it is already queued.
+	 * @param item The item to add.
+	 * @param client The client it belongs to, for fairness between clients.
+	 * @param priority The priority class, 0 is the most important.
+	 * @param wakeupTime The time at which the item can be chosen, or 0 if it can be chosen
+	 * immediately.
+	 */
+	public synchronized void add(T item, C client, int priority, long wakeupTime) {
+		Entry<C, T> e = entries.get(item);
+		if(e != null) {
+			if(e.client.client == client && e.priority == priority) {
+				setWakeupTime(e, wakeupTime);
+				return;
+			}
+			remove(e);
+		}
+		ClientQueue<C, T> queue = clients[priority].get(client);
+		if(queue == null) {
+			queue = new ClientQueue<C, T>(client, priority);
+			clients[priority].put(client, queue);
+		}
+		e = new Entry<C, T>(item, queue, priority);
+		entries.put(item, e);
+		queue.count++;
+		if(wakeupTime > 0) {
+			e.wakeupTime = wakeupTime;
+			heapAdd(e);
+		} else {
+			makeReady(e);
+		}
+	}
+
+	/** @return True if the item was queued. */
+	public synchronized boolean remove(T item) {
+		Entry<C, T> e = entries.get(item);
+		if(e == null) return false;
+		remove(e);
+		return true;
+	}
+
+	/** Change when an item can next be chosen.
+	 * @param wakeupTime 0 to make it ready now.
+	 * @return False if the item isn't queued. */
+	public synchronized boolean setWakeupTime(T item, long wakeupTime) {
+		Entry<C, T> e = entries.get(item);
+		if(e == null) return false;
+		setWakeupTime(e, wakeupTime);
+		return true;
+	}
+
+	public synchronized boolean contains(T item) {
+		return entries.containsKey(item);
+	}
+
+	/**
+	 * Choose and remove the next item.
+	 * @param now The current time. Items in cooldown until this time or earlier are woken up.
+	 * @param maxPriority The least important priority class to consider.
+	 * @return The item, or null if nothing at or above maxPriority is ready.
+	 */
+	public T poll(long now, int maxPriority) {
+		return poll(now, 0, maxPriority);
+	}
+
+	/**
+	 * Choose and remove the next item, trying firstPriority before the more important classes,
+	 * e.g. to give less important classes an occasional turn.
+	 * @param now The current time. Items in cooldown until this time or earlier are woken up.
+	 * @param firstPriority The priority class to try first. If it has nothing ready, the less
+	 * important classes up to maxPriority are tried, then the more important classes.
+	 * @param maxPriority The least important priority class to consider.
+	 * @return The item, or null if nothing at or above maxPriority is ready.
+	 */
+	public synchronized T poll(long now, int firstPriority, int maxPriority) {
+		wakeUp(now);
+		if(readyCount == 0) return null;
+		int max = Math.min(maxPriority, ringHeads.length - 1);
+		if(max < 0) return null;
+		int first = Math.max(0, Math.min(firstPriority, max));
+		for(int i=0;i<=max;i++) {
+			int p = (first + i) % (max + 1);
+			ClientQueue<C, T> queue = ringHeads[p];
+			if(queue == null) continue;
+			Entry<C, T> e = queue.head;
+			// Next time, start with the next client.
+			ringHeads[p] = queue.next;
+			remove(e);
+			return e.item;
+		}
+		return null;
+	}
+
+	/** @return The earliest time at which an item in cooldown will wake up, or Long.MAX_VALUE
+	 * if nothing is in cooldown. Does not consider items which are already ready. */
+	public synchronized long nextWakeupTime() {
+		if(heapSize == 0) return Long.MAX_VALUE;
+		return heap[0].wakeupTime;
+	}
+
+	/** @return The number of items which are ready, up to the last poll(). */
+	public synchronized int readyCount() {
+		return readyCount;
+	}
+
+	/** @return The total number of items, ready or in cooldown. */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** @return The number of items in cooldown. */
+	public synchronized int cooldownCount() {
+		return heapSize;
+	}
+
+	private void wakeUp(long now) {
+		while(heapSize > 0 && heap[0].wakeupTime <= now) {
+			Entry<C, T> e = heap[0];
+			heapRemove(e);
+			e.wakeupTime = 0;
+			makeReady(e);
+		}
+	}
+
+	private void setWakeupTime(Entry<C, T> e, long wakeupTime) {
+		if(wakeupTime <= 0) {
+			if(e.heapIndex == -1) return; // Already ready.
+			heapRemove(e);
+			e.wakeupTime = 0;
+			makeReady(e);
+		} else if(e.heapIndex == -1) {
+			unready(e);
+			e.wakeupTime = wakeupTime;
+			heapAdd(e);
+		} else {
+			long old = e.wakeupTime;
+			e.wakeupTime = wakeupTime;
+			if(wakeupTime < old)
+				siftUp(e.heapIndex);
+			else
+				siftDown(e.heapIndex);
+		}
+	}
+
+	private void remove(Entry<C, T> e) {
+		entries.remove(e.item);
+		if(e.heapIndex != -1)
+			heapRemove(e);
+		else
+			unready(e);
+		ClientQueue<C, T> queue = e.client;
+		if(--queue.count == 0)
+			clients[e.priority].remove(queue.client);
+	}
+
+	/** Append to the client's ready queue, and put the client in the round robin. */
+	private void makeReady(Entry<C, T> e) {
+		ClientQueue<C, T> queue = e.client;
+		e.next = null;
+		e.prev = queue.tail;
+		if(queue.tail == null)
+			queue.head = e;
+		else
+			queue.tail.next = e;
+		queue.tail = e;
+		readyCount++;
+		if(!queue.inRing) {
+			// Add at the end of the round robin, i.e. just before the head.
+			ClientQueue<C, T> head = ringHeads[queue.priority];
+			if(head == null) {
+				queue.next = queue;
+				queue.prev = queue;
+				ringHeads[queue.priority] = queue;
+			} else {
+				queue.next = head;
+				queue.prev = head.prev;
+				head.prev.next = queue;
+				head.prev = queue;
+			}
+			queue.inRing = true;
+		}
+	}
+
+	/** Remove from the client's ready queue, and remove the client from the round robin if
+	 * it has nothing else ready. */
+	private void unready(Entry<C, T> e) {
+		ClientQueue<C, T> queue = e.client;
+		if(e.prev == null)
+			queue.head = e.next;
+		else
+			e.prev.next = e.next;
+		if(e.next == null)
+			queue.tail = e.prev;
+		else
+			e.next.prev = e.prev;
+		e.prev = null;
+		e.next = null;
+		readyCount--;
+		if(queue.head == null && queue.inRing) {
+			int p = queue.priority;
+			if(queue.next == queue) {
+				ringHeads[p] = null;
+			} else {
+				queue.prev.next = queue.next;
+				queue.next.prev = queue.prev;
+				if(ringHeads[p] == queue)
+					ringHeads[p] = queue.next;
+			}
+			queue.next = null;
+			queue.prev = null;
+			queue.inRing = false;
+		}
+	}
+
+	private void heapAdd(Entry<C, T> e) {
+		if(heapSize == heap.length)
+			heap = Arrays.copyOf(heap, heap.length * 2);
+		heap[heapSize] = e;
+		e.heapIndex = heapSize;
+		heapSize++;
+		siftUp(e.heapIndex);
+	}
+
+	private void heapRemove(Entry<C, T> e) {
+		int i = e.heapIndex;
+		heapSize--;
+		Entry<C, T> last = heap[heapSize];
+		heap[heapSize] = null;
+		e.heapIndex = -1;
+		if(i != heapSize) {
+			heap[i] = last;
+			last.heapIndex = i;
+			siftDown(i);
+			siftUp(last.heapIndex);
+		}
+		if(heap.length > 16 && heapSize < heap.length / 4)
+			heap = Arrays.copyOf(heap, heap.length / 2);
+	}
+
+	private void siftUp(int i) {
+		Entry<C, T> e = heap[i];
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			Entry<C, T> p = heap[parent];
+			if(p.wakeupTime <= e.wakeupTime) break;
+			heap[i] = p;
+			p.heapIndex = i;
+			i = parent;
+		}
+		heap[i] = e;
+		e.heapIndex = i;
+	}
+
+	private void siftDown(int i) {
+		Entry<C, T> e = heap[i];
+		while(true) {
+			int child = 2 * i + 1;
+			if(child >= heapSize) break;
+			if(child + 1 < heapSize && heap[child + 1].wakeupTime < heap[child].wakeupTime)
+				child++;
+			Entry<C, T> c = heap[child];
+			if(e.wakeupTime <= c.wakeupTime) break;
+			heap[i] = c;
+			c.heapIndex = i;
+			i = child;
+		}
+		heap[i] = e;
+		e.heapIndex = i;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString()+": ready="+readyCount+" cooldown="+heapSize;
+	}
+
+}
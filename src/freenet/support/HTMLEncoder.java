@@ -52,6 +52,11 @@ public class HTMLEncoder {
 		
 	}
 
+	/** @return The entity to use for c, or null if it can be written as it is. */
+	static String getEntity(char c) {
+		return charTable.get(c);
+	}
+
 	/**
 	 * Encode String so it is safe to be used in XML attribute value and text.
 	 * 
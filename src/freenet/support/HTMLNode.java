@@ -1,12 +1,12 @@
 package freenet.support;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.regex.Pattern;
 
 public class HTMLNode implements XMLCharacterClasses, Cloneable {
@@ -37,110 +37,13 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 		this(name, null);
 	}
 
-	private static final ArrayList<String> EmptyTag = new ArrayList<String>(10);
-	private static final ArrayList<String> OpenTags = new ArrayList<String>(12);
-	private static final ArrayList<String> CloseTags = new ArrayList<String>(12);
-
-	static {
-		/* HTML elements which are allowed to be empty */
-		EmptyTag.add("area");
-		EmptyTag.add("base");
-		EmptyTag.add("br");
-		EmptyTag.add("col");
-		EmptyTag.add("hr");
-		EmptyTag.add("img");
-		EmptyTag.add("input");
-		EmptyTag.add("link");
-		EmptyTag.add("meta");
-		EmptyTag.add("param");
-		/* HTML elements for which we should add a newline following the open tag. */
-		OpenTags.add("body");
-		OpenTags.add("div");
-		OpenTags.add("form");
-		OpenTags.add("head");
-		OpenTags.add("html");
-		OpenTags.add("input");
-		OpenTags.add("ol");
-		OpenTags.add("script");
-		OpenTags.add("table");
-		OpenTags.add("td");
-		OpenTags.add("tr");
-		OpenTags.add("ul");
-		/* HTML elements for which we should add a newline following the close tag. */
-		CloseTags.add("h1");
-		CloseTags.add("h2");
-		CloseTags.add("h3");
-		CloseTags.add("h4");
-		CloseTags.add("h5");
-		CloseTags.add("h6");
-		CloseTags.add("li");
-		CloseTags.add("link");
-		CloseTags.add("meta");
-		CloseTags.add("noscript");
-		CloseTags.add("option");
-		CloseTags.add("title");
-	}
-
-	/** Tests an HTML element name to determine if it is one of the elements permitted
-	 * to be empty in the XHTML spec ( http://www.w3.org/TR/xhtml1/ )
-	 * @param name The name of the html element
-	 * @return True if the element is allowed to be empty
-	 */
-	private Boolean isEmptyElement(String name) {
-		return EmptyTag.contains(name);
-	}
-
 	/** Tests an HTML element to determine if we should add a newline after the opening tag
 	 * for readability
 	 * @param name The name of the html element
 	 * @return True if we should add a newline after the opening tag
 	 */
 	Boolean newlineOpen(String name) {
-		return OpenTags.contains(name);
-	}
-
-	/** Tests an HTML element to determine if we should add a newline after the closing tag
-	* for readability. All tags with newlines after the opening tag also get newlines after
-	* the closing tag.
-	* @param name The name of the html element
-	* @return True if we should add a newline after the opening tag
-	*/
-	private Boolean newlineClose(String name) {
-		return (newlineOpen(name) || CloseTags.contains(name));
-	}
-
-	/** Returns a properly formatted closing angle bracket to complete an open tag of a
-	 * named html element
-	 * @param name the name of the element
-	 * @return the proper string of characters to complete the open tag
-	 */
-	private String OpenSuffix(String name) {
-		if (isEmptyElement(name)) {
-			return " />";
-		} else {
-			return ">";
-		}
-	}
-
-	/** Returns a closing tag for a named html elemen
-	 * @param name the name of the element
-	 * @return the complete closing tag for the element
-	 */
-	private String CloseTag(String name) {
-		if (isEmptyElement(name)) {
-			return "";
-		} else {
-			return "</" + name + ">";
-		}
-	}
-
-	private String indentString(int indentDepth) {
-		StringBuffer indentLine = new StringBuffer();
-
-		for (int indentIndex = 0, indentCount = indentDepth+1; indentIndex < indentCount; indentIndex++) {
-			indentLine.append('\t');
-		}
-		return indentLine.toString();
+		return HTMLWriter.newlineOpen(name);
 	}
 
 	public HTMLNode(String name, String content) {
@@ -325,69 +228,64 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 	}
 
 	public StringBuilder generate(StringBuilder tagBuffer, int indentDepth ) {
+		HTMLWriter out = new HTMLWriter(tagBuffer);
+		try {
+			generate(out, indentDepth);
+			out.flush();
+		} catch (IOException e) {
+			// Impossible, we are writing to a StringBuilder.
+			throw new Error(e);
+		}
+		return tagBuffer;
+	}
+
+	/**
+	 * Write this node and its children, without building a String first.
+	 * @param out Where to write the HTML.
+	 * @param indentDepth How deeply this node is nested.
+	 */
+	public void generate(HTMLWriter out, int indentDepth) throws IOException {
 		if("#".equals(name)) {
 			if(content != null) {
-				HTMLEncoder.encodeToBuffer(content, tagBuffer);
-				return tagBuffer;
+				out.encode(content);
+				return;
 			}
 			
 			for(int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
 				HTMLNode childNode = children.get(childIndex);
-				childNode.generate(tagBuffer);
+				childNode.generate(out, 0);
 			}
-			return tagBuffer;
+			return;
 		}
 		// Perhaps this should be something else, but since I don't know if '#' was not just arbitrary chosen, I'll just pick '%'
 		// This allows non-encoded text to be appended to the tag buffer
 		if ("%".equals(name)) {
-			tagBuffer.append(content);
-			return tagBuffer;
+			out.append(content);
+			return;
 		}
 		/* start the open tag */
-		tagBuffer.append('<').append(name);
+		out.startTag(name);
 
 		/* add attributes*/
-		Set<Map.Entry<String, String>> attributeSet = attributes.entrySet();
-		for (Map.Entry<String, String> attributeEntry : attributeSet) {
-			String attributeName = attributeEntry.getKey();
-			String attributeValue = attributeEntry.getValue();
-			tagBuffer.append(' ');
-			HTMLEncoder.encodeToBuffer(attributeName, tagBuffer);
-			tagBuffer.append("=\"");
-			HTMLEncoder.encodeToBuffer(attributeValue, tagBuffer);
-			tagBuffer.append('"');
-		}
+		out.attributes(attributes);
 
 		/* complete the open tag*/
-		tagBuffer.append(OpenSuffix(name));
+		out.endStartTag(name);
 
 		/*insert the contents*/
 		if (children.size() == 0) {
-			if(content==null) {
-			} else {
-				HTMLEncoder.encodeToBuffer(content, tagBuffer);
-			}
+			if(content != null)
+				out.encode(content);
 		} else {
-			if (newlineOpen(name)) {
-				tagBuffer.append('\n');
-				tagBuffer.append(indentString(indentDepth+1));
-			}
+			if (newlineOpen(name))
+				out.indent(indentDepth+1);
 			for (int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
 				HTMLNode childNode = children.get(childIndex);
-				childNode.generate(tagBuffer,indentDepth+1);
+				childNode.generate(out, indentDepth+1);
 			}
 		}
 		/* add a closing tag */
-		if (newlineOpen(name)) {
-			tagBuffer.append('\n');
-			tagBuffer.append(indentString(indentDepth));
-		}
-		tagBuffer.append(CloseTag(name));
-		if (newlineClose(name)) {
-			tagBuffer.append('\n');
-			tagBuffer.append(indentString(indentDepth));
-		}
-		return tagBuffer;
+		out.closeTag(name, indentDepth);
 	}
 	
 	public String generateChildren(){
@@ -432,16 +330,17 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 			this.systemUri = systemUri;
 		}
 
-		/**
-		 * @see freenet.support.HTMLNode#generate(java.lang.StringBuilder)
-		 */
 		@Override
-		public StringBuilder generate(StringBuilder tagBuffer) {
-			tagBuffer.append("<!DOCTYPE ").append(name).append(" PUBLIC \"").append(systemUri).append("\">\n");
+		public void generate(HTMLWriter out, int indentDepth) throws IOException {
+			out.append("<!DOCTYPE ");
+			out.append(name);
+			out.append(" PUBLIC \"");
+			out.append(systemUri);
+			out.append("\">\n");
 			//TODO A meaningful exception should be raised 
 			// when trying to call the method for a HTMLDoctype 
 			// with number of child != 1 
-			return children.get(0).generate(tagBuffer);
+			children.get(0).generate(out, 0);
 		}
 
 	}
@@ -0,0 +1,355 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes HTML straight to a Writer, escaping as it goes, without building a tree of
+ * HTMLNode's first. The output is exactly what HTMLNode.generate() would produce for the
+ * equivalent tree, including the whitespace, so the two can be mixed freely: an HTMLNode can
+ * be written with write(), and a DeferredHTMLNode in a tree gets an HTMLWriter to write its
+ * content with.
+ *
+ * Elements are opened with begin() and closed with end(), like a SAX event stream. Element
+ * and attribute names are written as they are, so they must be valid lower case names, as
+ * HTMLNode would have checked. Attributes are written in the order given, whereas HTMLNode
+ * writes them in hash order.
+ *
+ * Not thread-safe.
+ */
+public class HTMLWriter {
+
+	private static final Set<String> emptyTags = new HashSet<String>();
+	private static final Set<String> openTags = new HashSet<String>();
+	private static final Set<String> closeTags = new HashSet<String>();
+
+	static {
+		/* HTML elements which are allowed to be empty */
+		emptyTags.add("area");
+		emptyTags.add("base");
+		emptyTags.add("br");
+		emptyTags.add("col");
+		emptyTags.add("hr");
+		emptyTags.add("img");
+		emptyTags.add("input");
+		emptyTags.add("link");
+		emptyTags.add("meta");
+		emptyTags.add("param");
+		/* HTML elements for which we should add a newline following the open tag. */
+		openTags.add("body");
+		openTags.add("div");
+		openTags.add("form");
+		openTags.add("head");
+		openTags.add("html");
+		openTags.add("input");
+		openTags.add("ol");
+		openTags.add("script");
+		openTags.add("table");
+		openTags.add("td");
+		openTags.add("tr");
+		openTags.add("ul");
+		/* HTML elements for which we should add a newline following the close tag. */
+		closeTags.add("h1");
+		closeTags.add("h2");
+		closeTags.add("h3");
+		closeTags.add("h4");
+		closeTags.add("h5");
+		closeTags.add("h6");
+		closeTags.add("li");
+		closeTags.add("link");
+		closeTags.add("meta");
+		closeTags.add("noscript");
+		closeTags.add("option");
+		closeTags.add("title");
+	}
+
+	/** HTML elements permitted to be empty in the XHTML spec. */
+	static boolean isEmptyElement(String name) {
+		return emptyTags.contains(name);
+	}
+
+	/** Elements which get a newline after the opening tag, for readability. */
+	static boolean newlineOpen(String name) {
+		return openTags.contains(name);
+	}
+
+	/** Elements which get a newline after the closing tag. Includes all of newlineOpen(). */
+	static boolean newlineClose(String name) {
+		return openTags.contains(name) || closeTags.contains(name);
+	}
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/** Exactly one of these is set. */
+	private final Writer out;
+	private final StringBuilder sb;
+	private final char[] buf;
+	private int pos;
+
+	/** The elements opened with begin() and not yet closed. */
+	private final ArrayList<String> open = new ArrayList<String>();
+	/** Whether each open element has had any content yet. */
+	private boolean[] hasChildren = new boolean[16];
+	/** Elements below this index belong to an enclosing write() and must not be closed. */
+	private int mark;
+	/** The indent depth of an element begun when open.size() == mark. */
+	private int baseDepth;
+
+	/**
+	 * @param out Where to write the HTML. Buffered internally, so there is no need to pass a
+	 * BufferedWriter. Call flush() or close() when done.
+	 */
+	public HTMLWriter(Writer out) {
+		if(out == null) throw new NullPointerException();
+		this.out = out;
+		this.sb = null;
+		this.buf = new char[BUFFER_SIZE];
+	}
+
+	/** Used by HTMLNode.generate(StringBuilder). */
+	HTMLWriter(StringBuilder sb) {
+		this.out = null;
+		this.sb = sb;
+		this.buf = new char[256];
+	}
+
+	// Streaming API
+
+	public HTMLWriter begin(String name) throws IOException {
+		return begin(name, (String[]) null, (String[]) null);
+	}
+
+	public HTMLWriter begin(String name, String attributeName, String attributeValue) throws IOException {
+		beforeChild();
+		startTag(name);
+		attribute(attributeName, attributeValue);
+		endStartTag(name);
+		push(name);
+		return this;
+	}
+
+	public HTMLWriter begin(String name, String[] attributeNames, String[] attributeValues) throws IOException {
+		beforeChild();
+		startTag(name);
+		if(attributeNames != null) {
+			if(attributeNames.length != attributeValues.length)
+				throw new IllegalArgumentException("attribute names and values differ in length");
+			for(int i=0;i<attributeNames.length;i++)
+				attribute(attributeNames[i], attributeValues[i]);
+		}
+		endStartTag(name);
+		push(name);
+		return this;
+	}
+
+	/** Close the element most recently opened with begin(). */
+	public HTMLWriter end() throws IOException {
+		if(open.size() <= mark) throw new IllegalStateException("No element to end");
+		int depth = depth() - 1;
+		String name = open.remove(open.size()-1);
+		closeTag(name, depth);
+		return this;
+	}
+
+	/** An element containing only text, like new HTMLNode(name, content). */
+	public HTMLWriter element(String name, String content) throws IOException {
+		begin(name);
+		if(content != null) text(content);
+		return end();
+	}
+
+	public HTMLWriter element(String name, String attributeName, String attributeValue, String content) throws IOException {
+		begin(name, attributeName, attributeValue);
+		if(content != null) text(content);
+		return end();
+	}
+
+	public HTMLWriter element(String name, String[] attributeNames, String[] attributeValues, String content) throws IOException {
+		begin(name, attributeNames, attributeValues);
+		if(content != null) text(content);
+		return end();
+	}
+
+	/** Text, which will be escaped. */
+	public HTMLWriter text(String text) throws IOException {
+		beforeChild();
+		encode(text);
+		return this;
+	}
+
+	public HTMLWriter text(long value) throws IOException {
+		return text(Long.toString(value));
+	}
+
+	/** HTML which is written as is, like an HTMLNode named "%". */
+	public HTMLWriter raw(String html) throws IOException {
+		beforeChild();
+		append(html);
+		return this;
+	}
+
+	/** Write an HTMLNode and its children as the next child of the current element. */
+	public HTMLWriter write(HTMLNode node) throws IOException {
+		beforeChild();
+		node.generate(this, depth());
+		return this;
+	}
+
+	/** Write everything buffered so far to the Writer, and flush it. */
+	public void flush() throws IOException {
+		flushBuffer();
+		if(out != null) out.flush();
+	}
+
+	/** Close any open elements, flush, and close the Writer. */
+	public void close() throws IOException {
+		while(open.size() > mark)
+			end();
+		flushBuffer();
+		if(out != null) out.close();
+	}
+
+	// Used by HTMLNode and DeferredHTMLNode
+
+	/** Start writing a nested stream of content at the given depth, e.g. for a
+	 * DeferredHTMLNode within a tree being written by HTMLNode.
+	 * @return A value to pass to leave(). */
+	long enter(int depth) {
+		long saved = ((long)mark << 32) | (baseDepth & 0xFFFFFFFFL);
+		mark = open.size();
+		baseDepth = depth;
+		return saved;
+	}
+
+	void leave(long saved) {
+		if(open.size() != mark)
+			throw new IllegalStateException("Unclosed elements: "+open.subList(mark, open.size()));
+		mark = (int)(saved >>> 32);
+		baseDepth = (int)saved;
+	}
+
+	void startTag(String name) throws IOException {
+		append('<');
+		append(name);
+	}
+
+	void attribute(String name, String value) throws IOException {
+		if(name == null)
+			throw new IllegalArgumentException("Cannot add an attribute with a null name");
+		if(value == null)
+			throw new IllegalArgumentException("Cannot add an attribute with a null value");
+		append(' ');
+		encode(name);
+		append("=\"");
+		encode(value);
+		append('"');
+	}
+
+	void attributes(Map<String, String> attributes) throws IOException {
+		for(Map.Entry<String, String> attributeEntry : attributes.entrySet())
+			attribute(attributeEntry.getKey(), attributeEntry.getValue());
+	}
+
+	void endStartTag(String name) throws IOException {
+		if(isEmptyElement(name))
+			append(" />");
+		else
+			append('>');
+	}
+
+	/** Write the closing tag, and the whitespace before and after it. */
+	void closeTag(String name, int depth) throws IOException {
+		boolean newline = newlineOpen(name);
+		if(newline) indent(depth);
+		if(!isEmptyElement(name)) {
+			append("</");
+			append(name);
+			append('>');
+		}
+		if(newlineClose(name)) indent(depth);
+	}
+
+	/** A newline and depth+1 tabs. */
+	void indent(int depth) throws IOException {
+		append('\n');
+		for(int i=0;i<=depth;i++)
+			append('\t');
+	}
+
+	void encode(String s) throws IOException {
+		for(int i=0, n=s.length();i<n;i++) {
+			char c = s.charAt(i);
+			String entity;
+			if(Character.isLetterOrDigit(c)) {
+				// Only special characters need checking.
+				append(c);
+			} else if((entity = HTMLEncoder.getEntity(c)) != null) {
+				append('&');
+				append(entity);
+				append(';');
+			} else
+				append(c);
+		}
+	}
+
+	void append(char c) throws IOException {
+		if(pos == buf.length) flushBuffer();
+		buf[pos++] = c;
+	}
+
+	void append(String s) throws IOException {
+		int length = s.length();
+		if(length > buf.length - pos) {
+			flushBuffer();
+			if(length > buf.length) {
+				if(out != null) out.write(s);
+				else sb.append(s);
+				return;
+			}
+		}
+		s.getChars(0, length, buf, pos);
+		pos += length;
+	}
+
+	// Internals
+
+	private int depth() {
+		return baseDepth + open.size() - mark;
+	}
+
+	private void push(String name) {
+		int i = open.size();
+		open.add(name);
+		if(i == hasChildren.length) {
+			boolean[] newHasChildren = new boolean[i*2];
+			System.arraycopy(hasChildren, 0, newHasChildren, 0, i);
+			hasChildren = newHasChildren;
+		}
+		hasChildren[i] = false;
+	}
+
+	/** HTMLNode puts a newline after the opening tag of some elements, but only if they have
+	 * children, so we only know when the first child arrives. */
+	private void beforeChild() throws IOException {
+		int i = open.size() - 1;
+		if(i < mark || hasChildren[i]) return;
+		hasChildren[i] = true;
+		if(newlineOpen(open.get(i)))
+			indent(depth());
+	}
+
+	private void flushBuffer() throws IOException {
+		if(pos == 0) return;
+		if(out != null) out.write(buf, 0, pos);
+		else sb.append(buf, 0, pos);
+		pos = 0;
+	}
+
+}
@@ -1,10 +1,8 @@
 package freenet.support;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.TreeMap;
 
 import freenet.node.FastRunnable;
 import freenet.support.Logger.LogLevel;
@@ -23,38 +21,58 @@ public class PrioritizedTicker implements Ticker, Runnable {
 		});
 	}
 
-	private final static class Job {
+	/** A scheduled job. The handle for cancelling it. */
+	private final class Job implements TimedJobHandle {
 		final String name;
 		final Runnable job;
-		Job(String name, Runnable job) {
+		/** The time at which the job should run. */
+		final long time;
+		/** Null if not queued, i.e. run directly. */
+		TimerWheel.Timeout<Job> timeout;
+		Job(String name, Runnable job, long time) {
 			this.name = name;
 			this.job = job;
+			this.time = time;
 		}
 
 		@Override
-		public boolean equals(Object o) {
-			if(!(o instanceof Job)) return false;
-			// Ignore the name, we are only interested in the job, needed for noDupes.
-			return ((Job)o).job == job;
+		public boolean cancel() {
+			synchronized(timedJobs) {
+				if(timeout == null) return false;
+				if(!timedJobs.cancel(timeout)) return false;
+				if(timedJobsQueued.get(job) == this)
+					timedJobsQueued.remove(job);
+				return true;
+			}
 		}
-		
+
 		@Override
-		public int hashCode() {
-			return job.hashCode();
+		public boolean isQueued() {
+			synchronized(timedJobs) {
+				return timeout != null && timeout.isQueued();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+":"+name+":"+job;
 		}
 	}
 	
-	/** ~= Ticker :) */
-	private final TreeMap<Long, Object> timedJobsByTime;
-	private final HashMap<Job, Long> timedJobsQueued;
+	/** ~= Ticker :) Ticks are milliseconds. Insert and cancel are O(1). Also the lock for
+	 * timedJobsQueued. */
+	private final TimerWheel<Job> timedJobs;
+	/** The most recently queued Job for each Runnable, by identity, for noDupes and
+	 * removeQueuedJob(). */
+	private final IdentityHashMap<Runnable, Job> timedJobsQueued;
 	final NativeThread myThread;
 	final Executor executor;
 	static final int MAX_SLEEP_TIME = 200;
 	
 	public PrioritizedTicker(Executor executor, int portNumber) {
 		this.executor = executor;
-		timedJobsByTime = new TreeMap<Long, Object>();
-		timedJobsQueued = new HashMap<Job, Long>();
+		timedJobs = new TimerWheel<Job>(System.currentTimeMillis());
+		timedJobsQueued = new IdentityHashMap<Runnable, Job>();
 		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
 		myThread.setDaemon(true);
 	}
@@ -90,28 +108,17 @@ public class PrioritizedTicker implements Ticker, Runnable {
 		
 		long sleepTime = MAX_SLEEP_TIME;
 
-		synchronized(timedJobsByTime) {
-			while(!timedJobsByTime.isEmpty()) {
-				Long tRun = timedJobsByTime.firstKey();
-				if(tRun.longValue() <= now) {
-					if(jobsToRun == null)
-						jobsToRun = new ArrayList<Job>();
-					Object o = timedJobsByTime.remove(tRun);
-					if(o instanceof Job[]) {
-						for(Job r: (Job[]) o) {
-							jobsToRun.add(r);
-							timedJobsQueued.remove(r);
-						}
-					} else {
-						Job r = (Job) o;
-						jobsToRun.add(r);
-						timedJobsQueued.remove(r);
-					}
-				} else {
-					sleepTime = Math.min(sleepTime, tRun.longValue() - now);
-					break;
+		synchronized(timedJobs) {
+			if(timedJobs.getCurrentTick() <= now) {
+				jobsToRun = new ArrayList<Job>();
+				timedJobs.expire(now, jobsToRun);
+				for(Job r : jobsToRun) {
+					if(timedJobsQueued.get(r.job) == r)
+						timedJobsQueued.remove(r.job);
 				}
 			}
+			long next = timedJobs.getCurrentTick() + timedJobs.ticksUntilNext(MAX_SLEEP_TIME);
+			sleepTime = Math.min(sleepTime, next - now);
 		}
 
 		if(jobsToRun != null)
@@ -172,89 +179,53 @@ public class PrioritizedTicker implements Ticker, Runnable {
 	 * their thread priorities; if true, jobs to run immediately through the executor (which
 	 * normally will also preserve thread priorities, but may need to call back via
 	 * runOnTickerAnyway=true if it needs to increase the thread priority).
-	 * @param noDupes Don't run this job if it is already scheduled. Relatively expensive, O(n)
-	 * with queued jobs. Necessary for Announcer to ensure that we don't get exponentially
+	 * @param noDupes Don't run this job if it is already scheduled at or before the new time.
+	 * Jobs are compared by identity. If it is scheduled later, it is rescheduled. Necessary for Announcer to ensure that we don't get exponentially
 	 * increasing numbers of announcement check jobs queued, while ensuring that we do always
 	 * have one queued within the given period.
 	 */
 	@Override
 	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		scheduleTimedJob(runner, name, offset, runOnTickerAnyway, noDupes);
+	}
+	
+	/**
+	 * Queue a job at a specific time, and return a handle which can be used to cancel it.
+	 * Parameters are the same as for queueTimedJob(). If the job is run directly, the handle
+	 * will not cancel anything. If it is not queued because of noDupes, we return the handle
+	 * for the job which is already queued.
+	 * @return A handle for the job, which can cancel it in O(1).
+	 */
+	public TimedJobHandle scheduleTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
 		// Run directly *if* that won't cause any priority problems.
 		if(offset <= 0 && !runOnTickerAnyway) {
 			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
 			executor.execute(runner, name);
-			return;
+			return new Job(name, runner, System.currentTimeMillis());
 		}
-		Job job = new Job(name, runner);
 		if(offset < 0) offset = 0;
 		long now = System.currentTimeMillis();
-		Long l = Long.valueOf(offset + now);
-		synchronized(timedJobsByTime) {
+		Job job = new Job(name, runner, offset + now);
+		synchronized(timedJobs) {
 			if(noDupes) {
-				Long t = timedJobsQueued.get(job);
-				if(t != null) {
-					if(t <= l) {
+				Job existing = timedJobsQueued.get(runner);
+				if(existing != null) {
+					if(existing.time <= job.time) {
 						Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
-						return;
+						return existing;
 					} else {
 						// Delete the existing job because the new job will run first.
-						Object o = timedJobsByTime.get(t);
-						if(o instanceof Job) {
-							timedJobsQueued.remove(job);
-							assert(o.equals(job));
-							timedJobsByTime.remove(t);
-						} else {
-							Job[] jobs = (Job[]) o;
-							if(jobs.length == 1) {
-								timedJobsQueued.remove(job);
-								assert(jobs[0].equals(job));
-								timedJobsByTime.remove(t);
-							} else {
-								Job[] newJobs = new Job[jobs.length-1];
-								int x = 0;
-								for(Job oldjob: jobs) {
-									if(oldjob.equals(job)) {
-										timedJobsQueued.remove(oldjob);
-										continue;
-									}
-									newJobs[x++] = oldjob;
-									if(x == jobs.length) {
-										assert(false);
-										newJobs = jobs;
-									}
-								}
-								if(x == 0) {
-									assert(false);
-									timedJobsByTime.remove(t);
-								} else if (x == 1) {
-									timedJobsByTime.put(t, newJobs[0]);
-								} else {
-									if(x != newJobs.length)
-										newJobs = Arrays.copyOf(newJobs, x);
-									timedJobsByTime.put(t, newJobs);
-									assert(x == jobs.length-1);
-								}
-							}
-						}
+						timedJobs.cancel(existing.timeout);
 					}
 				}
 			}
-			Object o = timedJobsByTime.get(l);
-			if(o == null)
-				timedJobsByTime.put(l, job);
-			else if(o instanceof Job)
-				timedJobsByTime.put(l, new Job[]{(Job) o, job});
-			else if(o instanceof Job[]) {
-				Job[] r = (Job[]) o;
-				Job[] jobs = Arrays.copyOf(r, r.length+1);
-				jobs[jobs.length - 1] = job;
-				timedJobsByTime.put(l, jobs);
-			}
-			timedJobsQueued.put(job, l);
+			job.timeout = timedJobs.add(job, job.time);
+			timedJobsQueued.put(runner, job);
 		}
 		if(offset < MAX_SLEEP_TIME) {
 			wakeUp();
 		}
+		return job;
 	}
 	
 	/** Wake up, and run any queued jobs. */
@@ -270,55 +241,21 @@ public class PrioritizedTicker implements Ticker, Runnable {
 		return executor;
 	}
 
+	/** @return The number of jobs waiting to run. */
 	public int queuedJobs() {
-		synchronized(timedJobsByTime) {
-			return timedJobsByTime.size();
+		synchronized(timedJobs) {
+			return timedJobs.size();
 		}
 	}
 
+	/** Remove the most recently queued instance of the job. Use the TimedJobHandle returned
+	 * by scheduleTimedJob() if you need to cancel a specific instance. */
 	@Override
 	public void removeQueuedJob(Runnable runnable) {
-		Job job = new Job(null, runnable);
-		synchronized(timedJobsByTime) {
-			Long t = timedJobsQueued.remove(job);
-			if(t != null) {
-				Object o = timedJobsByTime.get(t);
-				if(o == null) return; // XXX impossible -> assert
-				if(o instanceof Job) {
-					assert(o.equals(job));
-					timedJobsByTime.remove(t);
-				} else {
-					Job[] jobs = (Job[]) o;
-					if(jobs.length == 1) {
-						assert(jobs[0].equals(job));
-						timedJobsByTime.remove(t);
-					} else {
-						Job[] newJobs = new Job[jobs.length-1];
-						int x = 0;
-						for(Job oldjob : jobs) {
-							if(oldjob.equals(job)) {
-								continue;
-							}
-							newJobs[x++] = oldjob;
-							if(x == jobs.length) {
-								assert(false);
-								newJobs = jobs;
-							}
-						}
-						if(x == 0) {
-							assert(false);
-							timedJobsByTime.remove(t);
-						} else if (x == 1) {
-							timedJobsByTime.put(t, newJobs[0]);
-						} else {
-							if(x != newJobs.length)
-								newJobs = Arrays.copyOf(newJobs, x);
-							timedJobsByTime.put(t, newJobs);
-							assert(x == jobs.length-1);
-						}
-					}
-				}
-			}
+		synchronized(timedJobs) {
+			Job job = timedJobsQueued.remove(runnable);
+			if(job != null)
+				timedJobs.cancel(job.timeout);
 		}
 	}
 	
@@ -355,6 +355,26 @@ public class SimpleFieldSet {
 		return true;
     }
 
+	/**
+	 * Set a key which has already been split at MULTI_LEVEL_CHAR to a value, overwriting
+	 * any existing value. The key components are not interned. Used by CompactFieldSet.
+	 */
+	synchronized void putPath(String[] path, String value) {
+		if(!shortLived) value = value.intern();
+		SimpleFieldSet fs = this;
+		for(int i=0;i<path.length-1;i++) {
+			if(fs.subsets == null)
+				fs.subsets = new HashMap<String, SimpleFieldSet>();
+			SimpleFieldSet sub = fs.subsets.get(path[i]);
+			if(sub == null) {
+				sub = new SimpleFieldSet(shortLived);
+				fs.subsets.put(path[i], sub);
+			}
+			fs = sub;
+		}
+		fs.values.put(path[path.length-1], value);
+	}
+
 	public void put(String key, int value) {
 		// Use putSingle so it does the intern check
 		putSingle(key, Integer.toString(value));
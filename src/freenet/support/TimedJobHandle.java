@@ -0,0 +1,20 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * A job queued on a PrioritizedTicker. Cancelling via the handle is O(1), and unlike
+ * removeQueuedJob(), only affects this particular scheduling of the job.
+ */
+public interface TimedJobHandle {
+
+	/** Cancel the job if it hasn't started yet.
+	 * @return True if the job was queued and will now not be run. False if it has already
+	 * been run (or handed to the executor), or has already been cancelled. */
+	public boolean cancel();
+
+	/** @return True if the job is still waiting to be run. */
+	public boolean isQueued();
+
+}
@@ -0,0 +1,283 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.List;
+
+/**
+ * Hierarchical hashed timer wheel, as described by Varghese and Lauck, and as used by the
+ * Linux kernel. Time is measured in ticks, which are whatever the caller wants them to be
+ * (PrioritizedTicker uses milliseconds). Adding and cancelling a timeout is O(1). Advancing
+ * the clock is O(1) per tick plus the timeouts which expire, plus occasionally cascading a
+ * slot from one of the coarser wheels down to the finer ones.
+ *
+ * The first wheel has 256 slots of one tick each. The other four have 64 slots each, and
+ * each slot covers a whole revolution of the wheel below it, so we cover 2^32 ticks. Timeouts
+ * further in the future than that are parked in the last wheel and re-filed whenever their
+ * slot comes round.
+ *
+ * When the first wheel is empty we skip straight to the next cascade, so advancing the
+ * clock a long way is cheap if little is queued.
+ *
+ * Timeouts which expire on the same tick are returned in the order they were added.
+ *
+ * Not thread-safe: the caller must synchronize.
+ */
+public class TimerWheel<T> {
+
+	/** A queued timeout. The caller can use this to cancel it. */
+	public static final class Timeout<T> {
+
+		private final T payload;
+		/** The tick on which the timeout expires. */
+		private long tick;
+		/** Index into slots, or -1 if not queued. */
+		private int slot = -1;
+		private Timeout<T> prev;
+		private Timeout<T> next;
+
+		private Timeout(T payload, long tick) {
+			this.payload = payload;
+			this.tick = tick;
+		}
+
+		public T getPayload() {
+			return payload;
+		}
+
+		/** @return The tick on which the timeout will expire. */
+		public long getTick() {
+			return tick;
+		}
+
+		/** @return True if the timeout has neither expired nor been cancelled. Caller must
+		 * hold the same lock as for the TimerWheel. */
+		public boolean isQueued() {
+			return slot != -1;
+		}
+
+	}
+
+	private static final int ROOT_BITS = 8;
+	private static final int ROOT_SIZE = 1 << ROOT_BITS;
+	private static final int ROOT_MASK = ROOT_SIZE - 1;
+	private static final int LEVEL_BITS = 6;
+	private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+	private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+	/** Number of wheels other than the first. */
+	private static final int LEVELS = 4;
+	/** Maximum number of ticks in the future which we can file exactly. */
+	static final long MAX_RANGE = 1L << (ROOT_BITS + LEVELS * LEVEL_BITS);
+
+	/** Heads of the doubly linked lists for each slot. The first wheel, then the others. */
+	private final Timeout<T>[] heads;
+	/** Tails, so we can append in O(1) and keep timeouts in the order they were added. */
+	private final Timeout<T>[] tails;
+	/** Number of timeouts in each wheel. */
+	private final int[] counts;
+	/** The next tick to process. Everything before this has expired. */
+	private long currentTick;
+	private int size;
+
+	/** @param startTick The current time, in ticks. */
+	public TimerWheel(long startTick) {
+		heads = newTimeoutArray(ROOT_SIZE + LEVELS * LEVEL_SIZE);
+		tails = newTimeoutArray(heads.length);
+		counts = new int[LEVELS + 1];
+		currentTick = startTick;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Timeout<T>[] newTimeoutArray(int length) {
+		return (Timeout<T>[]) new Timeout<?>[length];
+	}
+
+	/**
+	 * Add a timeout.
+	 * @param payload The object to return when the timeout expires.
+	 * @param tick The tick on which to expire. If this is in the past, the timeout will
+	 * expire on the next call to expire().
+	 * @return A handle which can be used to cancel the timeout.
+	 */
+	public Timeout<T> add(T payload, long tick) {
+		Timeout<T> timeout = new Timeout<T>(payload, Math.max(tick, currentTick));
+		file(timeout);
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Cancel a timeout.
+	 * @return False if the timeout has already expired or been cancelled.
+	 */
+	public boolean cancel(Timeout<T> timeout) {
+		if(timeout.slot == -1) return false;
+		unlink(timeout);
+		size--;
+		return true;
+	}
+
+	/** @return The number of queued timeouts. */
+	public int size() {
+		return size;
+	}
+
+	/** @return The next tick which has not been processed yet. */
+	public long getCurrentTick() {
+		return currentTick;
+	}
+
+	/**
+	 * Process all ticks up to and including now.
+	 * @param now The current time in ticks.
+	 * @param expired The payloads of the timeouts which have expired will be added to this
+	 * list, in order of expiry.
+	 * @return The number of timeouts which expired.
+	 */
+	public int expire(long now, List<T> expired) {
+		int count = 0;
+		while(currentTick <= now) {
+			if(size == 0) {
+				// Nothing to do, skip ahead.
+				currentTick = now + 1;
+				break;
+			}
+			if(counts[0] == 0) {
+				// Nothing can expire until the next cascade, so skip ahead to it.
+				long skipTo = nextCascade();
+				if(skipTo > now) {
+					currentTick = now + 1;
+					break;
+				}
+				currentTick = skipTo;
+			}
+			int index = (int) (currentTick & ROOT_MASK);
+			if(index == 0)
+				cascade();
+			Timeout<T> t = heads[index];
+			heads[index] = null;
+			tails[index] = null;
+			while(t != null) {
+				Timeout<T> next = t.next;
+				t.prev = null;
+				t.next = null;
+				t.slot = -1;
+				size--;
+				counts[0]--;
+				count++;
+				expired.add(t.payload);
+				t = next;
+			}
+			currentTick++;
+		}
+		return count;
+	}
+
+	/**
+	 * How long until the next tick on which something might expire? This is exact for
+	 * timeouts in the first wheel, and otherwise returns the next time we have to cascade
+	 * from the coarser wheels.
+	 * @param max The maximum value to return.
+	 * @return The number of ticks after getCurrentTick() at which we should next call
+	 * expire(), between 0 and max.
+	 */
+	public long ticksUntilNext(long max) {
+		if(size == 0) return max;
+		if(counts[0] == 0) return Math.min(max, nextCascade() - currentTick);
+		for(long i=0;i<max;i++) {
+			long tick = currentTick + i;
+			int index = (int) (tick & ROOT_MASK);
+			if(index == 0) return i; // Must cascade.
+			if(heads[index] != null) return i;
+		}
+		return max;
+	}
+
+	/** @return The next tick, at or after currentTick, on which a non-empty wheel will be
+	 * cascaded. Only valid if the first wheel is empty and size > 0. */
+	private long nextCascade() {
+		int level = 1;
+		while(counts[level] == 0) level++;
+		long mask = (1L << (ROOT_BITS + (level - 1) * LEVEL_BITS)) - 1;
+		return (currentTick + mask) & ~mask;
+	}
+
+	/** Move timeouts from the coarser wheels down, when the first wheel wraps around. */
+	private void cascade() {
+		for(int level=0;level<LEVELS;level++) {
+			int shift = ROOT_BITS + level * LEVEL_BITS;
+			int index = (int) ((currentTick >>> shift) & LEVEL_MASK);
+			int slot = ROOT_SIZE + level * LEVEL_SIZE + index;
+			Timeout<T> t = heads[slot];
+			heads[slot] = null;
+			tails[slot] = null;
+			while(t != null) {
+				Timeout<T> next = t.next;
+				t.prev = null;
+				t.next = null;
+				counts[level + 1]--;
+				file(t);
+				t = next;
+			}
+			// Only cascade the next level up if this one has wrapped around too.
+			if(index != 0) break;
+		}
+	}
+
+	/** Put a timeout in the right slot for its expiry tick. */
+	private void file(Timeout<T> t) {
+		long tick = t.tick;
+		long delta = tick - currentTick;
+		int slot;
+		if(delta < ROOT_SIZE) {
+			slot = (int) (tick & ROOT_MASK);
+		} else {
+			if(delta >= MAX_RANGE) {
+				// Too far in the future. Park it in the last wheel, as far ahead as possible.
+				// It will be filed again when that slot is cascaded.
+				tick = currentTick + MAX_RANGE - 1;
+			}
+			slot = -1;
+			for(int level=0;level<LEVELS;level++) {
+				int shift = ROOT_BITS + level * LEVEL_BITS;
+				if(delta < (1L << (shift + LEVEL_BITS)) || level == LEVELS - 1) {
+					slot = ROOT_SIZE + level * LEVEL_SIZE + (int) ((tick >>> shift) & LEVEL_MASK);
+					break;
+				}
+			}
+		}
+		t.slot = slot;
+		counts[levelOf(slot)]++;
+		Timeout<T> tail = tails[slot];
+		if(tail == null) {
+			heads[slot] = t;
+		} else {
+			tail.next = t;
+			t.prev = tail;
+		}
+		tails[slot] = t;
+	}
+
+	private static int levelOf(int slot) {
+		if(slot < ROOT_SIZE) return 0;
+		return 1 + (slot - ROOT_SIZE) / LEVEL_SIZE;
+	}
+
+	private void unlink(Timeout<T> t) {
+		int slot = t.slot;
+		counts[levelOf(slot)]--;
+		if(t.prev == null)
+			heads[slot] = t.next;
+		else
+			t.prev.next = t.next;
+		if(t.next == null)
+			tails[slot] = t.prev;
+		else
+			t.next.prev = t.prev;
+		t.prev = null;
+		t.next = null;
+		t.slot = -1;
+	}
+
+}
@@ -1,240 +1,254 @@
 package freenet.support;
 
-import freenet.support.Logger.LogLevel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Token bucket. Can be used for e.g. bandwidth limiting.
- * Tokens are added once per tick.
+ *
+ * Lock-free: instead of a token count and the time of the last tick, we keep a single
+ * timestamp, the time (System.nanoTime()) at which the bucket was, or will be, empty. The
+ * balance at any moment is the time since then divided by nanosPerTick, capped at max; a
+ * negative balance (debt) is a time in the future. So refilling is just arithmetic, and
+ * every operation is one compareAndSet on emptyAt.
+ *
+ * blockingGrab() reserves its tokens by moving emptyAt forward and then parks until that
+ * time, so waiters are served in the order they arrived, and nobody has to wake them.
  */
 public class TokenBucket {
 
-	private static boolean logMINOR;
+	private static volatile boolean logMINOR;
 	static {
 		LoggerHook.registerClass(TokenBucket.class);
 	}
-	protected long current;
-	protected long max;
-	protected long timeLastTick;
-	protected long nanosPerTick;
-	
+
+	/** The rate and size, changed together. Immutable. */
+	private static final class Limits {
+		final long nanosPerTick;
+		final long max;
+		Limits(long nanosPerTick, long max) {
+			if(nanosPerTick <= 0) throw new IllegalArgumentException();
+			if(max <= 0) throw new IllegalArgumentException();
+			this.nanosPerTick = nanosPerTick;
+			this.max = max;
+		}
+		/** The earliest emptyAt we allow at time now, i.e. a full bucket. */
+		long full(long now) {
+			return now - max * nanosPerTick;
+		}
+	}
+
+	private volatile Limits limits;
+	/** The time, in System.nanoTime() terms, at which the balance is zero. */
+	private final AtomicLong emptyAt;
+
 	/**
 	 * Create a token bucket.
 	 * @param max The maximum size of the bucket, in tokens.
 	 * @param nanosPerTick The number of nanoseconds between ticks.
 	 */
 	public TokenBucket(long max, long nanosPerTick, long initialValue) {
-		this.max = max;
-		this.current = initialValue;
-		if(current > max) {
-			Logger.error(this, "initial value ("+current+") > max ("+max+") in "+this, new Exception("error"));
-			current = max;
+		limits = new Limits(nanosPerTick, max);
+		if(initialValue > max) {
+			Logger.error(this, "initial value ("+initialValue+") > max ("+max+") in "+this, new Exception("error"));
+			initialValue = max;
 		}
-		this.nanosPerTick = nanosPerTick;
-		long now = System.currentTimeMillis();
-		this.timeLastTick = now * (1000 * 1000);
-		if(nanosPerTick <= 0) throw new IllegalArgumentException();
-		if(max <= 0) throw new IllegalArgumentException();
+		emptyAt = new AtomicLong(now() - initialValue * nanosPerTick);
 	}
-	
+
+	/** Overridden by tests. */
+	long now() {
+		return System.nanoTime();
+	}
+
+	/** Tokens available if the bucket became empty at e, rounded down. Negative if in debt. */
+	private static long balance(long e, long now, long nanosPerTick) {
+		long elapsed = now - e;
+		if(elapsed >= 0) return elapsed / nanosPerTick;
+		// Round towards minus infinity, so we never report a token we don't have.
+		return -((-elapsed + nanosPerTick - 1) / nanosPerTick);
+	}
+
 	/**
 	 * Either grab a bunch of tokens, or don't. Never block.
 	 * @param tokens The number of tokens to grab.
 	 * @return True if we could acquire the tokens.
 	 */
-	public synchronized boolean instantGrab(long tokens) {
+	public boolean instantGrab(long tokens) {
 		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
-		if(logMINOR)
-			Logger.minor(this, "instant grab: "+tokens+" current="+current+" max="+max);
-		addTokens();
-		if(logMINOR)
-			Logger.minor(this, "instant grab: "+tokens+" current="+current+" max="+max);
-		if(current >= tokens) {
-			current -= tokens;
-			return true;
-		} else {
-			return false;
+		while(true) {
+			Limits l = limits;
+			long e = emptyAt.get();
+			long now = now();
+			long base = Math.max(e, l.full(now));
+			if(balance(base, now, l.nanosPerTick) < tokens) {
+				if(logMINOR)
+					Logger.minor(this, "instant grab failed: "+tokens+" current="+balance(base, now, l.nanosPerTick)+" max="+l.max);
+				return false;
+			}
+			if(emptyAt.compareAndSet(e, base + tokens * l.nanosPerTick)) {
+				if(logMINOR)
+					Logger.minor(this, "instant grab: "+tokens+" max="+l.max);
+				return true;
+			}
 		}
 	}
-	
+
 	/**
 	 * Try to grab some tokens; if there aren't enough, grab all of them. Never block.
 	 * @param tokens The number of tokens to grab.
-	 * @return The number of tokens grabbed.
+	 * @return The number of tokens grabbed. Zero if the bucket is empty or in debt.
 	 */
-	public synchronized long partialInstantGrab(long tokens) {
+	public long partialInstantGrab(long tokens) {
 		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
-		if(logMINOR)
-			Logger.minor(this, "instant grab: "+tokens+" current="+current+" max="+max);
-		addTokens();
-		if(logMINOR)
-			Logger.minor(this, "instant grab: "+tokens+" current="+current+" max="+max);
-		if(current >= tokens) {
-			current -= tokens;
-			return tokens;
-		} else {
-			tokens = current;
-			current = 0;
-			return tokens;
+		while(true) {
+			Limits l = limits;
+			long e = emptyAt.get();
+			long now = now();
+			long base = Math.max(e, l.full(now));
+			long got = Math.min(tokens, Math.max(0, balance(base, now, l.nanosPerTick)));
+			if(got == 0) return 0;
+			if(emptyAt.compareAndSet(e, base + got * l.nanosPerTick)) {
+				if(logMINOR)
+					Logger.minor(this, "partial instant grab: "+got+" of "+tokens+" max="+l.max);
+				return got;
+			}
 		}
 	}
-	
+
 	/**
 	 * Remove tokens, without blocking, even if it causes the balance to go negative.
 	 * @param tokens The number of tokens to remove.
 	 */
-	public synchronized void forceGrab(long tokens) {
+	public void forceGrab(long tokens) {
 		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
 		if(logMINOR) Logger.minor(this, "forceGrab("+tokens+")");
-		addTokens();
-		current -= tokens;
-		if(logMINOR) Logger.minor(this, "Removed tokens, balance now "+current);
+		reserve(tokens);
+	}
+
+	/** Take the tokens whether or not we have them.
+	 * @return The time at which the balance will be back to zero. */
+	private long reserve(long tokens) {
+		while(true) {
+			Limits l = limits;
+			long e = emptyAt.get();
+			long now = now();
+			long newEmptyAt = Math.max(e, l.full(now)) + tokens * l.nanosPerTick;
+			if(emptyAt.compareAndSet(e, newEmptyAt))
+				return newEmptyAt;
+		}
 	}
-	
-	public synchronized long count() {
-		return current;
+
+	public long count() {
+		return getCount();
 	}
-	
+
 	/**
 	 * Get the current number of available tokens.
 	 */
-	public synchronized long getCount() {
-		addTokens();
-		return current;
+	public long getCount() {
+		Limits l = limits;
+		long now = now();
+		return balance(Math.max(emptyAt.get(), l.full(now)), now, l.nanosPerTick);
 	}
 
-	protected long offset() {
-		return 0;
-	}
-	
-	public synchronized void blockingGrab(long tokens) {
+	public void blockingGrab(long tokens) {
 		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
-		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		if(logMINOR) Logger.minor(this, "Blocking grab: "+tokens);
+		long max = limits.max;
 		if(tokens < max)
 			innerBlockingGrab(tokens);
 		else {
-			for(int i=0;i<tokens;i+=max) {
-				innerBlockingGrab(Math.min(tokens, max));
+			for(long i=0;i<tokens;i+=max) {
+				innerBlockingGrab(Math.min(tokens - i, max));
 			}
 		}
 	}
-	
+
 	/**
 	 * Grab a bunch of tokens. Block if necessary.
 	 * @param tokens The number of tokens to grab.
 	 */
-	public synchronized void innerBlockingGrab(long tokens) {
+	public void innerBlockingGrab(long tokens) {
 		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
-		if(logMINOR) Logger.minor(this, "Inner blocking grab: "+tokens);
-		addTokens();
-		if(logMINOR) Logger.minor(this, "current="+current);
-		
-		current -= tokens;
-		
-		if(current >= 0) {
-			if(logMINOR) Logger.minor(this, "Got tokens instantly, current="+current);
+		long wakeAt = reserve(tokens);
+		long delay = wakeAt - now();
+		if(delay <= 0) {
+			if(logMINOR) Logger.minor(this, "Got tokens instantly");
 			return;
-		} else {
-			if(logMINOR) Logger.minor(this, "Blocking grab removed tokens, current="+current+" - will have to wait because negative...");
 		}
-		
-		long minDelayNS = nanosPerTick * (-current);
-		long minDelayMS = (minDelayNS + 1000*1000 - 1) / (1000*1000);
-		long now = System.currentTimeMillis();
-		long wakeAt = now + minDelayMS;
-		
-		if(logMINOR) Logger.minor(this, "Waking in "+minDelayMS+" millis");
-		
-		while(true) {
-			now = System.currentTimeMillis();
-			int delay = (int) Math.min(Integer.MAX_VALUE, wakeAt - now);
-			if(delay <= 0) break;
-			if(logMINOR) Logger.minor(this, "Waiting "+delay+"ms");
-			try {
-				wait(delay);
-			} catch (InterruptedException e) {
-				// Go around the loop again.
-			}
+		if(logMINOR) Logger.minor(this, "Blocking grab removed tokens, waiting "+(delay / (1000*1000))+"ms");
+		while(delay > 0) {
+			LockSupport.parkNanos(this, delay);
+			// Interrupts are ignored, as before; clear the flag so we don't spin.
+			Thread.interrupted();
+			delay = wakeAt - now();
 		}
-		if(logMINOR) Logger.minor(this, "Blocking grab finished: current="+current);
+		if(logMINOR) Logger.minor(this, "Blocking grab finished");
 	}
 
-	public synchronized void recycle(long tokens) {
+	public void recycle(long tokens) {
 		if(tokens < 0) throw new IllegalArgumentException("Can't recycle negative tokens: "+tokens);
-		current += tokens;
-		if(current > max) current = max;
+		while(true) {
+			Limits l = limits;
+			long e = emptyAt.get();
+			long newEmptyAt = Math.max(e - tokens * l.nanosPerTick, l.full(now()));
+			if(newEmptyAt >= e || emptyAt.compareAndSet(e, newEmptyAt))
+				return;
+		}
 	}
-	
+
 	/**
 	 * Change the number of nanos per tick.
 	 * @param nanosPerTick The new number of nanos per tick.
 	 */
 	public synchronized void changeNanosPerTick(long nanosPerTick) {
-		if(nanosPerTick <= 0) throw new IllegalArgumentException();
-		// Synchronize up first, using the old nanosPerTick.
-		addTokens();
-		this.nanosPerTick = nanosPerTick;
-		if(nanosPerTick < this.nanosPerTick)
-			notifyAll();
+		changeNanosAndBucketSize(nanosPerTick, limits.max);
 	}
 
 	public synchronized void changeBucketSize(long newMax) {
-		if(newMax <= 0) throw new IllegalArgumentException();
-		max = newMax;
-		addTokens();
+		changeNanosAndBucketSize(limits.nanosPerTick, newMax);
 	}
-	
-	public synchronized void changeNanosAndBucketSize(long nanosPerTick, long newMax) {
-		if(nanosPerTick <= 0) throw new IllegalArgumentException();
-		if(newMax <= 0) throw new IllegalArgumentException();
-		// Synchronize up first, using the old nanosPerTick.
-		addTokensNoClip();
-		if(nanosPerTick < this.nanosPerTick)
-			notifyAll();
-		this.nanosPerTick = nanosPerTick;
-		this.max = newMax;
-		if(current > max) current = max;
-	}
-	
-	public synchronized void addTokens() {
-		addTokensNoClip();
-		if(current > max) current = max;
-		if(logMINOR)
-			Logger.minor(this, "addTokens: Clipped, current="+current);
-	}
-	
+
 	/**
-	 * Update the number of tokens according to elapsed time.
+	 * Change the rate and the size of the bucket, keeping the current balance (clipped to
+	 * the new size). Grabs which race with this may be accounted at the old rate.
 	 */
-	public synchronized void addTokensNoClip() {
-		long add = tokensToAdd();
-		current += add;
-		timeLastTick += add * nanosPerTick;
-		if(logMINOR)
-			Logger.minor(this, "addTokensNoClip: Added "+add+" tokens, current="+current);
-		// Deliberately do not clip to size at this point; caller must do this, but it is usually beneficial for the caller to do so.
-	}
-	
-	synchronized long tokensToAdd() {
-		long nowNS = System.currentTimeMillis() * (1000 * 1000);
-		if(timeLastTick > nowNS) {
-			System.err.println("CLOCK SKEW DETECTED! CLOCK WENT BACKWARDS BY AT LEAST "+TimeUtil.formatTime((timeLastTick - nowNS)/(1000*1000), 2, true));
-			System.err.println("FREENET WILL BREAK SEVERELY IF THIS KEEPS HAPPENING!");
-			Logger.error(this, "CLOCK SKEW DETECTED! CLOCK WENT BACKWARDS BY AT LEAST "+TimeUtil.formatTime((timeLastTick - nowNS)/(1000*1000), 2, true));
-			timeLastTick = nowNS;
-			return 0;
-		}
-		long nextTick = timeLastTick + nanosPerTick;
-		if(nextTick > nowNS) {
-			return 0;
+	public synchronized void changeNanosAndBucketSize(long nanosPerTick, long newMax) {
+		Limits newLimits = new Limits(nanosPerTick, newMax);
+		Limits old = limits;
+		while(true) {
+			long e = emptyAt.get();
+			long now = now();
+			// Convert the balance, including any partial token, to the new rate.
+			double ticks = (now - Math.max(e, old.full(now))) / (double) old.nanosPerTick;
+			long newEmptyAt = Math.max(now - (long)(ticks * nanosPerTick), newLimits.full(now));
+			if(emptyAt.compareAndSet(e, newEmptyAt)) break;
 		}
-		if(nextTick + nanosPerTick > nowNS) {
-			return 1;
+		limits = newLimits;
+	}
+
+	/**
+	 * Forget any tokens beyond the size of the bucket. Not normally necessary, since the
+	 * balance is always clipped when it is read.
+	 */
+	public void addTokens() {
+		while(true) {
+			Limits l = limits;
+			long e = emptyAt.get();
+			long full = l.full(now());
+			if(e >= full || emptyAt.compareAndSet(e, full))
+				return;
 		}
-		return (nowNS - nextTick) / nanosPerTick;
 	}
-	
-	public synchronized long getNanosPerTick() {
-		return nanosPerTick;
+
+	public long getNanosPerTick() {
+		return limits.nanosPerTick;
+	}
+
+	@Override
+	public String toString() {
+		Limits l = limits;
+		return super.toString()+":max="+l.max+",nanosPerTick="+l.nanosPerTick;
 	}
 }
@@ -134,6 +134,11 @@ public class Bzip2Compressor implements Compressor {
 		}
 	}
 
+	@Override
+	public InputStream decompressingStream(InputStream input) throws IOException {
+		return new BZip2CompressorInputStream(HeaderStreams.augInput(BZ_HEADER, input));
+	}
+
 	@Override
 	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
 		// Didn't work with Inflater.
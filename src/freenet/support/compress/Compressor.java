@@ -172,6 +172,15 @@ public interface Compressor {
 			return compressor.decompress(dbuf, i, j, output);
 		}
 
+		@Override
+		public InputStream decompressingStream(InputStream input) throws IOException {
+			if(compressor == null) {
+				// DB4O VOODOO! See below.
+				if(name != null) return getOfficial().decompressingStream(input);
+			}
+			return compressor.decompressingStream(input);
+		}
+
 		// DB4O VOODOO!
 		// Copies of the static fields get stored into the database.
 		// Really the solution is probably to store the codes only.
@@ -246,4 +255,14 @@ public interface Compressor {
 	 * @returns The number of bytes actually written.
 	 */
 	public abstract int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException;
+
+	/**
+	 * Decompress data as it is read, on the reading thread.
+	 * @param input Where to read the compressed data from. Closing the returned stream
+	 * closes this.
+	 * @return A stream of the decompressed data, or null if this codec can only
+	 * decompress to an OutputStream. The caller must enforce any length limit.
+	 * @throws IOException If the header is invalid.
+	 */
+	public abstract InputStream decompressingStream(InputStream input) throws IOException;
 }
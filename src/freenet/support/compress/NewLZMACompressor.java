@@ -136,6 +136,12 @@ public class NewLZMACompressor implements Compressor {
 		return cos.written();
 	}
 
+	@Override
+	public InputStream decompressingStream(InputStream input) {
+		// The LZMA decoder only writes to an OutputStream.
+		return null;
+	}
+
 	@Override
 	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
 		// Didn't work with Inflater.
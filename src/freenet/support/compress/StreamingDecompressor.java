@@ -0,0 +1,336 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.support.BlockBufferPool;
+import freenet.support.BlockBufferPool.PooledBuffer;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * Decompresses a stream through any number of codecs on the thread which reads the result.
+ * Each codec's decompressing InputStream is stacked on the previous one, with a large pooled
+ * buffer between them, and the output of each is limited to maxLen as it is read. So the
+ * ContentFilter (or whatever reads the returned stream) drives the whole chain, and there
+ * are no threads or pipes per codec.
+ *
+ * The LZMA codecs can only decompress to an OutputStream, so they run as a job on the
+ * executor each, connected by a pipe. waitFinished() waits for those jobs.
+ */
+public class StreamingDecompressor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(StreamingDecompressor.class);
+	}
+
+	static final int BUFFER_SIZE = 64*1024;
+	private static final BlockBufferPool buffers = new BlockBufferPool("StreamingDecompressor", BUFFER_SIZE, 32, false);
+
+	private final InputStream input;
+	/** In the order they are applied, i.e. the reverse of the order in the metadata. */
+	private final List<Compressor> decompressors;
+	private final long maxLen;
+	private final Executor executor;
+	/** Number of LZMA decoder jobs which haven't finished yet. */
+	private int running;
+	private Throwable error;
+
+	/**
+	 * @param inputStream The stream that will be decompressed, if compressed.
+	 * @param decompressors The codecs, in the order they were applied when compressing, i.e.
+	 * the last is undone first. Not modified.
+	 * @param maxLen The maximum number of bytes any stage may produce.
+	 * @param executor Runs the codecs which can't decompress as a stream, i.e. LZMA.
+	 */
+	public StreamingDecompressor(InputStream inputStream, List<? extends Compressor> decompressors, long maxLen, Executor executor) throws IOException {
+		if(inputStream == null) throw new IOException("Input stream may not be null");
+		this.input = inputStream;
+		this.maxLen = maxLen;
+		this.executor = executor;
+		this.decompressors = new ArrayList<Compressor>(decompressors.size());
+		for(int i=decompressors.size()-1;i>=0;i--)
+			this.decompressors.add(decompressors.get(i));
+	}
+
+	/** @return A stream of the decompressed data. Reading it does the decompression, so
+	 * this does not block. Closing it closes the input. */
+	public InputStream execute() {
+		InputStream stream = input;
+		for(Compressor compressor : decompressors) {
+			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
+			InputStream buffered = new PooledBufferedInputStream(stream);
+			stream = new LimitedInputStream(new CodecInputStream(compressor, buffered), maxLen, maxLen * 4);
+		}
+		return stream;
+	}
+
+	private InputStream startDecoder(final Compressor compressor, final InputStream in) throws IOException {
+		final PipedInputStream pipeIn = new PipedInputStream(BUFFER_SIZE);
+		final PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+		synchronized(this) {
+			running++;
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				OutputStream out = pipeOut;
+				try {
+					compressor.decompress(in, out, maxLen, maxLen * 4);
+					out.close();
+					out = null;
+				} catch (Throwable t) {
+					onFailure(t);
+				} finally {
+					Closer.close(in);
+					Closer.close(out);
+					onFinished();
+				}
+			}
+
+		}, "Decompressor:"+compressor);
+		return new FilterInputStream(pipeIn) {
+
+			// Report the decompressor's failure rather than a truncated stream.
+
+			@Override
+			public int read() throws IOException {
+				int r = super.read();
+				if(r < 0) checkError();
+				return r;
+			}
+
+			@Override
+			public int read(byte[] buf, int offset, int length) throws IOException {
+				int r;
+				try {
+					r = super.read(buf, offset, length);
+				} catch (IOException e) {
+					checkError();
+					throw e;
+				}
+				if(r < 0) checkError();
+				return r;
+			}
+
+		};
+	}
+
+	private synchronized void onFailure(Throwable t) {
+		if(error == null) error = t;
+	}
+
+	private synchronized void onFinished() {
+		running--;
+		notifyAll();
+	}
+
+	private synchronized void checkError() throws IOException {
+		if(error == null) return;
+		if(error instanceof IOException) throw (IOException) error;
+		IOException e = new IOException("Decompressor failed: "+error);
+		e.initCause(error);
+		throw e;
+	}
+
+	/** Wait for any decompressor jobs to finish. Throws if any of them failed. */
+	public synchronized void waitFinished() throws Throwable {
+		while(running > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Try again.
+			}
+		}
+		if(error != null) throw error;
+	}
+
+	/** Creates the codec's stream on the first read. The codecs read a header when they are
+	 * constructed, and the caller typically only starts writing the compressed data after
+	 * execute() has returned, so we can't construct them there. */
+	private class CodecInputStream extends InputStream {
+
+		private final Compressor compressor;
+		private final InputStream in;
+		private InputStream decompressed;
+		private boolean closed;
+
+		CodecInputStream(Compressor compressor, InputStream in) {
+			this.compressor = compressor;
+			this.in = in;
+		}
+
+		private InputStream open() throws IOException {
+			if(decompressed != null) return decompressed;
+			if(closed) throw new IOException("Stream closed");
+			decompressed = compressor.decompressingStream(in);
+			if(decompressed == null)
+				decompressed = startDecoder(compressor, in);
+			return decompressed;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return open().read();
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			return open().read(buf, offset, length);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return decompressed == null ? 0 : decompressed.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			if(decompressed != null) decompressed.close();
+			else in.close();
+		}
+
+	}
+
+	/** Like BufferedInputStream, but the buffer comes from the pool, and goes back on close. */
+	private static class PooledBufferedInputStream extends InputStream {
+
+		private final InputStream in;
+		private PooledBuffer pooled;
+		private final byte[] buf;
+		private int pos;
+		private int count;
+
+		PooledBufferedInputStream(InputStream in) {
+			this.in = in;
+			pooled = buffers.allocate();
+			buf = pooled.getArray();
+		}
+
+		private boolean fill() throws IOException {
+			if(pooled == null) throw new IOException("Stream closed");
+			int r = in.read(buf, 0, buf.length);
+			if(r <= 0) return false;
+			pos = 0;
+			count = r;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(pos == count && !fill()) return -1;
+			return buf[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			if(pos == count) {
+				// Don't copy twice if the caller has a big buffer of its own.
+				if(length >= buf.length) {
+					if(pooled == null) throw new IOException("Stream closed");
+					return in.read(b, offset, length);
+				}
+				if(!fill()) return -1;
+			}
+			int copy = Math.min(length, count - pos);
+			System.arraycopy(buf, pos, b, offset, copy);
+			pos += copy;
+			return copy;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (count - pos) + in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(pooled != null) {
+				pooled.release();
+				pooled = null;
+				pos = count = 0;
+			}
+			in.close();
+		}
+
+	}
+
+	/** Throws CompressionOutputSizeException once more than maxLength bytes have been read.
+	 * Like Compressor.decompress(), it first reads up to maxCheckSizeBytes more, so the
+	 * exception can say how big the data actually is. */
+	static class LimitedInputStream extends FilterInputStream {
+
+		private final long maxLength;
+		private final long maxCheckSizeBytes;
+		private long read;
+
+		LimitedInputStream(InputStream in, long maxLength, long maxCheckSizeBytes) {
+			super(in);
+			this.maxLength = maxLength;
+			this.maxCheckSizeBytes = maxCheckSizeBytes;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int r = in.read();
+			if(r >= 0) {
+				read++;
+				if(read > maxLength) tooBig();
+			}
+			return r;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			int r = in.read(buf, offset, length);
+			if(r > 0) {
+				read += r;
+				if(read > maxLength) tooBig();
+			}
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// Must count what is skipped.
+			byte[] buf = new byte[(int)Math.min(n, 4096)];
+			int r = read(buf, 0, buf.length);
+			return r < 0 ? 0 : r;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void tooBig() throws IOException {
+			Logger.normal(this, "Read "+read+" bytes, maxLength="+maxLength+" throwing a CompressionOutputSizeException");
+			if(maxCheckSizeBytes > 0) {
+				byte[] buf = new byte[4096];
+				while(read <= maxLength + maxCheckSizeBytes) {
+					int r = in.read(buf);
+					if(r < 0) throw new CompressionOutputSizeException(read);
+					read += r;
+				}
+			}
+			throw new CompressionOutputSizeException();
+		}
+
+	}
+
+}
@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes HTTP/1.1 chunked transfer encoding. Data is buffered, and each chunk, including its
+ * size line and trailing CRLF, goes to the underlying stream in a single write. close()
+ * writes the last chunk and flushes, but does not close the underlying stream, as the
+ * connection may be used for further requests.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+
+	/** Room for the size in hex and a CRLF, before the data. */
+	private static final int HEADER = 10;
+	private static final byte[] LAST_CHUNK = new byte[] { '0', '\r', '\n', '\r', '\n' };
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private final byte[] buf;
+	private int pos = HEADER;
+	private boolean closed;
+
+	/**
+	 * @param out The stream to write the encoded data to.
+	 * @param chunkSize The maximum amount of data per chunk.
+	 */
+	public ChunkedOutputStream(OutputStream out, int chunkSize) {
+		super(out);
+		if(chunkSize <= 0) throw new IllegalArgumentException();
+		buf = new byte[HEADER + chunkSize + 2];
+	}
+
+	public ChunkedOutputStream(OutputStream out) {
+		this(out, 8192);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(closed) throw new IOException("Stream closed");
+		if(pos == buf.length - 2) writeChunk();
+		buf[pos++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if(closed) throw new IOException("Stream closed");
+		while(length > 0) {
+			int copy = Math.min(length, buf.length - 2 - pos);
+			System.arraycopy(data, offset, buf, pos, copy);
+			pos += copy;
+			offset += copy;
+			length -= copy;
+			if(pos == buf.length - 2) writeChunk();
+		}
+	}
+
+	/** Write any buffered data as a chunk and flush the underlying stream. */
+	@Override
+	public void flush() throws IOException {
+		if(closed) return;
+		writeChunk();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		writeChunk();
+		closed = true;
+		out.write(LAST_CHUNK);
+		out.flush();
+	}
+
+	private void writeChunk() throws IOException {
+		int length = pos - HEADER;
+		if(length == 0) return;
+		// The size, in hex, right aligned before the data.
+		int start = HEADER - 2;
+		buf[start] = '\r';
+		buf[start+1] = '\n';
+		int size = length;
+		do {
+			buf[--start] = HEX[size & 0xF];
+			size >>>= 4;
+		} while(size != 0);
+		buf[pos++] = '\r';
+		buf[pos++] = '\n';
+		out.write(buf, start, pos - start);
+		pos = HEADER;
+	}
+
+}
@@ -0,0 +1,67 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import freenet.crypt.SeekableCTRCipher;
+import freenet.crypt.UnsupportedCipherException;
+
+/**
+ * RandomAccessThing proxy which encrypts everything with AES-256 in CTR mode, keyed by the
+ * offset in the file, so any range can be read or written independently.
+ *
+ * CRYPTO WARNING: Rewriting the same range with different data leaks the XOR of the two
+ * plaintexts to anyone who sees both versions. This is fine for ephemeral temp files with a
+ * random key, where the threat is somebody seizing the disk later, but don't use it for
+ * anything else.
+ */
+public class EncryptedRandomAccessThing implements RandomAccessThing {
+
+	private final RandomAccessThing underlying;
+	private final SeekableCTRCipher cipher;
+
+	/**
+	 * @param underlying The storage to proxy to.
+	 * @param key 32 byte random key. Must not be reused for anything else.
+	 * @param iv At least 16 random bytes.
+	 * @throws UnsupportedCipherException If AES/CTR is not available via the JCE.
+	 */
+	public EncryptedRandomAccessThing(RandomAccessThing underlying, byte[] key, byte[] iv) throws UnsupportedCipherException {
+		this.underlying = underlying;
+		this.cipher = new SeekableCTRCipher(key, iv);
+	}
+
+	@Override
+	public long size() throws IOException {
+		return underlying.size();
+	}
+
+	@Override
+	public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+		underlying.pread(fileOffset, buf, bufOffset, length);
+		synchronized(this) {
+			cipher.seek(fileOffset);
+			cipher.process(buf, bufOffset, length);
+		}
+	}
+
+	@Override
+	public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+		// Do not clobber the caller's buffer!
+		byte[] encrypted = Arrays.copyOfRange(buf, bufOffset, bufOffset + length);
+		synchronized(this) {
+			cipher.seek(fileOffset);
+			cipher.process(encrypted, 0, length);
+		}
+		underlying.pwrite(fileOffset, encrypted, 0, length);
+	}
+
+	@Override
+	public void close() {
+		underlying.close();
+	}
+
+}
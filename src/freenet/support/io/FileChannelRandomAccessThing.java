@@ -0,0 +1,114 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import freenet.support.Logger;
+
+/**
+ * RandomAccessThing backed by a file of fixed size, using positioned FileChannel I/O. Unlike
+ * RandomAccessFileWrapper there is no shared file pointer, so concurrent reads and writes to
+ * different parts of the file do not need to take a lock.
+ *
+ * Note that interrupting a thread which is doing I/O on a FileChannel will close the channel.
+ */
+public class FileChannelRandomAccessThing implements RandomAccessThing {
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long size;
+	private final boolean deleteOnClose;
+	private boolean closed;
+
+	/**
+	 * Create or open a file and set its length. The file is not written to, so on most
+	 * filesystems the space is allocated lazily (a sparse file).
+	 * @param file The file to use.
+	 * @param size The length of the file. It will be truncated or extended to this length.
+	 * @param deleteOnClose If true, delete the file when we are closed.
+	 */
+	public FileChannelRandomAccessThing(File file, long size, boolean deleteOnClose) throws IOException {
+		if(size < 0) throw new IllegalArgumentException("Bad size "+size);
+		this.file = file;
+		this.size = size;
+		this.deleteOnClose = deleteOnClose;
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+		} catch (IOException e) {
+			raf.close();
+			if(deleteOnClose) file.delete();
+			throw e;
+		}
+		channel = raf.getChannel();
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+		checkBounds(fileOffset, length);
+		ByteBuffer bb = ByteBuffer.wrap(buf, bufOffset, length);
+		while(bb.hasRemaining()) {
+			int read = channel.read(bb, fileOffset);
+			if(read == -1) throw new EOFException("Unexpected EOF at "+fileOffset+" in "+file);
+			fileOffset += read;
+		}
+	}
+
+	@Override
+	public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+		checkBounds(fileOffset, length);
+		ByteBuffer bb = ByteBuffer.wrap(buf, bufOffset, length);
+		while(bb.hasRemaining())
+			fileOffset += channel.write(bb, fileOffset);
+	}
+
+	private void checkBounds(long fileOffset, int length) throws IOException {
+		if(fileOffset < 0 || length < 0 || fileOffset + length > size)
+			throw new IOException("Out of range: "+fileOffset+" length "+length+" size "+size+" in "+file);
+	}
+
+	/** Force all writes to disk. Not normally needed for temporary files. */
+	public void sync() throws IOException {
+		channel.force(false);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void close() {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+		}
+		try {
+			raf.close();
+		} catch (IOException e) {
+			Logger.error(this, "Could not close "+file+" : "+e+" for "+this, e);
+		}
+		if(deleteOnClose) {
+			if(!file.delete() && file.exists())
+				Logger.error(this, "Could not delete "+file);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+file+":"+size;
+	}
+
+}
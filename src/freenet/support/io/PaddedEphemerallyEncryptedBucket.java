@@ -13,6 +13,7 @@ import com.db4o.ObjectContainer;
 
 import freenet.crypt.PCFBMode;
 import freenet.crypt.RandomSource;
+import freenet.crypt.SeekableCTRCipher;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.support.LogThresholdCallback;
@@ -26,11 +27,24 @@ import freenet.support.math.MersenneTwister;
  * - Encryption with the supplied cipher, and a random, ephemeral key.
  * - Padding to the next PO2 size.
  * 
- * CRYPTO WARNING: This uses PCFB with no IV. That means it is only safe if the key is unique!
+ * New buckets use AES-256 in CTR mode via the JCE, which is much faster than our own
+ * Rijndael in PCFB mode and can seek, so skip() doesn't have to decrypt everything it skips.
+ * Buckets created before that (including persistent ones in the database) still use PCFB.
+ * 
+ * CRYPTO WARNING: The key is random and only used for one bucket. PCFB buckets created before
+ * we stored an IV use no IV, so are only safe because the key is unique!
  */
 public class PaddedEphemerallyEncryptedBucket implements Bucket {
 
+	/** Rijndael with 256 bit key and block size, in PCFB mode. This is the original format,
+	 * and buckets stored in the database before cryptoAlgorithm was added will have 0 here. */
+	public static final byte ALGO_PCFB_RIJNDAEL_256 = 0;
+	/** AES with 256 bit key (128 bit block) in CTR mode, using the first 16 bytes of the IV. */
+	public static final byte ALGO_AES_CTR_256 = 1;
+
 	private final Bucket bucket;
+	/** Which cipher and mode we encrypt with. One of the ALGO_* constants. */
+	private final byte cryptoAlgorithm;
 	private final int minPaddedSize;
 	/** The decryption key. */
 	private final byte[] key;
@@ -62,6 +76,20 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 	 * @throws UnsupportedCipherException 
 	 */
 	public PaddedEphemerallyEncryptedBucket(Bucket bucket, int minSize, RandomSource strongPRNG, Random weakPRNG) {
+		this(bucket, minSize, strongPRNG, weakPRNG, SeekableCTRCipher.isAvailable() ? ALGO_AES_CTR_256 : ALGO_PCFB_RIJNDAEL_256);
+	}
+
+	/**
+	 * Create a padded encrypted proxy bucket with a specific cipher.
+	 * @param cryptoAlgorithm One of the ALGO_* constants.
+	 * @see #PaddedEphemerallyEncryptedBucket(Bucket, int, RandomSource, Random)
+	 */
+	public PaddedEphemerallyEncryptedBucket(Bucket bucket, int minSize, RandomSource strongPRNG, Random weakPRNG, byte cryptoAlgorithm) {
+		if(cryptoAlgorithm != ALGO_PCFB_RIJNDAEL_256 && cryptoAlgorithm != ALGO_AES_CTR_256)
+			throw new IllegalArgumentException("Unknown crypto algorithm "+cryptoAlgorithm);
+		if(cryptoAlgorithm == ALGO_AES_CTR_256 && !SeekableCTRCipher.isAvailable())
+			throw new IllegalArgumentException("AES/CTR not available");
+		this.cryptoAlgorithm = cryptoAlgorithm;
 		this.bucket = bucket;
 		if(bucket.size() != 0) throw new IllegalArgumentException("Bucket must be empty");
 		byte[] tempKey = new byte[32];
@@ -79,6 +107,7 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 
 	public PaddedEphemerallyEncryptedBucket(PaddedEphemerallyEncryptedBucket orig, Bucket newBucket) {
 		this.dataLength = orig.dataLength;
+		this.cryptoAlgorithm = orig.cryptoAlgorithm;
 		this.key = orig.key.clone();
 		this.randomSeed = null; // Will be read-only
 		setReadOnly();
@@ -103,7 +132,9 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 
 	private class PaddedEphemerallyEncryptedOutputStream extends OutputStream {
 
+		/** Exactly one of pcfb and ctr is non-null, depending on cryptoAlgorithm. */
 		final PCFBMode pcfb;
+		final SeekableCTRCipher ctr;
 		final OutputStream out;
 		final int streamNumber;
 		private boolean closed;
@@ -112,7 +143,13 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 			this.out = out;
 			dataLength = 0;
 			this.streamNumber = streamNumber;
-			pcfb = getPCFB();
+			if(cryptoAlgorithm == ALGO_AES_CTR_256) {
+				ctr = getCTR();
+				pcfb = null;
+			} else {
+				pcfb = getPCFB();
+				ctr = null;
+			}
 		}
 		
 		@Override
@@ -122,7 +159,7 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 				throw new IllegalStateException("Writing to old stream in "+getName());
 			//if((b < 0) || (b > 255))
 			//	throw new IllegalArgumentException();
-			int toWrite = pcfb.encipher(b);
+			int toWrite = (ctr != null) ? ctr.process(b) : pcfb.encipher(b);
 			synchronized(PaddedEphemerallyEncryptedBucket.this) {
 				out.write(toWrite);
 				dataLength++;
@@ -146,7 +183,10 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 				throw new IllegalStateException("Writing to old stream in "+getName());
 			if(length == 0) return;
 			byte[] enc = Arrays.copyOfRange(buf, offset, offset + length);
-			pcfb.blockEncipher(enc, 0, enc.length);
+			if(ctr != null)
+				ctr.process(enc, 0, enc.length);
+			else
+				pcfb.blockEncipher(enc, 0, enc.length);
 			synchronized(PaddedEphemerallyEncryptedBucket.this) {
 				out.write(enc, 0, enc.length);
 				dataLength += enc.length;
@@ -194,12 +234,20 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 	private class PaddedEphemerallyEncryptedInputStream extends InputStream {
 
 		final InputStream in;
+		/** Exactly one of pcfb and ctr is non-null, depending on cryptoAlgorithm. */
 		final PCFBMode pcfb;
+		final SeekableCTRCipher ctr;
 		long ptr;
 		
 		public PaddedEphemerallyEncryptedInputStream(InputStream in) {
 			this.in = in;
-			pcfb = getPCFB();
+			if(cryptoAlgorithm == ALGO_AES_CTR_256) {
+				ctr = getCTR();
+				pcfb = null;
+			} else {
+				pcfb = getPCFB();
+				ctr = null;
+			}
 			ptr = 0;
 		}
 		
@@ -209,7 +257,7 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 			int x = in.read();
 			if(x == -1) return x;
 			ptr++;
-			return pcfb.decipher(x);
+			return (ctr != null) ? ctr.process(x) : pcfb.decipher(x);
 		}
 		
 		@Override
@@ -229,7 +277,10 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 			int readBytes = in.read(buf, offset, length);
 			if(readBytes <= 0) return readBytes;
 			ptr += readBytes;
-			pcfb.blockDecipher(buf, offset, readBytes);
+			if(ctr != null)
+				ctr.process(buf, offset, readBytes);
+			else
+				pcfb.blockDecipher(buf, offset, readBytes);
 			return readBytes;
 		}
 
@@ -240,8 +291,22 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 		
 		@Override
 		public long skip(long bytes) throws IOException {
-			byte[] buf = new byte[(int)Math.min(4096, bytes)];
+			if(bytes <= 0) return 0;
 			long skipped = 0;
+			if(ctr != null) {
+				// CTR can seek, so skip the underlying stream and move the keystream to match.
+				long toSkip = Math.min(bytes, available());
+				while(skipped < toSkip) {
+					long x = in.skip(toSkip - skipped);
+					if(x <= 0) break;
+					skipped += x;
+				}
+				ptr += skipped;
+				ctr.seek(ptr);
+				if(skipped == toSkip) return skipped;
+				// Underlying stream won't skip, read the rest.
+			}
+			byte[] buf = new byte[(int)Math.min(4096, bytes - skipped)];
 			while(skipped < bytes) {
 				int x = read(buf, 0, (int)Math.min(bytes-skipped, buf.length));
 				if(x <= 0) return skipped;
@@ -291,6 +356,21 @@ public class PaddedEphemerallyEncryptedBucket implements Bucket {
 		return aes;
 	}
 
+	/** @return A CTR cipher positioned at the start of the bucket. */
+	private SeekableCTRCipher getCTR() {
+		try {
+			return new SeekableCTRCipher(key, iv);
+		} catch (UnsupportedCipherException e) {
+			// We checked when the bucket was created, but the JVM may have changed since.
+			throw new Error("AES/CTR no longer available, unable to decrypt "+this, e);
+		}
+	}
+
+	/** @return Which cipher and mode we use, one of the ALGO_* constants. */
+	public byte getCryptoAlgorithm() {
+		return cryptoAlgorithm;
+	}
+
 	@SuppressWarnings("deprecation")
 	public PCFBMode getPCFB() {
 		Rijndael aes = getRijndael();
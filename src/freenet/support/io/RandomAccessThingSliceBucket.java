@@ -0,0 +1,209 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.db4o.ObjectContainer;
+
+import freenet.support.api.Bucket;
+
+/**
+ * A Bucket which is a fixed size region of a RandomAccessThing. Many of these can share
+ * the same RandomAccessThing, e.g. one per block of a splitfile download. Code which knows
+ * about this class can use pread() and pwrite() to access the data in place, without
+ * going through streams.
+ *
+ * free() does nothing: whoever created the RandomAccessThing is responsible for closing
+ * it once none of the slices are needed any more. Transient only, we cannot be stored in
+ * the database.
+ */
+public class RandomAccessThingSliceBucket implements Bucket {
+
+	private final RandomAccessThing underlying;
+	private final long offset;
+	private final int capacity;
+	private int size;
+	private boolean readOnly;
+
+	/**
+	 * @param underlying The storage.
+	 * @param offset The offset of the start of the slice in the storage.
+	 * @param capacity The maximum number of bytes we can hold.
+	 * @param size The number of bytes of valid data already in the slice.
+	 */
+	public RandomAccessThingSliceBucket(RandomAccessThing underlying, long offset, int capacity, int size) {
+		if(offset < 0 || capacity < 0 || size < 0 || size > capacity)
+			throw new IllegalArgumentException("offset="+offset+" capacity="+capacity+" size="+size);
+		this.underlying = underlying;
+		this.offset = offset;
+		this.capacity = capacity;
+		this.size = size;
+	}
+
+	public RandomAccessThing getUnderlying() {
+		return underlying;
+	}
+
+	/** @return The offset of the slice in the underlying RandomAccessThing. */
+	public long getOffset() {
+		return offset;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Read from the slice in place.
+	 * @param sliceOffset Offset relative to the start of the slice. */
+	public void pread(int sliceOffset, byte[] buf, int bufOffset, int length) throws IOException {
+		synchronized(this) {
+			if(sliceOffset < 0 || length < 0 || sliceOffset + length > size)
+				throw new IOException("Read out of range: "+sliceOffset+" length "+length+" size "+size);
+		}
+		underlying.pread(offset + sliceOffset, buf, bufOffset, length);
+	}
+
+	/** Write to the slice in place, extending the valid data if necessary.
+	 * @param sliceOffset Offset relative to the start of the slice. Must not leave a gap
+	 * after the current end of the data. */
+	public void pwrite(int sliceOffset, byte[] buf, int bufOffset, int length) throws IOException {
+		synchronized(this) {
+			if(readOnly) throw new IOException("Read only");
+			if(sliceOffset < 0 || length < 0 || sliceOffset > size || sliceOffset + length > capacity)
+				throw new IOException("Write out of range: "+sliceOffset+" length "+length+" size "+size+" capacity "+capacity);
+		}
+		underlying.pwrite(offset + sliceOffset, buf, bufOffset, length);
+		synchronized(this) {
+			if(sliceOffset + length > size) size = sliceOffset + length;
+		}
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		synchronized(this) {
+			if(readOnly) throw new IOException("Read only");
+			size = 0;
+		}
+		return new SliceOutputStream();
+	}
+
+	private class SliceOutputStream extends OutputStream {
+
+		private int ptr;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int bufOffset, int length) throws IOException {
+			if(closed) throw new IOException("Already closed");
+			if(ptr + length > capacity)
+				throw new IOException("Too much data for slice: "+(ptr + length)+" > "+capacity);
+			pwrite(ptr, buf, bufOffset, length);
+			ptr += length;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return new SliceInputStream();
+	}
+
+	private class SliceInputStream extends InputStream {
+
+		private int ptr;
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int read = read(buf, 0, 1);
+			if(read <= 0) return -1;
+			return buf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int bufOffset, int length) throws IOException {
+			int left = (int) Math.min(length, size() - ptr);
+			if(left <= 0) return length == 0 ? 0 : -1;
+			pread(ptr, buf, bufOffset, left);
+			ptr += left;
+			return left;
+		}
+
+		@Override
+		public long skip(long n) {
+			if(n <= 0) return 0;
+			long skip = Math.min(n, size() - ptr);
+			if(skip <= 0) return 0;
+			ptr += skip;
+			return skip;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.max(0, size() - ptr);
+		}
+
+	}
+
+	@Override
+	public String getName() {
+		return "Slice:"+underlying+":"+offset+":"+capacity;
+	}
+
+	@Override
+	public synchronized long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public synchronized void setReadOnly() {
+		readOnly = true;
+	}
+
+	@Override
+	public void free() {
+		// Do nothing. The owner of the RandomAccessThing will close it.
+	}
+
+	@Override
+	public void storeTo(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public synchronized Bucket createShadow() {
+		RandomAccessThingSliceBucket shadow = new RandomAccessThingSliceBucket(underlying, offset, capacity, size);
+		shadow.setReadOnly();
+		return shadow;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+offset+":"+size+"/"+capacity;
+	}
+
+}
@@ -0,0 +1,61 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+/**
+ * Histogram of durations in nanoseconds, for finding out where the time goes on the hot
+ * path. A StripedHistogram with log-linear buckets: each power of 2 is split into
+ * SUB_BUCKETS equal buckets, so percentiles are accurate to within 1/SUB_BUCKETS (about 6%)
+ * rather than a factor of 2. Durations longer than about a minute all go in the last
+ * bucket, but the maximum is kept exactly.
+ */
+public final class LatencyHistogram {
+
+	/** log2(SUB_BUCKETS). */
+	static final int SUB_BITS = 4;
+	/** Number of buckets per power of 2. */
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** Values up to 2^(MAX_EXPONENT+1)-1 nanoseconds, about 68 seconds, get their own bucket. */
+	static final int MAX_EXPONENT = 35;
+	/** Values below SUB_BUCKETS have a bucket each, then SUB_BUCKETS per power of 2. */
+	public static final int BUCKETS = StripedHistogram.buckets(SUB_BITS, MAX_EXPONENT);
+
+	private final StripedHistogram histogram = new StripedHistogram(SUB_BITS, MAX_EXPONENT);
+
+	/** @return The bucket for the given value. */
+	public static int bucketFor(long value) {
+		return StripedHistogram.bucketFor(value, SUB_BITS, MAX_EXPONENT);
+	}
+
+	/** @return The smallest value which goes in the given bucket. */
+	public static long bucketLowerBound(int bucket) {
+		return StripedHistogram.bucketLowerBound(bucket, SUB_BITS);
+	}
+
+	/** @return The largest value which goes in the given bucket. */
+	public static long bucketUpperBound(int bucket) {
+		return StripedHistogram.bucketUpperBound(bucket, SUB_BITS, BUCKETS);
+	}
+
+	/** Record a duration in nanoseconds. */
+	public void report(long nanos) {
+		histogram.report(nanos);
+	}
+
+	/** Record the time since startTime, which was obtained from System.nanoTime(). */
+	public void reportSince(long startTime) {
+		histogram.report(System.nanoTime() - startTime);
+	}
+
+	/** @see StripedHistogram#snapshot() */
+	public StripedHistogram.Snapshot snapshot() {
+		return histogram.snapshot();
+	}
+
+	/** @see StripedHistogram#snapshotAndReset() */
+	public StripedHistogram.Snapshot snapshotAndReset() {
+		return histogram.snapshotAndReset();
+	}
+
+}
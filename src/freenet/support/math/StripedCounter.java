@@ -0,0 +1,42 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which can be incremented from many threads at once without contention. Adding is
+ * a single atomic add on a per-thread stripe; sum() adds up the stripes, and may not include
+ * concurrent updates.
+ */
+public final class StripedCounter {
+
+	private final AtomicLongArray cells;
+
+	public StripedCounter() {
+		cells = new AtomicLongArray(Striping.STRIPES * Striping.PAD);
+	}
+
+	public void add(long x) {
+		cells.getAndAdd(Striping.index() * Striping.PAD, x);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	/** @return The total of everything added so far. */
+	public long sum() {
+		long total = 0;
+		for(int i=0;i<Striping.STRIPES;i++)
+			total += cells.get(i * Striping.PAD);
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+
+}
@@ -0,0 +1,231 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Time decaying average, intended as a drop-in replacement for TimeDecayingRunningAverage
+ * where reports are frequent (e.g. on every request completion) and reads are rare.
+ *
+ * Each report has a weight which halves every halfLife milliseconds, and the value is the
+ * weighted mean of all reports. Each thread reports to its own stripe, which keeps the
+ * decayed total and weight for that stripe, with a lock-free compare-and-set. Reading
+ * combines the stripes, decaying them to the same point in time. Nothing is locked and
+ * nothing is logged on the hot path, other than for impossible values.
+ *
+ * Unlike TimeDecayingRunningAverage, the value doesn't depend on the interval between
+ * consecutive reports: many reports in quick succession move the value just as much as
+ * the same reports spread out over the half-life.
+ *
+ * Can be persisted with exportFieldSet() and loaded with the SimpleFieldSet constructor,
+ * which also accepts fieldsets exported by TimeDecayingRunningAverage.
+ */
+public final class StripedDecayingAverage implements RunningAverage, Cloneable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The state of one stripe. Immutable, replaced on every report. */
+	private static final class Cell implements Serializable {
+		private static final long serialVersionUID = 1L;
+		/** Sum of reports, each multiplied by its decayed weight at time. */
+		final double total;
+		/** Sum of the decayed weights at time. */
+		final double weight;
+		final long reports;
+		/** The time of the most recent report. */
+		final long time;
+		Cell(double total, double weight, long reports, long time) {
+			this.total = total;
+			this.weight = weight;
+			this.reports = reports;
+			this.time = time;
+		}
+	}
+
+	private final AtomicReferenceArray<Cell> cells;
+	private final double defaultValue;
+	private final double halfLife;
+	private final double minReport;
+	private final double maxReport;
+	private final long createdTime;
+
+	/**
+	 * @param defaultValue The value until the first report.
+	 * @param halfLife The half-life of a report's weight, in milliseconds.
+	 * @param min The minimum value which can be reported.
+	 * @param max The maximum value which can be reported.
+	 * @param fs If not null, restore the value exported by exportFieldSet() on this or on
+	 * a TimeDecayingRunningAverage, with the weight given by restoredWeight().
+	 */
+	public StripedDecayingAverage(double defaultValue, long halfLife, double min, double max, SimpleFieldSet fs) {
+		cells = new AtomicReferenceArray<Cell>(Striping.STRIPES * Striping.REF_PAD);
+		this.defaultValue = defaultValue;
+		this.halfLife = halfLife == 0 ? 1 : halfLife;
+		this.minReport = min;
+		this.maxReport = max;
+		long now = System.currentTimeMillis();
+		long created = now;
+		if(fs != null && fs.getBoolean("Started", false)) {
+			double value = fs.getDouble("CurrentValue", defaultValue);
+			if(!(value > maxReport || value < minReport || Double.isNaN(value))) {
+				long reports = Math.max(1, fs.getLong("TotalReports", 0));
+				long uptime = Math.max(0, fs.getLong("Uptime", 0));
+				created = now - uptime;
+				double weight = restoredWeight(reports, uptime, this.halfLife);
+				cells.set(0, new Cell(value * weight, weight, reports, now));
+			}
+		}
+		createdTime = created;
+	}
+
+	public StripedDecayingAverage(double defaultValue, long halfLife, double min, double max) {
+		this(defaultValue, halfLife, min, max, null);
+	}
+
+	private StripedDecayingAverage(StripedDecayingAverage a) {
+		cells = new AtomicReferenceArray<Cell>(Striping.STRIPES * Striping.REF_PAD);
+		defaultValue = a.defaultValue;
+		halfLife = a.halfLife;
+		minReport = a.minReport;
+		maxReport = a.maxReport;
+		createdTime = a.createdTime;
+		for(int i=0;i<Striping.STRIPES;i++)
+			cells.set(i * Striping.REF_PAD, a.cells.get(i * Striping.REF_PAD));
+	}
+
+	@Override
+	public StripedDecayingAverage clone() {
+		return new StripedDecayingAverage(this);
+	}
+
+	/**
+	 * The weight of a restored value, so that it doesn't jump on the next report: the weight
+	 * the reports would have now if they had come in at a steady rate over the uptime. Only
+	 * the total and the uptime are persisted, so this is an estimate.
+	 */
+	static double restoredWeight(long reports, long uptime, double halfLife) {
+		double weight;
+		if(uptime <= 0) {
+			weight = reports;
+		} else {
+			// The integral of rate * 0.5^(t/halfLife) from 0 to uptime.
+			double rate = ((double) reports) / uptime;
+			weight = rate * halfLife / Math.log(2) * (1.0 - Math.pow(0.5, uptime / halfLife));
+		}
+		return Math.max(1.0, Math.min(reports, weight));
+	}
+
+	private double decay(long interval) {
+		if(interval <= 0) return 1.0;
+		return Math.pow(0.5, interval / halfLife);
+	}
+
+	@Override
+	public void report(double d) {
+		if(d < minReport || d > maxReport) {
+			Logger.error(this, "Impossible: "+d+" on "+this, new Exception("error"));
+			return;
+		}
+		if(Double.isInfinite(d) || Double.isNaN(d)) {
+			Logger.error(this, "Reported infinity or NaN to "+this+" : "+d, new Exception("error"));
+			return;
+		}
+		long now = System.currentTimeMillis();
+		int i = Striping.index() * Striping.REF_PAD;
+		while(true) {
+			Cell old = cells.get(i);
+			Cell updated;
+			if(old == null) {
+				updated = new Cell(d, 1.0, 1, now);
+			} else {
+				// Another thread on the same stripe may have reported slightly later, or the
+				// clock may have gone backwards. Either way, never move the stripe backwards.
+				long time = Math.max(now, old.time);
+				double f = decay(time - old.time);
+				updated = new Cell(old.total * f + d, old.weight * f + 1.0, old.reports + 1, time);
+			}
+			if(cells.compareAndSet(i, old, updated)) return;
+		}
+	}
+
+	@Override
+	public void report(long d) {
+		report((double)d);
+	}
+
+	/** Combine the stripes. @param extra If not NaN, include an extra report of this value
+	 * at the time of the most recent report. */
+	private double value(double extra) {
+		Cell[] snapshot = new Cell[Striping.STRIPES];
+		long latest = Long.MIN_VALUE;
+		for(int i=0;i<Striping.STRIPES;i++) {
+			Cell c = cells.get(i * Striping.REF_PAD);
+			snapshot[i] = c;
+			if(c != null && c.time > latest) latest = c.time;
+		}
+		double total = 0.0;
+		double weight = 0.0;
+		if(latest != Long.MIN_VALUE) {
+			// Decay to the time of the latest report rather than to now, so that the weights
+			// don't underflow if there haven't been any reports for a long time. The ratio is
+			// the same either way.
+			for(Cell c : snapshot) {
+				if(c == null) continue;
+				double f = decay(latest - c.time);
+				total += c.total * f;
+				weight += c.weight * f;
+			}
+		}
+		if(!Double.isNaN(extra)) {
+			total += extra;
+			weight += 1.0;
+		}
+		if(weight == 0.0) return defaultValue;
+		return total / weight;
+	}
+
+	@Override
+	public double currentValue() {
+		return value(Double.NaN);
+	}
+
+	@Override
+	public double valueIfReported(double r) {
+		return value(r);
+	}
+
+	@Override
+	public long countReports() {
+		long reports = 0;
+		for(int i=0;i<Striping.STRIPES;i++) {
+			Cell c = cells.get(i * Striping.REF_PAD);
+			if(c != null) reports += c.reports;
+		}
+		return reports;
+	}
+
+	/** Export in the same format as TimeDecayingRunningAverage. */
+	public SimpleFieldSet exportFieldSet(boolean shortLived) {
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		long reports = countReports();
+		fs.putSingle("Type", "StripedDecayingAverage");
+		fs.put("CurrentValue", currentValue());
+		fs.put("Started", reports > 0);
+		fs.put("TotalReports", reports);
+		fs.put("Uptime", System.currentTimeMillis() - createdTime);
+		return fs;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+": currentValue="+currentValue()+", halfLife="+halfLife+
+			", totalReports="+countReports()+", defaultValue="+defaultValue+", min="+minReport+", max="+maxReport;
+	}
+
+}
@@ -0,0 +1,216 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative long values (e.g. times or byte counts). Recording is a few
+ * atomic operations on a per-thread stripe, so it can go on the hot path. Use snapshot() to
+ * read it, or snapshotAndReset() to look at one interval at a time.
+ *
+ * By default there is one bucket per power of 2. The buckets can also be log-linear, as in
+ * HdrHistogram: each power of 2 is split into 2^subBits equal buckets, so percentiles are
+ * accurate to within 1/2^subBits rather than a factor of 2. See LatencyHistogram.
+ */
+public final class StripedHistogram {
+
+	/** Bucket 0 is for 0, bucket i is for values from 2^(i-1) to 2^i - 1. */
+	public static final int BUCKETS = 64;
+	/** Power of 2 buckets for anything up to Long.MAX_VALUE. */
+	private static final int DEFAULT_MAX_EXPONENT = 62;
+	/** Keep each histogram to about 128KiB, by using fewer stripes if the buckets are fine. */
+	private static final int MAX_CELLS = 16*1024;
+
+	private final int subBits;
+	private final int maxExponent;
+	private final int buckets;
+	private final int count;
+	private final int sum;
+	private final int max;
+	/** Buckets, count, sum and max for each stripe, rounded up to whole cache lines. */
+	private final int stride;
+	private final int stripes;
+	private final AtomicLongArray cells;
+
+	public StripedHistogram() {
+		this(0, DEFAULT_MAX_EXPONENT);
+	}
+
+	/**
+	 * @param subBits log2 of the number of buckets per power of 2.
+	 * @param maxExponent Values up to 2^(maxExponent+1)-1 get their own bucket. Larger values
+	 * all go in the last bucket, but the maximum is kept exactly.
+	 */
+	StripedHistogram(int subBits, int maxExponent) {
+		this.subBits = subBits;
+		this.maxExponent = maxExponent;
+		buckets = buckets(subBits, maxExponent);
+		count = buckets;
+		sum = buckets + 1;
+		max = buckets + 2;
+		stride = (buckets + 3 + Striping.PAD - 1) & ~(Striping.PAD - 1);
+		int s = Striping.STRIPES;
+		while(s > 1 && s * stride > MAX_CELLS) s >>= 1;
+		stripes = s;
+		cells = new AtomicLongArray(stripes * stride);
+	}
+
+	/** @return The number of buckets: values below 2^subBits have a bucket each, then
+	 * 2^subBits per power of 2. */
+	static int buckets(int subBits, int maxExponent) {
+		return (1 << subBits) + (maxExponent + 1 - subBits) * (1 << subBits);
+	}
+
+	/** @return The bucket for the given value, with one bucket per power of 2. */
+	public static int bucketFor(long value) {
+		return bucketFor(value, 0, DEFAULT_MAX_EXPONENT);
+	}
+
+	static int bucketFor(long value, int subBits, int maxExponent) {
+		int subBuckets = 1 << subBits;
+		if(value < subBuckets) return value <= 0 ? 0 : (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if(exponent > maxExponent) return buckets(subBits, maxExponent) - 1;
+		int shift = exponent - subBits;
+		// The top bit is implied by the exponent, the next subBits select the sub-bucket.
+		int sub = (int) (value >>> shift) & (subBuckets - 1);
+		return subBuckets + shift * subBuckets + sub;
+	}
+
+	/** @return The smallest value which goes in the given bucket. */
+	static long bucketLowerBound(int bucket, int subBits) {
+		int subBuckets = 1 << subBits;
+		if(bucket < subBuckets) return bucket;
+		int shift = (bucket - subBuckets) >> subBits;
+		int sub = (bucket - subBuckets) & (subBuckets - 1);
+		return ((long) (subBuckets + sub)) << shift;
+	}
+
+	/** @return The largest value which goes in the given bucket. */
+	static long bucketUpperBound(int bucket, int subBits, int buckets) {
+		if(bucket >= buckets - 1) return Long.MAX_VALUE;
+		return bucketLowerBound(bucket + 1, subBits) - 1;
+	}
+
+	/** Record a value. Negative values, e.g. from a clock going backwards, are counted as 0. */
+	public void report(long value) {
+		if(value < 0) value = 0;
+		int base = (Striping.index() & (stripes - 1)) * stride;
+		cells.getAndIncrement(base + bucketFor(value, subBits, maxExponent));
+		cells.getAndIncrement(base + count);
+		cells.getAndAdd(base + sum, value);
+		int m = base + max;
+		long old;
+		while(value > (old = cells.get(m))) {
+			if(cells.compareAndSet(m, old, value)) break;
+		}
+	}
+
+	/** @return A consistent-enough copy of the histogram. Concurrent reports may or may
+	 * not be included. */
+	public Snapshot snapshot() {
+		return read(false);
+	}
+
+	/** @return A copy of the histogram, which is then cleared. Each cell is read and zeroed
+	 * atomically, so every report is included in exactly one snapshot, though one made while
+	 * this is running may be split between two (e.g. counted in one and its bucket in the
+	 * next). */
+	public Snapshot snapshotAndReset() {
+		return read(true);
+	}
+
+	private Snapshot read(boolean reset) {
+		long[] b = new long[buckets];
+		long c = 0;
+		long s = 0;
+		long m = 0;
+		for(int stripe=0;stripe<stripes;stripe++) {
+			int base = stripe * stride;
+			for(int i=0;i<buckets;i++)
+				b[i] += get(base + i, reset);
+			c += get(base + count, reset);
+			s += get(base + sum, reset);
+			m = Math.max(m, get(base + max, reset));
+		}
+		return new Snapshot(b, c, s, m, subBits);
+	}
+
+	private long get(int index, boolean reset) {
+		if(!reset) return cells.get(index);
+		// Avoid dirtying the cache line if there is nothing to reset.
+		if(cells.get(index) == 0) return 0;
+		return cells.getAndSet(index, 0);
+	}
+
+	/** An immutable copy of a StripedHistogram. */
+	public static final class Snapshot {
+
+		private final long[] buckets;
+		private final long count;
+		private final long sum;
+		private final long max;
+		private final int subBits;
+
+		Snapshot(long[] buckets, long count, long sum, long max, int subBits) {
+			this.buckets = buckets;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+			this.subBits = subBits;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public long sum() {
+			return sum;
+		}
+
+		/** @return The largest value reported, or 0 if nothing has been reported. */
+		public long max() {
+			return max;
+		}
+
+		/** @return The mean, or 0 if nothing has been reported. */
+		public double mean() {
+			if(count == 0) return 0.0;
+			return ((double) sum) / count;
+		}
+
+		public long bucketCount(int bucket) {
+			return buckets[bucket];
+		}
+
+		/** @return The largest value which goes in the given bucket, with one bucket per
+		 * power of 2. */
+		public static long bucketUpperBound(int bucket) {
+			return StripedHistogram.bucketUpperBound(bucket, 0, BUCKETS);
+		}
+
+		/**
+		 * @param p Between 0.0 and 1.0.
+		 * @return An upper bound on the given percentile, accurate to within a factor of 2
+		 * (or 1/2^subBits) and never more than max(), or 0 if nothing has been reported.
+		 */
+		public long percentile(double p) {
+			long total = 0;
+			for(long b : buckets) total += b;
+			if(total == 0) return 0;
+			long target = (long) Math.ceil(p * total);
+			if(target < 1) target = 1;
+			long seen = 0;
+			for(int i=0;i<buckets.length;i++) {
+				seen += buckets[i];
+				if(seen >= target)
+					return Math.min(StripedHistogram.bucketUpperBound(i, subBits, buckets.length), max);
+			}
+			return max;
+		}
+
+	}
+
+}
@@ -0,0 +1,87 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The mean of all reports, like TrivialRunningAverage, but lock-free: reports go to a
+ * per-thread stripe and are only added up when the value is read. Suitable for statistics
+ * which are updated on every request and only read occasionally, e.g. success rates.
+ *
+ * The total and the count are updated separately, so a read concurrent with a report may
+ * see one without the other. That is fine for statistics.
+ */
+public final class StripedRunningMean implements RunningAverage, Cloneable {
+
+	private static final long serialVersionUID = 1L;
+	/** Number of reports for each stripe. */
+	private final AtomicLongArray reports;
+	/** Total of reports for each stripe, as Double.doubleToRawLongBits(). */
+	private final AtomicLongArray totals;
+
+	public StripedRunningMean() {
+		reports = new AtomicLongArray(Striping.STRIPES * Striping.PAD);
+		totals = new AtomicLongArray(Striping.STRIPES * Striping.PAD);
+	}
+
+	private StripedRunningMean(long count, double total) {
+		this();
+		reports.set(0, count);
+		totals.set(0, Double.doubleToRawLongBits(total));
+	}
+
+	@Override
+	public StripedRunningMean clone() {
+		return new StripedRunningMean(countReports(), totalValue());
+	}
+
+	@Override
+	public long countReports() {
+		long count = 0;
+		for(int i=0;i<Striping.STRIPES;i++)
+			count += reports.get(i * Striping.PAD);
+		return count;
+	}
+
+	public double totalValue() {
+		double total = 0.0;
+		for(int i=0;i<Striping.STRIPES;i++)
+			total += Double.longBitsToDouble(totals.get(i * Striping.PAD));
+		return total;
+	}
+
+	/** @return The mean, or NaN if there have been no reports. */
+	@Override
+	public double currentValue() {
+		return totalValue() / countReports();
+	}
+
+	@Override
+	public void report(double d) {
+		int i = Striping.index() * Striping.PAD;
+		while(true) {
+			long old = totals.get(i);
+			long updated = Double.doubleToRawLongBits(Double.longBitsToDouble(old) + d);
+			if(totals.compareAndSet(i, old, updated)) break;
+		}
+		reports.getAndIncrement(i);
+	}
+
+	@Override
+	public void report(long d) {
+		report((double)d);
+	}
+
+	@Override
+	public double valueIfReported(double r) {
+		return (totalValue() + r) / (countReports() + 1);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+": total="+totalValue()+" reports="+countReports();
+	}
+
+}
@@ -0,0 +1,44 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+/**
+ * Helpers for the striped statistics classes. Each thread reports to its own stripe (chosen
+ * by thread ID), so threads on different CPUs rarely contend for the same cache line, and
+ * the stripes are summed when the value is read.
+ */
+final class Striping {
+
+	private Striping() {
+		// Static only.
+	}
+
+	/** Number of longs between stripes in an AtomicLongArray, so that each stripe has its
+	 * own cache line. */
+	static final int PAD = 8;
+
+	/** Number of references between stripes in an AtomicReferenceArray. References may be
+	 * only 4 bytes. */
+	static final int REF_PAD = 16;
+
+	/** Default number of stripes: a power of 2, at least twice the number of CPUs, at most 64. */
+	static final int STRIPES;
+
+	static {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while(stripes < cpus * 2 && stripes < 64) stripes <<= 1;
+		STRIPES = stripes;
+	}
+
+	/** @return The stripe for the current thread, between 0 and STRIPES-1. */
+	static int index() {
+		long id = Thread.currentThread().getId();
+		// Thread IDs are sequential, mix them a bit.
+		int h = (int) (id ^ (id >>> 32));
+		h *= 0x9E3779B9;
+		return (h >>> 16) & (STRIPES - 1);
+	}
+
+}
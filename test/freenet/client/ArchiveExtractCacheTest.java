@@ -0,0 +1,248 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import com.db4o.ObjectContainer;
+
+import junit.framework.TestCase;
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+public class ArchiveExtractCacheTest extends TestCase {
+
+	private File dir;
+	private FreenetURI key;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("archiveextractcachetest", ".tmp");
+		dir.delete();
+		dir.mkdir();
+		key = ArchiveIndexTest.key();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	private ArchiveExtractCache open(long maxSize) throws IOException {
+		return open(maxSize, masterKey(1));
+	}
+
+	private ArchiveExtractCache open(long maxSize, byte[] masterKey) throws IOException {
+		return new ArchiveExtractCache(dir, maxSize, masterKey, new DummyRandomSource(1));
+	}
+
+	private static byte[] masterKey(int seed) {
+		byte[] masterKey = new byte[32];
+		new DummyRandomSource(seed).nextBytes(masterKey);
+		return masterKey;
+	}
+
+	private static Bucket bucket(int length, int seed) {
+		byte[] buf = new byte[length];
+		new DummyRandomSource(seed).nextBytes(buf);
+		return new ArrayBucket(buf);
+	}
+
+	private static void assertSameData(Bucket expected, Bucket actual) throws IOException {
+		assertNotNull(actual);
+		assertTrue(Arrays.equals(BucketTools.toByteArray(expected), BucketTools.toByteArray(actual)));
+	}
+
+	private File[] cacheFiles() {
+		return dir.listFiles(new java.io.FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return !f.getName().equals(ArchiveExtractCache.CHECK_FILENAME);
+			}
+		});
+	}
+
+	public void testSurvivesRestart() throws IOException {
+		ArchiveExtractCache cache = open(1024*1024);
+		Bucket a = bucket(1000, 1);
+		Bucket b = bucket(0, 2);
+		cache.put(key, "a.html", a);
+		cache.put(key, "b.html", b);
+		assertEquals(2, cache.countFiles());
+		assertEquals(1000 + 2 * ArchiveExtractCache.OVERHEAD, cache.getSize());
+		assertSameData(a, cache.get(key, "a.html", new ArrayBucketFactory()));
+		assertNull(cache.get(key, "c.html", new ArrayBucketFactory()));
+		assertEquals(1, cache.countHits());
+		assertEquals(1, cache.countMisses());
+		// Only CHKs.
+		FreenetURI ssk = new FreenetURI("SSK@GB3wuHmtxN2wLc7g4y1ZVydkK6sOT-DuOsUo-eHK35w,c63EzO7uBEN0piUbHPkMcJYW7i7cOvG42CM3YDduXDs,AQACAAE/site-1/a.html");
+		cache.put(ssk, "a.html", a);
+		assertEquals(2, cache.countFiles());
+		assertNull(cache.get(ssk, "a.html", new ArrayBucketFactory()));
+		// The names and the data are not visible on disk.
+		for(File f : cacheFiles()) {
+			assertFalse(f.getName().contains("html"));
+			if(f.length() < 1000) continue;
+			byte[] buf = new byte[1000];
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			raf.seek(48);
+			raf.readFully(buf);
+			raf.close();
+			assertFalse(Arrays.equals(buf, BucketTools.toByteArray(a)));
+		}
+
+		cache = open(1024*1024);
+		assertEquals(2, cache.countFiles());
+		assertSameData(a, cache.get(key, "a.html", new ArrayBucketFactory()));
+		assertSameData(b, cache.get(key, "b.html", new ArrayBucketFactory()));
+	}
+
+	public void testEviction() throws IOException {
+		int size = 1000 + ArchiveExtractCache.OVERHEAD;
+		ArchiveExtractCache cache = open(size * 3);
+		for(int i=0;i<3;i++)
+			cache.put(key, "file"+i, bucket(1000, i));
+		// Use file0, so file1 is the least recently used.
+		assertNotNull(cache.get(key, "file0", new ArrayBucketFactory()));
+		cache.put(key, "file3", bucket(1000, 3));
+		assertEquals(3, cache.countFiles());
+		assertEquals(size * 3, cache.getSize());
+		assertNull(cache.get(key, "file1", new ArrayBucketFactory()));
+		assertNotNull(cache.get(key, "file0", new ArrayBucketFactory()));
+		assertEquals(3, cacheFiles().length);
+		// Too big to cache at all.
+		cache.put(key, "big", bucket(size * 3, 4));
+		assertNull(cache.get(key, "big", new ArrayBucketFactory()));
+		cache.setMaxSize(0);
+		assertEquals(0, cache.countFiles());
+		assertEquals(0, cacheFiles().length);
+	}
+
+	public void testCorruptFile() throws IOException {
+		ArchiveExtractCache cache = open(1024*1024);
+		cache.put(key, "a.html", bucket(1000, 1));
+		File f = cacheFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.seek(500);
+		int b = raf.read();
+		raf.seek(500);
+		raf.write(b ^ 1);
+		raf.close();
+		assertNull(cache.get(key, "a.html", new ArrayBucketFactory()));
+		assertEquals(0, cache.countFiles());
+		assertFalse(f.exists());
+	}
+
+	/** Nothing can be read without the client cache master key, which isn't on disk. */
+	public void testNeedsMasterKey() throws IOException {
+		ArchiveExtractCache cache = open(1024*1024);
+		cache.put(key, "a.html", bucket(1000, 1));
+		byte[] masterKey = masterKey(1);
+		for(File f : dir.listFiles()) {
+			byte[] buf = new byte[(int)f.length()];
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			raf.readFully(buf);
+			raf.close();
+			for(int i=0;i+masterKey.length<=buf.length;i++)
+				assertFalse(Arrays.equals(masterKey, Arrays.copyOfRange(buf, i, i+masterKey.length)));
+		}
+		cache = open(1024*1024, masterKey(2));
+		assertNull(cache.get(key, "a.html", new ArrayBucketFactory()));
+		assertEquals(0, cache.countFiles());
+		assertEquals(0, cacheFiles().length);
+		// An old key file is deleted.
+		File keyFile = new File(dir, "key");
+		FileUtil.writeTo(new ArrayBucket(masterKey).getInputStream(), keyFile);
+		cache = open(1024*1024, masterKey(2));
+		assertFalse(keyFile.exists());
+	}
+
+	static class Callback implements ArchiveExtractCallback {
+
+		Bucket data;
+		boolean notInArchive;
+
+		@Override
+		public void gotBucket(Bucket data, ObjectContainer container, ClientContext context) {
+			this.data = data;
+		}
+
+		@Override
+		public void notInArchive(ObjectContainer container, ClientContext context) {
+			notInArchive = true;
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ObjectContainer container, ClientContext context) {
+			fail();
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ObjectContainer container, ClientContext context) {
+			fail();
+		}
+
+		@Override
+		public void removeFrom(ObjectContainer container) {
+			// Not persistent.
+		}
+
+	}
+
+	/** Extract a file from a container, then the others on demand, then again after a
+	 * restart without the container. */
+	public void testArchiveManager() throws Exception {
+		LinkedHashMap<String, byte[]> files = ArchiveIndexTest.files(1);
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1000, new ArrayBucketFactory(), open(1024*1024));
+		assertNull(manager.getCached(key, "index.html"));
+		ArchiveHandler handler = manager.makeHandler(key, ARCHIVE_TYPE.TAR, null, false, false);
+		Callback callback = new Callback();
+		handler.extractToCache(ArchiveIndexTest.makeTar(files), new ArchiveContext(1024*1024, 4), "index.html", callback, manager, null, null);
+		assertTrue(Arrays.equals(files.get("index.html"), BucketTools.toByteArray(callback.data)));
+		// The requested file and the generated metadata.
+		assertEquals(2, manager.getExtractCache().countFiles());
+		for(String name : files.keySet())
+			assertTrue(Arrays.equals(files.get(name), BucketTools.toByteArray(manager.getCached(key, name))));
+		assertEquals(files.size() + 1, manager.getExtractCache().countFiles());
+		assertNull(manager.getCached(key, "nonexistent"));
+		Metadata metadata = Metadata.construct(BucketTools.toByteArray(manager.getCached(key, ".metadata")));
+		assertTrue(metadata.isSimpleManifest());
+
+		callback = new Callback();
+		handler.extractToCache(ArchiveIndexTest.makeTar(files), new ArchiveContext(1024*1024, 4), "nonexistent", callback, manager, null, null);
+		assertTrue(callback.notInArchive);
+
+		manager = new ArchiveManager(10, 1024*1024, 1024*1024, 1000, new ArrayBucketFactory(), open(1024*1024));
+		for(String name : files.keySet())
+			assertTrue(Arrays.equals(files.get(name), BucketTools.toByteArray(manager.getCached(key, name))));
+		assertNotNull(manager.getCached(key, ".metadata"));
+	}
+
+	/** Files too big to cache are passed to the callback but not kept. */
+	public void testTooBig() throws Exception {
+		LinkedHashMap<String, byte[]> files = ArchiveIndexTest.files(2);
+		ArchiveManager manager = new ArchiveManager(10, 1024*1024, 10000, 1000, new ArrayBucketFactory(), open(1024*1024));
+		ArchiveHandler handler = manager.makeHandler(key, ARCHIVE_TYPE.ZIP, null, false, false);
+		Callback callback = new Callback();
+		handler.extractToCache(ArchiveIndexTest.makeZip(files), new ArchiveContext(1024*1024, 4), "images/random.bin", callback, manager, null, null);
+		assertTrue(Arrays.equals(files.get("images/random.bin"), BucketTools.toByteArray(callback.data)));
+		assertNull(manager.getCached(key, "images/random.bin"));
+		assertTrue(Arrays.equals(files.get("empty.txt"), BucketTools.toByteArray(manager.getCached(key, "empty.txt"))));
+		// Not in the generated metadata.
+		Metadata metadata = Metadata.construct(BucketTools.toByteArray(manager.getCached(key, ".metadata")));
+		assertNull(metadata.getDocument("images"));
+	}
+
+}
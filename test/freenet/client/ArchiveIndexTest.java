@@ -0,0 +1,178 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import junit.framework.TestCase;
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.math.MersenneTwister;
+
+public class ArchiveIndexTest extends TestCase {
+
+	static FreenetURI key() throws Exception {
+		return new FreenetURI("CHK@7H66rhYmxIFgMyw5Dl11JazXGHPhp7dSN7WMa1pbtEo,jQHUQUPTkeRcjmjgrc7t5cDRdDkK3uKkrSzuw5CO9uk,AAICAAI/site.zip");
+	}
+
+	/** Some files: compressible, random, empty, and one with a long name. */
+	static LinkedHashMap<String, byte[]> files(int seed) {
+		MersenneTwister random = new MersenneTwister(seed);
+		LinkedHashMap<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<1000;i++) sb.append("<p>Hello world ").append(i).append("</p>\n");
+		files.put("index.html", sb.toString().getBytes());
+		byte[] buf = new byte[70000];
+		random.nextBytes(buf);
+		files.put("images/random.bin", buf);
+		files.put("empty.txt", new byte[0]);
+		StringBuilder name = new StringBuilder("deep/");
+		for(int i=0;i<30;i++) name.append("directory").append(i).append('/');
+		buf = new byte[1000];
+		random.nextBytes(buf);
+		files.put(name.append("file.txt").toString(), buf);
+		return files;
+	}
+
+	static Bucket makeZip(Map<String, byte[]> files) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(baos);
+		zos.putNextEntry(new ZipEntry("images/"));
+		zos.closeEntry();
+		boolean stored = false;
+		for(Map.Entry<String, byte[]> file : files.entrySet()) {
+			ZipEntry entry = new ZipEntry(file.getKey());
+			// Alternate stored and deflated.
+			if(stored) {
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(file.getValue().length);
+				CRC32 crc = new CRC32();
+				crc.update(file.getValue());
+				entry.setCrc(crc.getValue());
+			}
+			stored = !stored;
+			zos.putNextEntry(entry);
+			zos.write(file.getValue());
+			zos.closeEntry();
+		}
+		zos.setComment("A comment at the end");
+		zos.close();
+		return new ArrayBucket(baos.toByteArray());
+	}
+
+	static Bucket makeTar(Map<String, byte[]> files) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tos = new TarArchiveOutputStream(baos);
+		tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+		tos.putArchiveEntry(new TarArchiveEntry("images/"));
+		tos.closeArchiveEntry();
+		for(Map.Entry<String, byte[]> file : files.entrySet()) {
+			TarArchiveEntry entry = new TarArchiveEntry(file.getKey());
+			entry.setSize(file.getValue().length);
+			tos.putArchiveEntry(entry);
+			tos.write(file.getValue());
+			tos.closeArchiveEntry();
+		}
+		tos.close();
+		return new ArrayBucket(baos.toByteArray());
+	}
+
+	private void checkIndex(ArchiveIndex index, Map<String, byte[]> files) throws Exception {
+		assertNotNull(index);
+		assertEquals(files.keySet(), index.getEntries().keySet());
+		for(Map.Entry<String, byte[]> file : files.entrySet()) {
+			ArchiveIndex.Entry entry = index.get(file.getKey());
+			assertEquals(file.getValue().length, entry.size);
+			Bucket data = index.extract(entry, new ArrayBucketFactory());
+			assertTrue(file.getKey(), Arrays.equals(file.getValue(), BucketTools.toByteArray(data)));
+		}
+		assertNull(index.get("images/"));
+		assertNull(index.get("nonexistent"));
+	}
+
+	public void testZip() throws Exception {
+		LinkedHashMap<String, byte[]> files = files(1);
+		checkIndex(ArchiveIndex.create(key(), ARCHIVE_TYPE.ZIP, makeZip(files), 100), files);
+	}
+
+	public void testTar() throws Exception {
+		LinkedHashMap<String, byte[]> files = files(2);
+		checkIndex(ArchiveIndex.create(key(), ARCHIVE_TYPE.TAR, makeTar(files), 100), files);
+	}
+
+	public void testTooManyFiles() throws Exception {
+		LinkedHashMap<String, byte[]> files = files(3);
+		assertNull(ArchiveIndex.create(key(), ARCHIVE_TYPE.ZIP, makeZip(files), 3));
+		assertNull(ArchiveIndex.create(key(), ARCHIVE_TYPE.TAR, makeTar(files), 3));
+	}
+
+	public void testCorruptZip() throws Exception {
+		LinkedHashMap<String, byte[]> files = files(4);
+		byte[] zip = BucketTools.toByteArray(makeZip(files));
+		try {
+			ArchiveIndex.create(key(), ARCHIVE_TYPE.ZIP, new ArrayBucket(Arrays.copyOf(zip, zip.length - 30)), 100);
+			fail();
+		} catch (ArchiveFailureException e) {
+			// Expected.
+		}
+		// Corrupt the data of index.html, which is deflated.
+		ArchiveIndex index = ArchiveIndex.create(key(), ARCHIVE_TYPE.ZIP, new ArrayBucket(zip), 100);
+		ArchiveIndex.Entry entry = index.get("index.html");
+		zip[(int)entry.offset + 30 + entry.name.length() + 100] ^= 1;
+		index = ArchiveIndex.create(key(), ARCHIVE_TYPE.ZIP, new ArrayBucket(zip), 100);
+		try {
+			index.extract(index.get("index.html"), new ArrayBucketFactory());
+			fail();
+		} catch (ArchiveFailureException e) {
+			// Expected.
+		} catch (IOException e) {
+			// Also fine, from the Inflater.
+		}
+	}
+
+	/** Several threads extracting from the same archive at once. */
+	public void testConcurrentExtract() throws Exception {
+		final LinkedHashMap<String, byte[]> files = files(5);
+		final ArchiveIndex index = ArchiveIndex.create(key(), ARCHIVE_TYPE.ZIP, makeZip(files), 100);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		Thread[] threads = new Thread[8];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int j=0;j<20;j++) {
+							for(Map.Entry<String, byte[]> file : files.entrySet()) {
+								Bucket data = index.extract(index.get(file.getKey()), new ArrayBucketFactory());
+								if(!Arrays.equals(file.getValue(), BucketTools.toByteArray(data)))
+									failure.compareAndSet(null, "Wrong data for "+file.getKey());
+							}
+						}
+					} catch (Exception e) {
+						failure.compareAndSet(null, e.toString());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+		assertNull(failure.get(), failure.get());
+	}
+
+}
@@ -0,0 +1,229 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.util.Buffer;
+
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+
+public class FECCodecTest extends TestCase {
+
+	/**
+	 * Stands in for the onion code: works on each byte position independently, like the
+	 * real code, and fills in the missing data blocks from all the packets in the stripe.
+	 * Scrambles the index array, as the real code does. Fails if two threads use it at once.
+	 */
+	private static class ColumnCode extends FECCode {
+
+		private final int rounds;
+		private final AtomicBoolean inUse = new AtomicBoolean();
+
+		ColumnCode(int k, int n, int rounds) {
+			super(k, n);
+			this.rounds = rounds;
+		}
+
+		@Override
+		public void decode(Buffer[] pkts, int[] index) {
+			assertTrue("Used by two threads at once", inUse.compareAndSet(false, true));
+			try {
+				decodeColumns(pkts, index);
+			} finally {
+				inUse.set(false);
+			}
+		}
+
+		private void decodeColumns(Buffer[] pkts, int[] index) {
+			int length = pkts[0].len;
+			for(Buffer b : pkts)
+				assertEquals(length, b.len);
+			for(int j=0;j<length;j++) {
+				for(int i=0;i<k;i++) {
+					if(index[i] == i) continue;
+					int value = 0;
+					for(int r=0;r<rounds;r++)
+						for(int m=0;m<k;m++)
+							value = value * 31 + pkts[m].b[pkts[m].off + j] * (index[m] + 1);
+					pkts[i].b[pkts[i].off + j] = (byte) value;
+				}
+			}
+			for(int i=0;i<k;i++)
+				index[i] = i;
+		}
+
+		@Override
+		public void decode(byte[][] pkts, int[] pktsOff, int[] index, int packetLength, boolean inOrder) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void encode(byte[][] src, int[] srcOff, byte[][] repair, int[] repairOff, int[] index, int packetLength) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	private static class TestCodec extends FECCodec {
+
+		private final int rounds;
+		int created;
+
+		TestCodec(int k, int n, int rounds) {
+			super(k, n);
+			this.rounds = rounds;
+			fec = newFEC();
+		}
+
+		@Override
+		protected synchronized FECCode newFEC() {
+			created++;
+			return new ColumnCode(k, n, rounds);
+		}
+
+		@Override
+		protected void loadFEC() {
+			// Already loaded.
+		}
+
+		@Override
+		public int countCheckBlocks() {
+			return n - k;
+		}
+
+		@Override
+		public short getAlgorithm() {
+			return Metadata.SPLITFILE_ONION_STANDARD;
+		}
+
+	}
+
+	/** Blocks 0, 2, 4 ... are missing, replaced with check blocks. */
+	private static int[] makeIndexes(int k) {
+		int[] indexes = new int[k];
+		for(int i=0;i<k;i++)
+			indexes[i] = (i % 2 == 0) ? k + i : i;
+		return indexes;
+	}
+
+	private static byte[] makeStripe(int k, int stripeSize) {
+		byte[] buffer = new byte[k * stripeSize];
+		new Random(k + stripeSize).nextBytes(buffer);
+		return buffer;
+	}
+
+	public void testSlicedSameAsWhole() throws IOException {
+		Executor executor = new PooledExecutor();
+		for(int stripeSize : new int[] { 32768, 32766, 10000, FECCodec.MIN_SLICE_SIZE, 100 }) {
+			int k = 16;
+			TestCodec codec = new TestCodec(k, k * 2, 1);
+			int[] indexes = makeIndexes(k);
+			int[] indexesCopy = indexes.clone();
+			byte[] expected = makeStripe(k, stripeSize);
+			codec.decodeStripe(expected, stripeSize, indexes, null, 1);
+			for(int threads : new int[] { 2, 3, 8, 100 }) {
+				byte[] buffer = makeStripe(k, stripeSize);
+				codec.decodeStripe(buffer, stripeSize, indexes, executor, threads);
+				assertTrue(Arrays.equals(expected, buffer));
+			}
+			// The indexes are reused for the next stripe, so must not be changed.
+			assertTrue(Arrays.equals(indexesCopy, indexes));
+		}
+	}
+
+	/** Each helper thread has its own code, and they are reused for later stripes. */
+	public void testCodePerThread() throws IOException {
+		Executor executor = new PooledExecutor();
+		int k = 16;
+		int stripeSize = 65536;
+		TestCodec codec = new TestCodec(k, k * 2, 4);
+		byte[] expected = makeStripe(k, stripeSize);
+		codec.decodeStripe(expected, stripeSize, makeIndexes(k), null, 1);
+		for(int i=0;i<10;i++) {
+			byte[] buffer = makeStripe(k, stripeSize);
+			codec.decodeStripe(buffer, stripeSize, makeIndexes(k), executor, 8);
+			assertTrue(Arrays.equals(expected, buffer));
+		}
+		// One for the decoding thread, at most one per helper.
+		assertTrue(codec.created <= 8);
+	}
+
+	/** Can't split without a code for each helper. */
+	public void testNoSpareCode() throws IOException {
+		int k = 16;
+		int stripeSize = 32768;
+		TestCodec codec = new TestCodec(k, k * 2, 1) {
+			@Override
+			protected FECCode newFEC() {
+				// Only the one the constructor makes.
+				return fec == null ? super.newFEC() : null;
+			}
+		};
+		byte[] expected = makeStripe(k, stripeSize);
+		codec.decodeStripe(expected, stripeSize, makeIndexes(k), null, 1);
+		byte[] buffer = makeStripe(k, stripeSize);
+		Executor executor = new PooledExecutor() {
+			@Override
+			public void execute(Runnable job, String jobName) {
+				fail("Should not start a helper");
+			}
+		};
+		codec.decodeStripe(buffer, stripeSize, makeIndexes(k), executor, 4);
+		assertTrue(Arrays.equals(expected, buffer));
+	}
+
+	public void testFailure() {
+		FECCodec codec = new TestCodec(16, 32, 1) {
+			@Override
+			protected FECCode newFEC() {
+				return new ColumnCode(k, n, 1) {
+					@Override
+					public void decode(Buffer[] pkts, int[] index) {
+						if(pkts[0].off > 0) throw new IllegalStateException();
+					}
+				};
+			}
+		};
+		try {
+			codec.decodeStripe(makeStripe(16, 32768), 32768, makeIndexes(16), new PooledExecutor(), 4);
+			fail("Should have thrown");
+		} catch (IllegalStateException e) {
+			// Expected.
+		} catch (IOException e) {
+			fail("Should have rethrown the original exception");
+		}
+	}
+
+	/** Decode time for a 128-block segment with 1 thread and with one per core. The fake
+	 * code costs about as much per byte as the real one. Run with -Dtest.benchmark=true */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		int k = 128;
+		int stripeSize = 32768;
+		int cores = Runtime.getRuntime().availableProcessors();
+		TestCodec codec = new TestCodec(k, k * 2, 1);
+		Executor executor = new PooledExecutor();
+		int[] indexes = makeIndexes(k);
+		byte[] buffer = makeStripe(k, stripeSize);
+		for(int run=0;run<5;run++) {
+			long start = System.nanoTime();
+			codec.decodeStripe(buffer, stripeSize, indexes, null, 1);
+			long single = System.nanoTime() - start;
+			start = System.nanoTime();
+			codec.decodeStripe(buffer, stripeSize, indexes, executor, cores);
+			long parallel = System.nanoTime() - start;
+			System.out.println("Segment decode: 1 thread "+(single / 1000000)+"ms, "+cores+" threads "+(parallel / 1000000)+"ms");
+		}
+	}
+
+}
@@ -0,0 +1,259 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.List;
+
+import com.db4o.ObjectContainer;
+
+import junit.framework.TestCase;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.ClientKey;
+import freenet.node.KeysFetchingLocally;
+import freenet.node.LowLevelPutException;
+import freenet.node.RequestClient;
+import freenet.node.RequestScheduler;
+import freenet.node.RequestStarter;
+import freenet.node.SendableInsert;
+import freenet.node.SendableRequestItem;
+import freenet.node.SendableRequestSender;
+
+/** Selection of transient requests through ClientRequestSelector's fair queue. */
+public class ClientRequestSelectorTest extends TestCase {
+
+	private static final short PRIO = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+
+	private ClientRequestSelector selector;
+	private ClientRequestSchedulerNonPersistent schedTransient;
+	private DummyRandomSource random;
+
+	@Override
+	protected void setUp() {
+		random = new DummyRandomSource(1);
+		selector = new ClientRequestSelector(true, null);
+		schedTransient = new ClientRequestSchedulerNonPersistent(null, true, false, false, random);
+	}
+
+	private TestInsert choose(long now) {
+		return (TestInsert) selector.chooseTransient(0, random, null, schedTransient, RequestStarter.MINIMUM_PRIORITY_CLASS, null, now);
+	}
+
+	private TestInsert add(RequestClient client, short prio) {
+		TestInsert req = new TestInsert(client, prio);
+		schedTransient.addToQueue(req);
+		return req;
+	}
+
+	public void testFairBetweenClients() {
+		RequestClient a = new Client();
+		RequestClient b = new Client();
+		TestInsert a0 = add(a, PRIO);
+		TestInsert a1 = add(a, PRIO);
+		TestInsert a2 = add(a, PRIO);
+		TestInsert b0 = add(b, PRIO);
+		// Clients take turns, and so do each client's requests. Chosen requests stay queued.
+		TestInsert[] expected = new TestInsert[] { a0, b0, a1, b0, a2, b0, a0 };
+		for(TestInsert req : expected)
+			assertSame(req, choose(0));
+	}
+
+	public void testPriority() {
+		RequestClient a = new Client();
+		TestInsert low = add(a, RequestStarter.PREFETCH_PRIORITY_CLASS);
+		TestInsert high = add(a, RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+		assertSame(high, choose(0));
+		assertSame(high, choose(0));
+		assertNull(selector.chooseTransient(0, random, null, schedTransient, RequestStarter.MAXIMUM_PRIORITY_CLASS, null, 0));
+		// A changed priority is picked up when it is queued again.
+		high.prio = RequestStarter.MINIMUM_PRIORITY_CLASS;
+		assertSame(high, choose(0));
+		assertSame(low, choose(0));
+		assertSame(low, choose(0));
+	}
+
+	/** A request in cooldown isn't looked at again until it wakes up. */
+	public void testCooldown() {
+		RequestClient a = new Client();
+		TestInsert ready = add(a, PRIO);
+		TestInsert cooling = add(a, PRIO);
+		cooling.cooldown = 1000;
+		assertSame(ready, choose(0));
+		assertSame(ready, choose(0));
+		assertEquals(1, cooling.cooldownChecks);
+		for(int i=0;i<100;i++)
+			assertSame(ready, choose(i));
+		assertEquals(1, cooling.cooldownChecks);
+		cooling.cooldown = 0;
+		// Woken up behind the request which was already ready.
+		assertSame(ready, choose(1000));
+		assertSame(cooling, choose(1000));
+		assertEquals(2, cooling.cooldownChecks);
+	}
+
+	/** A request waiting for something other than time is woken up by clearCooldown(). */
+	public void testClearCooldown() {
+		RequestClient a = new Client();
+		TestInsert waiting = add(a, PRIO);
+		waiting.cooldown = Long.MAX_VALUE;
+		assertNull(choose(0));
+		assertNull(choose(1));
+		assertEquals(1, waiting.cooldownChecks);
+		waiting.cooldown = 0;
+		schedTransient.clearCooldown(waiting);
+		assertSame(waiting, choose(2));
+		// It is checked again eventually even if nothing wakes it.
+		waiting.cooldown = Long.MAX_VALUE;
+		assertNull(choose(3));
+		waiting.cooldown = 0;
+		assertNull(choose(4));
+		assertSame(waiting, choose(3 + ClientRequestSelector.TRANSIENT_COOLDOWN_RECHECK));
+	}
+
+	public void testCancelledAndRemoved() {
+		RequestClient a = new Client();
+		TestInsert cancelled = add(a, PRIO);
+		TestInsert removed = add(a, PRIO);
+		TestInsert other = add(a, PRIO);
+		cancelled.cancelled = true;
+		schedTransient.removeFromAllRequestsByClientRequest(removed, null, true, null);
+		assertSame(other, choose(0));
+		assertSame(other, choose(0));
+		assertFalse(schedTransient.queue.contains(cancelled));
+		assertEquals(1, schedTransient.queue.size());
+	}
+
+	private static class Client implements RequestClient {
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public boolean realTimeFlag() {
+			return false;
+		}
+
+		@Override
+		public void removeFrom(ObjectContainer container) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/** A transient insert which only knows its client, priority and cooldown. */
+	private static class TestInsert extends SendableInsert {
+
+		final RequestClient client;
+		short prio;
+		long cooldown;
+		boolean cancelled;
+		int cooldownChecks;
+
+		TestInsert(RequestClient client, short prio) {
+			super(false, false);
+			this.client = client;
+			this.prio = prio;
+		}
+
+		@Override
+		public long getCooldownTime(ObjectContainer container, ClientContext context, long now) {
+			cooldownChecks++;
+			if(cancelled) return -1;
+			return cooldown;
+		}
+
+		@Override
+		public short getPriorityClass(ObjectContainer container) {
+			return prio;
+		}
+
+		@Override
+		public RequestClient getClient(ObjectContainer container) {
+			return client;
+		}
+
+		@Override
+		public boolean isCancelled(ObjectContainer container) {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isEmpty(ObjectContainer container) {
+			return false;
+		}
+
+		@Override
+		public ClientRequester getClientRequest() {
+			return null;
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+		@Override
+		public SendableRequestItem chooseKey(KeysFetchingLocally keys, ObjectContainer container, ClientContext context) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long countAllKeys(ObjectContainer container, ClientContext context) {
+			return 1;
+		}
+
+		@Override
+		public long countSendableKeys(ObjectContainer container, ClientContext context) {
+			return 1;
+		}
+
+		@Override
+		public SendableRequestSender getSender(ObjectContainer container, ClientContext context) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<PersistentChosenBlock> makeBlocks(PersistentChosenRequest request, RequestScheduler sched, KeysFetchingLocally keys, ObjectContainer container, ClientContext context) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void removeFrom(ObjectContainer container, ClientContext context) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void onSuccess(Object keyNum, ObjectContainer container, ClientContext context) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void onFailure(LowLevelPutException e, Object keyNum, ObjectContainer container, ClientContext context) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean canWriteClientCache(ObjectContainer container) {
+			return false;
+		}
+
+		@Override
+		public boolean localRequestOnly(ObjectContainer container) {
+			return false;
+		}
+
+		@Override
+		public boolean forkOnCacheable(ObjectContainer container) {
+			return false;
+		}
+
+		@Override
+		public void onEncode(SendableRequestItem token, ClientKey key, ObjectContainer container, ClientContext context) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
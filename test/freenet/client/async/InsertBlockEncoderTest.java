@@ -0,0 +1,145 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.io.ArrayBucket;
+import freenet.support.math.MersenneTwister;
+
+public class InsertBlockEncoderTest extends TestCase {
+
+	private static byte[][] makeData(int count, long seed) {
+		MersenneTwister random = new MersenneTwister(seed);
+		byte[][] data = new byte[count][];
+		for(int i=0;i<count;i++) {
+			data[i] = new byte[CHKBlock.DATA_LENGTH];
+			random.nextBytes(data[i]);
+		}
+		return data;
+	}
+
+	public void testEncodeInline() throws CHKEncodeException, IOException {
+		byte[][] data = makeData(4, 1);
+		for(byte cryptoAlgorithm : new byte[] { Key.ALGO_AES_PCFB_256_SHA256, Key.ALGO_AES_CTR_256_SHA256 }) {
+			for(byte[] buf : data) {
+				InsertBlockEncoder.Block block = new InsertBlockEncoder.Block(new ArrayBucket(buf), null, cryptoAlgorithm);
+				assertFalse(block.isStarted());
+				ClientCHKBlock encoded = block.get();
+				assertTrue(block.isStarted());
+				assertSame(encoded, block.get());
+				ClientCHKBlock expected = ClientCHKBlock.encodeSplitfileBlock(buf.clone(), null, cryptoAlgorithm);
+				assertEquals(expected.getClientKey(), encoded.getClientKey());
+			}
+		}
+	}
+
+	public void testEncodeInAdvance() throws CHKEncodeException, IOException, InterruptedException {
+		byte[][] data = makeData(40, 2);
+		InsertBlockEncoder encoder = new InsertBlockEncoder(new PooledExecutor(), 100);
+		InsertBlockEncoder.Block[] blocks = new InsertBlockEncoder.Block[data.length];
+		for(int i=0;i<data.length;i++) {
+			blocks[i] = new InsertBlockEncoder.Block(new ArrayBucket(data[i]), null, Key.ALGO_AES_CTR_256_SHA256);
+			assertTrue(encoder.offer(blocks[i]));
+		}
+		// Once encoded it won't be queued again.
+		long deadline = System.currentTimeMillis() + 30*1000;
+		while(encoder.countEncodedInAdvance() < data.length && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(data.length, encoder.countEncodedInAdvance());
+		assertEquals(0, encoder.countQueued());
+		assertFalse(encoder.offer(blocks[0]));
+		for(int i=0;i<data.length;i++) {
+			ClientCHKBlock expected = ClientCHKBlock.encodeSplitfileBlock(data[i].clone(), null, Key.ALGO_AES_CTR_256_SHA256);
+			assertEquals(expected.getClientKey(), blocks[i].get().getClientKey());
+		}
+	}
+
+	public void testBounded() throws CHKEncodeException, IOException {
+		byte[][] data = makeData(5, 3);
+		// Never runs anything, so nothing is encoded in advance.
+		final ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+		Executor executor = new PooledExecutor() {
+			@Override
+			public void execute(Runnable job, String jobName) {
+				jobs.add(job);
+			}
+		};
+		InsertBlockEncoder encoder = new InsertBlockEncoder(executor, 3);
+		InsertBlockEncoder.Block[] blocks = new InsertBlockEncoder.Block[data.length];
+		for(int i=0;i<data.length;i++) {
+			blocks[i] = new InsertBlockEncoder.Block(new ArrayBucket(data[i]), null, Key.ALGO_AES_CTR_256_SHA256);
+			assertEquals(i < 3, encoder.offer(blocks[i]));
+		}
+		assertEquals(3, encoder.countQueued());
+		assertFalse(jobs.isEmpty());
+		// The sender encodes it itself, and the worker skips it.
+		blocks[0].get();
+		for(Runnable job : jobs) job.run();
+		assertEquals(2, encoder.countEncodedInAdvance());
+		assertEquals(0, encoder.countQueued());
+		assertTrue(encoder.offer(blocks[3]));
+		// A zero-length queue never encodes in advance.
+		assertFalse(new InsertBlockEncoder(executor, 0).offer(blocks[4]));
+	}
+
+	/** Encode a 1GB insert's worth of blocks, segment by segment, on the sender threads as
+	 * before, and with the blocks offered to the encoder in advance. The network is not
+	 * simulated, so this measures only the encode stage of the pipeline.
+	 * Run with -Dtest.benchmark=true */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int segmentSize = 256;
+		final int segments = (1024*1024*1024) / CHKBlock.DATA_LENGTH / segmentSize;
+		final int senders = 8;
+		byte[][] data = makeData(segmentSize, 4);
+		PooledExecutor executor = new PooledExecutor();
+		for(int run=0;run<3;run++) {
+			for(boolean pipelined : new boolean[] { false, true }) {
+				InsertBlockEncoder encoder = new InsertBlockEncoder(executor, pipelined ? InsertBlockEncoder.DEFAULT_MAX_QUEUED : 0);
+				long start = System.nanoTime();
+				for(int seg=0;seg<segments;seg++) {
+					final InsertBlockEncoder.Block[] blocks = new InsertBlockEncoder.Block[segmentSize];
+					for(int i=0;i<segmentSize;i++)
+						blocks[i] = new InsertBlockEncoder.Block(new ArrayBucket(data[i]), null, Key.ALGO_AES_CTR_256_SHA256);
+					for(InsertBlockEncoder.Block block : blocks)
+						if(!encoder.offer(block)) break;
+					final AtomicInteger next = new AtomicInteger();
+					Thread[] threads = new Thread[senders];
+					for(int i=0;i<senders;i++) {
+						threads[i] = new Thread() {
+							@Override
+							public void run() {
+								int x;
+								while((x = next.getAndIncrement()) < blocks.length) {
+									try {
+										blocks[x].get();
+									} catch (Exception e) {
+										throw new Error(e);
+									}
+								}
+							}
+						};
+						threads[i].start();
+					}
+					for(Thread t : threads) t.join();
+				}
+				long time = System.nanoTime() - start;
+				System.out.println((pipelined ? "Pipelined" : "Inline")+": "+(segments*segmentSize)+" blocks in "+(time/1000/1000)+"ms = "+
+						(1024.0 * 1000 * 1000 * 1000 / time)+"MB/sec, "+encoder.countEncodedInAdvance()+" encoded in advance");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.util.Buffer;
+
+import freenet.client.FECCodec;
+import freenet.client.Metadata;
+import freenet.client.SplitfileBlock;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.ByteArrayRandomAccessThing;
+import freenet.support.io.FileChannelRandomAccessThing;
+
+public class SplitFileFetcherStorageTest extends TestCase {
+
+	static final int BLOCK = SplitFileFetcherStorage.BLOCK_SIZE;
+
+	/**
+	 * Check block k+i is a copy of data block i, so a missing data block can be recovered if
+	 * we have its check block. Stands in for the onion code, which can't be loaded here.
+	 */
+	private static class RepetitionCode extends FECCode {
+
+		RepetitionCode(int k) {
+			super(k, 2 * k);
+		}
+
+		@Override
+		public void decode(Buffer[] pkts, int[] index) {
+			byte[][] decoded = new byte[k][];
+			for(int m=0;m<k;m++) {
+				int block = index[m] < k ? index[m] : index[m] - k;
+				decoded[block] = Arrays.copyOfRange(pkts[m].b, pkts[m].off, pkts[m].off + pkts[m].len);
+			}
+			for(int i=0;i<k;i++) {
+				System.arraycopy(decoded[i], 0, pkts[i].b, pkts[i].off, pkts[i].len);
+				index[i] = i;
+			}
+		}
+
+		@Override
+		public void decode(byte[][] pkts, int[] pktsOff, int[] index, int packetLength, boolean inOrder) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void encode(byte[][] src, int[] srcOff, byte[][] repair, int[] repairOff, int[] index, int packetLength) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	private static class RepetitionCodec extends FECCodec {
+
+		RepetitionCodec(int k) {
+			super(k, 2 * k);
+			fec = new RepetitionCode(k);
+		}
+
+		@Override
+		protected void loadFEC() {
+			// Already loaded.
+		}
+
+		@Override
+		public int countCheckBlocks() {
+			return n - k;
+		}
+
+		@Override
+		public short getAlgorithm() {
+			return Metadata.SPLITFILE_ONION_STANDARD;
+		}
+
+		void decode(SplitfileBlock[] dataBlocks, SplitfileBlock[] checkBlocks, BucketFactory bf) throws IOException {
+			realDecode(dataBlocks, checkBlocks, BLOCK, bf);
+		}
+
+	}
+
+	public void testLayout() throws IOException {
+		int[] dataBlocks = new int[] { 4, 3 };
+		int[] checkBlocks = new int[] { 5, 4 };
+		int crossCheckBlocks = 1;
+		long length = SplitFileFetcherStorage.storageLength(dataBlocks, checkBlocks);
+		assertEquals(16L * BLOCK, length);
+		byte[] buf = new byte[(int) length];
+		SplitFileFetcherStorage storage = new SplitFileFetcherStorage(new ByteArrayRandomAccessThing(buf), dataBlocks, checkBlocks, crossCheckBlocks);
+		// Real data blocks first, in order.
+		assertEquals(5L * BLOCK, storage.getDataLength());
+		assertEquals(0, storage.blockOffset(0, 0));
+		assertEquals(2L * BLOCK, storage.blockOffset(0, 2));
+		assertEquals(3L * BLOCK, storage.blockOffset(1, 0));
+		assertEquals(4L * BLOCK, storage.blockOffset(1, 1));
+		// Then cross-check and check blocks.
+		assertEquals(5L * BLOCK, storage.blockOffset(0, 3));
+		assertEquals(10L * BLOCK, storage.blockOffset(0, 8));
+		assertEquals(11L * BLOCK, storage.blockOffset(1, 2));
+		assertEquals(15L * BLOCK, storage.blockOffset(1, 6));
+		try {
+			storage.blockOffset(1, 7);
+			fail("Block number out of range");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		// Every slot is distinct.
+		boolean[] used = new boolean[16];
+		for(int seg=0;seg<2;seg++) {
+			for(int i=0;i<dataBlocks[seg]+checkBlocks[seg];i++) {
+				int slot = (int) (storage.blockOffset(seg, i) / BLOCK);
+				assertFalse(used[slot]);
+				used[slot] = true;
+			}
+		}
+	}
+
+	public void testWriteData() throws IOException {
+		int[] dataBlocks = new int[] { 2, 2 };
+		int[] checkBlocks = new int[] { 1, 1 };
+		byte[] buf = new byte[(int) SplitFileFetcherStorage.storageLength(dataBlocks, checkBlocks)];
+		SplitFileFetcherStorage storage = new SplitFileFetcherStorage(new ByteArrayRandomAccessThing(buf), dataBlocks, checkBlocks, 0);
+		Random random = new Random(1);
+		byte[] expected = new byte[4 * BLOCK];
+		random.nextBytes(expected);
+		// Fetch blocks out of order.
+		int[][] order = new int[][] { { 1, 1 }, { 0, 1 }, { 1, 0 }, { 0, 0 } };
+		for(int[] block : order) {
+			Bucket bucket = storage.makeBlockBucket(block[0], block[1]);
+			OutputStream os = bucket.getOutputStream();
+			os.write(expected, (block[0] * 2 + block[1]) * BLOCK, BLOCK);
+			os.close();
+			assertTrue(storage.isInSlot(bucket, block[0], block[1]));
+			assertFalse(storage.isInSlot(bucket, block[0], 1 - block[1]));
+		}
+		// Check blocks don't get in the way.
+		Bucket check = storage.makeBlockBucket(0, 2);
+		OutputStream os = check.getOutputStream();
+		os.write(new byte[BLOCK]);
+		os.close();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		storage.writeDataTo(baos, expected.length - 100);
+		assertTrue(Arrays.equals(Arrays.copyOf(expected, expected.length - 100), baos.toByteArray()));
+	}
+
+	/**
+	 * The path a transient splitfile fetch takes with preallocated storage: each block 
+	 * fetched is decoded by the CHK code straight into its slot, as 
+	 * SplitFileFetcherSegment.extract() does, the missing data blocks are FEC decoded into
+	 * their slots, and then the file is written from the start of the storage in one pass.
+	 */
+	public void testFetchAndDecodeInPlace() throws Exception {
+		int k = 4;
+		int[] dataBlocks = new int[] { k };
+		int[] checkBlocks = new int[] { k };
+		File f = File.createTempFile("splitfilefetcherstoragetest", ".tmp");
+		FileChannelRandomAccessThing rat = new FileChannelRandomAccessThing(f, SplitFileFetcherStorage.storageLength(dataBlocks, checkBlocks), true);
+		try {
+			SplitFileFetcherStorage storage = new SplitFileFetcherStorage(rat, dataBlocks, checkBlocks, 0);
+			Random random = new Random(2);
+			int length = k * BLOCK - 100;
+			byte[] expected = new byte[length];
+			random.nextBytes(expected);
+			byte[] cryptoKey = new byte[32];
+			random.nextBytes(cryptoKey);
+			MinimalSplitfileBlock[] dataStatus = new MinimalSplitfileBlock[k];
+			MinimalSplitfileBlock[] checkStatus = new MinimalSplitfileBlock[k];
+			for(int i=0;i<k;i++) {
+				dataStatus[i] = new MinimalSplitfileBlock(i);
+				dataStatus[i].setStorage(storage, 0);
+				checkStatus[i] = new MinimalSplitfileBlock(k + i);
+				checkStatus[i].setStorage(storage, 0);
+			}
+			// Fetch data blocks 1 and 3, and the check blocks for 0 and 2.
+			for(int i=0;i<k;i++) {
+				byte[] data = Arrays.copyOfRange(expected, i * BLOCK, (i + 1) * BLOCK);
+				ClientCHKBlock block = ClientCHKBlock.encodeSplitfileBlock(data, cryptoKey, Key.ALGO_AES_CTR_256_SHA256);
+				int blockNum = (i % 2 == 1) ? i : k + i;
+				Bucket decoded = block.decode(storage.makeBlockBucketFactory(0, blockNum), BLOCK, false);
+				assertTrue(storage.isInSlot(decoded, 0, blockNum));
+				if(blockNum < k)
+					dataStatus[blockNum].assertSetData(decoded);
+				else
+					checkStatus[blockNum - k].assertSetData(decoded);
+			}
+			new RepetitionCodec(k).decode(dataStatus, checkStatus, new ArrayBucketFactory());
+			for(int i=0;i<k;i++)
+				assertTrue(storage.isInSlot(dataStatus[i].getData(), 0, i));
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			storage.writeDataTo(baos, length);
+			assertTrue(Arrays.equals(expected, baos.toByteArray()));
+		} finally {
+			rat.close();
+			f.delete();
+		}
+	}
+
+}
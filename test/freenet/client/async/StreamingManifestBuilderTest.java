@@ -0,0 +1,350 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import junit.framework.TestCase;
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.HighLevelSimpleClient;
+import freenet.client.InsertBlock;
+import freenet.client.InsertException;
+import freenet.client.Metadata;
+import freenet.client.MetadataParseException;
+import freenet.crypt.SHA256;
+import freenet.keys.ClientCHK;
+import freenet.keys.FreenetURI;
+import freenet.keys.Key;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+import freenet.support.math.MersenneTwister;
+
+public class StreamingManifestBuilderTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("streamingmanifestbuildertest", ".tmp");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	/** Pretends to insert, making up a CHK from the hash of the data. */
+	static class FakeInserter implements StreamingManifestBuilder.Inserter {
+
+		/** Everything inserted, by URI, if we are keeping it. */
+		final ConcurrentHashMap<String, byte[]> inserted;
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		int failAfter = Integer.MAX_VALUE;
+		final AtomicInteger count = new AtomicInteger();
+		/** If true, containers are archive manifests pointing to the tar, as inserted by
+		 * ClientInserter. Otherwise the container's URI is the tar itself. */
+		boolean archiveManifests;
+
+		FakeInserter(boolean keep) {
+			inserted = keep ? new ConcurrentHashMap<String, byte[]>() : null;
+		}
+
+		FreenetURI insert(Bucket data, boolean metadata) throws InsertException {
+			if(count.incrementAndGet() > failAfter)
+				throw new InsertException(InsertException.REJECTED_OVERLOAD);
+			int now = running.incrementAndGet();
+			while(true) {
+				int max = maxRunning.get();
+				if(now <= max || maxRunning.compareAndSet(max, now)) break;
+			}
+			try {
+				byte[] buf = BucketTools.toByteArray(data);
+				byte[] hash = SHA256.digest(buf);
+				FreenetURI uri = new ClientCHK(hash, hash, metadata, Key.ALGO_AES_CTR_256_SHA256, (short)-1).getURI();
+				if(inserted != null) inserted.put(uri.toString(), buf);
+				return uri;
+			} catch (IOException e) {
+				throw new InsertException(InsertException.BUCKET_ERROR, e, null);
+			} finally {
+				running.decrementAndGet();
+			}
+		}
+
+		@Override
+		public FreenetURI insertFile(Bucket data, String mimeType) throws InsertException {
+			return insert(data, false);
+		}
+
+		@Override
+		public FreenetURI insertContainer(Bucket tar) throws InsertException {
+			return insert(tar, false);
+		}
+
+		@Override
+		public FreenetURI insertManifest(Bucket metadata, boolean root) throws InsertException {
+			return insert(metadata, true);
+		}
+
+		byte[] get(FreenetURI uri) {
+			byte[] data = inserted.get(uri.setMetaString(null).toString());
+			assertNotNull("Not inserted: "+uri, data);
+			return data;
+		}
+
+		/** Follow a path from the top manifest, the way fproxy would. */
+		byte[] fetch(FreenetURI root, String path) throws MetadataParseException, IOException {
+			Metadata m = Metadata.construct(get(root));
+			String[] names = path.split("/");
+			for(int i=0;i<names.length;i++) {
+				assertTrue(m.isSimpleManifest());
+				m = m.getDocument(names[i]);
+				assertNotNull("Not found: "+path, m);
+				if(i < names.length-1 && m.isSingleFileRedirect())
+					m = Metadata.construct(get(m.getSingleTarget()));
+			}
+			assertTrue(m.isSingleFileRedirect());
+			FreenetURI target = m.getSingleTarget();
+			if(!target.hasMetaStrings())
+				return get(target);
+			// In a container.
+			assertEquals(1, target.getAllMetaStrings().length);
+			byte[] archive = get(target);
+			if(archiveManifests) {
+				Metadata am = Metadata.construct(archive);
+				assertTrue(am.isArchiveManifest());
+				assertEquals(ARCHIVE_TYPE.TAR, am.getArchiveType());
+				archive = get(am.getSingleTarget());
+			}
+			HashMap<String, byte[]> files = untar(archive);
+			Metadata manifest = Metadata.construct(files.get(".metadata"));
+			Metadata item = manifest.getDocument(target.getMetaString());
+			assertTrue(item.isArchiveInternalRedirect());
+			return files.get(item.getArchiveInternalName());
+		}
+
+	}
+
+	static HashMap<String, byte[]> untar(byte[] tar) throws IOException {
+		HashMap<String, byte[]> files = new HashMap<String, byte[]>();
+		TarArchiveInputStream tis = new TarArchiveInputStream(new ByteArrayInputStream(tar));
+		TarArchiveEntry entry;
+		while((entry = tis.getNextTarEntry()) != null) {
+			byte[] buf = new byte[(int)entry.getSize()];
+			int read = 0;
+			while(read < buf.length) {
+				int x = tis.read(buf, read, buf.length - read);
+				if(x < 0) throw new IOException("Truncated");
+				read += x;
+			}
+			files.put(entry.getName(), buf);
+		}
+		tis.close();
+		return files;
+	}
+
+	private static byte[] write(File f, int length, MersenneTwister random) throws IOException {
+		f.getParentFile().mkdirs();
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(data);
+		fos.close();
+		return data;
+	}
+
+	public void testInsertTree() throws Exception {
+		MersenneTwister random = new MersenneTwister(1);
+		HashMap<String, byte[]> expected = new HashMap<String, byte[]>();
+		for(int i=0;i<60;i++)
+			expected.put("file"+i+".txt", write(new File(dir, "file"+i+".txt"), random.nextInt(3000), random));
+		expected.put("index.html", write(new File(dir, "index.html"), 100, random));
+		// Too big for a container.
+		expected.put("big.bin", write(new File(dir, "big.bin"), 20000, random));
+		expected.put("sub/a.html", write(new File(dir, "sub/a.html"), 500, random));
+		expected.put("sub/deep/b.html", write(new File(dir, "sub/deep/b.html"), 500, random));
+		for(int i=0;i<100;i++)
+			expected.put("many/f"+i, write(new File(dir, "many/f"+i), 10, random));
+		new File(dir, "empty").mkdir();
+
+		FakeInserter inserter = new FakeInserter(true);
+		// Small limits so we get several containers.
+		StreamingManifestBuilder builder = new StreamingManifestBuilder(dir, inserter, new ArrayBucketFactory(),
+				new PooledExecutor(), 4, "index.html", false, 32*1024, 10000);
+		FreenetURI uri = builder.run();
+		assertEquals(expected.size(), builder.countFiles());
+		assertEquals(1, builder.countExternals());
+		assertTrue(builder.countContainers() > 3);
+		assertTrue(inserter.maxRunning.get() <= 4);
+		// sub, deep and empty are small enough to go in their parents; many isn't.
+		assertEquals(3, builder.countInlineManifests());
+		assertEquals(2, builder.countInsertedManifests());
+
+		for(String path : expected.keySet())
+			assertTrue(path, Arrays.equals(expected.get(path), inserter.fetch(uri, path)));
+		// Default document.
+		assertTrue(Arrays.equals(expected.get("index.html"), inserter.fetch(uri, "")));
+		Metadata top = Metadata.construct(inserter.get(uri));
+		assertTrue(top.getDocument("empty").isSimpleManifest());
+	}
+
+	/** The whole path, as used by HighLevelSimpleClient.insertManifest(), with a client
+	 * which stores what it is asked to insert. */
+	public void testClientInserter() throws Exception {
+		MersenneTwister random = new MersenneTwister(3);
+		HashMap<String, byte[]> expected = new HashMap<String, byte[]>();
+		for(int i=0;i<30;i++)
+			expected.put("file"+i+".html", write(new File(dir, "file"+i+".html"), random.nextInt(3000), random));
+		expected.put("big.bin", write(new File(dir, "big.bin"), 20000, random));
+		expected.put("sub/a.html", write(new File(dir, "sub/a.html"), 500, random));
+		expected.put(".hidden", write(new File(dir, ".hidden"), 10, random));
+		final FakeInserter store = new FakeInserter(true);
+		store.archiveManifests = true;
+		final FreenetURI siteURI = new FreenetURI("KSK@site");
+		final ArrayList<FreenetURI> roots = new ArrayList<FreenetURI>();
+		HighLevelSimpleClient client = (HighLevelSimpleClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { HighLevelSimpleClient.class }, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("getInsertContext")) return null;
+				if(!(method.getName().equals("insert") && args.length == 7))
+					throw new UnsupportedOperationException(method.toString());
+				InsertBlock block = (InsertBlock) args[0];
+				boolean isMetadata = (Boolean) args[3];
+				ClientPutCallback cb = (ClientPutCallback) args[5];
+				FreenetURI uri = store.insert(block.getData(), isMetadata);
+				if(!block.desiredURI.getKeyType().equals("CHK")) {
+					assertTrue(isMetadata);
+					synchronized(roots) {
+						roots.add(block.desiredURI);
+					}
+					store.inserted.put(block.desiredURI.toString(), store.get(uri));
+					uri = block.desiredURI;
+				}
+				cb.onGeneratedURI(uri, null, null);
+				cb.onSuccess(null, null);
+				return null;
+			}
+
+		});
+		StreamingManifestBuilder builder = new StreamingManifestBuilder(dir,
+				new StreamingManifestBuilder.ClientInserter(client, siteURI, new ArrayBucketFactory(), (short)1),
+				new ArrayBucketFactory(), new PooledExecutor(), 4, "file0.html", true, 8*1024, 10000);
+		FreenetURI uri = builder.run();
+		assertEquals(siteURI, uri);
+		assertEquals(1, roots.size());
+		assertTrue(builder.countContainers() > 1);
+		for(String path : expected.keySet())
+			assertTrue(path, Arrays.equals(expected.get(path), store.fetch(uri, path)));
+		assertTrue(Arrays.equals(expected.get("file0.html"), store.fetch(uri, "")));
+	}
+
+	public void testFailure() throws Exception {
+		MersenneTwister random = new MersenneTwister(2);
+		for(int i=0;i<20;i++)
+			write(new File(dir, "d"+(i%5)+"/file"+i), 20000, random);
+		FakeInserter inserter = new FakeInserter(false);
+		inserter.failAfter = 7;
+		StreamingManifestBuilder builder = new StreamingManifestBuilder(dir, inserter, new ArrayBucketFactory(),
+				new PooledExecutor(), 3, null, false, 32*1024, 10000);
+		try {
+			builder.run();
+			fail();
+		} catch (InsertException e) {
+			assertEquals(InsertException.REJECTED_OVERLOAD, e.getMode());
+		}
+		assertEquals(0, inserter.running.get());
+	}
+
+	public void testNoSuchDirectory() {
+		StreamingManifestBuilder builder = new StreamingManifestBuilder(new File(dir, "nonexistent"),
+				new FakeInserter(false), new ArrayBucketFactory(), new PooledExecutor(), 3, null, false);
+		try {
+			builder.run();
+			fail();
+		} catch (InsertException e) {
+			assertEquals(InsertException.BUCKET_ERROR, e.getMode());
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime r = Runtime.getRuntime();
+		return r.totalMemory() - r.freeMemory();
+	}
+
+	/** Peak heap while building a site, for two site sizes. With a streaming builder
+	 * the peak shouldn't grow much with the number of files. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		for(int files : new int[] { 10000, 100000 }) {
+			File site = new File(dir, "site"+files);
+			MersenneTwister random = new MersenneTwister(files);
+			long start = System.currentTimeMillis();
+			for(int i=0;i<files;i++)
+				write(new File(site, "d"+(i/100)+"/e"+(i%10)+"/file"+i+".html"), 100 + random.nextInt(4000), random);
+			System.out.println("Created "+files+" files in "+(System.currentTimeMillis()-start)+"ms");
+			System.gc();
+			final long base = usedMemory();
+			final long[] peak = new long[1];
+			final boolean[] done = new boolean[1];
+			Thread sampler = new Thread() {
+				@Override
+				public void run() {
+					while(true) {
+						synchronized(done) {
+							if(done[0]) return;
+						}
+						long used = usedMemory();
+						synchronized(peak) {
+							if(used > peak[0]) peak[0] = used;
+						}
+						try {
+							Thread.sleep(5);
+						} catch (InterruptedException e) {
+							// Ignore.
+						}
+					}
+				}
+			};
+			sampler.start();
+			StreamingManifestBuilder builder = new StreamingManifestBuilder(site, new FakeInserter(false),
+					new ArrayBucketFactory(), new PooledExecutor(), 8, "index.html", false);
+			start = System.currentTimeMillis();
+			builder.run();
+			long time = System.currentTimeMillis() - start;
+			synchronized(done) {
+				done[0] = true;
+			}
+			sampler.join();
+			System.out.println(files+" files, "+(builder.countBytes()/1024)+"KiB: "+time+"ms, "+
+					(builder.countFiles()*1000L/Math.max(time, 1))+" files/sec, "+
+					(builder.countBytes()*1000L/1024/1024/Math.max(time, 1))+"MiB/sec, "+
+					builder.countContainers()+" containers, "+builder.countInsertedManifests()+" manifests inserted, "+
+					builder.countInlineManifests()+" inline, peak heap above baseline "+((peak[0]-base)/1024/1024)+"MiB");
+			FileUtil.removeAll(site);
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+public class IOStatisticCollectorTest extends TestCase {
+
+	private boolean oldTracking;
+	private InetAddress a;
+	private InetAddress b;
+
+	@Override
+	protected void setUp() throws Exception {
+		oldTracking = IOStatisticCollector.ENABLE_PER_ADDRESS_TRACKING;
+		IOStatisticCollector.ENABLE_PER_ADDRESS_TRACKING = true;
+		a = InetAddress.getByName("10.1.2.3");
+		b = InetAddress.getByName("10.1.2.4");
+	}
+
+	@Override
+	protected void tearDown() {
+		IOStatisticCollector.ENABLE_PER_ADDRESS_TRACKING = oldTracking;
+	}
+
+	public void testTotals() {
+		IOStatisticCollector collector = new IOStatisticCollector();
+		collector.addInfo(a, 1000, 100, 0, false);
+		collector.addInfo(a, 1000, 0, 200, false);
+		collector.addInfo(b, 1000, 50, 0, true);
+		collector.addInfo(b, 1000, -1, 7, false);
+		long[] total = collector.getTotalIO();
+		assertEquals(207, total[0]);
+		assertEquals(100, total[1]);
+	}
+
+	public void testConcurrentTotals() throws InterruptedException {
+		final IOStatisticCollector collector = new IOStatisticCollector();
+		Thread[] threads = new Thread[8];
+		for(int i=0;i<threads.length;i++) {
+			final int port = 1000 + i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<10000;j++) {
+						collector.addInfo(a, port, 3, 0, false);
+						collector.addInfo(a, port, 0, 5, false);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		long lastOut = 0;
+		for(Thread t : threads) {
+			// Totals never go backwards while being updated.
+			while(t.isAlive()) {
+				long out = collector.getTotalIO()[0];
+				assertTrue(out >= lastOut);
+				lastOut = out;
+			}
+			t.join();
+		}
+		long[] total = collector.getTotalIO();
+		assertEquals(8 * 10000 * 5, total[0]);
+		assertEquals(8 * 10000 * 3, total[1]);
+		assertEquals(8, collector.countTargets());
+	}
+
+	public void testPeriods() {
+		IOStatisticCollector collector = new IOStatisticCollector();
+		long start = (IOStatisticCollector.period(System.currentTimeMillis()) + 1) * IOStatisticCollector.STATISTICS_DURATION;
+		// Local traffic is counted per address but not in the totals.
+		for(int i=0;i<3;i++)
+			collector._addInfo(a, 1000, 10 * (i+1), 1, true, start + i * IOStatisticCollector.STATISTICS_DURATION);
+		collector._addInfo(b, 1000, 5, 0, false, start + 2 * IOStatisticCollector.STATISTICS_DURATION);
+		// The current period isn't included.
+		int[][] stats = collector._getTotalStatistics(start + 2 * IOStatisticCollector.STATISTICS_DURATION);
+		assertEquals(20, stats[0][1]);
+		assertEquals(10, stats[1][1]);
+		assertEquals(0, stats[2][1]);
+		assertEquals(1, stats[0][0]);
+		stats = collector._getTotalStatistics(start + 3 * IOStatisticCollector.STATISTICS_DURATION);
+		assertEquals(35, stats[0][1]);
+		assertEquals(20, stats[1][1]);
+		assertEquals(10, stats[2][1]);
+		assertEquals(2, collector.countTargets());
+		// Old periods drop out, and idle addresses are removed.
+		long later = start + (IOStatisticCollector.STATISTICS_ENTRIES + 3) * IOStatisticCollector.STATISTICS_DURATION;
+		stats = collector._getTotalStatistics(later);
+		assertEquals(0, stats[IOStatisticCollector.STATISTICS_ENTRIES - 1][1]);
+		collector._addInfo(a, 1001, 1, 0, false, later);
+		assertEquals(1, collector.countTargets());
+		// The slot is reused after STATISTICS_ENTRIES+1 periods.
+		collector._addInfo(a, 1001, 1, 0, false, later + (IOStatisticCollector.STATISTICS_ENTRIES + 1) * IOStatisticCollector.STATISTICS_DURATION);
+		stats = collector._getTotalStatistics(later + (IOStatisticCollector.STATISTICS_ENTRIES + 2) * IOStatisticCollector.STATISTICS_DURATION);
+		assertEquals(1, stats[0][1]);
+		assertEquals(0, stats[IOStatisticCollector.STATISTICS_ENTRIES - 1][1]);
+		assertEquals(5 + 1 + 1, collector.getTotalIO()[1]);
+	}
+
+}
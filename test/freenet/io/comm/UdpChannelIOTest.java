@@ -0,0 +1,273 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+import freenet.crypt.SHA256;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+
+public class UdpChannelIOTest extends TestCase {
+
+	private InetAddress loopback;
+	private PooledExecutor executor;
+	private final List<UdpChannelIO> open = new ArrayList<UdpChannelIO>();
+
+	@Override
+	protected void setUp() throws Exception {
+		loopback = InetAddress.getByName("127.0.0.1");
+		executor = new PooledExecutor();
+		executor.start();
+	}
+
+	@Override
+	protected void tearDown() {
+		for(UdpChannelIO io : open)
+			io.close();
+	}
+
+	static class CountingCallback implements UdpChannelIO.Callback {
+
+		final AtomicLong received = new AtomicLong();
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong sentBytes = new AtomicLong();
+
+		@Override
+		public void onReceived(Peer peer, InetAddress address, int port, int length) {
+			received.incrementAndGet();
+		}
+
+		@Override
+		public void onSent(Peer destination, InetAddress address, int port, int length) {
+			sent.incrementAndGet();
+			sentBytes.addAndGet(length);
+		}
+
+		@Override
+		public void onSendFailed(Peer destination, InetAddress address, IOException e) {
+			fail("Send failed: "+e);
+		}
+
+	}
+
+	/** Records the sequence numbers received from each port, and the thread they were
+	 * processed on. Optionally does some hashing per packet, like decryption would. */
+	static class RecordingFilter implements IncomingPacketFilter {
+
+		final Map<Integer, List<Integer>> sequenceByPort = new HashMap<Integer, List<Integer>>();
+		final Map<Integer, Thread> threadByPort = new HashMap<Integer, Thread>();
+		final AtomicLong processed = new AtomicLong();
+		private final int hashRounds;
+		boolean wrongThread;
+
+		RecordingFilter(int hashRounds) {
+			this.hashRounds = hashRounds;
+		}
+
+		@Override
+		public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+			if(hashRounds > 0) {
+				MessageDigest md = SHA256.getMessageDigest();
+				for(int i=0;i<hashRounds;i++)
+					md.update(buf, offset, length);
+				md.digest();
+				SHA256.returnMessageDigest(md);
+			}
+			int seq = ((buf[offset] & 0xff) << 24) | ((buf[offset+1] & 0xff) << 16) |
+				((buf[offset+2] & 0xff) << 8) | (buf[offset+3] & 0xff);
+			synchronized(this) {
+				Integer port = peer.getPort();
+				List<Integer> list = sequenceByPort.get(port);
+				if(list == null) {
+					list = new ArrayList<Integer>();
+					sequenceByPort.put(port, list);
+					threadByPort.put(port, Thread.currentThread());
+				} else if(threadByPort.get(port) != Thread.currentThread()) {
+					wrongThread = true;
+				}
+				list.add(seq);
+			}
+			processed.incrementAndGet();
+			return DECODED.DECODED;
+		}
+
+		@Override
+		public boolean isDisconnected(PeerContext context) {
+			return false;
+		}
+
+	}
+
+	private UdpChannelIO open(int workers, UdpChannelIO.Callback callback, IncomingPacketFilter filter) throws IOException {
+		final UdpChannelIO io = new UdpChannelIO(0, loopback, workers, callback);
+		open.add(io);
+		io.setFilter(filter);
+		io.start(executor, "test");
+		Thread receiver = new Thread("Receive thread for "+io) {
+			@Override
+			public void run() {
+				while(io.isActive())
+					io.receive();
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+		return io;
+	}
+
+	private static byte[] packet(int seq, int length) {
+		byte[] buf = new byte[length];
+		buf[0] = (byte)(seq >> 24);
+		buf[1] = (byte)(seq >> 16);
+		buf[2] = (byte)(seq >> 8);
+		buf[3] = (byte)seq;
+		return buf;
+	}
+
+	/** Send packets from several sockets at once, and wait until no more arrive.
+	 * @return The time taken in milliseconds. */
+	private long blast(final UdpChannelIO[] senders, final UdpChannelIO receiver, final int packets, final int length, final boolean pace) throws InterruptedException {
+		final Peer target = new Peer(loopback, receiver.getLocalPort());
+		long start = System.currentTimeMillis();
+		Thread[] threads = new Thread[senders.length];
+		for(int i=0;i<senders.length;i++) {
+			final UdpChannelIO sender = senders[i];
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<packets;j++) {
+						sender.send(packet(j, length), target, loopback, target.getPort());
+						// Don't overflow the socket buffers.
+						if(pace && j % 5 == 4) {
+							try {
+								Thread.sleep(1);
+							} catch (InterruptedException e) {
+								// Ignore.
+							}
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		long lastReceived = -1;
+		long lastChange = System.currentTimeMillis();
+		while(System.currentTimeMillis() - lastChange < 1000) {
+			long received = receiver.countPacketsReceived();
+			if(received != lastReceived) {
+				lastReceived = received;
+				lastChange = System.currentTimeMillis();
+			}
+			if(received == (long)packets * senders.length) break;
+			Thread.sleep(10);
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	private static void waitForDecode(UdpChannelIO receiver, RecordingFilter filter) throws InterruptedException {
+		for(int i=0;i<500;i++) {
+			if(filter.processed.get() + receiver.countPacketsDropped() == receiver.countPacketsReceived()) return;
+			Thread.sleep(10);
+		}
+	}
+
+	public void testSendAndReceive() throws Exception {
+		CountingCallback receiverCallback = new CountingCallback();
+		RecordingFilter filter = new RecordingFilter(0);
+		UdpChannelIO receiver = open(0, receiverCallback, filter);
+		CountingCallback senderCallback = new CountingCallback();
+		UdpChannelIO sender = open(0, senderCallback, new RecordingFilter(0));
+		blast(new UdpChannelIO[] { sender }, receiver, 100, 200, true);
+		waitForDecode(receiver, filter);
+		assertEquals(100, sender.countPacketsSent());
+		assertEquals(100, senderCallback.sent.get());
+		assertEquals(100 * 200, senderCallback.sentBytes.get());
+		assertEquals(100 * 200, sender.countBytesSent());
+		assertTrue(receiver.countPacketsReceived() > 0);
+		assertEquals(receiver.countPacketsReceived(), receiverCallback.received.get());
+		assertEquals(receiver.countPacketsReceived() * 200, receiver.countBytesReceived());
+		// Processed on the receive thread, in order.
+		assertEquals(receiver.countPacketsReceived(), filter.processed.get());
+		List<Integer> sequence = filter.sequenceByPort.get(sender.getLocalPort());
+		for(int i=1;i<sequence.size();i++)
+			assertTrue(sequence.get(i) > sequence.get(i-1));
+		assertTrue(receiver.getDecodeStage().count() > 0);
+		assertTrue(sender.getSendStage().count() > 0);
+
+		receiver.close();
+		assertFalse(receiver.isActive());
+		assertFalse(receiver.receive());
+	}
+
+	/** Packets from each peer are processed in order, on one thread, even with several
+	 * decode threads. */
+	public void testPerPeerOrder() throws Exception {
+		RecordingFilter filter = new RecordingFilter(2);
+		UdpChannelIO receiver = open(4, new CountingCallback(), filter);
+		assertEquals(4, receiver.countDecodeWorkers());
+		UdpChannelIO[] senders = new UdpChannelIO[8];
+		for(int i=0;i<senders.length;i++)
+			senders[i] = open(0, new CountingCallback(), new RecordingFilter(0));
+		blast(senders, receiver, 200, 500, true);
+		waitForDecode(receiver, filter);
+		assertEquals(receiver.countPacketsReceived(), filter.processed.get() + receiver.countPacketsDropped());
+		assertFalse(filter.wrongThread);
+		assertEquals(senders.length, filter.sequenceByPort.size());
+		for(UdpChannelIO sender : senders) {
+			List<Integer> sequence = filter.sequenceByPort.get(sender.getLocalPort());
+			assertNotNull(sequence);
+			for(int i=1;i<sequence.size();i++)
+				assertTrue(sequence.get(i) > sequence.get(i-1));
+		}
+	}
+
+	/** Compare receiving with and without decode threads, when decoding is expensive. */
+	public void testThroughputBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		int senderCount = 8;
+		int packets = 20000;
+		// Warm up the hashing.
+		RecordingFilter warmup = new RecordingFilter(20);
+		Peer peer = new Peer(loopback, 1);
+		for(int i=0;i<5000;i++)
+			warmup.process(packet(i, 1024), 0, 1024, peer, 0);
+		for(int workers : new int[] { 0, 1, 2, 4 }) {
+			RecordingFilter filter = new RecordingFilter(20);
+			UdpChannelIO receiver = open(workers, new CountingCallback(), filter);
+			UdpChannelIO[] senders = new UdpChannelIO[senderCount];
+			for(int i=0;i<senders.length;i++)
+				senders[i] = open(0, new CountingCallback(), new RecordingFilter(0));
+			long time = blast(senders, receiver, packets, 1024, false);
+			long sent = 0;
+			long batches = 0;
+			for(UdpChannelIO sender : senders) {
+				sent += sender.countPacketsSent();
+				batches += sender.countSendBatches();
+			}
+			System.out.println("Decode threads: "+workers+": sent "+sent+" received "+receiver.countPacketsReceived()+
+					" decoded "+filter.processed.get()+" dropped "+receiver.countPacketsDropped()+" in "+time+"ms: "+
+					(filter.processed.get() * 1000 / Math.max(1, time))+" packets/sec decoded, "+
+					"decode wait "+(int)receiver.getDecodeQueueStage().averageMicros()+"us, decode "+
+					(int)receiver.getDecodeStage().averageMicros()+"us, send wait "+
+					(int)senders[0].getSendQueueStage().averageMicros()+"us, send "+
+					(int)senders[0].getSendStage().averageMicros()+"us, "+
+					(batches == 0 ? 0 : sent / batches)+" packets per send batch");
+			receiver.close();
+			for(UdpChannelIO sender : senders)
+				sender.close();
+		}
+	}
+
+}
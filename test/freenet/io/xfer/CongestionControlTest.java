@@ -0,0 +1,92 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import junit.framework.TestCase;
+
+public class CongestionControlTest extends TestCase {
+
+	public void testAIMD() {
+		CongestionControl cc = CongestionControl.Algorithm.AIMD.create(2);
+		assertEquals(2.0, cc.getWindowSize(), 0.001);
+		// Slow start, limited by maxWindowSize.
+		for(int i=0;i<20;i++)
+			cc.onPacketAcknowledged(50, i);
+		assertEquals(50.0, cc.getWindowSize(), 0.001);
+		// Every loss reduces the window.
+		cc.onPacketLost(100);
+		cc.onPacketLost(100);
+		assertEquals(50.0 * 0.875 * 0.875, cc.getWindowSize(), 0.001);
+		// Congestion avoidance: about one packet per window.
+		double window = cc.getWindowSize();
+		for(int i=0;i<(int)window;i++)
+			cc.onPacketAcknowledged(100, 200);
+		assertTrue(cc.getWindowSize() > window);
+		assertTrue(cc.getWindowSize() < window + 1.0);
+		for(int i=0;i<100;i++)
+			cc.onPacketLost(300);
+		assertEquals(1.0, cc.getWindowSize(), 0.001);
+	}
+
+	public void testDelayBased() {
+		DelayBasedCongestionControl cc = (DelayBasedCongestionControl) CongestionControl.Algorithm.DELAY.create(2);
+		long now = 0;
+		// Slow start while there is no queueing.
+		for(int i=0;i<10;i++) {
+			cc.onRoundTripTime(100, now);
+			cc.onPacketAcknowledged(1000, now);
+		}
+		assertTrue(cc.getWindowSize() > 20);
+		assertEquals(100, cc.getBaseDelay());
+		// Queueing delay above the target: leave slow start and shrink.
+		for(int i=0;i<DelayBasedCongestionControl.CURRENT_FILTER;i++)
+			cc.onRoundTripTime(100 + DelayBasedCongestionControl.TARGET * 2, now);
+		double window = cc.getWindowSize();
+		cc.onPacketAcknowledged(1000, now);
+		assertTrue(cc.getWindowSize() < window);
+		// Queueing delay below the target: grow slowly.
+		for(int i=0;i<DelayBasedCongestionControl.CURRENT_FILTER;i++)
+			cc.onRoundTripTime(100 + DelayBasedCongestionControl.TARGET / 2, now);
+		window = cc.getWindowSize();
+		cc.onPacketAcknowledged(1000, now);
+		assertTrue(cc.getWindowSize() > window);
+		assertTrue(cc.getWindowSize() < window + 1.0);
+		// Only one decrease per round trip, however many packets are lost.
+		window = cc.getWindowSize();
+		for(int i=0;i<10;i++)
+			cc.onPacketLost(now + 10);
+		assertEquals(window * DelayBasedCongestionControl.LOSS_DECREASE_MULTIPLE, cc.getWindowSize(), 0.001);
+		cc.onPacketLost(now + 1000);
+		assertEquals(window * DelayBasedCongestionControl.LOSS_DECREASE_MULTIPLE * DelayBasedCongestionControl.LOSS_DECREASE_MULTIPLE, cc.getWindowSize(), 0.001);
+	}
+
+	public void testBaseDelayExpires() {
+		DelayBasedCongestionControl cc = (DelayBasedCongestionControl) CongestionControl.Algorithm.DELAY.create(2);
+		cc.onRoundTripTime(50, 0);
+		assertEquals(50, cc.getBaseDelay());
+		// The route changes and the minimum goes up.
+		long now = 0;
+		for(int i=0;i<=DelayBasedCongestionControl.BASE_HISTORY;i++) {
+			now += DelayBasedCongestionControl.BASE_INTERVAL;
+			cc.onRoundTripTime(200, now);
+		}
+		assertEquals(200, cc.getBaseDelay());
+	}
+
+	public void testSwitchAlgorithm() {
+		PacketThrottle throttle = new PacketThrottle(1024);
+		assertEquals(CongestionControl.Algorithm.AIMD, throttle.getCongestionControl());
+		for(int i=0;i<5;i++)
+			throttle.notifyOfPacketAcknowledged(1000);
+		double window = throttle.getWindowSize();
+		assertTrue(window > 2.0);
+		throttle.setCongestionControl(CongestionControl.Algorithm.DELAY);
+		assertEquals(CongestionControl.Algorithm.DELAY, throttle.getCongestionControl());
+		assertEquals(window, throttle.getWindowSize(), 0.001);
+		throttle.setRoundTripTime(100);
+		throttle.notifyOfPacketAcknowledged(1000);
+		assertTrue(throttle.getWindowSize() > window);
+	}
+
+}
@@ -6,6 +6,8 @@ import java.util.Arrays;
 
 import junit.framework.TestCase;
 
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
 import freenet.support.compress.InvalidCompressionCodecException;
 import freenet.support.io.ArrayBucket;
 import freenet.support.io.ArrayBucketFactory;
@@ -63,6 +65,76 @@ public class ClientCHKBlockTest extends TestCase {
 		}
 	}
 	
+	public void testEncodeSplitfileBlocks() throws CHKEncodeException, CHKDecodeException, CHKVerifyException, IOException {
+		MersenneTwister random = new MersenneTwister(1234);
+		byte[][] data = new byte[20][];
+		for(int i=0;i<data.length;i++) {
+			if(i == 7) continue;
+			data[i] = new byte[CHKBlock.DATA_LENGTH];
+			random.nextBytes(data[i]);
+		}
+		byte[] cryptoKey = new byte[32];
+		random.nextBytes(cryptoKey);
+		PooledExecutor executor = new PooledExecutor();
+		for(byte cryptoAlgorithm : new byte[] { Key.ALGO_AES_PCFB_256_SHA256, Key.ALGO_AES_CTR_256_SHA256 }) {
+			for(byte[] key : new byte[][] { null, cryptoKey }) {
+				// PCFB encrypts in place.
+				ClientCHKBlock[] blocks = ClientCHKBlock.encodeSplitfileBlocks(copy(data), key, cryptoAlgorithm, executor, 3);
+				assertEquals(data.length, blocks.length);
+				for(int i=0;i<data.length;i++) {
+					if(data[i] == null) {
+						assertNull(blocks[i]);
+						continue;
+					}
+					ClientCHKBlock single = ClientCHKBlock.encodeSplitfileBlock(data[i].clone(), key, cryptoAlgorithm);
+					assertEquals(single.getClientKey(), blocks[i].getClientKey());
+					ClientCHKBlock check = new ClientCHKBlock(blocks[i].getBlock(), blocks[i].getClientKey());
+					ArrayBucket decoded = (ArrayBucket) check.decode(new ArrayBucketFactory(), CHKBlock.DATA_LENGTH, true);
+					assertTrue(Arrays.equals(data[i], decoded.toByteArray()));
+				}
+			}
+		}
+	}
+
+	/** Encode and decode throughput for both crypto algorithms, and for encoding a whole
+	 * segment at once. Run with -Dtest.benchmark=true */
+	public void testBenchmark() throws CHKEncodeException, CHKDecodeException, CHKVerifyException, IOException {
+		if(!TestProperty.BENCHMARK) return;
+		MersenneTwister random = new MersenneTwister(42);
+		byte[][] data = new byte[256][];
+		for(int i=0;i<data.length;i++) {
+			data[i] = new byte[CHKBlock.DATA_LENGTH];
+			random.nextBytes(data[i]);
+		}
+		PooledExecutor executor = new PooledExecutor();
+		for(int run=0;run<3;run++) {
+			for(byte cryptoAlgorithm : new byte[] { Key.ALGO_AES_PCFB_256_SHA256, Key.ALGO_AES_CTR_256_SHA256 }) {
+				String name = cryptoAlgorithm == Key.ALGO_AES_PCFB_256_SHA256 ? "PCFB" : "CTR";
+				ClientCHKBlock[] blocks = new ClientCHKBlock[data.length];
+				long start = System.nanoTime();
+				for(int i=0;i<data.length;i++)
+					blocks[i] = ClientCHKBlock.encodeSplitfileBlock(data[i].clone(), null, cryptoAlgorithm);
+				byte[][] copy = copy(data);
+				long encoded = System.nanoTime();
+				ClientCHKBlock.encodeSplitfileBlocks(copy, null, cryptoAlgorithm, executor);
+				long batchEncoded = System.nanoTime();
+				for(ClientCHKBlock block : blocks)
+					block.decode(new ArrayBucketFactory(), CHKBlock.DATA_LENGTH, true);
+				long decoded = System.nanoTime();
+				System.out.println(name+": encode "+((encoded - start) / data.length / 1000)+"us/block, batch encode "+
+						((batchEncoded - encoded) / data.length / 1000)+"us/block, decode "+
+						((decoded - batchEncoded) / data.length / 1000)+"us/block");
+			}
+		}
+	}
+
+	private static byte[][] copy(byte[][] data) {
+		byte[][] copy = new byte[data.length][];
+		for(int i=0;i<data.length;i++)
+			if(data[i] != null) copy[i] = data[i].clone();
+		return copy;
+	}
+
 	private void checkBlock(byte[] data, boolean newAlgo) throws CHKEncodeException, InvalidCompressionCodecException, CHKVerifyException, CHKDecodeException, IOException {
 		byte cryptoAlgorithm = newAlgo ? Key.ALGO_AES_CTR_256_SHA256 : Key.ALGO_AES_PCFB_256_SHA256;
 		byte[] copyOfData = new byte[data.length];
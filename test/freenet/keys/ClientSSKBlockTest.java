@@ -0,0 +1,57 @@
+package freenet.keys;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.support.TestProperty;
+import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+
+public class ClientSSKBlockTest extends TestCase {
+
+	public void testEncodeDecode() throws SSKEncodeException, IOException, InvalidCompressionCodecException, KeyDecodeException, SSKVerifyException {
+		RandomSource random = new DummyRandomSource(1234);
+		InsertableClientSSK ik = InsertableClientSSK.createRandom(random, "test");
+		for(int length : new int[] { 0, 1, 100, 1024 }) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			ClientSSKBlock block = encode(ik, data, random);
+			// Verify the signature too.
+			ClientSSKBlock check = ClientSSKBlock.construct((SSKBlock) block.getBlock(), block.getClientKey());
+			ArrayBucket decoded = (ArrayBucket) check.decode(new ArrayBucketFactory(), 32768, false);
+			assertTrue(Arrays.equals(data, decoded.toByteArray()));
+		}
+	}
+
+	/** Encode (sign) and decode (verify) throughput. Run with -Dtest.benchmark=true */
+	public void testBenchmark() throws SSKEncodeException, IOException, InvalidCompressionCodecException, KeyDecodeException, SSKVerifyException {
+		if(!TestProperty.BENCHMARK) return;
+		RandomSource random = new DummyRandomSource(42);
+		InsertableClientSSK ik = InsertableClientSSK.createRandom(random, "test");
+		byte[] data = new byte[1024];
+		random.nextBytes(data);
+		int count = 200;
+		for(int run=0;run<3;run++) {
+			ClientSSKBlock[] blocks = new ClientSSKBlock[count];
+			long start = System.nanoTime();
+			for(int i=0;i<count;i++)
+				blocks[i] = encode(ik, data, random);
+			long encoded = System.nanoTime();
+			for(ClientSSKBlock block : blocks)
+				ClientSSKBlock.construct((SSKBlock) block.getBlock(), block.getClientKey()).decode(new ArrayBucketFactory(), 32768, false);
+			long decoded = System.nanoTime();
+			System.out.println("SSK: encode "+((encoded - start) / count / 1000)+"us/block, verify and decode "+
+					((decoded - encoded) / count / 1000)+"us/block");
+		}
+	}
+
+	private ClientSSKBlock encode(InsertableClientSSK ik, byte[] data, RandomSource random) throws SSKEncodeException, IOException, InvalidCompressionCodecException {
+		return ik.encode(new ArrayBucket(data), false, true, (short)-1, data.length, random, null, false);
+	}
+
+}
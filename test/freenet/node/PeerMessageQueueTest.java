@@ -3,7 +3,12 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.TestCase;
+import freenet.io.comm.DMT;
+import freenet.support.TestProperty;
 
 public class PeerMessageQueueTest extends TestCase {
 	public void testUrgentTimeEmpty() {
@@ -81,4 +86,125 @@ public class PeerMessageQueueTest extends TestCase {
 		//grabQueuedMessageItem() should return the most urgent item, even though it was queued last
 		assertSame(itemUrgent, pmq.grabQueuedMessageItem(0));
 	}
+
+	private static MessageItem bulkItem(long uid, int packetNo, short priority) {
+		return new MessageItem(DMT.createFNPBulkPacketSend(uid, packetNo, new byte[128], false), null, null, priority);
+	}
+
+	/** Once they are urgent, we take one message from each UID in turn, starting with the
+	 * one which has waited longest. */
+	public void testRoundRobinBetweenUIDs() throws InterruptedException {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		List<MessageItem> a = new ArrayList<MessageItem>();
+		List<MessageItem> b = new ArrayList<MessageItem>();
+		for(int i=0;i<3;i++)
+			a.add(bulkItem(1, i, DMT.PRIORITY_REALTIME_DATA));
+		Thread.sleep(5);
+		for(int i=0;i<3;i++)
+			b.add(bulkItem(2, i, DMT.PRIORITY_REALTIME_DATA));
+		// Queue b first, it shouldn't matter.
+		for(MessageItem item : b)
+			pmq.queueAndEstimateSize(item, 1024);
+		for(MessageItem item : a)
+			pmq.queueAndEstimateSize(item, 1024);
+		assertEquals(0, pmq.getMessageQueueLengthBytes());
+		// Wait until they are urgent.
+		Thread.sleep(PacketSender.MAX_COALESCING_DELAY + 10);
+		assertTrue(pmq.mustSendNow(System.currentTimeMillis()));
+		for(int i=0;i<3;i++) {
+			assertSame(a.get(i), pmq.grabQueuedMessageItem(0));
+			assertSame(b.get(i), pmq.grabQueuedMessageItem(0));
+		}
+		assertNull(pmq.grabQueuedMessageItem(0));
+		assertEquals(Long.MAX_VALUE, pmq.getNextUrgentTime(Long.MAX_VALUE, System.currentTimeMillis()));
+	}
+
+	/** Only the messages which have timed out become urgent, not everything queued for
+	 * the same UID. */
+	public void testOnlyDueMessagesUrgent() throws InterruptedException {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		MessageItem old = bulkItem(1, 1, DMT.PRIORITY_REALTIME_DATA);
+		Thread.sleep(PacketSender.MAX_COALESCING_DELAY + 10);
+		// We send for the UID, so it isn't due because of the time since the last send.
+		MessageItem sent = bulkItem(1, 0, DMT.PRIORITY_REALTIME_DATA);
+		pmq.queueAndEstimateSize(sent, 1024);
+		assertSame(sent, pmq.grabQueuedMessageItem(0));
+		MessageItem fresh = bulkItem(1, 2, DMT.PRIORITY_REALTIME_DATA);
+		pmq.queueAndEstimateSize(old, 1024);
+		pmq.queueAndEstimateSize(fresh, 1024);
+		assertSame(old, pmq.grabQueuedMessageItem(0));
+		// fresh was submitted, and we last sent for the UID, less than the timeout ago.
+		assertEquals(0, pmq.getMessageQueueLengthBytes());
+		assertFalse(pmq.mustSendNow(System.currentTimeMillis()));
+		assertSame(fresh, pmq.grabQueuedMessageItem(0));
+		assertNull(pmq.grabQueuedMessageItem(0));
+	}
+
+	public void testPushFront() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		MessageItem first = bulkItem(1, 0, DMT.PRIORITY_BULK_DATA);
+		MessageItem second = bulkItem(1, 1, DMT.PRIORITY_BULK_DATA);
+		MessageItem other = bulkItem(2, 0, DMT.PRIORITY_BULK_DATA);
+		pmq.queueAndEstimateSize(first, 1024);
+		pmq.queueAndEstimateSize(second, 1024);
+		pmq.queueAndEstimateSize(other, 1024);
+		assertSame(first, pmq.grabQueuedMessageItem(0));
+		// Couldn't send it after all. It goes before everything else.
+		pmq.pushfrontPrioritizedMessageItem(first);
+		assertEquals(first.getLength() + 2, pmq.getMessageQueueLengthBytes());
+		assertSame(first, pmq.grabQueuedMessageItem(0));
+		assertEquals(0, pmq.getMessageQueueLengthBytes());
+	}
+
+	public void testSizesAndRemove() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		MessageItem control = new MessageItem(new byte[100], null, false, null, DMT.PRIORITY_HIGH, false, false);
+		MessageItem bulk1 = bulkItem(1, 0, DMT.PRIORITY_BULK_DATA);
+		MessageItem bulk2 = bulkItem(2, 0, DMT.PRIORITY_BULK_DATA);
+		int total = 0;
+		for(MessageItem item : new MessageItem[] { control, bulk1, bulk2 }) {
+			total += item.getLength() + 2;
+			assertEquals(total, pmq.queueAndEstimateSize(item, 1024));
+		}
+		assertTrue(pmq.mustSendSize(0, total - 7));
+		assertFalse(pmq.mustSendSize(0, total - 6));
+		assertTrue(pmq.removeMessage(bulk1));
+		assertFalse(pmq.removeMessage(bulk1));
+		assertTrue(pmq.removeMessage(control));
+		MessageItem[] left = pmq.grabQueuedMessageItems();
+		assertEquals(1, left.length);
+		assertSame(bulk2, left[0]);
+		assertNull(pmq.grabQueuedMessageItem(0));
+		assertFalse(pmq.mustSendSize(0, 0));
+	}
+
+	/** Many messages queued for many UIDs, grabbed the way NewPacketFormat does. Run with
+	 * -Dtest.benchmark=true */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		final int UIDS = 100;
+		final int MESSAGES = 5000;
+		MessageItem[] items = new MessageItem[MESSAGES];
+		for(int i=0;i<MESSAGES;i++)
+			items[i] = bulkItem(i % UIDS, i / UIDS, (i % 2 == 0) ? DMT.PRIORITY_BULK_DATA : DMT.PRIORITY_REALTIME_DATA);
+		for(int run=0;run<5;run++) {
+			PeerMessageQueue pmq = new PeerMessageQueue();
+			long start = System.nanoTime();
+			for(int round=0;round<10;round++) {
+				for(MessageItem item : items)
+					pmq.queueAndEstimateSize(item, 1024);
+				int grabbed = 0;
+				while(true) {
+					long now = System.currentTimeMillis();
+					pmq.mustSendNow(now);
+					pmq.mustSendSize(0, 1024);
+					if(pmq.grabQueuedMessageItem(0) == null) break;
+					grabbed++;
+				}
+				assertEquals(MESSAGES, grabbed);
+			}
+			long time = System.nanoTime() - start;
+			System.out.println("Queued and grabbed "+(10*MESSAGES)+" messages in "+(time / (1000*1000))+"ms: "+(time / (10*MESSAGES))+"ns each");
+		}
+	}
 }
@@ -0,0 +1,380 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ copyright.html for details. */
+package freenet.node;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import junit.framework.TestCase;
+import freenet.support.CompactFieldSet;
+import freenet.support.Executor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Ticker;
+import freenet.support.io.FileUtil;
+
+public class PeersFileWriterTest extends TestCase {
+
+	/** What FakeWriter exports, other than the identity. */
+	private static final String[] REQUIRED_KEYS = new String[] { "myName" };
+
+	private File dir;
+	private String filename;
+
+	static class FakePeer {
+		final String identity;
+		String name;
+		FakePeer(String identity, String name) {
+			this.identity = identity;
+			this.name = name;
+		}
+	}
+
+	/** Records the jobs queued, so the test can run them when it wants to. */
+	static class QueueTicker implements Ticker {
+
+		final ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+
+		@Override
+		public void queueTimedJob(Runnable job, long offset) {
+			queueTimedJob(job, "", offset, false, false);
+		}
+
+		@Override
+		public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+			if(noDupes && jobs.contains(job)) return;
+			jobs.add(job);
+		}
+
+		@Override
+		public Executor getExecutor() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void removeQueuedJob(Runnable job) {
+			jobs.remove(job);
+		}
+
+		void runAll() {
+			Runnable[] toRun = jobs.toArray(new Runnable[jobs.size()]);
+			jobs.clear();
+			for(Runnable job : toRun)
+				job.run();
+		}
+
+	}
+
+	static class FakeWriter extends PeersFileWriter<FakePeer> {
+
+		final ArrayList<FakePeer> peers = new ArrayList<FakePeer>();
+		final QueueTicker ticker;
+		int exported;
+		/** If true, getPeers() returns null, e.g. because the node isn't ready. */
+		boolean notReady;
+
+		FakeWriter() {
+			this(new QueueTicker());
+		}
+
+		private FakeWriter(QueueTicker ticker) {
+			super("test", 2, ticker);
+			this.ticker = ticker;
+		}
+
+		@Override
+		protected FakePeer[] getPeers() {
+			if(notReady) return null;
+			return peers.toArray(new FakePeer[peers.size()]);
+		}
+
+		@Override
+		protected String getIdentity(FakePeer peer) {
+			return peer.identity;
+		}
+
+		@Override
+		protected SimpleFieldSet export(FakePeer peer) {
+			exported++;
+			SimpleFieldSet fs = new SimpleFieldSet(true);
+			fs.putSingle("identity", peer.identity);
+			fs.putSingle("myName", peer.name);
+			fs.putSingle("metadata.detected", "true");
+			return fs;
+		}
+
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("peersfilewritertest", ".tmp");
+		dir.delete();
+		dir.mkdir();
+		filename = new File(dir, "peers").getPath();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	private LinkedHashMap<String, SimpleFieldSet> read() throws IOException {
+		LinkedHashMap<String, SimpleFieldSet> refs = new LinkedHashMap<String, SimpleFieldSet>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+		try {
+			while(true) {
+				SimpleFieldSet fs = new SimpleFieldSet(br, false, true);
+				if(fs.isEmpty()) break;
+				refs.put(fs.get("identity"), fs);
+			}
+		} catch (EOFException e) {
+			// Done.
+		} finally {
+			br.close();
+		}
+		PeersFileWriter.replayLog(filename, refs, REQUIRED_KEYS);
+		return refs;
+	}
+
+	private File logFile() {
+		return new File(filename + PeersFileWriter.LOG_SUFFIX);
+	}
+
+	public void testFirstWriteIsFull() throws IOException {
+		FakeWriter writer = new FakeWriter();
+		writer.peers.add(new FakePeer("a", "Alice"));
+		writer.peers.add(new FakePeer("b", "Bob"));
+		writer.write(false);
+		assertFalse(new File(filename).exists());
+		writer.setFilename(filename);
+		assertTrue(writer.isDirty());
+		writer.write(false);
+		assertFalse(writer.isDirty());
+		assertEquals(1, writer.countFullWrites());
+		assertEquals(0, writer.countLogWrites());
+		assertFalse(logFile().exists());
+		LinkedHashMap<String, SimpleFieldSet> refs = read();
+		assertEquals(2, refs.size());
+		assertEquals("Alice", refs.get("a").get("myName"));
+		assertEquals("Bob", refs.get("b").get("myName"));
+		assertEquals(new File(filename).length(), writer.getBytesWritten());
+	}
+
+	public void testChangesAreLogged() throws IOException {
+		FakeWriter writer = new FakeWriter();
+		FakePeer a = new FakePeer("a", "Alice");
+		FakePeer b = new FakePeer("b", "Bob");
+		writer.peers.add(a);
+		writer.peers.add(b);
+		writer.setFilename(filename);
+		writer.write(false);
+		long fileLength = new File(filename).length();
+		assertEquals(2, writer.exported);
+		// Nothing changed, nothing written.
+		writer.write(false);
+		assertEquals(1, writer.countFullWrites());
+		assertEquals(0, writer.countLogWrites());
+		// Only the changed peer is serialized and appended to the log.
+		a.name = "Alice2";
+		writer.changed(a);
+		writer.write(false);
+		assertEquals(3, writer.exported);
+		assertEquals(1, writer.countFullWrites());
+		assertEquals(1, writer.countLogWrites());
+		assertEquals(fileLength, new File(filename).length());
+		assertEquals(logFile().length(), writer.getLogSize());
+		// Added and removed peers.
+		writer.peers.remove(b);
+		writer.peers.add(new FakePeer("c", "Carol"));
+		writer.writeSoon(false);
+		writer.writeSoon(false);
+		assertEquals(1, writer.ticker.jobs.size());
+		writer.ticker.runAll();
+		assertEquals(2, writer.countLogWrites());
+		assertEquals(fileLength, new File(filename).length());
+		LinkedHashMap<String, SimpleFieldSet> refs = read();
+		assertEquals(2, refs.size());
+		assertEquals("Alice2", refs.get("a").get("myName"));
+		assertNull(refs.get("b"));
+		assertEquals("Carol", refs.get("c").get("myName"));
+		// Compaction rewrites the file and deletes the log.
+		writer.write(true);
+		assertEquals(2, writer.countFullWrites());
+		assertFalse(logFile().exists());
+		assertEquals(0, writer.getLogSize());
+		LinkedHashMap<String, SimpleFieldSet> compacted = read();
+		assertEquals(refs.keySet(), compacted.keySet());
+		for(String identity : refs.keySet())
+			assertEquals(refs.get(identity).toOrderedString(), compacted.get(identity).toOrderedString());
+		// Nothing to compact.
+		writer.write(true);
+		assertEquals(2, writer.countFullWrites());
+	}
+
+	/** Changes are kept until they have been written. */
+	public void testNotReady() throws IOException {
+		FakeWriter writer = new FakeWriter();
+		FakePeer a = new FakePeer("a", "Alice");
+		writer.peers.add(a);
+		writer.setFilename(filename);
+		writer.write(false);
+		a.name = "Alice2";
+		writer.changed(a);
+		writer.notReady = true;
+		writer.write(false);
+		writer.write(true);
+		assertTrue(writer.isDirty());
+		assertEquals(1, writer.countFullWrites());
+		assertEquals(0, writer.countLogWrites());
+		writer.notReady = false;
+		writer.write(false);
+		assertFalse(writer.isDirty());
+		assertEquals(1, writer.countLogWrites());
+		assertEquals("Alice2", read().get("a").get("myName"));
+	}
+
+	public void testCompactWhenLogIsLarge() {
+		FakeWriter writer = new FakeWriter();
+		FakePeer a = new FakePeer("a", "Alice");
+		writer.peers.add(a);
+		writer.setFilename(filename);
+		writer.write(false);
+		int i = 0;
+		while(writer.countFullWrites() == 1) {
+			a.name = "Alice" + (i++);
+			writer.changed(a);
+			writer.write(false);
+			assertTrue(writer.getLogSize() <= PeersFileWriter.MIN_COMPACT_LOG_SIZE);
+		}
+		assertEquals(i-1, writer.countLogWrites());
+		assertFalse(logFile().exists());
+	}
+
+	public void testBackups() throws IOException {
+		FakeWriter writer = new FakeWriter();
+		FakePeer a = new FakePeer("a", "Alice");
+		writer.peers.add(a);
+		writer.setFilename(filename);
+		writer.write(false);
+		for(int i=0;i<4;i++) {
+			a.name = "Alice" + i;
+			writer.changed(a);
+			writer.writeSoon(true);
+			writer.write(true);
+		}
+		assertEquals("Alice3", read().get("a").get("myName"));
+		assertTrue(PeersFileWriter.getBackupFilename(filename, 1).exists());
+		assertTrue(PeersFileWriter.getBackupFilename(filename, 2).exists());
+		assertFalse(PeersFileWriter.getBackupFilename(filename, 3).exists());
+	}
+
+	public void testReplayIgnoresTornRecord() throws IOException {
+		FakeWriter writer = new FakeWriter();
+		FakePeer a = new FakePeer("a", "Alice");
+		writer.peers.add(a);
+		writer.setFilename(filename);
+		writer.write(false);
+		a.name = "Alice2";
+		writer.changed(a);
+		writer.write(false);
+		long logLength = logFile().length();
+		// Crashed while appending the next record, anywhere in it.
+		SimpleFieldSet next = new SimpleFieldSet(true);
+		next.putSingle("identity", "a");
+		next.putSingle("myName", "Alice3");
+		byte[] record = binary(next);
+		for(int i=1;i<record.length;i++) {
+			truncateLog(logLength);
+			appendToLog(Arrays.copyOf(record, i));
+			LinkedHashMap<String, SimpleFieldSet> refs = new LinkedHashMap<String, SimpleFieldSet>();
+			assertEquals(1, PeersFileWriter.replayLog(filename, refs, REQUIRED_KEYS));
+			assertEquals("Alice2", refs.get("a").get("myName"));
+			assertEquals("true", refs.get("a").subset("metadata").get("detected"));
+		}
+		// A complete record without the required keys is ignored too.
+		truncateLog(logLength);
+		next.removeValue("myName");
+		appendToLog(binary(next));
+		LinkedHashMap<String, SimpleFieldSet> refs = new LinkedHashMap<String, SimpleFieldSet>();
+		assertEquals(1, PeersFileWriter.replayLog(filename, refs, REQUIRED_KEYS));
+		assertEquals("Alice2", refs.get("a").get("myName"));
+		// The whole record is applied.
+		truncateLog(logLength);
+		appendToLog(record);
+		refs = new LinkedHashMap<String, SimpleFieldSet>();
+		assertEquals(2, PeersFileWriter.replayLog(filename, refs, REQUIRED_KEYS));
+		assertEquals("Alice3", refs.get("a").get("myName"));
+	}
+
+	/** If we crash after writing the new peers file but before deleting the log, the log
+	 * must not be applied to the new file. */
+	public void testStaleLogIgnored() throws IOException {
+		FakeWriter writer = new FakeWriter();
+		FakePeer a = new FakePeer("a", "Alice");
+		FakePeer b = new FakePeer("b", "Bob");
+		writer.peers.add(a);
+		writer.peers.add(b);
+		writer.setFilename(filename);
+		writer.write(false);
+		writer.peers.remove(b);
+		writer.writeSoon(false);
+		a.name = "Alice2";
+		writer.changed(a);
+		writer.write(false);
+		assertEquals(1, writer.countLogWrites());
+		byte[] log = new byte[(int)logFile().length()];
+		DataInputStream dis = new DataInputStream(new FileInputStream(logFile()));
+		dis.readFully(log);
+		dis.close();
+		// Bob comes back, and we compact.
+		writer.peers.add(b);
+		writer.write(true);
+		assertFalse(logFile().exists());
+		// ... but the log wasn't deleted.
+		FileOutputStream fos = new FileOutputStream(logFile());
+		fos.write(log);
+		fos.close();
+		LinkedHashMap<String, SimpleFieldSet> refs = read();
+		assertEquals(2, refs.size());
+		assertEquals("Alice2", refs.get("a").get("myName"));
+		assertEquals("Bob", refs.get("b").get("myName"));
+		// The next write replaces it.
+		a.name = "Alice3";
+		writer.changed(a);
+		writer.write(false);
+		refs = read();
+		assertEquals("Alice3", refs.get("a").get("myName"));
+		assertEquals("Bob", refs.get("b").get("myName"));
+	}
+
+	private void truncateLog(long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(logFile(), "rw");
+		raf.setLength(length);
+		raf.close();
+	}
+
+	private void appendToLog(byte[] buf) throws IOException {
+		FileOutputStream fos = new FileOutputStream(logFile(), true);
+		fos.write(buf);
+		fos.close();
+	}
+
+	private static byte[] binary(SimpleFieldSet fs) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		CompactFieldSet.create(fs).writeBinary(new DataOutputStream(baos));
+		return baos.toByteArray();
+	}
+
+}
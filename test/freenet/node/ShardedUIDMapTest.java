@@ -0,0 +1,204 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ copyright.html for details. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class ShardedUIDMapTest extends TestCase {
+
+	static class Tag {
+		final long uid;
+		final boolean local;
+		Tag(long uid, boolean local) {
+			this.uid = uid;
+			this.local = local;
+		}
+	}
+
+	public void testDuplicateUID() {
+		ShardedUIDMap<Tag> map = new ShardedUIDMap<Tag>("test", true);
+		Tag a = new Tag(1, false);
+		Tag b = new Tag(1, true);
+		assertTrue(map.add(1, a, false));
+		// A different tag with the same UID is rejected, local or not.
+		assertFalse(map.add(1, b, true));
+		assertFalse(map.add(1, new Tag(1, false), false));
+		assertSame(a, map.get(1));
+		assertEquals(1, map.size());
+		assertEquals(0, map.localSize());
+		// Removing the wrong tag doesn't remove the right one.
+		assertFalse(map.remove(1, b, true, true));
+		assertSame(a, map.get(1));
+		assertTrue(map.remove(1, a, false, false));
+		assertNull(map.get(1));
+		assertTrue(map.add(1, b, true));
+		assertEquals(1, map.size());
+		assertEquals(1, map.localSize());
+		assertEquals(0, map.remoteSize());
+		assertTrue(map.remove(1, b, true, false));
+		assertEquals(0, map.size());
+		assertEquals(0, map.localSize());
+	}
+
+	public void testLocal() {
+		ShardedUIDMap<Tag> map = new ShardedUIDMap<Tag>("test", true, 4);
+		ArrayList<Long> uids = new ArrayList<Long>();
+		for(long i=0;i<100;i++) {
+			assertTrue(map.add(i, new Tag(i, (i % 3) == 0), (i % 3) == 0));
+		}
+		assertEquals(100, map.size());
+		assertEquals(34, map.localSize());
+		assertEquals(66, map.remoteSize());
+		assertEquals(100, map.snapshot(false).size());
+		for(Tag tag : map.snapshot(true))
+			assertTrue(tag.local);
+		assertEquals(34, map.snapshot(true).size());
+		map.addUIDs(uids);
+		assertEquals(100, uids.size());
+	}
+
+	public void testForEach() {
+		ShardedUIDMap<Tag> map = new ShardedUIDMap<Tag>("test", true, 4);
+		for(long i=0;i<100;i++)
+			assertTrue(map.add(i, new Tag(i, (i % 3) == 0), (i % 3) == 0));
+		final int[] counts = new int[2];
+		map.forEach(false, new ShardedUIDMap.Visitor<Tag>() {
+			@Override
+			public void visit(Tag tag) {
+				counts[tag.local ? 1 : 0]++;
+			}
+		});
+		assertEquals(66, counts[0]);
+		assertEquals(34, counts[1]);
+		final IdentityHashMap<Tag, Boolean> seen = new IdentityHashMap<Tag, Boolean>();
+		map.forEach(true, new ShardedUIDMap.Visitor<Tag>() {
+			@Override
+			public void visit(Tag tag) {
+				assertTrue(tag.local);
+				assertNull(seen.put(tag, Boolean.TRUE));
+			}
+		});
+		assertEquals(34, seen.size());
+		// Nothing local if we don't track it.
+		ShardedUIDMap<Tag> noLocal = new ShardedUIDMap<Tag>("test", false);
+		noLocal.add(1, new Tag(1, false), false);
+		noLocal.forEach(true, new ShardedUIDMap.Visitor<Tag>() {
+			@Override
+			public void visit(Tag tag) {
+				fail();
+			}
+		});
+	}
+
+	public void testNoLocal() {
+		ShardedUIDMap<Tag> map = new ShardedUIDMap<Tag>("test", false);
+		try {
+			map.add(1, new Tag(1, true), true);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		assertEquals(0, map.size());
+		assertTrue(map.snapshot(true).isEmpty());
+	}
+
+	static final int THREADS = 64;
+	static final int OPERATIONS = 20000;
+	/** Small, so threads often try to register the same UID. */
+	static final int UIDS = 256;
+
+	/** 64 threads registering and unregistering overlapping UIDs. At most one tag
+	 * may hold a UID at any time, and everything must be gone at the end. */
+	public void testStress() throws InterruptedException {
+		final ShardedUIDMap<Tag> map = new ShardedUIDMap<Tag>("test", true);
+		final AtomicInteger[] holders = new AtomicInteger[UIDS];
+		for(int i=0;i<UIDS;i++) holders[i] = new AtomicInteger();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final AtomicInteger rejected = new AtomicInteger();
+		final AtomicInteger snapshots = new AtomicInteger();
+		final boolean[] done = new boolean[1];
+		Thread[] threads = new Thread[THREADS];
+		for(int t=0;t<THREADS;t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					ArrayList<Tag> mine = new ArrayList<Tag>();
+					for(int i=0;i<OPERATIONS && failure.get() == null;i++) {
+						if(mine.isEmpty() || (mine.size() < 4 && r.nextBoolean())) {
+							long uid = r.nextInt(UIDS);
+							Tag tag = new Tag(uid, r.nextBoolean());
+							if(map.add(uid, tag, tag.local)) {
+								if(holders[(int)uid].incrementAndGet() != 1)
+									failure.compareAndSet(null, "Two tags registered for "+uid);
+								if(map.get(uid) != tag)
+									failure.compareAndSet(null, "Lost tag for "+uid);
+								mine.add(tag);
+							} else
+								rejected.incrementAndGet();
+						} else {
+							Tag tag = mine.remove(r.nextInt(mine.size()));
+							holders[(int)tag.uid].decrementAndGet();
+							if(!map.remove(tag.uid, tag, tag.local, false))
+								failure.compareAndSet(null, "Unable to remove "+tag.uid);
+						}
+					}
+					for(Tag tag : mine) {
+						holders[(int)tag.uid].decrementAndGet();
+						map.remove(tag.uid, tag, tag.local, false);
+					}
+				}
+			};
+		}
+		// Meanwhile, take snapshots. Each must be internally consistent.
+		Thread snapshotter = new Thread() {
+			@Override
+			public void run() {
+				while(true) {
+					synchronized(done) {
+						if(done[0]) return;
+					}
+					ArrayList<Tag> all = map.snapshot(false);
+					if(all.size() > UIDS)
+						failure.compareAndSet(null, "Snapshot too big: "+all.size());
+					IdentityHashMap<Tag, Boolean> seen = new IdentityHashMap<Tag, Boolean>();
+					boolean[] uids = new boolean[UIDS];
+					for(Tag tag : all) {
+						if(seen.put(tag, Boolean.TRUE) != null || uids[(int)tag.uid])
+							failure.compareAndSet(null, "Duplicate in snapshot: "+tag.uid);
+						uids[(int)tag.uid] = true;
+					}
+					for(Tag tag : map.snapshot(true)) {
+						if(!tag.local)
+							failure.compareAndSet(null, "Remote tag in local snapshot: "+tag.uid);
+					}
+					snapshots.incrementAndGet();
+				}
+			}
+		};
+		snapshotter.start();
+		for(Thread t : threads) t.start();
+		for(Thread t : threads) t.join();
+		synchronized(done) {
+			done[0] = true;
+		}
+		snapshotter.join();
+		assertNull(failure.get(), failure.get());
+		assertTrue(rejected.get() > 0);
+		assertTrue(snapshots.get() > 0);
+		assertEquals(0, map.size());
+		assertEquals(0, map.localSize());
+		assertTrue(map.snapshot(false).isEmpty());
+		for(AtomicInteger holder : holders)
+			assertEquals(0, holder.get());
+	}
+
+}
@@ -0,0 +1,176 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.keys.FreenetURI;
+import freenet.node.fcp.RequestStatusSnapshot.Filter;
+import freenet.node.fcp.RequestStatusSnapshot.SortOrder;
+
+public class RequestStatusCacheTest extends TestCase {
+
+	private static DownloadRequestStatus download(String identifier, short priority) throws MalformedURLException {
+		return new DownloadRequestStatus(identifier, ClientRequest.PERSIST_FOREVER, true, false, false,
+				100, 50, 0, 0, 0, false, 0, priority, 0, null, -1, null, null, null,
+				new FreenetURI("KSK@"+identifier), null, null, false, null, true, false);
+	}
+
+	private static String[] identifiers(RequestStatus[] requests) {
+		String[] ids = new String[requests.length];
+		for(int i=0;i<requests.length;i++)
+			ids[i] = requests[i].getIdentifier();
+		return ids;
+	}
+
+	public void testSnapshotOnlyRebuiltOnChange() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		cache.addDownload(download("a", (short)2));
+		cache.addDownload(download("b", (short)2));
+		RequestStatusSnapshot first = cache.getSnapshot();
+		assertSame(first, cache.getSnapshot());
+		assertEquals(2, first.size());
+		cache.setPriority("a", (short)1);
+		RequestStatusSnapshot second = cache.getSnapshot();
+		assertNotSame(first, second);
+		assertFalse(first.getETag().equals(second.getETag()));
+		// The snapshot is immutable.
+		assertEquals(2, first.query(SortOrder.PRIORITY, false, Filter.ALL, 0, 10).requests[0].getPriority());
+		assertEquals(1, second.query(SortOrder.PRIORITY, false, Filter.ALL, 0, 10).requests[0].getPriority());
+		// Only the request which changed was cloned again.
+		RequestStatus firstB = null, secondB = null;
+		for(RequestStatus status : first.getRequests())
+			if(status.getIdentifier().equals("b")) firstB = status;
+		for(RequestStatus status : second.getRequests())
+			if(status.getIdentifier().equals("b")) secondB = status;
+		assertSame(firstB, secondB);
+	}
+
+	public void testPaging() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		Random random = new Random(1234);
+		for(int i=0;i<95;i++)
+			cache.addDownload(download("request-"+i, (short)random.nextInt(7)));
+		for(int i=0;i<30;i++)
+			cache.finishedDownload("request-"+(i*3), true, 1000, "text/plain", 0, null, null, null, false);
+		RequestStatusSnapshot snapshot = cache.getSnapshot();
+		for(SortOrder order : SortOrder.values()) {
+			for(boolean reversed : new boolean[] { false, true }) {
+				RequestStatus[] expected = snapshot.getRequests();
+				Arrays.sort(expected, order.comparator());
+				if(reversed) Collections.reverse(Arrays.asList(expected));
+				ArrayList<String> paged = new ArrayList<String>();
+				for(int offset=0;offset<100;offset+=10) {
+					RequestStatusSnapshot.Page page = snapshot.query(order, reversed, Filter.ALL, offset, 10);
+					assertEquals(95, page.total);
+					assertEquals(snapshot.getETag(), page.etag);
+					paged.addAll(Arrays.asList(identifiers(page.requests)));
+				}
+				assertEquals(Arrays.asList(identifiers(expected)), paged);
+			}
+		}
+		RequestStatusSnapshot.Page running = snapshot.query(SortOrder.NAME, false, Filter.RUNNING, 60, 10);
+		assertEquals(65, running.total);
+		assertEquals(5, running.requests.length);
+		for(RequestStatus status : running.requests)
+			assertFalse(status.hasFinished());
+		assertEquals(30, snapshot.query(SortOrder.NAME, false, Filter.SUCCEEDED, 0, 100).total);
+		assertEquals(0, snapshot.query(SortOrder.NAME, false, Filter.UPLOADS, 0, 100).total);
+	}
+
+	public void testIncrementalSort() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		Random random = new Random(5678);
+		for(int i=0;i<200;i++)
+			cache.addDownload(download("request-"+i, (short)random.nextInt(7)));
+		for(int round=0;round<20;round++) {
+			RequestStatusSnapshot snapshot = cache.getSnapshot();
+			for(SortOrder order : SortOrder.values()) {
+				RequestStatus[] expected = snapshot.getRequests();
+				Arrays.sort(expected, order.comparator());
+				assertEquals(Arrays.asList(identifiers(expected)), Arrays.asList(identifiers(snapshot.sorted(order))));
+			}
+			// A few changes, so the next snapshot merges them in.
+			for(int i=0;i<5;i++) {
+				String id = "request-"+random.nextInt(200);
+				switch(random.nextInt(4)) {
+				case 0:
+					cache.setPriority(id, (short)random.nextInt(7));
+					break;
+				case 1:
+					cache.updateStatus(id, new SplitfileProgressEvent(100, random.nextInt(50), 0, 0, 50, 50, random.nextBoolean()));
+					break;
+				case 2:
+					cache.removeByIdentifier(id);
+					break;
+				default:
+					cache.addDownload(download("new-"+round+"-"+i, (short)random.nextInt(7)));
+				}
+			}
+		}
+	}
+
+	public void testChangesSince() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		cache.addDownload(download("a", (short)2));
+		cache.addDownload(download("b", (short)2));
+		cache.addDownload(download("c", (short)2));
+		RequestStatusCache.Delta all = cache.getChangesSince(null);
+		assertTrue(all.full);
+		assertEquals(3, all.changed.length);
+		String etag = all.etag;
+		assertEquals(cache.getSnapshot().getETag(), etag);
+		RequestStatusCache.Delta none = cache.getChangesSince(etag);
+		assertFalse(none.full);
+		assertEquals(0, none.changed.length);
+		assertEquals(0, none.removed.length);
+		cache.setPriority("a", (short)1);
+		cache.removeByIdentifier("b");
+		cache.addDownload(download("d", (short)2));
+		RequestStatusCache.Delta delta = cache.getChangesSince(etag);
+		assertFalse(delta.full);
+		assertEquals(new HashSet<String>(Arrays.asList("a", "d")), new HashSet<String>(Arrays.asList(identifiers(delta.changed))));
+		assertEquals(Arrays.asList("b"), Arrays.asList(delta.removed));
+		assertEquals(1, delta.changed[0].getIdentifier().equals("a") ? delta.changed[0].getPriority() : delta.changed[1].getPriority());
+		// From another cache, or from the future.
+		assertTrue(cache.getChangesSince("xyz-1").full);
+		assertTrue(new RequestStatusCache().getChangesSince(etag).full);
+		// Too far behind.
+		for(int i=0;i<RequestStatusCache.MAX_REMOVED+1;i++) {
+			cache.addDownload(download("temp-"+i, (short)2));
+			cache.removeByIdentifier("temp-"+i);
+		}
+		RequestStatusCache.Delta old = cache.getChangesSince(delta.etag);
+		assertTrue(old.full);
+		assertEquals(3, old.changed.length);
+	}
+
+	public void testQueryMultipleSnapshots() throws MalformedURLException {
+		RequestStatusCache first = new RequestStatusCache();
+		RequestStatusCache second = new RequestStatusCache();
+		for(int i=0;i<10;i++) {
+			first.addDownload(download("first-"+i, (short)(i % 7)));
+			second.addDownload(download("second-"+i, (short)((i+3) % 7)));
+		}
+		RequestStatusSnapshot[] snapshots = new RequestStatusSnapshot[] { first.getSnapshot(), second.getSnapshot() };
+		RequestStatusSnapshot.Page page = RequestStatusSnapshot.query(snapshots, SortOrder.PRIORITY, false, Filter.ALL, 5, 10);
+		assertEquals(20, page.total);
+		assertEquals(10, page.requests.length);
+		ArrayList<RequestStatus> all = new ArrayList<RequestStatus>();
+		first.addTo(all);
+		second.addTo(all);
+		RequestStatus[] expected = all.toArray(new RequestStatus[all.size()]);
+		Arrays.sort(expected, SortOrder.PRIORITY.comparator());
+		assertEquals(Arrays.asList(identifiers(expected)).subList(5, 15), Arrays.asList(identifiers(page.requests)));
+		assertEquals(first.getSnapshot().getETag()+"."+second.getSnapshot().getETag(), page.etag);
+	}
+
+}
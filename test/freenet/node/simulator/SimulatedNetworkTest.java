@@ -0,0 +1,253 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import freenet.io.comm.DatagramTransport;
+import freenet.io.comm.IncomingPacketFilter;
+import freenet.io.comm.Peer;
+import freenet.io.comm.PeerContext;
+import freenet.io.comm.Peer.LocalAddressException;
+import freenet.io.comm.UdpSocketHandler;
+import freenet.io.xfer.CongestionControl;
+
+public class SimulatedNetworkTest extends TestCase {
+
+	public void testClockOrder() {
+		final VirtualClock clock = new VirtualClock(1000);
+		final ArrayList<String> ran = new ArrayList<String>();
+		clock.queueTimedJob(new Recorder(ran, "c", clock), 300);
+		clock.queueTimedJob(new Recorder(ran, "a", clock), 100);
+		clock.execute(new Recorder(ran, "now1", clock));
+		clock.execute(new Recorder(ran, "now2", clock));
+		clock.queueTimedJob(new Recorder(ran, "b", clock), 100);
+		assertEquals(5, clock.pendingEvents());
+		assertEquals(4, clock.runUntil(1100));
+		assertEquals(1100, clock.currentTimeMillis());
+		assertTrue(clock.runOne());
+		assertFalse(clock.runOne());
+		assertEquals("[now1@1000, now2@1000, a@1100, b@1100, c@1300]", ran.toString());
+		// Time doesn't go backwards.
+		clock.runUntil(500);
+		assertEquals(1300, clock.currentTimeMillis());
+	}
+
+	public void testClockCancel() {
+		VirtualClock clock = new VirtualClock(0);
+		ArrayList<String> ran = new ArrayList<String>();
+		Recorder a = new Recorder(ran, "a", clock);
+		Recorder b = new Recorder(ran, "b", clock);
+		clock.queueTimedJob(a, 100);
+		clock.queueTimedJob(a, 200);
+		clock.removeQueuedJob(a);
+		assertEquals(0, clock.pendingEvents());
+		// noDupes keeps the earlier one.
+		clock.queueTimedJob(b, "b", 100, false, true);
+		clock.queueTimedJob(b, "b", 200, false, true);
+		assertEquals(1, clock.pendingEvents());
+		// ... and replaces a later one.
+		clock.queueTimedJob(b, "b", 50, false, true);
+		assertEquals(1, clock.pendingEvents());
+		clock.runUntilIdle(Long.MAX_VALUE);
+		assertEquals("[b@50]", ran.toString());
+	}
+
+	public void testLink() throws LocalAddressException {
+		VirtualClock clock = new VirtualClock(0);
+		SimulatedNetwork network = new SimulatedNetwork(clock, 1234);
+		SimulatedPacketSocketHandler a = network.createSocketHandler();
+		SimulatedPacketSocketHandler b = network.createSocketHandler();
+		assertFalse(a.getPeer().equals(b.getPeer()));
+		// 1000 bytes including headers takes 100ms at 10,000 bytes/sec.
+		network.setLink(a, b, new SimulatedNetwork.LinkParameters(20, 10000, 0.0, 250));
+		Receiver receiver = new Receiver(clock);
+		b.setLowLevelFilter(receiver);
+		byte[] packet = new byte[1000 - UdpSocketHandler.UDP_HEADERS_LENGTH];
+		for(int i=0;i<4;i++)
+			a.sendPacket(packet, b.getPeer(), false);
+		clock.runUntilIdle(Long.MAX_VALUE);
+		// The 4th would have to wait 300ms so is dropped.
+		assertEquals("[120, 220, 320]", receiver.times.toString());
+		assertEquals(a.getPeer(), receiver.source);
+		assertEquals(1, network.getPacketsDropped());
+		assertEquals(3, network.getPacketsDelivered());
+		// The other direction uses the default link.
+		Receiver receiverA = new Receiver(clock);
+		a.setLowLevelFilter(receiverA);
+		b.sendPacket(new byte[10], a.getPeer(), false);
+		clock.runUntilIdle(Long.MAX_VALUE);
+		assertEquals(1, receiverA.times.size());
+		assertEquals(320 + 1 + SimulatedNetwork.DEFAULT_LINK.latency, receiverA.times.get(0).longValue());
+	}
+
+	/** A fast link isn't limited to one packet per millisecond. */
+	public void testFastLink() throws LocalAddressException {
+		VirtualClock clock = new VirtualClock(0);
+		SimulatedNetwork network = new SimulatedNetwork(clock, 1234);
+		SimulatedPacketSocketHandler a = network.createSocketHandler();
+		SimulatedPacketSocketHandler b = network.createSocketHandler();
+		// 1000 bytes including headers takes 10us at 100MB/sec.
+		network.setLink(a, b, new SimulatedNetwork.LinkParameters(20, 100*1000*1000, 0.0, 250));
+		Receiver receiver = new Receiver(clock);
+		b.setLowLevelFilter(receiver);
+		byte[] packet = new byte[1000 - UdpSocketHandler.UDP_HEADERS_LENGTH];
+		for(int i=0;i<1000;i++)
+			a.sendPacket(packet, b.getPeer(), false);
+		clock.runUntilIdle(Long.MAX_VALUE);
+		assertEquals(1000, network.getPacketsDelivered());
+		assertEquals(0, network.getPacketsDropped());
+		// 10ms of transmission in all, not 1000ms.
+		assertEquals(21, receiver.times.get(0).longValue());
+		assertEquals(30, receiver.times.get(999).longValue());
+	}
+
+	/** Packets to different destinations share the sender's uplink. */
+	public void testUplink() throws LocalAddressException {
+		VirtualClock clock = new VirtualClock(0);
+		SimulatedNetwork network = new SimulatedNetwork(clock, 1234);
+		SimulatedPacketSocketHandler a = network.createSocketHandler();
+		SimulatedPacketSocketHandler b = network.createSocketHandler();
+		SimulatedPacketSocketHandler c = network.createSocketHandler();
+		SimulatedNetwork.LinkParameters fast = new SimulatedNetwork.LinkParameters(20, 100*1000*1000, 0.0, 250);
+		network.setLink(a, b, fast);
+		network.setLink(a, c, fast);
+		// 1000 bytes including headers takes 100ms at 10,000 bytes/sec.
+		network.setUplink(a, 10000, 250);
+		Receiver receiverB = new Receiver(clock);
+		Receiver receiverC = new Receiver(clock);
+		b.setLowLevelFilter(receiverB);
+		c.setLowLevelFilter(receiverC);
+		byte[] packet = new byte[1000 - UdpSocketHandler.UDP_HEADERS_LENGTH];
+		for(int i=0;i<2;i++) {
+			a.sendPacket(packet, b.getPeer(), false);
+			a.sendPacket(packet, c.getPeer(), false);
+		}
+		clock.runUntilIdle(Long.MAX_VALUE);
+		// The 4th would have to wait 300ms on the uplink so is dropped.
+		assertEquals("[121, 321]", receiverB.times.toString());
+		assertEquals("[221]", receiverC.times.toString());
+		assertEquals(1, network.getPacketsDropped());
+	}
+
+	public void testLossIsDeterministic() throws LocalAddressException {
+		long[] delivered = new long[2];
+		for(int run=0;run<2;run++) {
+			VirtualClock clock = new VirtualClock(0);
+			SimulatedNetwork network = new SimulatedNetwork(clock, 42);
+			network.setDefaultLink(new SimulatedNetwork.LinkParameters(10, 1000*1000, 0.3, 1000));
+			SimulatedPacketSocketHandler a = network.createSocketHandler();
+			SimulatedPacketSocketHandler b = network.createSocketHandler();
+			for(int i=0;i<1000;i++)
+				a.sendPacket(new byte[100], b.getPeer(), false);
+			clock.runUntilIdle(Long.MAX_VALUE);
+			delivered[run] = network.getPacketsDelivered();
+			assertEquals(1000, network.getPacketsDelivered() + network.getPacketsLost());
+		}
+		assertEquals(delivered[0], delivered[1]);
+		assertTrue(delivered[0] > 600 && delivered[0] < 800);
+	}
+
+	/** The endpoints real nodes use queue packets for the receive thread, as a socket would. */
+	public void testTransport() throws IOException {
+		VirtualClock clock = new VirtualClock(0);
+		SimulatedNetwork network = new SimulatedNetwork(clock, 1234);
+		DatagramTransport a = network.transportFactory(SimulatedNetwork.address(1)).bind(null, 5000);
+		DatagramTransport b = network.transportFactory(SimulatedNetwork.address(2)).bind(null, 5001);
+		assertEquals(5001, b.getLocalPort());
+		assertEquals(SimulatedNetwork.address(2), b.getLocalAddress());
+		try {
+			network.createTransport(SimulatedNetwork.address(2), 5001);
+			fail("Bound the same address twice");
+		} catch (SocketException e) {
+			// Expected.
+		}
+		a.send(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), new InetSocketAddress(SimulatedNetwork.address(2), 5001));
+		// Nobody there.
+		a.send(ByteBuffer.wrap(new byte[] { 4 }), new InetSocketAddress(SimulatedNetwork.address(2), 5002));
+		clock.runUntilIdle(Long.MAX_VALUE);
+		assertEquals(1, network.getPacketsDelivered());
+		assertEquals(1, network.getPacketsLost());
+		ByteBuffer buf = ByteBuffer.allocate(1500);
+		assertEquals(new InetSocketAddress(SimulatedNetwork.address(1), 5000), b.receive(buf));
+		buf.flip();
+		assertEquals(3, buf.remaining());
+		assertEquals(3, buf.get(2));
+		// Closing wakes up the receive thread.
+		b.close();
+		assertNull(b.receive(buf));
+		assertNull(b.receive(buf));
+	}
+
+	public void testRouting() {
+		SimulatedRoutingTest.Result first = SimulatedRoutingTest.run(200, 10, 500, 1, 0.0);
+		assertEquals(500, first.requests);
+		assertTrue(first.succeeded > 490);
+		assertTrue(first.meanHops > 1.0);
+		SimulatedRoutingTest.Result second = SimulatedRoutingTest.run(200, 10, 500, 1, 0.0);
+		assertEquals(first.toString(), second.toString());
+		// With loss some time out.
+		SimulatedRoutingTest.Result lossy = SimulatedRoutingTest.run(200, 10, 500, 1, 0.05);
+		assertTrue(lossy.timedOut > 0);
+		assertEquals(500, lossy.succeeded + lossy.failed + lossy.timedOut);
+	}
+
+	public void testCongestionControl() {
+		CongestionControl.Algorithm aimd = CongestionControl.Algorithm.AIMD;
+		CongestionControl.Algorithm delay = CongestionControl.Algorithm.DELAY;
+		CongestionControl.Algorithm[] aimdOnly = new CongestionControl.Algorithm[] { aimd, aimd };
+		CongestionControl.Algorithm[] delayOnly = new CongestionControl.Algorithm[] { delay, delay };
+		SimulatedCongestionTest.Result first = SimulatedCongestionTest.run(aimdOnly, SimulatedCongestionTest.BOTTLENECK, 30*1000, 1);
+		SimulatedCongestionTest.Result second = SimulatedCongestionTest.run(aimdOnly, SimulatedCongestionTest.BOTTLENECK, 30*1000, 1);
+		assertEquals(first.toString(), second.toString());
+		SimulatedCongestionTest.Result delayResult = SimulatedCongestionTest.run(delayOnly, SimulatedCongestionTest.BOTTLENECK, 30*1000, 1);
+		// Both use most of the link, but AIMD fills the buffer and the delay-based one doesn't.
+		assertTrue(first.totalGoodput() > SimulatedCongestionTest.BOTTLENECK.bytesPerSecond * 0.7);
+		assertTrue(delayResult.totalGoodput() > SimulatedCongestionTest.BOTTLENECK.bytesPerSecond * 0.7);
+		assertTrue(first.rttInflation() > 4.0);
+		assertTrue(delayResult.rttInflation() < 3.0);
+		assertTrue(first.fairness() > 0.5 && first.fairness() <= 1.0);
+	}
+
+	private static class Recorder implements Runnable {
+		private final ArrayList<String> ran;
+		private final String name;
+		private final VirtualClock clock;
+		Recorder(ArrayList<String> ran, String name, VirtualClock clock) {
+			this.ran = ran;
+			this.name = name;
+			this.clock = clock;
+		}
+		@Override
+		public void run() {
+			ran.add(name+"@"+clock.currentTimeMillis());
+		}
+	}
+
+	private static class Receiver implements IncomingPacketFilter {
+		private final VirtualClock clock;
+		final ArrayList<Long> times = new ArrayList<Long>();
+		Peer source;
+		Receiver(VirtualClock clock) {
+			this.clock = clock;
+		}
+		@Override
+		public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+			assertEquals(clock.currentTimeMillis(), now);
+			times.add(now);
+			source = peer;
+			return DECODED.DECODED;
+		}
+		@Override
+		public boolean isDisconnected(PeerContext context) {
+			return false;
+		}
+	}
+
+}
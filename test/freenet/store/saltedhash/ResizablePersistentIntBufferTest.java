@@ -0,0 +1,136 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import freenet.support.io.FileUtil;
+
+public class ResizablePersistentIntBufferTest extends TestCase {
+
+	private static final int CHUNK = ResizablePersistentIntBuffer.CHUNK_INTS;
+
+	private File tempDir;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-resizablepersistentintbuffertest");
+		tempDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		ResizablePersistentIntBuffer.setMemoryMapped(false);
+		ResizablePersistentIntBuffer.setPersistenceTime(ResizablePersistentIntBuffer.DEFAULT_PERSISTENCE_TIME);
+		FileUtil.removeAll(tempDir);
+	}
+
+	private static int value(int i) {
+		return i * 0x9E3779B1;
+	}
+
+	private ResizablePersistentIntBuffer open(File f, int size, boolean mapped) throws IOException {
+		ResizablePersistentIntBuffer.setMemoryMapped(mapped);
+		ResizablePersistentIntBuffer buffer = new ResizablePersistentIntBuffer(f, size);
+		assertEquals(mapped, buffer.isMapped());
+		return buffer;
+	}
+
+	/** The file written by one can be read by the other. */
+	public void testMappedAndHeapCompatible() throws IOException {
+		checkCompatible(-1);
+		checkCompatible(0);
+	}
+
+	private void checkCompatible(int persistenceTime) throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(persistenceTime);
+		File f = new File(tempDir, "compatible");
+		FileUtil.removeAll(f);
+		int size = CHUNK + 1000;
+		ResizablePersistentIntBuffer buffer = open(f, size, false);
+		assertTrue(buffer.isNew());
+		for(int i=0;i<size;i++)
+			buffer.put(i, value(i));
+		buffer.shutdown();
+		buffer = open(f, size, true);
+		assertFalse(buffer.isNew());
+		for(int i=0;i<size;i++)
+			assertEquals(value(i), buffer.get(i));
+		for(int i=0;i<size;i+=3)
+			buffer.put(i, -value(i));
+		buffer.shutdown();
+		buffer = open(f, size, false);
+		for(int i=0;i<size;i++)
+			assertEquals(i % 3 == 0 ? -value(i) : value(i), buffer.get(i));
+		buffer.shutdown();
+	}
+
+	public void testFill() throws IOException {
+		File f = new File(tempDir, "fill");
+		ResizablePersistentIntBuffer buffer = open(f, CHUNK * 2, true);
+		buffer.fill(7);
+		buffer.put(5, 3);
+		buffer.replaceAllEntries(7, 8);
+		buffer.shutdown();
+		buffer = open(f, CHUNK * 2, false);
+		for(int i=0;i<CHUNK*2;i++)
+			assertEquals(i == 5 ? 3 : 8, buffer.get(i));
+		buffer.shutdown();
+	}
+
+	public void testResizeMapped() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "resize");
+		int size = CHUNK + 100;
+		ResizablePersistentIntBuffer buffer = open(f, size, true);
+		for(int i=0;i<size;i++)
+			buffer.put(i, value(i));
+		// Grow, remapping the partial chunk.
+		int bigger = CHUNK * 3 + 5;
+		buffer.resize(bigger);
+		assertEquals(bigger, buffer.size());
+		assertEquals(bigger * 4L, f.length());
+		for(int i=0;i<bigger;i++)
+			assertEquals(i < size ? value(i) : 0, buffer.get(i));
+		buffer.put(bigger - 1, 42);
+		// Shrink.
+		int smaller = 50;
+		buffer.resize(smaller);
+		assertEquals(smaller, buffer.size());
+		assertEquals(smaller * 4L, f.length());
+		for(int i=0;i<smaller;i++)
+			assertEquals(value(i), buffer.get(i));
+		buffer.put(1, 43);
+		buffer.shutdown();
+		buffer = open(f, smaller, false);
+		for(int i=0;i<smaller;i++)
+			assertEquals(i == 1 ? 43 : value(i), buffer.get(i));
+		buffer.shutdown();
+	}
+
+	/** Only the chunks which have been changed are written. */
+	public void testDirtyChunks() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "dirty");
+		ResizablePersistentIntBuffer buffer = open(f, CHUNK * 4, true);
+		assertEquals(0, buffer.countDirtyChunks());
+		buffer.put(CHUNK + 1, 1);
+		buffer.put(CHUNK + 2, 2);
+		assertEquals(1, buffer.countDirtyChunks());
+		buffer.put(CHUNK * 3, 3);
+		assertEquals(2, buffer.countDirtyChunks());
+		buffer.forceWrite();
+		assertEquals(0, buffer.countDirtyChunks());
+		buffer.put(0, 4);
+		assertEquals(1, buffer.countDirtyChunks());
+		// Resizing writes everything, like the heap version.
+		buffer.resize(CHUNK * 5);
+		assertEquals(0, buffer.countDirtyChunks());
+		buffer.put(CHUNK * 5 - 1, 5);
+		assertEquals(1, buffer.countDirtyChunks());
+		buffer.forceWrite();
+		assertEquals(0, buffer.countDirtyChunks());
+		buffer.shutdown();
+	}
+
+}
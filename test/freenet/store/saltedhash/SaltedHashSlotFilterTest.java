@@ -97,6 +97,17 @@ public class SaltedHashSlotFilterTest extends TestCase {
 		saltStore.close();
 	}
 	
+	public void testCHKPresentMemoryMapped() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		ResizablePersistentIntBuffer.setMemoryMapped(true);
+		try {
+			checkCHKPresent(-1, TEST_COUNT, ACCEPTABLE_FALSE_POSITIVES, STORE_SIZE);
+			FileUtil.removeAll(tempDir);
+			checkCHKPresentWithClose(600*1000);
+		} finally {
+			ResizablePersistentIntBuffer.setMemoryMapped(false);
+		}
+	}
+	
 	public void testCHKPresentWithClose() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		checkCHKPresentWithClose(-1);
 		FileUtil.removeAll(tempDir);
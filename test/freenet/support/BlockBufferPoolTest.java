@@ -0,0 +1,81 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import freenet.support.BlockBufferPool.PooledBuffer;
+
+import junit.framework.TestCase;
+
+public class BlockBufferPoolTest extends TestCase {
+
+	public void testReuse() {
+		BlockBufferPool pool = new BlockBufferPool("test", 1024, 4, false);
+		PooledBuffer a = pool.allocate();
+		byte[] array = a.getArray();
+		assertEquals(1024, array.length);
+		assertTrue(a.release());
+		PooledBuffer b = pool.allocate();
+		assertSame(array, b.getArray());
+		assertEquals(2, pool.getAllocations());
+		assertEquals(1, pool.getNewAllocations());
+		assertEquals(1, pool.getOutstanding());
+		b.release();
+		assertEquals(0, pool.getOutstanding());
+		assertEquals(1, pool.getPooled());
+	}
+
+	public void testRefCount() {
+		BlockBufferPool pool = new BlockBufferPool("test", 1024, 4, false);
+		PooledBuffer a = pool.allocate();
+		a.retain();
+		assertFalse(a.release());
+		assertEquals(0, pool.getPooled());
+		assertTrue(a.release());
+		assertEquals(1, pool.getPooled());
+		try {
+			a.getArray();
+			fail("Used after release");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		try {
+			a.retain();
+			fail("Retained after release");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+	public void testBounded() {
+		BlockBufferPool pool = new BlockBufferPool("test", 16, 2, true);
+		PooledBuffer[] buffers = new PooledBuffer[5];
+		for(int i=0;i<buffers.length;i++)
+			buffers[i] = pool.allocate();
+		for(PooledBuffer buf : buffers)
+			buf.release();
+		assertEquals(2, pool.getPooled());
+		assertEquals(3, pool.getDiscarded());
+		assertEquals(0, pool.getOutstanding());
+	}
+
+	public void testDirect() {
+		BlockBufferPool pool = new BlockBufferPool("test", 16, 2, true);
+		PooledBuffer a = pool.allocate();
+		assertTrue(a.getByteBuffer().isDirect());
+		assertEquals(16, a.getByteBuffer().remaining());
+		try {
+			a.getArray();
+			fail("Direct buffers have no array");
+		} catch (UnsupportedOperationException e) {
+			// Expected.
+		}
+		a.getByteBuffer().put((byte)1);
+		a.release();
+		PooledBuffer b = pool.allocate();
+		assertEquals(0, b.getByteBuffer().position());
+		assertEquals(16, b.getByteBuffer().remaining());
+		b.release();
+	}
+
+}
@@ -0,0 +1,268 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.node.FSParseException;
+import freenet.support.io.Readers;
+
+public class CompactFieldSetTest extends TestCase {
+
+	private static final String SAMPLE =
+		"# First header\n" +
+		"#Second header \n" +
+		"foo=bar\n" +
+		"foo.bar=foobar\n" +
+		"\n" +
+		"foo.bar.foo=foobar\n" +
+		"# A comment, not a header\n" +
+		"foo.bar.boo.far=foobar\n" +
+		"foo2=foobar.fooboo.foofar.foofoo\n" +
+		"foo3==bar\r\n" +
+		"a..b.=dots\n" +
+		"multi=1\n" +
+		"zzz=last\n" +
+		"multi=2\n" +
+		"number=42\n" +
+		"unicode.été=☃\n" +
+		"flag=true\n" +
+		"END\n" +
+		"ignored=after end\n";
+
+	private static byte[] utf8(String s) throws IOException {
+		return s.getBytes("UTF-8");
+	}
+
+	public void testParseMatchesSimpleFieldSet() throws IOException {
+		for(boolean allowMultiple : new boolean[] { false, true }) {
+			SimpleFieldSet sfs = new SimpleFieldSet(SAMPLE, allowMultiple, true);
+			byte[] buf = utf8(SAMPLE);
+			CompactFieldSet fs = CompactFieldSet.parse(buf, 0, buf.length, allowMultiple);
+			assertEquals(sfs.toOrderedString(), fs.toString());
+			assertEquals(sfs.toOrderedString(), fs.toSimpleFieldSet(true).toOrderedString());
+			assertEquals(sfs.toOrderedString(), fs.toSimpleFieldSet(false).toOrderedString());
+			assertEquals("END", fs.getEndMarker());
+			assertEquals("First header", fs.getHeader()[0]);
+			assertEquals("Second header", fs.getHeader()[1]);
+			assertEquals(2, fs.getHeader().length);
+			assertEquals(allowMultiple ? "1;2" : "1", fs.get("multi"));
+			// Line at a time gives the same result.
+			CompactFieldSet read = CompactFieldSet.read(Readers.fromBufferedReader(new BufferedReader(new StringReader(SAMPLE))),
+					Integer.MAX_VALUE, 0x100, true, allowMultiple);
+			assertEquals(fs, read);
+			assertEquals(fs.toString(), read.toString());
+			// As does copying a SimpleFieldSet.
+			assertEquals(fs, CompactFieldSet.create(sfs));
+		}
+	}
+
+	public void testParseRange() throws IOException {
+		byte[] data = utf8("xxxxa=b\nEnd\n");
+		CompactFieldSet fs = CompactFieldSet.parse(data, 4, 4, false);
+		assertEquals("b", fs.get("a"));
+		assertEquals(1, fs.size());
+		// No end marker, still parsed.
+		assertNull(fs.getEndMarker());
+		try {
+			CompactFieldSet.parse(data, 0, 0, false);
+			fail();
+		} catch (EOFException e) {
+			// Expected.
+		}
+		try {
+			CompactFieldSet.parse(utf8("\n\n\r\n"), 0, 4, false);
+			fail();
+		} catch (EOFException e) {
+			// Expected.
+		}
+	}
+
+	public void testGet() throws IOException, FSParseException {
+		byte[] buf = utf8(SAMPLE);
+		CompactFieldSet fs = CompactFieldSet.parse(buf, 0, buf.length, true);
+		SimpleFieldSet sfs = new SimpleFieldSet(SAMPLE, true, true);
+		for(int i=0;i<fs.size();i++)
+			assertEquals(sfs.get(fs.getKey(i)), fs.getValue(i));
+		for(String key : new String[] { "foo", "foo.bar", "foo.bar.foo", "foo.bar.boo.far", "foo3",
+				"a..b.", "unicode.été", "fo", "foo.ba", "foo.bar.", "foo.bar.boo", "zzzz", "", "." })
+			assertEquals(key, sfs.get(key), fs.get(key));
+		assertEquals(42, fs.getInt("number"));
+		assertEquals(42, fs.getInt("number", 0));
+		assertEquals(7, fs.getInt("foo", 7));
+		assertEquals(42L, fs.getLong("number"));
+		assertTrue(fs.getBoolean("flag"));
+		assertFalse(fs.getBoolean("missing", false));
+		assertEquals(2, fs.getAll("multi").length);
+		try {
+			fs.getInt("missing");
+			fail();
+		} catch (FSParseException e) {
+			// Expected.
+		}
+	}
+
+	public void testSubset() throws IOException {
+		byte[] buf = utf8(SAMPLE);
+		CompactFieldSet fs = CompactFieldSet.parse(buf, 0, buf.length, false);
+		SimpleFieldSet sfs = new SimpleFieldSet(SAMPLE, false, true);
+		for(String prefix : new String[] { "foo", "foo.bar", "foo.bar.boo", "a", "a.", "unicode" }) {
+			CompactFieldSet subset = fs.subset(prefix);
+			SimpleFieldSet expected = sfs.subset(prefix);
+			assertEquals(prefix, expected.toOrderedString(), subset.toString());
+			assertEquals("foobar", fs.subset("foo").get("bar.boo.far"));
+		}
+		assertNull(fs.subset("foo2"));
+		assertNull(fs.subset("fo"));
+		assertNull(fs.subset("foo.bar.foo"));
+		assertNull(fs.subset("zzzz"));
+	}
+
+	/** Noderef keys are shared, anything else isn't, so a peer can't fill up the table. */
+	public void testKeysShared() throws IOException {
+		byte[] buf = utf8(makeNoderef(new Random(1234)).toString());
+		CompactFieldSet a = CompactFieldSet.parse(buf, 0, buf.length, false);
+		CompactFieldSet b = CompactFieldSet.parse(buf, 0, buf.length, false);
+		for(int i=0;i<a.size();i++) {
+			String key = a.getKey(i);
+			assertEquals(key, b.getKey(i));
+			if(key.equals("padding"))
+				assertNotSame(key, b.getKey(i));
+			else
+				assertSame(key, b.getKey(i));
+		}
+		assertSame(CompactFieldSet.key("y").name, a.subset("dsaPubKey").getKey(0));
+		assertNotSame(CompactFieldSet.key("foo.bar"), CompactFieldSet.key("foo.bar"));
+	}
+
+	public void testBinary() throws IOException {
+		byte[] buf = utf8(SAMPLE);
+		CompactFieldSet fs = CompactFieldSet.parse(buf, 0, buf.length, true);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		fs.writeBinary(new DataOutputStream(baos));
+		byte[] binary = baos.toByteArray();
+		CompactFieldSet copy = CompactFieldSet.readBinary(new DataInputStream(new ByteArrayInputStream(binary)), binary.length);
+		assertEquals(fs, copy);
+		assertEquals(fs.toString(), copy.toString());
+		// Shared key prefixes make it smaller than the text.
+		assertTrue(binary.length < buf.length);
+		// Truncated.
+		for(int i=0;i<binary.length;i++) {
+			try {
+				CompactFieldSet.readBinary(new DataInputStream(new ByteArrayInputStream(binary, 0, i)), binary.length);
+				fail();
+			} catch (IOException e) {
+				// Expected.
+			}
+		}
+		// Too long.
+		try {
+			CompactFieldSet.readBinary(new DataInputStream(new ByteArrayInputStream(binary)), 20);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		// Empty.
+		CompactFieldSet empty = CompactFieldSet.parse(utf8("End\n"), 0, 4, false);
+		assertTrue(empty.isEmpty());
+		baos = new ByteArrayOutputStream();
+		empty.writeBinary(new DataOutputStream(baos));
+		assertEquals(empty, CompactFieldSet.readBinary(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())), 3));
+	}
+
+	/** Something like an opennet noderef, around 3KB. */
+	private static SimpleFieldSet makeNoderef(Random random) {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("identity", randomBase64(random, 32));
+		fs.putSingle("lastGoodVersion", "Fred,0.7,1.0,1407");
+		fs.putSingle("version", "Fred,0.7,1.0,1410");
+		fs.put("opennet", true);
+		fs.put("location", random.nextDouble());
+		fs.putSingle("physical.udp", "192.0.2."+random.nextInt(256)+":"+(1024+random.nextInt(60000)));
+		fs.put("auth.negTypes", new int[] { 2, 4, 6, 7, 8, 9, 10 });
+		fs.putSingle("ark.pubURI", "SSK@"+randomBase64(random, 32)+","+randomBase64(random, 32)+",AQACAAE/ark");
+		fs.put("ark.number", random.nextInt(1000));
+		fs.putSingle("dsaGroup.p", randomBase64(random, 128));
+		fs.putSingle("dsaGroup.q", randomBase64(random, 32));
+		fs.putSingle("dsaGroup.g", randomBase64(random, 128));
+		fs.putSingle("dsaPubKey.y", randomBase64(random, 128));
+		fs.putSingle("sig", randomBase64(random, 40));
+		fs.putSingle("padding", randomBase64(random, 1200));
+		return fs;
+	}
+
+	private static String randomBase64(Random random, int bytes) {
+		byte[] buf = new byte[bytes];
+		random.nextBytes(buf);
+		return Base64.encode(buf);
+	}
+
+	/** Run with -Dtest.benchmark=true */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		Random random = new Random(1234);
+		final int refs = 64;
+		final int iterations = 2000;
+		byte[][] text = new byte[refs][];
+		SimpleFieldSet[] sfs = new SimpleFieldSet[refs];
+		CompactFieldSet[] compact = new CompactFieldSet[refs];
+		long totalLength = 0;
+		for(int i=0;i<refs;i++) {
+			sfs[i] = makeNoderef(random);
+			text[i] = utf8(sfs[i].toString());
+			compact[i] = CompactFieldSet.parse(text[i], 0, text[i].length, false);
+			totalLength += text[i].length;
+		}
+		System.out.println("Average noderef "+(totalLength / refs)+" bytes");
+		for(int run=0;run<3;run++) {
+			long start = System.nanoTime();
+			for(int j=0;j<iterations;j++)
+				for(int i=0;i<refs;i++)
+					new SimpleFieldSet(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(text[i]), "UTF-8")), false, true);
+			report("Parse SimpleFieldSet", start, iterations * refs);
+			start = System.nanoTime();
+			for(int j=0;j<iterations;j++)
+				for(int i=0;i<refs;i++)
+					CompactFieldSet.parse(text[i], 0, text[i].length, false);
+			report("Parse CompactFieldSet", start, iterations * refs);
+			start = System.nanoTime();
+			for(int j=0;j<iterations;j++)
+				for(int i=0;i<refs;i++)
+					CompactFieldSet.parse(text[i], 0, text[i].length, false).toSimpleFieldSet(true);
+			report("Parse CompactFieldSet and convert", start, iterations * refs);
+			start = System.nanoTime();
+			for(int j=0;j<iterations;j++)
+				for(int i=0;i<refs;i++)
+					sfs[i].writeTo(new StringWriter(text[i].length));
+			report("Write SimpleFieldSet", start, iterations * refs);
+			start = System.nanoTime();
+			for(int j=0;j<iterations;j++)
+				for(int i=0;i<refs;i++)
+					sfs[i].toOrderedString();
+			report("Write SimpleFieldSet ordered", start, iterations * refs);
+			start = System.nanoTime();
+			for(int j=0;j<iterations;j++)
+				for(int i=0;i<refs;i++)
+					compact[i].writeTo(new StringWriter(text[i].length));
+			report("Write CompactFieldSet", start, iterations * refs);
+		}
+	}
+
+	private static void report(String name, long start, int count) {
+		long time = System.nanoTime() - start;
+		System.out.println(name+": "+(time / count)+"ns each");
+	}
+
+}
@@ -0,0 +1,207 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class FairCooldownQueueTest extends TestCase {
+
+	public void testPriorities() {
+		FairCooldownQueue<String, String> queue = new FairCooldownQueue<String, String>(3);
+		queue.add("low", "a", 2, 0);
+		queue.add("high", "a", 0, 0);
+		queue.add("mid", "b", 1, 0);
+		assertEquals(3, queue.size());
+		assertEquals(3, queue.readyCount());
+		assertEquals("high", queue.poll(0, 2));
+		assertNull(queue.poll(0, 0));
+		assertEquals("mid", queue.poll(0, 2));
+		assertEquals("low", queue.poll(0, 2));
+		assertNull(queue.poll(0, 2));
+		assertEquals(0, queue.size());
+	}
+
+	public void testFairness() {
+		FairCooldownQueue<String, String> queue = new FairCooldownQueue<String, String>(1);
+		for(int i=0;i<3;i++)
+			queue.add("a"+i, "a", 0, 0);
+		queue.add("b0", "b", 0, 0);
+		queue.add("c0", "c", 0, 0);
+		queue.add("c1", "c", 0, 0);
+		// Clients take turns, each client's items are returned in order.
+		String[] expected = new String[] { "a0", "b0", "c0", "a1", "c1", "a2" };
+		for(String s : expected)
+			assertEquals(s, queue.poll(0, 0));
+		assertNull(queue.poll(0, 0));
+	}
+
+	public void testCooldown() {
+		FairCooldownQueue<String, String> queue = new FairCooldownQueue<String, String>(2);
+		queue.add("x", "a", 0, 1000);
+		queue.add("y", "a", 0, 500);
+		queue.add("z", "b", 1, 0);
+		assertEquals(2, queue.cooldownCount());
+		assertEquals(500, queue.nextWakeupTime());
+		// Items in cooldown are not returned, even if more important.
+		assertEquals("z", queue.poll(100, 1));
+		assertNull(queue.poll(499, 1));
+		assertEquals("y", queue.poll(500, 1));
+		assertEquals(1000, queue.nextWakeupTime());
+		// Re-add after sending, with a new cooldown.
+		queue.add("y", "a", 0, 2000);
+		assertEquals("x", queue.poll(1500, 1));
+		assertNull(queue.poll(1500, 1));
+		// Wake up early.
+		assertTrue(queue.setWakeupTime("y", 0));
+		assertEquals(Long.MAX_VALUE, queue.nextWakeupTime());
+		assertEquals("y", queue.poll(1500, 1));
+		assertFalse(queue.setWakeupTime("y", 0));
+	}
+
+	public void testFirstPriority() {
+		FairCooldownQueue<String, String> queue = new FairCooldownQueue<String, String>(4);
+		queue.add("p0", "a", 0, 0);
+		queue.add("p1", "a", 1, 0);
+		queue.add("p3", "a", 3, 0);
+		// Starts at the given class, then less important ones, then more important ones.
+		assertEquals("p1", queue.poll(0, 1, 3));
+		assertEquals("p3", queue.poll(0, 2, 3));
+		assertEquals("p0", queue.poll(0, 3, 3));
+		assertNull(queue.poll(0, 0, 3));
+	}
+
+	public void testRemove() {
+		FairCooldownQueue<String, String> queue = new FairCooldownQueue<String, String>(1);
+		queue.add("a0", "a", 0, 0);
+		queue.add("a1", "a", 0, 0);
+		queue.add("b0", "b", 0, 100);
+		queue.add("c0", "c", 0, 0);
+		assertTrue(queue.remove("a0"));
+		assertTrue(queue.remove("b0"));
+		assertFalse(queue.remove("b0"));
+		assertFalse(queue.contains("b0"));
+		assertEquals(0, queue.cooldownCount());
+		assertEquals("a1", queue.poll(1000, 0));
+		assertTrue(queue.remove("c0"));
+		assertNull(queue.poll(1000, 0));
+		assertEquals(0, queue.size());
+		assertEquals(0, queue.readyCount());
+	}
+
+	public void testSetWakeupTime() {
+		FairCooldownQueue<Integer, Integer> queue = new FairCooldownQueue<Integer, Integer>(1);
+		Integer[] items = new Integer[100];
+		for(int i=0;i<items.length;i++) {
+			items[i] = new Integer(i);
+			queue.add(items[i], 0, 0, 1000 + i);
+		}
+		// Reverse the order.
+		for(int i=0;i<items.length;i++)
+			queue.setWakeupTime(items[i], 2000 - i);
+		assertEquals(1901, queue.nextWakeupTime());
+		for(int i=items.length-1;i>=0;i--) {
+			assertNull(queue.poll(2000 - i - 1, 0));
+			assertSame(items[i], queue.poll(2000 - i, 0));
+		}
+	}
+
+	public void testRandom() {
+		Random random = new Random(1234);
+		FairCooldownQueue<Integer, Integer> queue = new FairCooldownQueue<Integer, Integer>(4);
+		Integer[] clients = new Integer[10];
+		for(int i=0;i<clients.length;i++) clients[i] = new Integer(i);
+		long[] wakeup = new long[1000];
+		int[] priority = new int[wakeup.length];
+		boolean[] queued = new boolean[wakeup.length];
+		Integer[] items = new Integer[wakeup.length];
+		for(int i=0;i<items.length;i++) items[i] = new Integer(i);
+		long now = 0;
+		int count = 0;
+		for(int i=0;i<100000;i++) {
+			int x = random.nextInt(items.length);
+			switch(random.nextInt(4)) {
+			case 0:
+				if(!queued[x]) count++;
+				queued[x] = true;
+				priority[x] = random.nextInt(4);
+				wakeup[x] = random.nextBoolean() ? 0 : now + random.nextInt(100);
+				queue.add(items[x], clients[x % clients.length], priority[x], wakeup[x]);
+				break;
+			case 1:
+				assertEquals(queued[x], queue.remove(items[x]));
+				if(queued[x]) count--;
+				queued[x] = false;
+				break;
+			default:
+				now += random.nextInt(3);
+				int maxPrio = random.nextInt(4);
+				Integer polled = queue.poll(now, maxPrio);
+				int best = Integer.MAX_VALUE;
+				for(int j=0;j<items.length;j++)
+					if(queued[j] && wakeup[j] <= now && priority[j] < best)
+						best = priority[j];
+				if(best > maxPrio) {
+					assertNull(polled);
+				} else {
+					assertNotNull(polled);
+					int y = polled.intValue();
+					assertTrue(queued[y]);
+					assertTrue(wakeup[y] <= now);
+					assertEquals(best, priority[y]);
+					queued[y] = false;
+					count--;
+				}
+			}
+			assertEquals(count, queue.size());
+		}
+	}
+
+	/** Selection cost with 10K, 100K and 1M blocks, of which most are in cooldown. Run with
+	 * -Dtest.benchmark=true */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		for(int blocks : new int[] { 10*1000, 100*1000, 1000*1000 })
+			benchmark(blocks);
+	}
+
+	private void benchmark(int blocks) {
+		final int priorities = 7;
+		final int clientCount = 100;
+		final long cooldown = 30*60*1000;
+		Random random = new Random(blocks);
+		FairCooldownQueue<Integer, Integer> queue = new FairCooldownQueue<Integer, Integer>(priorities);
+		Integer[] clients = new Integer[clientCount];
+		for(int i=0;i<clientCount;i++) clients[i] = new Integer(i);
+		Integer[] items = new Integer[blocks];
+		int[] itemPriority = new int[blocks];
+		long start = System.nanoTime();
+		for(int i=0;i<blocks;i++) {
+			items[i] = new Integer(i);
+			itemPriority[i] = random.nextInt(priorities);
+			// 90% in cooldown, waking up at random over the next cooldown period.
+			long wakeup = random.nextInt(10) == 0 ? 0 : 1 + (long)(random.nextDouble() * cooldown);
+			queue.add(items[i], clients[i % clientCount], itemPriority[i], wakeup);
+		}
+		long added = System.nanoTime();
+		// One selection per virtual millisecond. Each block selected goes back into cooldown.
+		int selections = 1000*1000;
+		int found = 0;
+		long now = 0;
+		for(int i=0;i<selections;i++) {
+			now++;
+			Integer item = queue.poll(now, priorities - 1);
+			if(item == null) continue;
+			found++;
+			int x = item.intValue();
+			queue.add(item, clients[x % clientCount], itemPriority[x], now + cooldown);
+		}
+		long end = System.nanoTime();
+		assertEquals(blocks, queue.size());
+		System.out.println(blocks+" blocks: add "+((added - start) / blocks)+"ns/block, select "+
+				((end - added) / selections)+"ns/selection ("+found+" found)");
+	}
+
+}
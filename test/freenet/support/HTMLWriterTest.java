@@ -0,0 +1,218 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import junit.framework.TestCase;
+import freenet.support.io.NullOutputStream;
+
+public class HTMLWriterTest extends TestCase {
+
+	/** Something like a PageMaker page with a big table. */
+	private static HTMLNode makePage(int rows) {
+		HTMLNode html = new HTMLNode("html");
+		HTMLNode head = html.addChild("head");
+		head.addChild("title", "Test & <page>");
+		head.addChild("link", new String[] { "rel", "href" }, new String[] { "stylesheet", "/static/\"style\".css" });
+		HTMLNode body = html.addChild("body");
+		HTMLNode div = body.addChild("div", "class", "infobox");
+		div.addChild("h1", "Header");
+		div.addChild("%", "<b>raw</b>");
+		div.addChild("br");
+		HTMLNode list = div.addChild("ul");
+		list.addChild("li", "one");
+		list.addChild("li").addChild("a", "href", "/x?a=1&b=2", "two");
+		HTMLNode text = div.addChild("#");
+		text.addChild("span", "inside a text node");
+		HTMLNode form = div.addChild("form", "action", "/");
+		form.addChild("input", new String[] { "type", "name" }, new String[] { "hidden", "formPassword" });
+		HTMLNode table = div.addChild("table");
+		for(int i=0;i<rows;i++)
+			addRow(table, i);
+		body.addChild("p", "été ε done");
+		HTMLNode doctype = new HTMLNode.HTMLDoctype("html", "-//W3C//DTD XHTML 1.1//EN");
+		doctype.addChild(html);
+		return doctype;
+	}
+
+	private static void addRow(HTMLNode table, int i) {
+		HTMLNode row = table.addChild("tr", "class", i % 2 == 0 ? "even" : "odd");
+		row.addChild("td", "peer"+i);
+		row.addChild("td").addChild("a", "href", "/peer/"+i, "<"+i+">");
+		row.addChild("td", new String[] { "class", "title" }, new String[] { "number", "Value & more" }, Integer.toString(i * 1000));
+	}
+
+	private static String write(HTMLNode node) throws IOException {
+		StringWriter sw = new StringWriter();
+		HTMLWriter out = new HTMLWriter(sw);
+		out.write(node);
+		out.close();
+		return sw.toString();
+	}
+
+	public void testSameAsGenerate() throws IOException {
+		HTMLNode page = makePage(3000);
+		assertEquals(page.generate(), write(page));
+	}
+
+	/** Streaming the same elements gives the same output as building the tree. */
+	public void testStreamingAPI() throws IOException {
+		HTMLNode tree = new HTMLNode("div", "class", "infobox");
+		tree.addChild("h2", "Title");
+		HTMLNode table = tree.addChild("table");
+		table.addChild("tr");
+		HTMLNode row = table.addChild("tr", "class", "odd");
+		row.addChild("td", "peer1");
+		row.addChild("td").addChild("a", "href", "/peer/1", "<1>");
+		row.addChild("td", new String[] { "title" }, new String[] { "Value & more" }, "1000");
+		tree.addChild("#", "a & b");
+		tree.addChild("br");
+		tree.addChild(new HTMLNode("p"));
+
+		StringWriter sw = new StringWriter();
+		HTMLWriter out = new HTMLWriter(sw);
+		out.begin("div", "class", "infobox");
+		out.element("h2", "Title");
+		out.begin("table");
+		out.begin("tr").end();
+		out.begin("tr", "class", "odd");
+		out.element("td", "peer1");
+		out.begin("td").element("a", "href", "/peer/1", "<1>").end();
+		out.element("td", new String[] { "title" }, new String[] { "Value & more" }, "1000");
+		out.end();
+		out.end();
+		out.text("a & b");
+		out.begin("br").end();
+		out.element("p", null);
+		out.close();
+		assertEquals(tree.generate(), sw.toString());
+	}
+
+	public void testDeferred() throws IOException {
+		HTMLNode page = makePage(0);
+		HTMLNode table = findTable(page);
+		table.addChild(new DeferredHTMLNode() {
+			@Override
+			protected void write(HTMLWriter out) throws IOException {
+				for(int i=0;i<100;i++) {
+					HTMLNode rows = new HTMLNode("#");
+					addRow(rows, i);
+					out.write(rows.getChildren().get(0));
+				}
+			}
+		});
+		String expected = makePage(100).generate();
+		assertEquals(expected, page.generate());
+		assertEquals(expected, write(page));
+	}
+
+	public void testUnbalanced() throws IOException {
+		HTMLNode div = new HTMLNode("div");
+		div.addChild(new DeferredHTMLNode() {
+			@Override
+			protected void write(HTMLWriter out) throws IOException {
+				out.begin("p");
+			}
+		});
+		try {
+			div.generate();
+			fail("Should have thrown");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		// Can't end elements outside the deferred node.
+		div = new HTMLNode("div");
+		div.addChild(new DeferredHTMLNode() {
+			@Override
+			protected void write(HTMLWriter out) throws IOException {
+				out.end();
+			}
+		});
+		StringWriter sw = new StringWriter();
+		HTMLWriter out = new HTMLWriter(sw);
+		out.begin("body");
+		try {
+			out.write(div);
+			fail("Should have thrown");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+	private static HTMLNode findTable(HTMLNode node) {
+		if("table".equals(node.name))
+			return node;
+		for(HTMLNode child : node.getChildren()) {
+			HTMLNode found = findTable(child);
+			if(found != null) return found;
+		}
+		return null;
+	}
+
+	/** Compare generate() and getBytes(), as the toadlets used to, with writing the page
+	 * directly. Run with -Dtest.benchmark=true */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		final int ROWS = 20000;
+		HTMLNode page = makePage(ROWS);
+		for(int run=0;run<5;run++) {
+			long allocated = allocated();
+			long start = System.currentTimeMillis();
+			for(int i=0;i<10;i++) {
+				byte[] data = page.generate().getBytes("UTF-8");
+				assertTrue(data.length > 0);
+			}
+			long generateTime = System.currentTimeMillis() - start;
+			long generateAllocated = allocated() - allocated;
+			allocated = allocated();
+			start = System.currentTimeMillis();
+			for(int i=0;i<10;i++) {
+				HTMLWriter out = new HTMLWriter(new OutputStreamWriter(new NullOutputStream(), "UTF-8"));
+				out.write(page);
+				out.close();
+			}
+			long streamTime = System.currentTimeMillis() - start;
+			long streamAllocated = allocated() - allocated;
+			System.out.println("generate(): "+generateTime+"ms "+(generateAllocated >> 20)+"MiB, HTMLWriter: "+streamTime+"ms "+(streamAllocated >> 20)+"MiB");
+		}
+		// Whole page with the table deferred, so it is never built.
+		page = makePage(0);
+		findTable(page).addChild(new DeferredHTMLNode() {
+			@Override
+			protected void write(HTMLWriter out) throws IOException {
+				for(int i=0;i<ROWS;i++) {
+					HTMLNode rows = new HTMLNode("#");
+					addRow(rows, i);
+					out.write(rows.getChildren().get(0));
+				}
+			}
+		});
+		long allocated = allocated();
+		long start = System.currentTimeMillis();
+		for(int i=0;i<10;i++) {
+			HTMLWriter out = new HTMLWriter(new OutputStreamWriter(new NullOutputStream(), "UTF-8"));
+			out.write(page);
+			out.close();
+		}
+		System.out.println("Deferred rows: "+(System.currentTimeMillis() - start)+"ms "+((allocated() - allocated) >> 20)+"MiB");
+	}
+
+	/** Bytes allocated by this thread, if the JVM will tell us, otherwise 0. */
+	private static long allocated() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try {
+			Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) m.invoke(bean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+}
@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.util.Random;
+
 import junit.framework.TestCase;
 
 public class PrioritizedTickerTest extends TestCase {
@@ -91,4 +93,101 @@ public class PrioritizedTickerTest extends TestCase {
 		
 	}
 
+	public void testCancel() throws InterruptedException {
+		synchronized(PrioritizedTickerTest.this) {
+			runCount = 0;
+		}
+		TimedJobHandle a = ticker.scheduleTimedJob(simpleRunnable, "Cancel test", 100, false, false);
+		TimedJobHandle b = ticker.scheduleTimedJob(simpleRunnable, "Cancel test", 100, false, false);
+		assertEquals(2, ticker.queuedJobs());
+		assertTrue(a.isQueued());
+		assertTrue(a.cancel());
+		assertFalse(a.cancel());
+		assertFalse(a.isQueued());
+		assertTrue(b.isQueued());
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(400);
+		synchronized(PrioritizedTickerTest.this) {
+			assertEquals(1, runCount);
+		}
+		assertFalse(b.isQueued());
+		assertFalse(b.cancel());
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testNoDupesIdentity() {
+		// Jobs are equal but not identical. Both must be queued.
+		Runnable x = new EqualRunnable();
+		Runnable y = new EqualRunnable();
+		TimedJobHandle a = ticker.scheduleTimedJob(x, "Identity test", 10000, false, true);
+		TimedJobHandle b = ticker.scheduleTimedJob(y, "Identity test", 10000, false, true);
+		assertEquals(2, ticker.queuedJobs());
+		// Same job, later: not queued, get the existing handle.
+		assertSame(a, ticker.scheduleTimedJob(x, "Identity test", 20000, false, true));
+		assertEquals(2, ticker.queuedJobs());
+		// Same job, earlier: replaces the existing one.
+		TimedJobHandle c = ticker.scheduleTimedJob(x, "Identity test", 5000, false, true);
+		assertNotSame(a, c);
+		assertFalse(a.isQueued());
+		assertEquals(2, ticker.queuedJobs());
+		ticker.removeQueuedJob(x);
+		assertFalse(c.isQueued());
+		assertTrue(b.isQueued());
+		ticker.removeQueuedJob(y);
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	private static class EqualRunnable implements Runnable {
+
+		@Override
+		public void run() {
+			// Do nothing.
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof EqualRunnable;
+		}
+
+		@Override
+		public int hashCode() {
+			return 0;
+		}
+
+	}
+
+	/** Schedule and cancel a million timeouts, as e.g. request timeouts which mostly don't
+	 * fire. Run with -Dtest.benchmark=true */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		int count = 1000 * 1000;
+		Runnable[] jobs = new Runnable[count];
+		for(int i=0;i<count;i++)
+			jobs[i] = new EqualRunnable();
+		TimedJobHandle[] handles = new TimedJobHandle[count];
+		Random random = new Random(1);
+		for(int run=0;run<3;run++) {
+			long start = System.nanoTime();
+			for(int i=0;i<count;i++)
+				handles[i] = ticker.scheduleTimedJob(jobs[i], "Benchmark", 10000 + random.nextInt(120000), false, false);
+			long scheduled = System.nanoTime();
+			for(int i=0;i<count;i++)
+				handles[i].cancel();
+			long cancelled = System.nanoTime();
+			assertEquals(0, ticker.queuedJobs());
+			System.out.println("Scheduled "+count+" timeouts in "+(scheduled - start)/(1000*1000)+"ms, cancelled in "+
+					(cancelled - scheduled)/(1000*1000)+"ms");
+			start = System.nanoTime();
+			for(int i=0;i<count;i++)
+				ticker.queueTimedJob(jobs[i], "Benchmark", 10000 + random.nextInt(120000), false, true);
+			scheduled = System.nanoTime();
+			for(int i=0;i<count;i++)
+				ticker.removeQueuedJob(jobs[i]);
+			cancelled = System.nanoTime();
+			assertEquals(0, ticker.queuedJobs());
+			System.out.println("With noDupes and removeQueuedJob(): "+(scheduled - start)/(1000*1000)+"ms, removed in "+
+					(cancelled - scheduled)/(1000*1000)+"ms");
+		}
+	}
+
 }
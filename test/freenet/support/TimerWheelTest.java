@@ -0,0 +1,103 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TimerWheelTest extends TestCase {
+
+	public void testSimple() {
+		TimerWheel<String> wheel = new TimerWheel<String>(1000);
+		wheel.add("b", 1005);
+		wheel.add("a", 1003);
+		wheel.add("c", 1005);
+		assertEquals(3, wheel.size());
+		List<String> expired = new ArrayList<String>();
+		assertEquals(0, wheel.expire(1002, expired));
+		assertEquals(1003, wheel.getCurrentTick() + wheel.ticksUntilNext(100));
+		assertEquals(1, wheel.expire(1003, expired));
+		assertEquals("a", expired.get(0));
+		expired.clear();
+		assertEquals(2, wheel.expire(1010, expired));
+		// Same tick: in the order they were added.
+		assertEquals("b", expired.get(0));
+		assertEquals("c", expired.get(1));
+		assertEquals(0, wheel.size());
+		// In the past: expire next time.
+		wheel.add("d", 500);
+		expired.clear();
+		assertEquals(1, wheel.expire(1011, expired));
+		assertEquals("d", expired.get(0));
+	}
+
+	public void testCancel() {
+		TimerWheel<Integer> wheel = new TimerWheel<Integer>(0);
+		List<TimerWheel.Timeout<Integer>> timeouts = new ArrayList<TimerWheel.Timeout<Integer>>();
+		for(int i=0;i<10;i++)
+			timeouts.add(wheel.add(i, 100));
+		// Head, tail and middle of the list.
+		assertTrue(wheel.cancel(timeouts.get(0)));
+		assertTrue(wheel.cancel(timeouts.get(9)));
+		assertTrue(wheel.cancel(timeouts.get(5)));
+		assertFalse(wheel.cancel(timeouts.get(5)));
+		assertFalse(timeouts.get(5).isQueued());
+		assertTrue(timeouts.get(4).isQueued());
+		assertEquals(7, wheel.size());
+		List<Integer> expired = new ArrayList<Integer>();
+		wheel.expire(100, expired);
+		assertEquals(7, expired.size());
+		int[] expected = new int[] { 1, 2, 3, 4, 6, 7, 8 };
+		for(int i=0;i<expected.length;i++)
+			assertEquals(expected[i], expired.get(i).intValue());
+		assertFalse(wheel.cancel(timeouts.get(1)));
+		assertFalse(timeouts.get(1).isQueued());
+	}
+
+	/** Timeouts at random times, across all the wheels and beyond, must expire in order on
+	 * exactly the right tick, however we advance the clock. */
+	public void testCascade() {
+		Random random = new Random(1234);
+		long start = 1000L * 1000 * 1000 * 1000 + 12345;
+		TimerWheel<Long> wheel = new TimerWheel<Long>(start);
+		int count = 0;
+		long[] ranges = new long[] { 300, 20000, 2000000, 100000000, TimerWheel.MAX_RANGE, TimerWheel.MAX_RANGE * 3 };
+		for(long range : ranges) {
+			for(int i=0;i<200;i++) {
+				long tick = start + (long)(random.nextDouble() * range);
+				wheel.add(tick, tick);
+				count++;
+			}
+		}
+		List<Long> expired = new ArrayList<Long>();
+		long now = start - 1;
+		long last = start;
+		int seen = 0;
+		while(seen < count) {
+			long prev = now;
+			// Jump straight to the next possible expiry, or a random distance.
+			long next = wheel.getCurrentTick() + wheel.ticksUntilNext(Long.MAX_VALUE);
+			if(random.nextBoolean())
+				now = next;
+			else
+				now = Math.min(next, now + 1 + random.nextInt(1000));
+			expired.clear();
+			wheel.expire(now, expired);
+			for(long tick : expired) {
+				assertTrue(tick > prev);
+				assertTrue(tick <= now);
+				// Nothing can expire before the time ticksUntilNext() gave us.
+				assertEquals(next, now);
+				assertTrue(tick >= last);
+				last = tick;
+				seen++;
+			}
+		}
+		assertEquals(0, wheel.size());
+	}
+
+}
@@ -0,0 +1,243 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class TokenBucketTest extends TestCase {
+
+	private static final long MS = 1000*1000;
+
+	/** A bucket on a clock we control. */
+	private static class ManualTokenBucket extends TokenBucket {
+		static long time = 1000*1000*1000;
+		ManualTokenBucket(long max, long nanosPerTick, long initialValue) {
+			super(max, nanosPerTick, initialValue);
+		}
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	public void testInstantGrab() {
+		ManualTokenBucket bucket = new ManualTokenBucket(100, MS, 50);
+		assertEquals(50, bucket.getCount());
+		assertTrue(bucket.instantGrab(30));
+		assertFalse(bucket.instantGrab(30));
+		assertEquals(20, bucket.getCount());
+		ManualTokenBucket.time += 10 * MS;
+		assertTrue(bucket.instantGrab(30));
+		assertEquals(0, bucket.getCount());
+		// Fills up to max and no further.
+		ManualTokenBucket.time += 1000 * MS;
+		assertEquals(100, bucket.getCount());
+		assertFalse(bucket.instantGrab(101));
+		assertTrue(bucket.instantGrab(100));
+	}
+
+	public void testPartialTokens() {
+		ManualTokenBucket bucket = new ManualTokenBucket(100, MS, 0);
+		// Fractions of a tick are not lost when grabbing.
+		for(int i=0;i<10;i++) {
+			ManualTokenBucket.time += MS / 2;
+			bucket.partialInstantGrab(10);
+		}
+		assertEquals(0, bucket.getCount());
+		ManualTokenBucket.time += MS / 2;
+		assertEquals(0, bucket.getCount());
+		ManualTokenBucket.time += MS / 2;
+		assertEquals(1, bucket.getCount());
+	}
+
+	public void testPartialInstantGrabAndRecycle() {
+		ManualTokenBucket bucket = new ManualTokenBucket(100, MS, 40);
+		assertEquals(25, bucket.partialInstantGrab(25));
+		assertEquals(15, bucket.partialInstantGrab(25));
+		assertEquals(0, bucket.partialInstantGrab(25));
+		bucket.recycle(15);
+		assertEquals(15, bucket.getCount());
+		// Recycling can't overfill the bucket.
+		bucket.recycle(1000);
+		assertEquals(100, bucket.getCount());
+	}
+
+	public void testForceGrab() {
+		ManualTokenBucket bucket = new ManualTokenBucket(100, MS, 10);
+		bucket.forceGrab(30);
+		assertEquals(-20, bucket.getCount());
+		assertEquals(-20, bucket.count());
+		assertFalse(bucket.instantGrab(1));
+		assertEquals(0, bucket.partialInstantGrab(10));
+		ManualTokenBucket.time += 25 * MS;
+		assertEquals(5, bucket.getCount());
+		// A full bucket is clipped before grabbing.
+		ManualTokenBucket.time += 1000 * MS;
+		bucket.forceGrab(150);
+		assertEquals(-50, bucket.getCount());
+	}
+
+	public void testChangeRate() {
+		ManualTokenBucket bucket = new ManualTokenBucket(100, MS, 40);
+		bucket.changeNanosPerTick(MS / 2);
+		assertEquals(40, bucket.getCount());
+		ManualTokenBucket.time += 10 * MS;
+		assertEquals(60, bucket.getCount());
+		bucket.changeBucketSize(50);
+		assertEquals(50, bucket.getCount());
+		bucket.forceGrab(70);
+		bucket.changeNanosAndBucketSize(2 * MS, 200);
+		assertEquals(-20, bucket.getCount());
+		assertEquals(2 * MS, bucket.getNanosPerTick());
+		ManualTokenBucket.time += 60 * MS;
+		assertEquals(10, bucket.getCount());
+	}
+
+	public void testBlockingGrabIsFair() throws InterruptedException {
+		// 1000 tokens per second.
+		final TokenBucket bucket = new TokenBucket(100, MS, 0);
+		final int THREADS = 4;
+		final int[] order = new int[THREADS * 2];
+		final AtomicLong done = new AtomicLong();
+		Thread[] threads = new Thread[THREADS];
+		for(int i=0;i<THREADS;i++) {
+			final int id = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<2;j++) {
+						bucket.blockingGrab(50);
+						order[(int)done.getAndIncrement()] = id;
+					}
+				}
+			};
+			threads[i].start();
+			// Make sure they queue in order.
+			Thread.sleep(5);
+		}
+		long start = System.currentTimeMillis();
+		for(Thread t : threads) t.join();
+		long taken = System.currentTimeMillis() - start;
+		// 400 tokens at 1000 per second.
+		assertTrue("took "+taken+"ms", taken >= 300);
+		// Each thread got its first grab before any thread got its second.
+		boolean[] seen = new boolean[THREADS];
+		for(int i=0;i<THREADS;i++) {
+			assertFalse(seen[order[i]]);
+			seen[order[i]] = true;
+		}
+	}
+
+	/** However the threads grab, over a long run they get the configured rate, and no
+	 * more than max in a burst. */
+	public void testRateAccuracy() throws InterruptedException {
+		// 100,000 tokens per second, bucket of 1000.
+		final TokenBucket bucket = new TokenBucket(1000, 10*1000, 0);
+		final AtomicLong grabbed = new AtomicLong();
+		final long end = System.currentTimeMillis() + 1000;
+		Thread[] threads = new Thread[4];
+		for(int i=0;i<threads.length;i++) {
+			final int id = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(id);
+					while(System.currentTimeMillis() < end) {
+						long tokens = 1 + r.nextInt(200);
+						switch(id) {
+						case 0:
+							if(bucket.instantGrab(tokens)) grabbed.addAndGet(tokens);
+							break;
+						case 1:
+							grabbed.addAndGet(bucket.partialInstantGrab(tokens));
+							break;
+						default:
+							bucket.blockingGrab(tokens);
+							grabbed.addAndGet(tokens);
+						}
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : threads) t.start();
+		for(Thread t : threads) t.join();
+		long elapsed = System.nanoTime() - start;
+		// Blocking grabs may have left the bucket in debt; count that as not yet earned.
+		long earned = elapsed / (10*1000) - Math.min(0, bucket.getCount());
+		long got = grabbed.get();
+		assertTrue("grabbed "+got+" but only earned "+earned, got <= earned + 1000);
+		assertTrue("grabbed "+got+" of "+earned, got >= earned * 0.9);
+	}
+
+	/** Compare with a synchronized bucket when many threads are grabbing. Run with
+	 * -Dtest.benchmark=true */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		for(int run=0;run<3;run++) {
+			final SynchronizedBucket locked = new SynchronizedBucket(1000*1000, 1);
+			System.out.println("synchronized: "+benchmark(new Grabber() {
+				@Override
+				public boolean grab(long tokens) {
+					return locked.instantGrab(tokens);
+				}
+			})+"ms");
+			final TokenBucket bucket = new TokenBucket(1000*1000, 1, 0);
+			System.out.println("TokenBucket: "+benchmark(new Grabber() {
+				@Override
+				public boolean grab(long tokens) {
+					return bucket.instantGrab(tokens);
+				}
+			})+"ms");
+		}
+	}
+
+	private interface Grabber {
+		boolean grab(long tokens);
+	}
+
+	private long benchmark(final Grabber grabber) throws InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors() * 2;
+		Thread[] t = new Thread[threads];
+		long start = System.currentTimeMillis();
+		for(int i=0;i<threads;i++) {
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<1000*1000;j++)
+						grabber.grab(j & 63);
+				}
+			};
+			t[i].start();
+		}
+		for(Thread thread : t) thread.join();
+		return System.currentTimeMillis() - start;
+	}
+
+	/** The old algorithm, for comparison: a count and a last tick under a lock. */
+	private static class SynchronizedBucket {
+		private long current;
+		private final long max;
+		private final long nanosPerTick;
+		private long timeLastTick;
+		SynchronizedBucket(long max, long nanosPerTick) {
+			this.max = max;
+			this.nanosPerTick = nanosPerTick;
+			timeLastTick = System.nanoTime();
+		}
+		synchronized boolean instantGrab(long tokens) {
+			long now = System.nanoTime();
+			long add = (now - timeLastTick) / nanosPerTick;
+			current = Math.min(max, current + add);
+			timeLastTick += add * nanosPerTick;
+			if(current < tokens) return false;
+			current -= tokens;
+			return true;
+		}
+	}
+
+}
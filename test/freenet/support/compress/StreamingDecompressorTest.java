@@ -0,0 +1,216 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.FileUtil;
+
+public class StreamingDecompressorTest extends TestCase {
+
+	private static final PooledExecutor executor = new PooledExecutor();
+
+	/** Compressible, but not trivially so. */
+	private static byte[] makeData(int length) {
+		Random r = new Random(length);
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++)
+			data[i] = (byte)('a' + r.nextInt(8));
+		return data;
+	}
+
+	/** Compress with each codec in turn, as the inserter would. */
+	private static byte[] compress(byte[] data, List<COMPRESSOR_TYPE> codecs) throws IOException {
+		for(COMPRESSOR_TYPE codec : codecs) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			codec.compress(new ByteArrayInputStream(data), os, Long.MAX_VALUE, Long.MAX_VALUE);
+			data = os.toByteArray();
+		}
+		return data;
+	}
+
+	private static byte[] decompress(byte[] compressed, List<? extends Compressor> codecs, long maxLen) throws Throwable {
+		StreamingDecompressor decompressor = new StreamingDecompressor(new ByteArrayInputStream(compressed), codecs, maxLen, executor);
+		InputStream is = decompressor.execute();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try {
+			FileUtil.copy(is, os, -1);
+		} finally {
+			is.close();
+		}
+		decompressor.waitFinished();
+		return os.toByteArray();
+	}
+
+	public void testDecompress() throws Throwable {
+		byte[] data = makeData(300*1000);
+		List<COMPRESSOR_TYPE> codecs = Arrays.asList(COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2);
+		byte[] compressed = compress(data, codecs);
+		List<COMPRESSOR_TYPE> copy = new ArrayList<COMPRESSOR_TYPE>(codecs);
+		assertTrue(Arrays.equals(data, decompress(compressed, copy, data.length)));
+		// The list is not consumed.
+		assertEquals(codecs, copy);
+		// No codecs: passed through.
+		assertTrue(Arrays.equals(data, decompress(data, new ArrayList<COMPRESSOR_TYPE>(), data.length)));
+	}
+
+	/** The fetchers call execute() before they start writing the compressed data. */
+	public void testExecuteDoesNotRead() throws Throwable {
+		byte[] data = makeData(1000);
+		List<COMPRESSOR_TYPE> codecs = Arrays.asList(COMPRESSOR_TYPE.GZIP);
+		byte[] compressed = compress(data, codecs);
+		PipedInputStream pipeIn = new PipedInputStream(compressed.length);
+		PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+		StreamingDecompressor decompressor = new StreamingDecompressor(pipeIn, codecs, data.length, executor);
+		InputStream is = decompressor.execute();
+		pipeOut.write(compressed);
+		pipeOut.close();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileUtil.copy(is, os, -1);
+		is.close();
+		decompressor.waitFinished();
+		assertTrue(Arrays.equals(data, os.toByteArray()));
+	}
+
+	public void testTooBig() throws Throwable {
+		byte[] data = makeData(100*1000);
+		List<COMPRESSOR_TYPE> codecs = Arrays.asList(COMPRESSOR_TYPE.GZIP);
+		byte[] compressed = compress(data, codecs);
+		try {
+			decompress(compressed, codecs, 50*1000);
+			fail("Should have thrown");
+		} catch (CompressionOutputSizeException e) {
+			// Within maxLen*4, so we know how big it is.
+			assertEquals(data.length, e.estimatedSize);
+		}
+		try {
+			decompress(compressed, codecs, 10*1000);
+			fail("Should have thrown");
+		} catch (CompressionOutputSizeException e) {
+			assertEquals(-1, e.estimatedSize);
+		}
+	}
+
+	public void testCorrupt() throws Throwable {
+		byte[] data = makeData(100*1000);
+		List<COMPRESSOR_TYPE> codecs = Arrays.asList(COMPRESSOR_TYPE.BZIP2);
+		byte[] compressed = compress(data, codecs);
+		compressed = Arrays.copyOf(compressed, compressed.length / 2);
+		try {
+			decompress(compressed, codecs, data.length);
+			fail("Should have thrown");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** Like GZIP, but can only decompress to an OutputStream, as the LZMA codecs do. */
+	private static class PushOnlyCompressor extends GzipCompressor {
+
+		@Override
+		public InputStream decompressingStream(InputStream input) {
+			return null;
+		}
+
+	}
+
+	/** Codecs without a decompressing stream are run on the executor, behind one which has. */
+	public void testPushOnlyCodec() throws Throwable {
+		byte[] data = makeData(300*1000);
+		byte[] compressed = compress(compress(data, Arrays.asList(COMPRESSOR_TYPE.GZIP)), Arrays.asList(COMPRESSOR_TYPE.BZIP2));
+		List<Compressor> codecs = Arrays.<Compressor>asList(new PushOnlyCompressor(), COMPRESSOR_TYPE.BZIP2);
+		assertTrue(Arrays.equals(data, decompress(compressed, codecs, data.length)));
+		// Its failure is reported to the reader, rather than a truncated stream.
+		compressed = compress(Arrays.copyOf(compress(data, Arrays.asList(COMPRESSOR_TYPE.GZIP)), 1000), Arrays.asList(COMPRESSOR_TYPE.BZIP2));
+		try {
+			decompress(compressed, codecs, data.length);
+			fail("Should have thrown");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** Compare with decompressing directly, without a pipe. Run with -Dtest.benchmark=true */
+	public void testBenchmark() throws Throwable {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = makeData(4*1024*1024);
+		List<COMPRESSOR_TYPE> codecs = Arrays.asList(COMPRESSOR_TYPE.GZIP);
+		byte[] compressed = compress(data, codecs);
+		for(int run=0;run<5;run++) {
+			long start = System.currentTimeMillis();
+			for(int i=0;i<10;i++)
+				assertEquals(data.length, decompressFromPipe(compressed, codecs, data.length));
+			long streaming = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			for(int i=0;i<10;i++) {
+				CountingOutputStream os = new CountingOutputStream();
+				COMPRESSOR_TYPE.GZIP.decompress(new ByteArrayInputStream(compressed), os, data.length, -1);
+				assertEquals(data.length, os.count);
+			}
+			long direct = System.currentTimeMillis() - start;
+			System.out.println("StreamingDecompressor: "+streaming+"ms direct: "+direct+"ms");
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) {
+			count += length;
+		}
+
+	}
+
+	/** Fed through a pipe by another thread, as the fetchers do. */
+	private static long decompressFromPipe(byte[] compressed, List<COMPRESSOR_TYPE> codecs, long maxLen) throws Throwable {
+		final PipedInputStream pipeIn = new PipedInputStream();
+		final PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+		StreamingDecompressor decompressor = new StreamingDecompressor(pipeIn, codecs, maxLen, executor);
+		InputStream is = decompressor.execute();
+		final byte[] input = compressed;
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					pipeOut.write(input);
+					pipeOut.close();
+				} catch (IOException e) {
+					// Reported by the reader.
+				}
+			}
+		};
+		writer.start();
+		long total = 0;
+		byte[] buf = new byte[32768];
+		int r;
+		while((r = is.read(buf)) > 0)
+			total += r;
+		is.close();
+		writer.join();
+		decompressor.waitFinished();
+		return total;
+	}
+
+}
@@ -0,0 +1,74 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.crypt.SeekableCTRCipher;
+import freenet.crypt.UnsupportedCipherException;
+
+public class EncryptedRandomAccessThingTest extends TestCase {
+
+	public void testRandomAccess() throws IOException, UnsupportedCipherException {
+		if(!SeekableCTRCipher.isAvailable()) return;
+		Random random = new Random(1234);
+		byte[] key = new byte[32];
+		byte[] iv = new byte[16];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+		byte[] storage = new byte[10000];
+		byte[] plaintext = new byte[storage.length];
+		random.nextBytes(plaintext);
+		EncryptedRandomAccessThing rat = new EncryptedRandomAccessThing(new ByteArrayRandomAccessThing(storage), key, iv);
+		// Write in odd sized chunks, out of order.
+		int[] offsets = new int[] { 5000, 17, 0, 9999, 33, 1234 };
+		int[] lengths = new int[] { 5000, 16, 17, 1, 1201, 3766 };
+		for(int i=0;i<offsets.length;i++) {
+			byte[] copy = plaintext.clone();
+			rat.pwrite(offsets[i], copy, offsets[i], lengths[i]);
+			assertTrue("Clobbered the caller's buffer", Arrays.equals(plaintext, copy));
+		}
+		assertFalse(Arrays.equals(plaintext, storage));
+		// Read back all at once.
+		byte[] buf = new byte[storage.length];
+		rat.pread(0, buf, 0, buf.length);
+		assertTrue(Arrays.equals(plaintext, buf));
+		// Read back unaligned ranges.
+		for(int i=0;i<100;i++) {
+			int offset = random.nextInt(storage.length);
+			int length = random.nextInt(storage.length - offset + 1);
+			byte[] read = new byte[length + 3];
+			rat.pread(offset, read, 3, length);
+			for(int j=0;j<length;j++)
+				assertEquals(plaintext[offset+j], read[j+3]);
+		}
+		// Same key and IV decrypts the same storage.
+		EncryptedRandomAccessThing rat2 = new EncryptedRandomAccessThing(new ByteArrayRandomAccessThing(storage), key, iv);
+		rat2.pread(100, buf, 0, 200);
+		for(int j=0;j<200;j++)
+			assertEquals(plaintext[100+j], buf[j]);
+	}
+
+	public void testCounterCarry() throws UnsupportedCipherException {
+		if(!SeekableCTRCipher.isAvailable()) return;
+		// An IV which overflows the low bytes of the counter within a few blocks.
+		byte[] key = new byte[32];
+		byte[] iv = new byte[16];
+		Arrays.fill(iv, 8, 16, (byte)0xFF);
+		SeekableCTRCipher cipher = new SeekableCTRCipher(key, iv);
+		byte[] stream = new byte[1024];
+		cipher.process(stream, 0, stream.length);
+		for(int offset : new int[] { 1, 15, 16, 17, 100, 1000 }) {
+			byte[] buf = new byte[stream.length - offset];
+			cipher.seek(offset);
+			cipher.process(buf, 0, buf.length);
+			for(int i=0;i<buf.length;i++)
+				assertEquals(stream[offset+i], buf[i]);
+		}
+	}
+
+}
@@ -4,16 +4,21 @@
 package freenet.support.io;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Random;
 
 import freenet.crypt.DummyRandomSource;
 import freenet.crypt.RandomSource;
+import freenet.crypt.SeekableCTRCipher;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.TestProperty;
 import freenet.support.api.Bucket;
 
 public class PaddedEphemerallyEncryptedBucketTest extends BucketTestBase {
 	private RandomSource strongPRNG = new DummyRandomSource(12345);
 	private Random weakPRNG = new DummyRandomSource(54321);
-	
+
 	@Override
 	protected Bucket makeBucket(long size) throws IOException {
 		FilenameGenerator filenameGenerator = new FilenameGenerator(weakPRNG, false, null, "junit");
@@ -21,8 +26,112 @@ public class PaddedEphemerallyEncryptedBucketTest extends BucketTestBase {
 		return new PaddedEphemerallyEncryptedBucket(fileBucket, 1024, strongPRNG, weakPRNG);
 	}
 
+	private PaddedEphemerallyEncryptedBucket makeBucket(byte cryptoAlgorithm) throws IOException {
+		FilenameGenerator filenameGenerator = new FilenameGenerator(weakPRNG, false, null, "junit");
+		TempFileBucket fileBucket = new TempFileBucket(filenameGenerator.makeRandomFilename(), filenameGenerator);
+		return new PaddedEphemerallyEncryptedBucket(fileBucket, 1024, strongPRNG, weakPRNG, cryptoAlgorithm);
+	}
+
 	@Override
 	protected void freeBucket(Bucket bucket) throws IOException {
 		bucket.free();
 	}
+
+	/** Old buckets, including persistent ones, must still be readable. */
+	public void testLegacyPCFB() throws IOException {
+		PaddedEphemerallyEncryptedBucket bucket = makeBucket(PaddedEphemerallyEncryptedBucket.ALGO_PCFB_RIJNDAEL_256);
+		try {
+			assertEquals(PaddedEphemerallyEncryptedBucket.ALGO_PCFB_RIJNDAEL_256, bucket.getCryptoAlgorithm());
+			OutputStream os = bucket.getOutputStream();
+			os.write(DATA_LONG);
+			os.close();
+			InputStream is = bucket.getInputStream();
+			byte[] buf = new byte[DATA_LONG.length];
+			new java.io.DataInputStream(is).readFully(buf);
+			is.close();
+			assertEquals(new ByteArrayWrapper(DATA_LONG), new ByteArrayWrapper(buf));
+		} finally {
+			bucket.free();
+		}
+	}
+
+	public void testCiphertextDiffers() throws IOException {
+		if(!SeekableCTRCipher.isAvailable()) return;
+		PaddedEphemerallyEncryptedBucket bucket = makeBucket(PaddedEphemerallyEncryptedBucket.ALGO_AES_CTR_256);
+		try {
+			OutputStream os = bucket.getOutputStream();
+			os.write(DATA_LONG);
+			os.close();
+			byte[] raw = BucketTools.toByteArray(bucket.getUnderlying());
+			assertTrue(raw.length >= DATA_LONG.length);
+			int same = 0;
+			for(int i=0;i<DATA_LONG.length;i++)
+				if(raw[i] == DATA_LONG[i]) same++;
+			assertTrue("Not encrypted? "+same+" bytes unchanged", same < DATA_LONG.length / 64);
+		} finally {
+			bucket.free();
+		}
+	}
+
+	public void testSkip() throws IOException {
+		for(byte algo : new byte[] { PaddedEphemerallyEncryptedBucket.ALGO_PCFB_RIJNDAEL_256, PaddedEphemerallyEncryptedBucket.ALGO_AES_CTR_256 }) {
+			if(algo == PaddedEphemerallyEncryptedBucket.ALGO_AES_CTR_256 && !SeekableCTRCipher.isAvailable()) continue;
+			PaddedEphemerallyEncryptedBucket bucket = makeBucket(algo);
+			try {
+				OutputStream os = bucket.getOutputStream();
+				os.write(DATA_LONG);
+				os.close();
+				InputStream is = bucket.getInputStream();
+				assertEquals(17, is.skip(17));
+				assertEquals(DATA_LONG[17] & 0xFF, is.read());
+				assertEquals(4000, is.skip(4000));
+				byte[] buf = new byte[100];
+				assertEquals(100, is.read(buf));
+				for(int i=0;i<buf.length;i++)
+					assertEquals(DATA_LONG[18+4000+i], buf[i]);
+				long left = DATA_LONG.length - (18+4000+100);
+				assertEquals(left, is.skip(left + 1000));
+				assertEquals(-1, is.read());
+				is.close();
+			} finally {
+				bucket.free();
+			}
+		}
+	}
+
+	/** Compare the throughput of the old PCFB format with JCE AES/CTR. Run with
+	 * -Dtest.benchmark=true */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] buf = new byte[32768];
+		weakPRNG.nextBytes(buf);
+		int blocks = 1024; // 32MB
+		for(byte algo : new byte[] { PaddedEphemerallyEncryptedBucket.ALGO_PCFB_RIJNDAEL_256, PaddedEphemerallyEncryptedBucket.ALGO_AES_CTR_256 }) {
+			if(algo == PaddedEphemerallyEncryptedBucket.ALGO_AES_CTR_256 && !SeekableCTRCipher.isAvailable()) {
+				System.out.println("AES/CTR not available");
+				continue;
+			}
+			for(int run=0;run<3;run++) {
+				PaddedEphemerallyEncryptedBucket bucket = makeBucket(algo);
+				try {
+					long start = System.nanoTime();
+					OutputStream os = bucket.getOutputStream();
+					for(int i=0;i<blocks;i++)
+						os.write(buf);
+					os.close();
+					long written = System.nanoTime();
+					InputStream is = bucket.getInputStream();
+					while(is.read(buf) > 0);
+					is.close();
+					long read = System.nanoTime();
+					double mb = blocks * (double)buf.length / (1024 * 1024);
+					System.out.println((algo == PaddedEphemerallyEncryptedBucket.ALGO_AES_CTR_256 ? "AES/CTR" : "Rijndael/PCFB")+
+							": write "+(int)(mb * 1000 * 1000 * 1000 / (written - start))+"MB/s, read "+
+							(int)(mb * 1000 * 1000 * 1000 / (read - written))+"MB/s");
+				} finally {
+					bucket.free();
+				}
+			}
+		}
+	}
 }
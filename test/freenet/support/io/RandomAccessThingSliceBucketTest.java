@@ -0,0 +1,73 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.api.Bucket;
+
+public class RandomAccessThingSliceBucketTest extends BucketTestBase {
+	private Random weakPRNG = new Random(12345);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		FilenameGenerator filenameGenerator = new FilenameGenerator(weakPRNG, false, null, "junit");
+		File file = filenameGenerator.makeRandomFile();
+		// Put the slice in the middle of the file.
+		FileChannelRandomAccessThing raf = new FileChannelRandomAccessThing(file, size + 2000, true);
+		return new RandomAccessThingSliceBucket(raf, 1000, (int) size, 0);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+		RandomAccessThing raf = ((RandomAccessThingSliceBucket) bucket).getUnderlying();
+		File file = ((FileChannelRandomAccessThing) raf).getFile();
+		raf.close();
+		assertFalse("File not deleted", file.exists());
+	}
+
+	public void testSlicesInPlace() throws IOException {
+		byte[] storage = new byte[4096];
+		ByteArrayRandomAccessThing rat = new ByteArrayRandomAccessThing(storage);
+		RandomAccessThingSliceBucket a = new RandomAccessThingSliceBucket(rat, 0, 1024, 0);
+		RandomAccessThingSliceBucket b = new RandomAccessThingSliceBucket(rat, 1024, 1024, 0);
+		byte[] data = new byte[1024];
+		weakPRNG.nextBytes(data);
+		// Write b out of order with pwrite, a with a stream.
+		b.pwrite(0, data, 0, 512);
+		b.pwrite(512, data, 512, 512);
+		assertEquals(1024, b.size());
+		OutputStream os = a.getOutputStream();
+		os.write(data, 0, 100);
+		os.close();
+		assertEquals(100, a.size());
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(storage, 1024, 2048)));
+		assertTrue(Arrays.equals(Arrays.copyOf(data, 100), Arrays.copyOf(storage, 100)));
+		byte[] buf = new byte[10];
+		b.pread(1014, buf, 0, 10);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1014, 1024), buf));
+		try {
+			a.pread(95, buf, 0, 10);
+			fail("Read past end of data");
+		} catch (IOException e) {
+			// Expected.
+		}
+		try {
+			a.pwrite(1020, buf, 0, 10);
+			fail("Wrote past end of slice");
+		} catch (IOException e) {
+			// Expected.
+		}
+		Bucket shadow = b.createShadow();
+		assertTrue(shadow.isReadOnly());
+		assertEquals(1024, shadow.size());
+		assertTrue(Arrays.equals(data, BucketTools.toByteArray(shadow)));
+	}
+
+}
@@ -0,0 +1,132 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+public class LatencyHistogramTest extends TestCase {
+
+	public void testBuckets() {
+		assertEquals(0, LatencyHistogram.bucketFor(-1));
+		assertEquals(0, LatencyHistogram.bucketFor(0));
+		assertEquals(15, LatencyHistogram.bucketFor(15));
+		assertEquals(16, LatencyHistogram.bucketFor(16));
+		assertEquals(31, LatencyHistogram.bucketFor(31));
+		assertEquals(32, LatencyHistogram.bucketFor(32));
+		assertEquals(32, LatencyHistogram.bucketFor(33));
+		assertEquals(33, LatencyHistogram.bucketFor(34));
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketFor((1L << 36) - 1));
+		assertEquals(LatencyHistogram.BUCKETS - 2, LatencyHistogram.bucketFor((1L << 36) - (1L << 31) - 1));
+		// Every bucket's bounds map back to it, and the buckets are contiguous.
+		for(int i=0;i<LatencyHistogram.BUCKETS;i++) {
+			long lower = LatencyHistogram.bucketLowerBound(i);
+			long upper = LatencyHistogram.bucketUpperBound(i);
+			assertEquals(i, LatencyHistogram.bucketFor(lower));
+			assertEquals(i, LatencyHistogram.bucketFor(upper));
+			if(i > 0)
+				assertEquals(lower, LatencyHistogram.bucketUpperBound(i-1) + 1);
+			// Within 1/SUB_BUCKETS.
+			if(i < LatencyHistogram.BUCKETS - 1)
+				assertTrue(upper - lower < Math.max(1, lower / LatencyHistogram.SUB_BUCKETS));
+		}
+	}
+
+	public void testSnapshot() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		StripedHistogram.Snapshot empty = histogram.snapshot();
+		assertEquals(0, empty.count());
+		assertEquals(0, empty.max());
+		assertEquals(0, empty.percentile(0.5));
+		assertEquals(0.0, empty.mean());
+		for(int i=1;i<=1000;i++)
+			histogram.report(i * 1000L);
+		StripedHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.count());
+		assertEquals(500500L * 1000, snapshot.sum());
+		assertEquals(1000000, snapshot.max());
+		assertEquals(500500.0, snapshot.mean());
+		assertPercentile(500000, snapshot.percentile(0.5));
+		assertPercentile(900000, snapshot.percentile(0.9));
+		assertPercentile(990000, snapshot.percentile(0.99));
+		// Never more than the maximum.
+		assertEquals(1000000, snapshot.percentile(1.0));
+		assertEquals(1000000, snapshot.percentile(0.9999));
+		// Later reports don't change the snapshot.
+		histogram.report(5);
+		assertEquals(1000, snapshot.count());
+		assertEquals(1001, histogram.snapshot().count());
+	}
+
+	private static void assertPercentile(long expected, long actual) {
+		assertTrue(actual >= expected);
+		assertTrue(actual <= expected + expected / LatencyHistogram.SUB_BUCKETS);
+	}
+
+	public void testReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.report(100);
+		histogram.report(1L << 40);
+		StripedHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+		assertEquals(2, snapshot.count());
+		assertEquals(1L << 40, snapshot.max());
+		assertEquals(1L << 40, snapshot.percentile(1.0));
+		snapshot = histogram.snapshot();
+		assertEquals(0, snapshot.count());
+		assertEquals(0, snapshot.sum());
+		assertEquals(0, snapshot.max());
+		histogram.report(200);
+		snapshot = histogram.snapshotAndReset();
+		assertEquals(1, snapshot.count());
+		assertEquals(200, snapshot.max());
+	}
+
+	/** Resetting while other threads report doesn't lose or double count anything. */
+	public void testConcurrentReset() throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[8];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<10000;j++)
+						histogram.report(j);
+				}
+			};
+			threads[i].start();
+		}
+		long count = 0;
+		long sum = 0;
+		while(true) {
+			boolean alive = false;
+			for(Thread t : threads)
+				alive |= t.isAlive();
+			StripedHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+			count += snapshot.count();
+			sum += snapshot.sum();
+			if(!alive) break;
+			Thread.yield();
+		}
+		assertEquals(80000, count);
+		assertEquals(8L * (9999L * 10000 / 2), sum);
+	}
+
+	/** Cost of a report, including the two calls to System.nanoTime() a caller makes.
+	 * Run with -Dtest.benchmark=true */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		LatencyHistogram histogram = new LatencyHistogram();
+		final int COUNT = 10*1000*1000;
+		for(int run=0;run<5;run++) {
+			long start = System.nanoTime();
+			for(int i=0;i<COUNT;i++)
+				histogram.reportSince(System.nanoTime());
+			long time = System.nanoTime() - start;
+			StripedHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+			System.out.println("LatencyHistogram: "+(time / COUNT)+"ns per report, median "+snapshot.percentile(0.5)+"ns");
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import junit.framework.TestCase;
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+
+public class StripedDecayingAverageTest extends TestCase {
+
+	public void testDefault() {
+		StripedDecayingAverage avg = new StripedDecayingAverage(500, 180000, 0.0, 1000.0);
+		assertEquals(500.0, avg.currentValue());
+		assertEquals(0, avg.countReports());
+		avg.report(100);
+		assertEquals(100.0, avg.currentValue(), 0.001);
+		assertEquals(1, avg.countReports());
+		// Impossible values are ignored.
+		avg.report(-1.0);
+		avg.report(2000.0);
+		avg.report(Double.NaN);
+		assertEquals(100.0, avg.currentValue(), 0.001);
+		assertEquals(1, avg.countReports());
+	}
+
+	public void testMean() {
+		// With a long half-life, it's just the mean.
+		StripedDecayingAverage avg = new StripedDecayingAverage(0, 1000L * 1000 * 1000, 0.0, 1000.0);
+		for(int i=1;i<=100;i++)
+			avg.report(i);
+		assertEquals(50.5, avg.currentValue(), 0.01);
+		assertEquals(100, avg.countReports());
+		assertEquals((50.5 * 100 + 1000) / 101, avg.valueIfReported(1000), 0.01);
+		StripedDecayingAverage copy = avg.clone();
+		avg.report(1000);
+		assertEquals(50.5, copy.currentValue(), 0.01);
+		assertEquals(100, copy.countReports());
+	}
+
+	public void testDecay() throws InterruptedException {
+		StripedDecayingAverage avg = new StripedDecayingAverage(0, 1000, 0.0, 1.0);
+		avg.report(0.0);
+		Thread.sleep(1000);
+		avg.report(1.0);
+		// The first report now has half the weight of the second.
+		assertEquals(1.0 / 1.5, avg.currentValue(), 0.03);
+	}
+
+	public void testFieldSet() {
+		StripedDecayingAverage avg = new StripedDecayingAverage(0, 180000, 0.0, 1000.0);
+		for(int i=0;i<10;i++)
+			avg.report(300);
+		SimpleFieldSet fs = avg.exportFieldSet(true);
+		StripedDecayingAverage restored = new StripedDecayingAverage(0, 180000, 0.0, 1000.0, fs);
+		assertEquals(300.0, restored.currentValue(), 0.001);
+		assertEquals(10, restored.countReports());
+		// Also loads what TimeDecayingRunningAverage saved.
+		TimeDecayingRunningAverage old = new TimeDecayingRunningAverage(0, 180000, 0.0, 1000.0, null);
+		old.report(700);
+		restored = new StripedDecayingAverage(0, 180000, 0.0, 1000.0, old.exportFieldSet(true));
+		assertEquals(700.0, restored.currentValue(), 0.001);
+		// Out of range values are ignored.
+		restored = new StripedDecayingAverage(5, 180000, 0.0, 100.0, old.exportFieldSet(true));
+		assertEquals(5.0, restored.currentValue(), 0.001);
+		assertEquals(0, restored.countReports());
+	}
+
+	/** A restored average has the weight of the reports it was based on, so the first
+	 * report after a restart doesn't move it much. */
+	public void testRestoredDoesNotJump() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.put("Started", true);
+		fs.put("CurrentValue", 100.0);
+		fs.put("TotalReports", 10000L);
+		fs.put("Uptime", 3600L * 1000);
+		StripedDecayingAverage restored = new StripedDecayingAverage(0, 180000, 0.0, 1000.0, fs);
+		assertEquals(100.0, restored.currentValue(), 0.001);
+		assertEquals(100.0, restored.valueIfReported(100.0), 0.001);
+		restored.report(0.0);
+		assertTrue(restored.currentValue() > 99.0);
+		// Few reports over a long time have little weight.
+		fs.removeValue("TotalReports");
+		fs.put("TotalReports", 2L);
+		restored = new StripedDecayingAverage(0, 180000, 0.0, 1000.0, fs);
+		restored.report(0.0);
+		assertEquals(50.0, restored.currentValue(), 0.001);
+		// The weight is never more than the number of reports.
+		assertEquals(10.0, StripedDecayingAverage.restoredWeight(10, 1, 180000), 0.001);
+		assertEquals(10.0, StripedDecayingAverage.restoredWeight(10, 0, 180000), 0.001);
+	}
+
+	public void testConcurrent() throws InterruptedException {
+		final StripedDecayingAverage avg = new StripedDecayingAverage(0, 1000L * 1000 * 1000, 0.0, 1000.0);
+		final int threads = 8;
+		final int reports = 10000;
+		Thread[] t = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			final int value = i * 100;
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<reports;j++)
+						avg.report(value);
+				}
+			};
+			t[i].start();
+		}
+		for(Thread thread : t) thread.join();
+		assertEquals(threads * reports, avg.countReports());
+		assertEquals(350.0, avg.currentValue(), 0.5);
+	}
+
+	/** Compare with TimeDecayingRunningAverage when many threads are reporting. Run with
+	 * -Dtest.benchmark=true */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		for(int run=0;run<3;run++) {
+			TimeDecayingRunningAverage old = new TimeDecayingRunningAverage(0, 180000, 0.0, 1000.0, null);
+			System.out.println("TimeDecayingRunningAverage: "+benchmark(old)+"ms");
+			StripedDecayingAverage striped = new StripedDecayingAverage(0, 180000, 0.0, 1000.0);
+			System.out.println("StripedDecayingAverage: "+benchmark(striped)+"ms");
+		}
+	}
+
+	private long benchmark(final RunningAverage avg) throws InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors() * 2;
+		Thread[] t = new Thread[threads];
+		long start = System.currentTimeMillis();
+		for(int i=0;i<threads;i++) {
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<1000*1000;j++)
+						avg.report(j & 511);
+				}
+			};
+			t[i].start();
+		}
+		for(Thread thread : t) thread.join();
+		return System.currentTimeMillis() - start;
+	}
+
+}
@@ -0,0 +1,76 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import junit.framework.TestCase;
+
+public class StripedHistogramTest extends TestCase {
+
+	public void testBuckets() {
+		assertEquals(0, StripedHistogram.bucketFor(0));
+		assertEquals(1, StripedHistogram.bucketFor(1));
+		assertEquals(2, StripedHistogram.bucketFor(2));
+		assertEquals(2, StripedHistogram.bucketFor(3));
+		assertEquals(3, StripedHistogram.bucketFor(4));
+		assertEquals(11, StripedHistogram.bucketFor(1024));
+		assertEquals(StripedHistogram.BUCKETS - 1, StripedHistogram.bucketFor(Long.MAX_VALUE));
+		for(long value : new long[] { 0, 1, 2, 3, 7, 8, 1000, 1L << 40 }) {
+			int bucket = StripedHistogram.bucketFor(value);
+			assertTrue(value <= StripedHistogram.Snapshot.bucketUpperBound(bucket));
+			if(bucket > 0)
+				assertTrue(value > StripedHistogram.Snapshot.bucketUpperBound(bucket - 1));
+		}
+	}
+
+	public void testSnapshot() {
+		StripedHistogram histogram = new StripedHistogram();
+		StripedHistogram.Snapshot empty = histogram.snapshot();
+		assertEquals(0, empty.count());
+		assertEquals(0, empty.percentile(0.5));
+		assertEquals(0.0, empty.mean());
+		for(int i=1;i<=100;i++)
+			histogram.report(i);
+		histogram.report(-5);
+		StripedHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(101, snapshot.count());
+		assertEquals(5050, snapshot.sum());
+		assertEquals(1, snapshot.bucketCount(0));
+		assertEquals(1, snapshot.bucketCount(1));
+		assertEquals(2, snapshot.bucketCount(2));
+		// Median is 50, in the bucket 32-63.
+		assertEquals(63, snapshot.percentile(0.5));
+		// In the bucket 64-127, but never more than the maximum.
+		assertEquals(100, snapshot.max());
+		assertEquals(100, snapshot.percentile(0.99));
+		assertEquals(0, snapshot.percentile(0.0));
+		// Later reports don't change the snapshot.
+		histogram.report(1000);
+		assertEquals(101, snapshot.count());
+		assertEquals(102, histogram.snapshot().count());
+	}
+
+	public void testConcurrent() throws InterruptedException {
+		final StripedHistogram histogram = new StripedHistogram();
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<10000;j++) {
+						histogram.report(j);
+						counter.increment();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+		StripedHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(80000, snapshot.count());
+		assertEquals(8L * (9999L * 10000 / 2), snapshot.sum());
+		assertEquals(80000, counter.sum());
+	}
+
+}
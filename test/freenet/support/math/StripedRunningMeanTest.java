@@ -0,0 +1,47 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import junit.framework.TestCase;
+
+public class StripedRunningMeanTest extends TestCase {
+
+	public void testMean() {
+		StripedRunningMean mean = new StripedRunningMean();
+		assertEquals(0, mean.countReports());
+		assertTrue(Double.isNaN(mean.currentValue()));
+		mean.report(1.0);
+		mean.report(0.0);
+		mean.report(1L);
+		mean.report(0.0);
+		assertEquals(4, mean.countReports());
+		assertEquals(0.5, mean.currentValue(), 0.0001);
+		assertEquals(2.0, mean.totalValue(), 0.0001);
+		assertEquals(0.6, mean.valueIfReported(1.0), 0.0001);
+		StripedRunningMean copy = mean.clone();
+		mean.report(1.0);
+		assertEquals(4, copy.countReports());
+		assertEquals(0.5, copy.currentValue(), 0.0001);
+	}
+
+	public void testConcurrent() throws InterruptedException {
+		final StripedRunningMean mean = new StripedRunningMean();
+		Thread[] threads = new Thread[8];
+		for(int i=0;i<threads.length;i++) {
+			final boolean success = (i % 4) == 0;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<10000;j++)
+						mean.report(success ? 1.0 : 0.0);
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+		assertEquals(80000, mean.countReports());
+		assertEquals(0.25, mean.currentValue(), 0.0001);
+	}
+
+}